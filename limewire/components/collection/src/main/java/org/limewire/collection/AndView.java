@@ -50,6 +50,14 @@ public class AndView extends BooleanFunction {
 		super(first, more);
 	}
 
+	@Override
+	long word(int w) {
+		long ret = -1L;
+		for (BitField bf : fields)
+			ret &= BitFieldWords.word(bf, w);
+		return ret;
+	}
+
 	public boolean get(int i) {
 		for (BitField bf : fields) {
 			if (!bf.get(i))
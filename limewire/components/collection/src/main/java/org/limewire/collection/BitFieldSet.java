@@ -102,4 +102,20 @@ public class BitFieldSet implements BitField {
 		return ret >= maxSize ? -1 : ret;
 	}
 
+	/**
+	 * Returns whether {@link #word(int)} can read the words of the bitset
+	 * directly, which isn't the case if a subclass overrides its accessors.
+	 */
+	boolean hasWords() {
+		return bs.getClass() == BitSet.class;
+	}
+
+	/**
+	 * Returns the bits from <code>64 * w</code> on, including any bits past
+	 * <code>maxSize</code>.
+	 */
+	long word(int w) {
+		return bs.getBits(w);
+	}
+
 }
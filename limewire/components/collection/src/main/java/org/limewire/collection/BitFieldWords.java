@@ -0,0 +1,95 @@
+package org.limewire.collection;
+
+/**
+ * Reads {@link BitField BitFields} 64 bits at a time.
+ * <p>
+ * The fields of this package are read straight from their words, and the
+ * views are evaluated a word at a time from the words of the fields they
+ * combine. Any other <code>BitField</code> is read bit by bit.
+ */
+final class BitFieldWords {
+
+    private BitFieldWords() {}
+
+    /** Returns the number of words needed to hold <code>maxSize</code> bits. */
+    static int numWords(int maxSize) {
+        return (maxSize + 63) >>> 6;
+    }
+
+    /**
+     * Returns the bits of <code>field</code> from <code>64 * w</code> on,
+     * with the lowest bit of the result being bit <code>64 * w</code>. Bits
+     * past the <code>maxSize</code> of the field are always clear.
+     */
+    static long word(BitField field, int w) {
+        long word;
+        if (field instanceof LongBitField)
+            return ((LongBitField)field).word(w);
+        else if (field instanceof BooleanFunction)
+            word = ((BooleanFunction)field).word(w);
+        else if (field instanceof NotView)
+            word = ((NotView)field).word(w);
+        else if (field instanceof BitFieldSet && ((BitFieldSet)field).hasWords())
+            word = ((BitFieldSet)field).word(w);
+        else
+            word = readWord(field, w);
+        return word & mask(field.maxSize(), w);
+    }
+
+    /**
+     * Returns a mask of the bits of word <code>w</code> that are smaller
+     * than <code>maxSize</code>.
+     */
+    static long mask(int maxSize, int w) {
+        int bits = maxSize - (w << 6);
+        if (bits >= 64)
+            return -1L;
+        return bits <= 0 ? 0 : (1L << bits) - 1;
+    }
+
+    private static long readWord(BitField field, int w) {
+        int base = w << 6;
+        int end = Math.min(base + 64, field.maxSize());
+        long word = 0;
+        for (int i = base; i < end; i++) {
+            if (field.get(i))
+                word |= 1L << (i - base);
+        }
+        return word;
+    }
+
+    static int nextSetBit(BitField field, int from) {
+        int maxSize = field.maxSize();
+        if (from >= maxSize)
+            return -1;
+        int w = from >>> 6;
+        long word = word(field, w) & (-1L << from);
+        while (word == 0) {
+            if (++w >= numWords(maxSize))
+                return -1;
+            word = word(field, w);
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    static int nextClearBit(BitField field, int from) {
+        int maxSize = field.maxSize();
+        if (from >= maxSize)
+            return -1;
+        int w = from >>> 6;
+        long word = ~word(field, w) & mask(maxSize, w) & (-1L << from);
+        while (word == 0) {
+            if (++w >= numWords(maxSize))
+                return -1;
+            word = ~word(field, w) & mask(maxSize, w);
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    static int cardinality(BitField field) {
+        int ret = 0;
+        for (int w = 0, n = numWords(field.maxSize()); w < n; w++)
+            ret += Long.bitCount(word(field, w));
+        return ret;
+    }
+}
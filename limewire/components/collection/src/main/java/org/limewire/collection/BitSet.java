@@ -555,7 +555,7 @@ public class BitSet implements Cloneable, java.io.Serializable {
      * Returns the unit of this bitset at index j as if this bitset had an
      * infinite amount of storage.
      */
-    private long getBits(int j) {
+    long getBits(int j) {
         return (j < unitsInUse) ? bits[j] : 0;
     }
 
@@ -29,9 +29,12 @@ abstract class BooleanFunction implements BitField {
 	}
 	
 	public int cardinality() {
-		int ret = 0;
-		for (int i = 0; i < maxSize(); i++)
-			ret += get(i) ? 1 : 0;
-		return ret;
+		return BitFieldWords.cardinality(this);
 	}
+	
+	/**
+	 * Evaluates the function for the 64 bits from <code>64 * w</code> on
+	 * at once.  Bits past <code>maxSize</code> may be set in the result.
+	 */
+	abstract long word(int w);
 }
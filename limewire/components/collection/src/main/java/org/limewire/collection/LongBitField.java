@@ -0,0 +1,169 @@
+package org.limewire.collection;
+
+import java.util.Arrays;
+
+/**
+ * Provides a <code>BitField</code> of fixed size that stores its bits in
+ * an array of <code>long</code>s and combines itself with other fields a
+ * whole word at a time.
+ * <p>
+ * Unlike {@link AndView}, {@link OrView}, {@link XorView} and
+ * {@link NotView}, which look at their fields every time one of their bits
+ * is read, a <code>LongBitField</code> holds the result of the operations.
+ * A field that is reused as a scratch area for the same size, with
+ * {@link #copyFrom(BitField)} followed by the other operations, doesn't
+ * allocate anything:
+ * <pre>
+    LongBitField interesting = new LongBitField(numPieces);
+    ...
+    interesting.copyFrom(available).andNot(verified).andNot(requested);
+    for (int i = interesting.nextSetBit(0); i >= 0; i = interesting.nextSetBit(i + 1))
+        ...
+ * </pre>
+ * The operations read the views of this package and <code>BitFieldSet</code>s
+ * 64 bits at a time, and any other <code>BitField</code> bit by bit.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class LongBitField implements BitField {
+
+    private final int maxSize;
+
+    /** The bits, bits past <code>maxSize</code> are always clear. */
+    private final long[] words;
+
+    /** Constructs a field of the given size with all bits clear. */
+    public LongBitField(int maxSize) {
+        this.maxSize = maxSize;
+        this.words = new long[BitFieldWords.numWords(maxSize)];
+    }
+
+    /** Constructs a field with the same size and bits as <code>other</code>. */
+    public LongBitField(BitField other) {
+        this(other.maxSize());
+        copyFrom(other);
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public boolean get(int i) {
+        if (i < 0 || i >= maxSize)
+            throw new IndexOutOfBoundsException(Integer.toString(i));
+        return (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public void set(int i) {
+        if (i < 0 || i >= maxSize)
+            throw new IndexOutOfBoundsException(Integer.toString(i));
+        words[i >>> 6] |= 1L << i;
+    }
+
+    public void clear(int i) {
+        if (i < 0 || i >= maxSize)
+            throw new IndexOutOfBoundsException(Integer.toString(i));
+        words[i >>> 6] &= ~(1L << i);
+    }
+
+    /** Clears all bits. */
+    public LongBitField clear() {
+        Arrays.fill(words, 0);
+        return this;
+    }
+
+    public int nextSetBit(int i) {
+        if (i >= maxSize)
+            return -1;
+        int w = i >>> 6;
+        long word = words[w] & (-1L << i);
+        while (word == 0) {
+            if (++w == words.length)
+                return -1;
+            word = words[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    public int nextClearBit(int i) {
+        if (i >= maxSize)
+            return -1;
+        int w = i >>> 6;
+        long word = ~words[w] & (-1L << i);
+        while (word == 0) {
+            if (++w == words.length)
+                return -1;
+            word = ~words[w];
+        }
+        int ret = (w << 6) + Long.numberOfTrailingZeros(word);
+        return ret < maxSize ? ret : -1;
+    }
+
+    public int cardinality() {
+        int ret = 0;
+        for (long word : words)
+            ret += Long.bitCount(word);
+        return ret;
+    }
+
+    /** Sets the bits of this field to the bits of <code>other</code>. */
+    public LongBitField copyFrom(BitField other) {
+        checkSize(other);
+        if (other instanceof LongBitField) {
+            System.arraycopy(((LongBitField)other).words, 0, words, 0, words.length);
+        } else {
+            for (int w = 0; w < words.length; w++)
+                words[w] = BitFieldWords.word(other, w);
+        }
+        return this;
+    }
+
+    /** Clears the bits that aren't set in <code>other</code>. */
+    public LongBitField and(BitField other) {
+        checkSize(other);
+        for (int w = 0; w < words.length; w++)
+            words[w] &= BitFieldWords.word(other, w);
+        return this;
+    }
+
+    /** Sets the bits that are set in <code>other</code>. */
+    public LongBitField or(BitField other) {
+        checkSize(other);
+        for (int w = 0; w < words.length; w++)
+            words[w] |= BitFieldWords.word(other, w);
+        return this;
+    }
+
+    /** Flips the bits that are set in <code>other</code>. */
+    public LongBitField xor(BitField other) {
+        checkSize(other);
+        for (int w = 0; w < words.length; w++)
+            words[w] ^= BitFieldWords.word(other, w);
+        return this;
+    }
+
+    /** Clears the bits that are set in <code>other</code>. */
+    public LongBitField andNot(BitField other) {
+        checkSize(other);
+        for (int w = 0; w < words.length; w++)
+            words[w] &= ~BitFieldWords.word(other, w);
+        return this;
+    }
+
+    /** Flips all bits. */
+    public LongBitField not() {
+        for (int w = 0; w < words.length; w++)
+            words[w] = ~words[w] & BitFieldWords.mask(maxSize, w);
+        return this;
+    }
+
+    /** Returns the bits from <code>64 * w</code> on. */
+    long word(int w) {
+        return words[w];
+    }
+
+    private void checkSize(BitField other) {
+        if (other.maxSize() != maxSize)
+            throw new IllegalArgumentException("bitfield " + other + " doesn't have size " + maxSize);
+    }
+}
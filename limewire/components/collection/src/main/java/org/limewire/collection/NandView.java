@@ -14,6 +14,14 @@ public class NandView extends BooleanFunction {
         super(first, more);
     }
 
+    @Override
+    long word(int w) {
+        long ret = -1L;
+        for (BitField bf : fields)
+            ret &= BitFieldWords.word(bf, w);
+        return ~ret;
+    }
+
     public boolean get(int i) {
 
         for (BitField bf : fields) {
@@ -25,24 +33,11 @@ public class NandView extends BooleanFunction {
     }
 
     public int nextClearBit(int startIndex) {
-        for (int i = startIndex; i < maxSize(); i++) {
-            boolean set = get(i);
-            if (!set) {
-                return i;
-            }
-        }
-
-        return -1;
+        return BitFieldWords.nextClearBit(this, startIndex);
     }
 
     public int nextSetBit(int startIndex) {
-        for (int i = startIndex; i < maxSize(); i++) {
-            boolean set = get(i);
-            if (set) {
-                return i;
-            }
-        }
-        return -1;
+        return BitFieldWords.nextSetBit(this, startIndex);
     }
 
 }
@@ -62,4 +62,12 @@ public class NotView implements BitField {
 		return bf.nextClearBit(i);
 	}
 
+	/**
+	 * Returns the 64 bits from <code>64 * w</code> on, including any bits
+	 * past <code>maxSize</code>.
+	 */
+	long word(int w) {
+		return ~BitFieldWords.word(bf, w);
+	}
+
 }
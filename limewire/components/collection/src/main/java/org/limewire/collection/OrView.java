@@ -52,6 +52,14 @@ public class OrView extends BooleanFunction {
 		super(first, more);
 	}
 
+	@Override
+	long word(int w) {
+		long ret = 0;
+		for (BitField bf : fields)
+			ret |= BitFieldWords.word(bf, w);
+		return ret;
+	}
+
 	public boolean get(int i) {
 		for (BitField bf : fields) {
 			if (bf.get(i))
@@ -49,6 +49,9 @@ import org.limewire.concurrent.ExecutorsHelper;
         Item: 3
         Item: 4
  </pre>
+ * A queue can be processed by several threads, in which case the 
+ * <code>Runnables</code> of one queue ID may run at the same time, but
+ * the queue IDs still get their turns in round-robin order.
  */
 /* TODO: Convert to using java.util.concurrent. */
 public class RRProcessingQueue {
@@ -58,15 +61,32 @@ public class RRProcessingQueue {
     /** Factory to get new threads from. */
     private final ThreadFactory FACTORY;
     
-    /** The thread doing the processing. */
-    private Thread _runner = null;
+    /** The maximum number of threads doing the processing. */
+    private final int maxRunners;
+    
+    /** The number of threads doing the processing. */
+    private int runners;
+    
+    /** The number of threads waiting for something to process. */
+    private int idle;
 
     private final Map<Object, NamedQueue> queues = new HashMap<Object, NamedQueue>();
     private final RoundRobinQueue<NamedQueue> lists = new RoundRobinQueue<NamedQueue>();
 	private int size;
 
 	public RRProcessingQueue(String name) {
+        this(name, 1);
+	}
+
+	/**
+	 * @param maxThreads the maximum number of threads processing the 
+	 * queue at the same time
+	 */
+	public RRProcessingQueue(String name, int maxThreads) {
+        if (maxThreads < 1)
+            throw new IllegalArgumentException("max threads must be > 0: " + maxThreads);
         FACTORY = ExecutorsHelper.daemonThreadFactory(name);
+        maxRunners = maxThreads;
 	}
 
 	public synchronized void execute(Runnable runner, Object queueId) {
@@ -82,18 +102,19 @@ public class RRProcessingQueue {
 		notifyAndStart();
 	}
     
-    /** Notifies the waiting thread or starts a new one. */
+    /** Notifies a waiting thread or starts a new one. */
     protected synchronized void notifyAndStart() {
         notify();
-        if(_runner == null)
+        if(idle == 0 && runners < maxRunners)
             startRunner();
     }
     
     /** Starts a new runner. */
     private synchronized void startRunner() {
-        _runner = FACTORY.newThread(new Processor());
-        _runner.setDaemon(true);
-        _runner.start();
+        Thread runner = FACTORY.newThread(new Processor());
+        runner.setDaemon(true);
+        runner.start();
+        runners++;
     }
 
     protected synchronized boolean moreTasks() {
@@ -177,9 +198,13 @@ public class RRProcessingQueue {
                         // Wait a little bit to see if something new is going
                         // to come in, so we don't needlessly kill/recreate
                         // threads.
+                        idle++;
                         try {
                             RRProcessingQueue.this.wait(5 * 1000);
-                        } catch(InterruptedException ignored) {}
+                        } catch(InterruptedException ignored) {
+                        } finally {
+                            idle--;
+                        }
                         
                         // If something was added and notified us, process it
                         // instead of exiting.
@@ -198,10 +223,9 @@ public class RRProcessingQueue {
                 // We cannot loop here because we'd lose any exceptions
                 // that may have been thrown.
                 synchronized(RRProcessingQueue.this) {
-                    if(moreTasks())
+                    runners--;
+                    if(moreTasks() && runners < maxRunners)
                         startRunner();
-                    else
-                        _runner = null;
                 }
             }
         }
@@ -50,6 +50,14 @@ public class XorView extends BooleanFunction {
 		super(first, more);
 	}
 
+	@Override
+	long word(int w) {
+		long ret = 0;
+		for (BitField bf : fields)
+			ret ^= BitFieldWords.word(bf, w);
+		return ret;
+	}
+
 	public boolean get(int i) {
 		boolean ret = fields[0].get(i);
 		for (int j = 1;j < fields.length;j++) {
@@ -59,21 +67,11 @@ public class XorView extends BooleanFunction {
 	}
 
 	public int nextClearBit(int startIndex) {
-		// not very efficient
-		for (int i = startIndex; i < maxSize(); i++) {
-			if (!get(i))
-				return i;
-		}
-		return -1;
+		return BitFieldWords.nextClearBit(this, startIndex);
 	}
 
 	public int nextSetBit(int startIndex) {
-		// not very efficient
-		for (int i = startIndex; i < maxSize(); i++) {
-			if (get(i))
-				return i;
-		}
-		return -1;
+		return BitFieldWords.nextSetBit(this, startIndex);
 	}
 
 }
@@ -0,0 +1,82 @@
+package org.limewire.collection;
+
+import java.util.Random;
+
+/**
+ * Compares the lazy views with {@link LongBitField} for the set algebra a
+ * torrent does when it leases a piece: the pieces the remote host has that
+ * we are missing, minus the ones that are pending, requested or partial,
+ * followed by a walk over the result and its cardinality.
+ * <p>
+ * Usage: <code>BitFieldBenchmark [pieces] [iterations]</code>
+ */
+public class BitFieldBenchmark {
+
+    public static void main(String[] args) {
+        int pieces = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        Random random = new Random(1);
+        BitField available = randomField(random, pieces, 0.6);
+        BitField verified = randomField(random, pieces, 0.4);
+        BitField pending = randomField(random, pieces, 0.01);
+        BitField requested = randomField(random, pieces, 0.02);
+        BitField partial = randomField(random, pieces, 0.01);
+        BitField missing = new NotView(verified);
+        System.out.println(pieces + " pieces, " + iterations + " iterations");
+
+        LongBitField interestingScratch = new LongBitField(pieces);
+        LongBitField neededScratch = new LongBitField(pieces);
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < iterations; i++) {
+                BitField interesting = new AndView(available, missing);
+                BitField needed = new AndView(missing, new NotView(new OrView(pending,
+                        requested, partial)));
+                sum += walk(new AndView(interesting, needed));
+            }
+            long views = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                BitField interesting = interestingScratch.copyFrom(missing).and(available);
+                BitField needed = neededScratch.copyFrom(missing).andNot(pending)
+                        .andNot(requested).andNot(partial);
+                sum -= walk(new AndView(interesting, needed));
+            }
+            long words = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                BitField result = interestingScratch.copyFrom(missing).and(available)
+                        .andNot(pending).andNot(requested).andNot(partial);
+                sum += walk(result);
+            }
+            long materialized = System.nanoTime() - start;
+
+            if (sum != walk(interestingScratch) * iterations)
+                throw new IllegalStateException("results differ");
+            System.out.println("round " + round + ": views " + views / iterations + " ns"
+                    + ", scratch + view " + words / iterations + " ns"
+                    + ", scratch only " + materialized / iterations + " ns");
+        }
+    }
+
+    /** Visits every set bit like the piece strategies do. */
+    private static long walk(BitField field) {
+        long sum = field.cardinality();
+        for (int i = field.nextSetBit(0); i >= 0; i = field.nextSetBit(i + 1))
+            sum += i;
+        return sum;
+    }
+
+    private static BitField randomField(Random random, int size, double density) {
+        BitSet bits = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if (random.nextDouble() < density)
+                bits.set(i);
+        }
+        return new BitFieldSet(bits, size);
+    }
+}
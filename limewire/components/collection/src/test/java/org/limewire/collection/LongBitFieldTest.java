@@ -0,0 +1,148 @@
+package org.limewire.collection;
+
+import java.util.Random;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+public class LongBitFieldTest extends BaseTestCase {
+
+    public LongBitFieldTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(LongBitFieldTest.class);
+    }
+
+    public void testSetAndClear() {
+        LongBitField field = new LongBitField(130);
+        field.set(0);
+        field.set(63);
+        field.set(64);
+        field.set(129);
+        assertTrue(field.get(63));
+        assertFalse(field.get(62));
+        assertEquals(4, field.cardinality());
+        assertEquals(63, field.nextSetBit(1));
+        assertEquals(129, field.nextSetBit(65));
+        assertEquals(-1, field.nextSetBit(130));
+        assertEquals(1, field.nextClearBit(0));
+        assertEquals(65, field.nextClearBit(63));
+
+        field.clear(129);
+        assertEquals(-1, field.nextSetBit(65));
+        field.clear();
+        assertEquals(0, field.cardinality());
+
+        try {
+            field.set(130);
+            fail("set a bit past the end");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    public void testNotStaysWithinSize() {
+        LongBitField field = new LongBitField(70);
+        field.set(3);
+        field.not();
+        assertEquals(69, field.cardinality());
+        assertFalse(field.get(3));
+        assertEquals(-1, field.nextClearBit(4));
+        field.not();
+        assertEquals(1, field.cardinality());
+    }
+
+    public void testOperationsMatchViews() {
+        Random random = new Random(5);
+        for (int size : new int[] { 1, 63, 64, 65, 200, 1000 }) {
+            BitField a = randomField(random, size);
+            BitField b = randomField(random, size);
+            BitField c = randomField(random, size);
+
+            assertSameBits(new AndView(a, b, c), new LongBitField(a).and(b).and(c));
+            assertSameBits(new OrView(a, b, c), new LongBitField(a).or(b).or(c));
+            assertSameBits(new XorView(a, b, c), new LongBitField(a).xor(b).xor(c));
+            assertSameBits(new NotView(a), new LongBitField(a).not());
+            assertSameBits(new AndView(a, new NotView(b)), new LongBitField(a).andNot(b));
+            assertSameBits(new NandView(a, b), new LongBitField(a).and(b).not());
+            assertSameBits(new NorView(a, b), new LongBitField(a).or(b).not());
+
+            // views are read a word at a time, including nested ones
+            BitField nested = new AndView(a, new NotView(new OrView(b, c)));
+            assertSameBits(nested, new LongBitField(nested));
+        }
+    }
+
+    public void testFieldsReadBitByBit() {
+        final BitField a = randomField(new Random(9), 150);
+        BitField other = new BitField() {
+            public int cardinality() {
+                return a.cardinality();
+            }
+            public boolean get(int i) {
+                return a.get(i);
+            }
+            public int maxSize() {
+                return a.maxSize();
+            }
+            public int nextClearBit(int i) {
+                return a.nextClearBit(i);
+            }
+            public int nextSetBit(int i) {
+                return a.nextSetBit(i);
+            }
+        };
+        assertSameBits(a, new LongBitField(other));
+        assertSameBits(new NotView(a), new NotView(other));
+    }
+
+    public void testScratchIsReused() {
+        Random random = new Random(3);
+        BitField a = randomField(random, 100);
+        BitField b = randomField(random, 100);
+        LongBitField scratch = new LongBitField(100);
+        scratch.copyFrom(b).not();
+        assertSameBits(new AndView(a, b), scratch.copyFrom(a).and(b));
+
+        try {
+            scratch.and(randomField(random, 99));
+            fail("combined fields of different sizes");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static BitField randomField(Random random, int size) {
+        BitSet bits = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if (random.nextInt(3) == 0)
+                bits.set(i);
+        }
+        // bits past the size of the field must be ignored
+        bits.set(size + random.nextInt(10));
+        return new BitFieldSet(bits, size);
+    }
+
+    private static void assertSameBits(BitField expected, BitField actual) {
+        assertEquals(expected.maxSize(), actual.maxSize());
+        int cardinality = 0;
+        for (int i = 0; i < expected.maxSize(); i++) {
+            assertEquals("bit " + i, expected.get(i), actual.get(i));
+            if (expected.get(i))
+                cardinality++;
+            assertEquals("next set " + i, nextBit(expected, i, true), actual.nextSetBit(i));
+            assertEquals("next clear " + i, nextBit(expected, i, false), actual.nextClearBit(i));
+        }
+        assertEquals(cardinality, actual.cardinality());
+        assertEquals(cardinality, expected.cardinality());
+    }
+
+    private static int nextBit(BitField field, int from, boolean value) {
+        for (int i = from; i < field.maxSize(); i++) {
+            if (field.get(i) == value)
+                return i;
+        }
+        return -1;
+    }
+}
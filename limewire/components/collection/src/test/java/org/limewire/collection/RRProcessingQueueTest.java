@@ -3,6 +3,9 @@ package org.limewire.collection;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Test;
 
@@ -48,6 +51,44 @@ public class RRProcessingQueueTest extends BaseTestCase {
     	assertEquals(0, queue.size());
     }
     
+    public void testSeveralThreads() throws Exception {
+        RRProcessingQueue queue = new RRProcessingQueue("test", 2);
+        final CountDownLatch running = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(5);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            queue.execute(new Runnable() {
+                public void run() {
+                    int now = concurrent.incrementAndGet();
+                    synchronized (maxConcurrent) {
+                        maxConcurrent.set(Math.max(now, maxConcurrent.get()));
+                    }
+                    running.countDown();
+                    try {
+                        // wait for the other thread to run a job as well
+                        running.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException iex) {
+                        fail(iex);
+                    }
+                    concurrent.decrementAndGet();
+                    done.countDown();
+                }
+            }, "a");
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, maxConcurrent.get());
+        assertEquals(0, queue.size());
+    }
+    
+    public void testInvalidThreads() throws Exception {
+        try {
+            new RRProcessingQueue("test", 0);
+            fail("expected exception");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+    
     private class Runner implements Runnable {
     	final List toNotify;
     	Runner(List toNotify) {
@@ -48,6 +48,42 @@ public class BittorrentSettings extends LimeProps {
     public static BooleanSetting TORRENT_USE_MMAP =
         FACTORY.createBooleanSetting("TORRENT_USE_MMAP", false);
     
+    /**
+     * Whether to use positional file channel writes and mapped windows
+     * for disk access, unless memory mapped files are used.
+     */
+    public static BooleanSetting TORRENT_USE_CHANNELS =
+        FACTORY.createBooleanSetting("TORRENT_USE_CHANNELS", false);
+    
+    /**
+     * The maximum number of threads that verify the data of torrents
+     * on disk, not more than there are processors are used.
+     */
+    public static IntSetting TORRENT_VERIFY_THREADS =
+        FACTORY.createIntSetting("TORRENT_VERIFY_THREADS", 4);
+    
+    /**
+     * The share of the upload bandwidth in percent that torrents may use,
+     * 100 lets them use all of it.
+     */
+    public static IntSetting TORRENT_UPLOAD_SHARE =
+        FACTORY.createIntSetting("TORRENT_UPLOAD_SHARE", 100);
+    
+    /**
+     * The share of the download bandwidth in percent that torrents may use,
+     * 100 lets them use all of it.
+     */
+    public static IntSetting TORRENT_DOWNLOAD_SHARE =
+        FACTORY.createIntSetting("TORRENT_DOWNLOAD_SHARE", 100);
+    
+    /**
+     * The maximum number of blocks to request from a host without waiting
+     * for a reply, the actual number depends on the bandwidth and latency
+     * of the connection.
+     */
+    public static IntSetting TORRENT_MAX_REQUESTS =
+        FACTORY.createIntSetting("TORRENT_MAX_REQUESTS", 64);
+
     /**
      * Whether to report Disk problems to the bug server
      */
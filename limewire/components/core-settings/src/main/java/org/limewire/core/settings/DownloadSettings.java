@@ -55,6 +55,13 @@ public class DownloadSettings extends LimeProps {
     public static final IntSetting HISTORY_SIZE=
         FACTORY.createRemoteIntSetting("HISTORY_SIZE",10,"history_size",2,50);
     
+    /**
+     * The largest window of data messages negotiated with reliable UDP
+     * peers that support it, 20 turns negotiation off.
+     */
+    public static final IntSetting RUDP_MAX_WINDOW_SIZE =
+        FACTORY.createRemoteIntSetting("RUDP_MAX_WINDOW_SIZE",256,"rudp_max_window_size",20,1024);
+    
     /**
      * Whether the client should use HeadPings when ranking sources
      */
@@ -105,6 +112,13 @@ public class DownloadSettings extends LimeProps {
                 defaultPreviewableExtensions,
                 "PREVIEWABLE_EXTENSIONS");
     
+    /**
+     * The number of threads that write and verify downloads.  The data of 
+     * one download is always written by the same thread.
+     */
+    public static final IntSetting DISK_WRITER_THREADS =
+        FACTORY.createIntSetting("DISK_WRITER_THREADS", 4);
+    
     /** Whether to report disk problems to the bug server */
     public static final ProbabilisticBooleanSetting REPORT_DISK_PROBLEMS =
         FACTORY.createRemoteProbabilisticBooleanSetting("REPORT_HTTP_DISK_PROBLEMS", 0f, 
@@ -3,6 +3,7 @@ package org.limewire.core.settings;
 
 import org.limewire.inspection.InspectablePrimitive;
 import org.limewire.setting.BooleanSetting;
+import org.limewire.setting.FloatSetting;
 import org.limewire.setting.IntSetting;
 import org.limewire.setting.StringArraySetting;
 
@@ -76,6 +77,38 @@ public class FilterSettings extends LimeProps {
     public static final BooleanSetting FILTER_DUPLICATES =
         FACTORY.createBooleanSetting("FILTER_DUPLICATES", true);
     
+    /**
+     * Sets whether duplicate queries are detected with fixed-size rotating
+     * Bloom filters instead of sets of the recent queries.
+     */
+    public static final BooleanSetting USE_BLOOM_DUPLICATE_FILTER =
+        FACTORY.createRemoteBooleanSetting("USE_BLOOM_DUPLICATE_FILTER",
+                false, "FilterSettings.useBloomDuplicateFilter");
+    
+    /**
+     * The number of bits in each generation of the Bloom duplicate filter.
+     * Each connection keeps two generations.
+     */
+    public static final IntSetting BLOOM_DUPLICATE_FILTER_BITS =
+        FACTORY.createRemoteIntSetting("BLOOM_DUPLICATE_FILTER_BITS", 64 * 1024,
+                "FilterSettings.bloomDuplicateFilterBits", 1024, 1024 * 1024);
+    
+    /**
+     * The number of bits set for each query in the Bloom duplicate filter.
+     */
+    public static final IntSetting BLOOM_DUPLICATE_FILTER_HASHES =
+        FACTORY.createRemoteIntSetting("BLOOM_DUPLICATE_FILTER_HASHES", 6,
+                "FilterSettings.bloomDuplicateFilterHashes", 1, 16);
+    
+    /**
+     * The highest false positive rate a generation of the Bloom duplicate
+     * filter may reach before it is rotated early.
+     */
+    public static final FloatSetting BLOOM_DUPLICATE_FILTER_MAX_FALSE_POSITIVES =
+        FACTORY.createRemoteFloatSetting("BLOOM_DUPLICATE_FILTER_MAX_FALSE_POSITIVES",
+                0.001f, "FilterSettings.bloomDuplicateFilterMaxFalsePositives",
+                0.00001f, 0.1f);
+    
     /**
 	 * Sets whether or not greedy queries a filtered.
 	 */
@@ -18,6 +18,13 @@ public class MessageSettings extends LimeProps {
     public static final IntSetting MAX_LENGTH = 
         FACTORY.createIntSetting("MAX_LENGTH", 65536);
     
+    /**
+     * Whether payloads of messages that can share a pooled buffer are read
+     * into buffers that are reused once the messages were handled.
+     */
+    public static final BooleanSetting REUSE_PAYLOAD_BUFFERS =
+        FACTORY.createBooleanSetting("REUSE_PAYLOAD_BUFFERS", true);
+    
     /**
      * Whether to embed a timestamp in the query guids.
      */
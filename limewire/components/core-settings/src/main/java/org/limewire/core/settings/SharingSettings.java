@@ -367,6 +367,20 @@ public class SharingSettings extends LimeProps {
      */
     public static final BooleanSetting FRIENDLY_HASHING =
         FACTORY.createBooleanSetting("FRIENDLY_HASHING", true);	
+
+    /**
+     * The number of threads that hash shared files in parallel.
+     */
+    public static final IntSetting HASHING_THREADS =
+        FACTORY.createIntSetting("HASHING_THREADS",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Whether the THEX tree of a file is calculated during the same
+     * pass over the file that calculates its SHA1.
+     */
+    public static final BooleanSetting HASH_TREES_WITH_URNS =
+        FACTORY.createBooleanSetting("HASH_TREES_WITH_URNS", true);
     
     /** 
      * Setting for the threshold of when to warn the user that a lot of 
@@ -109,4 +109,18 @@ public final class UploadSettings extends LimeProps {
     
     public static final BooleanSetting CHECK_DUPES =
         FACTORY.createBooleanSetting("CHECK_DUPE_UPLOADS", true);
+    
+    /**
+     * Whether uploads are sent straight from the file system to the socket
+     * if the connection is neither encrypted nor compressed.
+     */
+    public static final BooleanSetting ZERO_COPY_UPLOADS =
+        FACTORY.createBooleanSetting("ZERO_COPY_UPLOADS", true);
+    
+    /**
+     * The number of bytes of shared files and torrents that are kept in
+     * memory for uploads to other hosts, 0 to disable the cache.
+     */
+    public static final IntSetting BLOCK_CACHE_SIZE =
+        FACTORY.createIntSetting("UPLOAD_BLOCK_CACHE_SIZE", 8 * 1024 * 1024);
 }
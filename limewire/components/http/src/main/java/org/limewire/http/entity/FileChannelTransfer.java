@@ -0,0 +1,235 @@
+package org.limewire.http.entity;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.limewire.nio.channel.FileTransferChannel;
+
+/**
+ * Sends a range of a file through a {@link FileContentEncoder} using
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so the
+ * operating system can send the file to the socket without copying it into
+ * the Java heap first.
+ * <p>
+ * This only works if the encoder writes to a {@link FileTransferChannel}
+ * that supports file transfers, i.e. if there is no TLS or compression
+ * between the encoder and the socket. Otherwise {@link #transfer(ContentEncoder)}
+ * returns -1 and the file has to be read with a {@link FilePieceReader}
+ * instead.
+ * <p>
+ * Unlike a <code>FilePieceReader</code> the file is read by the thread that
+ * invokes <code>transfer</code>.
+ */
+public class FileChannelTransfer {
+
+    private final File file;
+
+    /** Offset of the next byte to send. */
+    private long position;
+
+    /** Number of bytes left to send. */
+    private long remaining;
+
+    private RandomAccessFile raf;
+
+    private TransferringFileChannel channel;
+
+    public FileChannelTransfer(File file, long begin, long length) {
+        if (begin < 0 || length < 0) {
+            throw new IllegalArgumentException("invalid range: " + begin + "," + length);
+        }
+        this.file = file;
+        this.position = begin;
+        this.remaining = length;
+    }
+
+    /**
+     * Returns true if <code>encoder</code> can transfer files, in which case
+     * it still depends on the channels below it whether
+     * {@link #transfer(ContentEncoder)} succeeds.
+     */
+    public static boolean canTransfer(ContentEncoder encoder) {
+        return encoder instanceof FileContentEncoder;
+    }
+
+    /**
+     * Transfers as much of the file as the channel takes.
+     *
+     * @return the number of bytes transferred, which may be 0 if the channel
+     *         can't take more data right now; -1 if the channels can't
+     *         transfer files
+     * @throws EOFException if the file ends before the range does
+     */
+    public int transfer(ContentEncoder encoder) throws IOException {
+        if (!canTransfer(encoder)) {
+            return -1;
+        }
+        if (remaining == 0) {
+            return 0;
+        }
+        if (channel == null) {
+            raf = new RandomAccessFile(file, "r");
+            channel = new TransferringFileChannel(raf.getChannel());
+        }
+
+        long written = ((FileContentEncoder) encoder).transfer(channel, position,
+                Math.min(remaining, Integer.MAX_VALUE));
+        if (channel.isUnsupported()) {
+            return -1;
+        }
+        if (written == 0 && position >= channel.size()) {
+            throw new EOFException("unexpected end of file: " + file);
+        }
+        position += written;
+        remaining -= written;
+        return (int) written;
+    }
+
+    /** Returns the offset of the next byte to send. */
+    public long getPosition() {
+        return position;
+    }
+
+    /** Returns the number of bytes that have not been sent yet. */
+    public long getRemaining() {
+        return remaining;
+    }
+
+    /** Closes the file. */
+    public void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Passes transfers on to a {@link FileTransferChannel} target, which
+     * <code>FileChannel</code> itself would copy through a buffer, and
+     * remembers if the target couldn't take them. Everything else is
+     * delegated.
+     */
+    private static class TransferringFileChannel extends FileChannel {
+
+        private final FileChannel delegate;
+
+        private boolean unsupported;
+
+        public TransferringFileChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        public boolean isUnsupported() {
+            return unsupported;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+                throws IOException {
+            if (target instanceof FileTransferChannel
+                    && ((FileTransferChannel) target).canTransferFile()) {
+                return ((FileTransferChannel) target).transferFile(delegate, position, count);
+            }
+            unsupported = true;
+            return 0;
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count)
+                throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return delegate.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+
+}
@@ -49,6 +49,12 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
     /** Piece that is currently transferred. */
     private Piece piece;
 
+    /** Whether the file may be sent with <code>FileChannel.transferTo()</code>. */
+    private boolean zeroCopy = true;
+
+    /** Sends the file if the connection supports zero-copy transfers. */
+    private FileChannelTransfer fileTransfer;
+
     private IOControl ioctrl;
 
     /** Cancels the transfer if inactivity for too long. */
@@ -91,6 +97,19 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
         return timeout;
     }
     
+    /**
+     * Sets whether the file is sent straight from the file system to the
+     * socket when the connection allows it, see {@link FileChannelTransfer}.
+     * Enabled by default.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+    
     @Override
     public long getContentLength() {
         return length;
@@ -154,8 +173,12 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
 
         transfer.start();
 
+        startReader(begin, length);
+    }
+
+    private void startReader(long offset, long count) {
         reader = new FilePieceReader(NIODispatcher.instance().getBufferCache(),
-                file, begin, length, new PieceHandler());
+                file, offset, count, new PieceHandler());
         reader.start();
     }
 
@@ -171,6 +194,11 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
             reader.shutdown();
             reader = null;
         }
+        
+        if (fileTransfer != null) {
+            fileTransfer.close();
+            fileTransfer = null;
+        }
 
         ioctrl = null;
     }
@@ -179,7 +207,28 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
             throws IOException {
         if (this.ioctrl == null) {
             this.ioctrl = ioctrl;
-            initializeReader();
+            if (zeroCopy && length > 0 && FileChannelTransfer.canTransfer(encoder)) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Initializing zero-copy upload of " + file.getName()
+                            + " [begin=" + begin + ",length=" + length + "]");
+                transfer.start();
+                fileTransfer = new FileChannelTransfer(file, begin, length);
+            } else {
+                initializeReader();
+            }
+        }
+        
+        if (fileTransfer != null) {
+            if (transferFile(encoder)) {
+                return;
+            }
+            
+            // TLS or compression in the way, read the file into buffers instead
+            if (LOG.isDebugEnabled())
+                LOG.debug("Connection can't transfer files, falling back to reading " + file.getName());
+            startReader(fileTransfer.getPosition(), fileTransfer.getRemaining());
+            fileTransfer.close();
+            fileTransfer = null;
         }
         
         // flush current buffer
@@ -238,6 +287,33 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
         }
     }
 
+    /**
+     * Sends as much of the file as the connection takes.
+     * 
+     * @return false, if the connection doesn't support file transfers
+     */
+    private boolean transferFile(ContentEncoder encoder) throws IOException {
+        int written;
+        do {
+            written = fileTransfer.transfer(encoder);
+            if (written == -1) {
+                return false;
+            }
+            transfer.addAmountUploaded(written);
+            remaining -= written;
+        } while (written > 0 && remaining > 0);
+        
+        if (LOG.isTraceEnabled())
+            LOG.trace("Transferred " + file.getName() + " [remaining=" + remaining + "]");
+
+        if (remaining == 0) {
+            encoder.complete();
+        } else {
+            activateTimeout();
+        }
+        return true;
+    }
+
     protected void activateTimeout() {
         if (this.watchdog == null) {
             this.watchdog = new StalledUploadWatchdog(timeout, NIODispatcher.instance().getScheduledExecutorService());
@@ -18,10 +18,14 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.io.BlockCache;
 import org.limewire.nio.ByteBufferCache;
 
 /**
  * Reads chunks from a file into ByteBuffers.  
+ * <p>
+ * If a {@link BlockCache} is passed in the chunks are read through it, so
+ * readers of the same file share the blocks that have been read already.
  */
 public class FilePieceReader implements PieceReader {
 
@@ -81,6 +85,21 @@ public class FilePieceReader implements PieceReader {
 
     private final ByteBufferCache bufferCache;
 
+    /** The cache to read through, may be null. */
+    private final BlockCache blockCache;
+
+    /**
+     * Identifies the version of the file in {@link #blockCache}.
+     */
+    private final FileKey cacheKey;
+
+    /** Reads blocks for {@link #blockCache}. */
+    private final BlockCache.BlockReader blockReader = new BlockCache.BlockReader() {
+        public int read(long position, ByteBuffer dst) throws IOException {
+            return channel.read(dst, position);
+        }
+    };
+
     /**
      * Number of buffers currently in use by jobs.
      * <p>
@@ -122,6 +141,15 @@ public class FilePieceReader implements PieceReader {
 
     public FilePieceReader(ByteBufferCache bufferCache, File file, long offset,
             long length, PieceListener listener) {
+        this(bufferCache, null, file, offset, length, listener);
+    }
+
+    /**
+     * @param blockCache the cache to read the file through, if null the file
+     *        is read directly
+     */
+    public FilePieceReader(ByteBufferCache bufferCache, BlockCache blockCache, File file,
+            long offset, long length, PieceListener listener) {
         if (bufferCache == null || file == null || listener == null) {
             throw new IllegalArgumentException();
         }
@@ -133,6 +161,8 @@ public class FilePieceReader implements PieceReader {
         }
         
         this.bufferCache = bufferCache;
+        this.blockCache = blockCache;
+        this.cacheKey = blockCache != null ? new FileKey(file) : null;
         this.file = file;
         this.readOffset = offset;
         this.processingOffset = offset;
@@ -379,7 +409,9 @@ public class FilePieceReader implements PieceReader {
                 try {
                     initChannel();
                     while (buffer.hasRemaining()) {
-                        int read = channel.read(buffer, offset + buffer.position());
+                        int read = (blockCache != null) 
+                            ? blockCache.read(cacheKey, offset + buffer.position(), buffer, blockReader)
+                            : channel.read(buffer, offset + buffer.position());
                         if (read == -1 || (read == 0 && raf.length() <= offset + buffer.position())) {
                             throw new EOFException("Attempt to read beyond end of file");
                         }
@@ -407,4 +439,40 @@ public class FilePieceReader implements PieceReader {
 
     }
 
+    /**
+     * Identifies a file in the block cache. The length and modification
+     * time are part of the key so blocks of a file that has changed are not
+     * used.
+     */
+    private static class FileKey {
+
+        private final File file;
+
+        private final long length;
+
+        private final long lastModified;
+
+        public FileKey(File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileKey)) {
+                return false;
+            }
+            FileKey other = (FileKey) obj;
+            return length == other.length && lastModified == other.lastModified
+                    && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + (int) (lastModified ^ length);
+        }
+
+    }
+
 }
@@ -16,6 +16,7 @@ import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.limewire.io.IOUtils;
 import org.limewire.nio.AbstractNBSocket;
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.channel.ThrottleWriter;
 
 /**
@@ -66,11 +67,23 @@ public class DefaultDispatchedIOReactor implements DispatchedIOReactor {
         }
     }
     
+    /**
+     * Returns the executor for the session of <code>socket</code>: its own
+     * NIO thread if this was created with the shared NIO executor, since
+     * sockets may be handled by any of the selector loops.
+     */
+    private Executor getExecutor(AbstractNBSocket socket) {
+        if (ioExecutor == NIODispatcher.instance().getScheduledExecutorService()) {
+            return NIODispatcher.instance().getScheduledExecutorService(socket);
+        }
+        return ioExecutor;
+    }
+
     /**
      * Connects <code>socket</code> to LimeWire's NIO layer. 
      */
     protected NHttpConnection connectSocket(AbstractNBSocket socket, Object attachment, String word) {
-        final HttpIOSession session = new HttpIOSession(socket, ioExecutor);        
+        final HttpIOSession session = new HttpIOSession(socket, getExecutor(socket));        
         
         session.setAttribute(IOSession.ATTACHMENT_KEY, attachment);
         session.setSocketTimeout(HttpConnectionParams.getSoTimeout(this.params));
@@ -78,7 +91,8 @@ public class DefaultDispatchedIOReactor implements DispatchedIOReactor {
         HttpChannel channel = new HttpChannel(session, eventDispatch, word);
         session.setHttpChannel(channel);
 
-        ThrottleWriter throttleWriter = new ThrottleWriter(null);
+        ThrottleWriter throttleWriter = new ThrottleWriter(null, null, 
+                NIODispatcher.instance().getScheduledExecutorService(socket));
         session.setThrottleChannel(throttleWriter);
         channel.setWriteChannel(throttleWriter);
         
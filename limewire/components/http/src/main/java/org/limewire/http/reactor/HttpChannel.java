@@ -3,6 +3,7 @@ package org.limewire.http.reactor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
@@ -10,6 +11,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.nio.reactor.IOEventDispatch;
 import org.limewire.nio.channel.ChannelReadObserver;
 import org.limewire.nio.channel.ChannelWriter;
+import org.limewire.nio.channel.FileTransferChannel;
 import org.limewire.nio.channel.InterestReadableByteChannel;
 import org.limewire.nio.channel.InterestWritableByteChannel;
 import org.limewire.util.BufferUtils;
@@ -18,8 +20,12 @@ import org.limewire.util.StringUtils;
 /**
  * A read/write channel implementation that forwards all requests received from
  * LimeWire's NIO layer to HttpCore's {@link IOEventDispatch}.
+ * <p>
+ * File transfers are passed on to the write channel if it supports them,
+ * see {@link FileTransferChannel}.
  */
-public class HttpChannel implements ByteChannel, ChannelReadObserver, ChannelWriter {
+public class HttpChannel implements ByteChannel, ChannelReadObserver, ChannelWriter,
+        FileTransferChannel {
 
     private static final Log LOG = LogFactory.getLog(HttpChannel.class);
 
@@ -134,6 +140,23 @@ public class HttpChannel implements ByteChannel, ChannelReadObserver, ChannelWri
         return written;
     }
 
+    public boolean canTransferFile() {
+        InterestWritableByteChannel source = writeSource;
+        return source instanceof FileTransferChannel
+                && ((FileTransferChannel) source).canTransferFile();
+    }
+
+    public long transferFile(FileChannel source, long position, long count) throws IOException {
+        if (!canTransferFile()) {
+            throw new IllegalStateException("write channel can't transfer files");
+        }
+        // the bandwidth trackers count ints, the socket won't take more at once anyway
+        int written = (int) ((FileTransferChannel) writeSource).transferFile(source, position,
+                Math.min(count, Integer.MAX_VALUE));
+        upCount(written);
+        return written;
+    }
+
     public void handleRead() throws IOException {
         if (!readInterest) {
             LOG
@@ -20,6 +20,7 @@ import org.apache.http.params.HttpParams;
 import org.limewire.net.SocketsManager;
 import org.limewire.net.SocketsManager.ConnectType;
 import org.limewire.nio.AbstractNBSocket;
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.NBSocket;
 import org.limewire.nio.observer.ConnectObserver;
 
@@ -113,6 +114,18 @@ public class LimeConnectingIOReactor implements ConnectingIOReactor {
     }
     
 
+    /**
+     * Returns the executor for the session of <code>socket</code>: its own
+     * NIO thread if this was created with the shared NIO executor, since
+     * sockets may be handled by any of the selector loops.
+     */
+    private Executor getExecutor(AbstractNBSocket socket) {
+        if (ioExecutor == NIODispatcher.instance().getScheduledExecutorService()) {
+            return NIODispatcher.instance().getScheduledExecutorService(socket);
+        }
+        return ioExecutor;
+    }
+
     /**
      * Sets parameters of <code>socket</code> based on default {@link HttpParams},
      * and attachs to the NIO layer. 
@@ -124,7 +137,7 @@ public class LimeConnectingIOReactor implements ConnectingIOReactor {
             socket.setSoLinger(linger > 0, linger);
         }
         
-        final HttpIOSession session = new HttpIOSession(socket, ioExecutor); 
+        final HttpIOSession session = new HttpIOSession(socket, getExecutor(socket)); 
         
         session.setAttribute(IOSession.ATTACHMENT_KEY, attachment);
         session.setSocketTimeout(HttpConnectionParams.getSoTimeout(this.params));
@@ -3,7 +3,9 @@ package org.limewire.http.entity;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 
 import junit.framework.Test;
@@ -14,6 +16,7 @@ import org.apache.http.impl.nio.reactor.SessionOutputBufferImpl;
 import org.apache.http.params.BasicHttpParams;
 import org.limewire.http.HttpTestUtils;
 import org.limewire.http.MockIOControl;
+import org.limewire.nio.channel.FileTransferChannel;
 import org.limewire.util.BaseTestCase;
 
 public class FileNIOEntityTest extends BaseTestCase {
@@ -98,6 +101,54 @@ public class FileNIOEntityTest extends BaseTestCase {
         assertEquals("cde", new String(out.toByteArray()));
     }
 
+    public void testGetFileZeroCopy() throws Exception {
+        File file = File.createTempFile("lime", null);
+        HttpTestUtils.writeData(file, ALPHABET);
+        CountingMonitor monitor = new CountingMonitor();
+        FileNIOEntity entity = new FileNIOEntity(file, "content-type", monitor, 2, 20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransferChannel channel = new TransferChannel(out, true);
+        IdentityEncoder encoder = new IdentityEncoder(channel, new SessionOutputBufferImpl(0, 0, params), new HttpTransportMetricsImpl());
+        readAllNIO(entity, encoder);
+        assertTrue(encoder.isCompleted());
+        assertEquals(ALPHABET.substring(2, 22), new String(out.toByteArray()));
+        assertEquals(20, monitor.uploaded);
+        // 7 bytes per call
+        assertEquals(3, channel.transfers);
+        assertEquals(0, channel.writes);
+    }
+
+    public void testZeroCopyFallsBackToReader() throws Exception {
+        File file = File.createTempFile("lime", null);
+        HttpTestUtils.writeData(file, ALPHABET);
+        CountingMonitor monitor = new CountingMonitor();
+        FileNIOEntity entity = new FileNIOEntity(file, "content-type", monitor, 2, 20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransferChannel channel = new TransferChannel(out, false);
+        IdentityEncoder encoder = new IdentityEncoder(channel, new SessionOutputBufferImpl(0, 0, params), new HttpTransportMetricsImpl());
+        readAllNIO(entity, encoder);
+        assertTrue(encoder.isCompleted());
+        assertEquals(ALPHABET.substring(2, 22), new String(out.toByteArray()));
+        assertEquals(20, monitor.uploaded);
+        assertEquals(0, channel.transfers);
+        assertGreaterThan(0, channel.writes);
+    }
+
+    public void testZeroCopyDisabled() throws Exception {
+        File file = File.createTempFile("lime", null);
+        HttpTestUtils.writeData(file, ALPHABET);
+        FileNIOEntity entity = new FileNIOEntity(file, "content-type", new FileTransferMonitorAdapter());
+        assertTrue(entity.isZeroCopy());
+        entity.setZeroCopy(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransferChannel channel = new TransferChannel(out, true);
+        IdentityEncoder encoder = new IdentityEncoder(channel, new SessionOutputBufferImpl(0, 0, params), new HttpTransportMetricsImpl());
+        readAllNIO(entity, encoder);
+        assertTrue(encoder.isCompleted());
+        assertEquals(ALPHABET, new String(out.toByteArray()));
+        assertEquals(0, channel.transfers);
+    }
+
     private void readAllNIO(FileNIOEntity entity, IdentityEncoder encoder)
             throws IOException, InterruptedException {
         MockIOControl control = new MockIOControl();
@@ -136,4 +187,52 @@ public class FileNIOEntityTest extends BaseTestCase {
         assertEquals("", new String(out.toByteArray()));
     }
     
+    private static class CountingMonitor extends FileTransferMonitorAdapter {
+        private int uploaded;
+
+        @Override
+        public void addAmountUploaded(int written) {
+            uploaded += written;
+        }
+    }
+
+    /**
+     * Takes at most 7 bytes of a file transfer at a time, or no transfers at
+     * all, like a channel with TLS in the chain.
+     */
+    private static class TransferChannel implements WritableByteChannel, FileTransferChannel {
+        private final WritableByteChannel out;
+        private final boolean canTransfer;
+        private int transfers;
+        private int writes;
+
+        public TransferChannel(ByteArrayOutputStream out, boolean canTransfer) {
+            this.out = Channels.newChannel(out);
+            this.canTransfer = canTransfer;
+        }
+
+        public boolean canTransferFile() {
+            return canTransfer;
+        }
+
+        public long transferFile(FileChannel source, long position, long count) throws IOException {
+            assertTrue(canTransfer);
+            transfers++;
+            return source.transferTo(position, Math.min(count, 7), out);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            writes++;
+            return out.write(src);
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+
+        public boolean isOpen() {
+            return out.isOpen();
+        }
+    }
+
 }
@@ -8,6 +8,7 @@ import junit.framework.Test;
 
 import org.limewire.concurrent.ManagedThread;
 import org.limewire.http.HttpTestUtils;
+import org.limewire.io.BlockCache;
 import org.limewire.nio.ByteBufferCache;
 import org.limewire.util.BaseTestCase;
 
@@ -76,6 +77,34 @@ public class FilePieceReaderTest extends BaseTestCase {
         }
     }
 
+    public void testReadThroughBlockCache() throws Exception {
+        createFile(50000);
+        BlockCache blockCache = new BlockCache(16 * 1024, 8);
+
+        long misses = 0;
+        for (int i = 0; i < 2; i++) {
+            read = 0;
+            reader = new FilePieceReader(new ByteBufferCache(), blockCache, file, 0,
+                    file.length(), listener);
+            reader.start();
+            while (read < file.length()) {
+                Piece piece = getNext();
+                assertEqualsToData(data, piece);
+                reader.release(piece);
+            }
+            reader.shutdownAndWait(5000);
+            if (i == 0) {
+                misses = blockCache.getMisses();
+                assertGreaterThanOrEquals(4L, misses);
+            }
+        }
+
+        // the second reader only hit the cache
+        assertEquals(4, blockCache.getNumBlocks());
+        assertEquals(misses, blockCache.getMisses());
+        assertGreaterThanOrEquals(50000L, blockCache.getBytesSaved());
+    }
+
     public void testRelease() throws Exception {
         int filesize = FilePieceReader.BUFFER_SIZE * 3;
         createFile(filesize);
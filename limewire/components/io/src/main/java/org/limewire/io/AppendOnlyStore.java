@@ -0,0 +1,693 @@
+package org.limewire.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A persistent map from <code>byte[]</code> keys to <code>byte[]</code>
+ * values that is stored as an append-only log of records in a memory-mapped
+ * file.
+ * <p>
+ * Opening a store scans the records once to build a compact index of key
+ * hashes to record offsets; keys and values are not copied onto the heap.
+ * Lookups compare the key in the mapped file and return the value as a slice
+ * of the mapping. Records appended after the file was mapped are read from
+ * the channel until they add up to as much as is mapped, then the file is
+ * mapped again, so the mapping at least doubles each time. Every
+ * {@link #put(byte[], byte[])} and
+ * {@link #remove(byte[])} appends a single record to the file, so saving
+ * never rewrites existing data. Once the superseded records take up more
+ * space than the live ones, {@link #compactIfNeeded()} writes the live
+ * records to a new generation of the file.
+ * <p>
+ * Each generation is stored in a file named <code>name.N</code> next to the
+ * <code>File</code> the store is created with. Old generations that could
+ * not be deleted right away (because they were still mapped) are removed the
+ * next time the store is opened. A record that was only partially written
+ * is discarded when the store is opened.
+ * <p>
+ * Stores are limited to 2GB. This class is thread-safe.
+ */
+public class AppendOnlyStore implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(AppendOnlyStore.class);
+
+    /** The magic number at the beginning of every store file: "LWAS". */
+    private static final int MAGIC = 0x4C574153;
+
+    private static final int VERSION = 1;
+
+    /** The size of the magic number and the version. */
+    private static final int HEADER_SIZE = 8;
+
+    /** Record type that maps a key to a value. */
+    private static final byte PUT = 1;
+
+    /** Record type that removes a key. */
+    private static final byte REMOVE = 2;
+
+    /**
+     * The bytes in front of the key of each record: the length of the rest
+     * of the record, the type and the length of the key.
+     */
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    /** Superseded records take up at least this much space before compacting. */
+    private static final long MIN_GARBAGE_TO_COMPACT = 64 * 1024;
+
+    /**
+     * Appended records are read from the channel instead of remapping the
+     * file until there are at least this many unmapped bytes.
+     */
+    private static final int MIN_UNMAPPED_TO_REMAP = 64 * 1024;
+
+    /** Marker for an unused index slot. Offset 0 is the file header. */
+    private static final long EMPTY = 0;
+
+    /** Marker for an index slot whose key was removed. */
+    private static final long DELETED = -1;
+
+    /**
+     * Visits the live entries of a store.
+     */
+    public static interface Visitor {
+        /**
+         * Visits an entry. The buffers are read-only views of the store.
+         *
+         * @return false if the entry should be removed from the store
+         */
+        boolean visit(ByteBuffer key, ByteBuffer value) throws IOException;
+    }
+
+    /** The directory the generations are stored in. */
+    private final File directory;
+
+    /** The name the generation number is appended to. */
+    private final String name;
+
+    /** The generation currently in use. */
+    private int generation;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    /**
+     * The mapping of the start of the file, null until a record needs to be
+     * read.
+     */
+    private MappedByteBuffer map;
+
+    /** The offset where the next record is appended. */
+    private long end;
+
+    /** The bytes used by records that were superseded or removed. */
+    private long garbage;
+
+    /** The hashes of the keys in the index. */
+    private int[] hashes;
+
+    /** The offsets of the records in the index, or EMPTY or DELETED. */
+    private long[] offsets;
+
+    /** The number of slots that are not EMPTY. */
+    private int used;
+
+    /** The number of keys in the store. */
+    private int size;
+
+    /**
+     * Opens the store for the given file, creating it if necessary.
+     *
+     * @throws IOException if the store could not be opened
+     */
+    public AppendOnlyStore(File file) throws IOException {
+        this.directory = file.getAbsoluteFile().getParentFile();
+        this.name = file.getName();
+        clearIndex(16);
+        open();
+    }
+
+    /**
+     * Opens the store for the given file. If the store can't be opened, its
+     * files are deleted and it is created again. If that fails as well, a
+     * store in a temporary file is returned, so callers can keep working
+     * without persistence.
+     *
+     * @throws IOException if not even a temporary store could be created
+     */
+    public static AppendOnlyStore openOrRecreate(File file) throws IOException {
+        try {
+            return new AppendOnlyStore(file);
+        } catch (IOException iox) {
+            LOG.warn("unable to open store " + file + ", recreating", iox);
+        }
+
+        delete(file);
+        try {
+            return new AppendOnlyStore(file);
+        } catch (IOException iox) {
+            LOG.warn("unable to recreate store " + file + ", using a temporary one", iox);
+        }
+
+        File tmp = File.createTempFile(file.getName(), "");
+        tmp.deleteOnExit();
+        new File(tmp.getParentFile(), tmp.getName() + ".0").deleteOnExit();
+        return new AppendOnlyStore(tmp);
+    }
+
+    /**
+     * Deletes all files of the store for the given file. The store must not
+     * be open.
+     */
+    public static void delete(File file) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        String name = file.getName();
+        String[] names = directory.list();
+        if (names == null)
+            return;
+        for (String next : names) {
+            if (next.startsWith(name + ".") && next.length() > name.length() + 1) {
+                String suffix = next.substring(name.length() + 1);
+                if (suffix.equals("tmp") || isNumber(suffix))
+                    new File(directory, next).delete();
+            }
+        }
+    }
+
+    /**
+     * Returns a read-only view of the value for the key, or null if the
+     * store does not contain the key.
+     */
+    public synchronized ByteBuffer get(byte[] key) throws IOException {
+        int slot = findSlot(hash(key), key);
+        if (slot == -1)
+            return null;
+        long offset = offsets[slot];
+        return slice(valueOffset(offset), valueLength(offset));
+    }
+
+    /**
+     * Returns a copy of the value for the key, or null if the store does not
+     * contain the key.
+     */
+    public byte[] getBytes(byte[] key) throws IOException {
+        ByteBuffer value = get(key);
+        if (value == null)
+            return null;
+        byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        return bytes;
+    }
+
+    /** Returns true if the store contains the key. */
+    public synchronized boolean contains(byte[] key) throws IOException {
+        return findSlot(hash(key), key) != -1;
+    }
+
+    /**
+     * Maps the key to the value, appending a record to the file unless the
+     * key is already mapped to an equal value.
+     */
+    public synchronized void put(byte[] key, byte[] value) throws IOException {
+        int hash = hash(key);
+        int slot = findSlot(hash, key);
+        if (slot != -1) {
+            long offset = offsets[slot];
+            if (valueEquals(offset, value))
+                return;
+            long position = append(PUT, key, value);
+            garbage += recordSize(offset);
+            offsets[slot] = position;
+        } else {
+            long position = append(PUT, key, value);
+            insert(hash, position);
+        }
+    }
+
+    /**
+     * Removes the key from the store.
+     *
+     * @return true if the store contained the key
+     */
+    public synchronized boolean remove(byte[] key) throws IOException {
+        int slot = findSlot(hash(key), key);
+        if (slot == -1)
+            return false;
+        long offset = offsets[slot];
+        long position = append(REMOVE, key, null);
+        garbage += recordSize(offset) + recordSize(position);
+        offsets[slot] = DELETED;
+        size--;
+        return true;
+    }
+
+    /**
+     * Visits every entry in the store, removing the entries for which the
+     * visitor returns false.
+     */
+    public synchronized void visit(Visitor visitor) throws IOException {
+        for (int slot = 0; slot < offsets.length; slot++) {
+            long offset = offsets[slot];
+            if (offset == EMPTY || offset == DELETED)
+                continue;
+            ByteBuffer key = slice(offset + RECORD_HEADER_SIZE, keyLength(offset));
+            ByteBuffer value = slice(valueOffset(offset), valueLength(offset));
+            if (!visitor.visit(key, value)) {
+                long position = append(REMOVE, copy(key), null);
+                garbage += recordSize(offset) + recordSize(position);
+                offsets[slot] = DELETED;
+                size--;
+            }
+        }
+    }
+
+    /** Returns the number of keys in the store. */
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Returns the number of bytes the store currently uses on disk. */
+    public synchronized long getFileSize() {
+        return end;
+    }
+
+    /** Returns the number of bytes used by superseded records. */
+    public synchronized long getGarbageSize() {
+        return garbage;
+    }
+
+    /** Forces all appended records to disk. */
+    public synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Compacts the store if superseded records take up more space than
+     * live records.
+     *
+     * @return true if the store was compacted
+     */
+    public synchronized boolean compactIfNeeded() throws IOException {
+        if (garbage < MIN_GARBAGE_TO_COMPACT || garbage < end - HEADER_SIZE - garbage)
+            return false;
+        compact();
+        return true;
+    }
+
+    /**
+     * Writes all live records to a new generation of the store and switches
+     * to it.
+     */
+    public synchronized void compact() throws IOException {
+        File tmp = new File(directory, name + ".tmp");
+        long[] newOffsets = new long[offsets.length];
+        long position = HEADER_SIZE;
+        RandomAccessFile tmpFile = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel tmpChannel = tmpFile.getChannel();
+            tmpChannel.truncate(0);
+            writeFully(tmpChannel, header(), 0);
+            for (int slot = 0; slot < offsets.length; slot++) {
+                long offset = offsets[slot];
+                if (offset == EMPTY || offset == DELETED) {
+                    newOffsets[slot] = offset;
+                    continue;
+                }
+                int recordSize = recordSize(offset);
+                writeFully(tmpChannel, slice(offset, recordSize), position);
+                newOffsets[slot] = position;
+                position += recordSize;
+            }
+            tmpChannel.force(true);
+        } finally {
+            IOUtils.close(tmpFile);
+        }
+
+        File next = generationFile(generation + 1);
+        if (!tmp.renameTo(next)) {
+            tmp.delete();
+            throw new IOException("unable to rename " + tmp + " to " + next);
+        }
+
+        File old = generationFile(generation);
+        closeFile();
+        generation++;
+        offsets = newOffsets;
+        garbage = 0;
+        openGeneration(next);
+        end = position;
+        // this fails if the old mapping is still in use, it will be
+        // deleted the next time the store is opened.
+        if (!old.delete())
+            LOG.debug("unable to delete old generation " + old);
+    }
+
+    /**
+     * Closes the store. Appended records are not forced to disk.
+     */
+    public synchronized void close() {
+        closeFile();
+    }
+
+    /**
+     * Opens the newest generation of the store and indexes its records.
+     */
+    private void open() throws IOException {
+        generation = -1;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String next : names) {
+                int gen = parseGeneration(next);
+                if (gen > generation)
+                    generation = gen;
+            }
+        }
+        if (generation == -1)
+            generation = 0;
+
+        // delete stale generations and unfinished compactions
+        if (names != null) {
+            for (String next : names) {
+                int gen = parseGeneration(next);
+                if ((gen != -1 && gen != generation) || next.equals(name + ".tmp"))
+                    new File(directory, next).delete();
+            }
+        }
+
+        openGeneration(generationFile(generation));
+        if (channel.size() < HEADER_SIZE || !validHeader()) {
+            if (channel.size() > 0)
+                LOG.warn("discarding invalid store " + generationFile(generation));
+            channel.truncate(0);
+            writeFully(channel, header(), 0);
+            map = null;
+            end = HEADER_SIZE;
+        } else {
+            scan();
+        }
+    }
+
+    /** Opens the file of a generation for reading and appending. */
+    private void openGeneration(File file) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        map = null;
+    }
+
+    private void closeFile() {
+        IOUtils.close(raf);
+        raf = null;
+        channel = null;
+        map = null;
+    }
+
+    private boolean validHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        return header.getInt() == MAGIC && header.getInt() == VERSION;
+    }
+
+    /**
+     * Reads every record once and builds the index. Stops at the first
+     * record that is incomplete and truncates the file there.
+     */
+    private void scan() throws IOException {
+        long fileSize = channel.size();
+        map(fileSize);
+        long position = HEADER_SIZE;
+        byte[] key = new byte[64];
+        while (position + RECORD_HEADER_SIZE <= fileSize) {
+            int length = map.getInt((int) position);
+            if (length < RECORD_HEADER_SIZE - 4 || position + 4 + length > fileSize)
+                break;
+            byte type = map.get((int) position + 4);
+            int keyLength = map.getInt((int) position + 5);
+            if ((type != PUT && type != REMOVE) || keyLength < 0
+                    || keyLength > length - (RECORD_HEADER_SIZE - 4))
+                break;
+
+            if (key.length < keyLength)
+                key = new byte[Math.max(keyLength, key.length * 2)];
+            ByteBuffer keyBuffer = map.duplicate();
+            keyBuffer.position((int) position + RECORD_HEADER_SIZE);
+            keyBuffer.get(key, 0, keyLength);
+
+            int hash = hash(key, keyLength);
+            int slot = findSlot(hash, key, keyLength);
+            if (slot != -1) {
+                garbage += recordSize(offsets[slot]);
+                if (type == REMOVE) {
+                    garbage += 4 + length;
+                    offsets[slot] = DELETED;
+                    size--;
+                } else {
+                    offsets[slot] = position;
+                }
+            } else if (type == PUT) {
+                insert(hash, position);
+            } else {
+                garbage += 4 + length;
+            }
+            position += 4 + length;
+        }
+
+        end = position;
+        if (position < fileSize) {
+            LOG.warn("truncating incomplete record at " + position + " in " + generationFile(generation));
+            map = null;
+            try {
+                channel.truncate(position);
+            } catch (IOException iox) {
+                // the file may not be truncated while it's still mapped on
+                // some platforms, so write the good records to a new one.
+                LOG.debug("unable to truncate, compacting", iox);
+                compact();
+            }
+        }
+    }
+
+    /** Appends a record and returns its offset. */
+    private long append(byte type, byte[] key, byte[] value) throws IOException {
+        int valueLength = value == null ? 0 : value.length;
+        long recordSize = (long) RECORD_HEADER_SIZE + key.length + valueLength;
+        if (end + recordSize > Integer.MAX_VALUE)
+            throw new IOException("store too large");
+        ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+        record.putInt((int) recordSize - 4);
+        record.put(type);
+        record.putInt(key.length);
+        record.put(key);
+        if (value != null)
+            record.put(value);
+        record.flip();
+        long position = end;
+        writeFully(channel, record, position);
+        end += recordSize;
+        return position;
+    }
+
+    /** Maps the file up to the given size. */
+    private void map(long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("store too large");
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Returns a read-only view of the bytes at the offset, a slice of the
+     * mapping if it covers them. Otherwise the bytes are read from the
+     * channel, unless the unmapped records take up as much space as the
+     * mapped ones, then the whole file is mapped again.
+     */
+    private ByteBuffer slice(long offset, int length) throws IOException {
+        if (map == null || map.capacity() < offset + length) {
+            long mapped = map == null ? 0 : map.capacity();
+            if (map != null && end - mapped < Math.max(MIN_UNMAPPED_TO_REMAP, mapped)) {
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                readFully(buffer, offset);
+                buffer.flip();
+                return buffer.asReadOnlyBuffer();
+            }
+            map(end);
+        }
+        ByteBuffer buffer = map.duplicate();
+        buffer.position((int) offset);
+        buffer.limit((int) offset + length);
+        return buffer.slice();
+    }
+
+    private int recordSize(long offset) throws IOException {
+        return 4 + slice(offset, 4).getInt(0);
+    }
+
+    private int keyLength(long offset) throws IOException {
+        return slice(offset + 5, 4).getInt(0);
+    }
+
+    private long valueOffset(long offset) throws IOException {
+        return offset + RECORD_HEADER_SIZE + keyLength(offset);
+    }
+
+    private int valueLength(long offset) throws IOException {
+        return recordSize(offset) - RECORD_HEADER_SIZE - keyLength(offset);
+    }
+
+    private boolean keyEquals(long offset, byte[] key, int keyLength) throws IOException {
+        if (keyLength(offset) != keyLength)
+            return false;
+        return bytesEqual(slice(offset + RECORD_HEADER_SIZE, keyLength), key);
+    }
+
+    private boolean valueEquals(long offset, byte[] value) throws IOException {
+        if (valueLength(offset) != value.length)
+            return false;
+        return bytesEqual(slice(valueOffset(offset), value.length), value);
+    }
+
+    /** Compares the remaining bytes of the buffer with the start of the array. */
+    private static boolean bytesEqual(ByteBuffer buffer, byte[] bytes) {
+        int start = buffer.position();
+        for (int i = 0; i < buffer.remaining(); i++) {
+            if (buffer.get(start + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int findSlot(int hash, byte[] key) throws IOException {
+        return findSlot(hash, key, key.length);
+    }
+
+    /**
+     * Returns the index slot of the key, or -1 if the key is not indexed.
+     */
+    private int findSlot(int hash, byte[] key, int keyLength) throws IOException {
+        int mask = offsets.length - 1;
+        for (int slot = hash & mask; offsets[slot] != EMPTY; slot = (slot + 1) & mask) {
+            long offset = offsets[slot];
+            if (offset != DELETED && hashes[slot] == hash && keyEquals(offset, key, keyLength))
+                return slot;
+        }
+        return -1;
+    }
+
+    /** Adds a key that is not indexed yet. */
+    private void insert(int hash, long offset) {
+        if ((used + 1) * 2 > offsets.length)
+            rehash();
+        int mask = offsets.length - 1;
+        int slot = hash & mask;
+        while (offsets[slot] != EMPTY && offsets[slot] != DELETED)
+            slot = (slot + 1) & mask;
+        if (offsets[slot] == EMPTY)
+            used++;
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+        size++;
+    }
+
+    /** Grows the index, or just drops removed slots if it is big enough. */
+    private void rehash() {
+        int[] oldHashes = hashes;
+        long[] oldOffsets = offsets;
+        int capacity = oldOffsets.length;
+        if ((size + 1) * 4 > capacity)
+            capacity *= 2;
+        int oldSize = size;
+        clearIndex(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (oldOffsets[i] == EMPTY || oldOffsets[i] == DELETED)
+                continue;
+            int slot = oldHashes[i] & mask;
+            while (offsets[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            hashes[slot] = oldHashes[i];
+            offsets[slot] = oldOffsets[i];
+            used++;
+        }
+        size = oldSize;
+    }
+
+    private void clearIndex(int capacity) {
+        hashes = new int[capacity];
+        offsets = new long[capacity];
+        used = 0;
+        size = 0;
+    }
+
+    private File generationFile(int gen) {
+        return new File(directory, name + "." + gen);
+    }
+
+    /** Returns the generation of the file name, or -1 if it is not a generation of this store. */
+    private int parseGeneration(String fileName) {
+        if (!fileName.startsWith(name + ".") || fileName.length() == name.length() + 1)
+            return -1;
+        String suffix = fileName.substring(name.length() + 1);
+        if (!isNumber(suffix))
+            return -1;
+        try {
+            return Integer.parseInt(suffix);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static boolean isNumber(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i)))
+                return false;
+        }
+        return s.length() > 0;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1)
+                throw new IOException("unexpected end of store");
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        return header;
+    }
+
+    private static byte[] copy(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static int hash(byte[] key) {
+        return hash(key, key.length);
+    }
+
+    private static int hash(byte[] key, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++)
+            h = 31 * h + key[i];
+        return h ^ (h >>> 16);
+    }
+}
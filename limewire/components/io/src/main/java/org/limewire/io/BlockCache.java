@@ -0,0 +1,341 @@
+package org.limewire.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of fixed size blocks of data that is read by
+ * position, like files, shared by all readers. Data that is read over and
+ * over, like a popular file that is uploaded to many hosts at once, only has
+ * to be read from disk once.
+ * <p>
+ * Blocks are identified by a key, which needs to implement
+ * <code>equals()</code> and <code>hashCode()</code>, and their position.
+ * When the cache is full the least recently used block is evicted and its
+ * buffer reused. The buffers are allocated outside the Java heap.
+ * <p>
+ * The data of a key must not change while it has blocks in the cache. Use a
+ * new key, for example one that includes the modification time of a file, or
+ * {@link #invalidate(Object)} the key.
+ * <p>
+ * This class is thread-safe. Blocks are loaded outside the lock so a slow
+ * disk doesn't hold up readers of cached blocks.
+ */
+public class BlockCache {
+
+    /**
+     * Reads the data that is cached.
+     */
+    public static interface BlockReader {
+
+        /**
+         * Reads data starting at <code>position</code> into <code>dst</code>.
+         *
+         * @return the number of bytes read; 0 or -1, if there is no data at
+         *         <code>position</code>
+         */
+        int read(long position, ByteBuffer dst) throws IOException;
+
+    }
+
+    private final int blockSize;
+
+    private final int maxBlocks;
+
+    /**
+     * The cached blocks in least recently used order, the buffers are flipped
+     * and hold the data of the block from position 0 on.
+     * <p>
+     * LOCKING: this
+     */
+    private final LinkedHashMap<BlockKey, ByteBuffer> blocks = new LinkedHashMap<BlockKey, ByteBuffer>(
+            16, 0.75f, true);
+
+    /**
+     * Buffers that are not in use.
+     * <p>
+     * LOCKING: this
+     */
+    private final List<ByteBuffer> free = new ArrayList<ByteBuffer>();
+
+    /**
+     * The number of buffers that have been allocated and not dropped by
+     * {@link #clear()}, including the ones blocks are being loaded into.
+     * <p>
+     * LOCKING: this
+     */
+    private int allocated;
+
+    /**
+     * Incremented by {@link #clear()}, so blocks that were being loaded
+     * while it ran are dropped when they are done. LOCKING: this
+     */
+    private int clears;
+
+    /** Statistics, LOCKING: this. */
+    private long hits, misses, bytesSaved, bytesRead, evictions;
+
+    /**
+     * @param blockSize the size of a block in bytes
+     * @param maxBlocks the maximum number of blocks that are cached, 0 to
+     *        disable caching
+     */
+    public BlockCache(int blockSize, int maxBlocks) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("block size must be > 0: " + blockSize);
+        }
+        if (maxBlocks < 0) {
+            throw new IllegalArgumentException("max blocks must be >= 0: " + maxBlocks);
+        }
+        this.blockSize = blockSize;
+        this.maxBlocks = maxBlocks;
+    }
+
+    /**
+     * Returns the size of a block. Blocks start at multiples of the block
+     * size.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Copies the data of <code>key</code> at <code>position</code> into
+     * <code>dst</code>, reading the block that contains it with
+     * <code>reader</code> if it is not cached. At most the rest of the block
+     * is copied.
+     *
+     * @return the number of bytes copied; -1, if there is no data at
+     *         <code>position</code>
+     */
+    public int read(Object key, long position, ByteBuffer dst, BlockReader reader)
+            throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must be >= 0: " + position);
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        long index = position / blockSize;
+        int offset = (int) (position % blockSize);
+        BlockKey blockKey = new BlockKey(key, index);
+        ByteBuffer block;
+        int clearsBefore;
+        synchronized (this) {
+            block = blocks.get(blockKey);
+            if (block != null) {
+                hits++;
+                int copied = copy(block, offset, dst);
+                if (copied > 0) {
+                    bytesSaved += copied;
+                }
+                return copied;
+            }
+            misses++;
+            block = takeBuffer();
+            clearsBefore = clears;
+        }
+
+        if (block == null) {
+            // every buffer is being loaded, read past the cache
+            int read = reader.read(position, dst);
+            return read > 0 ? read : -1;
+        }
+
+        boolean loaded = false;
+        try {
+            block.clear();
+            long start = index * blockSize;
+            while (block.hasRemaining()) {
+                if (reader.read(start + block.position(), block) <= 0) {
+                    break;
+                }
+            }
+            block.flip();
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                synchronized (this) {
+                    release(block, clearsBefore);
+                }
+            }
+        }
+
+        synchronized (this) {
+            bytesRead += block.limit();
+            if (clears != clearsBefore) {
+                // the cache was cleared meanwhile, hand out the data but
+                // don't keep the buffer
+                int copied = copy(block, offset, dst);
+                release(block, clearsBefore);
+                return copied;
+            }
+            ByteBuffer existing = blocks.get(blockKey);
+            if (existing != null) {
+                // another thread loaded the block at the same time
+                free.add(block);
+                block = existing;
+            } else {
+                blocks.put(blockKey, block);
+            }
+            return copy(block, offset, dst);
+        }
+    }
+
+    /** Removes all blocks of <code>key</code>. */
+    public synchronized void invalidate(Object key) {
+        for (Iterator<Map.Entry<BlockKey, ByteBuffer>> it = blocks.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<BlockKey, ByteBuffer> entry = it.next();
+            if (entry.getKey().key.equals(key)) {
+                free.add(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all blocks and frees their buffers. Buffers blocks are being
+     * loaded into are freed when the loading is done.
+     */
+    public synchronized void clear() {
+        allocated -= blocks.size() + free.size();
+        blocks.clear();
+        free.clear();
+        clears++;
+    }
+
+    /** Returns the number of reads that were served from the cache. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of reads that had to load a block. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns the share of reads that were served from the cache. */
+    public synchronized float getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    /**
+     * Returns the number of bytes that were served from the cache and didn't
+     * have to be read again.
+     */
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /** Returns the number of bytes that were read to load blocks. */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /** Returns the number of blocks that were evicted to make room. */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Returns the number of blocks in the cache. */
+    public synchronized int getNumBlocks() {
+        return blocks.size();
+    }
+
+    /** Returns the number of buffers that are allocated. */
+    synchronized int getNumBuffers() {
+        return allocated;
+    }
+
+    /** Returns the maximum number of bytes the cache holds. */
+    public long getMaxSize() {
+        return (long) maxBlocks * blockSize;
+    }
+
+    /**
+     * Returns a buffer for loading a block: a free one, a new one or the one
+     * of the least recently used block. Returns null if there is none.
+     */
+    private ByteBuffer takeBuffer() {
+        if (!free.isEmpty()) {
+            return free.remove(free.size() - 1);
+        }
+        if (allocated < maxBlocks) {
+            allocated++;
+            return ByteBuffer.allocateDirect(blockSize);
+        }
+        Iterator<ByteBuffer> eldest = blocks.values().iterator();
+        if (eldest.hasNext()) {
+            ByteBuffer buffer = eldest.next();
+            eldest.remove();
+            evictions++;
+            return buffer;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a buffer that was taken when {@link #clear()} had been called
+     * <code>clearsBefore</code> times, dropping it if the cache has been
+     * cleared since. Needs to be called holding the lock.
+     */
+    private void release(ByteBuffer buffer, int clearsBefore) {
+        if (clears == clearsBefore) {
+            free.add(buffer);
+        } else {
+            allocated--;
+        }
+    }
+
+    /**
+     * Copies the data of <code>block</code> from <code>offset</code> on into
+     * <code>dst</code>. Needs to be called holding the lock.
+     */
+    private int copy(ByteBuffer block, int offset, ByteBuffer dst) {
+        int limit = block.limit();
+        if (offset >= limit) {
+            return -1;
+        }
+        int length = Math.min(limit - offset, dst.remaining());
+        block.limit(offset + length);
+        block.position(offset);
+        dst.put(block);
+        block.limit(limit);
+        return length;
+    }
+
+    private static class BlockKey {
+
+        private final Object key;
+
+        private final long index;
+
+        public BlockKey(Object key, long index) {
+            this.key = key;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) obj;
+            return index == other.index && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + (int) (index ^ (index >>> 32));
+        }
+
+    }
+
+}
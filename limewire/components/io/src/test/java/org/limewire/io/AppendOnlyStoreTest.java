@@ -0,0 +1,187 @@
+package org.limewire.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.FileUtils;
+import org.limewire.util.StringUtils;
+
+public class AppendOnlyStoreTest extends BaseTestCase {
+
+    private File dir;
+    private File file;
+    private AppendOnlyStore store;
+
+    public AppendOnlyStoreTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(AppendOnlyStoreTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        File tmp = File.createTempFile("store", "test");
+        tmp.delete();
+        dir = new File(tmp.getParentFile(), tmp.getName() + ".dir");
+        dir.mkdirs();
+        file = new File(dir, "test.store");
+        store = new AppendOnlyStore(file);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.close();
+        FileUtils.deleteRecursive(dir);
+    }
+
+    public void testPutGetRemove() throws Exception {
+        assertEquals(0, store.size());
+        assertNull(store.get(bytes("a")));
+
+        store.put(bytes("a"), bytes("one"));
+        store.put(bytes("b"), bytes("two"));
+        assertEquals(2, store.size());
+        assertEquals("one", string(store.get(bytes("a"))));
+        assertEquals("two", string(store.get(bytes("b"))));
+        assertTrue(store.contains(bytes("a")));
+
+        store.put(bytes("a"), bytes("uno"));
+        assertEquals(2, store.size());
+        assertEquals("uno", string(store.get(bytes("a"))));
+
+        assertTrue(store.remove(bytes("a")));
+        assertFalse(store.remove(bytes("a")));
+        assertNull(store.get(bytes("a")));
+        assertEquals(1, store.size());
+    }
+
+    public void testEqualValueIsNotAppended() throws Exception {
+        store.put(bytes("a"), bytes("one"));
+        long size = store.getFileSize();
+        store.put(bytes("a"), bytes("one"));
+        assertEquals(size, store.getFileSize());
+        assertEquals(0, store.getGarbageSize());
+    }
+
+    public void testReopen() throws Exception {
+        for (int i = 0; i < 1000; i++)
+            store.put(bytes("key" + i), bytes("value" + i));
+        for (int i = 0; i < 1000; i += 2)
+            store.remove(bytes("key" + i));
+        store.put(bytes("key1"), bytes("changed"));
+        store.close();
+
+        store = new AppendOnlyStore(file);
+        assertEquals(500, store.size());
+        assertEquals("changed", string(store.get(bytes("key1"))));
+        for (int i = 3; i < 1000; i += 2)
+            assertEquals("value" + i, string(store.get(bytes("key" + i))));
+        for (int i = 0; i < 1000; i += 2)
+            assertNull(store.get(bytes("key" + i)));
+    }
+
+    public void testReadsWhileAppending() throws Exception {
+        // every get follows an append, the values are read from the
+        // mapping or, if they were appended after it, from the file
+        byte[] filler = new byte[500];
+        for (int i = 0; i < 2000; i++) {
+            store.put(bytes("key" + i), bytes("value" + i + new String(filler)));
+            assertEquals("value" + i + new String(filler), string(store.get(bytes("key" + i))));
+            assertEquals("value" + (i / 2) + new String(filler), string(store.get(bytes("key" + (i / 2)))));
+            assertTrue(store.contains(bytes("key0")));
+        }
+        assertEquals(2000, store.size());
+    }
+
+    public void testIncompleteRecordIsDiscarded() throws Exception {
+        store.put(bytes("a"), bytes("one"));
+        store.put(bytes("b"), bytes("two"));
+        long size = store.getFileSize();
+        store.close();
+
+        // chop off the end of the last record
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "test.store.0"), "rw");
+        raf.setLength(size - 2);
+        raf.close();
+
+        store = new AppendOnlyStore(file);
+        assertEquals(1, store.size());
+        assertEquals("one", string(store.get(bytes("a"))));
+        assertNull(store.get(bytes("b")));
+
+        store.put(bytes("c"), bytes("three"));
+        store.close();
+        store = new AppendOnlyStore(file);
+        assertEquals(2, store.size());
+        assertEquals("three", string(store.get(bytes("c"))));
+    }
+
+    public void testCompact() throws Exception {
+        byte[] big = new byte[1024];
+        for (int i = 0; i < 200; i++)
+            store.put(bytes("key"), bytes("value" + i + new String(big)));
+        store.put(bytes("other"), bytes("kept"));
+        assertGreaterThan(64 * 1024, store.getGarbageSize());
+
+        assertTrue(store.compactIfNeeded());
+        assertEquals(0, store.getGarbageSize());
+        assertEquals(2, store.size());
+        assertEquals("kept", string(store.get(bytes("other"))));
+        assertTrue(string(store.get(bytes("key"))).startsWith("value199"));
+        assertFalse(store.compactIfNeeded());
+
+        store.put(bytes("new"), bytes("after"));
+        store.close();
+
+        Set<String> names = new HashSet<String>();
+        for (String name : dir.list())
+            names.add(name);
+        assertEquals(1, names.size());
+        assertTrue(names.contains("test.store.1"));
+
+        store = new AppendOnlyStore(file);
+        assertEquals(3, store.size());
+        assertEquals("after", string(store.get(bytes("new"))));
+    }
+
+    public void testVisit() throws Exception {
+        for (int i = 0; i < 10; i++)
+            store.put(bytes("key" + i), bytes("value" + i));
+        final Set<String> visited = new HashSet<String>();
+        store.visit(new AppendOnlyStore.Visitor() {
+            public boolean visit(ByteBuffer key, ByteBuffer value) throws IOException {
+                String k = string(key);
+                assertEquals(k.replace("key", "value"), string(value));
+                visited.add(k);
+                return !k.equals("key3");
+            }
+        });
+        assertEquals(10, visited.size());
+        assertEquals(9, store.size());
+        assertNull(store.get(bytes("key3")));
+
+        store.close();
+        store = new AppendOnlyStore(file);
+        assertEquals(9, store.size());
+        assertNull(store.get(bytes("key3")));
+    }
+
+    private static byte[] bytes(String s) {
+        return StringUtils.toUTF8Bytes(s);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] b = new byte[buffer.remaining()];
+        buffer.duplicate().get(b);
+        return StringUtils.getUTF8String(b);
+    }
+}
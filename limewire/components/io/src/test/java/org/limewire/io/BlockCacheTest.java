@@ -0,0 +1,205 @@
+package org.limewire.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+public class BlockCacheTest extends BaseTestCase {
+
+    private byte[] data;
+
+    private CountingReader reader;
+
+    public BlockCacheTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(BlockCacheTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        reader = new CountingReader();
+    }
+
+    public void testReadIsServedFromCache() throws Exception {
+        BlockCache cache = new BlockCache(16, 4);
+        ByteBuffer dst = ByteBuffer.allocate(10);
+        assertEquals(10, cache.read("a", 20, dst, reader));
+        assertData(20, dst);
+        assertEquals(1, reader.reads);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(16, cache.getBytesRead());
+
+        // the rest of the block is cached
+        dst = ByteBuffer.allocate(10);
+        assertEquals(2, cache.read("a", 30, dst, reader));
+        dst.flip();
+        assertEquals(30, dst.get());
+        assertEquals(31, dst.get());
+        assertEquals(1, reader.reads);
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getBytesSaved());
+        assertEquals(0.5f, cache.getHitRatio());
+
+        // other keys have their own blocks
+        dst = ByteBuffer.allocate(10);
+        assertEquals(10, cache.read("b", 20, dst, reader));
+        assertEquals(2, reader.reads);
+        assertEquals(2, cache.getNumBlocks());
+    }
+
+    public void testLeastRecentlyUsedBlockIsEvicted() throws Exception {
+        BlockCache cache = new BlockCache(16, 2);
+        read(cache, 0);
+        read(cache, 16);
+        read(cache, 0);
+        assertEquals(2, reader.reads);
+
+        // evicts block 1, block 0 was used more recently
+        read(cache, 32);
+        assertEquals(3, reader.reads);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.getNumBlocks());
+        read(cache, 0);
+        assertEquals(3, reader.reads);
+        read(cache, 16);
+        assertEquals(4, reader.reads);
+    }
+
+    public void testEndOfData() throws Exception {
+        BlockCache cache = new BlockCache(16, 4);
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        assertEquals(4, cache.read("a", 96, dst, reader));
+        assertData(96, dst);
+        dst = ByteBuffer.allocate(16);
+        assertEquals(-1, cache.read("a", 100, dst, reader));
+        assertEquals(-1, cache.read("a", 112, dst, reader));
+        assertEquals(0, dst.position());
+    }
+
+    public void testInvalidate() throws Exception {
+        BlockCache cache = new BlockCache(16, 4);
+        read(cache, 0);
+        cache.read("b", 0, ByteBuffer.allocate(1), reader);
+        cache.invalidate("a");
+        assertEquals(1, cache.getNumBlocks());
+        read(cache, 0);
+        assertEquals(3, reader.reads);
+
+        cache.clear();
+        assertEquals(0, cache.getNumBlocks());
+        read(cache, 0);
+        assertEquals(4, reader.reads);
+    }
+
+    public void testDisabledCacheReadsThrough() throws Exception {
+        BlockCache cache = new BlockCache(16, 0);
+        // no block is loaded, so the reader decides how much is read
+        assertEquals(5, cache.read("a", 0, ByteBuffer.allocate(16), reader));
+        assertEquals(5, cache.read("a", 0, ByteBuffer.allocate(16), reader));
+        assertEquals(2, reader.reads);
+        assertEquals(0, cache.getNumBlocks());
+        assertEquals(0, cache.getMaxSize());
+    }
+
+    public void testFailedReadFreesBuffer() throws Exception {
+        BlockCache cache = new BlockCache(16, 1);
+        try {
+            cache.read("a", 0, ByteBuffer.allocate(16), new BlockCache.BlockReader() {
+                public int read(long position, ByteBuffer dst) throws IOException {
+                    throw new IOException();
+                }
+            });
+            fail("expected exception");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, cache.getNumBlocks());
+        read(cache, 0);
+        assertEquals(1, cache.getNumBlocks());
+    }
+
+    public void testClearWhileLoadingDropsBuffer() throws Exception {
+        final BlockCache cache = new BlockCache(16, 1);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch cleared = new CountDownLatch(1);
+        final AtomicInteger copied = new AtomicInteger();
+        Thread loader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    copied.set(cache.read("a", 0, ByteBuffer.allocate(16), new BlockCache.BlockReader() {
+                        public int read(long position, ByteBuffer dst) throws IOException {
+                            loading.countDown();
+                            try {
+                                cleared.await();
+                            } catch (InterruptedException ie) {
+                                throw new IOException();
+                            }
+                            return reader.read(position, dst);
+                        }
+                    }));
+                } catch (IOException iox) {
+                    copied.set(-2);
+                }
+            }
+        };
+        loader.start();
+        assertTrue(loading.await(1, TimeUnit.SECONDS));
+        cache.clear();
+        assertEquals(1, cache.getNumBuffers());
+        cleared.countDown();
+        loader.join();
+
+        // the reader got its data, but the block was not kept
+        assertEquals(16, copied.get());
+        assertEquals(0, cache.getNumBlocks());
+        assertEquals(0, cache.getNumBuffers());
+        read(cache, 0);
+        assertEquals(1, cache.getNumBlocks());
+        assertEquals(1, cache.getNumBuffers());
+    }
+
+    private void read(BlockCache cache, int position) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        assertEquals(16, cache.read("a", position, dst, reader));
+        assertData(position, dst);
+    }
+
+    private void assertData(int position, ByteBuffer dst) {
+        dst.flip();
+        while (dst.hasRemaining()) {
+            assertEquals(data[position++], dst.get());
+        }
+    }
+
+    /** Reads at most 5 bytes at a time. */
+    private class CountingReader implements BlockCache.BlockReader {
+        private int reads;
+
+        public int read(long position, ByteBuffer dst) {
+            if (position % 16 == 0) {
+                reads++;
+            }
+            if (position >= data.length) {
+                return -1;
+            }
+            int length = Math.min(5, Math.min(dst.remaining(), data.length - (int) position));
+            dst.put(data, (int) position, length);
+            return length;
+        }
+    }
+
+}
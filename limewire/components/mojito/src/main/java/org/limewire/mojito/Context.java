@@ -1157,6 +1157,15 @@ public class Context implements MojitoDHT, RouteTable.ContactPinger {
         return storeManager.store(values);
     }
     
+    /**
+     * Stores a Collection of DHTValue(s) with different valueIds
+     * using a single lookup. See {@link StoreManager#storeBatch(Collection)}
+     */
+    public DHTFuture<StoreResult> storeBatch(Collection<? extends DHTValueEntity> values) {
+        throwExceptionIfNotBootstrapped("storeBatch()");
+        return storeManager.storeBatch(values);
+    }
+    
     /**
      * Stores a Collection of DHTValue(s) at the given Node. 
      * All values must have the same valueId!
@@ -60,7 +60,7 @@ public class DHTValueEntity implements Serializable {
     /**
      * The time when this value was created (local time)
      */
-    private final long creationTime = System.currentTimeMillis();
+    private final long creationTime;
     
     /**
      * Flag for whether or not this is a local entity
@@ -104,12 +104,18 @@ public class DHTValueEntity implements Serializable {
      */
     DHTValueEntity(Contact creator, Contact sender, 
             KUID primaryKey, DHTValue value, boolean local) {
+        this(creator, sender, primaryKey, value, local, System.currentTimeMillis());
+    }
+    
+    private DHTValueEntity(Contact creator, Contact sender, 
+            KUID primaryKey, DHTValue value, boolean local, long creationTime) {
         this.creator = creator;
         this.sender = sender;
         this.primaryKey = primaryKey;
         this.secondaryKey = creator.getNodeID();
         this.value = value;
         this.local = local;
+        this.creationTime = creationTime;
         
         this.hashCode = 17*primaryKey.hashCode() + secondaryKey.hashCode();
     }
@@ -156,6 +162,14 @@ public class DHTValueEntity implements Serializable {
         return creationTime;
     }
     
+    /**
+     * Returns a copy of this entity that holds the given value. The 
+     * copy has the same creation time as this entity.
+     */
+    public DHTValueEntity changeValue(DHTValue value) {
+        return new DHTValueEntity(creator, sender, primaryKey, value, local, creationTime);
+    }
+    
     /*public void handleStoreResult(StoreResult result) {
         // DO NOTHING
     }*/
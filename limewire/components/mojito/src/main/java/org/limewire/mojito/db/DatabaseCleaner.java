@@ -19,18 +19,25 @@
 
 package org.limewire.mojito.db;
 
+import java.util.Collection;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.limewire.mojito.Context;
+import org.limewire.mojito.db.impl.DatabaseImpl;
 import org.limewire.mojito.routing.RouteTable;
 import org.limewire.mojito.settings.DatabaseSettings;
 import org.limewire.mojito.statistics.DatabaseStatisticContainer;
 
 /**
  * Removes expired values from the local database.
+ * <p>
+ * A {@link DatabaseImpl} is cleaned up one shard at a time so that a
+ * run doesn't copy and check all values at once. The runs are 
+ * scheduled more often instead, each value is still checked once
+ * per {@link DatabaseSettings#DATABASE_CLEANER_PERIOD}.
  */
 public class DatabaseCleaner implements Runnable {
     
@@ -42,6 +49,11 @@ public class DatabaseCleaner implements Runnable {
     
     private ScheduledFuture future;
     
+    /**
+     * The shard of a DatabaseImpl to clean up next
+     */
+    private int nextShard = 0;
+    
     public DatabaseCleaner(Context context) {
         this.context = context;
         
@@ -54,6 +66,9 @@ public class DatabaseCleaner implements Runnable {
     public synchronized void start() {
         if (future == null) {
             long delay = DatabaseSettings.DATABASE_CLEANER_PERIOD.getValue();
+            if (context.getDatabase() instanceof DatabaseImpl) {
+                delay = Math.max(1L, delay / DatabaseImpl.SHARD_COUNT);
+            }
             long initialDelay = delay;
             
             future = context.getDHTExecutorService()
@@ -72,26 +87,52 @@ public class DatabaseCleaner implements Runnable {
     }
     
     /**
-     * Removes all expired <code>DHTValueEntity</code> from the <code>Database</code>.
+     * Removes the expired <code>DHTValueEntity</code>s from the next shard
+     * of a <code>DatabaseImpl</code> or from the whole <code>Database</code>.
      */
     private void cleanupDatabase() {
+        Database database = context.getDatabase();
+        if (database instanceof DatabaseImpl) {
+            int shard = nextShard;
+            nextShard = (nextShard + 1) % DatabaseImpl.SHARD_COUNT;
+            removeExpired(database, ((DatabaseImpl)database).values(shard));
+        } else {
+            synchronized (database) {
+                removeExpired(database, database.values());
+            }
+        }
+    }
+    
+    /**
+     * Removes the expired <code>DHTValueEntity</code>s of the given values.
+     */
+    private void removeExpired(Database database, Collection<DHTValueEntity> values) {
         EvictorManager evictorManager = context.getEvictorManager();
         RouteTable routeTable = context.getRouteTable();
-        Database database = context.getDatabase();
-        synchronized (database) {
-            for (DHTValueEntity entity : database.values()) {
-                if (evictorManager.isExpired(routeTable, entity)) {
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace(entity + " is expired!");
-                    }
-                    
-                    database.remove(entity.getPrimaryKey(), entity.getSecondaryKey());
-                    databaseStats.EXPIRED_VALUES.incrementStat();
+        for (DHTValueEntity entity : values) {
+            if (evictorManager.isExpired(routeTable, entity)
+                    && remove(database, entity)) {
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace(entity + " is expired!");
                 }
+                
+                databaseStats.EXPIRED_VALUES.incrementStat();
             }
         }
     }
     
+    /**
+     * Removes the given <code>DHTValueEntity</code> unless it was replaced
+     * since it was read. Other <code>Database</code> implementations are
+     * locked while they're swept, nothing can replace it there.
+     */
+    private static boolean remove(Database database, DHTValueEntity entity) {
+        if (database instanceof DatabaseImpl) {
+            return ((DatabaseImpl)database).remove(entity);
+        }
+        return database.remove(entity.getPrimaryKey(), entity.getSecondaryKey()) != null;
+    }
+    
     public void run() {
         cleanupDatabase();
     }
@@ -1,8 +1,11 @@
 package org.limewire.mojito.db;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledFuture;
@@ -15,13 +18,18 @@ import org.limewire.mojito.concurrent.DHTFuture;
 import org.limewire.mojito.concurrent.DHTFutureListener;
 import org.limewire.mojito.exceptions.DHTException;
 import org.limewire.mojito.result.StoreResult;
-import org.limewire.mojito.routing.Contact;
 import org.limewire.mojito.settings.DatabaseSettings;
 import org.limewire.mojito.statistics.DatabaseStatisticContainer;
 import org.limewire.service.ErrorService;
 
 /**
  * Publishes {@link Storable} values in the DHT.
+ * <p>
+ * The values are published in the order of their primary keys. Each 
+ * lookup is used to store a batch of values with nearby keys (see 
+ * {@link Context#storeBatch(Collection)}) and up to 
+ * {@link DatabaseSettings#MAX_PARALLEL_PUBLISHES} batches are published 
+ * at the same time.
  */
 public class StorablePublisher implements Runnable {
     
@@ -70,6 +78,22 @@ public class StorablePublisher implements Runnable {
         }
     }
     
+    /**
+     * Returns the number of values that are waiting to be 
+     * published or are being published
+     */
+    public int getBacklog() {
+        return publishTask.getBacklog();
+    }
+    
+    /**
+     * Returns the time in milliseconds it took to publish all 
+     * values the last time or -1 if it never finished
+     */
+    public long getLastCycleTime() {
+        return publishTask.getLastCycleTime();
+    }
+    
     public void run() {
         
         // Do not publish values if we're not bootstrapped!
@@ -82,7 +106,14 @@ public class StorablePublisher implements Runnable {
                 }
                 
                 publishTask.start();
+                
+            } else if (LOG.isInfoEnabled()) {
+                LOG.info(context.getName() + " is still publishing, " 
+                        + publishTask.getBacklog() + " DHTValues left");
             }
+            
+            databaseStats.PUBLISH_BACKLOG.addData(publishTask.getBacklog());
+            
         } else {
             
             if (LOG.isInfoEnabled()) {
@@ -94,34 +125,93 @@ public class StorablePublisher implements Runnable {
     }
     
     /**
-     * Publishes DHTValue(s) one-by-one by going
-     * through a List of DHTValues. Every time a store finishes, it
-     * continues with the next DHTValue until all DHTValues have
-     * been republished
+     * A Storable that is waiting to be published
+     */
+    private static class PendingStorable {
+        
+        private final Storable storable;
+        
+        /**
+         * Whether or not the Storable was in a batch that couldn't
+         * store it. It's the first value of a batch the next time.
+         */
+        private final boolean retry;
+        
+        private PendingStorable(Storable storable, boolean retry) {
+            this.storable = storable;
+            this.retry = retry;
+        }
+    }
+    
+    /**
+     * Orders PendingStorables by their primary keys
+     */
+    private static final Comparator<PendingStorable> PRIMARY_KEY_COMPARATOR 
+            = new Comparator<PendingStorable>() {
+        public int compare(PendingStorable o1, PendingStorable o2) {
+            return o1.storable.getPrimaryKey().compareTo(o2.storable.getPrimaryKey());
+        }
+    };
+    
+    /**
+     * Publishes DHTValue(s) in batches by going through a queue 
+     * of DHTValues that is sorted by primary keys. Every time a 
+     * batch finishes, it continues with the next batch until all 
+     * DHTValues have been republished
      */
     private class PublishTask {
         
-        private Iterator<Storable> values = null;
+        private PriorityQueue<PendingStorable> pending = null;
+        
+        private final List<DHTFuture<StoreResult>> futures 
+            = new ArrayList<DHTFuture<StoreResult>>();
+        
+        /**
+         * The number of Storables in the active batches
+         */
+        private int publishing = 0;
+        
+        /**
+         * Incremented with each start and stop to 
+         * ignore results of previous cycles
+         */
+        private int cycle = 0;
+        
+        private long startTime = -1L;
         
-        private DHTFuture<StoreResult> future = null;
+        private long lastCycleTime = -1L;
         
         /**
          * Stops the PublishTask
          */
         public synchronized void stop() {
-            if (future != null) {
+            cycle++;
+            
+            List<DHTFuture<StoreResult>> copy 
+                = new ArrayList<DHTFuture<StoreResult>>(futures);
+            futures.clear();
+            
+            for (DHTFuture<StoreResult> future : copy) {
                 future.cancel(true);
-                future = null;
             }
             
-            values = null;
+            pending = null;
+            publishing = 0;
         }
         
         /**
          * Returns whether or not the PublishTask is done
          */
         public synchronized boolean isDone() {
-            return values == null || !values.hasNext();
+            return pending == null;
+        }
+        
+        public synchronized int getBacklog() {
+            return pending != null ? pending.size() + publishing : 0;
+        }
+        
+        public synchronized long getLastCycleTime() {
+            return lastCycleTime;
         }
         
         /**
@@ -132,84 +222,157 @@ public class StorablePublisher implements Runnable {
             
             StorableModelManager modelManager = context.getStorableModelManager();
             Collection<Storable> valuesToPublish = modelManager.getStorables();
-            if (valuesToPublish == null) {
-                valuesToPublish = Collections.emptyList();
-            }
             
+            int count = (valuesToPublish != null) ? valuesToPublish.size() : 0;
             if (LOG.isInfoEnabled()) {
                 LOG.info(context.getName() + " has " 
-                        + valuesToPublish.size() + " DHTValues to process");
+                        + count + " DHTValues to process");
+            }
+            
+            cycle++;
+            startTime = System.currentTimeMillis();
+            
+            pending = new PriorityQueue<PendingStorable>(
+                    Math.max(1, count), PRIMARY_KEY_COMPARATOR);
+            if (valuesToPublish != null) {
+                for (Storable storable : valuesToPublish) {
+                    pending.add(new PendingStorable(storable, false));
+                }
             }
             
-            values = valuesToPublish.iterator();
             next();
         }
         
         /**
-         * Publishes the next <code>DHTValue</code>.
+         * Publishes the next batches of <code>DHTValue</code>s.
          */
-        private synchronized boolean next() {
+        private synchronized void next() {
             if (isDone()) {
-                if (LOG.isInfoEnabled()) {
-                    LOG.info(context.getName() + " is done with publishing");
-                }
-                return false;
+                return;
             }
             
-            while(values.hasNext()) {
-                Storable storable = values.next();
-                if (publish(storable)) {
-                    return true;
+            for (Iterator<DHTFuture<StoreResult>> it = futures.iterator(); it.hasNext(); ) {
+                if (it.next().isDone()) {
+                    it.remove();
                 }
             }
             
-            return false;
+            int maxParallel = Math.max(1, DatabaseSettings.MAX_PARALLEL_PUBLISHES.getValue());
+            while (futures.size() < maxParallel && !pending.isEmpty()) {
+                publish();
+            }
+            
+            if (pending.isEmpty() && publishing == 0) {
+                lastCycleTime = System.currentTimeMillis() - startTime;
+                databaseStats.PUBLISH_CYCLE_TIME.addData((int)lastCycleTime);
+                
+                if (LOG.isInfoEnabled()) {
+                    LOG.info(context.getName() + " is done with publishing after " 
+                            + lastCycleTime + "ms");
+                }
+                
+                pending = null;
+            }
         }
         
         /**
-         * Publishes or expires the given <code>DHTValue</code>.
+         * Publishes the next batch of <code>DHTValue</code>s. The batch 
+         * ends before a value that has to be the first value of a batch.
          */
-        private boolean publish(Storable storable) {
+        private void publish() {
+            int maxBatchSize = Math.max(1, DatabaseSettings.MAX_STORABLES_PER_LOOKUP.getValue());
+            
+            List<PendingStorable> batch = new ArrayList<PendingStorable>();
+            batch.add(pending.poll());
+            while (batch.size() < maxBatchSize 
+                    && !pending.isEmpty() && !pending.peek().retry) {
+                batch.add(pending.poll());
+            }
             
-            // Check if value is still in DB because we're
-            // working with a copy of the Collection.
-            databaseStats.REPUBLISHED_VALUES.incrementStat();
+            List<DHTValueEntity> entities = new ArrayList<DHTValueEntity>(batch.size());
+            for (PendingStorable p : batch) {
+                entities.add(DHTValueEntity.createFromStorable(context, p.storable));
+            }
+            
+            publishing += batch.size();
+            
+            DHTFuture<StoreResult> future = context.storeBatch(entities);
+            futures.add(future);
+            future.addDHTFutureListener(new StoreResultHandler(cycle, batch, entities));
+        }
+        
+        /**
+         * Called when a batch is done. Returns false if the 
+         * batch belongs to a previous cycle.
+         */
+        private synchronized boolean done(int batchCycle, int batchSize) {
+            if (batchCycle != cycle) {
+                return false;
+            }
             
-            future = context.store(DHTValueEntity.createFromStorable(context, storable));
-            future.addDHTFutureListener(new StoreResultHandler(storable));
+            publishing -= batchSize;
             return true;
         }
+        
+        /**
+         * Puts a Storable back into the queue
+         */
+        private synchronized void retry(int batchCycle, Storable storable) {
+            if (batchCycle == cycle && pending != null) {
+                pending.add(new PendingStorable(storable, true));
+            }
+        }
     }
     
     private class StoreResultHandler implements DHTFutureListener<StoreResult> {
         
-        private final Storable storable;
+        private final int cycle;
         
-        private StoreResultHandler(Storable storable) {
-            this.storable = storable;
+        private final List<PendingStorable> batch;
+        
+        private final List<DHTValueEntity> entities;
+        
+        private StoreResultHandler(int cycle, 
+                List<PendingStorable> batch, List<DHTValueEntity> entities) {
+            this.cycle = cycle;
+            this.batch = batch;
+            this.entities = entities;
         }
         
-        public void handleFutureSuccess(final StoreResult result) {
+        public void handleFutureSuccess(StoreResult result) {
             
-            if (LOG.isInfoEnabled()) {
-                Collection<? extends Contact> locations = result.getLocations();
-                if (!locations.isEmpty()) {
-                    LOG.info(result);
-                } else {
-                    LOG.info("Failed to store " + result.getValues());
+            for (int i = 0; i < batch.size(); i++) {
+                PendingStorable p = batch.get(i);
+                final Storable storable = p.storable;
+                final StoreResult entityResult = result.getResult(entities.get(i));
+                
+                // The lookup didn't cover the k-closest Nodes 
+                // of the value. Try again in a batch of its own.
+                if (entityResult.getLocations().isEmpty() && !p.retry) {
+                    publishTask.retry(cycle, storable);
+                    continue;
                 }
-            }
-            
-            storable.handleStoreResult(result);
-            
-            context.getDHTExecutorService().execute(new Runnable() {
-                public void run() {
-                    context.getStorableModelManager().handleStoreResult(storable, result);
+                
+                if (LOG.isInfoEnabled()) {
+                    if (!entityResult.getLocations().isEmpty()) {
+                        LOG.info(entityResult);
+                    } else {
+                        LOG.info("Failed to store " + entityResult.getValues());
+                    }
                 }
-            });
+                
+                databaseStats.REPUBLISHED_VALUES.incrementStat();
+                storable.handleStoreResult(entityResult);
+                
+                context.getDHTExecutorService().execute(new Runnable() {
+                    public void run() {
+                        context.getStorableModelManager().handleStoreResult(storable, entityResult);
+                    }
+                });
+            }
             
-            if (!publishTask.next()) {
-                publishTask.stop();
+            if (publishTask.done(cycle, batch.size())) {
+                publishTask.next();
             }
         }
         
@@ -220,19 +383,23 @@ public class StorablePublisher implements Runnable {
                 ErrorService.error(e);
             }
             
-            if (!publishTask.next()) {
-                publishTask.stop();
+            if (publishTask.done(cycle, batch.size())) {
+                publishTask.next();
             }
         }
 
         public void handleCancellationException(CancellationException e) {
             LOG.debug("CancellationException", e);
-            publishTask.stop();
+            if (publishTask.done(cycle, batch.size())) {
+                publishTask.stop();
+            }
         }
         
         public void handleInterruptedException(InterruptedException e) {
             LOG.debug("InterruptedException", e);
-            publishTask.stop();
+            if (publishTask.done(cycle, batch.size())) {
+                publishTask.stop();
+            }
         }
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Mojito Distributed Hash Table (Mojito DHT)
+ * Copyright (C) 2006-2007 LimeWire LLC
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.limewire.mojito.db.impl;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.limewire.mojito.db.DHTValue;
+import org.limewire.mojito.db.DHTValueType;
+import org.limewire.mojito.routing.Version;
+
+/**
+ * A <code>DHTValue</code> whose payload is stored in a {@link ValueArena}.
+ * <p>
+ * The payload is copied back to the heap when the value is released,
+ * so a value that was removed from the Database can still be read.
+ * The value is serialized as a {@link DHTValueImpl}.
+ */
+class ArenaDHTValue implements DHTValue {
+
+    private static final long serialVersionUID = 2841393645291702374L;
+
+    private final DHTValueType valueType;
+
+    private final Version version;
+
+    private final int size;
+
+    private final int hashCode;
+
+    /** LOCKING: this */
+    private transient ValueArena arena;
+
+    /** LOCKING: this */
+    private transient long handle;
+
+    /**
+     * The payload once the value was released
+     * LOCKING: this
+     */
+    private transient byte[] value;
+
+    private ArenaDHTValue(DHTValueType valueType, Version version,
+            ValueArena arena, long handle, int size, int hashCode) {
+        this.valueType = valueType;
+        this.version = version;
+        this.arena = arena;
+        this.handle = handle;
+        this.size = size;
+        this.hashCode = hashCode;
+    }
+
+    /**
+     * Copies the payload of the given value into the arena and returns
+     * the new value or null if the arena has no room for it.
+     */
+    static ArenaDHTValue allocate(ValueArena arena, DHTValue value) {
+        byte[] payload = value.getValue();
+        long handle = arena.allocate(payload);
+        if (handle == -1L) {
+            return null;
+        }
+
+        return new ArenaDHTValue(value.getValueType(), value.getVersion(),
+                arena, handle, payload.length, Arrays.hashCode(payload));
+    }
+
+    /**
+     * Copies the payload back to the heap and frees its slot in the arena.
+     */
+    synchronized void release() {
+        if (arena != null) {
+            value = arena.read(handle, size);
+            arena.free(handle, size);
+            arena = null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.DHTValue#getValueType()
+     */
+    public DHTValueType getValueType() {
+        return valueType;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.DHTValue#getVersion()
+     */
+    public Version getVersion() {
+        return version;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.DHTValue#getValue()
+     */
+    public synchronized byte[] getValue() {
+        if (arena != null) {
+            return arena.read(handle, size);
+        }
+        return value.clone();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.DHTValue#write(java.io.OutputStream)
+     */
+    public void write(OutputStream out) throws IOException {
+        out.write(getValue());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.DHTValue#size()
+     */
+    public int size() {
+        return size;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new DHTValueImpl(valueType, version, getValue());
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof DHTValue)) {
+            return false;
+        }
+
+        DHTValue other = (DHTValue)o;
+        return valueType.equals(other.getValueType())
+                    && version.equals(other.getVersion())
+                    && Arrays.equals(getValue(), other.getValue());
+    }
+
+    @Override
+    public String toString() {
+        return new DHTValueImpl(valueType, version, getValue()).toString();
+    }
+}
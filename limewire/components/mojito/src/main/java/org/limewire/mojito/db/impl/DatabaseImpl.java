@@ -19,6 +19,8 @@
 
 package org.limewire.mojito.db.impl;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -34,9 +36,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.limewire.collection.IntHashMap;
 import org.limewire.io.NetworkUtils;
 import org.limewire.mojito.KUID;
+import org.limewire.mojito.db.DHTValue;
 import org.limewire.mojito.db.DHTValueEntity;
 import org.limewire.mojito.db.Database;
 import org.limewire.mojito.db.DatabaseSecurityConstraint;
@@ -65,6 +67,13 @@ import org.limewire.mojito.util.ContactUtils;
 /**
  * Adds, removes and stores a {@link DHTValueEntity} to a 
  * database. Values are stored in-memory. 
+ * <p>
+ * The keys are spread over {@link #SHARD_COUNT} shards with a lock each
+ * so that requests for different keys don't wait for each other, and
+ * the number of values per IP address and per Class C Network are kept
+ * in {@link StripedValueCounter}s. The payloads of remote values are
+ * stored outside of the Java heap in a {@link ValueArena} of up to
+ * {@link DatabaseSettings#MAX_VALUE_ARENA_SIZE} bytes.
  */ 
  /* TODO: For more advanced features we need some definition for
  * DHTValues (non-signed values cannot replace signed values and
@@ -72,14 +81,22 @@ import org.limewire.mojito.util.ContactUtils;
  */
 public class DatabaseImpl implements Database {
     
-    private static final long serialVersionUID = -4857315774747734947L;
+    private static final long serialVersionUID = 3462106235781432874L;
     
     private static final Log LOG = LogFactory.getLog(DatabaseImpl.class);
     
     public static final int IPV4_ADDRESS_NETMASK = 0xFFFFFFFF;
     
-    /** LOCKING: this */
-    private final Map<KUID, DHTValueEntityBag> database = new HashMap<KUID, DHTValueEntityBag>();
+    /**
+     * The number of shards, a power of two
+     */
+    public static final int SHARD_COUNT = 16;
+    
+    /** 
+     * The shards, each one maps its keys to their bags
+     * LOCKING: the shard itself 
+     */
+    private final Shard[] shards;
     
     /**
      * The DatabaseSecurityConstraint handle
@@ -88,14 +105,57 @@ public class DatabaseImpl implements Database {
         = new DefaultDatabaseSecurityConstraint();
     
     /**
-     * A Map of masked IP address to number of values
+     * The number of keys
+     */
+    private transient AtomicInteger keyCount;
+    
+    /**
+     * The number of values
+     */
+    private transient AtomicInteger valueCount;
+    
+    /**
+     * The number of values per masked IP address
+     */
+    private transient StripedValueCounter valuesPerNetwork;
+    
+    /**
+     * The number of values per IP address
+     */
+    private transient StripedValueCounter valuesPerAddress;
+    
+    /**
+     * The arena for the payloads of remote values
+     */
+    private transient ValueArena arena;
+    
+    public DatabaseImpl() {
+        shards = new Shard[SHARD_COUNT];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        init();
+    }
+    
+    /**
+     * Initializes the transient fields
      */
-    private final IntHashMap<AtomicInteger> valuesPerNetwork = new IntHashMap<AtomicInteger>();
+    private void init() {
+        keyCount = new AtomicInteger(0);
+        valueCount = new AtomicInteger(0);
+        valuesPerNetwork = new StripedValueCounter();
+        valuesPerAddress = new StripedValueCounter();
+        arena = new ValueArena(DatabaseSettings.MAX_VALUE_ARENA_SIZE.getValue());
+    }
     
     /**
-     * A Map of IP address to number of values
+     * Returns the shard of the given key
      */
-    private final IntHashMap<AtomicInteger> valuesPerAddress = new IntHashMap<AtomicInteger>();
+    private Shard getShard(KUID primaryKey) {
+        int hash = primaryKey.hashCode();
+        hash ^= (hash >>> 16);
+        return shards[hash & (SHARD_COUNT-1)];
+    }
     
     /*
      * (non-Javadoc)
@@ -115,39 +175,61 @@ public class DatabaseImpl implements Database {
      * (non-Javadoc)
      * @see com.limegroup.mojito.db.Database#getKeyCount()
      */
-    public synchronized int getKeyCount() {
-        return database.size();
+    public int getKeyCount() {
+        return keyCount.get();
     }
     
     /*
      * (non-Javadoc)
      * @see com.limegroup.mojito.db.Database#getValueCount()
      */
-    public synchronized int getValueCount() {
-        return values().size();
+    public int getValueCount() {
+        return valueCount.get();
     }
     
     /*
      * (non-Javadoc)
      * @see com.limegroup.mojito.db.Database#clear()
      */
-    public synchronized void clear() {
-        database.clear();
+    public void clear() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (DHTValueEntityBag bag : shard.values()) {
+                    for (DHTValueEntity entity : bag.getValues(false).values()) {
+                        release(entity);
+                        valueCount.decrementAndGet();
+                        decrementValuesPerAddress(entity);
+                        decrementValuesPerNetwork(entity);
+                    }
+                    keyCount.decrementAndGet();
+                }
+                shard.clear();
+            }
+        }
     }
     
     /*
      * (non-Javadoc)
      * @see org.limewire.mojito.db.Database#store(org.limewire.mojito.db.DHTValueEntity)
      */
-    public synchronized boolean store(DHTValueEntity entity) {
-        if (!allowStore(entity)) {
-            return false;
-        }
-        
-        if (entity.getValue().size() == 0) {
-            return remove(entity.getPrimaryKey(), entity.getSecondaryKey()) != null;
-        } else {
-            return add(entity);
+    public boolean store(DHTValueEntity entity) {
+        Shard shard = getShard(entity.getPrimaryKey());
+        synchronized (shard) {
+            if (!allowStore(shard, entity)) {
+                return false;
+            }
+            
+            if (entity.getValue().size() == 0) {
+                return remove(entity.getPrimaryKey(), entity.getSecondaryKey()) != null;
+            }
+            
+            // Values of other keys from the same address may be stored
+            // concurrently in other shards, so the limits are checked
+            // and the counts incremented in one step
+            if (!reserveValueCounts(entity)) {
+                return false;
+            }
+            return add(entity, true);
         }
     }
     
@@ -155,53 +237,144 @@ public class DatabaseImpl implements Database {
      * Adds the given <code>DHTValue</code> to the Database succeeded.
      * @return true if adding the <code>DHTValueEntity</code succeeded
      */
-    public synchronized boolean add(DHTValueEntity entity) {
+    public boolean add(DHTValueEntity entity) {
+        return add(entity, false);
+    }
+    
+    /**
+     * Adds the given <code>DHTValue</code> to the Database. If the
+     * value counts of its address were reserved they are kept if the 
+     * value is added and released otherwise.
+     */
+    private boolean add(DHTValueEntity entity, boolean reserved) {
         KUID primaryKey = entity.getPrimaryKey();
-        DHTValueEntityBag bag = database.get(primaryKey);
-        
-        if (bag == null) {
-            bag = new DHTValueEntityBag(this, primaryKey);
-        }
-        
-        if (bag.add(entity)) {
-            if (!database.containsKey(primaryKey)) {
-                database.put(primaryKey, bag);
+        Shard shard = getShard(primaryKey);
+        synchronized (shard) {
+            DHTValueEntityBag bag = shard.get(primaryKey);
+            
+            if (bag == null) {
+                bag = new DHTValueEntityBag(this, primaryKey);
             }
             
-            incrementValuesPerAddress(entity);
-            incrementValuesPerNetwork(entity);
+            DHTValueEntity existing = bag.get(entity.getSecondaryKey());
+            DHTValueEntity stored = toArena(entity);
+            if (bag.add(stored)) {
+                if (!shard.containsKey(primaryKey)) {
+                    shard.put(primaryKey, bag);
+                    keyCount.incrementAndGet();
+                }
+                
+                // The existing value is replaced
+                if (existing != null) {
+                    release(existing);
+                    decrementValuesPerAddress(existing);
+                    decrementValuesPerNetwork(existing);
+                } else {
+                    valueCount.incrementAndGet();
+                }
+                
+                if (!reserved) {
+                    incrementValuesPerAddress(entity);
+                    incrementValuesPerNetwork(entity);
+                }
+                
+                return true;
+            }
             
-            return true;
+            if (stored != entity) {
+                release(stored);
+            }
+            
+            if (reserved) {
+                decrementValuesPerAddress(entity);
+                decrementValuesPerNetwork(entity);
+            }
+            return false;
         }
-        return false;
     }
     
     /*
      * (non-Javadoc)
      * @see org.limewire.mojito.db.Database#remove(org.limewire.mojito.KUID, org.limewire.mojito.KUID)
      */
-    public synchronized DHTValueEntity remove(KUID primaryKey, KUID secondaryKey) {
-        
-        DHTValueEntity entity = null;
-        DHTValueEntityBag bag = database.get(primaryKey);
-        if (bag != null && (entity = bag.remove(secondaryKey)) != null) {
+    public DHTValueEntity remove(KUID primaryKey, KUID secondaryKey) {
+        return remove(primaryKey, secondaryKey, null);
+    }
+    
+    /**
+     * Removes the given entity if it's still the one that is stored
+     * under its keys. Returns false if it was replaced or removed.
+     */
+    public boolean remove(DHTValueEntity entity) {
+        return remove(entity.getPrimaryKey(), entity.getSecondaryKey(), entity) != null;
+    }
+    
+    /**
+     * Removes the entity stored under the given keys if it is 
+     * <code>expected</code> or if <code>expected</code> is null.
+     */
+    private DHTValueEntity remove(KUID primaryKey, KUID secondaryKey, 
+            DHTValueEntity expected) {
+        Shard shard = getShard(primaryKey);
+        synchronized (shard) {
+            DHTValueEntityBag bag = shard.get(primaryKey);
+            if (bag == null) {
+                return null;
+            }
+            
+            DHTValueEntity entity = bag.get(secondaryKey);
+            if (entity == null || (expected != null && entity != expected)) {
+                return null;
+            }
             
+            bag.remove(secondaryKey);
             if (bag.isEmpty()) {
-                database.remove(primaryKey);
+                shard.remove(primaryKey);
+                keyCount.decrementAndGet();
             }
             
+            valueCount.decrementAndGet();
+            release(entity);
             decrementValuesPerAddress(entity);
             decrementValuesPerNetwork(entity);
+            return entity;
+        }
+    }
+    
+    /**
+     * Returns a copy of the given entity whose payload is stored in the 
+     * arena or the entity itself if it's a local value or if it doesn't 
+     * fit into the arena.
+     */
+    private DHTValueEntity toArena(DHTValueEntity entity) {
+        DHTValue value = entity.getValue();
+        if (entity.isLocalValue() || value instanceof ArenaDHTValue) {
+            return entity;
         }
         
-        return entity;
+        ArenaDHTValue stored = ArenaDHTValue.allocate(arena, value);
+        if (stored == null) {
+            return entity;
+        }
+        return entity.changeValue(stored);
+    }
+    
+    /**
+     * Copies the payload of the given entity back to the heap if 
+     * it's stored in the arena.
+     */
+    private static void release(DHTValueEntity entity) {
+        DHTValue value = entity.getValue();
+        if (value instanceof ArenaDHTValue) {
+            ((ArenaDHTValue)value).release();
+        }
     }
     
     /**
      * Returns the number of values that are currently stored under
      * the same Class C Network.
      */
-    public synchronized int getValuesPerNetwork(DHTValueEntity entity) {
+    public int getValuesPerNetwork(DHTValueEntity entity) {
         return getValueCount(entity, valuesPerNetwork, NetworkUtils.CLASS_C_NETMASK);
     }
     
@@ -209,7 +382,7 @@ public class DatabaseImpl implements Database {
      * Returns the number of values that are currently stored under
      * the same IP Address.
      */
-    public synchronized int getValuesPerAddress(DHTValueEntity entity) {
+    public int getValuesPerAddress(DHTValueEntity entity) {
         return getValueCount(entity, valuesPerAddress, IPV4_ADDRESS_NETMASK);
     }
     
@@ -217,21 +390,11 @@ public class DatabaseImpl implements Database {
      * A helper method to get the number of values that are currently stored
      * under a certain masked IP address.
      */
-    private static int getValueCount(DHTValueEntity entity, IntHashMap<AtomicInteger> map, int netmask) {
-        if (entity.isLocalValue()) {
-            return 0;
-        }
-        
-        Contact node = entity.getCreator();
-        InetAddress addr = ((InetSocketAddress)node.getContactAddress()).getAddress();
-        if (addr instanceof Inet4Address) {
-            int masked = NetworkUtils.getMaskedIP(addr, netmask);
-            AtomicInteger count = map.get(masked);
-            if (count != null) {
-                return count.get();
-            }
+    private static int getValueCount(DHTValueEntity entity, StripedValueCounter counter, int netmask) {
+        int masked = getMaskedAddress(entity, netmask);
+        if (masked != 0) {
+            return counter.get(masked);
         }
-        
         return 0;
     }
     
@@ -255,25 +418,56 @@ public class DatabaseImpl implements Database {
      * A helper method to increment the number of values that are stored
      * under a certain masked IP address.
      */
-    private static int incrementValueCount(DHTValueEntity entity, IntHashMap<AtomicInteger> map, int netmask) {
-        if (entity.isLocalValue()) {
-            return 0;
+    private static int incrementValueCount(DHTValueEntity entity, StripedValueCounter counter, int netmask) {
+        int masked = getMaskedAddress(entity, netmask);
+        if (masked != 0) {
+            return counter.increment(masked);
+        }
+        return 0;
+    }
+    
+    /**
+     * Increments the number of values that are stored under the same
+     * IP address and Class C Network unless that would exceed the
+     * limits.
+     * 
+     * @return true if both counts were incremented
+     */
+    private boolean reserveValueCounts(DHTValueEntity entity) {
+        int maxPerAddress = Integer.MAX_VALUE;
+        if (DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.getValue()) {
+            maxPerAddress = DatabaseSettings.MAX_VALUES_PER_ADDRESS.getValue();
         }
         
-        Contact node = entity.getCreator();
-        InetAddress addr = ((InetSocketAddress)node.getContactAddress()).getAddress();
-        if (addr instanceof Inet4Address) {
-            int masked = NetworkUtils.getMaskedIP(addr, netmask);
-            
-            AtomicInteger count = map.get(masked);
-            if (count == null) {
-                count = new AtomicInteger(0);
-                map.put(masked, count);
-            }
-            
-            return count.incrementAndGet();
+        int maxPerNetwork = Integer.MAX_VALUE;
+        if (DatabaseSettings.LIMIT_VALUES_PER_NETWORK.getValue()) {
+            maxPerNetwork = DatabaseSettings.MAX_VALUES_PER_NETWORK.getValue();
         }
-        return 0;
+        
+        if (!reserveValueCount(entity, valuesPerAddress, 
+                IPV4_ADDRESS_NETMASK, maxPerAddress)) {
+            return false;
+        }
+        
+        if (!reserveValueCount(entity, valuesPerNetwork, 
+                NetworkUtils.CLASS_C_NETMASK, maxPerNetwork)) {
+            decrementValuesPerAddress(entity);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * A helper method to increment the number of values that are stored
+     * under a certain masked IP address if it's less than max.
+     */
+    private static boolean reserveValueCount(DHTValueEntity entity, 
+            StripedValueCounter counter, int netmask, int max) {
+        int masked = getMaskedAddress(entity, netmask);
+        if (masked != 0) {
+            return counter.incrementIfBelow(masked, max);
+        }
+        return true;
     }
     
     /**
@@ -296,7 +490,19 @@ public class DatabaseImpl implements Database {
      * A helper method to decrement the number of values that are stored
      * under a certain masked IP address.
      */
-    private static int decrementValueCount(DHTValueEntity entity, IntHashMap<AtomicInteger> map, int netmask) {
+    private static int decrementValueCount(DHTValueEntity entity, StripedValueCounter counter, int netmask) {
+        int masked = getMaskedAddress(entity, netmask);
+        if (masked != 0) {
+            return counter.decrement(masked);
+        }
+        return 0;
+    }
+    
+    /**
+     * Returns the masked IPv4 address of the creator of a remote value 
+     * or 0 if the value is local or if the creator has no IPv4 address.
+     */
+    private static int getMaskedAddress(DHTValueEntity entity, int netmask) {
         if (entity.isLocalValue()) {
             return 0;
         }
@@ -304,18 +510,8 @@ public class DatabaseImpl implements Database {
         Contact node = entity.getCreator();
         InetAddress addr = ((InetSocketAddress)node.getContactAddress()).getAddress();
         if (addr instanceof Inet4Address) {
-            int masked = NetworkUtils.getMaskedIP(addr, netmask);
-            
-            AtomicInteger count = map.get(masked);
-            if (count != null) {
-                int value = count.decrementAndGet();
-                if (value == 0) {
-                    map.remove(masked);
-                }
-                return value;
-            }
+            return NetworkUtils.getMaskedIP(addr, netmask);
         }
-        
         return 0;
     }
     
@@ -323,20 +519,24 @@ public class DatabaseImpl implements Database {
      * (non-Javadoc)
      * @see org.limewire.mojito.db.Database#getRequestLoad(org.limewire.mojito.KUID, boolean)
      */
-    public synchronized float getRequestLoad(KUID primaryKey, boolean incrementLoad) {
-        DHTValueEntityBag bag = database.get(primaryKey);
-        if (bag != null) {
-            return bag.getRequestLoad(incrementLoad);
+    public float getRequestLoad(KUID primaryKey, boolean incrementLoad) {
+        Shard shard = getShard(primaryKey);
+        synchronized (shard) {
+            DHTValueEntityBag bag = shard.get(primaryKey);
+            if (bag != null) {
+                return bag.getRequestLoad(incrementLoad);
+            }
+            return 0f;
         }
-        return 0f;
     }
     
     /**
      * An internal helper method that checks for possible flooding 
      * and then delegates calls to the <code>DatabaseSecurityConstraint</code> instance 
-     * if possible.
+     * if possible. The limits of values per address and network are
+     * checked by {@link #reserveValueCounts(DHTValueEntity)}.
      */
-    private boolean allowStore(DHTValueEntity entity) {
+    private boolean allowStore(Shard shard, DHTValueEntity entity) {
         if (entity.isLocalValue()) {
             return true;
         }
@@ -359,22 +559,8 @@ public class DatabaseImpl implements Database {
             }
         }
         
-        if (entity.getValue().size() != 0) {
-            int valuesPerAddress = getValuesPerAddress(entity);
-            if (DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.getValue() 
-                    && valuesPerAddress >= DatabaseSettings.MAX_VALUES_PER_ADDRESS.getValue()) {
-                return false;
-            }
-            
-            int valuesPerNetwork = getValuesPerNetwork(entity);
-            if (DatabaseSettings.LIMIT_VALUES_PER_NETWORK.getValue()
-                    && valuesPerNetwork >= DatabaseSettings.MAX_VALUES_PER_NETWORK.getValue()) {
-                return false;
-            }
-        }
-        
         // Check with the security constraint now
-        DHTValueEntityBag bag = database.get(entity.getPrimaryKey());
+        DHTValueEntityBag bag = shard.get(entity.getPrimaryKey());
         DatabaseSecurityConstraint dbsc = securityConstraint;
         if (dbsc != null && bag != null) {
             return dbsc.allowStore(this, bag.getValues(false), entity);
@@ -386,56 +572,127 @@ public class DatabaseImpl implements Database {
     /**
      * For internal use only
      */
-    public synchronized DHTValueEntityBag getBag(KUID valueId) {
-        return database.get(valueId);
+    public DHTValueEntityBag getBag(KUID valueId) {
+        Shard shard = getShard(valueId);
+        synchronized (shard) {
+            return shard.get(valueId);
+        }
     }
     
     /*
      * (non-Javadoc)
      * @see org.limewire.mojito.db.Database#get(org.limewire.mojito.KUID)
      */
-    public synchronized Map<KUID, DHTValueEntity> get(KUID valueId) {
-        DHTValueEntityBag bag = database.get(valueId);
-        if (bag != null) {
-            return bag.getValues(true);
+    public Map<KUID, DHTValueEntity> get(KUID valueId) {
+        Shard shard = getShard(valueId);
+        synchronized (shard) {
+            DHTValueEntityBag bag = shard.get(valueId);
+            if (bag != null) {
+                return bag.getValues(true);
+            }
+            return Collections.emptyMap();
         }
-        return Collections.emptyMap();
     }
     
     /*
      * (non-Javadoc)
      * @see org.limewire.mojito.db.Database#contains(org.limewire.mojito.KUID, org.limewire.mojito.KUID)
      */
-    public synchronized boolean contains(KUID primaryKey, KUID secondaryKey) {
-        DHTValueEntityBag bag = database.get(primaryKey); 
-        return (bag != null && bag.contains(secondaryKey));
+    public boolean contains(KUID primaryKey, KUID secondaryKey) {
+        Shard shard = getShard(primaryKey);
+        synchronized (shard) {
+            DHTValueEntityBag bag = shard.get(primaryKey); 
+            return (bag != null && bag.contains(secondaryKey));
+        }
     }
 
     /*
      * (non-Javadoc)
      * @see com.limegroup.mojito.db.Database#keySet()
      */
-    public synchronized Set<KUID> keySet() {
-        return new HashSet<KUID>(database.keySet());
+    public Set<KUID> keySet() {
+        Set<KUID> keys = new HashSet<KUID>(getKeyCount() * 2);
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                keys.addAll(shard.keySet());
+            }
+        }
+        return keys;
     }
 
     /*
      * (non-Javadoc)
      * @see com.limegroup.mojito.db.Database#values()
      */
-    public synchronized Collection<DHTValueEntity> values() {
-        List<DHTValueEntity> values = new ArrayList<DHTValueEntity>(getKeyCount() * 2);
-        for (DHTValueEntityBag bag : database.values()) {
-            values.addAll(bag.getValues(false).values());
+    public Collection<DHTValueEntity> values() {
+        List<DHTValueEntity> values = new ArrayList<DHTValueEntity>(getValueCount());
+        for (int i = 0; i < shards.length; i++) {
+            addValues(i, values);
         }
         return values;
     }
     
+    /**
+     * Returns the values of the given shard, the shards can be 
+     * visited one by one instead of copying all values at once.
+     * 
+     * @param index the index of the shard, 0 to {@link #SHARD_COUNT} - 1
+     */
+    public Collection<DHTValueEntity> values(int index) {
+        List<DHTValueEntity> values = new ArrayList<DHTValueEntity>();
+        addValues(index, values);
+        return values;
+    }
+    
+    private void addValues(int index, Collection<DHTValueEntity> values) {
+        Shard shard = shards[index];
+        synchronized (shard) {
+            for (DHTValueEntityBag bag : shard.values()) {
+                values.addAll(bag.getValues(false).values());
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of bytes of direct memory the payloads 
+     * of the values take.
+     */
+    public long getArenaSize() {
+        return arena.getAllocatedBytes();
+    }
+    
+    /**
+     * Moves the payloads of the deserialized values into the arena 
+     * and counts the values.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+        
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (DHTValueEntityBag bag : shard.values()) {
+                    keyCount.incrementAndGet();
+                    for (DHTValueEntity entity : bag.getValues(true).values()) {
+                        bag.add(toArena(entity));
+                        valueCount.incrementAndGet();
+                        incrementValuesPerAddress(entity);
+                        incrementValuesPerNetwork(entity);
+                    }
+                }
+            }
+        }
+    }
+    
     @Override
-    public synchronized String toString() {
+    public String toString() {
         StringBuilder buffer = new StringBuilder();
-        for (DHTValueEntityBag bag : database.values()) {
-            buffer.append(bag.toString());
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (DHTValueEntityBag bag : shard.values()) {
+                    buffer.append(bag.toString());
+                }
+            }
         }
         
         buffer.append("-------------\n");
@@ -443,4 +700,11 @@ public class DatabaseImpl implements Database {
             .append("/").append(getValueCount()).append("\n");
         return buffer.toString();
     }
+    
+    /**
+     * A part of the Database, maps keys to their bags.
+     */
+    private static class Shard extends HashMap<KUID, DHTValueEntityBag> {
+        private static final long serialVersionUID = -2207324178163402741L;
+    }
 }
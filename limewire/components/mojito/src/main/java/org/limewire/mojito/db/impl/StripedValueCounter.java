@@ -0,0 +1,128 @@
+/*
+ * Mojito Distributed Hash Table (Mojito DHT)
+ * Copyright (C) 2006-2007 LimeWire LLC
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.limewire.mojito.db.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.limewire.collection.IntHashMap;
+
+/**
+ * Counts the number of values per (masked) IP address. The addresses
+ * are spread over several maps with a lock each so that threads
+ * counting values of different addresses rarely wait for each other.
+ */
+class StripedValueCounter {
+
+    /**
+     * The number of stripes, a power of two
+     */
+    private static final int STRIPES = 16;
+
+    /** LOCKING: the stripe itself */
+    private final IntHashMap<AtomicInteger>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    StripedValueCounter() {
+        stripes = (IntHashMap<AtomicInteger>[])new IntHashMap<?>[STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new IntHashMap<AtomicInteger>();
+        }
+    }
+
+    /**
+     * Returns the stripe of the given address. The lower bits of
+     * Class C networks are all 0 so all bytes go into the index.
+     */
+    private IntHashMap<AtomicInteger> getStripe(int address) {
+        int hash = address ^ (address >>> 8) ^ (address >>> 16) ^ (address >>> 24);
+        return stripes[hash & (STRIPES-1)];
+    }
+
+    /**
+     * Returns the number of values of the given address.
+     */
+    public int get(int address) {
+        IntHashMap<AtomicInteger> stripe = getStripe(address);
+        synchronized (stripe) {
+            AtomicInteger count = stripe.get(address);
+            return count != null ? count.get() : 0;
+        }
+    }
+
+    /**
+     * Increments and returns the number of values of the given address.
+     */
+    public int increment(int address) {
+        IntHashMap<AtomicInteger> stripe = getStripe(address);
+        synchronized (stripe) {
+            AtomicInteger count = stripe.get(address);
+            if (count == null) {
+                count = new AtomicInteger(0);
+                stripe.put(address, count);
+            }
+            return count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Increments the number of values of the given address unless it
+     * already reached <tt>max</tt>. Checking and incrementing the count
+     * under the same lock reserves the slot, so concurrent stores of
+     * different keys can't exceed the limit together.
+     *
+     * @return true if the count was incremented
+     */
+    public boolean incrementIfBelow(int address, int max) {
+        IntHashMap<AtomicInteger> stripe = getStripe(address);
+        synchronized (stripe) {
+            AtomicInteger count = stripe.get(address);
+            int current = count != null ? count.get() : 0;
+            if (current >= max) {
+                return false;
+            }
+
+            if (count == null) {
+                count = new AtomicInteger(0);
+                stripe.put(address, count);
+            }
+            count.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Decrements and returns the number of values of the given address.
+     */
+    public int decrement(int address) {
+        IntHashMap<AtomicInteger> stripe = getStripe(address);
+        synchronized (stripe) {
+            AtomicInteger count = stripe.get(address);
+            if (count == null) {
+                return 0;
+            }
+
+            int value = count.decrementAndGet();
+            if (value == 0) {
+                stripe.remove(address);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Mojito Distributed Hash Table (Mojito DHT)
+ * Copyright (C) 2006-2007 LimeWire LLC
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.limewire.mojito.db.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores byte arrays outside of the Java heap.
+ * <p>
+ * The arena allocates direct <code>ByteBuffer</code> pages of
+ * {@link #PAGE_SIZE} bytes and splits each page into slots of a single
+ * size class, the powers of two from {@link #MIN_SLOT_SIZE} to
+ * {@link #MAX_SLOT_SIZE}. Freed slots are reused for arrays of the same
+ * size class. Pages are never returned to the system, the memory is only
+ * released with the arena itself.
+ * <p>
+ * A slot is identified by a handle that encodes its page and offset.
+ */
+class ValueArena {
+
+    /**
+     * The size of a page in bytes
+     */
+    static final int PAGE_SIZE = 256 * 1024;
+
+    /**
+     * The size of the smallest slots
+     */
+    static final int MIN_SLOT_SIZE = 16;
+
+    /**
+     * The size of the largest slots, larger arrays cannot be stored
+     */
+    static final int MAX_SLOT_SIZE = 4096;
+
+    private static final int SIZE_CLASSES = 9;
+
+    /**
+     * The maximum number of bytes the pages may take
+     */
+    private final long maxSize;
+
+    /**
+     * The pages, each one is also the lock for reading and writing it.
+     * The array is replaced when a page is added so that slots can be
+     * read without locking the arena.
+     * LOCKING: this for adding pages
+     */
+    private volatile ByteBuffer[] pages = new ByteBuffer[0];
+
+    /**
+     * The freed slots of each size class
+     * LOCKING: this
+     */
+    private final long[][] freeSlots = new long[SIZE_CLASSES][];
+
+    private final int[] freeCount = new int[SIZE_CLASSES];
+
+    /**
+     * The page of each size class that still has unused slots
+     * and the offset of the first unused slot
+     * LOCKING: this
+     */
+    private final int[] currentPage = new int[SIZE_CLASSES];
+
+    private final int[] currentOffset = new int[SIZE_CLASSES];
+
+    /**
+     * The number of bytes in slots that are in use
+     * LOCKING: this
+     */
+    private long usedBytes = 0L;
+
+    ValueArena(long maxSize) {
+        this.maxSize = maxSize;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            freeSlots[i] = new long[16];
+            currentPage[i] = -1;
+        }
+    }
+
+    /**
+     * Returns the size class of arrays with the given length
+     */
+    private static int getSizeClass(int length) {
+        int sizeClass = 0;
+        while ((MIN_SLOT_SIZE << sizeClass) < length) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Copies the given array into the arena and returns the handle of its
+     * slot or -1 if the array is too large or the arena is full.
+     */
+    public long allocate(byte[] data) {
+        if (data.length == 0 || data.length > MAX_SLOT_SIZE) {
+            return -1L;
+        }
+
+        int sizeClass = getSizeClass(data.length);
+        long handle = allocate(sizeClass);
+        if (handle == -1L) {
+            return -1L;
+        }
+
+        ByteBuffer page = getPage(handle);
+        synchronized (page) {
+            page.position(getOffset(handle));
+            page.put(data);
+        }
+        return handle;
+    }
+
+    private synchronized long allocate(int sizeClass) {
+        int slotSize = MIN_SLOT_SIZE << sizeClass;
+
+        long handle;
+        if (freeCount[sizeClass] > 0) {
+            handle = freeSlots[sizeClass][--freeCount[sizeClass]];
+        } else {
+            if (currentPage[sizeClass] == -1
+                    || currentOffset[sizeClass] + slotSize > PAGE_SIZE) {
+                ByteBuffer[] current = pages;
+                if ((long)(current.length + 1) * PAGE_SIZE > maxSize) {
+                    return -1L;
+                }
+
+                ByteBuffer[] copy = new ByteBuffer[current.length + 1];
+                System.arraycopy(current, 0, copy, 0, current.length);
+                copy[current.length] = ByteBuffer.allocateDirect(PAGE_SIZE);
+                pages = copy;
+
+                currentPage[sizeClass] = current.length;
+                currentOffset[sizeClass] = 0;
+            }
+
+            handle = ((long)currentPage[sizeClass] << 32) | currentOffset[sizeClass];
+            currentOffset[sizeClass] += slotSize;
+        }
+
+        usedBytes += slotSize;
+        return handle;
+    }
+
+    /**
+     * Copies <code>length</code> bytes of the given slot into a new array.
+     */
+    public byte[] read(long handle, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer page = getPage(handle);
+        synchronized (page) {
+            page.position(getOffset(handle));
+            page.get(data);
+        }
+        return data;
+    }
+
+    /**
+     * Frees the slot of an array with the given length.
+     */
+    public synchronized void free(long handle, int length) {
+        int sizeClass = getSizeClass(length);
+        long[] slots = freeSlots[sizeClass];
+        if (freeCount[sizeClass] == slots.length) {
+            long[] copy = new long[slots.length * 2];
+            System.arraycopy(slots, 0, copy, 0, slots.length);
+            freeSlots[sizeClass] = slots = copy;
+        }
+
+        slots[freeCount[sizeClass]++] = handle;
+        usedBytes -= MIN_SLOT_SIZE << sizeClass;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory the arena allocated
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long)pages.length * PAGE_SIZE;
+    }
+
+    /**
+     * Returns the number of bytes in slots that are in use
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private ByteBuffer getPage(long handle) {
+        return pages[(int)(handle >>> 32)];
+    }
+
+    private static int getOffset(long handle) {
+        return (int)(handle & 0xFFFFFFFFL);
+    }
+}
@@ -31,6 +31,7 @@ import org.limewire.mojito.Context;
 import org.limewire.mojito.KUID;
 import org.limewire.mojito.db.DHTValueEntity;
 import org.limewire.mojito.db.Database;
+import org.limewire.mojito.db.impl.DatabaseImpl;
 import org.limewire.mojito.messages.DHTMessage;
 import org.limewire.mojito.messages.PingResponse;
 import org.limewire.mojito.messages.RequestMessage;
@@ -206,25 +207,12 @@ public class DefaultMessageHandler {
         List<DHTValueEntity> valuesToForward = new ArrayList<DHTValueEntity>();
         
         Database database = context.getDatabase();
-        synchronized(database) {
-            for(KUID primaryKey : database.keySet()) {
-                
-                Operation op = getOperation(node, existing, primaryKey);
-                
-                if (op.equals(Operation.FORWARD)) {
-                    Map<KUID, DHTValueEntity> bag = database.get(primaryKey);
-                    valuesToForward.addAll(bag.values());
-                    databaseStats.STORE_FORWARD_COUNT.incrementStat();
-                    
-                } else if (op.equals(Operation.DELETE)
-                        && DatabaseSettings.DELETE_VALUE_IF_FURTHEST_NODE.getValue()) {
-                    Map<KUID, DHTValueEntity> bag = database.get(primaryKey);
-                    for (DHTValueEntity entity : bag.values()) {
-                        //System.out.println("REMOVING: " + entity + "\n");
-                        database.remove(entity.getPrimaryKey(), entity.getSecondaryKey());
-                    }
-                    databaseStats.STORE_FORWARD_REMOVALS.incrementStat();
-                }
+        if (database instanceof DatabaseImpl) {
+            // DatabaseImpl locks its shards itself
+            collectOrRemoveValues(node, existing, database, valuesToForward);
+        } else {
+            synchronized(database) {
+                collectOrRemoveValues(node, existing, database, valuesToForward);
             }
         }
         
@@ -246,6 +234,33 @@ public class DefaultMessageHandler {
         }
     }
     
+    /**
+     * Adds the values the given Node should store to valuesToForward
+     * and removes the values this Node is no longer responsible for.
+     */
+    private void collectOrRemoveValues(Contact node, Contact existing, 
+            Database database, List<DHTValueEntity> valuesToForward) {
+        for(KUID primaryKey : database.keySet()) {
+            
+            Operation op = getOperation(node, existing, primaryKey);
+            
+            if (op.equals(Operation.FORWARD)) {
+                Map<KUID, DHTValueEntity> bag = database.get(primaryKey);
+                valuesToForward.addAll(bag.values());
+                databaseStats.STORE_FORWARD_COUNT.incrementStat();
+                
+            } else if (op.equals(Operation.DELETE)
+                    && DatabaseSettings.DELETE_VALUE_IF_FURTHEST_NODE.getValue()) {
+                Map<KUID, DHTValueEntity> bag = database.get(primaryKey);
+                for (DHTValueEntity entity : bag.values()) {
+                    //System.out.println("REMOVING: " + entity + "\n");
+                    database.remove(entity.getPrimaryKey(), entity.getSecondaryKey());
+                }
+                databaseStats.STORE_FORWARD_REMOVALS.incrementStat();
+            }
+        }
+    }
+    
     /**
      * Returns whether or not the local Node is in the given List
      */
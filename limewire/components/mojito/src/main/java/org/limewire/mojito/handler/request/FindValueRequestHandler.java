@@ -65,14 +65,9 @@ public class FindValueRequestHandler extends AbstractRequestHandler {
         KUID lookupId = request.getLookupID();
         DHTValueType valueType = request.getDHTValueType();
         
-        Map<KUID, DHTValueEntity> bag = null;
-        float requestLoad = 0f;
-        
         Database database = context.getDatabase();
-        synchronized (database) {
-            bag = database.get(lookupId);
-            requestLoad = database.getRequestLoad(lookupId, true);
-        }
+        Map<KUID, DHTValueEntity> bag = database.get(lookupId);
+        float requestLoad = database.getRequestLoad(lookupId, true);
         
         // The keys and values we'll return
         Collection<KUID> availableKeys = Collections.emptySet();
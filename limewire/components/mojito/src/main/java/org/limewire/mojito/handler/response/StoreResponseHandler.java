@@ -46,6 +46,7 @@ import org.limewire.mojito.messages.StoreResponse.StoreStatusCode;
 import org.limewire.mojito.result.StoreResult;
 import org.limewire.mojito.routing.Contact;
 import org.limewire.mojito.settings.KademliaSettings;
+import org.limewire.mojito.settings.NetworkSettings;
 import org.limewire.mojito.settings.StoreSettings;
 import org.limewire.mojito.util.CollectionUtils;
 import org.limewire.security.SecurityToken;
@@ -58,6 +59,16 @@ public class StoreResponseHandler extends AbstractResponseHandler<StoreResult> {
     
     private static final Log LOG = LogFactory.getLog(StoreResponseHandler.class);
     
+    /**
+     * The estimated number of bytes of a store request without values
+     */
+    private static final int REQUEST_OVERHEAD = 128;
+    
+    /**
+     * The estimated number of bytes of a value without its payload
+     */
+    private static final int ENTITY_OVERHEAD = 80;
+    
     private final Collection<? extends DHTValueEntity> entities;
     
     /**
@@ -80,6 +91,14 @@ public class StoreResponseHandler extends AbstractResponseHandler<StoreResult> {
      */
     private final int parallelism = StoreSettings.PARALLEL_STORES.getValue();
     
+    /**
+     * The maximum number of values per store request
+     */
+    private final int maxValuesPerRequest = StoreSettings.MAX_VALUES_PER_REQUEST.getValue();
+    
+    /**
+     * Stores all values at every Node of the path
+     */
     public StoreResponseHandler(Context context, 
             Collection<? extends Entry<? extends Contact, ? extends SecurityToken>> path, 
                     Collection<? extends DHTValueEntity> entities) {
@@ -95,14 +114,38 @@ public class StoreResponseHandler extends AbstractResponseHandler<StoreResult> {
         }
         
         for (Entry<? extends Contact, ? extends SecurityToken> entry : path) {
-            Contact node = entry.getKey();
-            SecurityToken securityToken = entry.getValue();
-            
-            if (context.isLocalNode(node)) {
-                processes.add(new LocalStoreProcess(node, securityToken, entities));
-            } else {
-                processes.add(new RemoteStoreProcess(node, securityToken, entities));
-            }
+            addStoreProcess(entry, entities);
+        }
+    }
+    
+    /**
+     * Stores the values of each Node in the given Map at that Node.
+     * The entities are all values the plan was made for and are
+     * returned with the StoreResult.
+     */
+    public StoreResponseHandler(Context context, 
+            Map<? extends Entry<? extends Contact, ? extends SecurityToken>, 
+                    ? extends Collection<? extends DHTValueEntity>> plan, 
+                    Collection<? extends DHTValueEntity> entities) {
+        super(context);
+        
+        this.entities = entities;
+        
+        for (Entry<? extends Entry<? extends Contact, ? extends SecurityToken>, 
+                ? extends Collection<? extends DHTValueEntity>> entry : plan.entrySet()) {
+            addStoreProcess(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    private void addStoreProcess(Entry<? extends Contact, ? extends SecurityToken> entry, 
+            Collection<? extends DHTValueEntity> entities) {
+        Contact node = entry.getKey();
+        SecurityToken securityToken = entry.getValue();
+        
+        if (context.isLocalNode(node)) {
+            processes.add(new LocalStoreProcess(node, securityToken, entities));
+        } else {
+            processes.add(new RemoteStoreProcess(node, securityToken, entities));
         }
     }
     
@@ -419,31 +462,72 @@ public class StoreResponseHandler extends AbstractResponseHandler<StoreResult> {
     }
     
     /**
-     * Stores values at a remote Node
+     * Stores values at a remote Node. The values are sent in batches
+     * of up to {@link StoreSettings#MAX_VALUES_PER_REQUEST} values
+     * that fit into a single message.
      */
     private class RemoteStoreProcess extends StoreProcess {
         
-        private DHTValueEntity currentEntity = null;
+        /**
+         * The values of the current request. The request keeps a
+         * reference to the List so a new one is created for each request.
+         */
+        private List<DHTValueEntity> currentEntities = Collections.emptyList();
+        
+        /**
+         * A value that didn't fit into the previous batch
+         */
+        private DHTValueEntity nextEntity = null;
         
         private RemoteStoreProcess(Contact node, SecurityToken securityToken, 
                 Collection<? extends DHTValueEntity> entities) {
             super(node, securityToken, entities);
         }
 
+        @Override
+        public boolean hasNext() {
+            return nextEntity != null || super.hasNext();
+        }
+        
+        @Override
+        public DHTValueEntity next() {
+            if (nextEntity != null) {
+                DHTValueEntity entity = nextEntity;
+                nextEntity = null;
+                return entity;
+            }
+            return super.next();
+        }
+        
         @Override
         public boolean store() throws IOException {
-            currentEntity = null;
+            currentEntities = Collections.emptyList();
             
             // Nothing left? We're done!
             if (!hasNext()) {
                 return true;
             }
             
-            // Get the next value and try to store it
-            currentEntity = next();
+            // Get the next values and try to store them. The first
+            // value is sent even if it's larger than the message size
+            currentEntities = new ArrayList<DHTValueEntity>();
+            int size = REQUEST_OVERHEAD;
+            while (hasNext() && currentEntities.size() < maxValuesPerRequest) {
+                DHTValueEntity entity = next();
+                size += ENTITY_OVERHEAD + entity.getValue().size();
+                
+                if (!currentEntities.isEmpty() 
+                        && size > NetworkSettings.MAX_MESSAGE_SIZE.getValue()) {
+                    nextEntity = entity;
+                    break;
+                }
+                
+                currentEntities.add(entity);
+            }
+            
             StoreRequest request = context.getMessageHelper()
                 .createStoreRequest(getContact().getContactAddress(), 
-                        getSecurityToken(), Collections.singleton(currentEntity));
+                        getSecurityToken(), currentEntities);
             
             context.getMessageDispatcher().send(getContact(), 
                     request, StoreResponseHandler.this);
@@ -456,10 +540,10 @@ public class StoreResponseHandler extends AbstractResponseHandler<StoreResult> {
             StoreResponse response = (StoreResponse)msg;
             Collection<StoreStatusCode> codes = response.getStoreStatusCodes();
             
-            // We store one value per request! If the remote Node
-            // sends us a different number of StoreStatusCodes back
-            // then there is something wrong!
-            if (codes.size() != 1) {
+            // The remote Node must send us one StoreStatusCode for 
+            // each value of the request. If it sends us a different 
+            // number of StoreStatusCodes back then there is something wrong!
+            if (codes.size() != currentEntities.size()) {
                 if (LOG.isErrorEnabled()) {
                     LOG.error(getContact() + " sent a wrong number of StoreStatusCodes: " + codes);
                 }
@@ -469,32 +553,49 @@ public class StoreResponseHandler extends AbstractResponseHandler<StoreResult> {
                 return true;
             }
             
-            // The returned StoreStatusCode must have the same primary and
-            // secondaryKeys as the value we requested to store.
-            StoreStatusCode code = codes.iterator().next();
-            if (!code.isFor(currentEntity)) {
-                if (LOG.isErrorEnabled()) {
-                    LOG.error(getContact() + " sent a wrong [" + code + "] for " + currentEntity
-                            + "\n" + CollectionUtils.toString(getEntities()));
+            // The returned StoreStatusCodes must have the same primary and
+            // secondaryKeys as the values we requested to store.
+            List<DHTValueEntity> remaining = new ArrayList<DHTValueEntity>(currentEntities);
+            for (StoreStatusCode code : codes) {
+                DHTValueEntity entity = null;
+                for (Iterator<DHTValueEntity> it = remaining.iterator(); it.hasNext(); ) {
+                    DHTValueEntity e = it.next();
+                    if (code.isFor(e)) {
+                        entity = e;
+                        it.remove();
+                        break;
+                    }
                 }
                 
-                // Exit
-                finish();
-                return true;
+                if (entity == null) {
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error(getContact() + " sent a wrong [" + code + "] for " 
+                                + CollectionUtils.toString(currentEntities)
+                                + "\n" + CollectionUtils.toString(getEntities()));
+                    }
+                    
+                    // Exit
+                    finish();
+                    return true;
+                }
+            }
+            
+            for (StoreStatusCode code : codes) {
+                addStoreStatusCode(code);
             }
             
-            // Store next value
+            // Store next values
             return store();
         }
 
         @Override
         public boolean error(RequestMessage msg, IOException err) {
             if (LOG.isErrorEnabled()) {
-                LOG.error("Couldn't store " + currentEntity + " at " + getContact(), err);
+                LOG.error("Couldn't store " + currentEntities + " at " + getContact(), err);
             }
             
             setIOException(err);
-            addStoreStatusCode(new StoreStatusCode(currentEntity, StoreResponse.ERROR));
+            addErrorCodes();
             
             try {
                 return store();
@@ -512,21 +613,28 @@ public class StoreResponseHandler extends AbstractResponseHandler<StoreResult> {
         @Override
         public boolean timeout(RequestMessage msg, long timeout) throws IOException {
             if (LOG.isInfoEnabled()) {
-                LOG.info("Couldn't store " + currentEntity + " at " + getContact());
+                LOG.info("Couldn't store " + currentEntities + " at " + getContact());
             }
             
             setTimeout(timeout);
-            addStoreStatusCode(new StoreStatusCode(currentEntity, StoreResponse.ERROR));
+            addErrorCodes();
             return store();
         }
 
         @Override
         public void finish() {
-            if (currentEntity != null) {
-                addStoreStatusCode(new StoreStatusCode(currentEntity, StoreResponse.ERROR));
-                currentEntity = null;
-            }
+            addErrorCodes();
             super.finish();
         }
+        
+        /**
+         * Adds an ERROR StoreStatusCode for each value of the current batch
+         */
+        private void addErrorCodes() {
+            for (DHTValueEntity entity : currentEntities) {
+                addStoreStatusCode(new StoreStatusCode(entity, StoreResponse.ERROR));
+            }
+            currentEntities = Collections.emptyList();
+        }
     }
 }
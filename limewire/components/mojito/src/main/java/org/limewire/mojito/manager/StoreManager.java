@@ -53,6 +53,21 @@ public class StoreManager extends AbstractManager<StoreResult> {
         return future;
     }
     
+    /**
+     * Stores a collection of <code>DHTValueEntity</code>s with different 
+     * valueIds on the DHT. A single lookup is done for the valueId of the 
+     * first <code>DHTValueEntity</code>. The other ones are only stored if 
+     * their k-closest Nodes are known from that lookup, the 
+     * <code>StoreResult</code> has no locations for the rest.
+     */
+    public DHTFuture<StoreResult> storeBatch(Collection<? extends DHTValueEntity> values) {
+        StoreProcess task = new StoreProcess(context, null, values, true);
+        StoreFuture future = new StoreFuture(task);
+        
+        context.getDHTExecutorService().execute(future);
+        return future;
+    }
+    
     /**
      * Stores a collection of <code>DHTValueEntity</code> at the given 
      * <code>Contact</code>.
@@ -20,11 +20,16 @@
 package org.limewire.mojito.manager;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
 
@@ -52,6 +57,7 @@ import org.limewire.mojito.result.LookupResult;
 import org.limewire.mojito.result.Result;
 import org.limewire.mojito.result.StoreResult;
 import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.settings.KademliaSettings;
 import org.limewire.mojito.settings.LookupSettings;
 import org.limewire.mojito.settings.StoreSettings;
 import org.limewire.mojito.util.ContactUtils;
@@ -80,6 +86,12 @@ import org.limewire.security.SecurityToken;
  * </pre>   
  * Regarding values and the first case, it's possible to store multiple
  * values in a batch but all values must have the same primary key.
+ * <p>
+ * A batch StoreProcess stores values with different primary keys. It
+ * looks up the 2*k closest Nodes to the primary key of the first value
+ * and stores every other value at its k-closest Nodes if they are
+ * known from that lookup (see {@link #selectNodes(KUID, KUID, List, int, boolean)}).
+ * Values whose k-closest Nodes are not known are not stored.
  */
 class StoreProcess implements DHTTask<StoreResult> {
     
@@ -101,16 +113,31 @@ class StoreProcess implements DHTTask<StoreResult> {
     
     private final long waitOnLock;
     
+    /**
+     * Whether or not the values may have different primary keys
+     */
+    private final boolean batch;
+    
     public StoreProcess(Context context, Collection<? extends DHTValueEntity> entities) {
         this(context, null, entities);
     }
     
     public StoreProcess(Context context, Entry<? extends Contact, ? extends SecurityToken> node,
             Collection<? extends DHTValueEntity> entities) {
+        this(context, node, entities, false);
+    }
+    
+    StoreProcess(Context context, Entry<? extends Contact, ? extends SecurityToken> node,
+            Collection<? extends DHTValueEntity> entities, boolean batch) {
         
         this.context = context;
         this.entities = entities;
         this.node = node;
+        this.batch = batch;
+        
+        if (batch && node != null) {
+            throw new IllegalArgumentException("Batch stores require a lookup");
+        }
         
         if (node != null && node.getKey() == null) {
             throw new IllegalArgumentException("Contact is null");
@@ -123,7 +150,9 @@ class StoreProcess implements DHTTask<StoreResult> {
         // If Node is null it means we've to search for the
         // k-closest Nodes first which only works if all
         // DHTValueEntities have the same primary key!
-        if (node == null) {
+        if (batch) {
+            this.primaryKey = entities.iterator().next().getPrimaryKey();
+        } else if (node == null) {
             this.primaryKey = EntityUtils.getPrimaryKey(entities);
             if (primaryKey == null) {
                 throw new IllegalArgumentException("All DHTValues must have the same primary key");
@@ -186,6 +215,11 @@ class StoreProcess implements DHTTask<StoreResult> {
         // going to store the value
         LookupResponseHandler<LookupResult> handler = createLookupResponseHandler();
         
+        // Look for more Nodes so that they cover the keys of other values
+        if (batch) {
+            handler.setResultSetSize(2 * KademliaSettings.REPLICATION_PARAMETER.getValue());
+        }
+        
         // Use only alive Contacts from the RouteTable
         handler.setSelectAliveNodesOnly(true);
         
@@ -193,7 +227,11 @@ class StoreProcess implements DHTTask<StoreResult> {
     }
     
     private void handleNearestNodes(LookupResult value) {
-        doStoreOnPath(value.getEntryPath());
+        if (batch) {
+            doStoreOnPlan(value.getEntryPath());
+        } else {
+            doStoreOnPath(value.getEntryPath());
+        }
     }
     
     private void doGetSecurityToken() {
@@ -238,6 +276,124 @@ class StoreProcess implements DHTTask<StoreResult> {
         start(handler, exchanger);
     }
     
+    private void doStoreOnPlan(Collection<? extends Entry<? extends Contact, ? extends SecurityToken>> path) {
+        int k = KademliaSettings.REPLICATION_PARAMETER.getValue();
+        
+        List<Entry<? extends Contact, ? extends SecurityToken>> nodes 
+            = new ArrayList<Entry<? extends Contact, ? extends SecurityToken>>(path);
+        
+        // The lookup didn't find as many Nodes as it was looking 
+        // for which means there are no other Nodes
+        boolean complete = nodes.size() < 2 * k;
+        
+        Map<KUID, List<DHTValueEntity>> valuesPerNode 
+            = new HashMap<KUID, List<DHTValueEntity>>();
+        Map<KUID, List<Entry<? extends Contact, ? extends SecurityToken>>> nodesPerKey 
+            = new HashMap<KUID, List<Entry<? extends Contact, ? extends SecurityToken>>>();
+        
+        for (DHTValueEntity entity : entities) {
+            KUID key = entity.getPrimaryKey();
+            
+            List<Entry<? extends Contact, ? extends SecurityToken>> closest = null;
+            if (nodesPerKey.containsKey(key)) {
+                closest = nodesPerKey.get(key);
+            } else {
+                closest = selectNodes(primaryKey, key, nodes, k, complete);
+                nodesPerKey.put(key, closest);
+            }
+            
+            if (closest == null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("The lookup for " + primaryKey 
+                            + " doesn't cover the k-closest Nodes of " + key);
+                }
+                continue;
+            }
+            
+            for (Entry<? extends Contact, ? extends SecurityToken> entry : closest) {
+                KUID nodeId = entry.getKey().getNodeID();
+                List<DHTValueEntity> values = valuesPerNode.get(nodeId);
+                if (values == null) {
+                    values = new ArrayList<DHTValueEntity>();
+                    valuesPerNode.put(nodeId, values);
+                }
+                values.add(entity);
+            }
+        }
+        
+        // Keep the order of the path
+        Map<Entry<? extends Contact, ? extends SecurityToken>, List<DHTValueEntity>> plan 
+            = new LinkedHashMap<Entry<? extends Contact, ? extends SecurityToken>, List<DHTValueEntity>>();
+        for (Entry<? extends Contact, ? extends SecurityToken> entry : nodes) {
+            List<DHTValueEntity> values = valuesPerNode.get(entry.getKey().getNodeID());
+            if (values != null) {
+                plan.put(entry, values);
+            }
+        }
+        
+        StoreResponseHandler handler 
+            = new StoreResponseHandler(context, plan, entities);
+        start(handler, exchanger);
+    }
+    
+    /**
+     * Returns the k-closest Nodes to the given key from the Nodes a lookup
+     * for the lookup key found or null if they cannot be determined.
+     * <p>
+     * Every Node that is not on the path is further away from the lookup key 
+     * than the furthest Node on the path. The XOR distances of a Node to the
+     * key and to the lookup key differ only in the lowest n bits, where n is 
+     * the bit length of the distance between both keys. A Node on the path 
+     * whose distance to the lookup key is smaller than the furthest distance
+     * if the lowest n bits are ignored is therefore closer to the key than 
+     * any Node that is not on the path. If there are at least k of them
+     * then the k-closest Nodes to the key are all on the path.
+     * 
+     * @param complete whether or not the path contains all Nodes
+     */
+    static <T extends Entry<? extends Contact, ?>> List<T> selectNodes(
+            KUID lookupKey, final KUID key, List<T> path, int k, boolean complete) {
+        
+        if (!complete && !key.equals(lookupKey)) {
+            int shift = lookupKey.xor(key).toBigInteger().bitLength();
+            
+            BigInteger furthest = BigInteger.ZERO;
+            for (T entry : path) {
+                BigInteger distance = entry.getKey().getNodeID().xor(lookupKey).toBigInteger();
+                if (distance.compareTo(furthest) > 0) {
+                    furthest = distance;
+                }
+            }
+            
+            BigInteger bound = furthest.shiftRight(shift);
+            int count = 0;
+            for (T entry : path) {
+                BigInteger distance = entry.getKey().getNodeID().xor(lookupKey).toBigInteger();
+                if (distance.shiftRight(shift).compareTo(bound) < 0) {
+                    count++;
+                }
+            }
+            
+            if (count < k) {
+                return null;
+            }
+        }
+        
+        List<T> closest = new ArrayList<T>(path);
+        Collections.sort(closest, new Comparator<T>() {
+            public int compare(T o1, T o2) {
+                KUID d1 = o1.getKey().getNodeID().xor(key);
+                KUID d2 = o2.getKey().getNodeID().xor(key);
+                return d1.compareTo(d2);
+            }
+        });
+        
+        if (closest.size() > k) {
+            closest = new ArrayList<T>(closest.subList(0, k));
+        }
+        return closest;
+    }
+    
     private <T> void start(DHTTask<T> task, OnewayExchanger<T, ExecutionException> c) {
         boolean doStart = false;
         synchronized (tasks) {
@@ -272,7 +428,10 @@ class StoreProcess implements DHTTask<StoreResult> {
     @SuppressWarnings("unchecked")
     private LookupResponseHandler<LookupResult> createLookupResponseHandler() {
         LookupResponseHandler<? extends LookupResult> handler = null;
-        if (LookupSettings.FIND_NODE_FOR_SECURITY_TOKEN.getValue()) {
+        
+        // A FIND_VALUE lookup may stop before it found all Nodes which
+        // makes it useless for the values of a batch store
+        if (batch || LookupSettings.FIND_NODE_FOR_SECURITY_TOKEN.getValue()) {
             handler = new FindNodeResponseHandler(context, primaryKey);
         } else {
             EntityKey lookupKey = EntityKey.createEntityKey(primaryKey, DHTValueType.ANY);
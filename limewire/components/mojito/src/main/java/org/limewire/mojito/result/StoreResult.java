@@ -19,7 +19,10 @@
 
 package org.limewire.mojito.result;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.limewire.mojito.db.DHTValueEntity;
@@ -59,6 +62,30 @@ public class StoreResult implements Result {
         return values;
     }
     
+    /**
+     * Returns a StoreResult for the given DHTValueEntity whose
+     * locations are the Nodes where we tried to store it
+     */
+    public StoreResult getResult(DHTValueEntity entity) {
+        Map<Contact, Collection<StoreStatusCode>> entityLocations 
+            = new LinkedHashMap<Contact, Collection<StoreStatusCode>>();
+        
+        for (Map.Entry<Contact, Collection<StoreStatusCode>> entry : locations.entrySet()) {
+            Collection<StoreStatusCode> codes = new ArrayList<StoreStatusCode>(1);
+            for (StoreStatusCode code : entry.getValue()) {
+                if (code.isFor(entity)) {
+                    codes.add(code);
+                }
+            }
+            
+            if (!codes.isEmpty()) {
+                entityLocations.put(entry.getKey(), codes);
+            }
+        }
+        
+        return new StoreResult(entityLocations, Collections.singleton(entity));
+    }
+    
     @Override
     public String toString() {
         StringBuilder buffer = new StringBuilder();
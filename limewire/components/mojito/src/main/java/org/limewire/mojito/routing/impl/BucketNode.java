@@ -26,6 +26,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -43,7 +44,12 @@ import org.limewire.mojito.util.FixedSizeHashMap;
 
 
 /**
- * An implementation of Bucket
+ * An implementation of Bucket.
+ * <p>
+ * The Bucket is modified while holding the RouteTable's lock. After
+ * each modification it publishes an immutable copy of its active and
+ * cached Contacts that all read methods use, so the Bucket can be
+ * read without holding any lock.
  */
 class BucketNode implements Bucket {
     
@@ -61,7 +67,12 @@ class BucketNode implements Bucket {
     
     private transient ClassfulNetworkCounter counter;
     
-    private long timeStamp = 0L;
+    /**
+     * The Contacts as of the last modification
+     */
+    private transient volatile Snapshot snapshot;
+    
+    private volatile long timeStamp = 0L;
     
     public BucketNode(RouteTable routeTable, KUID bucketId, int depth) {
         this.routeTable = routeTable;
@@ -75,6 +86,32 @@ class BucketNode implements Bucket {
     private void init() {
         cache = Collections.emptyMap();
         counter = new ClassfulNetworkCounter(this);
+        snapshot = new Snapshot(copyActiveContacts(), Collections.<KUID, Contact>emptyMap());
+    }
+    
+    /**
+     * Publishes a copy of the active Contacts
+     */
+    private void publishActiveContacts() {
+        snapshot = new Snapshot(copyActiveContacts(), snapshot.cache);
+    }
+    
+    /**
+     * Publishes a copy of the cached Contacts
+     */
+    private void publishCachedContacts() {
+        Map<KUID, Contact> copy = Collections.emptyMap();
+        if (!cache.isEmpty()) {
+            // Keeps the LRS order of the cache
+            copy = Collections.unmodifiableMap(new LinkedHashMap<KUID, Contact>(cache));
+        }
+        snapshot = new Snapshot(snapshot.nodeTrie, copy);
+    }
+    
+    private PatriciaTrie<KUID, Contact> copyActiveContacts() {
+        PatriciaTrie<KUID, Contact> copy = new PatriciaTrie<KUID, Contact>(KUID.KEY_ANALYZER);
+        copy.putAll(nodeTrie);
+        return copy;
     }
     
     void postInit() {
@@ -117,6 +154,7 @@ class BucketNode implements Bucket {
         
         Contact existing = nodeTrie.put(node.getNodeID(), node);
         assert (existing == null);
+        publishActiveContacts();
         
         if(node.isAlive()) {
             touch();
@@ -135,12 +173,14 @@ class BucketNode implements Bucket {
         if (!isCacheFull()) {
             Contact existing = cache.put(node.getNodeID(), node);
             assert (existing == null);
+            publishCachedContacts();
         } else {
             Contact lrs = getLeastRecentlySeenCachedContact();
             if (!lrs.isAlive() || (!lrs.hasBeenRecentlyAlive() && node.isAlive())) {
                 Contact c = cache.remove(lrs.getNodeID());
                 assert (c == lrs);
                 cache.put(node.getNodeID(), node);
+                publishCachedContacts();
                 return c;
             }
         }
@@ -155,6 +195,7 @@ class BucketNode implements Bucket {
         if (containsActiveContact(nodeId)) {
             Contact current = nodeTrie.put(nodeId, node);
             assert (current != null);
+            publishActiveContacts();
 
             // Remove the old Network
             counter.decrementAndGet(current);
@@ -163,7 +204,9 @@ class BucketNode implements Bucket {
             counter.incrementAndGet(node);
             return current;
         } else if (containsCachedContact(nodeId)) {
-            return cache.put(nodeId, node);
+            Contact current = cache.put(nodeId, node);
+            publishCachedContacts();
+            return current;
         }
         
         throw new IllegalStateException(node + " is not in this Bucket " + toString());
@@ -193,19 +236,19 @@ class BucketNode implements Bucket {
     }
     
     public Contact getActiveContact(KUID nodeId) {
-        return nodeTrie.get(nodeId);
+        return snapshot.nodeTrie.get(nodeId);
     }
     
     public Contact getCachedContact(KUID nodeId) {
-        return cache.get(nodeId);
+        return snapshot.cache.get(nodeId);
     }
     
     public Contact select(KUID nodeId) {
-        return nodeTrie.select(nodeId);
+        return snapshot.nodeTrie.select(nodeId);
     }
     
     public Collection<Contact> select(KUID nodeId, int count) {
-        return TrieUtils.select(nodeTrie, nodeId, count);
+        return TrieUtils.select(snapshot.nodeTrie, nodeId, count);
     }
     
     public boolean remove(KUID nodeId) {
@@ -219,6 +262,8 @@ class BucketNode implements Bucket {
     public boolean removeActiveContact(KUID nodeId) {
         Contact node = nodeTrie.remove(nodeId);
         if (node != null) {
+            publishActiveContacts();
+            
             int old = counter.get(node);
             int now = counter.decrementAndGet(node);
             assert (now < old) : now + " < " + old + ", " + nodeId + ", " + node + this;
@@ -232,6 +277,7 @@ class BucketNode implements Bucket {
             if (cache.isEmpty()) {
                 cache = Collections.emptyMap();
             }
+            publishCachedContacts();
             return true;
         } else {
             return false;
@@ -247,15 +293,15 @@ class BucketNode implements Bucket {
     }
     
     public boolean containsActiveContact(KUID nodeId) {
-        return nodeTrie.containsKey(nodeId);
+        return snapshot.nodeTrie.containsKey(nodeId);
     }
     
     public boolean containsCachedContact(KUID nodeId) {
-        return cache.containsKey(nodeId);
+        return snapshot.cache.containsKey(nodeId);
     }
     
     public boolean isActiveFull() {
-        return nodeTrie.size() >= getMaxActiveSize();
+        return getActiveSize() >= getMaxActiveSize();
     }
     
     public boolean isCacheFull() {
@@ -274,16 +320,16 @@ class BucketNode implements Bucket {
     }
 
     public Collection<Contact> getActiveContacts() {
-        return nodeTrie.values();
+        return Collections.unmodifiableCollection(snapshot.nodeTrie.values());
     }
     
     public Collection<Contact> getCachedContacts() {
-        return cache.values();
+        return snapshot.cache.values();
     }
     
     public Contact getLeastRecentlySeenActiveContact() {
         final Contact[] leastRecentlySeen = new Contact[]{ null };
-        nodeTrie.traverse(new Cursor<KUID, Contact>() {
+        snapshot.nodeTrie.traverse(new Cursor<KUID, Contact>() {
             public SelectStatus select(Map.Entry<? extends KUID, ? extends Contact> entry) {
                 Contact node = entry.getValue();
                 Contact lrs = leastRecentlySeen[0];
@@ -298,7 +344,7 @@ class BucketNode implements Bucket {
     
     public Contact getMostRecentlySeenActiveContact() {
         final Contact[] mostRecentlySeen = new Contact[]{ null };
-        nodeTrie.traverse(new Cursor<KUID, Contact>() {
+        snapshot.nodeTrie.traverse(new Cursor<KUID, Contact>() {
             public SelectStatus select(Map.Entry<? extends KUID, ? extends Contact> entry) {
                 Contact node = entry.getValue();
                 Contact mrs = mostRecentlySeen[0];
@@ -319,14 +365,17 @@ class BucketNode implements Bucket {
             }
         }
         
+        publishActiveContacts();
+        
         if(!isActiveFull() && !cache.isEmpty()) {
             // The cache Map is in LRS order. Add the Contacts to a List and 
             // iterate it backwards so that we get the elements in MRS order.
-            List<Contact> contacts = new ArrayList<Contact>(getCachedContacts());
+            List<Contact> contacts = new ArrayList<Contact>(cache.values());
             for(int i = contacts.size()-1; i>=0 && !isActiveFull(); i--) {
                 Contact node = contacts.get(i);
                 if(node.isAlive()) {
                     nodeTrie.put(node.getNodeID(), node);
+                    publishActiveContacts();
                 }
                 
                 boolean removed = removeCachedContact(node.getNodeID());
@@ -378,7 +427,7 @@ class BucketNode implements Bucket {
     }
     
     public int getActiveSize() {
-        return nodeTrie.size();
+        return snapshot.nodeTrie.size();
     }
    
     public int getMaxActiveSize() {
@@ -386,7 +435,7 @@ class BucketNode implements Bucket {
     }
     
     public int getCacheSize() {
-        return cache.size();
+        return snapshot.cache.size();
     }
     
     public boolean isRefreshRequired() {
@@ -400,6 +449,7 @@ class BucketNode implements Bucket {
     public void clear() {
         nodeTrie.clear();
         cache = Collections.emptyMap();
+        snapshot = new Snapshot(copyActiveContacts(), cache);
     }
     
     @Override
@@ -446,4 +496,19 @@ class BucketNode implements Bucket {
         in.defaultReadObject();
         init();
     }
+    
+    /**
+     * An immutable copy of the active and cached Contacts
+     */
+    private static class Snapshot {
+        
+        private final PatriciaTrie<KUID, Contact> nodeTrie;
+        
+        private final Map<KUID, Contact> cache;
+        
+        private Snapshot(PatriciaTrie<KUID, Contact> nodeTrie, Map<KUID, Contact> cache) {
+            this.nodeTrie = nodeTrie;
+            this.cache = cache;
+        }
+    }
 }
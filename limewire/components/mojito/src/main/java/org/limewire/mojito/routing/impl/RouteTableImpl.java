@@ -58,6 +58,12 @@ import org.limewire.service.ErrorService;
 /**
  * A PatriciaTrie based RouteTable implementation for the Mojito DHT.
  * This is the reference implementation.
+ * <p>
+ * All modifications are done while holding the RouteTable's lock. Lookups
+ * don't lock, they traverse a copy of the Trie of Buckets that is replaced
+ * whenever a Bucket is split or the RouteTable is cleared, and the Buckets 
+ * publish copies of their Contacts after each modification (see 
+ * {@link BucketNode}).
  */
 public class RouteTableImpl implements RouteTable {
     
@@ -70,6 +76,18 @@ public class RouteTableImpl implements RouteTable {
      */
     private final PatriciaTrie<KUID, Bucket> bucketTrie;
     
+    /**
+     * A copy of the bucketTrie that is never modified
+     */
+    private transient volatile PatriciaTrie<KUID, Bucket> bucketSnapshot;
+    
+    /**
+     * Whether the Buckets are being merged and the bucketTrie must not
+     * be published until the merge is done
+     * LOCKING: this
+     */
+    private transient boolean merging = false;
+    
     /**
      * A counter for consecutive failures
      */
@@ -83,7 +101,7 @@ public class RouteTableImpl implements RouteTable {
     /**
      * The local Node
      */
-    private Contact localNode;
+    private volatile Contact localNode;
     
     /**
      * A list of RouteTableListeners.
@@ -137,12 +155,26 @@ public class RouteTableImpl implements RouteTable {
         KUID bucketId = KUID.MINIMUM;
         Bucket bucket = new BucketNode(this, bucketId, 0);
         bucketTrie.put(bucketId, bucket);
+        publishBuckets();
         
         addContactToBucket(bucket, localNode);
         
         consecutiveFailures = 0;
     }
     
+    /**
+     * Replaces the copy of the bucketTrie that is used for lookups
+     */
+    private void publishBuckets() {
+        if (merging) {
+            return;
+        }
+        
+        PatriciaTrie<KUID, Bucket> copy = new PatriciaTrie<KUID, Bucket>(KUID.KEY_ANALYZER);
+        copy.putAll(bucketTrie);
+        bucketSnapshot = copy;
+    }
+    
     private void readObject(ObjectInputStream in) 
             throws IOException, ClassNotFoundException {
         in.defaultReadObject();
@@ -152,6 +184,8 @@ public class RouteTableImpl implements RouteTable {
         for (Bucket bucket : bucketTrie.values()) {
             ((BucketNode)bucket).postInit();
         }
+        
+        publishBuckets();
     }
     
     /*
@@ -488,6 +522,8 @@ public class RouteTableImpl implements RouteTable {
             Bucket oldRight = bucketTrie.put(right.getBucketID(), right);
             assert (oldRight == null);
             
+            publishBuckets();
+            
             fireSplitBucket(bucket, left, right);
             
             // WHOHOOO! WE SPLIT THE BUCKET!!!
@@ -684,17 +720,17 @@ public class RouteTableImpl implements RouteTable {
      * (non-Javadoc)
      * @see org.limewire.mojito.routing.RouteTable#getBucket(org.limewire.mojito.KUID)
      */
-    public synchronized Bucket getBucket(KUID nodeId) {
-        return bucketTrie.select(nodeId);
+    public Bucket getBucket(KUID nodeId) {
+        return bucketSnapshot.select(nodeId);
     }
     
     /*
      * (non-Javadoc)
      * @see com.limegroup.mojito.routing.RouteTable#select(com.limegroup.mojito.KUID)
      */
-    public synchronized Contact select(final KUID nodeId) {
+    public Contact select(final KUID nodeId) {
         final Contact[] node = new Contact[] { null };
-        bucketTrie.select(nodeId, new Cursor<KUID, Bucket>() {
+        bucketSnapshot.select(nodeId, new Cursor<KUID, Bucket>() {
             public SelectStatus select(Entry<? extends KUID, ? extends Bucket> entry) {
                 node[0] = entry.getValue().select(nodeId);
                 if (node[0] != null) {
@@ -710,15 +746,15 @@ public class RouteTableImpl implements RouteTable {
      * (non-Javadoc)
      * @see com.limegroup.mojito.routing.RouteTable#get(com.limegroup.mojito.KUID)
      */
-    public synchronized Contact get(KUID nodeId) {
-        return bucketTrie.select(nodeId).get(nodeId);
+    public Contact get(KUID nodeId) {
+        return bucketSnapshot.select(nodeId).get(nodeId);
     }
     
     /**
      * Returns 'count' number of Contacts that are nearest (xor distance)
      * to the given KUID.
      */
-    public synchronized Collection<Contact> select(KUID nodeId, int count) {
+    public Collection<Contact> select(KUID nodeId, int count) {
         return select(nodeId, count, SelectMode.ALL);
     }
     
@@ -726,7 +762,7 @@ public class RouteTableImpl implements RouteTable {
      * (non-Javadoc)
      * @see org.limewire.mojito.routing.RouteTable#select(org.limewire.mojito.KUID, int, org.limewire.mojito.routing.RouteTable.SelectMode)
      */
-    public synchronized Collection<Contact> select(final KUID nodeId, final int count, 
+    public Collection<Contact> select(final KUID nodeId, final int count, 
             final SelectMode mode) {
         
         if (count == 0) {
@@ -735,7 +771,7 @@ public class RouteTableImpl implements RouteTable {
         
         final int maxNodeFailures = RouteTableSettings.MAX_ACCEPT_NODE_FAILURES.getValue();
         final List<Contact> nodes = new ArrayList<Contact>(count);
-        bucketTrie.select(nodeId, new Cursor<KUID, Bucket>() {
+        bucketSnapshot.select(nodeId, new Cursor<KUID, Bucket>() {
             public SelectStatus select(Entry<? extends KUID, ? extends Bucket> entry) {
                 Bucket bucket = entry.getValue();
                 
@@ -801,7 +837,7 @@ public class RouteTableImpl implements RouteTable {
      * (non-Javadoc)
      * @see com.limegroup.mojito.routing.RouteTable#getContacts()
      */
-    public synchronized Collection<Contact> getContacts() {
+    public Collection<Contact> getContacts() {
         Collection<Contact> live = getActiveContacts();
         Collection<Contact> cached = getCachedContacts();
         
@@ -815,9 +851,9 @@ public class RouteTableImpl implements RouteTable {
      * (non-Javadoc)
      * @see com.limegroup.mojito.routing.RouteTable#getActiveContacts()
      */
-    public synchronized Collection<Contact> getActiveContacts() {
+    public Collection<Contact> getActiveContacts() {
         List<Contact> nodes = new ArrayList<Contact>();
-        for (Bucket bucket : bucketTrie.values()) {
+        for (Bucket bucket : bucketSnapshot.values()) {
             nodes.addAll(bucket.getActiveContacts());
         }
         return nodes;
@@ -827,9 +863,9 @@ public class RouteTableImpl implements RouteTable {
      * (non-Javadoc)
      * @see com.limegroup.mojito.routing.RouteTable#getCachedContacts()
      */
-    public synchronized Collection<Contact> getCachedContacts() {
+    public Collection<Contact> getCachedContacts() {
         List<Contact> nodes = new ArrayList<Contact>();
-        for (Bucket bucket : bucketTrie.values()) {
+        for (Bucket bucket : bucketSnapshot.values()) {
             nodes.addAll(bucket.getCachedContacts());
         }
         return nodes;
@@ -884,8 +920,8 @@ public class RouteTableImpl implements RouteTable {
      * (non-Javadoc)
      * @see com.limegroup.mojito.routing.RouteTable#getBuckets()
      */
-    public synchronized Collection<Bucket> getBuckets() {
-        return Collections.unmodifiableCollection(bucketTrie.values());
+    public Collection<Bucket> getBuckets() {
+        return Collections.unmodifiableCollection(bucketSnapshot.values());
     }
     
     /**
@@ -951,8 +987,12 @@ public class RouteTableImpl implements RouteTable {
      * (non-Javadoc)
      * @see com.limegroup.mojito.routing.RouteTable#size()
      */
-    public synchronized int size() {
-        return getActiveContacts().size() + getCachedContacts().size();
+    public int size() {
+        int size = 0;
+        for (Bucket bucket : bucketSnapshot.values()) {
+            size += bucket.size();
+        }
+        return size;
     }
     
     /*
@@ -1047,7 +1087,22 @@ public class RouteTableImpl implements RouteTable {
         });
     }
     
+    /**
+     * Rebuilds the bucketTrie from its Contacts. The new Trie is only
+     * published once it's complete, lookups see the old Buckets until
+     * then.
+     */
     private synchronized void mergeBuckets() {
+        merging = true;
+        try {
+            rebuildBuckets();
+        } finally {
+            merging = false;
+            publishBuckets();
+        }
+    }
+    
+    private synchronized void rebuildBuckets() {
         // Get the active Contacts
         Collection<Contact> activeNodes = getActiveContacts();
         activeNodes = ContactUtils.sortAliveToFailed(activeNodes);
@@ -104,6 +104,20 @@ public final class DatabaseSettings extends MojitoProps {
         = FACTORY.createRemoteLongSetting("STORABLE_PUBLISHER_PERIOD", 5L*60L*1000L, 
                 "Mojito.StorablePublisherPeriod", 5L*60L*1000L, 60L*60L*1000L);
     
+    /**
+     * The maximum number of lookups the StorablePublisher runs
+     * in parallel
+     */
+    public static final IntSetting MAX_PARALLEL_PUBLISHES
+        = FACTORY.createIntSetting("MAX_PARALLEL_PUBLISHES", 4);
+    
+    /**
+     * The maximum number of Storables the StorablePublisher tries
+     * to store with the Nodes of a single lookup
+     */
+    public static final IntSetting MAX_STORABLES_PER_LOOKUP
+        = FACTORY.createIntSetting("MAX_STORABLES_PER_LOOKUP", 16);
+    
     /**
      * The period of the DatabaseCleaner
      */
@@ -178,6 +192,14 @@ public final class DatabaseSettings extends MojitoProps {
         = FACTORY.createRemoteIntSetting("MAX_VALUES_PER_ADDRESS", 
             5, "Mojito.MaxValuesPerAddress", 1, Integer.MAX_VALUE - 1);
     
+    /**
+     * The maximum number of bytes of direct memory the Database may
+     * use to store the payloads of remote values. Payloads that don't
+     * fit stay on the heap, 0 keeps all payloads on the heap.
+     */
+    public static final LongSetting MAX_VALUE_ARENA_SIZE
+        = FACTORY.createLongSetting("MAX_VALUE_ARENA_SIZE", 64L*1024L*1024L);
+
     /**
      * Whether or not we validate the creator of a value
      */
@@ -46,6 +46,13 @@ public class StoreSettings extends MojitoProps {
     public static final IntSetting PARALLEL_STORES
         = FACTORY.createIntSetting("PARALLEL_STORES", 5);
     
+    /**
+     * The maximum number of values that are sent to a Node
+     * in a single store request
+     */
+    public static final IntSetting MAX_VALUES_PER_REQUEST
+        = FACTORY.createIntSetting("MAX_VALUES_PER_REQUEST", 8);
+    
     /**
      * The maximum amount of time the store process can take
      * before it's interrupted
@@ -74,6 +74,16 @@ public class DatabaseStatisticContainer extends StatisticContainer {
      */
     public Statistic REPUBLISHED_VALUES = new SimpleStatistic();
     
+    /**
+     * <tt>Statistic</tt> for the time it takes to publish all values
+     */
+    public Statistic PUBLISH_CYCLE_TIME = new SimpleStatistic();
+    
+    /**
+     * <tt>Statistic</tt> for the number of values waiting to be published
+     */
+    public Statistic PUBLISH_BACKLOG = new SimpleStatistic();
+    
     /**
      * <tt>Statistic</tt> for whether or not we're close to a Key
      */
@@ -766,4 +766,205 @@ public class DatabaseTest extends MojitoTestCase {
             assertFalse(database.contains(entity.getPrimaryKey(), entity.getSecondaryKey()));
         }
     }
+    
+    public void testRemoteValuesInArena() throws Exception {
+        DatabaseImpl database = new DatabaseImpl();
+        assertEquals(0L, database.getArenaSize());
+        
+        DHTValueEntity local = createLocalDHTValue("Local".getBytes());
+        DHTValueEntity remote = createDirectDHTValue("Remote".getBytes());
+        assertTrue(database.store(local));
+        assertTrue(database.store(remote));
+        
+        // Only the payload of the remote value is moved to the arena
+        assertGreaterThan(0L, database.getArenaSize());
+        DHTValueEntity stored = database.get(local.getPrimaryKey()).get(local.getSecondaryKey());
+        assertSame(local, stored);
+        
+        stored = database.get(remote.getPrimaryKey()).get(remote.getSecondaryKey());
+        assertNotSame(remote, stored);
+        assertEquals(remote, stored);
+        assertEquals(remote.getValue(), stored.getValue());
+        assertEquals(remote.getCreationTime(), stored.getCreationTime());
+        assertEquals("Remote", new String(stored.getValue().getValue()));
+        
+        // A removed value can still be read
+        DHTValueEntity removed = database.remove(remote.getPrimaryKey(), remote.getSecondaryKey());
+        assertNotNull(removed);
+        assertEquals("Remote", new String(removed.getValue().getValue()));
+        assertEquals("Remote", new String(stored.getValue().getValue()));
+        
+        // And its slot is reused
+        long arenaSize = database.getArenaSize();
+        for (int i = 0; i < 100; i++) {
+            DHTValueEntity entity = createDirectDHTValue(("Value " + i).getBytes());
+            assertTrue(database.store(entity));
+            assertTrue(database.remove(entity.getPrimaryKey(), entity.getSecondaryKey()) != null);
+        }
+        assertEquals(arenaSize, database.getArenaSize());
+        
+        // Payloads stay on the heap if the arena is disabled
+        DatabaseSettings.MAX_VALUE_ARENA_SIZE.setValue(0L);
+        database = new DatabaseImpl();
+        assertTrue(database.store(remote));
+        assertSame(remote, database.get(remote.getPrimaryKey()).get(remote.getSecondaryKey()));
+        assertEquals(0L, database.getArenaSize());
+    }
+    
+    public void testReplaceValueKeepsCounts() throws Exception {
+        DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.setValue(true);
+        DatabaseSettings.MAX_VALUES_PER_ADDRESS.setValue(2);
+        DatabaseSettings.LIMIT_VALUES_PER_NETWORK.setValue(false);
+        
+        DatabaseImpl database = new DatabaseImpl();
+        SocketAddress addr = new InetSocketAddress("192.168.1.1", 1111);
+        Contact node = ContactFactory.createLiveContact(addr, Vendor.UNKNOWN, Version.ZERO, 
+                KUID.createRandomID(), addr, 0, Contact.DEFAULT_FLAG);
+        
+        KUID primaryKey = KUID.createRandomID();
+        DHTValueEntity entity = new DHTValueEntity(node, node, primaryKey, 
+                new DHTValueImpl(DHTValueType.TEST, Version.ZERO, "Hello".getBytes()), false);
+        assertTrue(database.store(entity));
+        assertEquals(1, database.getValuesPerAddress(entity));
+        
+        // Replacing the value doesn't count it twice
+        DHTValueEntity replacement = new DHTValueEntity(node, node, primaryKey, 
+                new DHTValueImpl(DHTValueType.TEST, Version.ZERO, "World".getBytes()), false);
+        assertTrue(database.store(replacement));
+        assertEquals(1, database.getValuesPerAddress(entity));
+        assertEquals(1, database.getValueCount());
+        assertEquals("World", new String(database.get(primaryKey)
+                .get(node.getNodeID()).getValue().getValue()));
+        
+        // The replaced value can still be read
+        assertEquals("Hello", new String(entity.getValue().getValue()));
+        
+        database.remove(primaryKey, node.getNodeID());
+        assertEquals(0, database.getValuesPerAddress(entity));
+        assertEquals(0, database.getValueCount());
+        assertEquals(0, database.getKeyCount());
+    }
+    
+    public void testRemoveSameEntity() throws Exception {
+        DatabaseImpl database = new DatabaseImpl();
+        KUID nodeId = KUID.createRandomID();
+        KUID valueId = KUID.createRandomID();
+        DHTValueEntity entity = createLocalDHTValue(nodeId, valueId, "Hello".getBytes());
+        assertTrue(database.store(entity));
+        
+        // A replaced entity isn't removed
+        DHTValueEntity replacement = createLocalDHTValue(nodeId, valueId, "World".getBytes());
+        assertTrue(database.store(replacement));
+        assertFalse(database.remove(entity));
+        assertEquals(1, database.getValueCount());
+        
+        DHTValueEntity stored = database.get(valueId).get(nodeId);
+        assertTrue(database.remove(stored));
+        assertEquals(0, database.getValueCount());
+        assertEquals(0, database.getKeyCount());
+        assertFalse(database.remove(stored));
+    }
+    
+    public void testConcurrentStoreAndRemove() throws Exception {
+        DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.setValue(false);
+        DatabaseSettings.LIMIT_VALUES_PER_NETWORK.setValue(false);
+        DatabaseSettings.MAX_DATABASE_SIZE.setValue(65536);
+        
+        final DatabaseImpl database = new DatabaseImpl();
+        final int valuesPerThread = 1000;
+        Thread[] threads = new Thread[8];
+        final Throwable[] failure = new Throwable[1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        List<DHTValueEntity> stored = new ArrayList<DHTValueEntity>();
+                        for (int j = 0; j < valuesPerThread; j++) {
+                            DHTValueEntity entity = createDirectDHTValue(("Value " + j).getBytes());
+                            assertTrue(database.store(entity));
+                            stored.add(entity);
+                            database.getRequestLoad(entity.getPrimaryKey(), true);
+                        }
+                        
+                        // remove every other value again
+                        for (int j = 0; j < stored.size(); j += 2) {
+                            DHTValueEntity entity = stored.get(j);
+                            assertNotNull(database.remove(entity.getPrimaryKey(), 
+                                    entity.getSecondaryKey()));
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertNull(failure[0]);
+        int expected = threads.length * valuesPerThread / 2;
+        assertEquals(expected, database.getKeyCount());
+        assertEquals(expected, database.getValueCount());
+        assertEquals(expected, database.keySet().size());
+        assertEquals(expected, database.values().size());
+        
+        int values = 0;
+        for (int i = 0; i < DatabaseImpl.SHARD_COUNT; i++) {
+            values += database.values(i).size();
+        }
+        assertEquals(expected, values);
+        
+        database.clear();
+        assertEquals(0, database.getKeyCount());
+        assertEquals(0, database.getValueCount());
+        assertTrue(database.values().isEmpty());
+    }
+    
+    public void testConcurrentStoresDontExceedLimit() throws Exception {
+        DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.setValue(true);
+        DatabaseSettings.MAX_VALUES_PER_ADDRESS.setValue(50);
+        DatabaseSettings.LIMIT_VALUES_PER_NETWORK.setValue(false);
+        
+        final DatabaseImpl database = new DatabaseImpl();
+        SocketAddress addr = new InetSocketAddress("192.168.1.1", 1111);
+        final Contact node = ContactFactory.createLiveContact(addr, Vendor.UNKNOWN, 
+                Version.ZERO, KUID.createRandomID(), addr, 0, Contact.DEFAULT_FLAG);
+        
+        // every value has its own key, so the stores run in all shards
+        final int[] stored = new int[8];
+        Thread[] threads = new Thread[stored.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        DHTValueEntity entity = new DHTValueEntity(node, node, 
+                                KUID.createRandomID(), new DHTValueImpl(DHTValueType.TEST, 
+                                        Version.ZERO, "test".getBytes()), false);
+                        if (database.store(entity)) {
+                            stored[index]++;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        
+        int total = 0;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            total += stored[i];
+        }
+        
+        assertEquals(50, total);
+        assertEquals(50, database.getValueCount());
+        
+        DHTValueEntity entity = database.values().iterator().next();
+        assertEquals(50, database.getValuesPerAddress(entity));
+    }
 }
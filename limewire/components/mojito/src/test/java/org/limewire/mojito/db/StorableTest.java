@@ -19,9 +19,13 @@
 
 package org.limewire.mojito.db;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.Test;
@@ -129,4 +133,75 @@ public class StorableTest extends MojitoTestCase {
             }
         }
     }
+    
+    public void testPublishBatches() throws Exception {
+        int k = KademliaSettings.REPLICATION_PARAMETER.getValue();
+        
+        PrivilegedAccessor.setValue(DatabaseSettings.STORABLE_PUBLISHER_PERIOD, "value", new Long(100));
+        PrivilegedAccessor.setValue(DatabaseSettings.MAX_PARALLEL_PUBLISHES, "value", new Integer(2));
+        PrivilegedAccessor.setValue(DatabaseSettings.MAX_STORABLES_PER_LOOKUP, "value", new Integer(4));
+        
+        Map<KUID, MojitoDHT> dhts = Collections.emptyMap();
+        try {
+            dhts = MojitoUtils.createBootStrappedDHTsMap(2);
+            Thread.sleep(250);
+            
+            DHTValueType type = DHTValueType.TEST;
+            Version version = Version.ZERO;
+            
+            long time = System.currentTimeMillis();
+            
+            // Keys with a common prefix are covered by the same lookup
+            final List<Storable> storables = new ArrayList<Storable>();
+            KUID prefix = KUID.createRandomID();
+            for (int i = 0; i < 10; i++) {
+                KUID key = (i % 2 == 0) ? prefix.flip(KUID.LENGTH_IN_BITS - 1 - i) 
+                        : KUID.createRandomID();
+                byte[] b = ("Hello World " + i).getBytes();
+                storables.add(new Storable(key, new DHTValueImpl(type, version, b)));
+            }
+            
+            final AtomicBoolean publisherDidRun = new AtomicBoolean(false);
+            final Set<Storable> published = new HashSet<Storable>();
+            
+            dhts.values().iterator().next().getStorableModelManager().addStorableModel(type, new StorableModel() {
+                public Collection<Storable> getStorables() {
+                    if (publisherDidRun.getAndSet(true)) {
+                        return Collections.emptySet();
+                    }
+                    return storables;
+                }
+                
+                public void handleStoreResult(Storable value, StoreResult result) {
+                    synchronized (published) {
+                        published.add(value);
+                        published.notifyAll();
+                    }
+                }
+                
+                public void handleContactChange() {
+                }
+            });
+            
+            synchronized (published) {
+                long end = System.currentTimeMillis() + 10000L;
+                while (published.size() < storables.size() 
+                        && System.currentTimeMillis() < end) {
+                    published.wait(500L);
+                }
+            }
+            
+            assertEquals(storables.size(), published.size());
+            for (Storable storable : storables) {
+                assertEquals(k, storable.getLocationCount());
+                assertGreaterThanOrEquals(time, storable.getPublishTime());
+                assertFalse(DatabaseUtils.isPublishingRequired(storable));
+            }
+            
+        } finally {
+            for (MojitoDHT dht : dhts.values()) {
+                dht.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,109 @@
+package org.limewire.mojito.db.impl;
+
+import java.util.Arrays;
+
+import junit.framework.Test;
+
+import org.limewire.mojito.db.DHTValueType;
+import org.limewire.mojito.routing.Version;
+import org.limewire.util.BaseTestCase;
+
+public class ValueArenaTest extends BaseTestCase {
+
+    public ValueArenaTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(ValueArenaTest.class);
+    }
+
+    private static byte[] createArray(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(seed + i);
+        }
+        return data;
+    }
+
+    public void testAllocateAndRead() throws Exception {
+        ValueArena arena = new ValueArena(ValueArena.PAGE_SIZE * 8L);
+        assertEquals(0L, arena.getAllocatedBytes());
+
+        int[] lengths = { 1, 15, 16, 17, 100, 1000, ValueArena.MAX_SLOT_SIZE };
+        long[] handles = new long[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            handles[i] = arena.allocate(createArray(lengths[i], i));
+            assertNotEquals(-1L, handles[i]);
+        }
+
+        for (int i = 0; i < lengths.length; i++) {
+            assertTrue(Arrays.equals(createArray(lengths[i], i),
+                    arena.read(handles[i], lengths[i])));
+        }
+
+        // slots are rounded up to the next size class, each one has its own page
+        assertEquals(5L * ValueArena.PAGE_SIZE, arena.getAllocatedBytes());
+        assertEquals(16 + 16 + 16 + 32 + 128 + 1024 + ValueArena.MAX_SLOT_SIZE,
+                arena.getUsedBytes());
+
+        // empty and too large arrays aren't stored
+        assertEquals(-1L, arena.allocate(new byte[0]));
+        assertEquals(-1L, arena.allocate(new byte[ValueArena.MAX_SLOT_SIZE + 1]));
+    }
+
+    public void testFreedSlotsAreReused() throws Exception {
+        ValueArena arena = new ValueArena(ValueArena.PAGE_SIZE);
+        long first = arena.allocate(createArray(100, 1));
+        long second = arena.allocate(createArray(100, 2));
+        assertNotEquals(first, second);
+
+        arena.free(first, 100);
+        assertEquals(128, arena.getUsedBytes());
+
+        // an array of the same size class gets the freed slot
+        long third = arena.allocate(createArray(120, 3));
+        assertEquals(first, third);
+        assertTrue(Arrays.equals(createArray(120, 3), arena.read(third, 120)));
+        assertTrue(Arrays.equals(createArray(100, 2), arena.read(second, 100)));
+    }
+
+    public void testMaxSize() throws Exception {
+        ValueArena arena = new ValueArena(ValueArena.PAGE_SIZE);
+        int slots = ValueArena.PAGE_SIZE / ValueArena.MAX_SLOT_SIZE;
+        byte[] data = createArray(ValueArena.MAX_SLOT_SIZE, 0);
+        long handle = -1L;
+        for (int i = 0; i < slots; i++) {
+            handle = arena.allocate(data);
+            assertNotEquals(-1L, handle);
+        }
+        assertEquals(ValueArena.PAGE_SIZE, arena.getAllocatedBytes());
+
+        // the page is full and there is no room for another one
+        assertEquals(-1L, arena.allocate(data));
+        assertEquals(-1L, arena.allocate(new byte[1]));
+
+        arena.free(handle, data.length);
+        assertEquals(handle, arena.allocate(data));
+    }
+
+    public void testReleasedValueIsCopied() throws Exception {
+        ValueArena arena = new ValueArena(ValueArena.PAGE_SIZE);
+        DHTValueImpl value = new DHTValueImpl(DHTValueType.TEST, Version.ZERO,
+                "Hello World".getBytes());
+        ArenaDHTValue stored = ArenaDHTValue.allocate(arena, value);
+        assertEquals(value, stored);
+        assertEquals(stored, value);
+        assertEquals(value.hashCode(), stored.hashCode());
+
+        stored.release();
+        assertEquals(0L, arena.getUsedBytes());
+
+        // the slot is reused but the released value keeps its payload
+        ArenaDHTValue other = ArenaDHTValue.allocate(arena, new DHTValueImpl(
+                DHTValueType.TEST, Version.ZERO, "Other Value".getBytes()));
+        assertNotNull(other);
+        assertEquals("Hello World", new String(stored.getValue()));
+        assertEquals("Other Value", new String(other.getValue()));
+    }
+}
@@ -0,0 +1,108 @@
+package org.limewire.mojito.manager;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import junit.framework.TestSuite;
+
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.MojitoTestCase;
+import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.routing.ContactFactory;
+import org.limewire.mojito.routing.Vendor;
+import org.limewire.mojito.routing.Version;
+import org.limewire.mojito.util.EntryImpl;
+import org.limewire.security.SecurityToken;
+
+public class StoreProcessTest extends MojitoTestCase {
+    
+    public StoreProcessTest(String name) {
+        super(name);
+    }
+    
+    public static TestSuite suite() {
+        return buildTestSuite(StoreProcessTest.class);
+    }
+    
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+    
+    /**
+     * Creates a KUID whose first byte is the given value 
+     * and whose last byte is the given value
+     */
+    private static KUID createKUID(int first, int last) {
+        byte[] id = new byte[KUID.LENGTH];
+        id[0] = (byte)first;
+        id[id.length-1] = (byte)last;
+        return KUID.createWithBytes(id);
+    }
+    
+    /**
+     * Creates a path with Nodes 0x01 to 0x08 to the lookup key 0x00
+     */
+    private static List<Entry<Contact, SecurityToken>> createPath() {
+        List<Entry<Contact, SecurityToken>> path 
+            = new ArrayList<Entry<Contact, SecurityToken>>();
+        for (int i = 1; i <= 8; i++) {
+            Contact node = ContactFactory.createUnknownContact(
+                    Vendor.UNKNOWN, Version.ZERO, createKUID(i, 0), 
+                    new InetSocketAddress("localhost", 3000 + i));
+            path.add(new EntryImpl<Contact, SecurityToken>(node, null));
+        }
+        return path;
+    }
+    
+    private static void assertNodes(List<Entry<Contact, SecurityToken>> nodes, int... expected) {
+        assertNotNull(nodes);
+        assertEquals(expected.length, nodes.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(createKUID(expected[i], 0), nodes.get(i).getKey().getNodeID());
+        }
+    }
+    
+    public void testSelectNodesForLookupKey() {
+        KUID lookupKey = createKUID(0, 0);
+        List<Entry<Contact, SecurityToken>> path = createPath();
+        
+        assertNodes(StoreProcess.selectNodes(lookupKey, lookupKey, path, 4, false), 1, 2, 3, 4);
+        
+        // The path is shorter than k
+        assertNodes(StoreProcess.selectNodes(lookupKey, lookupKey, path.subList(0, 2), 4, false), 1, 2);
+    }
+    
+    public void testSelectNodesForNearbyKey() {
+        KUID lookupKey = createKUID(0, 0);
+        List<Entry<Contact, SecurityToken>> path = createPath();
+        
+        // Only the lowest bit differs, all Nodes but the 
+        // furthest are closer than any unknown Node
+        KUID key = createKUID(0, 1);
+        assertNodes(StoreProcess.selectNodes(lookupKey, key, path, 4, false), 1, 2, 3, 4);
+        assertNodes(StoreProcess.selectNodes(lookupKey, key, path, 7, false), 1, 2, 3, 4, 5, 6, 7);
+        assertNull(StoreProcess.selectNodes(lookupKey, key, path, 8, false));
+        
+        // Unknown Nodes are at least 0x08 away from the lookup key
+        // and at least 0x0C away from the key. Nodes 0x01 to 0x07 
+        // are closer to the key than any unknown Node.
+        key = createKUID(4, 0);
+        assertNodes(StoreProcess.selectNodes(lookupKey, key, path, 4, false), 4, 5, 6, 7);
+        assertNodes(StoreProcess.selectNodes(lookupKey, key, path, 6, false), 4, 5, 6, 7, 1, 2);
+        assertNull(StoreProcess.selectNodes(lookupKey, key, path, 8, false));
+    }
+    
+    public void testSelectNodesForFarKey() {
+        KUID lookupKey = createKUID(0, 0);
+        List<Entry<Contact, SecurityToken>> path = createPath();
+        
+        // An unknown Node 0x10 would be the closest Node
+        KUID key = createKUID(0x10, 0);
+        assertNull(StoreProcess.selectNodes(lookupKey, key, path, 1, false));
+        
+        // Unless there are no unknown Nodes
+        assertNodes(StoreProcess.selectNodes(lookupKey, key, path, 2, true), 1, 2);
+    }
+}
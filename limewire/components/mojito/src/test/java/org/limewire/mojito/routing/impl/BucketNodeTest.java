@@ -3,6 +3,7 @@ package org.limewire.mojito.routing.impl;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.Arrays;
+import java.util.Collection;
 
 import junit.framework.TestSuite;
 
@@ -98,6 +99,43 @@ public class BucketNodeTest extends MojitoTestCase {
         
     }
     
+    public void testContactsAreCopiedOnWrite() {
+        Bucket bucket = routeTable.getBucket(localNode.getNodeID());
+        SocketAddress address = new InetSocketAddress("localhost", 2000);
+        
+        Collection<Contact> active = bucket.getActiveContacts();
+        Collection<Contact> cached = bucket.getCachedContacts();
+        
+        Contact node = ContactFactory.createUnknownContact(
+                vendor, version, KUID.createRandomID(), address);
+        bucket.addActiveContact(node);
+        
+        Contact node2 = ContactFactory.createUnknownContact(
+                vendor, version, KUID.createRandomID(), address);
+        bucket.addCachedContact(node2);
+        
+        // The Collections we got before are not modified
+        assertEquals(1, active.size());
+        assertEquals(0, cached.size());
+        
+        assertEquals(2, bucket.getActiveContacts().size());
+        assertTrue(bucket.getActiveContacts().contains(node));
+        assertSame(node, bucket.select(node.getNodeID()));
+        assertSame(node2, bucket.get(node2.getNodeID()));
+        
+        active = bucket.getActiveContacts();
+        assertTrue(bucket.removeActiveContact(node.getNodeID()));
+        assertTrue(active.contains(node));
+        assertFalse(bucket.containsActiveContact(node.getNodeID()));
+        assertNull(bucket.get(node.getNodeID()));
+        
+        try {
+            bucket.getActiveContacts().clear();
+            fail("Active Contacts should not be modifiable");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+    
     public void testTouchBucket() throws Exception{
     	Bucket bucket = routeTable.getBucket(localNode.getNodeID());
     	
@@ -0,0 +1,117 @@
+package org.limewire.mojito.routing.impl;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.routing.ContactFactory;
+import org.limewire.mojito.routing.Vendor;
+import org.limewire.mojito.routing.Version;
+import org.limewire.mojito.routing.RouteTable.SelectMode;
+import org.limewire.mojito.settings.KademliaSettings;
+
+/**
+ * Measures k-closest selects on a {@link RouteTableImpl} while another
+ * Thread adds and updates Contacts like the message handling does.
+ * Each round runs once with selects that hold the RouteTable's lock,
+ * like every select used to, and once without.
+ * <p>
+ * Usage: <code>RouteTableBenchmark [contacts] [readers] [millis]</code>
+ */
+public class RouteTableBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000L;
+
+        RouteTableImpl routeTable = new RouteTableImpl();
+        List<Contact> nodes = new ArrayList<Contact>();
+        for (int i = 0; i < contacts; i++) {
+            nodes.add(createNode(i));
+        }
+        for (Contact node : nodes) {
+            routeTable.add(node);
+        }
+        System.out.println(routeTable.size() + " contacts in "
+                + routeTable.getBuckets().size() + " buckets, "
+                + readers + " readers, " + millis + " ms");
+
+        for (int round = 0; round < 3; round++) {
+            run("locked   ", routeTable, nodes, readers, millis, true);
+            run("lock-free", routeTable, nodes, readers, millis, false);
+        }
+    }
+
+    private static void run(String name, final RouteTableImpl routeTable,
+            final List<Contact> nodes, int readers, long millis,
+            final boolean locked) throws InterruptedException {
+
+        final int k = KademliaSettings.REPLICATION_PARAMETER.getValue();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicLong selects = new AtomicLong();
+        final AtomicLong adds = new AtomicLong();
+        final CountDownLatch finished = new CountDownLatch(readers + 1);
+
+        for (int i = 0; i < readers; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    while (!done.get()) {
+                        KUID lookupId = KUID.createRandomID();
+                        if (locked) {
+                            synchronized (routeTable) {
+                                routeTable.select(lookupId, k, SelectMode.ALIVE);
+                            }
+                        } else {
+                            routeTable.select(lookupId, k, SelectMode.ALIVE);
+                        }
+                        count++;
+                    }
+                    selects.addAndGet(count);
+                    finished.countDown();
+                }
+            }.start();
+        }
+
+        // Re-adding a known Contact updates it in its Bucket,
+        // a new one is added or cached
+        new Thread() {
+            @Override
+            public void run() {
+                long count = 0;
+                int i = 0;
+                while (!done.get()) {
+                    Contact node = (i % 8 == 0) ? createNode(nodes.size() + i)
+                            : nodes.get(i % nodes.size());
+                    routeTable.add(node);
+                    count++;
+                    i++;
+                }
+                adds.addAndGet(count);
+                finished.countDown();
+            }
+        }.start();
+
+        Thread.sleep(millis);
+        done.set(true);
+        finished.await();
+
+        System.out.println(name + ": " + (selects.get() * 1000L / millis) + " selects/s, "
+                + (adds.get() * 1000L / millis) + " adds/s");
+    }
+
+    private static Contact createNode(int i) {
+        InetSocketAddress address = new InetSocketAddress(
+                "10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF),
+                1024 + (i & 0x7FFF));
+        return ContactFactory.createLiveContact(address, Vendor.UNKNOWN, Version.ZERO,
+                KUID.createRandomID(), address, 0, 0);
+    }
+}
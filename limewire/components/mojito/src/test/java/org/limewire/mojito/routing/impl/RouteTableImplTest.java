@@ -2,11 +2,18 @@ package org.limewire.mojito.routing.impl;
 
 import java.net.InetSocketAddress;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.limewire.mojito.KUID;
 import org.limewire.mojito.MojitoTestCase;
 import org.limewire.mojito.routing.Contact;
 import org.limewire.mojito.routing.ContactFactory;
+import org.limewire.mojito.routing.RouteTable.PurgeMode;
+import org.limewire.mojito.routing.RouteTable.SelectMode;
 import org.limewire.mojito.routing.Vendor;
 import org.limewire.mojito.routing.Version;
 import org.limewire.mojito.settings.KademliaSettings;
@@ -68,6 +75,108 @@ public class RouteTableImplTest extends MojitoTestCase {
         }
     }
 
+    /**
+     * Selects Contacts while another Thread adds Contacts and splits
+     * Buckets. The selected Contacts must always be sorted by their
+     * distance to the lookup key.
+     */
+    public void testConcurrentAddAndSelect() throws Exception {
+        final int k = KademliaSettings.REPLICATION_PARAMETER.getValue();
+        final RouteTableImpl routeTable = new RouteTableImpl();
+        
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            KUID lookupId = KUID.createRandomID();
+                            Collection<Contact> nodes 
+                                = routeTable.select(lookupId, k, SelectMode.ALL);
+                            assertLessThanOrEquals(k, nodes.size());
+                            
+                            KUID previous = null;
+                            for (Contact node : nodes) {
+                                KUID distance = node.getNodeID().xor(lookupId);
+                                if (previous != null) {
+                                    assertGreaterThan(0, distance.compareTo(previous));
+                                }
+                                previous = distance;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        
+        try {
+            for (int i = 0; i < 2000; i++) {
+                String address = "10." + ((i >> 8) & 0xFF) + "." + (i & 0xFF) + ".1";
+                routeTable.add(createNode(KUID.createRandomID(), address, 1000 + i));
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        
+        if (error.get() != null) {
+            fail("Select failed", error.get());
+        }
+        
+        assertGreaterThan(k, routeTable.getActiveContacts().size());
+        assertEquals(routeTable.getActiveContacts().size() 
+                + routeTable.getCachedContacts().size(), routeTable.size());
+    }
+
+    /**
+     * Lookups during a merge of the Buckets must see the whole table
+     * and not the partly rebuilt one.
+     */
+    public void testMergeBucketsPublishesOnce() throws Exception {
+        final AtomicBoolean merging = new AtomicBoolean(false);
+        final List<Integer> sizes = new ArrayList<Integer>();
+        final RouteTableImpl routeTable = new RouteTableImpl() {
+            private static final long serialVersionUID = -5802892946407309881L;
+
+            @Override
+            public synchronized void add(Contact node) {
+                // re-adding the Contacts is part of the merge
+                if (merging.get()) {
+                    sizes.add(size());
+                }
+                super.add(node);
+            }
+        };
+        
+        for (int i = 0; i < 500; i++) {
+            String address = "10." + ((i >> 8) & 0xFF) + "." + (i & 0xFF) + ".1";
+            routeTable.add(createNode(KUID.createRandomID(), address, 1000 + i));
+        }
+        int size = routeTable.size();
+        int buckets = routeTable.getBuckets().size();
+        assertGreaterThan(1, buckets);
+        
+        merging.set(true);
+        routeTable.purge(PurgeMode.MERGE_BUCKETS);
+        merging.set(false);
+        
+        assertFalse(sizes.isEmpty());
+        for (int observed : sizes) {
+            assertEquals(size, observed);
+        }
+        assertEquals(routeTable.getActiveContacts().size() 
+                + routeTable.getCachedContacts().size(), routeTable.size());
+    }
+
     private Contact createNode(KUID nodeID, String address, int port) {
         InetSocketAddress socketAddress = new InetSocketAddress(address, port);
         return ContactFactory.createLiveContact(socketAddress, Vendor.UNKNOWN, Version.ZERO, nodeID, socketAddress, 0, 0);
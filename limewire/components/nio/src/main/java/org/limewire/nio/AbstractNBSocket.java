@@ -142,7 +142,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
      * in reading is turned on.
      */
     public final void setReadObserver(final ChannelReadObserver newReader) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        NIODispatcher.instance().getExecutorFor(this).execute(new Runnable() {
             public void run() {
                 ReadObserver oldReader = reader;
                 try {
@@ -204,7 +204,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
      * write, then an <code>IllegalStateException</code> is thrown.
      */
     public final void setWriteObserver(final ChannelWriter newWriter) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        NIODispatcher.instance().getExecutorFor(this).execute(new Runnable() {
             public void run() {
                 try {
                     if(writer.handleWrite())
@@ -358,8 +358,9 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
                 throw new IOException("unresolved: " + addr);
             
             if(getChannel().connect(addr)) {
-                // Make sure connecting callbacks are always on the NIO thread.
-                NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+                // Make sure connecting callbacks are always on the NIO thread
+                // that will handle this' events.
+                NIODispatcher.instance().assignToLoop(getChannel()).execute(new Runnable() {
                     public void run() {
                         // ensure it's registered in the selector, so it can be notified
                         // for reading|writing, and polled for readiness
@@ -367,7 +368,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
                         try {
                             observer.handleConnect(AbstractNBSocket.this);
                         } catch(IOException iox) {
-                            NIODispatcher.instance().executeLaterAlways(new Runnable() {
+                            NIODispatcher.instance().executeLaterAlways(getChannel(), new Runnable() {
                                 public void run() {
                                     shutdown();
                                 }
@@ -381,7 +382,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
                 return false;
             }
         } catch(IOException failed) {
-            NIODispatcher.instance().executeLaterAlways(new Runnable() {
+            NIODispatcher.instance().executeLaterAlways(getChannel(), new Runnable() {
                 public void run() {
                     shutdown();
                 }
@@ -425,7 +426,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
                 }
             };
             
-            Future<InputStream> future = NIODispatcher.instance().getScheduledExecutorService().submit(callable);
+            Future<InputStream> future = NIODispatcher.instance().getExecutorFor(this).submit(callable);
             try {
                 return future.get();
             } catch(ExecutionException ee) {
@@ -497,7 +498,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
         shutdownSocketAndChannels();
         shutdownObservers();
                 
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        NIODispatcher.instance().getExecutorFor(this).execute(new Runnable() {
             public void run() {
                 if(nioOutputStream != null)
                     nioOutputStream.shutdown();
@@ -0,0 +1,332 @@
+package org.limewire.nio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.util.Clock;
+import org.limewire.util.ClockImpl;
+
+/**
+ * A token bucket that limits the bandwidth a class of traffic, or a single
+ * connection, takes from a parent <code>Throttle</code>.
+ * <p>
+ * The parent schedules the listeners: interest is passed on to it, and
+ * every request first asks the parent for bandwidth. The bucket then lets
+ * through as much of it as its tokens allow and hands the rest straight
+ * back to the parent, so other listeners of the parent can use it in the
+ * same tick. Because the parent can be a <code>HierarchicalThrottle</code>
+ * as well, throttles can be stacked:
+ * <pre>
+ *   NBThrottle up = new NBThrottle(true, uploadSpeed);
+ *   HierarchicalThrottle torrents = new HierarchicalThrottle(up, torrentSpeed);
+ *   Throttle connection = torrents.createChild(connectionSpeed);
+ * </pre>
+ * A connection using <code>connection</code> gets no more than its own
+ * rate, the torrent connections together no more than the torrent rate, and
+ * all uploads together no more than the upload speed. Bandwidth a class
+ * doesn't use is left to the other classes.
+ * <p>
+ * {@link #createChild()} creates a bucket for a connection that gets a fair
+ * share of its parent's rate: the rate divided by the number of children
+ * that asked for bandwidth within the last {@link #SHARE_MILLIS}. This way
+ * the first connections served in a tick can't drain a limited class, and
+ * idle connections don't take a share. <code>ThrottleReader</code> and 
+ * <code>ThrottleWriter</code> create one for their connection when they 
+ * are given a <code>HierarchicalThrottle</code>.
+ * <p>
+ * Tokens are refilled lazily from the elapsed time whenever bandwidth is
+ * requested, both the refill and the requests only use atomic updates, so
+ * a bucket can be shared by connections of all selector loops. The bucket
+ * holds up to {@link #BURST_MILLIS} worth of tokens.
+ * <p>
+ * A throttle also counts the bytes its listeners used, for reporting how
+ * much of the bandwidth each class takes.
+ */
+public class HierarchicalThrottle implements Throttle {
+
+    /** The rate of a throttle that doesn't limit anything on its own. */
+    public static final float UNLIMITED = Float.MAX_VALUE;
+
+    /** The number of milliseconds of bandwidth the bucket can save up. */
+    public static final int BURST_MILLIS = 250;
+
+    /** 
+     * The number of milliseconds after which a fair child that didn't ask
+     * for bandwidth no longer counts for the shares.
+     */
+    public static final int SHARE_MILLIS = 1000;
+
+    /** Rates above this many bytes per second are not limited. */
+    private static final float MAX_RATE = Integer.MAX_VALUE;
+
+    private final Throttle parent;
+
+    private final Clock clock;
+
+    /** The rate in bytes per second. */
+    private volatile float rate;
+
+    /** The number of tokens in the bucket. */
+    private final AtomicLong tokens = new AtomicLong();
+
+    /** The time in nanoseconds up to which tokens were added. */
+    private final AtomicLong lastRefill;
+
+    /** The number of bytes given to listeners and not released again. */
+    private final AtomicLong bytesUsed = new AtomicLong();
+
+    /** Whether this takes a fair share of the parent's rate. */
+    private final boolean fairShare;
+
+    /** The share window in which this fair child last asked for bandwidth. */
+    private volatile long lastWindow = -1;
+
+    /** The current share window of the fair children. */
+    private final AtomicLong shareWindow = new AtomicLong();
+
+    /** The number of fair children that asked for bandwidth in the current window. */
+    private final AtomicInteger sharing = new AtomicInteger();
+
+    /** The number of fair children that asked for bandwidth in the previous window. */
+    private volatile int lastSharing;
+
+    /**
+     * Creates a throttle that takes bandwidth from <tt>parent</tt> without
+     * limiting it any further, it only counts the bandwidth used.
+     */
+    public HierarchicalThrottle(Throttle parent) {
+        this(parent, UNLIMITED);
+    }
+
+    /**
+     * Creates a throttle that takes up to <tt>bytesPerSecond</tt> from
+     * <tt>parent</tt>.
+     */
+    public HierarchicalThrottle(Throttle parent, float bytesPerSecond) {
+        this(parent, bytesPerSecond, new ClockImpl());
+    }
+
+    HierarchicalThrottle(Throttle parent, float bytesPerSecond, Clock clock) {
+        this(parent, bytesPerSecond, clock, false);
+    }
+
+    private HierarchicalThrottle(Throttle parent, float bytesPerSecond, Clock clock,
+            boolean fairShare) {
+        this.parent = parent;
+        this.clock = clock;
+        this.fairShare = fairShare;
+        this.lastRefill = new AtomicLong(clock.nanoTime());
+        setRate(bytesPerSecond);
+        tokens.set(capacity());
+    }
+
+    /**
+     * Creates a throttle for a single connection that takes up to
+     * <tt>bytesPerSecond</tt> from this one.
+     */
+    public HierarchicalThrottle createChild(float bytesPerSecond) {
+        return new HierarchicalThrottle(this, bytesPerSecond, clock);
+    }
+
+    /**
+     * Creates a throttle for a single connection that takes a fair share of
+     * this one's rate. Its own rate is unlimited, but can be lowered with
+     * {@link #setRate(float)}.
+     */
+    public HierarchicalThrottle createChild() {
+        return new HierarchicalThrottle(this, UNLIMITED, clock, true);
+    }
+
+    /**
+     * Returns the throttle a single connection should use: a fair child of
+     * <tt>throttle</tt> if it is a <code>HierarchicalThrottle</code>, 
+     * <tt>throttle</tt> itself otherwise.
+     */
+    public static Throttle forConnection(Throttle throttle) {
+        if (throttle instanceof HierarchicalThrottle)
+            return ((HierarchicalThrottle) throttle).createChild();
+        return throttle;
+    }
+
+    /** Returns the throttle this one takes its bandwidth from. */
+    public Throttle getParent() {
+        return parent;
+    }
+
+    public void interest(ThrottleListener writer) {
+        parent.interest(writer);
+    }
+
+    /**
+     * Requests bandwidth from the parent and passes on as much of it as
+     * there are tokens in the bucket.
+     */
+    public int request() {
+        if (fairShare)
+            ((HierarchicalThrottle) parent).share(this);
+        int given = parent.request();
+        if (given <= 0)
+            return 0;
+        int allowed = take(given);
+        if (allowed < given)
+            parent.release(given - allowed);
+        bytesUsed.addAndGet(allowed);
+        return allowed;
+    }
+
+    /**
+     * Puts the tokens back into the bucket and releases the bandwidth to
+     * the parent.
+     */
+    public void release(int amount) {
+        if (amount <= 0)
+            return;
+        bytesUsed.addAndGet(-amount);
+        if (!isUnlimited())
+            addTokens(amount);
+        parent.release(amount);
+    }
+
+    /**
+     * Sets the rate of this throttle in bytes per second, use
+     * {@link #UNLIMITED} to only be limited by the parent.
+     */
+    public void setRate(float bytesPerSecond) {
+        rate = Math.max(0, bytesPerSecond);
+        // drop tokens that don't fit a smaller bucket
+        long capacity = capacity();
+        while (true) {
+            long current = tokens.get();
+            if (current <= capacity || tokens.compareAndSet(current, capacity))
+                break;
+        }
+    }
+
+    /** 
+     * Returns the rate of this throttle in bytes per second, for a fair 
+     * child the smaller of its own rate and its current share.
+     */
+    public float getRate() {
+        if (!fairShare)
+            return rate;
+        HierarchicalThrottle owner = (HierarchicalThrottle) parent;
+        float total = owner.getRate();
+        if (total >= MAX_RATE)
+            return rate;
+        return Math.min(rate, total / owner.getSharing());
+    }
+
+    /** Returns whether this throttle only is limited by its parent. */
+    public boolean isUnlimited() {
+        return getRate() >= MAX_RATE;
+    }
+
+    /**
+     * Returns the number of fair children that recently asked for 
+     * bandwidth, at least 1.
+     */
+    public int getSharing() {
+        return Math.max(1, Math.max(lastSharing, sharing.get()));
+    }
+
+    public long nextTickTime() {
+        return parent.nextTickTime();
+    }
+
+    /**
+     * Returns the number of bytes the listeners of this throttle and of
+     * its children were given and didn't release.
+     */
+    public long getBytesUsed() {
+        return bytesUsed.get();
+    }
+
+    /**
+     * Counts the given fair child for the shares of the current window,
+     * unless it already was. The count of a window that just ended is kept
+     * for the next one, so the shares don't jump whenever a window starts;
+     * children that ask in the middle of the switch may not be counted.
+     */
+    private void share(HierarchicalThrottle child) {
+        long window = clock.nanoTime() / (SHARE_MILLIS * 1000000L);
+        if (child.lastWindow == window)
+            return;
+        child.lastWindow = window;
+        long current = shareWindow.get();
+        if (window > current && shareWindow.compareAndSet(current, window)) {
+            int ended = sharing.getAndSet(0);
+            lastSharing = window == current + 1 ? ended : 0;
+        }
+        sharing.incrementAndGet();
+    }
+
+    /** Returns the number of tokens the bucket can hold. */
+    private long capacity() {
+        return capacity(getRate());
+    }
+
+    /** Returns the number of tokens a bucket with the given rate can hold. */
+    private static long capacity(float bytesPerSecond) {
+        if (bytesPerSecond >= MAX_RATE)
+            return Long.MAX_VALUE;
+        if (bytesPerSecond <= 0)
+            return 0;
+        return Math.max(1, (long) (bytesPerSecond * BURST_MILLIS / 1000));
+    }
+
+    /**
+     * Takes up to <tt>max</tt> tokens out of the bucket. Tokens beyond the
+     * capacity, which are left when the share of a fair child shrinks, are
+     * dropped.
+     */
+    private int take(int max) {
+        if (isUnlimited())
+            return max;
+        refill();
+        long capacity = capacity();
+        while (true) {
+            long current = tokens.get();
+            long usable = Math.min(current, capacity);
+            int taken = (int) Math.min(usable, max);
+            if (taken <= 0)
+                return 0;
+            if (tokens.compareAndSet(current, usable - taken))
+                return taken;
+        }
+    }
+
+    /**
+     * Adds the tokens for the time that passed since the last refill. Only
+     * the thread that moves the refill time on adds them, and the time is
+     * only moved on by whole tokens, so no fractions of a token get lost.
+     */
+    private void refill() {
+        float bytesPerSecond = getRate();
+        long now = clock.nanoTime();
+        long last = lastRefill.get();
+        long added = (long) ((now - last) * (double) bytesPerSecond / 1000000000L);
+        if (added <= 0)
+            return;
+        long next;
+        long capacity = capacity(bytesPerSecond);
+        if (added >= capacity) {
+            added = capacity;
+            next = now;
+        } else {
+            next = last + (long) (added * 1000000000d / bytesPerSecond);
+        }
+        if (lastRefill.compareAndSet(last, next))
+            addTokens(added);
+    }
+
+    /** Adds tokens to the bucket, up to its capacity. */
+    private void addTokens(long amount) {
+        long capacity = capacity();
+        while (true) {
+            long current = tokens.get();
+            long updated = Math.min(capacity, current + amount);
+            if (updated <= current || tokens.compareAndSet(current, updated))
+                return;
+        }
+    }
+}
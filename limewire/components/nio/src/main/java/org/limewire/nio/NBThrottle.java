@@ -3,12 +3,14 @@ package org.limewire.nio;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -80,6 +82,17 @@ import java.util.Set;
  * Note that due to the nature of <code>Throttle</code> and {@link NIODispatcher},
  * ready parties may be told to <code>WriteObserver.handleWrite()</code> twice during each 
  * selection event. The latter will always return 0 to a request.
+ * <p>
+ * If the <code>NIODispatcher</code> runs more than one selector loop, each loop
+ * keeps its own requests and interested parties, so listeners are only ever
+ * called on the thread that handles their channel. The bandwidth of every tick
+ * is split evenly between the loops that want some; bandwidth a loop doesn't
+ * claim can be used by the other loops once they all got their share.
+ * <p>
+ * Listeners can interest themselves from any thread without locking, the
+ * requests of a loop are kept in a concurrent set. To limit classes of traffic
+ * or single connections below the rate of the throttle, use a
+ * {@link HierarchicalThrottle} on top of it.
  */
 public class NBThrottle implements Throttle {
     
@@ -105,42 +118,17 @@ public class NBThrottle implements Throttle {
     /** The amount that is available every tick. */
     private volatile int _bytesPerTick;
     
-    /** The amount currently available in this tick. */
-    private volatile int _available;
+    /** The amount of this tick that no loop claimed yet. */
+    private final AtomicInteger _unclaimed = new AtomicInteger();
+    
+    /** The number of the current tick, increased whenever bandwidth is refilled. */
+    private volatile long _tick;
     
     /** The next time a tick should occur. */
     private long _nextTickTime = -1;
     
-    /**
-     * A list of ThrottleListeners that are interested in bandwidthAvailable events.
-     *
-     * As ThrottleListeners interest themselves interest themselves for writing, 
-     * the requests are queued up here.  When bandwidth is available the request is
-     * moved over to 'interested' after informing the ThrottleListener that bandwidth
-     * is available.  New ThrottleListeners should not be added to this if they are
-     * already in interested.
-     */
-    private Set<ThrottleListener> _requests = new HashSet<ThrottleListener>();
-    
-    /**
-     * Attachments that are interested -> ThrottleListener that owns the attachment.
-     *
-     * As new items become interested, they are added to the bottom of the set.
-     * When something is written, so long as it writes > 0, it is removed from the
-     * list (and put back at the bottom).
-     */
-    private Map<Object, ThrottleListener> _interested = new LinkedHashMap<Object, ThrottleListener>();
-    
-    /**
-     * Attachments that are ready-op'd.
-     *
-     * This is temporary per each selectableKeys call, but is cached to avoid regenerating
-     * each time.
-     */
-    private Map<Object, SelectionKey> _ready = new HashMap<Object, SelectionKey>();
-    
-    /** Whether or not we're currently active in the selectableKeys portion. */
-    private boolean _active = false;
+    /** The state of each selector loop, indexed by the loop's index. */
+    private final LoopState[] _loops;
     
     /**
      * Constructs a throttle using the default values for latency and availability.
@@ -184,6 +172,9 @@ public class NBThrottle implements Throttle {
         _write = forWriting;
         _processOp = forWriting ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
         _bytesPerTick = (int)(bytesPerSecond / ticksPerSecond);
+        _loops = new LoopState[NIODispatcher.instance().getLoopCount()];
+        for(int i = 0; i < _loops.length; i++)
+            _loops[i] = new LoopState();
         if(addToDispatcher)
             NIODispatcher.instance().addThrottle(this);
         
@@ -201,19 +192,32 @@ public class NBThrottle implements Throttle {
         _bytesPerTick = (int)(bytesPerSecond / ticksPerSecond);
     }
     
+    /** Returns the state of the loop the current thread runs. */
+    private LoopState current() {
+        return _loops[NIODispatcher.instance().getCurrentLoopIndex()];
+    }
+    
     /**
      * Notification from the NIODispatcher that a bunch of keys are now selectable.
      */
     void selectableKeys(Collection<? extends SelectionKey> keys) {
-        if(_available >= MINIMUM_TO_GIVE && !_interested.isEmpty()) {
+        LoopState state = current();
+        if(state.interested.isEmpty())
+            return;
+        
+        claim(state);
+        if(state.available < MINIMUM_TO_GIVE)
+            borrow(state);
+        
+        if(state.available >= MINIMUM_TO_GIVE) {
             for(Iterator<? extends SelectionKey> i = keys.iterator(); i.hasNext(); ) {
                 SelectionKey key = i.next();
                 try {
                     if(key.isValid() && (_write ? key.isWritable() : key.isReadable())) {
                         Object attachment = NIODispatcher.instance().attachment(key.attachment());
-                        if(_interested.containsKey(attachment)) {
+                        if(state.interested.containsKey(attachment)) {
                             //LOG.debug("Adding: " + attachment + " to ready");
-                            _ready.put(attachment, key);
+                            state.ready.put(attachment, key);
                         }
                     }
                 } catch(CancelledKeyException ignored) {
@@ -223,14 +227,14 @@ public class NBThrottle implements Throttle {
             
             //LOG.trace("Interested: " + _interested.size() + ", ready: " + _ready.size());
             
-            _active = true;
+            state.active = true;
             long now = System.currentTimeMillis();
-            Iterator<Map.Entry<Object, ThrottleListener>> i = _interested.entrySet().iterator();
+            Iterator<Map.Entry<Object, ThrottleListener>> i = state.interested.entrySet().iterator();
             for(; i.hasNext(); ) {
                 Map.Entry<Object, ThrottleListener> next = i.next();
                 ThrottleListener listener = next.getValue();
                 Object attachment = next.getKey();
-                SelectionKey key = _ready.remove(attachment);
+                SelectionKey key = state.ready.remove(attachment);
                 if(!listener.isOpen()) {
                     //LOG.trace("Removing closed but interested party: " + next.getKey());
                     i.remove();
@@ -243,11 +247,15 @@ public class NBThrottle implements Throttle {
                 	} finally {
                 		listener.releaseBandwidth();
                 	}
-                	if (_available < MINIMUM_TO_GIVE)
+                	if (state.available < MINIMUM_TO_GIVE)
+                	    borrow(state);
+                	if (state.available < MINIMUM_TO_GIVE)
                 		break;
                 }
             }
-            _active = false;
+            state.active = false;
+            state.ready.clear();
+            state.waiting = !state.interested.isEmpty();
         }
     }
     
@@ -256,25 +264,25 @@ public class NBThrottle implements Throttle {
      * bandwidth is available.
      */
     public void interest(ThrottleListener writer) {
-        boolean wakeup;
-        synchronized(_requests) {
-            //LOG.debug("Adding: " + writer + " to requests");
-            wakeup = _requests.isEmpty();
-            _requests.add(writer);
-        }
-        if (wakeup || _available >= MINIMUM_TO_GIVE)
-        	NIODispatcher.instance().wakeup();
+        int index = NIODispatcher.instance().getLoopIndex(writer.getAttachment());
+        LoopState state = _loops[index];
+        //LOG.debug("Adding: " + writer + " to requests");
+        boolean wakeup = state.requests.isEmpty();
+        state.requests.add(writer);
+        if (wakeup || state.available >= MINIMUM_TO_GIVE)
+        	NIODispatcher.instance().wakeup(index);
     }
     
     /**
      * Requests some bytes to write.
      */
     public int request() {
-        if(!_active) // failsafe to ensure request only occurs when we want it
+        LoopState state = current();
+        if(!state.active) // failsafe to ensure request only occurs when we want it
             return 0;
         
-        int ret = Math.min(_available, MAXIMUM_TO_GIVE);
-        _available -= ret;
+        int ret = Math.min(state.available, MAXIMUM_TO_GIVE);
+        state.available -= ret;
         return ret;
     }
     
@@ -282,8 +290,9 @@ public class NBThrottle implements Throttle {
      * Releases some unwritten bytes back to the available pool.
      */
     public void release(int amount) {
-        if(_active) // failsafe to ensure releasing only occurs when we want it
-            _available += amount;
+        LoopState state = current();
+        if(state.active) // failsafe to ensure releasing only occurs when we want it
+            state.available += amount;
         //LOG.trace("RETR: " + amount + ", REMAINING: " + _available + ", ALL: " + wroteAll + ", FROM: " + attachment);
     }
     
@@ -304,43 +313,150 @@ public class NBThrottle implements Throttle {
      * tick notifications.
      */
     void tick(long currentTime) {
-        if(currentTime >= _nextTickTime) {
-            _available = _bytesPerTick;
-            _nextTickTime = currentTime + MILLIS_PER_TICK;
-            spreadBandwidth();
-        } else if(_available >= MINIMUM_TO_GIVE) {
-            spreadBandwidth();
+        synchronized(this) {
+            if(currentTime >= _nextTickTime) {
+                _unclaimed.set(_bytesPerTick);
+                _tick++;
+                _nextTickTime = currentTime + MILLIS_PER_TICK;
+            }
         }
+        
+        LoopState state = current();
+        if(!state.hasDemand())
+            return;
+        
+        claim(state);
+        if(state.available < MINIMUM_TO_GIVE)
+            borrow(state);
+        if(state.available >= MINIMUM_TO_GIVE)
+            spreadBandwidth(state);
     }
     
     public long nextTickTime() {
-    	synchronized(_requests) {
-    		if (_requests.isEmpty() && _interested.isEmpty())
-    			return Long.MAX_VALUE;
+        LoopState state = current();
+    	if (!state.hasDemand())
+    	    return Long.MAX_VALUE;
+    	synchronized(this) {
+    	    return _nextTickTime;
     	}
-    	return _nextTickTime;
     }
     
     /**
-     * Notifies all requestors that bandwidth is available.
+     * Gives the loop its share of the current tick, if it didn't get it yet.
+     * The tick is split evenly between the loops that want bandwidth. 
+     * Whatever the loop had left from the last tick is dropped.
      */
-    private void spreadBandwidth() {
-        synchronized(_requests) {
-            if(!_requests.isEmpty()) {
-                for(ThrottleListener req : _requests) {
-                    Object attachment = req.getAttachment();
-                    if(attachment == null)
-                        throw new IllegalStateException("must have an attachment - listener: " + req);
-                    
-                    //LOG.debug("Moving: " + attachment + " from rquests to interested");
-                    if(req.bandwidthAvailable())
-                    	_interested.put(attachment, req);
-                    // else it'll be cleared when we loop later on.
-                }
-                _requests.clear();
+    private void claim(LoopState state) {
+        long tick = _tick;
+        if(state.claimedTick != tick) {
+            state.claimedTick = tick;
+            int sharing = 1;
+            for(int i = 0; i < _loops.length; i++) {
+                if(_loops[i] != state && _loops[i].hasDemand())
+                    sharing++;
             }
+            state.available = take(_bytesPerTick / sharing);
         }
     }
-}
     
+    /**
+     * Gives the loop whatever is left of the current tick, if all other loops
+     * that want bandwidth got their share.
+     */
+    private void borrow(LoopState state) {
+        long tick = _tick;
+        if(state.claimedTick != tick)
+            return;
+        for(int i = 0; i < _loops.length; i++) {
+            LoopState other = _loops[i];
+            if(other != state && other.claimedTick != tick && other.hasDemand())
+                return;
+        }
+        state.available += take(Integer.MAX_VALUE);
+    }
+    
+    /** Takes up to max bytes from the unclaimed bandwidth of this tick. */
+    private int take(int max) {
+        while(true) {
+            int unclaimed = _unclaimed.get();
+            int taken = Math.min(unclaimed, max);
+            if(taken <= 0)
+                return 0;
+            if(_unclaimed.compareAndSet(unclaimed, unclaimed - taken))
+                return taken;
+        }
+    }
+    
+    /**
+     * Notifies all requestors of the loop that bandwidth is available.
+     */
+    private void spreadBandwidth(LoopState state) {
+        // requests that are added while moving them over are either
+        // moved as well or stay for the next time
+        for(Iterator<ThrottleListener> i = state.requests.iterator(); i.hasNext(); ) {
+            ThrottleListener req = i.next();
+            i.remove();
+            Object attachment = req.getAttachment();
+            if(attachment == null)
+                throw new IllegalStateException("must have an attachment - listener: " + req);
+            
+            //LOG.debug("Moving: " + attachment + " from rquests to interested");
+            if(req.bandwidthAvailable())
+                state.interested.put(attachment, req);
+            // else it'll be cleared when we loop later on.
+        }
+        state.waiting = !state.interested.isEmpty();
+    }
     
+    /** 
+     * The requests and interested parties of a single selector loop.
+     * Everything but the requests and the flags is only used by the loop's thread.
+     */
+    private static class LoopState {
+        /**
+         * A list of ThrottleListeners that are interested in bandwidthAvailable events.
+         *
+         * As ThrottleListeners interest themselves interest themselves for writing, 
+         * the requests are queued up here.  When bandwidth is available the request is
+         * moved over to 'interested' after informing the ThrottleListener that bandwidth
+         * is available.  New ThrottleListeners should not be added to this if they are
+         * already in interested.
+         */
+        private final Set<ThrottleListener> requests =
+            Collections.newSetFromMap(new ConcurrentHashMap<ThrottleListener, Boolean>());
+        
+        /**
+         * Attachments that are interested -> ThrottleListener that owns the attachment.
+         *
+         * As new items become interested, they are added to the bottom of the set.
+         * When something is written, so long as it writes > 0, it is removed from the
+         * list (and put back at the bottom).
+         */
+        private final Map<Object, ThrottleListener> interested = new LinkedHashMap<Object, ThrottleListener>();
+        
+        /**
+         * Attachments that are ready-op'd.
+         *
+         * This is temporary per each selectableKeys call, but is cached to avoid regenerating
+         * each time.
+         */
+        private final Map<Object, SelectionKey> ready = new HashMap<Object, SelectionKey>();
+        
+        /** The amount currently available to this loop in this tick. */
+        private volatile int available;
+        
+        /** The tick whose share this loop claimed. */
+        private volatile long claimedTick = -1;
+        
+        /** Whether or not any parties are interested, for other threads. */
+        private volatile boolean waiting;
+        
+        /** Whether or not we're currently active in the selectableKeys portion. */
+        private boolean active = false;
+        
+        /** Whether or not any listener of this loop waits for bandwidth. */
+        boolean hasDemand() {
+            return waiting || !requests.isEmpty();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.limewire.nio;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedSelectorException;
@@ -17,14 +18,19 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,6 +46,7 @@ import org.limewire.nio.observer.Shutdownable;
 import org.limewire.nio.observer.TransportListener;
 import org.limewire.nio.observer.WriteObserver;
 import org.limewire.nio.timeout.ReadTimeout;
+import org.limewire.nio.timeout.Ticker;
 import org.limewire.nio.timeout.TimeoutController;
 import org.limewire.nio.timeout.Timeoutable;
 import org.limewire.service.ErrorService;
@@ -88,15 +95,56 @@ import com.google.inject.Singleton;
  * that Observer will be shutdown and will no longer receive events. If any 
  * <code>IOExceptions</code> occur while handling events for an Observer, 
  * <code>handleIOException</code> is called on that Observer.
+ * <p>
+ * By default everything is dispatched on a single thread. If the system
+ * property {@value #LOOPS_PROPERTY} is set to a number greater than one,
+ * that many selector loops are started (0 starts one loop per processor).
+ * TCP channels are spread over the loops in turn when they are first 
+ * registered for accepting, connecting or nothing at all, and stay on their
+ * loop for their whole lifetime. Everything that runs tasks for such a channel
+ * must use {@link #getScheduledExecutorService(SelectableChannel)} or 
+ * {@link #getScheduledExecutorService(Socket)}, so that all of its events 
+ * and tasks still happen on a single thread. Other channels, such as UDP 
+ * channels and those using a custom selector, are handled by the primary
+ * loop, which also runs the tasks of {@link #getScheduledExecutorService()}.
+ * Code that keeps the state of many sockets confined to that thread, such 
+ * as BitTorrent's torrents and the DAAP server, needs a single loop.
+ * {@link NBThrottle Throttles} are shared by all loops.
  */
 @Singleton
 public class NIODispatcher implements Runnable {
     
     private static final Log LOG = LogFactory.getLog(NIODispatcher.class);
     
+    /** 
+     * The system property holding the number of selector loops to run,
+     * 0 for one per processor.
+     */
+    public static final String LOOPS_PROPERTY = "org.limewire.nio.loops";
+    
     private static final NIODispatcher INSTANCE = new NIODispatcher();
     public static final NIODispatcher instance() { return INSTANCE; }
     private NIODispatcher() {
+        this(null, 0);
+    }
+    
+    /**
+     * Constructs a new selector loop. If <code>primary</code> is null, this
+     * is the primary loop and starts the secondary ones.
+     */
+    private NIODispatcher(NIODispatcher primary, int index) {
+        this.primary = primary == null ? this : primary;
+        this.index = index;
+        if(primary == null) {
+            THROTTLE = new CopyOnWriteArrayList<NBThrottle>();
+            BUFFER_CACHE = new ByteBufferCache();
+            stats = new SelectStats();
+        } else {
+            THROTTLE = primary.THROTTLE;
+            BUFFER_CACHE = primary.BUFFER_CACHE;
+            stats = primary.stats;
+        }
+        
         boolean failed = false;
         try {
             primarySelector = Selector.open();
@@ -105,13 +153,39 @@ public class NIODispatcher implements Runnable {
         }
         
         if(!failed) {
-            dispatchThread = ThreadExecutor.newManagedThread(this, "NIODispatcher");
-            dispatchThread.start();
+            dispatchThread = ThreadExecutor.newManagedThread(this, 
+                    index == 0 ? "NIODispatcher" : "NIODispatcher-" + index);
         } else {
             dispatchThread = null;
         }
         
-        EXECUTOR = new NIOExecutorService(dispatchThread);
+        EXECUTOR = new NIOExecutorService();
+        
+        if(primary == null) {
+            loops = createLoops();
+        } else {
+            loops = new NIODispatcher[] { this };
+        }
+        
+        if(dispatchThread != null)
+            dispatchThread.start();
+    }
+    
+    /** Creates the selector loops, the first of which is this. */
+    private NIODispatcher[] createLoops() {
+        int count = Integer.getInteger(LOOPS_PROPERTY, 1);
+        if(count <= 0)
+            count = Runtime.getRuntime().availableProcessors();
+        List<NIODispatcher> created = new ArrayList<NIODispatcher>(count);
+        created.add(this);
+        for(int i = 1; i < count && dispatchThread != null; i++) {
+            NIODispatcher loop = new NIODispatcher(this, created.size());
+            if(loop.isRunning())
+                created.add(loop);
+        }
+        if(LOG.isDebugEnabled())
+            LOG.debug("Running " + created.size() + " selector loops");
+        return created.toArray(new NIODispatcher[created.size()]);
     }
     
     /**
@@ -129,12 +203,24 @@ public class NIODispatcher implements Runnable {
     /** The thread this is being run on. */
     private final Thread dispatchThread;
     
+    /** The primary loop, this if this is the primary loop. */
+    private final NIODispatcher primary;
+    
+    /** The index of this loop, 0 for the primary loop. */
+    private final int index;
+    
+    /** 
+     * All selector loops, starting with the primary one.
+     * Secondary loops only know about themselves.
+     */
+    private final NIODispatcher[] loops;
+    
     /** Queue lock. */
     private final Object Q_LOCK = new Object();
     
-    /** Stats for the selector */
+    /** Stats for the selector, shared by all loops. */
     @InspectionPoint("nio selector stats")
-    private final SelectStats stats = new SelectStats();
+    private final SelectStats stats;
     
     /** A listener to notify the NIO thread when a selector has a pending event. */
     private final TransportListener TRANSPORT_LISTENER = new MyTransportListener();
@@ -142,6 +228,17 @@ public class NIODispatcher implements Runnable {
     /** An ExecutorService that invokes runnables on the NIO thread. */
     private final ScheduledExecutorService EXECUTOR;
     
+    /** 
+     * The loops of the channels that were assigned to one, only used by 
+     * the primary loop. Weak, since channels are not removed on close.
+     * LOCKING: itself
+     */
+    private final Map<SelectableChannel, NIODispatcher> ASSIGNED_LOOPS = 
+        new WeakHashMap<SelectableChannel, NIODispatcher>();
+    
+    /** The number of channels assigned to loops so far. */
+    private final AtomicInteger assignments = new AtomicInteger();
+    
     /**
      * A map of classes of SelectableChannels to the Selector that should
      * be used to register that channel with.
@@ -149,6 +246,14 @@ public class NIODispatcher implements Runnable {
     private final Map<Class<? extends SelectableChannel>, Selector> OTHER_SELECTORS =
         new HashMap<Class<? extends SelectableChannel>, Selector>();
     
+    /**
+     * The classes of channels that use a custom selector, readable from any
+     * thread so they can be routed to the primary loop while the selector
+     * itself is still being registered.
+     */
+    private final Set<Class<? extends SelectableChannel>> CUSTOM_CHANNELS =
+        new CopyOnWriteArraySet<Class<? extends SelectableChannel>>();
+    
     /** A list of other Selectors that should be polled. */
     private final List <Selector> POLLERS = new ArrayList<Selector>();
     
@@ -158,17 +263,20 @@ public class NIODispatcher implements Runnable {
     /** A queue of DelayedRunnables to process tasks. */
     private final BlockingQueue<ScheduledFutureTask> DELAYED = new DelayQueue<ScheduledFutureTask>();
     
-    /** The throttle queue. */
-    private final List <NBThrottle> THROTTLE = new ArrayList<NBThrottle>();
+    /** The throttle queue, shared by all loops. */
+    private final List <NBThrottle> THROTTLE;
     
     /** The timeout manager. */
     private final TimeoutController TIMEOUTER = new TimeoutController();
     
+    /** Timers that are ticked by this loop. */
+    private final List<Ticker> TICKERS = new CopyOnWriteArrayList<Ticker>();
+    
     /**
      * A common ByteBufferCache that classes can use.
      * TODO: Move somewhere else.
      */
-    private final ByteBufferCache BUFFER_CACHE = new ByteBufferCache();
+    private final ByteBufferCache BUFFER_CACHE;
     
     /** The selector this uses. */
     private Selector primarySelector = null;
@@ -187,9 +295,110 @@ public class NIODispatcher implements Runnable {
         return dispatchThread != null;
     }
 	
-	/** Determine if this is the dispatch thread. */
+	/** Determine if this is the dispatch thread of any selector loop. */
 	public boolean isDispatchThread() {
-	    return Thread.currentThread() == dispatchThread;
+	    return getCurrentLoop() != null;
+	}
+	
+	/** Returns the number of selector loops. */
+	public int getLoopCount() {
+	    return primary.loops.length;
+	}
+	
+	/** Returns the loop the current thread runs, null if it isn't a NIO thread. */
+	private NIODispatcher getCurrentLoop() {
+	    Thread current = Thread.currentThread();
+	    NIODispatcher[] all = primary.loops;
+	    for(int i = 0; i < all.length; i++) {
+	        if(all[i].dispatchThread == current)
+	            return all[i];
+	    }
+	    return null;
+	}
+	
+	/** 
+	 * Returns the index of the loop the current thread runs, 0 if it 
+	 * isn't a NIO thread.
+	 */
+	int getCurrentLoopIndex() {
+	    if(primary.loops.length == 1)
+	        return 0;
+	    NIODispatcher loop = getCurrentLoop();
+	    return loop == null ? 0 : loop.index;
+	}
+	
+	/** Returns the loop that handles events for the given channel. */
+	private NIODispatcher loopFor(SelectableChannel channel) {
+	    if(primary.loops.length == 1)
+	        return primary;
+	    NIODispatcher loop;
+	    synchronized(primary.ASSIGNED_LOOPS) {
+	        loop = primary.ASSIGNED_LOOPS.get(channel);
+	    }
+	    return loop == null ? primary : loop;
+	}
+	
+	/**
+	 * Assigns the given channel to one of the selector loops, unless it
+	 * already has one. TCP channels are assigned automatically by 
+	 * {@link #register(SelectableChannel, IOErrorObserver)}, 
+	 * {@link #registerAccept(SelectableChannel, AcceptChannelObserver)} and
+	 * {@link #registerConnect(SelectableChannel, ConnectObserver, int)}, so
+	 * this only needs to be called to find out the loop's executor earlier.
+	 * All tasks for the channel must be run with 
+	 * {@link #getScheduledExecutorService(SelectableChannel)} from then on,
+	 * since they may not run on the thread of 
+	 * {@link #getScheduledExecutorService()}. Does nothing if only one loop
+	 * is running or the channel's class uses a custom selector.
+	 * 
+	 * @return the executor that runs tasks on the channel's loop
+	 */
+	public ScheduledExecutorService assignToLoop(SocketChannel channel) {
+	    return assign(channel).EXECUTOR;
+	}
+	
+	/** 
+	 * Returns the loop that handles events for the given channel, picking
+	 * the next one in turn if it is a TCP channel that has none yet.
+	 */
+	private NIODispatcher assign(SelectableChannel channel) {
+	    NIODispatcher[] all = primary.loops;
+	    if(all.length == 1 
+	            || !(channel instanceof SocketChannel || channel instanceof ServerSocketChannel)
+	            || primary.CUSTOM_CHANNELS.contains(channel.getClass()))
+	        return primary;
+	    synchronized(primary.ASSIGNED_LOOPS) {
+	        NIODispatcher loop = primary.ASSIGNED_LOOPS.get(channel);
+	        if(loop == null) {
+	            loop = all[(primary.assignments.getAndIncrement() & 0x7FFFFFFF) % all.length];
+	            primary.ASSIGNED_LOOPS.put(channel, loop);
+	        }
+	        return loop;
+	    }
+	}
+	
+	/** 
+	 * Returns the loop that handles the channel of the given observer if it 
+	 * is a socket, null otherwise.
+	 */
+	private NIODispatcher loopFor(Object observer) {
+	    if(observer instanceof Socket) {
+	        SelectableChannel channel = ((Socket)observer).getChannel();
+	        if(channel != null)
+	            return loopFor(channel);
+	    }
+	    return null;
+	}
+	
+	/** 
+	 * Returns the index of the loop that handles events for the given 
+	 * observer, 0 if the observer isn't tied to a channel.
+	 */
+	int getLoopIndex(Object observer) {
+	    if(primary.loops.length == 1)
+	        return 0;
+	    NIODispatcher loop = loopFor(observer);
+	    return loop == null ? 0 : loop.index;
 	}
     
     /** Gets the common <code>ByteBufferCache</code>. */
@@ -205,30 +414,37 @@ public class NIODispatcher implements Runnable {
 	/** Adds a <code>Throttle</code> into the throttle requesting loop. */
 	// TODO: have some way to remove Throttles, or make these use WeakReferences
 	public void addThrottle(final NBThrottle t) {
-        if(Thread.currentThread() == dispatchThread)
-            THROTTLE.add(t);
-        else {
-            executeLaterAlways(new Runnable() {
-                public void run() {
-                    THROTTLE.add(t);
-                }
-            });
-        }
+        THROTTLE.add(t);
     }
+	
+	/** 
+	 * Adds a <code>Ticker</code> that is ticked by the primary loop. The
+	 * ticker must call {@link #wakeup()} when it is given something that is
+	 * due before the time it last returned from {@link Ticker#nextTickTime()}.
+	 */
+	public void addTicker(Ticker ticker) {
+	    primary.TICKERS.add(ticker);
+	    primary.wakeup();
+	}
+	
+	/** Removes a <code>Ticker</code>. */
+	public void removeTicker(Ticker ticker) {
+	    primary.TICKERS.remove(ticker);
+	}
     
     /** Registers a channel for nothing. */
     public void register(SelectableChannel channel, IOErrorObserver attachment) {
-        register(channel, attachment, 0, 0);
+        assign(channel).register(channel, attachment, 0, 0);
     }
 	    
     /** Register interest in accepting */
     public void registerAccept(SelectableChannel channel, AcceptChannelObserver attachment) {
-        register(channel, attachment, SelectionKey.OP_ACCEPT, 0);
+        assign(channel).register(channel, attachment, SelectionKey.OP_ACCEPT, 0);
     }
     
     /** Register interest in connecting */
     public void registerConnect(SelectableChannel channel, ConnectObserver attachment, int timeout) {
-        register(channel, attachment, SelectionKey.OP_CONNECT, timeout);
+        assign(channel).register(channel, attachment, SelectionKey.OP_CONNECT, timeout);
     }
     
     /** Register interest in reading. */
@@ -248,6 +464,12 @@ public class NIODispatcher implements Runnable {
     
     /** Register interest. */
     private void register(SelectableChannel channel, IOErrorObserver handler, int op, int timeout) {
+        NIODispatcher loop = loopFor(channel);
+        if(loop != this) {
+            loop.register(channel, handler, op, timeout);
+            return;
+        }
+        
 		if(Thread.currentThread() == dispatchThread) {
 		    registerImpl(getSelectorFor(channel), channel, op, handler, timeout);
 		} else {
@@ -284,6 +506,12 @@ public class NIODispatcher implements Runnable {
     
     /** Registers interest on the channel for the given <code>op</code> */
     private void interest(SelectableChannel channel, int op, boolean on) {
+        NIODispatcher loop = loopFor(channel);
+        if(loop != this) {
+            loop.interest(channel, op, on);
+            return;
+        }
+        
         try {
             Selector sel = getSelectorFor(channel);
 			SelectionKey sk = channel.keyFor(sel);
@@ -339,11 +567,12 @@ public class NIODispatcher implements Runnable {
      * registered.
      */
     public void registerSelector(final Selector newSelector, final Class<? extends SelectableChannel> channelClass) {
+        CUSTOM_CHANNELS.add(channelClass);
         if(Thread.currentThread() == dispatchThread) {
             POLLERS.add(newSelector);
             OTHER_SELECTORS.put(channelClass, newSelector);
         } else {
-            executeLaterAlways(new Runnable() {
+            invokeLater(new Runnable() {
                 public void run() {
                     POLLERS.add(newSelector);
                     OTHER_SELECTORS.put(channelClass, newSelector);
@@ -360,7 +589,7 @@ public class NIODispatcher implements Runnable {
             POLLERS.remove(selector);
             OTHER_SELECTORS.remove(selector);
         } else {
-            executeLaterAlways(new Runnable() {
+            invokeLater(new Runnable() {
                 public void run() {
                     POLLERS.remove(selector);
                     OTHER_SELECTORS.remove(selector);
@@ -376,13 +605,59 @@ public class NIODispatcher implements Runnable {
      * the task will be immediately run. Otherwise,
      * the tasks will be scheduled for running as soon as possible on the
      * NIO Thread.
+     * <p>
+     * If more than one selector loop is running, the tasks run on the 
+     * primary loop, no matter which thread submits them. Use
+     * {@link #getScheduledExecutorService(SelectableChannel)} for tasks 
+     * that must run on the same thread as the events of a TCP channel.
      */
     public ScheduledExecutorService getScheduledExecutorService() {
-        return EXECUTOR;
+        return primary.EXECUTOR;
+    }
+    
+    /**
+     * Retrieves the <code>ExecutorService</code> that runs things on the
+     * NIO thread that handles events for the given channel.
+     */
+    public ScheduledExecutorService getScheduledExecutorService(SelectableChannel channel) {
+        return loopFor(channel).EXECUTOR;
+    }
+    
+    /**
+     * Retrieves the <code>ExecutorService</code> that runs things on the
+     * NIO thread that handles events for the given socket, or the one of 
+     * {@link #getScheduledExecutorService()} if the socket has no channel.
+     */
+    public ScheduledExecutorService getScheduledExecutorService(Socket socket) {
+        return getExecutorFor(socket);
+    }
+    
+    /**
+     * Retrieves the <code>ExecutorService</code> that runs things on the
+     * NIO thread that handles events for the given observer if it is a
+     * socket, or the one of {@link #getScheduledExecutorService()} otherwise.
+     */
+    ScheduledExecutorService getExecutorFor(Object observer) {
+        NIODispatcher loop = loopFor(observer);
+        return loop == null ? primary.EXECUTOR : loop.EXECUTOR;
     }
     
     /** Submits the runnable for execution later, even if the current thread is the NIO thread. */
     public void executeLaterAlways(Runnable runner) {
+        invokeLater(runner);
+    }
+    
+    /** 
+     * Submits the runnable for execution later on the NIO thread that 
+     * handles events for the given channel, even if the current thread is 
+     * that thread.
+     */
+    public void executeLaterAlways(SelectableChannel channel, Runnable runner) {
+        loopFor(channel).invokeLater(runner);
+    }
+    
+    /** Queues the runnable for execution on this loop's thread. */
+    private void invokeLater(Runnable runner) {
         synchronized(Q_LOCK) {
             LATER.add(runner);
         }
@@ -510,7 +785,7 @@ public class NIODispatcher implements Runnable {
         
         DELAYED.drainTo(localLater);
         
-        if(now > lastCacheClearTime + CACHE_CLEAR_INTERVAL) {
+        if(primary == this && now > lastCacheClearTime + CACHE_CLEAR_INTERVAL) {
             BUFFER_CACHE.clearCache();
             lastCacheClearTime = now;
         }
@@ -526,6 +801,18 @@ public class NIODispatcher implements Runnable {
             }
         }
         
+        now = System.currentTimeMillis();
+        for(Ticker ticker : TICKERS) {
+            if(ticker.nextTickTime() <= now) {
+                try {
+                    ticker.tick(now);
+                } catch(Throwable t) {
+                    LOG.error(t);
+                    ErrorService.error(t);
+                }
+            }
+        }
+        
         now = System.currentTimeMillis();
         for(NBThrottle t: THROTTLE)
             t.tick(now);
@@ -584,13 +871,18 @@ public class NIODispatcher implements Runnable {
      * Wakes up the primary selector if it wasn't already woken up,
      * and the current thread is not the dispatch thread.
      */
-    void wakeup() {
+    public void wakeup() {
         if(!wokeup && Thread.currentThread() != dispatchThread) {
             wokeup = true;
             primarySelector.wakeup();
         }
     }
     
+    /** Wakes up the selector of the loop with the given index. */
+    void wakeup(int loopIndex) {
+        primary.loops[loopIndex].wakeup();
+    }
+    
     /**
      * The actual NIO run loop.
      */
@@ -709,6 +1001,12 @@ public class NIODispatcher implements Runnable {
     	if (next <= 0)
     		return 0;
     	
+    	// then check when the next timer is due
+    	for (Ticker ticker : TICKERS)
+    	    next = Math.min(next, ticker.nextTickTime() - now);
+    	if (next <= 0)
+    	    return 0;
+    	
     	// then check when the next timeout is due
     	long timeout = TIMEOUTER.getNextExpireTime();
     	if (timeout > -1)
@@ -731,6 +1029,10 @@ public class NIODispatcher implements Runnable {
      * This must be called from the NIODispatch thread to have any meaningful impact.
      */
     boolean isReadReadyThisIteration(SelectableChannel channel) {
+        NIODispatcher loop = loopFor(channel);
+        if(loop != this)
+            return loop.isReadReadyThisIteration(channel);
+        
         SelectionKey sk = channel.keyFor(getSelectorFor(channel));
         Object proxyAttachment = sk.attachment();
         if(proxyAttachment instanceof Attachment) {
@@ -753,6 +1055,10 @@ public class NIODispatcher implements Runnable {
      */
     void process(long now, SelectionKey sk, Object proxyAttachment, int allowedOps) {
         Attachment proxy = (Attachment)proxyAttachment;
+        if(proxy.getDispatcher() != this) {
+            proxy.getDispatcher().process(now, sk, proxyAttachment, allowedOps);
+            return;
+        }
         IOErrorObserver attachment = proxy.attachment;
         
         // NOTE: handled is updated in proxy to prevent items that were processed
@@ -1000,6 +1306,11 @@ public class NIODispatcher implements Runnable {
         public void setKey(SelectionKey key) {
             this.key = key;
         }
+        
+        /** Returns the loop whose selector this is attached to. */
+        NIODispatcher getDispatcher() {
+            return NIODispatcher.this;
+        }
     }    
     
     /** Encapsulates a register op. */
@@ -1031,12 +1342,7 @@ public class NIODispatcher implements Runnable {
     }
     
     /** An ExecutorService that runs all tasks on the NIODispatch thread. */
-    private static class NIOExecutorService extends AbstractExecutorService implements ScheduledExecutorService {
-        private final Thread nioThread;
-        
-        private NIOExecutorService(Thread nioThread) {
-            this.nioThread = nioThread;
-        }
+    private class NIOExecutorService extends AbstractExecutorService implements ScheduledExecutorService {
         
         public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
             Thread.sleep(unit.toMillis(timeout));
@@ -1060,24 +1366,24 @@ public class NIODispatcher implements Runnable {
         }
 
         public void execute(Runnable command) {
-            if(Thread.currentThread() == nioThread) {
+            if(Thread.currentThread() == dispatchThread) {
                 command.run();
             } else {
-                instance().executeLaterAlways(command);
+                invokeLater(command);
             }
         }
 
         public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
            ScheduledFutureTask<?> ret = new ScheduledFutureTask<Void>(command, null, unit.toNanos(delay));
-           instance().DELAYED.add(ret);
-           instance().wakeup();
+           DELAYED.add(ret);
+           wakeup();
            return ret;
         }
 
         public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
             ScheduledFutureTask<V> ret = new ScheduledFutureTask<V>(callable, unit.toNanos(delay));
-            instance().DELAYED.add(ret);
-            instance().wakeup();
+            DELAYED.add(ret);
+            wakeup();
             return ret;
         }
 
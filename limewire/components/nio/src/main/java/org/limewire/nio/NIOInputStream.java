@@ -150,7 +150,7 @@ class NIOInputStream implements ChannelReadObserver, InterestScatteringByteChann
     void readHappening() {
         synchronized(bufferLock) {
             if(lastFilled) {
-                NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+                NIODispatcher.instance().getExecutorFor(shutdownHandler).execute(new Runnable() {
                     public void run() {
                         try {
                             handleRead();
@@ -177,7 +177,7 @@ class NIOInputStream implements ChannelReadObserver, InterestScatteringByteChann
             source.shutdown();
         
         if(buffer != null) {
-            NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+            NIODispatcher.instance().getExecutorFor(shutdownHandler).execute(new Runnable() {
                 public void run() {
                     NIODispatcher.instance().getBufferCache().release(buffer);
                 }
@@ -105,7 +105,7 @@ class NIOOutputStream implements WriteObserver {
             sink.shutdown();
         
         if(buffer != null) {
-            NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+            NIODispatcher.instance().getExecutorFor(handler).execute(new Runnable() {
                 public void run() {
                     NIODispatcher.instance().getBufferCache().release(buffer);
                 }
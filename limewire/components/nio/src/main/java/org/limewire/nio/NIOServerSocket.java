@@ -189,7 +189,7 @@ public class NIOServerSocket extends ServerSocket implements AcceptChannelObserv
         if(VersionUtils.isJavaVersionOrAbove("1.5.0_10") || NIODispatcher.instance().isDispatchThread()) {
             exception = shutdownSocketAndChannels();
         } else {
-            Future<IOException> future = NIODispatcher.instance().getScheduledExecutorService()
+            Future<IOException> future = NIODispatcher.instance().getScheduledExecutorService(channel)
                 .submit(new Callable<IOException>() {
                     public IOException call() {
                         return shutdownSocketAndChannels();
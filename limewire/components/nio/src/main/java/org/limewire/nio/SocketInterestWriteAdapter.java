@@ -2,8 +2,10 @@ package org.limewire.nio;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 
+import org.limewire.nio.channel.FileTransferChannel;
 import org.limewire.nio.channel.InterestWritableByteChannel;
 import org.limewire.nio.observer.Shutdownable;
 import org.limewire.nio.observer.WriteObserver;
@@ -12,9 +14,11 @@ import org.limewire.nio.observer.WriteObserver;
  * Adapter that forwards InterestWriteChannel.interest(..)
  * calls on to NIODispatcher, as well as forwarding handleWrite
  * events to the last party that was interested.  All WritableByteChannel
- * calls are delegated to the SocketChannel.
+ * calls are delegated to the SocketChannel.  File transfers go straight
+ * to the SocketChannel as well, so the operating system can send the file
+ * without copying it.
  */
-class SocketInterestWriteAdapter implements InterestWritableByteChannel {
+class SocketInterestWriteAdapter implements InterestWritableByteChannel, FileTransferChannel {
     
     /** the last party that was interested.  null if none. */
     private volatile WriteObserver interested;
@@ -33,6 +37,16 @@ class SocketInterestWriteAdapter implements InterestWritableByteChannel {
         return channel.write(buffer);
     }
     
+    /** Always true, the SocketChannel can take file transfers. */
+    public boolean canTransferFile() {
+        return true;
+    }
+    
+    /** Transfers the file region to the underlying SocketChannel, returning the amount written. */
+    public long transferFile(FileChannel source, long position, long count) throws IOException {
+        return source.transferTo(position, count, channel);
+    }
+    
     /** Closes the SocketChannel */
     public void close() throws IOException {
         channel.close();
@@ -23,7 +23,7 @@ public class DelayedBufferWriter implements ChannelWriter, InterestWritableByteC
     private static final Log LOG = LogFactory.getLog(DelayedBufferWriter.class);
 
     /** The default delay time to use before forcing a flush */
-    private final static int DEFAULT_DELAY = 200;
+    public final static int DEFAULT_DELAY = 200;
    
     /** The channel to write to & interest on. */    
     private volatile InterestWritableByteChannel sink;
@@ -56,7 +56,13 @@ public class DelayedBufferWriter implements ChannelWriter, InterestWritableByteC
     	this(size, delay, NIODispatcher.instance().getScheduledExecutorService());
     }
     
-    DelayedBufferWriter(int size, long delay, ScheduledExecutorService scheduler) {
+    /** 
+     * Constructs a new <code>DelayedBufferWriter</code> whose buffer is the
+     * given size and delay, and whose flushes are scheduled on the given
+     * executor, which must run tasks on the thread that handles the events
+     * of the underlying channel.
+     */
+    public DelayedBufferWriter(int size, long delay, ScheduledExecutorService scheduler) {
     	buf = ByteBuffer.allocate(size);
     	this.delay = TimeUnit.MILLISECONDS.toNanos(delay);
     	this.interester = new Periodic(
@@ -0,0 +1,35 @@
+package org.limewire.nio.channel;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Defines an interface for a channel that can send the contents of a file
+ * to the network without copying them through a buffer first, using
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * <p>
+ * Channels that change the data on its way to the socket, like TLS or
+ * compression, can't do that. A channel that only passes the data on
+ * implements this interface and asks the next channel in the chain.
+ */
+public interface FileTransferChannel {
+
+    /**
+     * Returns true, if {@link #transferFile(FileChannel, long, long)} can
+     * currently be used. This can change when the chain of channels
+     * changes.
+     */
+    public boolean canTransferFile();
+
+    /**
+     * Transfers up to <code>count</code> bytes of <code>source</code>
+     * starting at <code>position</code>, returning the number of bytes
+     * transferred, which may be 0 if the channel can't take any data right
+     * now.
+     *
+     * @throws IllegalStateException if {@link #canTransferFile()} returns
+     *         false
+     */
+    public long transferFile(FileChannel source, long position, long count) throws IOException;
+
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
 
+import org.limewire.nio.HierarchicalThrottle;
 import org.limewire.nio.RequiresSelectionKeyAttachment;
 import org.limewire.nio.Throttle;
 import org.limewire.nio.ThrottleListener;
@@ -15,6 +16,10 @@ import org.limewire.util.BufferUtils;
  * Reads data from a channel. The data is controlled by a {@link Throttle}; to 
  * work with the <code>Throttle</code>, <code>ThrottleReader</code> uses an 
  * attachment.
+ * <p>
+ * To share the bandwidth of a throttle between classes of traffic, use a
+ * {@link HierarchicalThrottle} on top of it. The reader then gets a
+ * {@link HierarchicalThrottle#createChild() fair share} of its class.
  */
 public class ThrottleReader implements InterestReadableByteChannel, ChannelReader, RequiresSelectionKeyAttachment {
     
@@ -50,11 +55,16 @@ public class ThrottleReader implements InterestReadableByteChannel, ChannelReade
      * channel.
      */
     public ThrottleReader(Throttle throttle, InterestReadableByteChannel channel) {
-        this.throttle = throttle;
+        this.throttle = HierarchicalThrottle.forConnection(throttle);
         this.channel = channel;
         this.throttleListener = new Listener();
     }
     
+    /** Returns the throttle of this' connection. */
+    public Throttle getThrottle() {
+        return throttle;
+    }
+    
     /** Retrieves the channel. */
     public InterestReadableByteChannel getReadChannel() {
         return channel;
@@ -3,7 +3,10 @@ package org.limewire.nio.channel;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledExecutorService;
 
+import org.limewire.nio.HierarchicalThrottle;
 import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.RequiresSelectionKeyAttachment;
 import org.limewire.nio.Throttle;
@@ -13,9 +16,15 @@ import org.limewire.nio.observer.WriteObserver;
 
 /**
  * Writes data to a channel. The data writes are controlled by a {@link 
- * Throttle}.
+ * Throttle}. File transfers are passed on to the sink if it supports them,
+ * and are limited by the throttle just like writes.
+ * <p>
+ * To share the bandwidth of a throttle between classes of traffic, use a
+ * {@link HierarchicalThrottle} on top of it. The writer then gets a
+ * {@link HierarchicalThrottle#createChild() fair share} of its class.
  */
-public class ThrottleWriter implements ChannelWriter, InterestWritableByteChannel, RequiresSelectionKeyAttachment {
+public class ThrottleWriter implements ChannelWriter, InterestWritableByteChannel, RequiresSelectionKeyAttachment,
+        FileTransferChannel {
     
     //private static final Log LOG = LogFactory.getLog(ThrottleWriter.class);
     
@@ -33,6 +42,9 @@ public class ThrottleWriter implements ChannelWriter, InterestWritableByteChanne
     
     private final Listener throttleListener;
     
+    /** The executor of the NIO thread that handles this' events. */
+    private final ScheduledExecutorService executor;
+    
     /**
      * Constructs a <code>ThrottleWriter</code> with the given 
      * <code>Throttle</code>.
@@ -50,11 +62,27 @@ public class ThrottleWriter implements ChannelWriter, InterestWritableByteChanne
      * and channel.
      */
     public ThrottleWriter(Throttle throttle, InterestWritableByteChannel channel) {
-        this.throttle = throttle;
+        this(throttle, channel, NIODispatcher.instance().getScheduledExecutorService());
+    }
+    
+    /**
+     * Constructs a new <code>ThrottleWriter</code> whose interest changes
+     * are run on the given executor, which must run tasks on the thread
+     * that handles the events of the underlying channel.
+     */
+    public ThrottleWriter(Throttle throttle, InterestWritableByteChannel channel,
+            ScheduledExecutorService executor) {
+        this.executor = executor;
+        this.throttle = HierarchicalThrottle.forConnection(throttle);
         this.channel = channel;
         throttleListener = new Listener();
     }
     
+    /** Returns the throttle of this' connection. */
+    public Throttle getThrottle() {
+        return throttle;
+    }
+    
     /** Retrieves the sink. */
     public InterestWritableByteChannel getWriteChannel() {
         return channel;
@@ -120,6 +148,36 @@ public class ThrottleWriter implements ChannelWriter, InterestWritableByteChanne
         return totalWrote;
     }
     
+    /** Returns true if the sink can take file transfers. */
+    public boolean canTransferFile() {
+        InterestWritableByteChannel chain = channel;
+        return chain instanceof FileTransferChannel
+                && ((FileTransferChannel)chain).canTransferFile();
+    }
+    
+    /**
+     * Transfers the file region to the chain.
+     * <p>
+     * Only transfers up to 'available' amount of data.
+     */
+    public long transferFile(FileChannel source, long position, long count) throws IOException {
+        if(!canTransferFile())
+            throw new IllegalStateException("chain can't transfer files");
+        FileTransferChannel chain = (FileTransferChannel)channel;
+        
+        // throttling is disabled, just forward to underlying channel
+        if (throttle == null) {
+            return chain.transferFile(source, position, count);
+        }
+        
+        if(available == 0)
+            return 0;
+        
+        long totalWrote = chain.transferFile(source, position, Math.min(count, available));
+        available -= totalWrote;
+        return totalWrote;
+    }
+    
     /** Closes the underlying channel. */
     public void close() throws IOException {
         Channel source = channel;
@@ -180,7 +238,7 @@ public class ThrottleWriter implements ChannelWriter, InterestWritableByteChanne
     }
  
     public void setThrottle(final Throttle throttle) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 setThrottleInternal(throttle);
             }
@@ -190,10 +248,10 @@ public class ThrottleWriter implements ChannelWriter, InterestWritableByteChanne
     protected void setThrottleInternal(Throttle throttle) {
         throttleListener.releaseBandwidth();
         
-        this.throttle = throttle;
+        this.throttle = HierarchicalThrottle.forConnection(throttle);
         
-        if (throttle != null) {
-            throttle.interest(throttleListener);
+        if (this.throttle != null) {
+            this.throttle.interest(throttleListener);
         } else if (channel != null) {
             channel.interestWrite(this, true);
         }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,11 +38,26 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
     /** Whether or not we've shutdown this handshaker. */
     private volatile boolean shutdown;
     
+    /** The executor of the NIO thread that handles this' events. */
+    private final ScheduledExecutorService executor;
+    
     public IOStateMachine(IOStateObserver observer, List<IOState> states) {
         this(observer, states, 2048);
     }
 
     public IOStateMachine(IOStateObserver observer, List<IOState> states, int bufferSize) {
+        this(observer, states, bufferSize, NIODispatcher.instance().getScheduledExecutorService());
+    }
+    
+    /**
+     * Creates a state machine whose states are added and whose buffer is 
+     * released on the given executor, which must run tasks on the thread
+     * that handles the events of the channel this is attached to, see
+     * {@link NIODispatcher#getScheduledExecutorService(java.net.Socket)}.
+     */
+    public IOStateMachine(IOStateObserver observer, List<IOState> states, int bufferSize,
+            ScheduledExecutorService executor) {
+        this.executor = executor;
         this.observer = observer;
         this.states = states;
         this.readBuffer = NIODispatcher.instance().getBufferCache().getHeap(bufferSize);
@@ -53,7 +69,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
      * Adds a new state to process.
      */
     public void addState(final IOState newState) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding single state: " + newState);
@@ -69,7 +85,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
      * Adds a collection of new states to process.
      */
     public void addStates(final List<? extends IOState> newStates) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding multiple states: " + newStates);
@@ -84,7 +100,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
      * Adds an array of new states to process.
      */
     public void addStates(final IOState... newStates) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding multiple states...");
@@ -288,7 +304,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
         // This must be done on the NIO thread, else the NIO thread could
         // currently be processing this buffer, and things may continue to
         // process it after we release it.
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
                 NIODispatcher.instance().getBufferCache().release(readBuffer);
             }
@@ -0,0 +1,17 @@
+package org.limewire.nio.timeout;
+
+/**
+ * Defines the interface for timers that are run by a selector loop, see
+ * {@link org.limewire.nio.NIODispatcher#addTicker(Ticker)}.
+ */
+public interface Ticker {
+
+    /**
+     * Returns the time in milliseconds at which {@link #tick(long)} should
+     * be called next, <code>Long.MAX_VALUE</code> if nothing is due.
+     */
+    public long nextTickTime();
+
+    /** Runs everything that is due at <code>now</code>. */
+    public void tick(long now);
+}
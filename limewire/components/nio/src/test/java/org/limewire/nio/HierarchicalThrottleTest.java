@@ -0,0 +1,252 @@
+package org.limewire.nio;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.Test;
+
+import org.limewire.nio.channel.ThrottleReader;
+import org.limewire.nio.channel.ThrottleWriter;
+import org.limewire.nio.observer.StubReadWriteObserver;
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.Clock;
+import org.limewire.util.PrivilegedAccessor;
+
+public class HierarchicalThrottleTest extends BaseTestCase {
+
+    private StubClock clock;
+
+    private StubThrottle parent;
+
+    public HierarchicalThrottleTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(HierarchicalThrottleTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        clock = new StubClock();
+        parent = new StubThrottle();
+    }
+
+    public void testLimitsToRate() throws Exception {
+        // 4000 bytes per second save up to 1000 bytes
+        HierarchicalThrottle throttle = new HierarchicalThrottle(parent, 4000, clock);
+        parent.available = 5000;
+        assertEquals(1000, throttle.request());
+        assertEquals(1000, parent.requested - parent.released);
+
+        assertEquals(0, throttle.request());
+        assertEquals(1000, parent.requested - parent.released);
+
+        // 100 milliseconds are worth 400 bytes
+        clock.nanos += 100 * 1000 * 1000;
+        assertEquals(400, throttle.request());
+        assertEquals(1400, throttle.getBytesUsed());
+
+        // the bucket doesn't fill up beyond its capacity
+        clock.nanos += 10L * 1000 * 1000 * 1000;
+        assertEquals(1000, throttle.request());
+        assertEquals(0, throttle.request());
+    }
+
+    public void testFractionsAreNotLost() throws Exception {
+        HierarchicalThrottle throttle = new HierarchicalThrottle(parent, 1000, clock);
+        parent.available = 10000;
+        assertEquals(250, throttle.request());
+        for (int i = 0; i < 10; i++) {
+            clock.nanos += 1500 * 1000; // 1.5 bytes
+            throttle.request();
+        }
+        assertEquals(265, throttle.getBytesUsed());
+    }
+
+    public void testReleaseReturnsTokens() throws Exception {
+        HierarchicalThrottle throttle = new HierarchicalThrottle(parent, 4000, clock);
+        parent.available = 600;
+        assertEquals(600, throttle.request());
+        throttle.release(100);
+        assertEquals(100, parent.released);
+        assertEquals(500, throttle.getBytesUsed());
+
+        parent.available = 1000;
+        assertEquals(500, throttle.request());
+        assertEquals(1000, throttle.getBytesUsed());
+    }
+
+    public void testChildren() throws Exception {
+        HierarchicalThrottle torrents = new HierarchicalThrottle(parent, 8000, clock);
+        HierarchicalThrottle first = torrents.createChild(4000);
+        HierarchicalThrottle second = torrents.createChild(HierarchicalThrottle.UNLIMITED);
+        assertSame(torrents, first.getParent());
+        assertTrue(second.isUnlimited());
+
+        parent.available = 5000;
+        assertEquals(1000, first.request());
+        assertEquals(1000, second.request());
+        // the class is empty now, so the connection gets nothing either
+        assertEquals(0, second.request());
+        assertEquals(2000, torrents.getBytesUsed());
+        assertEquals(2000, parent.requested - parent.released);
+
+        second.release(500);
+        assertEquals(1500, torrents.getBytesUsed());
+        assertEquals(500, first.request() + second.request());
+    }
+
+    public void testFairChildrenShareTheRate() throws Exception {
+        HierarchicalThrottle torrents = new HierarchicalThrottle(parent, 8000, clock);
+        HierarchicalThrottle first = torrents.createChild();
+        HierarchicalThrottle second = torrents.createChild();
+        assertSame(torrents, first.getParent());
+        parent.available = 10000;
+
+        // alone, a child may take the whole class
+        assertEquals(8000, first.getRate(), 0);
+        assertEquals(1400, first.request());
+        assertEquals(600, first.request());
+        assertEquals(0, first.request());
+
+        // once the other one asks as well, each gets half of the class
+        clock.nanos += 250L * 1000 * 1000;
+        assertEquals(1000, second.request());
+        assertEquals(2, torrents.getSharing());
+        assertEquals(4000, first.getRate(), 0);
+        assertEquals(4000, second.getRate(), 0);
+        clock.nanos += 250L * 1000 * 1000;
+        assertEquals(1000, first.request());
+        assertEquals(1000, second.request());
+
+        // a child can be limited further on its own
+        second.setRate(1000);
+        assertEquals(1000, second.getRate(), 0);
+        assertEquals(4000, first.getRate(), 0);
+    }
+
+    public void testIdleFairChildrenStopSharing() throws Exception {
+        HierarchicalThrottle torrents = new HierarchicalThrottle(parent, 8000, clock);
+        HierarchicalThrottle first = torrents.createChild();
+        HierarchicalThrottle second = torrents.createChild();
+        parent.available = 100000;
+        first.request();
+        second.request();
+        assertEquals(2, torrents.getSharing());
+
+        // the count of the last window is kept while the next one starts
+        clock.nanos += HierarchicalThrottle.SHARE_MILLIS * 1000L * 1000;
+        first.request();
+        assertEquals(2, torrents.getSharing());
+
+        // after a whole window without asking, the second no longer counts
+        clock.nanos += HierarchicalThrottle.SHARE_MILLIS * 1000L * 1000;
+        first.request();
+        assertEquals(1, torrents.getSharing());
+        assertEquals(8000, first.getRate(), 0);
+    }
+
+    public void testUnlimitedClassLeavesFairChildrenUnlimited() throws Exception {
+        HierarchicalThrottle uploads = new HierarchicalThrottle(parent, HierarchicalThrottle.UNLIMITED, clock);
+        HierarchicalThrottle child = uploads.createChild();
+        parent.available = 5000;
+        assertTrue(child.isUnlimited());
+        assertEquals(1400, child.request());
+    }
+
+    public void testConnectionsGetFairChildren() throws Exception {
+        HierarchicalThrottle torrents = new HierarchicalThrottle(parent, 8000, clock);
+        ThrottleWriter writer = new ThrottleWriter(torrents);
+        ThrottleReader reader = new ThrottleReader(torrents);
+        assertNotSame(torrents, writer.getThrottle());
+        assertNotSame(torrents, reader.getThrottle());
+        assertSame(torrents, ((HierarchicalThrottle) writer.getThrottle()).getParent());
+        assertSame(torrents, ((HierarchicalThrottle) reader.getThrottle()).getParent());
+        assertNotSame(writer.getThrottle(), reader.getThrottle());
+
+        // other throttles are used as they are
+        assertSame(parent, new ThrottleWriter(parent).getThrottle());
+        assertSame(parent, new ThrottleReader(parent).getThrottle());
+    }
+
+    public void testSetRate() throws Exception {
+        HierarchicalThrottle throttle = new HierarchicalThrottle(parent, 4000, clock);
+        parent.available = 5000;
+        throttle.setRate(400);
+        assertEquals(100, throttle.request());
+
+        throttle.setRate(0);
+        clock.nanos += 1000L * 1000 * 1000;
+        assertEquals(0, throttle.request());
+
+        throttle.setRate(HierarchicalThrottle.UNLIMITED);
+        assertEquals(1400, throttle.request());
+    }
+
+    public void testUnusedClassBandwidthGoesToOtherClasses() throws Exception {
+        NBThrottle root = (NBThrottle)PrivilegedAccessor.invokeConstructor(
+                NBThrottle.class,
+                new Object[] { Boolean.TRUE, new Float(3 * 1024), Boolean.FALSE, new Integer(100) },
+                new Class<?>[] { Boolean.TYPE, Float.TYPE, Boolean.TYPE, Integer.TYPE });
+        HierarchicalThrottle limited = new HierarchicalThrottle(root, 1000, clock);
+        HierarchicalThrottle unlimited = new HierarchicalThrottle(root, HierarchicalThrottle.UNLIMITED, clock);
+
+        StubReadWriteObserver firstObserver = new StubReadWriteObserver();
+        StubThrottleListener first = new StubThrottleListener(firstObserver, limited);
+        FakeSelectionKey firstKey = new FakeSelectionKey(NIODispatcher.instance().new Attachment(firstObserver));
+        StubReadWriteObserver secondObserver = new StubReadWriteObserver();
+        StubThrottleListener second = new StubThrottleListener(secondObserver, unlimited);
+        FakeSelectionKey secondKey = new FakeSelectionKey(NIODispatcher.instance().new Attachment(secondObserver));
+
+        limited.interest(first);
+        root.tick(1000);
+        unlimited.interest(second);
+        root.tick(2000);
+        root.selectableKeys(new HashSet<FakeSelectionKey>(Arrays.asList(firstKey, secondKey)));
+
+        // the limited class saved up 250 bytes, the rest of the 307 bytes of the tick go on
+        assertEquals(250, first.given());
+        assertEquals(57, second.given());
+        assertEquals(250, limited.getBytesUsed());
+        assertEquals(57, unlimited.getBytesUsed());
+    }
+
+    private static class StubThrottle implements Throttle {
+        private int available, requested, released;
+
+        public void interest(ThrottleListener writer) {
+        }
+
+        public long nextTickTime() {
+            return 0;
+        }
+
+        public int request() {
+            int given = Math.min(available, 1400);
+            available -= given;
+            requested += given;
+            return given;
+        }
+
+        public void release(int amount) {
+            available += amount;
+            released += amount;
+        }
+
+        public void setRate(float rate) {
+        }
+    }
+
+    private static class StubClock implements Clock {
+        private long nanos = 1000;
+
+        public long nanoTime() {
+            return nanos;
+        }
+
+        public long now() {
+            return nanos / 1000000;
+        }
+    }
+}
@@ -12,6 +12,8 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
@@ -20,10 +22,12 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.Test;
 
+import org.limewire.nio.observer.ReadObserver;
 import org.limewire.nio.observer.StubAcceptChannelObserver;
 import org.limewire.nio.observer.StubConnectObserver;
 import org.limewire.nio.observer.StubReadConnectObserver;
 import org.limewire.nio.observer.StubReadObserver;
+import org.limewire.nio.timeout.Ticker;
 import org.limewire.util.BaseTestCase;
 import org.limewire.util.OSUtils;
 import org.limewire.util.PrivilegedAccessor;
@@ -548,6 +552,43 @@ public class NIODispatcherTest extends BaseTestCase {
     	assertTrue(f.isDone());
     }
     
+    /**
+     * Tests that tickers are ticked on the dispatch thread once they are due,
+     * and that waking up the selector moves their next tick forward.
+     */
+    public void testTickers() throws Exception {
+        final CountDownLatch ticked = new CountDownLatch(1);
+        final AtomicReference<Thread> tickThread = new AtomicReference<Thread>();
+        final long[] due = new long[] { System.currentTimeMillis() + 500 };
+        Ticker ticker = new Ticker() {
+            public synchronized long nextTickTime() {
+                return due[0];
+            }
+            
+            public synchronized void tick(long now) {
+                due[0] = Long.MAX_VALUE;
+                tickThread.set(Thread.currentThread());
+                ticked.countDown();
+            }
+        };
+        NIODispatcher.instance().addTicker(ticker);
+        try {
+            assertFalse(ticked.await(100, TimeUnit.MILLISECONDS));
+            synchronized(ticker) {
+                due[0] = System.currentTimeMillis() + 50;
+            }
+            NIODispatcher.instance().wakeup();
+            assertTrue(ticked.await(300, TimeUnit.MILLISECONDS));
+            assertTrue(NIODispatcher.instance().getScheduledExecutorService().submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return tickThread.get() == Thread.currentThread();
+                }
+            }).get());
+        } finally {
+            NIODispatcher.instance().removeTicker(ticker);
+        }
+    }
+    
     /** Tests that re-registration discards old attachments. */
     public void testReRegisterDiscardsOldAttachment() throws Exception {
         StubReadObserver o1 = new StubReadObserver();
@@ -573,6 +614,84 @@ public class NIODispatcherTest extends BaseTestCase {
         c1.close();
     }
     
+    /** 
+     * Tests that registered TCP channels are spread over all selector loops,
+     * and that their events and tasks are always run on the same thread.
+     */
+    public void testChannelTasksRunOnEventThread() throws Exception {
+        Set<Thread> threads = new HashSet<Thread>();
+        ThreadRecordingObserver[] observers = new ThreadRecordingObserver[8];
+        Socket[] accepted = new Socket[observers.length];
+        for(int i = 0; i < observers.length; i++) {
+            SocketChannel channel = SocketChannel.open();
+            channel.connect(LISTEN_ADDR);
+            channel.configureBlocking(false);
+            accepted[i] = LISTEN_SOCKET.accept();
+            observers[i] = new ThreadRecordingObserver(channel);
+            // registering assigns the channel a loop, reading stays on it
+            NIODispatcher.instance().register(channel, observers[i]);
+            NIODispatcher.instance().registerRead(channel, observers[i]);
+            accepted[i].getOutputStream().write(1);
+        }
+        
+        for(int i = 0; i < observers.length; i++) {
+            final ThreadRecordingObserver observer = observers[i];
+            assertTrue(observer.read.await(1000, TimeUnit.MILLISECONDS));
+            assertNotNull(observer.readThread);
+            threads.add(observer.readThread);
+            Future<Thread> f = NIODispatcher.instance().getScheduledExecutorService(observer.channel).submit(new Callable<Thread>() {
+                public Thread call() throws Exception {
+                    assertTrue(NIODispatcher.instance().isDispatchThread());
+                    return Thread.currentThread();
+                }
+            });
+            assertSame(observer.readThread, f.get());
+            
+            accepted[i].getOutputStream().write(2);
+            assertTrue(observer.readAgain.await(1000, TimeUnit.MILLISECONDS));
+            assertSame(observer.readThread, observer.lastReadThread);
+            
+            observer.channel.close();
+            accepted[i].close();
+        }
+        assertFalse(NIODispatcher.instance().isDispatchThread());
+        assertEquals(Math.min(observers.length, NIODispatcher.instance().getLoopCount()), threads.size());
+    }
+    
+    /** 
+     * Tests that channels that are only registered for reading are handled 
+     * on the thread of the shared executor, so that it can be used for all 
+     * of them.
+     */
+    public void testUnassignedChannelsRunOnSharedExecutor() throws Exception {
+        Thread shared = NIODispatcher.instance().getScheduledExecutorService().submit(new Callable<Thread>() {
+            public Thread call() throws Exception {
+                return Thread.currentThread();
+            }
+        }).get();
+        
+        ThreadRecordingObserver[] observers = new ThreadRecordingObserver[4];
+        Socket[] accepted = new Socket[observers.length];
+        for(int i = 0; i < observers.length; i++) {
+            SocketChannel channel = SocketChannel.open();
+            channel.connect(LISTEN_ADDR);
+            channel.configureBlocking(false);
+            accepted[i] = LISTEN_SOCKET.accept();
+            observers[i] = new ThreadRecordingObserver(channel);
+            assertSame(NIODispatcher.instance().getScheduledExecutorService(),
+                    NIODispatcher.instance().getScheduledExecutorService(channel));
+            NIODispatcher.instance().registerRead(channel, observers[i]);
+            accepted[i].getOutputStream().write(1);
+        }
+        
+        for(int i = 0; i < observers.length; i++) {
+            assertTrue(observers[i].read.await(1000, TimeUnit.MILLISECONDS));
+            assertSame(shared, observers[i].readThread);
+            observers[i].channel.close();
+            accepted[i].close();
+        }
+    }
+    
     private void connect(SocketChannel c, SocketAddress a, StubReadConnectObserver o) throws Exception {
         if(!c.connect(a)) {
             NIODispatcher.instance().registerConnect(c, o, 1000);
@@ -583,14 +702,47 @@ public class NIODispatcherTest extends BaseTestCase {
     }
     
     private int interestOps(final SelectableChannel channel) throws Exception {
-        Future<Integer> f = NIODispatcher.instance().getScheduledExecutorService().submit(new Callable<Integer>() {
+        Future<Integer> f = NIODispatcher.instance().getScheduledExecutorService(channel).submit(new Callable<Integer>() {
             public Integer call() throws Exception {
+                Object loop = PrivilegedAccessor.invokeMethod(
+                        NIODispatcher.instance(), "loopFor", new Object[] {channel }, new Class<?>[] { SelectableChannel.class });
                 Selector selector = (Selector)PrivilegedAccessor.invokeMethod(
-                        NIODispatcher.instance(), "getSelectorFor", new Object[] {channel }, new Class[] { SelectableChannel.class });
+                        loop, "getSelectorFor", new Object[] {channel }, new Class<?>[] { SelectableChannel.class });
                 return channel.keyFor(selector).interestOps();
             }
         });
         return f.get();
     }
+    
+    /** Reads from a channel and remembers the threads that did the reading. */
+    private static class ThreadRecordingObserver implements ReadObserver {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(16);
+        private final CountDownLatch read = new CountDownLatch(1);
+        private final CountDownLatch readAgain = new CountDownLatch(2);
+        private volatile Thread readThread;
+        private volatile Thread lastReadThread;
+        
+        ThreadRecordingObserver(SocketChannel channel) {
+            this.channel = channel;
+        }
+        
+        public void handleRead() throws IOException {
+            buffer.clear();
+            if(channel.read(buffer) > 0) {
+                if(readThread == null)
+                    readThread = Thread.currentThread();
+                lastReadThread = Thread.currentThread();
+                read.countDown();
+                readAgain.countDown();
+            }
+        }
+        
+        public void handleIOException(IOException iox) {
+        }
+        
+        public void shutdown() {
+        }
+    }
 
 }
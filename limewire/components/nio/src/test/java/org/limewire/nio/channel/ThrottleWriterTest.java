@@ -1,6 +1,11 @@
 package org.limewire.nio.channel;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Random;
 
 import junit.framework.Test;
@@ -203,6 +208,72 @@ public final class ThrottleWriterTest extends BaseTestCase {
 	}
 	
     
+    public void testTransferFileIsThrottled() throws Exception {
+        FakeThrottle throttle = new FakeThrottle();
+        FileSink sink = new FileSink(1024);
+        ThrottleWriter writer = new ThrottleWriter(throttle, sink);
+        assertTrue(writer.canTransferFile());
+        writer.interestWrite(SOURCE, true);
+        
+        FileChannel file = file(data(750));
+        try {
+            throttle.setAvailable(250);
+            for(int i = 0; i < throttle.listeners(); i++)
+                throttle.getListener(i).requestBandwidth();
+            assertEquals(250, writer.transferFile(file, 0, 750));
+            assertEquals(0, writer.transferFile(file, 250, 500));
+            for(int i = 0; i < throttle.listeners(); i++)
+                throttle.getListener(i).releaseBandwidth();
+            assertEquals(250, sink.written());
+            assertEquals(0, throttle.getAvailable());
+            
+            // without a throttle everything goes through
+            writer = new ThrottleWriter(null, sink);
+            assertEquals(500, writer.transferFile(file, 250, 500));
+            assertEquals(750, sink.written());
+        } finally {
+            file.close();
+        }
+    }
+    
+    public void testTransferFileNeedsCapableSink() throws Exception {
+        assertFalse(WRITER.canTransferFile());
+        FileChannel file = file(data(10));
+        try {
+            WRITER.transferFile(file, 0, 10);
+            fail("transferred to a sink that can't take files");
+        } catch(IllegalStateException expected) {
+        } finally {
+            file.close();
+        }
+    }
+    
+    private FileChannel file(byte[] data) throws IOException {
+        File file = File.createTempFile("throttle", null);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+    
+    private static class FileSink extends WriteBufferChannel implements FileTransferChannel {
+        FileSink(int size) {
+            super(size);
+        }
+        
+        public boolean canTransferFile() {
+            return true;
+        }
+        
+        public long transferFile(FileChannel source, long position, long count) throws IOException {
+            return source.transferTo(position, count, this);
+        }
+    }
+    
     private boolean doWrite() throws Exception {
         
         for(int i = 0; i < THROTTLE.listeners(); i++)
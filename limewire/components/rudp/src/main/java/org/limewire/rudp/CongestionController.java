@@ -0,0 +1,213 @@
+package org.limewire.rudp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Controls the number of data messages a connection may have in flight
+ * with a delay based algorithm like LEDBAT (RFC 6817).
+ * <p>
+ * The controller keeps the queuing delay the connection adds to the path
+ * near {@link #TARGET_DELAY}. The delay is the difference between the
+ * current round trip time, the lowest of the last few samples, and the
+ * base round trip time, the lowest sample of the last minutes. While it is
+ * below the target the window grows by up to one message per round trip,
+ * once the queues fill up, it shrinks again before losses occur.  A loss
+ * still halves the window, once per recovery episode: losses of messages
+ * that were sent before the last decrease do not shrink it again.  Because TCP only backs off on losses,
+ * connections using this controller yield to TCP traffic on the same link.
+ * <p>
+ * Data messages carry no timestamps, so the delays are taken from round
+ * trip times instead of one way delays.  Like with TCP, the window grows
+ * by a message per acked message during slow start, which ends at the
+ * first loss or once the delay reaches three quarters of the target. After
+ * a timeout the window starts over with slow start up to half of the
+ * window before the timeout.
+ * <p>
+ * All methods in this class rely on external synchronization of access.
+ */
+public class CongestionController {
+
+    private static final Log LOG = LogFactory.getLog(CongestionController.class);
+
+    /** The queuing delay in milliseconds the controller aims for */
+    public static final int    TARGET_DELAY      = 100;
+
+    /** The smallest window */
+    public static final int    MIN_WINDOW        = 2;
+
+    /** The growth of the window per round trip if there is no delay */
+    private static final float GAIN              = 1.0f;
+
+    /** The number of samples the current delay is the minimum of */
+    private static final int   CURRENT_HISTORY   = 4;
+
+    /** The number of intervals the base delay is the minimum of */
+    private static final int   BASE_HISTORY      = 10;
+
+    /** The length of the intervals of the base delay */
+    private static final long  BASE_INTERVAL     = 60 * 1000;
+
+    private final int    maxWindow;
+    private float        window;
+    private float        slowStartThreshold;
+
+    private final long[] currentDelays = new long[CURRENT_HISTORY];
+    private int          currentIndex;
+
+    private final long[] baseDelays = new long[BASE_HISTORY];
+    private int          baseIndex;
+    private long         baseIntervalStart;
+
+    /** The sequence number of the first message sent after the last decrease */
+    private long         recoveryPoint;
+
+    /**
+     * Creates a controller with a window of <tt>initialWindow</tt> messages
+     * that never grows beyond <tt>maxWindow</tt>.
+     */
+    public CongestionController(int initialWindow, int maxWindow) {
+        this.maxWindow = Math.max(MIN_WINDOW, maxWindow);
+        this.window = Math.max(MIN_WINDOW, Math.min(initialWindow, this.maxWindow));
+        this.slowStartThreshold = this.maxWindow;
+        for (int i = 0; i < CURRENT_HISTORY; i++)
+            currentDelays[i] = Long.MAX_VALUE;
+        for (int i = 0; i < BASE_HISTORY; i++)
+            baseDelays[i] = Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of messages that may be in flight.
+     */
+    public int getWindow() {
+        return (int)window;
+    }
+
+    /**
+     * Returns true if another message can be sent while <tt>inFlight</tt>
+     * messages are not acked yet.
+     */
+    public boolean canSend(int inFlight) {
+        return inFlight < getWindow();
+    }
+
+    /**
+     * Returns true if the window is still in slow start.
+     */
+    public boolean isSlowStart() {
+        return window < slowStartThreshold;
+    }
+
+    /**
+     * Records a round trip time measured at <tt>time</tt>.
+     */
+    public void addDelaySample(long rtt, long time) {
+        if (rtt < 0)
+            return;
+        currentDelays[currentIndex] = rtt;
+        currentIndex = (currentIndex + 1) % CURRENT_HISTORY;
+
+        if (baseIntervalStart == 0) {
+            baseIntervalStart = time;
+        } else if (time - baseIntervalStart >= BASE_INTERVAL) {
+            baseIntervalStart = time;
+            baseIndex = (baseIndex + 1) % BASE_HISTORY;
+            baseDelays[baseIndex] = Long.MAX_VALUE;
+        }
+        baseDelays[baseIndex] = Math.min(baseDelays[baseIndex], rtt);
+    }
+
+    /**
+     * Returns the lowest round trip time of the last minutes or -1 if
+     * there was no sample yet.
+     */
+    public long getBaseDelay() {
+        return minimum(baseDelays);
+    }
+
+    /**
+     * Returns the lowest of the last few round trip times or -1 if
+     * there was no sample yet.
+     */
+    public long getCurrentDelay() {
+        return minimum(currentDelays);
+    }
+
+    /**
+     * Returns the delay added by queues on the path, 0 if it is not known.
+     */
+    public long getQueuingDelay() {
+        long base = getBaseDelay();
+        if (base == -1)
+            return 0;
+        return Math.max(0, getCurrentDelay() - base);
+    }
+
+    /**
+     * Updates the window after <tt>count</tt> messages were acked that
+     * were in flight together with <tt>inFlight - count</tt> others.
+     */
+    public void messagesAcked(int count, int inFlight) {
+        if (count <= 0)
+            return;
+
+        float before = window;
+        long queuingDelay = getQueuingDelay();
+        if (isSlowStart() && queuingDelay > TARGET_DELAY * 3 / 4)
+            slowStartThreshold = window;
+
+        if (isSlowStart()) {
+            window = Math.min(window + count, slowStartThreshold);
+        } else {
+            float offTarget = (TARGET_DELAY - queuingDelay) / (float)TARGET_DELAY;
+            window += GAIN * offTarget * count / window;
+        }
+
+        // don't grow the window beyond what the connection uses
+        if (window > before && window > inFlight + count)
+            window = Math.max(before, inFlight + count);
+        window = Math.max(MIN_WINDOW, Math.min(window, maxWindow));
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("window: " + window + " delay: " + queuingDelay);
+    }
+
+    /**
+     * Halves the window after the message <tt>sequenceNumber</tt> was lost,
+     * unless it was sent before the window was last decreased.
+     * 
+     * @param nextSequenceNumber the sequence number of the next message
+     * that will be sent
+     */
+    public void messageLost(long sequenceNumber, long nextSequenceNumber) {
+        if (sequenceNumber < recoveryPoint)
+            return;
+        recoveryPoint = nextSequenceNumber;
+        window = Math.max(MIN_WINDOW, window / 2);
+        slowStartThreshold = window;
+        if (LOG.isDebugEnabled())
+            LOG.debug("loss, window: " + window);
+    }
+
+    /**
+     * Shrinks the window to its minimum after acks did not arrive in time,
+     * slow start grows it back to half of its current size.
+     * 
+     * @param nextSequenceNumber the sequence number of the next message
+     * that will be sent
+     */
+    public void timeout(long nextSequenceNumber) {
+        recoveryPoint = nextSequenceNumber;
+        slowStartThreshold = Math.max(MIN_WINDOW, window / 2);
+        window = MIN_WINDOW;
+        if (LOG.isDebugEnabled())
+            LOG.debug("timeout, window: " + window);
+    }
+
+    private static long minimum(long[] delays) {
+        long min = Long.MAX_VALUE;
+        for (long delay : delays)
+            min = Math.min(min, delay);
+        return min == Long.MAX_VALUE ? -1 : min;
+    }
+}
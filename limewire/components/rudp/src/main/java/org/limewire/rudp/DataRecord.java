@@ -0,0 +1,23 @@
+package org.limewire.rudp;
+
+import org.limewire.rudp.messages.DataMessage;
+
+/**
+ *  Record information about data messages either getting written to the 
+ *  network or getting read from the network. In the first case, the 
+ *  ACKs is important. In the second case, the read state is important.  
+ *  For writing, the sentTime and the ackTime form the basis for the 
+ *  round trip time and a calculation for timeout resends.
+ */
+class DataRecord {
+	final DataMessage msg;      // the actual data message
+    int                         sends;    // count of the sends
+	boolean 		            read;     // whether the data was read
+	int   		                acks;     // count of the number of acks
+    long                        sentTime; // when it was sent
+    long                        ackTime;  // when it was acked
+    
+    DataRecord(DataMessage msg) {
+    	this.msg=msg;
+    }
+}
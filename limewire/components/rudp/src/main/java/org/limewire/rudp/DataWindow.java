@@ -2,7 +2,6 @@ package org.limewire.rudp;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.limewire.collection.LongHashMap;
 import org.limewire.rudp.messages.DataMessage;
 
 
@@ -19,6 +18,10 @@ import org.limewire.rudp.messages.DataMessage;
  * For the writer, if the round trip time (RTT) for ACK messages of the older 
  * data is greatly exceeded ({@link #getRTTVar()}), the data can be resent to 
  * try to receive an ACK message.
+ *</p><p>
+ * The records are kept in a ring buffer indexed by their sequence number, 
+ * it holds the window and a few messages beyond it and grows if messages
+ * further ahead are added. 
  *</p>
  * All methods in this class rely on external synchronization of access.
  */ 
@@ -32,9 +35,14 @@ public class DataWindow
     private static final int   HIST_SIZE           = 4;
     private static final float RTT_GAIN            = 1.0f / 8.0f;
     private static final float DEVIATION_GAIN      = 1.0f / 4.0f;
+    
+    /** The number of slots beyond the window size in the ring buffer */
+    private static final int   EXTRA_SLOTS         = 8;
 
-	private final LongHashMap<DataRecord> window;
+    /** The ring buffer, its length is a power of two */
+	private DataRecord[] window;
 	private long    windowStart;
+	private long    highestSequenceNumber;
 	private int     windowSize;
 	private long    averageRTT;
 	private long    averageLowRTT;
@@ -62,9 +70,58 @@ public class DataWindow
 	    
 		windowStart = start;
 		windowSize  = size;
-		window      = new LongHashMap<DataRecord>(size+2);
+		highestSequenceNumber = start - 1;
+		window      = new DataRecord[slotsFor(size + EXTRA_SLOTS)];
 	}
 
+    /** Returns the smallest power of two that is at least <tt>count</tt>. */
+    private static int slotsFor(int count) {
+        return Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+    }
+
+    /**
+     * Changes the size of the window, the window can only grow.
+     */
+    public void setWindowSize(int size) {
+        if (size < windowSize) {
+            throw new IllegalArgumentException("window cannot shrink: " + size + " < " + windowSize);
+        }
+        windowSize = size;
+        ensureCapacity(size + EXTRA_SLOTS);
+    }
+
+    /**
+     * Grows the ring buffer so that it holds at least <tt>slots</tt> 
+     * records starting at the windowStart.
+     */
+    private void ensureCapacity(int slots) {
+        if (slots <= window.length)
+            return;
+        DataRecord[] grown = new DataRecord[slotsFor(slots)];
+        for (DataRecord d : window) {
+            if (d != null)
+                grown[(int)(d.msg.getSequenceNumber() & (grown.length - 1))] = d;
+        }
+        window = grown;
+    }
+
+    /**
+     * Returns the slot of a sequence number in the ring buffer or -1 if it
+     * is outside of the buffer.
+     */
+    private int slot(long seqNo) {
+        long offset = seqNo - windowStart;
+        if (offset < 0 || offset >= window.length)
+            return -1;
+        return (int)(seqNo & (window.length - 1));
+    }
+
+    private void remove(long seqNo) {
+        int slot = slot(seqNo);
+        if (slot != -1)
+            window[slot] = null;
+    }
+
     /**
      * Adds a new message to the window.  
      */
@@ -77,7 +134,7 @@ public class DataWindow
         if (seqNo == windowStart)
             readableData = true;
 
-        DataRecord d = window.get(seqNo);
+        DataRecord d = getBlock(seqNo);
         if (d != null) {
             if (LOG.isDebugEnabled())
                 LOG.debug("received duplicate message seq: " + msg.getSequenceNumber() + ", window start: " + windowStart);
@@ -87,8 +144,15 @@ public class DataWindow
         if (LOG.isDebugEnabled())
             LOG.debug("adding message seq: " + msg.getSequenceNumber() + ", window start: " + windowStart);
 
+        long offset = seqNo - windowStart;
+        if (offset >= Integer.MAX_VALUE) {
+            throw new IllegalStateException("message is too far ahead of window: " + windowStart + " < " + seqNo);
+        }
+        ensureCapacity((int)offset + 1);
+
 		d = new DataRecord(msg);
-		window.put(seqNo, d);
+		window[slot(seqNo)] = d;
+		highestSequenceNumber = Math.max(highestSequenceNumber, seqNo);
         return d;
 	}
 
@@ -96,7 +160,13 @@ public class DataWindow
      *  Get the block based on the sequenceNumber.
      */
 	public DataRecord getBlock(long pnum) {
-		return window.get(pnum);
+	    int slot = slot(pnum);
+	    if (slot == -1)
+	        return null;
+	    DataRecord d = window[slot];
+	    if (d == null || d.msg.getSequenceNumber() != pnum)
+	        return null;
+	    return d;
 	}
 
     /** 
@@ -122,7 +192,7 @@ public class DataWindow
         int        count = 0;
         for (long i = windowStart; i < windowStart+windowSize+3; i++) {
             // Count the spots that are full and not written
-            if ( (d = window.get(i)) != null &&
+            if ( (d = getBlock(i)) != null &&
                   (!d.read || i != windowStart))
                 count++;
         }
@@ -167,9 +237,9 @@ public class DataWindow
         DataRecord d;
         int        count = 0;
         for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-            d = window.get(i);
+            d = getBlock(i);
             if ( d != null && d.acks > 0 ) {
-                window.remove(i);
+                remove(i);
                 count++;
                 
                 if(releaser != null)
@@ -188,7 +258,7 @@ public class DataWindow
      */
     public long getLowestUnsentBlock() {
         for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-            if (window.get(i) == null)
+            if (getBlock(i) == null)
                 return(i);
         }
         return -1;
@@ -204,7 +274,7 @@ public class DataWindow
         DataRecord d;
         int        count = 0;
         for (long i = windowStart+1; i < windowStart+windowSize+1; i++) {
-            d = window.get(i);
+            d = getBlock(i);
             if ( d != null && d.acks > 0 ) {
                 count++;
             } 
@@ -274,10 +344,14 @@ public class DataWindow
     /** 
      *  Record that a block was ACK'ed and calculate the 
      *  round trip time and averages from it.
+     *  
+     *  @return the round trip time measured from the block or -1 if the
+     *  block could not be timed
      */
-	public void ackBlock(long pnum) {
+	public long ackBlock(long pnum) {
 		if (LOG.isDebugEnabled())
 			LOG.debug("entered ackBlock with # "+pnum);
+		long measuredRTT = -1;
 		DataRecord drec = getBlock(pnum);
 		if ( drec != null ) {
 			drec.acks++;
@@ -300,6 +374,7 @@ public class DataWindow
 				long  rtt    = (drec.ackTime-drec.sentTime);
                 float delta  = rtt - srtt;
 				if ( rtt > 0 ) {
+				    measuredRTT = rtt;
                     // Compute RTO
 					if ( srtt <= 0.1 )
 						srtt = delta;
@@ -335,20 +410,22 @@ public class DataWindow
 				}
 			}
 		}
-
+		return measuredRTT;
 	}
 
     /** 
      *  Record an ACK if not yet present for blocks up to the receiving 
 	 *  windowStart sent from the receiving connection.
+	 *  Return the number of blocks that were not ACK'ed before.
      */
-	public void pseudoAckToReceiverWindow(long wStart) {
+	public int pseudoAckToReceiverWindow(long wStart) {
 
 		// If the windowStart is old, just ignore it
 		if ( wStart <= windowStart )
-			return;
+			return 0;
 
 		DataRecord drec;
+		int count = 0;
 		for (long i = windowStart; i < wStart; i++) {
 			drec = getBlock(i);
 			if ( drec != null && drec.acks == 0) {
@@ -356,8 +433,99 @@ public class DataWindow
 				drec.acks++;
 				// Create a fake ackTime since we don't know when it should be
 				drec.ackTime = drec.sentTime + (int)rto;
+				count++;
 			}
 		}
+		return count;
+	}
+
+    /** 
+     *  Record an ACK if not yet present for the blocks from 
+     *  <tt>start</tt> up to <tt>end</tt>, exclusive, as reported by
+     *  the selective acks of the receiving connection.
+	 *  Return the number of blocks that were not ACK'ed before.
+     */
+	public int ackRange(long start, long end, long time) {
+	    DataRecord drec;
+	    int count = 0;
+	    for (long i = Math.max(start, windowStart); i < end && i <= highestSequenceNumber; i++) {
+	        drec = getBlock(i);
+	        if ( drec != null && drec.acks == 0) {
+	            drec.acks++;
+	            drec.ackTime = time;
+	            count++;
+	        }
+	    }
+	    return count;
+	}
+
+    /**
+     *  Return the number of blocks in the window that were not ACK'ed.
+     */
+	public int getUnackedBlocks() {
+	    DataRecord drec;
+	    int count = 0;
+	    for (long i = windowStart; i <= highestSequenceNumber; i++) {
+	        drec = getBlock(i);
+	        if ( drec != null && drec.acks == 0)
+	            count++;
+	    }
+	    return count;
+	}
+
+    /**
+     *  Find the lowest un-ACK'ed block that was most likely lost: at least 
+     *  <tt>threshold</tt> blocks above it were ACK'ed, at least one of them 
+     *  was sent later than the block, and the block was sent more than a 
+     *  round trip and a quarter ago, so the ACK is not just reordered.
+     */
+	public DataRecord getLostBlock(long time, int threshold) {
+	    DataRecord drec;
+	    DataRecord lost = null;
+	    int higherAcks = 0;
+	    long lastAckedSend = -1;
+	    long maxSentTime = time - (long)(srtt * 5 / 4);
+	    for (long i = highestSequenceNumber; i >= windowStart; i--) {
+	        drec = getBlock(i);
+	        if ( drec == null )
+	            continue;
+	        if ( drec.acks > 0 ) {
+	            higherAcks++;
+	            lastAckedSend = Math.max(lastAckedSend, drec.sentTime);
+	        } else if ( higherAcks >= threshold && 
+	                    drec.sentTime < lastAckedSend &&
+	                    drec.sentTime <= maxSentTime ) {
+	            lost = drec;
+	        }
+	    }
+	    return lost;
+	}
+
+    /**
+     *  Return the received blocks of a receive window as pairs of offsets 
+     *  from the windowStart, the first block of a range and one past its 
+     *  last block. At most <tt>maxRanges</tt> ranges are returned, the 
+     *  lowest ones.
+     */
+	public int[] getReceivedRanges(int maxRanges) {
+	    int[] ranges = new int[maxRanges * 2];
+	    int length = 0;
+	    long rangeStart = -1;
+	    for (long i = windowStart; i <= highestSequenceNumber + 1 && length < ranges.length; i++) {
+	        boolean received = i <= highestSequenceNumber && getBlock(i) != null;
+	        if ( received && rangeStart == -1 ) {
+	            rangeStart = i;
+	        } else if ( !received && rangeStart != -1 ) {
+	            ranges[length++] = (int)(rangeStart - windowStart);
+	            ranges[length++] = (int)(i - windowStart);
+	            rangeStart = -1;
+	        }
+	    }
+	    if (length == ranges.length)
+	        return ranges;
+	    int[] result = new int[length];
+	    System.arraycopy(ranges, 0, result, 0, length);
+	    return result;
 	}
 
     /** 
@@ -442,9 +610,9 @@ public class DataWindow
         // potential space.   
         //for (int i = windowStart; i < lastBlock - windowSize + 1; i++) {
         for (long i = windowStart; i < windowStart + windowSize + 1; i++) {
-            d = window.get(i);
+            d = getBlock(i);
             if ( d != null && d.read) {
-                window.remove(i);
+                remove(i);
                 count++;
             } else {
                 if(d == null)
@@ -514,25 +682,3 @@ public class DataWindow
 //	}
 
 }
-
-	
-/**
- *  Record information about data messages either getting written to the 
- *  network or getting read from the network. In the first case, the 
- *  ACKs is important. In the second case, the read state is important.  
- *  For writing, the sentTime and the ackTime form the basis for the 
- *  round trip time and a calculation for timeout resends.
- */
-class DataRecord {
-	final DataMessage msg;      // the actual data message
-    int                         sends;    // count of the sends
-	boolean 		            read;     // whether the data was read
-	int   		                acks;     // count of the number of acks
-    long                        sentTime; // when it was sent
-    long                        ackTime;  // when it was acked
-    
-    DataRecord(DataMessage msg) {
-    	this.msg=msg;
-    }
-}
-
@@ -3,7 +3,8 @@ package org.limewire.rudp;
 
 /**
  * Defines the interface of settings to control the RUDP algorithm.
- * Currently only supports the ACK skipping algorithm.
+ * Supports the ACK skipping algorithm and the size of the window
+ * negotiated with peers that support larger windows.
  */
 public interface RUDPSettings {
 
@@ -21,5 +22,12 @@ public interface RUDPSettings {
    
     /** Returns the size of the history remembered for skipping acks. */
     public int getSkipAckHistorySize();
+    
+    /** 
+     * Returns the maximum number of data messages in the window of a 
+     * connection, if it is not larger than the default window, the window
+     * is not negotiated.
+     */
+    public int getMaxWindowSize();
 
 }
@@ -34,11 +34,22 @@ public class UDPConnectionProcessor {
         before we will blow out the connection */
     public  static final int   MAX_DATA_SIZE           = 4096;
     
-    /** Define the size of the data window */
+    /** Define the size of the data window, unless a larger one is 
+        negotiated */
     public static final int  DATA_WINDOW_SIZE        = 20;
 
-    /** Define the maximum accepted write ahead packet */
-    private static final int  DATA_WRITE_AHEAD_MAX    = DATA_WINDOW_SIZE + 5;
+    /** Define the largest data window that can be negotiated */
+    public static final int  MAX_WINDOW_SIZE         = 1024;
+
+    /** Define the maximum accepted write ahead packet beyond the window */
+    private static final int  DATA_WRITE_AHEAD        = 5;
+
+    /** Define the maximum number of ranges of selective acks to send */
+    private static final int  SELECTIVE_ACK_RANGES    = 8;
+
+    /** Define the number of higher acked messages after which a message
+        with a negotiated window is resent */
+    private static final int  FAST_RESEND_THRESHOLD   = 1;
 
     /** The maximum number of times to try and send a data message */
     private static final int  MAX_SEND_TRIES          = 8;
@@ -235,6 +246,24 @@ public class UDPConnectionProcessor {
     
     /** how many packets we got in total */
     private int _totalDataPackets;
+
+    ////////////////////////////////////////////
+    // Window negotiation
+    ///////////////////////////////////////////
+
+    /** The size of the window we advertise, if it is not larger than
+        DATA_WINDOW_SIZE the window isn't negotiated */
+    private final int _maxWindowSize;
+
+    /** The size of the window of the other side */
+    private int _peerWindowSize;
+
+    /** Whether both sides advertised their window sizes, so selective acks
+        and congestion control are used */
+    private boolean _windowNegotiated;
+
+    /** The congestion control for a negotiated window */
+    private CongestionController _congestionController;
    
     /** The context containing various aspects required for RUDP. */
     private final RUDPContext _context;
@@ -285,6 +314,10 @@ public class UDPConnectionProcessor {
         _period = _context.getRUDPSettings().getSkipAckPeriodLength();
         _periodHistory = _context.getRUDPSettings().getSkipAckHistorySize();
         _periods = new int[_periodHistory];
+        
+        _maxWindowSize = Math.min(MAX_WINDOW_SIZE, 
+                _context.getRUDPSettings().getMaxWindowSize());
+        _peerWindowSize = DATA_WINDOW_SIZE;
     }
         
     private void setConnectionState(ConnectionState newState) {
@@ -461,8 +494,10 @@ public class UDPConnectionProcessor {
         scheduleKeepAlive();
 
         // Create the delayed connection components
-        _sendWindow = new DataWindow(DATA_WINDOW_SIZE, 1);
+        _sendWindow = new DataWindow(_peerWindowSize, 1);
         _writeRegulator = new WriteRegulator(_sendWindow);
+        if (_windowNegotiated)
+            _congestionController = new CongestionController(DATA_WINDOW_SIZE, _peerWindowSize);
 
         // Precreate the event for rescheduling writing to allow
         // thread safety and faster writing
@@ -716,13 +751,20 @@ public class UDPConnectionProcessor {
     /**
      *  Build and send an ack with default error handling with
      *  the messages sequenceNumber, receive window start and 
-     *  receive window space.
+     *  receive window space. Acks of data messages carry the received
+     *  blocks if the window was negotiated.
      */
     private synchronized void safeSendAck(RUDPMessage msg) {
         // Ack the message
         AckMessage ack = null;
         try {
-          ack = _context.getMessageFactory().createAckMessage(_theirConnectionID, msg.getSequenceNumber(), _receiveWindow.getWindowStart(), _receiveWindow.getWindowSpace());
+          int[] selectiveAcks = null;
+          if (_windowNegotiated && msg instanceof DataMessage)
+              selectiveAcks = _receiveWindow.getReceivedRanges(SELECTIVE_ACK_RANGES);
+          if (selectiveAcks != null && selectiveAcks.length > 0)
+              ack = _context.getMessageFactory().createAckMessage(_theirConnectionID, msg.getSequenceNumber(), _receiveWindow.getWindowStart(), _receiveWindow.getWindowSpace(), selectiveAcks);
+          else
+              ack = _context.getMessageFactory().createAckMessage(_theirConnectionID, msg.getSequenceNumber(), _receiveWindow.getWindowStart(), _receiveWindow.getWindowSpace());
           
           	if (LOG.isDebugEnabled()) {
           	    LOG.debug("total data packets "+_totalDataPackets+
@@ -864,6 +906,10 @@ public class UDPConnectionProcessor {
                     		expRTO);
                 }
 
+                // Give reordered messages as much time as the selective acks
+                if (_congestionController != null)
+                    expRTO = Math.max(expRTO, (int)(_sendWindow.getSRTT() * 5 / 4));
+
                 // The assumption is that this record has not been acked
                 // FIXME this condition is never true
                 if ( drec.acks > 0) 
@@ -892,8 +938,18 @@ public class UDPConnectionProcessor {
                     safeSend(drec.msg);
 
                     // Scale back on the writing speed if you are hitting limits
-                    _writeRegulator.addMessageFailure();
-                    _writeRegulator.hitResendTimeout();
+                    // The rto is close to the round trip time, so the first
+                    // resend is only counted as a loss
+                    if (_congestionController != null) {
+                        if (drec.sends > 1)
+                            _congestionController.timeout(_sequenceNumber);
+                        else
+                            _congestionController.messageLost(
+                                    drec.msg.getSequenceNumber(), _sequenceNumber);
+                    } else {
+                        _writeRegulator.addMessageFailure();
+                        _writeRegulator.hitResendTimeout();
+                    }
 
                     currTime      = _lastSendTime;
                     drec.sentTime = currTime;
@@ -949,7 +1005,9 @@ public class UDPConnectionProcessor {
             if(_myConnectionID != 0) {
                 // Build SYN message with my connectionID in it
                 SynMessage synMsg;
-                if (_theirConnectionID != UDPMultiplexor.UNASSIGNED_SLOT)
+                if (_maxWindowSize > DATA_WINDOW_SIZE)
+                    synMsg = _context.getMessageFactory().createSynMessage(_myConnectionID, _theirConnectionID, role, _maxWindowSize);
+                else if (_theirConnectionID != UDPMultiplexor.UNASSIGNED_SLOT)
                     synMsg = _context.getMessageFactory().createSynMessage(_myConnectionID, _theirConnectionID, role);
                 else
                     synMsg = _context.getMessageFactory().createSynMessage(_myConnectionID, role);
@@ -968,6 +1026,9 @@ public class UDPConnectionProcessor {
      * We set theirConnectionID once we see the first SYN. If a subsequent SYN has a different ID,
      * that SYN is ignored.
      * 
+     * If both sides advertise their window sizes, the smaller one is used 
+     * for sending and the receive window grows to the size we advertised.
+     * 
      * @param smsg
      */
     private void handleSynMessage(SynMessage smsg) {
@@ -982,6 +1043,12 @@ public class UDPConnectionProcessor {
         if ( _theirConnectionID == UDPMultiplexor.UNASSIGNED_SLOT ) {
             // Keep track of their connectionID
             _theirConnectionID = theirConnID;
+
+            if (smsg.getWindowSize() > 0 && _maxWindowSize > DATA_WINDOW_SIZE) {
+                _windowNegotiated = true;
+                _peerWindowSize = Math.min(smsg.getWindowSize(), _maxWindowSize);
+                _receiveWindow.setWindowSize(_maxWindowSize);
+            }
         } else if ( _theirConnectionID == theirConnID ) {
             // Getting a duplicate SYN so just ack it again.
         } else {
@@ -1032,7 +1099,7 @@ public class UDPConnectionProcessor {
         // how many extra messages we have sent since this ack
         if ( _sequenceNumber > wStart ) 
             _receiverWindowSpace = 
-              DATA_WINDOW_SIZE + (int) (wStart - _sequenceNumber);
+              _peerWindowSize + (int) (wStart - _sequenceNumber);
             //_receiverWindowSpace += (wStart - _sequenceNumber);
 
         // Reactivate writing if required
@@ -1050,12 +1117,19 @@ public class UDPConnectionProcessor {
             // A fin message has been acked on shutdown
             _waitingForFinAck = false;
         } else if (_connectionState == ConnectionState.CONNECTED) {
+            int unacked = 0;
+            if (_congestionController != null)
+                unacked = _sendWindow.getUnackedBlocks();
+
             // Record the ack
-            _sendWindow.ackBlock(seqNo);
+            long rtt = _sendWindow.ackBlock(seqNo);
             _writeRegulator.addMessageSuccess();
 
             // Ensure that all messages up to sent windowStart are acked
             _sendWindow.pseudoAckToReceiverWindow(amsg.getWindowStart());
+
+            if (_congestionController != null)
+                handleSelectiveAcks(amsg, rtt, unacked);
             
             // Clear out the acked blocks at window start
             _sendWindow.clearLowAckedBlocks(_channel);  
@@ -1065,6 +1139,35 @@ public class UDPConnectionProcessor {
         }
     }
     
+    /**
+     * Records the blocks acked by the selective acks of a negotiated window,
+     * updates the congestion window and resends a block if the blocks above
+     * it were acked, but it wasn't.
+     * 
+     * @param rtt the round trip time measured from the ack or -1
+     * @param unacked the number of blocks that were in flight before the ack
+     */
+    private void handleSelectiveAcks(AckMessage amsg, long rtt, int unacked) {
+        long now = System.currentTimeMillis();
+        long wStart = amsg.getWindowStart();
+        int[] selectiveAcks = amsg.getSelectiveAcks();
+        for (int i = 0; i + 1 < selectiveAcks.length; i += 2)
+            _sendWindow.ackRange(wStart + selectiveAcks[i], wStart + selectiveAcks[i + 1], now);
+
+        _congestionController.addDelaySample(rtt, now);
+        _congestionController.messagesAcked(unacked - _sendWindow.getUnackedBlocks(), unacked);
+
+        DataRecord drec = _sendWindow.getLostBlock(now, FAST_RESEND_THRESHOLD);
+        if (drec != null && drec.sends <= MAX_SEND_TRIES) {
+            if (LOG.isDebugEnabled())  
+                LOG.debug("Fast resending message:" + drec.msg.getSequenceNumber());
+            _congestionController.messageLost(drec.msg.getSequenceNumber(), _sequenceNumber);
+            safeSend(drec.msg);
+            drec.sentTime = _lastSendTime;
+            drec.sends++;
+        }
+    }
+    
     /**
      * Handles a DataMessage.
      * 
@@ -1104,7 +1207,7 @@ public class UDPConnectionProcessor {
             return;
         }
 
-        if ( seqNo > (baseSeqNo + DATA_WRITE_AHEAD_MAX) ) {
+        if ( seqNo > (baseSeqNo + _receiveWindow.getWindowSize() + DATA_WRITE_AHEAD) ) {
             if(LOG.isDebugEnabled())  
                 LOG.debug("Received block num too far ahead: "+ seqNo);
            return;
@@ -1150,6 +1253,11 @@ public class UDPConnectionProcessor {
     }
 
     private boolean shouldSendAck() {
+        // with a negotiated window the sender needs every ack for its
+        // selective acks and delay samples
+        if (_windowNegotiated)
+            return true;
+
         //if we have enough history, see if we should skip an ack
         if (_skipAcks && _enoughData && _skippedAcks < _maxSkipAck) {
             float average = 0;
@@ -1196,7 +1304,7 @@ public class UDPConnectionProcessor {
         // how many extra messages we have sent since this ack
         if ( _sequenceNumber > wStart ) 
             _receiverWindowSpace = 
-              DATA_WINDOW_SIZE + (int) (wStart - _sequenceNumber);
+              _peerWindowSize + (int) (wStart - _sequenceNumber);
             //_receiverWindowSpace += (wStart - _sequenceNumber);
 
         // If receiving KeepAlives when closed, send another FinMessage
@@ -1295,7 +1403,9 @@ public class UDPConnectionProcessor {
             
                 // If there is room to send something then send data 
                 // if available
-                if ( getChunkLimit() > 0 ) {
+                if ( getChunkLimit() > 0 && 
+                     (_congestionController == null || 
+                      _congestionController.canSend(_sendWindow.getUnackedBlocks())) ) {
                     // Get data and send it
                     ByteBuffer chunk = _channel.getNextChunk();
                     if(chunk != null)
@@ -1333,21 +1443,28 @@ public class UDPConnectionProcessor {
             // Compute how long to wait
             // TODO: Simplify experimental algorithm and plug it in
             //long waitTime = (long)_sendWindow.getRTO() / 6l;
-            long currTime = System.currentTimeMillis();
-            long waitTime = _writeRegulator.getSleepTime(currTime, 
-              _receiverWindowSpace);
+            long waitTime;
+            if (_congestionController != null) {
+                // Spread the congestion window over a round trip
+                waitTime = (long)(_sendWindow.getSRTT() / 
+                  _congestionController.getWindow());
+            } else {
+                long currTime = System.currentTimeMillis();
+                waitTime = _writeRegulator.getSleepTime(currTime, 
+                  _receiverWindowSpace);
 
-            // If we are getting too close to the end of window, make a note
-            if ( _receiverWindowSpace <= SMALL_SEND_WINDOW ) { 
+                // If we are getting too close to the end of window, make a note
+                if ( _receiverWindowSpace <= SMALL_SEND_WINDOW ) { 
 
-                // Scale back on the writing speed if you are hitting limits
-                if ( _receiverWindowSpace <= 1 ) 
-                    _writeRegulator.hitZeroWindow();
-            }
+                    // Scale back on the writing speed if you are hitting limits
+                    if ( _receiverWindowSpace <= 1 ) 
+                        _writeRegulator.hitZeroWindow();
+                }
 
-            // Initially ensure waitTime is not too low
-            if (waitTime == 0 && _sequenceNumber < 10 ) 
-                waitTime = DEFAULT_RTO_WAIT_TIME;
+                // Initially ensure waitTime is not too low
+                if (waitTime == 0 && _sequenceNumber < 10 ) 
+                    waitTime = DEFAULT_RTO_WAIT_TIME;
+            }
 
             // Enforce some minimal sleep time if we have been in tight loop
             // This will allow handleMessages to get done if pending
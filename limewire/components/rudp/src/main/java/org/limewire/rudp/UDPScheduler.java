@@ -1,55 +1,81 @@
 package org.limewire.rudp;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import org.limewire.concurrent.ManagedThread;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
+import org.limewire.nio.NIODispatcher;
+import org.limewire.nio.timeout.Ticker;
+import org.limewire.service.ErrorService;
 
 
-/** 
- *  <p>Manages the timing of messages within {@link UDPConnection} processing. 
+/**
+ *  <p>Manages the timing of messages within {@link UDPConnection} processing.
  *  </p><p>
  *  To use the scheduler, you must first register and then schedule an event.
- *  Events are submitted as objects that extend {@link UDPTimerEvent} with 
+ *  Events are submitted as objects that extend {@link UDPTimerEvent} with
  *  a {@link UDPTimerEvent#handleEvent()} method defined.
  *  </p><p>
- *  Re-call {@link #scheduleEvent(UDPTimerEvent)} if the time of your event changes. 
+ *  Re-call {@link #scheduleEvent(UDPTimerEvent)} if the time of your event changes.
+ *  </p><p>
+ *  The events must be unregister when you are done with them via
+ *  {@link UDPTimerEvent#unregister()}.
+ *  </p><p>
+ *  The events are kept in a hashed timing wheel of {@link #WHEEL_SIZE} slots
+ *  of one millisecond, each slot holds a linked list of the events due at
+ *  the times that map to it. Scheduling and cancelling an event only links
+ *  or unlinks it, and the events are run by the <code>NIODispatcher</code>
+ *  on its thread, which ticks the wheel when the next slot with an event
+ *  is due. A bitmap of the slots that hold events lets the next due slot
+ *  be found without looking at the empty ones.
  *  </p>
- *  The events must be unregister when you are done with them via 
- *  {@link UDPTimerEvent#unregister()}. 
  */
+public class UDPScheduler implements Ticker {
 
-public class UDPScheduler extends ManagedThread {
-    
-   // private static final Log LOG = LogFactory.getLog(UDPScheduler.class);
+    private static final Log LOG = LogFactory.getLog(UDPScheduler.class);
 
     /** This is the default event when nothing is scheduled */
 	public static final  UDPTimerEvent NO_EVENT  = new NoEvent(Long.MAX_VALUE);
 
-    /** The name that the scheduler thread will have */
-	private static final String NAME_OF_THREAD = "UDPScheduler";
-
-    /** The active list of scheduled events */
-	private List<UDPTimerEvent> _connectionEvents;
-
-    /** The next event to be handled */
-	private UDPTimerEvent       _scheduledEvent;
+    /** The number of slots of the wheel, a power of two */
+    static final int WHEEL_SIZE = 1024;
 
-    private boolean             _started;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
 
 	/** Keep track of a singleton instance */
     private static UDPScheduler _instance    = null;
 
-    /** For offloading the synchronization issues, maintain a second thread
-        for updating events */
-    private UpdateThread                _updateThread;
-    
-    /**
-     * object used to make sure only one copy of the two threads exist per
-     * enclosing object
-     */
-    private final Object _updateThreadLock = new Object();
-    private final Object _mainThreadLock = new Object();
+    /** How late the events of all schedulers are run */
+    @InspectionPoint("rudp timer lag")
+    private static final TimerStats STATS = new TimerStats();
+
+    /** The dispatcher that ticks this scheduler */
+    private final NIODispatcher _dispatcher;
+
+    /** The first event of each slot */
+    private final UDPTimerEvent[] _wheel = new UDPTimerEvent[WHEEL_SIZE];
+
+    /** A bit for each slot that holds an event */
+    private final long[] _occupied = new long[WHEEL_SIZE / 64];
+
+    /** The events that are due, run outside of the lock */
+    private final List<UDPTimerEvent> _expired = new ArrayList<UDPTimerEvent>();
+
+    /** All events due before this time were run */
+    private long _currentTime;
+
+    /** The time of the next tick, if it is known */
+    private long _nextTickTime = Long.MAX_VALUE;
+
+    private boolean _nextTickTimeKnown = true;
+
+    /** The number of scheduled events */
+    private int _size;
 
     /**
      *  Return the <code>UDPScheduler</code> singleton.
@@ -57,244 +83,200 @@ public class UDPScheduler extends ManagedThread {
     public static synchronized UDPScheduler instance() {
 		// Create the singleton if it doesn't yet exist
 		if ( _instance == null ) {
-			_instance = new UDPScheduler();
+			_instance = new UDPScheduler(NIODispatcher.instance());
+			NIODispatcher.instance().addTicker(_instance);
 		}
 		return _instance;
     }
 
     /**
-     *  Initialize the <code>UDPScheduler</code>.
+     *  Initialize the <code>UDPScheduler</code>, it only runs events
+     *  once it is added to <code>dispatcher</code>.
      */
-    private UDPScheduler() {
-        super(NAME_OF_THREAD);
-        
-		_connectionEvents    = new ArrayList<UDPTimerEvent>();
-		_scheduledEvent      = NO_EVENT;
-        _started             = false;
-        _updateThread        = null;
+    UDPScheduler(NIODispatcher dispatcher) {
+        _dispatcher  = dispatcher;
+        _currentTime = System.currentTimeMillis();
     }
 
     /**
      *  Register a <code>UDPTimerEvent</code> for scheduling events
      */
 	public void register(UDPTimerEvent evt) {
-        
-		startThreads();
-        _updateThread.registerEvent(evt);
-
+	    synchronized(this) {
+	        evt._scheduler = this;
+	    }
+	    scheduleEvent(evt);
 	}
-	
 
-	private final synchronized void registerSync(UDPTimerEvent evt) {
-		_connectionEvents.add(evt);
+    /**
+     *  Notify the scheduler that a connection has a new scheduled event
+     */
+	public void scheduleEvent(UDPTimerEvent evt) {
+	    boolean wakeup;
+	    synchronized(this) {
+	        if (evt._scheduler != this)
+	            return;
+	        unlink(evt);
+	        if (evt.shouldUnregister() || evt.getEventTime() == Long.MAX_VALUE)
+	            return;
+	        wakeup = link(evt, Math.max(evt.getEventTime(), _currentTime));
+	    }
+	    if (wakeup)
+	        _dispatcher.wakeup();
 	}
 
 	/**
-	 * starts both threads if they haven't been started yet.
+	 *  Removes an event from the schedule.
 	 */
-	private final void startThreads() {
-		synchronized(_mainThreadLock) {
-		    if ( !_started ) {
-		        _started = true;
-		        setDaemon(true);
-		        start();
-		    }
-		}
-		
-		synchronized(_updateThreadLock) {
-			if ( _updateThread == null ) {
-				_updateThread = new UpdateThread();
-				_updateThread.setDaemon(true);
-				_updateThread.start();
-			}
-		}
+	void cancel(UDPTimerEvent evt) {
+	    synchronized(this) {
+	        unlink(evt);
+	    }
 	}
 
+	/**
+	 *  Returns the number of scheduled events.
+	 */
+	public synchronized int getNumScheduledEvents() {
+	    return _size;
+	}
 
-    /**
-     *  Notify the scheduler that a connection has a new scheduled event
-     */
-	public void scheduleEvent(UDPTimerEvent evt) {
-
-        startThreads();
-
-        // Pass the event update to the update thread.
-        _updateThread.addEvent(evt);
+	/**
+	 *  Returns the number of events that were run, their average and their
+	 *  maximum lag in milliseconds.
+	 */
+	public static long[] getLagStats() {
+	    return STATS.getStats();
 	}
 
-    /**
-     *  Shortcut test for a second thread to deal with the new schedule handoff
-     */
-    class UpdateThread extends ManagedThread {
-        List<UDPTimerEvent> _listSchedule;
-        List<UDPTimerEvent> _listRegister;
-
-        /**
-         *  Initialize the list of pending event updates
-         */
-        public UpdateThread() {
-            super("UDPUpdateThread");
-            _listSchedule = new ArrayList<UDPTimerEvent>();
-            _listRegister = new ArrayList<UDPTimerEvent>();
-        }
-
-        /**
-         *  Schedule an event for update in the main event list
-         */
-        public synchronized void addEvent(UDPTimerEvent evt) {
-              _listSchedule.add(evt);
-              notify();
-        }
-        
-        
-        public synchronized void registerEvent(UDPTimerEvent evt) {
-        	_listRegister.add(evt);
-        	notify();
-        }
-        
-        /**
-         *  Process incoming event updates by interacting with the main thread.
-         */
-        @Override
-        public void run() {
-            UDPTimerEvent evt;
-            List<UDPTimerEvent> localListSchedule;
-            List<UDPTimerEvent> localListRegister;
-            while (true) {
-               // Make sure that there is some idle time in the event updating
-               // Otherwise, it will burn cpu
-               try {
-                    Thread.sleep(1);
-               } catch(InterruptedException e) {}
-
-                // Clone list for safe unlocked access
-                synchronized(this) {
-                    localListSchedule = new ArrayList<UDPTimerEvent>(_listSchedule);
-                    _listSchedule.clear();
-                    localListRegister = new ArrayList<UDPTimerEvent>(_listRegister);
-                    _listRegister.clear();
-                }
-
-                
-                //then add any events
-                for(int i = 0; i < localListRegister.size(); i++)
-                    registerSync(localListRegister.get(i));
-                
-                //then reschedule any events
-                for (int i=0; i < localListSchedule.size(); i++) {
-                    evt = localListSchedule.get(i);
-                    updateSchedule(evt);
-                }
-                
-                
-
-
-                // Wait for more event updates
-                synchronized(this) {
-                    if (_listSchedule.size() > 0 || 
-							_listRegister.size() > 0)
-                        continue;
-                    try {
-                        wait();
-                    } catch(InterruptedException e) {}
-                }
-            }
-        }
-
-        /**
-         *  Process the updating of an event
-         */
-        private void updateSchedule(UDPTimerEvent evt) {
-            synchronized(UDPScheduler.this) {
-                // If the event is sooner and still active, make it current
-                if ( evt.getEventTime() < _scheduledEvent.getEventTime() &&
-                     _connectionEvents.contains(evt) ) {
-                    _scheduledEvent      = evt;
-                    
-                    // Notifying 
-                    UDPScheduler.this.notify();
-                }
-            }
-        }
-    }
+	/**
+	 *  Returns the time of the first slot with an event that is due within
+	 *  a turn of the wheel, or the time a turn is over.
+	 */
+	public synchronized long nextTickTime() {
+	    if (!_nextTickTimeKnown) {
+	        _nextTickTimeKnown = true;
+	        _nextTickTime = _size > 0 ? nextDueTime() : Long.MAX_VALUE;
+	    }
+	    return _nextTickTime;
+	}
 
-    /**
-	 *  Wait for scheduled events on UDPTimerEvent, 
-     *  run them and reschedule
-     */
- 	@Override
-    public void run() {
-		long  waitTime;
-	
-        // Specify that an interrupt is okay
-
-		while (true) {
-            // wait for an existing or future event
-            try {
-            	synchronized(this) {
-                    if ( _scheduledEvent == NO_EVENT ) {
-                        // Wait a long time since there is nothing to do
-                        waitTime = 0;
-                    } else {
-                        // Wait for specific event
-                        waitTime = _scheduledEvent.getEventTime() - 
-                          System.currentTimeMillis();
-                        if (waitTime ==0)
-                        	waitTime=-1;
-                    }
-                    
-                    if (waitTime >=0)
-                		wait(waitTime);
-                }
-            } catch(InterruptedException e) {
-            }
-
-            // Determine whether to run existing event
-            // or to just sleep on a possibly changed event
-            synchronized(this) {
-
-                waitTime = _scheduledEvent.getEventTime() - 
-                  System.currentTimeMillis();
-                if ( waitTime > 0 )
-                    continue;
-            }
-
-            // Run the event and rework the schedule.
-            runEvent();
-            reworkSchedule();
-		}
+	/**
+	 *  Returns the time of the first slot with an event that is due within
+	 *  a turn of the wheel, or the time a turn is over. Only the slots that
+	 *  hold events are looked at.
+	 */
+	private long nextDueTime() {
+	    long end = _currentTime + WHEEL_SIZE;
+	    long time = _currentTime;
+	    while (time < end) {
+	        int slot = (int)time & WHEEL_MASK;
+	        long bits = _occupied[slot >>> 6] >>> (slot & 63);
+	        if (bits == 0) {
+	            // no events in the rest of this word
+	            time += 64 - (slot & 63);
+	            continue;
+	        }
+	        time += Long.numberOfTrailingZeros(bits);
+	        if (time < end && isDue(_wheel[(int)time & WHEEL_MASK], time))
+	            return time;
+	        time++;
+	    }
+	    return end;
 	}
 
-    /**
-	 *  Run the scheduled UDPTimerEvent event
-     */
- 	private synchronized void runEvent() {
+	/**
+	 *  Runs the events that are due at <code>now</code>.
+	 */
+	public void tick(long now) {
+	    synchronized(this) {
+	        if (now < _currentTime)
+	            return;
+	        long end = Math.min(now, _currentTime + WHEEL_MASK);
+	        for (long time = _currentTime; time <= end; time++) {
+	            UDPTimerEvent evt = _wheel[(int)time & WHEEL_MASK];
+	            while (evt != null) {
+	                UDPTimerEvent next = evt._next;
+	                if (evt._deadline <= now) {
+	                    if (evt.getEventTime() <= now)
+	                        STATS.addLag(now - evt._deadline);
+	                    _expired.add(evt);
+	                    unlink(evt);
+	                }
+	                evt = next;
+	            }
+	        }
+	        _currentTime = now + 1;
+	        _nextTickTimeKnown = false;
+	    }
+
+	    // run the events outside of the lock, they lock their connections
+	    for (int i = 0; i < _expired.size(); i++) {
+	        UDPTimerEvent evt = _expired.get(i);
+	        try {
+	            if (evt.shouldUnregister())
+	                cancel(evt);
+	            else if (evt.getEventTime() > now)
+	                scheduleEvent(evt);
+	            else
+	                evt.handleEvent();
+	        } catch(Throwable t) {
+	            LOG.error(t);
+	            ErrorService.error(t);
+	        }
+	    }
+	    _expired.clear();
+	}
 
-		if (_scheduledEvent.shouldUnregister())
-			_connectionEvents.remove(_scheduledEvent);
-		else
-			_scheduledEvent.handleEvent();
+	/**
+	 *  Adds an event to the slot of <code>deadline</code> and returns true
+	 *  if the dispatcher needs to be woken up to run it in time.
+	 */
+	private boolean link(UDPTimerEvent evt, long deadline) {
+	    int slot = (int)deadline & WHEEL_MASK;
+	    evt._deadline = deadline;
+	    evt._prev = null;
+	    evt._next = _wheel[slot];
+	    if (evt._next != null)
+	        evt._next._prev = evt;
+	    _wheel[slot] = evt;
+	    _occupied[slot >>> 6] |= 1L << (slot & 63);
+	    _size++;
+
+	    if (!_nextTickTimeKnown || deadline >= _nextTickTime)
+	        return false;
+	    _nextTickTime = deadline;
+	    return true;
+	}
 
+	/**
+	 *  Removes an event from its slot if it is scheduled.
+	 */
+	private void unlink(UDPTimerEvent evt) {
+	    if (evt._deadline == -1)
+	        return;
+	    int slot = (int)evt._deadline & WHEEL_MASK;
+	    if (evt._prev != null)
+	        evt._prev._next = evt._next;
+	    else if ((_wheel[slot] = evt._next) == null)
+	        _occupied[slot >>> 6] &= ~(1L << (slot & 63));
+	    if (evt._next != null)
+	        evt._next._prev = evt._prev;
+	    evt._next = null;
+	    evt._prev = null;
+	    evt._deadline = -1;
+	    _size--;
 	}
 
-    /**
-	 *  Go through the active UDPTimerEvent and find the next event.
-     *  For now, I don't think it is necessary to resort the list.
-     */
- 	private synchronized void reworkSchedule() {
-		UDPTimerEvent evt;
-		long          time;
-
-		_scheduledEvent      = NO_EVENT;
-		for (int i = 0; i < _connectionEvents.size(); i++) {
-			evt = _connectionEvents.get(i);
-			time = evt.getEventTime();
-			if ( evt  != NO_EVENT && 
-				 (time < _scheduledEvent.getEventTime() || 
-                 _scheduledEvent == NO_EVENT)) {
-				_scheduledEvent = evt;
-			}
-		}
+	/**
+	 *  Returns true if one of the events of a slot is due at <code>time</code>.
+	 */
+	private static boolean isDue(UDPTimerEvent evt, long time) {
+	    for (; evt != null; evt = evt._next) {
+	        if (evt._deadline == time)
+	            return true;
+	    }
+	    return false;
 	}
 
 	private static final class NoEvent extends UDPTimerEvent {
@@ -305,7 +287,32 @@ public class UDPScheduler extends ManagedThread {
 		@Override
         protected void doActualEvent(UDPConnectionProcessor udpCon) {
 		}
-	} 
+	}
 
+	/**
+	 *  Keeps track of how late the events are run.
+	 */
+	private static class TimerStats implements Inspectable {
+	    private long numEvents, totalLag, maxLag;
+
+	    synchronized void addLag(long lag) {
+	        numEvents++;
+	        totalLag += lag;
+	        maxLag = Math.max(maxLag, lag);
+	    }
+
+	    synchronized long[] getStats() {
+	        return new long[] { numEvents, numEvents == 0 ? 0 : totalLag / numEvents, maxLag };
+	    }
+
+	    public Object inspect() {
+	        long[] data = getStats();
+	        Map<String, Object> ret = new HashMap<String, Object>();
+	        ret.put("ver", 1);
+	        ret.put("num", data[0]);
+	        ret.put("avg", data[1]);
+	        ret.put("max", data[2]);
+	        return ret;
+	    }
+	}
 }
-
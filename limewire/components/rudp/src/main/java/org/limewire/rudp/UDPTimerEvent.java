@@ -10,7 +10,8 @@ import org.apache.commons.logging.LogFactory;
  * as needed. You must implement {@link #doActualEvent(UDPConnectionProcessor)}
  * to call an appropriate {@link UDPConnectionProcessor} method.
  * </p>
- * When done with the event, unregister it.
+ * When done with the event, unregister it. A new time takes effect when the
+ * event is scheduled again, only a later time is noticed without that.
  */
 public abstract class UDPTimerEvent implements Comparable<UDPTimerEvent> {
 	
@@ -24,6 +25,15 @@ public abstract class UDPTimerEvent implements Comparable<UDPTimerEvent> {
     
     /** the UDPConnectionProcessor this event refers to */
     protected final WeakReference<UDPConnectionProcessor> _udpCon;
+    
+    /** The scheduler this event is registered with. */
+    volatile UDPScheduler _scheduler;
+    
+    /** The neighbours in the slot of the scheduler, guarded by the scheduler. */
+    UDPTimerEvent _next, _prev;
+    
+    /** The time the scheduler runs this event at, -1 if it isn't scheduled. */
+    long _deadline = -1;
 
    /**
     *  Create a timer event with a default time.
@@ -51,7 +61,9 @@ public abstract class UDPTimerEvent implements Comparable<UDPTimerEvent> {
     
     protected final void unregister() {
     	_shouldUnregister=true;
-    	_eventTime=1;
+    	UDPScheduler scheduler = _scheduler;
+    	if (scheduler != null)
+    	    scheduler.cancel(this);
     }
 
    /**
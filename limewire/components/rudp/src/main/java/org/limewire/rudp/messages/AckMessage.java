@@ -26,4 +26,15 @@ public interface AckMessage extends RUDPMessage {
      */
     public int getWindowSpace();
 
+    /**
+     *  The selective acks report blocks above the windowStart that the 
+     *  receiver got already, so the sender doesn't have to wait for the 
+     *  window to move on before it knows which blocks were lost.  They are
+     *  returned as pairs of offsets from the windowStart, the first block 
+     *  of a range and one past its last block.  Only peers that advertised
+     *  a window size in their SynMessage send them, otherwise the array is 
+     *  empty.
+     */
+    public int[] getSelectiveAcks();
+
 }
\ No newline at end of file
@@ -15,6 +15,12 @@ public interface RUDPMessageFactory {
     /** Constructs a new AckMessage. */
     public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace);
     
+    /** 
+     * Constructs a new AckMessage with selective acks, see 
+     * {@link AckMessage#getSelectiveAcks()}. 
+     */
+    public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, int[] selectiveAcks);
+    
     /** Creates a new DataMessage. */
     public DataMessage createDataMessage(byte connectionID, long sequenceNumber, ByteBuffer chunk);
     
@@ -29,4 +35,10 @@ public interface RUDPMessageFactory {
     
     /** Creates a new SynMessage with their & our connection id. */
     public SynMessage createSynMessage(byte connectionID, byte theirConnectionID, Role role);
+    
+    /** 
+     * Creates a new SynMessage with their & our connection id that advertises 
+     * the size of our receive window, see {@link SynMessage#getWindowSize()}. 
+     */
+    public SynMessage createSynMessage(byte connectionID, byte theirConnectionID, Role role, int windowSize);
 }
@@ -81,4 +81,12 @@ public interface SynMessage extends RUDPMessage {
      */
     public Role getRole();
 
+    /**
+     * Returns the number of data messages the sender can buffer, or 0 if
+     * the sender only supports the default window of 
+     * <code>UDPConnectionProcessor.DATA_WINDOW_SIZE</code> messages and
+     * doesn't understand selective acks.
+     */
+    public int getWindowSize();
+
 }
\ No newline at end of file
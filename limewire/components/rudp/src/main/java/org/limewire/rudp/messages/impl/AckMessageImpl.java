@@ -10,18 +10,50 @@ import org.limewire.rudp.messages.MessageFormatException;
  */
 class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
 
+    /** The maximum number of selective ack ranges sent in one message. */
+    static final int MAX_SELECTIVE_ACK_RANGES = 8;
+
+    private static final int[] NO_SELECTIVE_ACKS = new int[0];
+
     private long _windowStart;
     private int  _windowSpace;
+    private final int[] _selectiveAcks;
 
     /**
      * Construct a new AckMessage with the specified settings and data
      */
     AckMessageImpl(byte connectionID, long sequenceNumber, long windowStart, int windowSpace) {
+        this(connectionID, sequenceNumber, windowStart, windowSpace, NO_SELECTIVE_ACKS);
+    }
+
+    /**
+     * Construct a new AckMessage with selective acks, they are written to
+     * the payload as pairs of unsigned shorts.
+     */
+    AckMessageImpl(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, int[] selectiveAcks) {
         super(connectionID, OpCode.OP_ACK, sequenceNumber,
               (short)(windowStart & 0xFFFF),
-              (short)(windowSpace < 0 ? 0 : windowSpace & 0xFFFF));
+              (short)(windowSpace < 0 ? 0 : windowSpace & 0xFFFF),
+              deriveData(selectiveAcks));
         _windowStart = windowStart;
         _windowSpace = windowSpace;
+        _selectiveAcks = selectiveAcks;
+    }
+
+    private static ByteBuffer deriveData(int[] selectiveAcks) {
+        if (selectiveAcks.length % 2 != 0 || selectiveAcks.length > 2 * MAX_SELECTIVE_ACK_RANGES)
+            throw new IllegalArgumentException("invalid selective acks: " + selectiveAcks.length);
+        ByteBuffer data = ByteBuffer.allocate(selectiveAcks.length * 2);
+        data.order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < selectiveAcks.length; i += 2) {
+            if (selectiveAcks[i] < 0 || selectiveAcks[i] >= selectiveAcks[i + 1]
+                    || selectiveAcks[i + 1] > 0xFFFF)
+                throw new IllegalArgumentException("invalid range: " + selectiveAcks[i] + "-" + selectiveAcks[i + 1]);
+            data.putShort((short)selectiveAcks[i]);
+            data.putShort((short)selectiveAcks[i + 1]);
+        }
+        data.flip();
+        return data;
     }
 
     /**
@@ -37,6 +69,35 @@ class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
         _windowStart = data1.getShort();
         _windowSpace = data1.getShort();
         data1.rewind();
+        _selectiveAcks = parseSelectiveAcks(data2);
+    }
+
+    /**
+     * Reads the selective acks from the payload, older versions don't send
+     * one. Invalid ranges are ignored.
+     */
+    private static int[] parseSelectiveAcks(ByteBuffer data2) {
+        int ranges = Math.min(data2.remaining() / 4, MAX_SELECTIVE_ACK_RANGES);
+        if (ranges == 0)
+            return NO_SELECTIVE_ACKS;
+        ByteBuffer data = data2.duplicate();
+        data.order(ByteOrder.BIG_ENDIAN);
+        int[] selectiveAcks = new int[ranges * 2];
+        int length = 0;
+        for (int i = 0; i < ranges; i++) {
+            int start = data.getShort() & 0xFFFF;
+            int end = data.getShort() & 0xFFFF;
+            if (start < end) {
+                selectiveAcks[length++] = start;
+                selectiveAcks[length++] = end;
+            }
+        }
+        if (length < selectiveAcks.length) {
+            int[] valid = new int[length];
+            System.arraycopy(selectiveAcks, 0, valid, 0, length);
+            return valid;
+        }
+        return selectiveAcks;
     }
 
     /* (non-Javadoc)
@@ -60,10 +121,15 @@ class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
         return _windowSpace;
     }
 
+    public int[] getSelectiveAcks() {
+        return _selectiveAcks;
+    }
+
 	@Override
     public String toString() {
 		return "AckMessage DestID:"+getConnectionID()+
 		  " start:"+_windowStart+" space:"+_windowSpace+
-		  " seq:"+getSequenceNumber();
+		  " seq:"+getSequenceNumber()+
+		  (_selectiveAcks.length > 0 ? " sacks:"+(_selectiveAcks.length / 2) : "");
 	}
 }
@@ -41,6 +41,14 @@ public abstract class RUDPMessageImpl implements RUDPMessage {
     
     /** Constructs an RUDPMessage with shorts integers of data. */
     protected RUDPMessageImpl(byte connectionID, OpCode opcode, long sequenceNumber, short d1, short d2) {
+        this(connectionID, opcode, sequenceNumber, d1, d2, BufferUtils.getEmptyBuffer());
+    }
+    
+    /** 
+     * Constructs an RUDPMessage with shorts integers of data and a payload.
+     * The payload must be backed by an array.
+     */
+    protected RUDPMessageImpl(byte connectionID, OpCode opcode, long sequenceNumber, short d1, short d2, ByteBuffer payload) {
         _connectionID   = connectionID;
         _opcode         = opcode;
         _sequenceNumber = sequenceNumber;
@@ -49,7 +57,7 @@ public abstract class RUDPMessageImpl implements RUDPMessage {
         _data1.putShort(d1);
         _data1.putShort(d2);
         _data1.flip();
-        _data2 = BufferUtils.getEmptyBuffer();
+        _data2 = payload;
     }
     
     /** Constructs an RUDPMessage with one byte of data. */
@@ -14,6 +14,7 @@ public class SynMessageImpl extends RUDPMessageImpl implements SynMessage {
 	private final byte _senderConnectionID;
     private final short  _protocolVersionNumber;
     private final Role role;
+    private final int _windowSize;
 
     /**
      * Construct a new SynMessage with the specified settings and data
@@ -26,18 +27,37 @@ public class SynMessageImpl extends RUDPMessageImpl implements SynMessage {
      * Construct a new SynMessage with both my Connection ID and theirs
      */
     SynMessageImpl(byte connectionID, byte theirConnectionID, Role role) {
-        super(theirConnectionID, OpCode.OP_SYN, 0, deriveData(connectionID, PROTOCOL_VERSION_NUMBER, role));
+        this(connectionID, theirConnectionID, role, 0);
+    }
+
+    /**
+     * Construct a new SynMessage with both Connection IDs that advertises
+     * the size of my receive window. The window size is written after the 
+     * role, where older versions only expect padding, so it doesn't need a 
+     * new protocol version.
+     */
+    SynMessageImpl(byte connectionID, byte theirConnectionID, Role role, int windowSize) {
+        super(theirConnectionID, OpCode.OP_SYN, 0, deriveData(connectionID, PROTOCOL_VERSION_NUMBER, role, windowSize));
         _senderConnectionID    = connectionID;
         this.role = role;
         _protocolVersionNumber = PROTOCOL_VERSION_NUMBER;
+        _windowSize = windowSize;
     }
 
     static byte[] deriveData(byte connectionID, short protocolVersionNumber, Role role) {
-        ByteBuffer data = ByteBuffer.allocate(4);
+        return deriveData(connectionID, protocolVersionNumber, role, 0);
+    }
+
+    static byte[] deriveData(byte connectionID, short protocolVersionNumber, Role role, int windowSize) {
+        if (windowSize < 0 || windowSize > 0xFFFF)
+            throw new IllegalArgumentException("invalid window size: " + windowSize);
+        ByteBuffer data = ByteBuffer.allocate(windowSize > 0 ? 6 : 4);
         data.order(ByteOrder.BIG_ENDIAN);
         data.put(connectionID);
         data.putShort(protocolVersionNumber);
         data.put(role.byteValue());
+        if (windowSize > 0)
+            data.putShort((short)windowSize);
         return data.array();
     }
 
@@ -57,8 +77,10 @@ public class SynMessageImpl extends RUDPMessageImpl implements SynMessage {
             byte value = data1.get();
             Role role = Role.valueOf(value);
             this.role = role != null ? role : Role.UNDEFINED;
+            _windowSize = data1.remaining() >= 2 ? data1.getShort() & 0xFFFF : 0;
         } else {
             this.role = Role.UNDEFINED;
+            _windowSize = 0;
         }
         data1.rewind();
     }
@@ -80,11 +102,16 @@ public class SynMessageImpl extends RUDPMessageImpl implements SynMessage {
 	@Override
     public String toString() {
 		return "SynMessage DestID:"+getConnectionID()+
-		  " SrcID:"+_senderConnectionID+" vNo:"+_protocolVersionNumber;
+		  " SrcID:"+_senderConnectionID+" vNo:"+_protocolVersionNumber+
+		  " window:"+_windowSize;
 	}
 
     @Override
     public Role getRole() {
         return role;
     }
+
+    public int getWindowSize() {
+        return _windowSize;
+    }
 }
@@ -0,0 +1,120 @@
+package org.limewire.rudp;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+public class CongestionControllerTest extends BaseTestCase {
+
+    public CongestionControllerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(CongestionControllerTest.class);
+    }
+
+    public void testSlowStart() {
+        CongestionController controller = new CongestionController(20, 256);
+        assertEquals(20, controller.getWindow());
+        assertTrue(controller.canSend(19));
+        assertFalse(controller.canSend(20));
+
+        controller.addDelaySample(50, 1000);
+        controller.messagesAcked(20, 20);
+        assertTrue(controller.isSlowStart());
+        assertEquals(40, controller.getWindow());
+
+        // the window doesn't grow if it isn't used 
+        controller.messagesAcked(10, 10);
+        assertEquals(40, controller.getWindow());
+
+        for (int i = 0; i < 10; i++)
+            controller.messagesAcked(10, controller.getWindow());
+        assertEquals(140, controller.getWindow());
+
+        // slow start ends once the queues grow
+        for (int i = 0; i < 4; i++)
+            controller.addDelaySample(50 + CongestionController.TARGET_DELAY, 1000);
+        controller.messagesAcked(10, controller.getWindow());
+        assertFalse(controller.isSlowStart());
+        assertEquals(140, controller.getWindow());
+    }
+
+    public void testDelayBasedGrowth() {
+        CongestionController controller = new CongestionController(20, 256);
+        controller.messageLost(0, 20);
+        assertFalse(controller.isSlowStart());
+        assertEquals(10, controller.getWindow());
+
+        // no queuing delay, the window grows by one message per window
+        controller.addDelaySample(50, 1000);
+        controller.messagesAcked(10, 10);
+        assertEquals(11, controller.getWindow());
+
+        // the queuing delay is at the target, the window stays the same
+        for (int i = 0; i < 4; i++)
+            controller.addDelaySample(50 + CongestionController.TARGET_DELAY, 1000);
+        assertEquals(CongestionController.TARGET_DELAY, controller.getQueuingDelay());
+        controller.messagesAcked(11, 11);
+        assertEquals(11, controller.getWindow());
+
+        // above the target it shrinks
+        for (int i = 0; i < 4; i++)
+            controller.addDelaySample(50 + 3 * CongestionController.TARGET_DELAY, 1000);
+        controller.messagesAcked(11, 11);
+        assertEquals(9, controller.getWindow());
+    }
+
+    public void testBaseDelayExpires() {
+        CongestionController controller = new CongestionController(20, 256);
+        assertEquals(-1, controller.getBaseDelay());
+        assertEquals(0, controller.getQueuingDelay());
+
+        controller.addDelaySample(50, 1000);
+        controller.addDelaySample(80, 2000);
+        assertEquals(50, controller.getBaseDelay());
+        assertEquals(50, controller.getCurrentDelay());
+
+        // after ten minutes the route may have changed
+        long time = 2000;
+        for (int i = 0; i < 10; i++) {
+            time += 61 * 1000;
+            controller.addDelaySample(80, time);
+        }
+        assertEquals(80, controller.getBaseDelay());
+    }
+
+    public void testLossesAndTimeouts() {
+        CongestionController controller = new CongestionController(40, 256);
+        controller.messageLost(10, 50);
+        assertEquals(20, controller.getWindow());
+        // only once per recovery episode, messages sent before the
+        // decrease don't decrease the window again
+        controller.messageLost(11, 50);
+        controller.messageLost(49, 60);
+        assertEquals(20, controller.getWindow());
+        controller.messageLost(50, 70);
+        assertEquals(10, controller.getWindow());
+
+        // after a timeout slow start grows the window to half of its old size
+        controller.timeout(80);
+        assertEquals(CongestionController.MIN_WINDOW, controller.getWindow());
+        assertTrue(controller.isSlowStart());
+        controller.messagesAcked(2, 2);
+        assertEquals(4, controller.getWindow());
+        controller.messagesAcked(4, 4);
+        assertEquals(5, controller.getWindow());
+        assertFalse(controller.isSlowStart());
+
+        controller.messageLost(80, 90);
+        assertEquals(CongestionController.MIN_WINDOW, controller.getWindow());
+    }
+
+    public void testMaxWindow() {
+        CongestionController controller = new CongestionController(20, 16);
+        assertEquals(16, controller.getWindow());
+        controller.messagesAcked(16, 16);
+        assertEquals(16, controller.getWindow());
+    }
+}
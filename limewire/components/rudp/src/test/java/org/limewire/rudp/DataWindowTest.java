@@ -147,4 +147,91 @@ public class DataWindowTest extends TestCase {
         window.clearEarlyReadBlocks();
         assertFalse(window.hasReadableData());
     }
+
+    public void testGrowsBeyondWindow() {
+        DataWindow window = new DataWindow(2, 5);
+        DataRecord far = window.addData(new StubDataMessage(100));
+        DataRecord near = window.addData(new StubDataMessage(6));
+        assertSame(far, window.getBlock(100));
+        assertSame(near, window.getBlock(6));
+        assertNull(window.getBlock(5));
+        assertNull(window.getBlock(38));
+        assertNull(window.getBlock(4));
+
+        window.setWindowSize(40);
+        assertEquals(40, window.getWindowSize());
+        assertSame(far, window.getBlock(100));
+        assertSame(near, window.getBlock(6));
+        try {
+            window.setWindowSize(39);
+            fail("expected exception");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testRingWrapsAround() {
+        DataWindow window = new DataWindow(4, 0);
+        for (int i = 0; i < 100; i++) {
+            DataRecord rec = window.addData(new StubDataMessage(i));
+            rec.acks = 1;
+            assertEquals(1, window.clearLowAckedBlocks(null));
+            assertNull(window.getBlock(i));
+        }
+        assertEquals(100, window.getWindowStart());
+        assertEquals(100, window.getLowestUnsentBlock());
+    }
+
+    public void testReceivedRanges() {
+        DataWindow window = new DataWindow(20, 10);
+        assertEquals(0, window.getReceivedRanges(4).length);
+
+        window.addData(new StubDataMessage(10));
+        window.addData(new StubDataMessage(11));
+        window.addData(new StubDataMessage(14));
+        window.addData(new StubDataMessage(16));
+        window.addData(new StubDataMessage(17));
+        window.addData(new StubDataMessage(20));
+        int[] ranges = window.getReceivedRanges(4);
+        assertEquals(8, ranges.length);
+        assertEquals(0, ranges[0]);
+        assertEquals(2, ranges[1]);
+        assertEquals(4, ranges[2]);
+        assertEquals(5, ranges[3]);
+        assertEquals(6, ranges[4]);
+        assertEquals(8, ranges[5]);
+        assertEquals(10, ranges[6]);
+        assertEquals(11, ranges[7]);
+
+        ranges = window.getReceivedRanges(2);
+        assertEquals(4, ranges.length);
+        assertEquals(5, ranges[3]);
+    }
+
+    public void testAckRangeAndLostBlock() {
+        DataWindow window = new DataWindow(20, 1);
+        for (int i = 1; i <= 6; i++)
+            window.addData(new StubDataMessage(i)).sentTime = 1000 + i;
+        assertEquals(6, window.getUnackedBlocks());
+        assertNull(window.getLostBlock(2000, 3));
+
+        assertEquals(2, window.ackRange(3, 5, 1100));
+        assertEquals(0, window.ackRange(3, 5, 1100));
+        assertEquals(4, window.getUnackedBlocks());
+        // only two blocks above the missing ones were acked
+        assertNull(window.getLostBlock(2000, 3));
+
+        assertEquals(1, window.ackRange(6, 20, 1100));
+        assertSame(window.getBlock(1), window.getLostBlock(2000, 3));
+        // a resent block is not lost again until blocks sent after it are acked
+        window.getBlock(1).sentTime = 1500;
+        assertSame(window.getBlock(2), window.getLostBlock(2000, 3));
+        window.getBlock(1).sentTime = 1001;
+        window.getBlock(1).acks++;
+        assertSame(window.getBlock(2), window.getLostBlock(2000, 3));
+
+        // 5 only has one acked block above it
+        assertEquals(1, window.pseudoAckToReceiverWindow(3));
+        assertNull(window.getLostBlock(2000, 3));
+        assertEquals(1, window.getUnackedBlocks());
+    }
 }
@@ -0,0 +1,126 @@
+package org.limewire.rudp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.limewire.concurrent.ManagedThread;
+import org.limewire.listener.EventListenerList;
+import org.limewire.nio.AbstractNBSocket;
+import org.limewire.nio.NIODispatcher;
+import org.limewire.rudp.messages.RUDPMessageFactory;
+import org.limewire.rudp.messages.impl.DefaultMessageFactory;
+
+/**
+ * Compares the throughput of a one way transfer over a loopback
+ * <code>UDPServiceStub</code> with the default window of
+ * {@link UDPConnectionProcessor#DATA_WINDOW_SIZE} messages, as used with
+ * older peers, and with a negotiated window, for several one way delays
+ * and loss rates.
+ * <p>
+ * Usage: <code>RUDPThroughputBenchmark [bytes] [window]</code>
+ */
+public class RUDPThroughputBenchmark {
+
+    private static final int[] DELAYS = { 1, 10, 50 };
+
+    private static final int[] LOSSES = { 0, 2, 5 };
+
+    public static void main(String[] args) throws Exception {
+        int bytes = args.length > 0 ? Integer.parseInt(args[0]) : 1000 * 1000;
+        int window = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        System.out.println(bytes + " bytes, negotiated window " + window);
+
+        for (int delay : DELAYS) {
+            for (int loss : LOSSES) {
+                long legacy = transfer(UDPConnectionProcessor.DATA_WINDOW_SIZE, delay, loss, bytes);
+                long negotiated = transfer(window, delay, loss, bytes);
+                System.out.println("delay " + delay + " ms, loss " + loss + "%: default window "
+                        + rate(bytes, legacy) + " KB/s, negotiated window "
+                        + rate(bytes, negotiated) + " KB/s");
+            }
+        }
+        System.exit(0);
+    }
+
+    private static String rate(int bytes, long millis) {
+        if (millis < 0)
+            return "timed out";
+        return String.valueOf(bytes * 1000L / 1024 / Math.max(1, millis));
+    }
+
+    /**
+     * Transfers <tt>bytes</tt> between two connections whose settings allow
+     * a window of <tt>window</tt> messages and returns the milliseconds it
+     * took or -1 if it didn't finish in time.
+     */
+    private static long transfer(final int window, int delay, int loss, final int bytes)
+            throws Exception {
+        RUDPMessageFactory factory = new DefaultMessageFactory();
+        UDPServiceStub service = new UDPServiceStub(factory);
+        RUDPSettings settings = new DefaultRUDPSettings() {
+            @Override
+            public int getMaxWindowSize() {
+                return window;
+            }
+        };
+        RUDPContext context = new DefaultRUDPContext(factory, NIODispatcher.instance()
+                .getTransportListener(), service, settings);
+        final UDPSelectorProvider provider = new UDPSelectorProvider(context,
+                new EventListenerList<UDPSocketChannelConnectionEvent>());
+        UDPMultiplexor multiplexor = provider.openSelector();
+        service.setUDPMultiplexor(multiplexor);
+        NIODispatcher.instance().registerSelector(multiplexor, provider.getUDPSocketChannelClass());
+        service.addReceiver(6346, 6348, delay, loss);
+        service.addReceiver(6348, 6346, delay, loss);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AbstractNBSocket[] reader = new AbstractNBSocket[1];
+        AbstractNBSocket writer = null;
+        Thread thread = new ManagedThread() {
+            @Override
+            public void run() {
+                try {
+                    reader[0] = provider.openSocketChannel().socket();
+                    reader[0].connect(new InetSocketAddress("127.0.0.1", 6348), 5000);
+                    InputStream in = reader[0].getInputStream();
+                    byte[] buf = new byte[8192];
+                    int read = 0;
+                    while (read < bytes) {
+                        int n = in.read(buf);
+                        if (n == -1)
+                            return;
+                        read += n;
+                    }
+                    done.countDown();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            writer = provider.openAcceptorSocketChannel().socket();
+            writer.connect(new InetSocketAddress("127.0.0.1", 6346), 5000);
+            OutputStream out = writer.getOutputStream();
+            long start = System.currentTimeMillis();
+            byte[] buf = new byte[8192];
+            for (int written = 0; written < bytes; written += buf.length)
+                out.write(buf, 0, Math.min(buf.length, bytes - written));
+            if (!done.await(5, TimeUnit.MINUTES))
+                return -1;
+            return System.currentTimeMillis() - start;
+        } finally {
+            if (writer != null)
+                writer.shutdown();
+            if (reader[0] != null)
+                reader[0].shutdown();
+            service.clearReceivers();
+            NIODispatcher.instance().removeSelector(multiplexor);
+        }
+    }
+}
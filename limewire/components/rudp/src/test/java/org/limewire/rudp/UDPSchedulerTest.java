@@ -0,0 +1,191 @@
+package org.limewire.rudp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+
+import org.limewire.listener.EventListenerList;
+import org.limewire.nio.NIODispatcher;
+import org.limewire.util.BaseTestCase;
+
+public class UDPSchedulerTest extends BaseTestCase {
+
+    private UDPConnectionProcessor processor;
+
+    private UDPScheduler scheduler;
+
+    private List<StubTimerEvent> run;
+
+    public UDPSchedulerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(UDPSchedulerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        UDPSelectorProvider provider = new UDPSelectorProvider(new DefaultRUDPContext(),
+                new EventListenerList<UDPSocketChannelConnectionEvent>());
+        processor = ((UDPSocketChannel)provider.openSocketChannel()).getProcessor();
+        // not added to the dispatcher, the test ticks it
+        scheduler = new UDPScheduler(NIODispatcher.instance());
+        run = new ArrayList<StubTimerEvent>();
+    }
+
+    public void testRunsEventsInOrder() throws Exception {
+        long now = System.currentTimeMillis();
+        StubTimerEvent late = new StubTimerEvent(now + 30);
+        StubTimerEvent early = new StubTimerEvent(now + 10);
+        StubTimerEvent idle = new StubTimerEvent(Long.MAX_VALUE);
+        scheduler.register(late);
+        scheduler.register(early);
+        scheduler.register(idle);
+        assertEquals(2, scheduler.getNumScheduledEvents());
+        assertEquals(now + 10, scheduler.nextTickTime());
+
+        scheduler.tick(now + 9);
+        assertTrue(run.isEmpty());
+        assertEquals(now + 10, scheduler.nextTickTime());
+
+        scheduler.tick(now + 15);
+        assertEquals(1, run.size());
+        assertSame(early, run.get(0));
+        assertEquals(now + 30, scheduler.nextTickTime());
+
+        scheduler.tick(now + 40);
+        assertEquals(2, run.size());
+        assertSame(late, run.get(1));
+        assertEquals(0, scheduler.getNumScheduledEvents());
+        assertEquals(Long.MAX_VALUE, scheduler.nextTickTime());
+    }
+
+    public void testRescheduleAndUnregister() throws Exception {
+        long now = System.currentTimeMillis();
+        StubTimerEvent event = new StubTimerEvent(now + 10);
+        StubTimerEvent unregistered = new StubTimerEvent(now + 10);
+        scheduler.register(event);
+        scheduler.register(unregistered);
+
+        event.updateTime(now + 20);
+        scheduler.scheduleEvent(event);
+        unregistered.stop();
+        assertEquals(1, scheduler.getNumScheduledEvents());
+        // the wheel may still be ticked at the old time
+        scheduler.tick(now + 15);
+        assertTrue(run.isEmpty());
+        assertEquals(now + 20, scheduler.nextTickTime());
+
+        // a later time is noticed without scheduling the event again
+        event.updateTime(now + 50);
+        scheduler.tick(now + 25);
+        assertTrue(run.isEmpty());
+        assertEquals(1, scheduler.getNumScheduledEvents());
+
+        // events that are not registered are not scheduled
+        scheduler.scheduleEvent(new StubTimerEvent(now + 30));
+        assertEquals(1, scheduler.getNumScheduledEvents());
+
+        scheduler.tick(now + 50);
+        assertEquals(1, run.size());
+        assertSame(event, run.get(0));
+    }
+
+    public void testEventsBeyondOneTurn() throws Exception {
+        long now = System.currentTimeMillis();
+        StubTimerEvent far = new StubTimerEvent(now + 3 * UDPScheduler.WHEEL_SIZE + 5);
+        StubTimerEvent near = new StubTimerEvent(now + 5);
+        scheduler.register(far);
+        scheduler.register(near);
+
+        scheduler.tick(now + 5);
+        assertEquals(1, run.size());
+        // the event of the same slot in a later turn waits, the wheel is
+        // ticked once a turn is over
+        assertEquals(now + 6 + UDPScheduler.WHEEL_SIZE, scheduler.nextTickTime());
+        scheduler.tick(now + UDPScheduler.WHEEL_SIZE + 6);
+        scheduler.tick(now + 2 * UDPScheduler.WHEEL_SIZE + 6);
+        assertEquals(1, run.size());
+        assertEquals(now + 3 * UDPScheduler.WHEEL_SIZE + 5, scheduler.nextTickTime());
+
+        // a long pause runs everything that is due
+        scheduler.tick(now + 10 * UDPScheduler.WHEEL_SIZE);
+        assertEquals(2, run.size());
+        assertSame(far, run.get(1));
+    }
+
+    public void testNextTickTimeSkipsEmptySlots() throws Exception {
+        long now = System.currentTimeMillis();
+        StubTimerEvent first = new StubTimerEvent(now + 64);
+        StubTimerEvent second = new StubTimerEvent(now + 127);
+        StubTimerEvent last = new StubTimerEvent(now + UDPScheduler.WHEEL_SIZE - 1);
+        scheduler.register(last);
+        scheduler.register(second);
+        scheduler.register(first);
+        assertEquals(now + 64, scheduler.nextTickTime());
+
+        scheduler.tick(now + 64);
+        assertEquals(now + 127, scheduler.nextTickTime());
+        scheduler.tick(now + 127);
+        assertEquals(now + UDPScheduler.WHEEL_SIZE - 1, scheduler.nextTickTime());
+
+        // a slot whose event was cancelled isn't due any more
+        StubTimerEvent far = new StubTimerEvent(now + 2 * UDPScheduler.WHEEL_SIZE);
+        scheduler.register(far);
+        last.stop();
+        scheduler.tick(now + 128);
+        assertEquals(now + 129 + UDPScheduler.WHEEL_SIZE, scheduler.nextTickTime());
+    }
+
+    public void testPastEventsRunAtNextTick() throws Exception {
+        long now = System.currentTimeMillis();
+        scheduler.tick(now);
+        StubTimerEvent event = new StubTimerEvent(0);
+        scheduler.register(event);
+        assertEquals(now + 1, scheduler.nextTickTime());
+
+        long[] before = UDPScheduler.getLagStats();
+        scheduler.tick(now + 4);
+        assertEquals(1, run.size());
+        long[] after = UDPScheduler.getLagStats();
+        assertEquals(before[0] + 1, after[0]);
+        assertGreaterThanOrEquals(3L, after[2]);
+    }
+
+    public void testEventsCanRescheduleThemselves() throws Exception {
+        long now = System.currentTimeMillis();
+        StubTimerEvent event = new StubTimerEvent(now + 10) {
+            @Override
+            protected void doActualEvent(UDPConnectionProcessor proc) {
+                super.doActualEvent(proc);
+                if (run.size() < 3) {
+                    updateTime(getEventTime() + 10);
+                    scheduler.scheduleEvent(this);
+                }
+            }
+        };
+        scheduler.register(event);
+        for (long time = now; time <= now + 100; time++)
+            scheduler.tick(time);
+        assertEquals(3, run.size());
+        assertEquals(0, scheduler.getNumScheduledEvents());
+    }
+
+    private class StubTimerEvent extends UDPTimerEvent {
+
+        StubTimerEvent(long time) {
+            super(time, processor);
+        }
+
+        void stop() {
+            unregister();
+        }
+
+        @Override
+        protected void doActualEvent(UDPConnectionProcessor proc) {
+            run.add(this);
+        }
+    }
+}
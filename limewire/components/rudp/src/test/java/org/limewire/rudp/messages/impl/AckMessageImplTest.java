@@ -0,0 +1,83 @@
+package org.limewire.rudp.messages.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+
+import org.limewire.rudp.messages.AckMessage;
+import org.limewire.util.BaseTestCase;
+
+public class AckMessageImplTest extends BaseTestCase {
+
+    private DefaultMessageFactory factory;
+
+    public AckMessageImplTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(AckMessageImplTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        factory = new DefaultMessageFactory();
+    }
+
+    public void testWithoutSelectiveAcks() throws Exception {
+        AckMessage ack = factory.createAckMessage((byte)3, 5, 8, 3);
+        assertEquals(0, ack.getSelectiveAcks().length);
+        assertEquals(23, write(ack).length);
+        AckMessage read = writeAndReparse(ack);
+        assertEquals(8, read.getWindowStart());
+        assertEquals(3, read.getWindowSpace());
+        assertEquals(0, read.getSelectiveAcks().length);
+    }
+
+    public void testSelectiveAcks() throws Exception {
+        int[] selectiveAcks = new int[] { 2, 5, 7, 8, 300, 0xFFFF };
+        AckMessage ack = factory.createAckMessage((byte)3, 5, 8, 200, selectiveAcks);
+        assertEquals(23 + 12, write(ack).length);
+        AckMessage read = writeAndReparse(ack);
+        assertEquals(5, read.getSequenceNumber());
+        assertEquals(8, read.getWindowStart());
+        assertEquals(200, read.getWindowSpace());
+        assertEquals(selectiveAcks, read.getSelectiveAcks());
+    }
+
+    public void testInvalidSelectiveAcks() throws Exception {
+        assertInvalid(new int[] { 1 });
+        assertInvalid(new int[] { 5, 5 });
+        assertInvalid(new int[] { -1, 5 });
+        assertInvalid(new int[] { 1, 0x10000 });
+        assertInvalid(new int[2 * AckMessageImpl.MAX_SELECTIVE_ACK_RANGES + 2]);
+    }
+
+    public void testIgnoresInvalidRangesFromNetwork() throws Exception {
+        byte[] data = write(factory.createAckMessage((byte)3, 5, 8, 3, new int[] { 2, 5, 7, 8 }));
+        // turn the first range into 2-0 
+        data[23 + 2] = 0;
+        data[23 + 3] = 0;
+        AckMessage read = (AckMessage)factory.createMessage(ByteBuffer.wrap(data));
+        assertEquals(new int[] { 7, 8 }, read.getSelectiveAcks());
+    }
+
+    private void assertInvalid(int[] selectiveAcks) {
+        try {
+            factory.createAckMessage((byte)3, 5, 8, 3, selectiveAcks);
+            fail("expected exception");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private byte[] write(AckMessage ack) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ack.write(out);
+        return out.toByteArray();
+    }
+
+    private AckMessage writeAndReparse(AckMessage ack) throws Exception {
+        return (AckMessage)factory.createMessage(ByteBuffer.wrap(write(ack)));
+    }
+}
@@ -71,4 +71,8 @@ public class SynMessageImplProtocolVersion0 extends RUDPMessageImpl implements S
     public Role getRole() {
         return Role.UNDEFINED;
     }
+
+    public int getWindowSize() {
+        return 0;
+    }
 }
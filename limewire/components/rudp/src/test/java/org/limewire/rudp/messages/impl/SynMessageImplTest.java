@@ -77,6 +77,30 @@ public class SynMessageImplTest extends BaseTestCase {
         assertEquals(Role.REQUESTOR, readMessage.getRole());
     }
     
+    public void testWindowSize() {
+        SynMessage synMessage = new SynMessageImpl((byte)5, (byte)7, Role.REQUESTOR);
+        assertEquals(0, synMessage.getWindowSize());
+        assertEquals(0, writeAndReparse(synMessage, version1MessageFactory).getWindowSize());
+
+        synMessage = version1MessageFactory.createSynMessage((byte)5, (byte)7, Role.REQUESTOR, 40000);
+        SynMessage readMessage = writeAndReparse(synMessage, version1MessageFactory);
+        assertEquals(1, readMessage.getProtocolVersionNumber());
+        assertEquals(5, readMessage.getSenderConnectionID());
+        assertEquals(Role.REQUESTOR, readMessage.getRole());
+        assertEquals(40000, readMessage.getWindowSize());
+        
+        // older versions don't see it
+        readMessage = writeAndReparse(synMessage, version0MessageFactory);
+        assertEquals(5, readMessage.getSenderConnectionID());
+        assertEquals(0, readMessage.getWindowSize());
+        
+        try {
+            version1MessageFactory.createSynMessage((byte)5, (byte)7, Role.REQUESTOR, 0x10000);
+            fail("expected exception");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+    
     public void testRoleCanConnectTo() {
         // undefined role can connect to everything
         for (Role role : Role.values()) {
@@ -98,6 +98,61 @@ public final class SHA1 extends MessageDigest implements Cloneable {
         init();
     }
 
+    /**
+     * Creates a SHA1 object that continues from an intermediate state
+     * returned by {@link #getState()}.
+     *
+     * @throws IllegalArgumentException if the state is malformed
+     */
+    public SHA1(byte[] state) {
+        this();
+        if (state.length < 28 || state.length > 28 + 63)
+            throw new IllegalArgumentException("invalid state length: " + state.length);
+        long count = 0;
+        for (int i = 0; i < 8; i++)
+            count = (count << 8) | (state[i] & 0xff);
+        padding = state.length - 28;
+        if (count < 0 || count % 64 != padding)
+            throw new IllegalArgumentException("invalid byte count: " + count);
+        bytes = count;
+        hA = getInt(state, 8);
+        hB = getInt(state, 12);
+        hC = getInt(state, 16);
+        hD = getInt(state, 20);
+        hE = getInt(state, 24);
+        System.arraycopy(state, 28, pad, 0, padding);
+    }
+
+    /**
+     * Returns the intermediate state of this digest: the number of bytes
+     * hashed so far, the current digest key and the bytes buffered for the
+     * next block.  Does not change the state.
+     */
+    public byte[] getState() {
+        byte[] state = new byte[28 + padding];
+        for (int i = 0; i < 8; i++)
+            state[i] = (byte)(bytes >>> (56 - 8 * i));
+        putInt(state, 8, hA);
+        putInt(state, 12, hB);
+        putInt(state, 16, hC);
+        putInt(state, 20, hD);
+        putInt(state, 24, hE);
+        System.arraycopy(pad, 0, state, 28, padding);
+        return state;
+    }
+
+    private static int getInt(byte[] buf, int offset) {
+        return (buf[offset] << 24) | ((buf[offset + 1] & 0xff) << 16)
+            | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte)(value >>> 24);
+        buf[offset + 1] = (byte)(value >>> 16);
+        buf[offset + 2] = (byte)(value >>> 8);
+        buf[offset + 3] = (byte)value;
+    }
+
     /**
      * Clones this object.
      */
@@ -92,6 +92,31 @@ public class SHA1Test extends BaseTestCase {
         assertGreaterThan(rate, limeRate);
     }
     
+    public void testResumeFromState() throws Exception {
+        byte[] input = new byte[1000];
+        for (int i = 0; i < input.length; i++)
+            input[i] = (byte)(i * 31);
+        byte[] expected = MessageDigest.getInstance("SHA").digest(input);
+
+        for (int split : new int[] { 0, 1, 63, 64, 65, 500, 1000 }) {
+            SHA1 first = new SHA1();
+            first.update(input, 0, split);
+            byte[] state = first.getState();
+            SHA1 second = new SHA1(state);
+            second.update(input, split, input.length - split);
+            assertEquals("split " + split, expected, second.digest());
+            // taking the state doesn't disturb the original digest
+            first.update(input, split, input.length - split);
+            assertEquals("split " + split, expected, first.digest());
+        }
+
+        try {
+            new SHA1(new byte[29]);
+            fail("accepted a count that doesn't match the buffered bytes");
+        } catch (IllegalArgumentException expectedException) {
+        }
+    }
+
     public void testFiles() throws Exception {
         String dirString = "org/limewire/security";
         File testDir = TestUtils.getResourceFile(dirString);
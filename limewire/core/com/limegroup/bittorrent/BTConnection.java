@@ -5,6 +5,7 @@ import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -14,6 +15,7 @@ import org.limewire.collection.BitField;
 import org.limewire.collection.BitFieldSet;
 import org.limewire.collection.BitSet;
 import org.limewire.collection.NECallable;
+import org.limewire.core.settings.BittorrentSettings;
 import org.limewire.io.IOUtils;
 import org.limewire.nio.AbstractNBSocket;
 import org.limewire.nio.NIODispatcher;
@@ -21,6 +23,9 @@ import org.limewire.nio.channel.ChannelReadObserver;
 import org.limewire.nio.channel.ThrottleReader;
 
 import com.limegroup.bittorrent.disk.TorrentDiskManager;
+import com.limegroup.bittorrent.handshaking.piecestrategy.PieceAvailability;
+import com.limegroup.bittorrent.handshaking.piecestrategy.PieceStrategy;
+import com.limegroup.bittorrent.handshaking.piecestrategy.RarestPieceFirstStrategy;
 import com.limegroup.bittorrent.messages.BTBitField;
 import com.limegroup.bittorrent.messages.BTCancel;
 import com.limegroup.bittorrent.messages.BTChoke;
@@ -53,11 +58,6 @@ PieceSendListener, PieceReadListener {
 	 */
 	private static final int MAX_BLOCK_SIZE = 64 * 1024;
 
-	/**
-	 * the number of requests to send to any host without waiting for reply
-	 */
-	private static final int MAX_REQUESTS = 4;
-
 	/**
 	 * connections that die after less than a minute won't be retried
 	 */
@@ -85,7 +85,8 @@ PieceSendListener, PieceReadListener {
 	private final BTChannelWriter _writer;
 
 	/**
-	 * The pieces the remote host has
+	 * The pieces the remote host has.  Changes to it are counted in the
+	 * torrent's <tt>PieceAvailability</tt> while holding its lock.
 	 */
 	private volatile BitSet _availableRanges;
 	
@@ -97,6 +98,11 @@ PieceSendListener, PieceReadListener {
 	 */
 	private final Set<BTInterval> _requesting;
 
+	/**
+	 * Decides how many ranges to keep requested from the remote host.
+	 */
+	private final RequestPipeline _pipeline;
+
 	/**
 	 * the Set of BTInterval requested by the remote host.
 	 */
@@ -171,6 +177,9 @@ PieceSendListener, PieceReadListener {
 	/** executor of network-related tasks */
 	private ScheduledExecutorService invoker;
 	
+	/** Picks the pieces to request from the remote host */
+	private final PieceStrategy pieceStrategy;
+	
 	/**
 	 * Constructs instance of this.
 	 */
@@ -183,7 +192,10 @@ PieceSendListener, PieceReadListener {
 		_availableRanges = new BitSet(context.getMetaInfo().getNumBlocks());
 		_available = new BitFieldSet(_availableRanges, context.getMetaInfo().getNumBlocks());
 		_requesting = new HashSet<BTInterval>();
+		_pipeline = new RequestPipeline(BittorrentSettings.TORRENT_MAX_REQUESTS.getValue());
 		_requested = new HashSet<BTInterval>();
+		pieceStrategy = new RarestPieceFirstStrategy(context.getMetaInfo(),
+				context.getPieceAvailability());
 
 		// connections start choked and not interested
 		_isChoked = true;
@@ -225,7 +237,7 @@ PieceSendListener, PieceReadListener {
 		_writer.init(invoker, CONNECTION_TIMEOUT - 5000, bwManager);
 		
 		ThrottleReader readThrottle = new ThrottleReader(
-				bwManager.getReadThrottle());
+				bwManager.getTorrentReadThrottle());
 		_reader.setReadChannel(readThrottle);
 		readThrottle.interestRead(true);
 		_socket.setReadObserver(_reader);
@@ -297,6 +309,15 @@ PieceSendListener, PieceReadListener {
 			return;
 		closing = true;
 		
+		// the remote host's pieces no longer count towards their availability
+		PieceAvailability availability = context.getPieceAvailability();
+		synchronized(availability) {
+			if (isSeed())
+				availability.removeSeed();
+			else
+				availability.removePieces(_available);
+		}
+		
 		// if not initialized just return
 		if (_socket == null)
 			return; 
@@ -463,6 +484,7 @@ PieceSendListener, PieceReadListener {
 			BTInterval req = iter.next();
 			if (req.getId() == pieceNum) {
 				iter.remove();
+				_pipeline.requestCancelled(req);
 				sendCancel(req);
 			}
 		}
@@ -566,6 +588,7 @@ PieceSendListener, PieceReadListener {
 		for (BTInterval clear : _requesting)
 			context.getDiskManager().releaseInterval(clear);
 		_requesting.clear();
+		_pipeline.clear();
 	}
 
 	/* (non-Javadoc)
@@ -685,6 +708,7 @@ PieceSendListener, PieceReadListener {
 						+ _requesting);
 			return false;
 		}
+		_pipeline.requestAnswered(interval, System.currentTimeMillis());
 		
 		if (LOG.isDebugEnabled())
 			LOG.debug(this + " starting to receive piece " + interval);
@@ -699,16 +723,21 @@ PieceSendListener, PieceReadListener {
 		if (LOG.isDebugEnabled())
 			LOG.debug("requesting ranges from " + this);
 		
-		// if we still have more than one outstanding request, wait for them
-		if (_requesting.size() > 1) 
+		// if we still have more than half of the requests outstanding,
+		// wait for them so the ranges are leased in batches
+		int depth = _pipeline.getDepth(getMeasuredBandwidth(true, true));
+		if (_requesting.size() > depth / 2) 
 			return;
 		
 		// get new ranges to request if necessary
-		while (_requesting.size() < MAX_REQUESTS) {
-			BTInterval in = context.getDiskManager().leaseBTInterval(_available, _requesting, null);
-			if (in == null)
-				break;
+		List<BTInterval> leased = context.getDiskManager().leaseBTIntervals(_available, 
+				_requesting, pieceStrategy, depth - _requesting.size());
+		if (leased == null)
+			return;
+		long now = System.currentTimeMillis();
+		for (BTInterval in : leased) {
 			_requesting.add(in);
+			_pipeline.requestSent(in, now);
 			_writer.enqueue(new BTRequest(in));
 		}
 	}
@@ -735,22 +764,41 @@ PieceSendListener, PieceReadListener {
 			handleIOException(new BadBTMessageException(
 					"bad bitfield received! " + _endpoint.toString()));
 
+		// ask the disk manager before locking the availability, it takes
+		// its own lock first and the availability lock after it
 		boolean willBeInteresting = false;
-		for (int i = 0; i < numBits; i++) {
+		TorrentDiskManager v = context.getDiskManager();
+		for (int i = 0; i < numBits && !willBeInteresting; i++) {
 			byte mask = (byte) (0x80 >>> (i % 8));
-			if ((mask & field.get(i / 8)) == mask) {
-				if (!willBeInteresting && !context.getDiskManager().hasBlock(i))
-					willBeInteresting = true;
-				_availableRanges.set(i);
+			if ((mask & field.get(i / 8)) == mask && !v.hasBlock(i))
+				willBeInteresting = true;
+		}
+		
+		PieceAvailability availability = context.getPieceAvailability();
+		synchronized(availability) {
+			if (closing || _availableRanges == null)
+				return;
+			
+			// count the pieces again once we know whether this is a seed
+			availability.removePieces(_available);
+			for (int i = 0; i < numBits; i++) {
+				byte mask = (byte) (0x80 >>> (i % 8));
+				if ((mask & field.get(i / 8)) == mask)
+					_availableRanges.set(i);
 			}
+			
+			if (_available.cardinality() == numBits) {
+				_availableRanges = null;
+				_available = context.getFullBitField();
+				availability.addSeed();
+			} else
+				availability.addPieces(_available);
 		}
 		
-		if (_available.cardinality() == numBits) {
-			_availableRanges = null;
-			_available = context.getFullBitField();
+		if (_available == context.getFullBitField())
 			numMissing = 0;
-		} else
-			numMissing = context.getDiskManager().getNumMissing(_available);
+		else
+			numMissing = v.getNumMissing(_available);
 		
 		if (willBeInteresting)
 			sendInterested();
@@ -770,8 +818,20 @@ PieceSendListener, PieceReadListener {
 			return; // duplicate Have, ignore.
 		
 		TorrentDiskManager v = context.getDiskManager();
-		_availableRanges.set(pieceNum);
-
+		boolean seed;
+		PieceAvailability availability = context.getPieceAvailability();
+		synchronized(availability) {
+			if (closing)
+				return;
+			_availableRanges.set(pieceNum);
+			availability.addPiece(pieceNum);
+			seed = _available.cardinality() == context.getMetaInfo().getNumBlocks();
+			if (seed) {
+				availability.promoteToSeed(_available);
+				_availableRanges = null;
+				_available = context.getFullBitField();
+			}
+		}
 		
 		// tell the remote host we are interested if we don't have that range
 		if (v.hasBlock(pieceNum)) 
@@ -779,11 +839,9 @@ PieceSendListener, PieceReadListener {
 		else
 			sendInterested();
 		
-		if (_available.cardinality() == context.getMetaInfo().getNumBlocks()) {
+		if (seed) {
 			if (LOG.isDebugEnabled())
 				LOG.debug(this+" now has everything");
-			_availableRanges = null;
-			_available = context.getFullBitField();
 			numMissing = 0;
 			if (v.isComplete()) // we're also seed - goodbye
 				shutdown();
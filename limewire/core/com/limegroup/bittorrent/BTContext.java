@@ -6,12 +6,14 @@ import org.limewire.collection.BitSet;
 
 import com.limegroup.bittorrent.disk.DiskManagerFactory;
 import com.limegroup.bittorrent.disk.TorrentDiskManager;
+import com.limegroup.bittorrent.handshaking.piecestrategy.PieceAvailability;
 
 public class BTContext implements TorrentContext {
 
 	private final BTMetaInfo info;
 	private final BitSet fullSet = new FullBitSet();
 	private final BitField fullBitField;
+	private final PieceAvailability pieceAvailability;
 	
 	private TorrentDiskManager diskManager;
 	private final DiskManagerFactory diskManagerFactory;
@@ -21,6 +23,7 @@ public class BTContext implements TorrentContext {
 		this.info = info;
 		info.setContext(this);
 		fullBitField = new BitFieldSet(fullSet, info.getNumBlocks());
+		pieceAvailability = new PieceAvailability(info.getNumBlocks());
 		initializeDiskManager(false);
 	}
 	
@@ -40,6 +43,10 @@ public class BTContext implements TorrentContext {
 		return fullSet;
 	}
 
+	public PieceAvailability getPieceAvailability() {
+		return pieceAvailability;
+	}
+
 	public BTMetaInfo getMetaInfo() {
 		return info;
 	}
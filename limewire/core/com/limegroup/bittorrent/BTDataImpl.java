@@ -1,29 +1,27 @@
 package com.limegroup.bittorrent;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 
 import org.limewire.logging.LogFactory;
 import org.limewire.security.SHA1;
-import org.limewire.service.ErrorService;
-import org.limewire.util.BEncoder;
 import org.limewire.util.CommonUtils;
 import org.limewire.util.StringUtils;
 import org.limewire.util.URIUtils;
 
-import com.limegroup.gnutella.Constants;
+import com.limegroup.bittorrent.bencoding.BEReader;
+import com.limegroup.bittorrent.bencoding.Token;
 
 /**
  * Contains type safe representations of all understand information
@@ -31,7 +29,9 @@ import com.limegroup.gnutella.Constants;
  * <p>
  * This will throw a <code>ValueException</code> if the data is malformed or
  * not what we expect it to be.  UTF-8 versions of Strings are
- * preferred over ASCII versions, wherever possible.
+ * preferred over ASCII versions, wherever possible: the "name" and "path"
+ * entries are decoded as ASCII, their "name.utf-8" and "path.utf-8"
+ * counterparts as UTF-8.
  */
 public class BTDataImpl implements BTData {
     
@@ -39,130 +39,73 @@ public class BTDataImpl implements BTData {
     
     /** The URL of the tracker. */
     // TODO: add support for UDP & multiple trackers.
-    private final String announce;
+    private String announce;
     
     /** The webseed addresses */
-    private final URI[] webSeeds;
+    private URI[] webSeeds = new URI[0];
     
     /** All the pieces as one big array.  Non-final 'cause it's big & we want to clear it. */
-    private /*final*/ byte[] pieces;
+    private byte[] pieces;
     
     /** The length of a single piece. */
-    private final Long pieceLength;
+    private Long pieceLength;
     
     /** The SHA1 of the info object. */
     private byte[] infoHash;
     
     /** The name of the torrent file (if one file) or parent folder (if multiple files). */
-    private final String name;
+    private String name;
     
     /** The length of the torrent if one file.  null if multiple. */
-    private final Long length;
+    private Long length;
     
     /** A list of subfiles of this torrent is multiple files.  null if a single file. */
-    private final List<BTData.BTFileData> files;
+    private List<BTData.BTFileData> files;
     
     /** A list of all subfolders this torrent uses.  null if a single file. */
-    private final Set<String> folders;
+    private Set<String> folders;
     
     /** Whether the private flag is set */
-    private final boolean isPrivate;
+    private boolean isPrivate;
     
-    /** Constructs a new BTData out of the map of properties. */
+    /** 
+     * Constructs a new BTData out of the bencoded contents of a .torrent
+     * file.  Only the values that are used are copied out of the data.
+     */
     //See http://wiki.theory.org/BitTorrentSpecification#Info_Dictionary
     //for more information
-    public BTDataImpl(Map<?, ?> torrentFileMap) throws ValueException {
-        Object tmp;
+    public BTDataImpl(ByteBuffer torrent) throws IOException {
+        BEReader reader = new BEReader(torrent);
+        if (reader.next() != Token.DICTIONARY)
+            throw new ValueException("metaInfo not a Map!");
+        
+        boolean hasInfo = false;
+        while (reader.nextKey()) {
+            if (reader.isString("announce")) {
+                if (reader.next() != Token.STRING)
+                    throw new ValueException("announce missing or invalid!");
+                announce = reader.getASCIIString();
+            } else if (reader.isString("url-list")) {
+                webSeeds = parseWebSeeds(reader);
+            } else if (reader.isString("info")) {
+                // the info hash is the hash of the info dictionary as it
+                // was encoded, there is no need to encode it again
+                int start = reader.position();
+                if (reader.next() != Token.DICTIONARY)
+                    throw new ValueException("info missing or invalid!");
+                parseInfo(reader);
+                MessageDigest md = new SHA1();
+                md.update(reader.slice(start, reader.position()));
+                infoHash = md.digest();
+                hasInfo = true;
+            } else 
+                reader.skipValue();
+        }
         
-        tmp = torrentFileMap.get("announce");
-        if(tmp instanceof byte[])
-            announce = StringUtils.getASCIIString((byte[])tmp);
-        else
+        if (announce == null)
             throw new ValueException("announce missing or invalid!");
-
-        webSeeds = parseWebSeeds(torrentFileMap);
-        tmp = torrentFileMap.get("info");
-        if(tmp == null || !(tmp instanceof Map))
+        if (!hasInfo)
             throw new ValueException("info missing or invalid!");
-        
-        Map infoMap = (Map)tmp;
-        infoHash = calculateInfoHash(infoMap);
-        
-        tmp = infoMap.get("private");
-        if (tmp instanceof Long) {
-            isPrivate = ((Long)tmp).intValue() == 1;
-        } else
-            isPrivate = false;
-        
-        tmp = infoMap.get("pieces");
-        if(tmp instanceof byte[])
-            pieces = (byte[])tmp;
-        else
-            throw new ValueException("info->piece missing!");
-        
-        tmp = infoMap.get("piece length");
-        if(tmp instanceof Long)
-            pieceLength = (Long)tmp;
-        else
-            throw new ValueException("info->'piece length' missing!");
-        
-        // get name, prefer utf8
-        tmp = infoMap.get("name.utf-8");
-        name = getPreferredString(infoMap, "name");
-        if(name == null || name.length() == 0)
-            throw new ValueException("no valid name!");
-        
-        if(infoMap.containsKey("length") == infoMap.containsKey("files"))
-            throw new ValueException("info->length & info.files can't both exist or not exist!");
-        
-        tmp = infoMap.get("length");
-        if(tmp instanceof Long) {
-            length = (Long)tmp;
-            if (length < 0)
-            	throw new ValueException("invalid length value");
-        } else if(tmp != null)
-            throw new ValueException("info->length is non-null, but not a Long!");
-        else
-            length = null;
-        
-        tmp = infoMap.get("files");        
-        if(tmp instanceof List) {
-            List<?> fileData = (List)tmp;
-            if (fileData.isEmpty())
-            	throw new ValueException("empty file list");
-            
-            files = new ArrayList<BTData.BTFileData>(fileData.size());
-            folders = new HashSet<String>();
-            
-            for(Object o : fileData) {
-                if(!(o instanceof Map))
-                    throw new ValueException("info->files[x] not a Map!");
-                Map<?, ?> fileMap = (Map)o;
-                
-                tmp = fileMap.get("length");
-                if(!(tmp instanceof Long))
-                    throw new ValueException("info->files[x].length not a Long!");
-                Long ln = (Long)tmp;
-                if (ln < 0)
-                	throw new ValueException("invalid length");
-                
-                boolean doASCII = true;
-                
-                //Don't try ASCII if UTF-8 succeeds.
-                try {
-                    parseFiles(fileMap, ln, files, folders, true);                       
-                    doASCII = false;
-                } catch(ValueException ignored) {}
-                
-                if(doASCII)
-                    parseFiles(fileMap, ln, files, folders, false);                
-            }
-        } else if(tmp != null) {
-            throw new ValueException("info->files is non-null, but not a list!");
-        } else {
-            files = null;            
-            folders = null;
-        }
     }
 
     /**
@@ -170,27 +113,21 @@ public class BTDataImpl implements BTData {
      * should be in a parameter "url-list". url-list can either be a list or 
      * a single webseed address.
      */
-    @SuppressWarnings("unchecked")
-    private URI[] parseWebSeeds(Map<?, ?> torrentFileMap) {
+    private URI[] parseWebSeeds(BEReader reader) throws IOException {
         List<URI> webSeedsArray = new ArrayList<URI>();
-        URI[] webSeeds = null;
-        Object tmp = torrentFileMap.get("url-list");
-        if (tmp != null) {
-            if (tmp instanceof List) {
-                List<byte[]> uris = (List<byte[]>) tmp;
-                if (uris.size() > 0) {
-                    webSeeds = new URI[uris.size()];
-                    for (byte[] uri : uris) {
-                        addURI(webSeedsArray, StringUtils.getASCIIString(uri));
-                    }
-                }
-            } else if (tmp instanceof byte[]) {
-                String uri =  StringUtils.getASCIIString((byte[])tmp);
-                addURI(webSeedsArray, uri);
+        int type = reader.next();
+        if (type == Token.LIST) {
+            while ((type = reader.next()) != BEReader.END) {
+                if (type == Token.STRING)
+                    addURI(webSeedsArray, reader.getASCIIString());
+                else
+                    reader.skip();
             }
-        }
-        webSeeds = webSeedsArray.toArray(new URI[webSeedsArray.size()]);
-        return webSeeds;
+        } else if (type == Token.STRING) {
+            addURI(webSeedsArray, reader.getASCIIString());
+        } else
+            reader.skip();
+        return webSeedsArray.toArray(new URI[webSeedsArray.size()]);
     }
 
     private void addURI(List<URI> uris, String uriString) {
@@ -201,22 +138,139 @@ public class BTDataImpl implements BTData {
             LOG.warn("Error parsing uri: " + uriString, e);
         }
     }
-
-    /** Parses the List of Maps of file data. */
-    private void parseFiles(Map<?, ?> fileMap, Long ln, List<BTData.BTFileData> fileData,
-                            Set<String> folderData, boolean utf8) throws ValueException {
+    
+    /** Parses the info dictionary, the reader is at its start. */
+    private void parseInfo(BEReader reader) throws IOException {
+        String asciiName = null;
+        String utf8Name = null;
+        boolean hasLength = false;
+        boolean hasFiles = false;
+        while (reader.nextKey()) {
+            if (reader.isString("private")) {
+                isPrivate = reader.next() == Token.LONG && reader.getLong() == 1;
+                reader.skip();
+            } else if (reader.isString("pieces")) {
+                if (reader.next() != Token.STRING)
+                    throw new ValueException("info->piece missing!");
+                pieces = reader.getBytes();
+            } else if (reader.isString("piece length")) {
+                if (reader.next() != Token.LONG)
+                    throw new ValueException("info->'piece length' missing!");
+                pieceLength = reader.getLong();
+            } else if (reader.isString("name")) {
+                if (reader.next() == Token.STRING)
+                    asciiName = reader.getASCIIString();
+                reader.skip();
+            } else if (reader.isString("name.utf-8")) {
+                // get name, prefer utf8
+                if (reader.next() == Token.STRING)
+                    utf8Name = StringUtils.getUTF8String(reader.getBytes());
+                reader.skip();
+            } else if (reader.isString("length")) {
+                hasLength = true;
+                if (reader.next() != Token.LONG)
+                    throw new ValueException("info->length is non-null, but not a Long!");
+                length = reader.getLong();
+                if (length < 0)
+                    throw new ValueException("invalid length value");
+            } else if (reader.isString("files")) {
+                hasFiles = true;
+                if (reader.next() != Token.LIST)
+                    throw new ValueException("info->files is non-null, but not a list!");
+                parseFiles(reader);
+            } else
+                reader.skipValue();
+        }
         
-        Object tmp = fileMap.get("path" + (utf8 ? ".utf-8" : ""));
-        if(!(tmp instanceof List))
-            throw new ValueException("info->files[x].path[.utf-8] not a List!");
+        if (pieces == null)
+            throw new ValueException("info->piece missing!");
+        if (pieceLength == null)
+            throw new ValueException("info->'piece length' missing!");
         
-        Set<String> newFolders = new HashSet<String>();
-        String path = parseFileList((List)tmp, newFolders, true);
-        if(path == null)
-            throw new ValueException("info->files[x].path[-utf-8] not valid!");
+        name = utf8Name != null ? utf8Name : asciiName;
+        if(name == null || name.length() == 0)
+            throw new ValueException("no valid name!");
         
-        folderData.addAll(newFolders);
-        fileData.add(new BTData.BTFileData(ln, path));
+        if(hasLength == hasFiles)
+            throw new ValueException("info->length & info.files can't both exist or not exist!");
+    }
+    
+    /** Parses the list of file dictionaries, the reader is at its start. */
+    private void parseFiles(BEReader reader) throws IOException {
+        files = new ArrayList<BTData.BTFileData>();
+        folders = new HashSet<String>();
+        
+        int type;
+        while ((type = reader.next()) != BEReader.END) {
+            if (type != Token.DICTIONARY)
+                throw new ValueException("info->files[x] not a Map!");
+            
+            Long ln = null;
+            List<byte[]> asciiPath = null;
+            List<byte[]> utf8Path = null;
+            while (reader.nextKey()) {
+                if (reader.isString("length")) {
+                    if (reader.next() != Token.LONG)
+                        throw new ValueException("info->files[x].length not a Long!");
+                    ln = reader.getLong();
+                } else if (reader.isString("path")) {
+                    asciiPath = parsePath(reader);
+                } else if (reader.isString("path.utf-8")) {
+                    utf8Path = parsePath(reader);
+                } else
+                    reader.skipValue();
+            }
+            
+            if (ln == null)
+                throw new ValueException("info->files[x].length not a Long!");
+            if (ln < 0)
+                throw new ValueException("invalid length");
+            
+            //Don't try ASCII if UTF-8 succeeds.
+            Set<String> newFolders = new HashSet<String>();
+            String path = null;
+            if (utf8Path != null) {
+                try {
+                    path = parseFileList(utf8Path, newFolders, true);
+                } catch(ValueException ignored) {
+                    newFolders.clear();
+                }
+            }
+            if (path == null) {
+                if (asciiPath == null)
+                    throw new ValueException("info->files[x].path[.utf-8] not a List!");
+                path = parseFileList(asciiPath, newFolders, false);
+            }
+            
+            folders.addAll(newFolders);
+            files.add(new BTData.BTFileData(ln, path));
+        }
+        
+        if (files.isEmpty())
+            throw new ValueException("empty file list");
+    }
+    
+    /**
+     * Reads a list of path elements. 
+     * 
+     * @return null if the value is not a list of strings
+     */
+    private List<byte[]> parsePath(BEReader reader) throws IOException {
+        if (reader.next() != Token.LIST) {
+            reader.skip();
+            return null;
+        }
+        List<byte[]> path = new ArrayList<byte[]>();
+        int type;
+        while ((type = reader.next()) != BEReader.END) {
+            if (type == Token.STRING && path != null) 
+                path.add(reader.getBytes());
+            else {
+                reader.skip();
+                path = null;
+            }
+        }
+        return path;
     }
     
     /**
@@ -224,20 +278,17 @@ public class BTDataImpl implements BTData {
      * folders into the Set of folders.  The paths are parsed either as
      * UTF or ASCII.
      */
-    private String parseFileList(List<?> paths, Set<String> folders, boolean utf8) throws ValueException {
+    private String parseFileList(List<byte[]> paths, Set<String> folders, boolean utf8) throws ValueException {
     	if (paths.isEmpty())
     		throw new ValueException("empty paths list");
         StringBuilder sb = new StringBuilder();
-        for(Iterator<?> i = paths.iterator(); i.hasNext(); ) {
-            Object o = i.next();
-            if(!(o instanceof byte[]))
-                throw new ValueException("info->files[x]->path[.utf-8][x] not a byte[]!");
-            
+        for(Iterator<byte[]> i = paths.iterator(); i.hasNext(); ) {
+            byte[] element = i.next();
             String current;
             if(utf8)
-                current = StringUtils.getUTF8String((byte[])o);
+                current = StringUtils.getUTF8String(element);
             else
-                current = StringUtils.getASCIIString((byte[])o);
+                current = StringUtils.getASCIIString(element);
 
             if (current.length() == 0)
             	throw new ValueException("empty path element");
@@ -250,53 +301,6 @@ public class BTDataImpl implements BTData {
         }
         return sb.toString();
     }
-    
-    /** Returns either the UTF-8 version (if it exists) or the ASCII version of a String. */
-    private String getPreferredString(Map<?, ?> info, String key) {
-        String str = null;
-        
-        Object data = info.get(key + ".utf-8");
-        if(data instanceof byte[]) {
-            try {
-                str = new String((byte[])data, Constants.UTF_8_ENCODING);
-            } catch(Throwable t) {} // could throw any error if input bytes are invalid
-        }
-        
-        if(str == null) {
-            data = info.get(key);
-            if(data instanceof byte[])
-                str = StringUtils.getASCIIString((byte[])data);
-        }
-        
-        return str;
-    }
-    
-    /**
-     * Calculates the infoHash of the map.  Because BT maps are stored
-     * as String -> Object, and the keys are stored alphabetically, 
-     * it is guaranteed that any two maps with identical keys & values
-     * will have the same info hash when decoded & recoded.
-     * 
-     * @return the infoHash of the infoMap
-     */
-    private byte[] calculateInfoHash(Map<?, ?> infoMap) {
-        // create the info hash, we could create the info hash while reading it
-        // but that would make the code a lot more complex. This works well too,
-        // because the order of a list is not changed during the process of
-        // decoding or encoding it and Maps are always sorted alphanumerically
-        // when encoded.
-        // So the data we encoded is always exactly the same as the data before
-        // we decoded it. This is intended that way by the protocol.
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            BEncoder.getEncoder(baos, true, false, "UTF-8").encodeDict(infoMap);
-        } catch (IOException ioe) {
-            ErrorService.error(ioe);
-        }
-        
-        MessageDigest md = new SHA1();
-        return md.digest(baos.toByteArray());
-    }
 
     /* (non-Javadoc)
      * @see com.limegroup.bittorrent.BTData#getAnnounce()
@@ -98,7 +98,7 @@ public class BTMessageWriter implements BTChannelWriter {
 	}
 
 	public void init(ScheduledExecutorService scheduler, int keepAliveInterval, BandwidthManager bwManager) {
-		ThrottleWriter throttle = new ThrottleWriter(bwManager.getWriteThrottle());
+		ThrottleWriter throttle = new ThrottleWriter(bwManager.getTorrentWriteThrottle());
 		delayer = new DelayedBufferWriter(1400, 3000);
 		_channel = throttle; 
 		delayer.setWriteChannel(throttle);
@@ -2,14 +2,13 @@ package com.limegroup.bittorrent;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.limewire.io.InvalidDataException;
 import org.limewire.util.FileUtils;
 
-import com.limegroup.bittorrent.bencoding.Token;
 import com.limegroup.gnutella.downloader.serial.BTMetaInfoMemento;
 
 public class BTMetaInfoFactoryImpl implements BTMetaInfoFactory {
@@ -29,10 +28,7 @@ public class BTMetaInfoFactoryImpl implements BTMetaInfoFactory {
      */
     public BTMetaInfo createBTMetaInfoFromBytes(byte []torrent) throws IOException {
         try {
-            Object metaInfo = Token.parse(torrent);
-            if(!(metaInfo instanceof Map))
-                throw new ValueException("metaInfo not a Map!");
-            return this.createBTMetaInfoFromData(new BTDataImpl((Map)metaInfo));
+            return this.createBTMetaInfoFromData(new BTDataImpl(ByteBuffer.wrap(torrent)));
         } catch (IOException bad) {
             LOG.error("read failed", bad);
             throw bad;
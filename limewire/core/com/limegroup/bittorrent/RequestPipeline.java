@@ -0,0 +1,151 @@
+package com.limegroup.bittorrent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides how many blocks to keep requested from a remote host.
+ * <p>
+ * A host can only send as fast as we ask for blocks, so there have to be
+ * enough requests outstanding to cover the time it takes a request to reach
+ * the host and the block to come back, the bandwidth-delay product of the
+ * connection. Fast or distant hosts need more requests than slow ones.
+ * <p>
+ * The round trip time is measured from the time a request is sent to the
+ * time the block starts arriving. Requests that were queued behind other
+ * requests wait for those to be sent first, that time is estimated from the
+ * bandwidth and not counted, otherwise a deeper queue would measure a longer
+ * round trip time and ask for an even deeper queue.
+ * <p>
+ * This class is not thread-safe, it is used on the network thread of the
+ * connection.
+ */
+class RequestPipeline {
+
+    /** The size of the blocks that are requested. */
+    static final int BLOCK_SIZE = 16 * 1024;
+
+    /** The number of requests that are always kept outstanding. */
+    static final int MIN_DEPTH = 4;
+
+    /**
+     * The factor the bandwidth-delay product is multiplied with, to cover
+     * for changes in bandwidth and latency.
+     */
+    private static final int HEADROOM = 2;
+
+    private final int maxDepth;
+
+    /** The requests that are outstanding. */
+    private final Map<BTInterval, Request> outstanding = new HashMap<BTInterval, Request>();
+
+    /** The number of bytes that are requested and not arriving yet. */
+    private long outstandingBytes;
+
+    /** The smoothed round trip time in milliseconds, -1 if unknown. */
+    private long roundTripTime = -1;
+
+    /** The last bandwidth in bytes per millisecond, 0 if unknown. */
+    private float bandwidth;
+
+    /**
+     * @param maxDepth the maximum number of requests to keep outstanding
+     */
+    RequestPipeline(int maxDepth) {
+        this.maxDepth = Math.max(MIN_DEPTH, maxDepth);
+    }
+
+    /**
+     * Notification that <code>in</code> was requested at <code>now</code>.
+     */
+    void requestSent(BTInterval in, long now) {
+        if (outstanding.containsKey(in))
+            return;
+        outstanding.put(in, new Request(now, outstandingBytes));
+        outstandingBytes += in.getHigh() - in.getLow() + 1;
+    }
+
+    /**
+     * Notification that <code>in</code> started arriving at
+     * <code>now</code>, samples the round trip time.
+     */
+    void requestAnswered(BTInterval in, long now) {
+        Request request = remove(in);
+        if (request == null)
+            return;
+
+        long sample = now - request.time;
+        if (request.bytesAhead > 0) {
+            // we don't know how long the requests ahead took to arrive
+            if (bandwidth <= 0)
+                return;
+            sample -= (long) (request.bytesAhead / bandwidth);
+        }
+        sample = Math.max(1, sample);
+        if (roundTripTime < 0)
+            roundTripTime = sample;
+        else
+            roundTripTime = (7 * roundTripTime + sample) / 8;
+    }
+
+    /**
+     * Notification that <code>in</code> won't be answered anymore.
+     */
+    void requestCancelled(BTInterval in) {
+        remove(in);
+    }
+
+    /**
+     * Notification that all outstanding requests were dropped.
+     */
+    void clear() {
+        outstanding.clear();
+        outstandingBytes = 0;
+    }
+
+    /**
+     * Returns the measured round trip time in milliseconds, -1 if it has not
+     * been measured yet.
+     */
+    long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Returns the number of requests to keep outstanding.
+     *
+     * @param bandwidth the current download bandwidth of the connection in
+     *        bytes per millisecond
+     */
+    int getDepth(float bandwidth) {
+        if (bandwidth > 0)
+            this.bandwidth = bandwidth;
+        if (roundTripTime < 0 || this.bandwidth <= 0)
+            return MIN_DEPTH;
+
+        double bytesInFlight = (double) this.bandwidth * roundTripTime * HEADROOM;
+        long depth = (long) Math.ceil(bytesInFlight / BLOCK_SIZE);
+        return (int) Math.max(MIN_DEPTH, Math.min(maxDepth, depth));
+    }
+
+    private Request remove(BTInterval in) {
+        Request request = outstanding.remove(in);
+        if (request != null)
+            outstandingBytes -= in.getHigh() - in.getLow() + 1;
+        return request;
+    }
+
+    private static class Request {
+
+        /** The time the request was sent. */
+        private final long time;
+
+        /** The number of bytes that were requested before. */
+        private final long bytesAhead;
+
+        Request(long time, long bytesAhead) {
+            this.time = time;
+            this.bytesAhead = bytesAhead;
+        }
+    }
+}
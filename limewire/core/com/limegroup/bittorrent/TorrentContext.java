@@ -4,6 +4,7 @@ import org.limewire.collection.BitField;
 import org.limewire.collection.BitSet;
 
 import com.limegroup.bittorrent.disk.TorrentDiskManager;
+import com.limegroup.bittorrent.handshaking.piecestrategy.PieceAvailability;
 
 /**
  * Defines an interface to get information about the torrent including file 
@@ -17,5 +18,10 @@ public interface TorrentContext {
 	BitField getFullBitField();
 	BitSet getFullBitSet();
 	
+	/**
+	 * Returns how many of the connected peers have each piece.
+	 */
+	PieceAvailability getPieceAvailability();
+	
 	void initializeDiskManager(boolean complete);
 }
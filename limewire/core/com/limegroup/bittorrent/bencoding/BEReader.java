@@ -0,0 +1,282 @@
+package com.limegroup.bittorrent.bencoding;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.limewire.util.BEncoder;
+import org.limewire.util.StringUtils;
+
+/**
+ * Reads bencoded data from a <code>ByteBuffer</code> one element at a time,
+ * without building objects for it.
+ * <p>
+ * Each call to {@link #next()} moves the reader to the next element and
+ * returns its type, one of the type codes of <code>Token</code>, or
+ * {@link #END} at the end of a list or dictionary.  The value of a number
+ * or string element can then be read with {@link #getLong()} or
+ * {@link #getString()}, the elements of a list or dictionary follow it.
+ * Strings are handed back as views of the buffer, their bytes are not
+ * copied unless {@link #getBytes()} is called.
+ * <p>
+ * The elements of a dictionary alternate between keys and values,
+ * {@link #nextKey()} reads the keys.  Values that are not needed can
+ * be skipped with {@link #skip()} or {@link #skipValue()}:
+ * <pre>
+ * BEReader reader = new BEReader(buffer);
+ * if (reader.next() != Token.DICTIONARY)
+ *     throw new IOException("not a dictionary");
+ * while (reader.nextKey()) {
+ *     if (reader.isString("interval") && reader.next() == Token.LONG)
+ *         interval = reader.getLong();
+ *     else
+ *         reader.skipValue();
+ * }
+ * </pre>
+ * The position of the given buffer is not changed.
+ */
+public class BEReader {
+
+    /** Marks the end of a list or dictionary. */
+    public static final int END = -2;
+
+    private static final byte MINUS = '-';
+
+    /** The data, positioned after the current element. */
+    private final ByteBuffer buf;
+
+    /** The number of lists and dictionaries the reader is in. */
+    private int depth;
+
+    /** The type of the current element, Token.INTERNAL before the first one. */
+    private int type = Token.INTERNAL;
+
+    /** The value of the current number or boolean element. */
+    private long number;
+
+    /** The position and length of the current string element. */
+    private int stringStart, stringLength;
+
+    /**
+     * Creates a reader for the remaining bytes of <tt>data</tt>.
+     */
+    public BEReader(ByteBuffer data) {
+        buf = data.duplicate();
+    }
+
+    /**
+     * Moves to the next element.
+     *
+     * @return the type of the element, like <tt>Token.STRING</tt>, or
+     * {@link #END} if a list or dictionary ended
+     * @throws EOFException if the data ends before the element
+     * @throws IOException if the data is not valid bencoding
+     */
+    public int next() throws IOException {
+        byte b = get();
+        if (b == BEncoder.I) {
+            number = readNumber(BEncoder.E);
+            type = Token.LONG;
+        } else if (b == BEncoder.R) {
+            number = readNumber(BEncoder.E);
+            type = Token.RATIONAL;
+        } else if (b == BEncoder.D) {
+            depth++;
+            type = Token.DICTIONARY;
+        } else if (b == BEncoder.L) {
+            depth++;
+            type = Token.LIST;
+        } else if (b == BEncoder.E) {
+            if (depth == 0)
+                throw new IOException("unexpected end");
+            depth--;
+            type = END;
+        } else if (b >= Token.ZERO && b <= Token.NINE) {
+            buf.position(buf.position() - 1);
+            long length = readNumber(BEncoder.COLON);
+            if (length < 0)
+                throw new IOException("invalid string length");
+            if (length > buf.remaining())
+                throw new EOFException("Could not read String token");
+            stringStart = buf.position();
+            stringLength = (int)length;
+            buf.position(stringStart + stringLength);
+            type = Token.STRING;
+        } else if (b == BEncoder.TRUE || b == BEncoder.FALSE) {
+            number = b == BEncoder.TRUE ? 1 : 0;
+            type = Token.BOOLEAN;
+        } else
+            throw new IOException("unrecognized token type " + (char)b);
+        return type;
+    }
+
+    /**
+     * Moves to the next key of a dictionary.
+     *
+     * @return true if the reader is at a key, false if the dictionary ended
+     * @throws IOException if the next element is not a string
+     */
+    public boolean nextKey() throws IOException {
+        int next = next();
+        if (next == END)
+            return false;
+        if (next != Token.STRING)
+            throw new IOException("invalid entry - key not a string");
+        return true;
+    }
+
+    /**
+     * Skips the elements of the current list or dictionary, if the
+     * reader is at the start of one.
+     */
+    public void skip() throws IOException {
+        if (type != Token.LIST && type != Token.DICTIONARY)
+            return;
+        int end = depth - 1;
+        while (depth > end)
+            next();
+    }
+
+    /**
+     * Skips the value that follows the current key of a dictionary.
+     */
+    public void skipValue() throws IOException {
+        if (next() == END)
+            throw new IOException("missing value");
+        skip();
+    }
+
+    /**
+     * Returns the type of the current element.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Returns the value of the current number.
+     */
+    public long getLong() {
+        checkType(Token.LONG);
+        return number;
+    }
+
+    /**
+     * Returns the value of the current rational number.
+     */
+    public double getDouble() {
+        checkType(Token.RATIONAL);
+        return Double.longBitsToDouble(Math.abs(number)) * Long.signum(number);
+    }
+
+    /**
+     * Returns the value of the current boolean.
+     */
+    public boolean getBoolean() {
+        checkType(Token.BOOLEAN);
+        return number == 1;
+    }
+
+    /**
+     * Returns the bytes of the current string as a view of the data.
+     */
+    public ByteBuffer getString() {
+        checkType(Token.STRING);
+        return slice(stringStart, stringStart + stringLength);
+    }
+
+    /**
+     * Returns the length of the current string.
+     */
+    public int getStringLength() {
+        checkType(Token.STRING);
+        return stringLength;
+    }
+
+    /**
+     * Returns a copy of the bytes of the current string.
+     */
+    public byte[] getBytes() {
+        byte[] bytes = new byte[getStringLength()];
+        getString().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the current string decoded as ASCII.
+     */
+    public String getASCIIString() {
+        return StringUtils.getASCIIString(getBytes());
+    }
+
+    /**
+     * Returns whether the current element is a string that is equal to
+     * the ASCII string <tt>s</tt>.
+     */
+    public boolean isString(String s) {
+        if (type != Token.STRING || stringLength != s.length())
+            return false;
+        for (int i = 0; i < stringLength; i++) {
+            if (buf.get(stringStart + i) != (byte)s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the position in the data after the current element.
+     * Before the first element it is the position of the data this
+     * reader was created with.
+     */
+    public int position() {
+        return buf.position();
+    }
+
+    /**
+     * Returns a view of the data from <tt>start</tt> to <tt>end</tt>,
+     * positions that were returned by {@link #position()}.
+     */
+    public ByteBuffer slice(int start, int end) {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice.slice();
+    }
+
+    private void checkType(int expected) {
+        if (type != expected)
+            throw new IllegalStateException("not at a token of type " + expected + ": " + type);
+    }
+
+    private byte get() throws EOFException {
+        if (!buf.hasRemaining())
+            throw new EOFException("Could not read next Token");
+        return buf.get();
+    }
+
+    /**
+     * Reads a decimal number up to the <tt>terminator</tt>.
+     */
+    private long readNumber(byte terminator) throws IOException {
+        byte b = get();
+        boolean negative = b == MINUS;
+        if (negative)
+            b = get();
+
+        // accumulate negatively, so Long.MIN_VALUE can be read as well
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        int digits = 0;
+        for (; b != terminator; b = get(), digits++) {
+            if (b < Token.ZERO || b > Token.NINE)
+                throw new IOException("invalid character in number " + (char)b);
+            int digit = b - Token.ZERO;
+            if (value < limit / 10 || value * 10 < limit + digit)
+                throw new IOException("too big");
+            value = value * 10 - digit;
+        }
+        if (digits == 0)
+            throw new IOException("empty number");
+        return negative ? value : -value;
+    }
+}
@@ -0,0 +1,150 @@
+package com.limegroup.bittorrent.bencoding;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.limewire.util.BEncoder;
+
+/**
+ * Writes bencoded data directly to a <code>ByteBuffer</code>, the
+ * counterpart of {@link BEReader}.
+ * <p>
+ * Lists and dictionaries are started with {@link #startList()} and
+ * {@link #startDictionary()} and closed with {@link #end()}.  The keys
+ * of a dictionary are written as strings before their values and have to
+ * be written in sorted order, this writer does not sort them.
+ * <p>
+ * Unlike <code>BEncoder</code> nothing is boxed or converted to a
+ * <code>String</code> first.  A <code>BufferOverflowException</code>
+ * is thrown if the buffer is full.
+ * <p>
+ * Used to store the piece hashes of a torrent in its download memento.
+ */
+public class BEWriter {
+
+    private static final byte MINUS = '-';
+
+    private final ByteBuffer buf;
+
+    /**
+     * Creates a writer that writes to <tt>dst</tt> from its position on.
+     */
+    public BEWriter(ByteBuffer dst) {
+        buf = dst;
+    }
+
+    /**
+     * Writes a number, like "i87e".
+     */
+    public void writeLong(long value) {
+        buf.put(BEncoder.I);
+        putDecimal(value);
+        buf.put(BEncoder.E);
+    }
+
+    /**
+     * Writes a rational number the way <code>BEncoder</code> does.
+     */
+    public void writeDouble(double value) {
+        buf.put(BEncoder.R);
+        putDecimal(Double.doubleToLongBits(value));
+        buf.put(BEncoder.E);
+    }
+
+    /**
+     * Writes a boolean.
+     */
+    public void writeBoolean(boolean value) {
+        buf.put(value ? BEncoder.TRUE : BEncoder.FALSE);
+    }
+
+    /**
+     * Writes a string, like "5:hello".
+     */
+    public void writeString(byte[] bytes) {
+        writeString(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes <tt>length</tt> bytes of <tt>bytes</tt> from <tt>offset</tt>
+     * on as a string.
+     */
+    public void writeString(byte[] bytes, int offset, int length) {
+        putDecimal(length);
+        buf.put(BEncoder.COLON);
+        buf.put(bytes, offset, length);
+    }
+
+    /**
+     * Writes the remaining bytes of <tt>src</tt> as a string, without
+     * changing its position.
+     */
+    public void writeString(ByteBuffer src) {
+        putDecimal(src.remaining());
+        buf.put(BEncoder.COLON);
+        buf.put(src.duplicate());
+    }
+
+    /**
+     * Writes a string of ASCII characters.
+     */
+    public void writeString(String ascii) {
+        int length = ascii.length();
+        putDecimal(length);
+        buf.put(BEncoder.COLON);
+        if (buf.remaining() < length)
+            throw new BufferOverflowException();
+        for (int i = 0; i < length; i++)
+            buf.put((byte)ascii.charAt(i));
+    }
+
+    /**
+     * Starts a list, its elements follow.
+     */
+    public void startList() {
+        buf.put(BEncoder.L);
+    }
+
+    /**
+     * Starts a dictionary, its keys and values follow.
+     */
+    public void startDictionary() {
+        buf.put(BEncoder.D);
+    }
+
+    /**
+     * Ends the current list or dictionary.
+     */
+    public void end() {
+        buf.put(BEncoder.E);
+    }
+
+    /**
+     * Returns the buffer that is written to.
+     */
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Puts the decimal digits of <tt>value</tt>.
+     */
+    private void putDecimal(long value) {
+        if (value < 0)
+            buf.put(MINUS);
+        // count with negative values, so Long.MIN_VALUE works as well
+        long n = value < 0 ? value : -value;
+        int digits = 1;
+        for (long m = n; m <= -10; m /= 10)
+            digits++;
+
+        int start = buf.position();
+        if (buf.limit() - start < digits)
+            throw new BufferOverflowException();
+        for (int i = start + digits - 1; i >= start; i--) {
+            buf.put(i, (byte)(Token.ZERO - n % 10));
+            n /= 10;
+        }
+        buf.position(start + digits);
+    }
+}
@@ -0,0 +1,279 @@
+package com.limegroup.bittorrent.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.NonWritableChannelException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Disk controller that writes with positional, gathering
+ * <tt>FileChannel</tt> writes and reads through memory mapped windows
+ * of the files.
+ * <p>
+ * Writes don't hold the lock of the controller, so pieces of different
+ * files can be written at the same time and reads of verified pieces
+ * don't wait for writes.  Data that spans several files is split into
+ * one gathering write per file without copying it.  Like with
+ * <tt>RAFDiskController</tt>, a file is not closed or made read-only while
+ * it is written to: writes share a lock that {@link #setReadOnly(File)}
+ * and {@link #close()} take exclusively.
+ * <p>
+ * Unlike <tt>MMDiskController</tt> only small windows of the files
+ * are mapped, at most {@link #MAX_WINDOWS} at a time, which works for
+ * files of any size and doesn't use up the address space.  If a window
+ * cannot be mapped the file is read through its channel.
+ */
+class ChannelDiskController<F extends File> extends RAFDiskController<F> {
+
+	private static final Log LOG = LogFactory.getLog(ChannelDiskController.class);
+
+	/** The size of a mapped window, windows start at multiples of it. */
+	static final int WINDOW_SIZE = 4 * 1024 * 1024;
+
+	/** The maximum number of windows that are mapped. */
+	static final int MAX_WINDOWS = 16;
+
+	/**
+	 * The mapped windows in least recently used order.  LOCKING: this
+	 */
+	private final Map<WindowKey, MappedByteBuffer> windows =
+		new LinkedHashMap<WindowKey, MappedByteBuffer>(MAX_WINDOWS, 0.75f, true) {
+		private static final long serialVersionUID = -1170296424149996282L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<WindowKey, MappedByteBuffer> eldest) {
+			if (size() <= MAX_WINDOWS)
+				return false;
+			MMDiskController.clean(eldest.getValue());
+			return true;
+		}
+	};
+
+	/**
+	 * Held shared by writes and exclusively while files are closed or
+	 * reopened, obtain before the lock of this.
+	 */
+	private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+	@Override
+	public void write(long startOffset, byte[] data) throws IOException {
+		write(startOffset, new ByteBuffer[] { ByteBuffer.wrap(data) });
+	}
+
+	@Override
+	public void write(long startOffset, ByteBuffer[] data) throws IOException {
+		fileLock.readLock().lock();
+		try {
+			writeLocked(startOffset, data);
+		} finally {
+			fileLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the data, needs to be called holding the shared file lock.
+	 */
+	private void writeLocked(long startOffset, ByteBuffer[] data) throws IOException {
+		List<F> files;
+		RandomAccessFile [] fos;
+		synchronized(this) {
+			if (!isOpen())
+				throw new IOException("file closed");
+			files = _files;
+			fos = _fos;
+		}
+
+		ByteBuffer [] srcs = new ByteBuffer[data.length];
+		long remaining = 0;
+		for (int i = 0; i < data.length; i++) {
+			srcs[i] = data[i].duplicate();
+			remaining += srcs[i].remaining();
+		}
+
+		int filesSize = files.size();
+		for (int i = 0; i < filesSize && remaining > 0; i++) {
+			long length = files.get(i).length();
+			if (startOffset < length) {
+				long toWrite = Math.min(length - startOffset, remaining);
+				writeFully(fos[i].getChannel(), startOffset, slice(srcs, toWrite));
+				startOffset += toWrite;
+				remaining -= toWrite;
+			}
+			startOffset -= length;
+		}
+	}
+
+	/**
+	 * Returns buffers for the next <tt>count</tt> bytes of <tt>srcs</tt>,
+	 * sharing their content, and skips those bytes in <tt>srcs</tt>.
+	 */
+	private static ByteBuffer[] slice(ByteBuffer[] srcs, long count) {
+		List<ByteBuffer> slices = new ArrayList<ByteBuffer>(srcs.length);
+		for (int i = 0; i < srcs.length && count > 0; i++) {
+			ByteBuffer src = srcs[i];
+			int length = (int) Math.min(src.remaining(), count);
+			if (length == 0)
+				continue;
+			ByteBuffer slice = src.duplicate();
+			slice.limit(slice.position() + length);
+			src.position(src.position() + length);
+			slices.add(slice);
+			count -= length;
+		}
+		return slices.toArray(new ByteBuffer[slices.size()]);
+	}
+
+	/**
+	 * Writes all of <tt>srcs</tt> to <tt>channel</tt> starting at
+	 * <tt>position</tt>.
+	 */
+	private static void writeFully(FileChannel channel, long position, ByteBuffer[] srcs)
+	throws IOException {
+		ByteBuffer last = srcs[srcs.length - 1];
+		// the position of the channel is shared by all writers
+		synchronized(channel) {
+			try {
+				channel.position(position);
+				while (last.hasRemaining())
+					channel.write(srcs);
+			} catch (NonWritableChannelException readOnly) {
+				throw new IOException("file is read-only");
+			}
+		}
+	}
+
+	@Override
+	protected int readImpl(RandomAccessFile raf, long fileOffset, ByteBuffer dst)
+	throws IOException {
+		long windowStart = fileOffset - fileOffset % WINDOW_SIZE;
+		MappedByteBuffer window = getWindow(raf, windowStart, (int)(fileOffset - windowStart));
+		if (window == null)
+			return raf.getChannel().read(dst, fileOffset);
+
+		ByteBuffer src = window.duplicate();
+		src.position((int)(fileOffset - windowStart));
+		int length = Math.min(dst.remaining(), src.remaining());
+		src.limit(src.position() + length);
+		dst.put(src);
+		return length;
+	}
+
+	/**
+	 * Returns the window of <tt>raf</tt> starting at <tt>windowStart</tt>
+	 * that reaches past <tt>offset</tt>, mapping it if necessary.
+	 * Needs to be called holding the lock.
+	 *
+	 * @return null if the window could not be mapped
+	 */
+	private MappedByteBuffer getWindow(RandomAccessFile raf, long windowStart, int offset)
+	throws IOException {
+		WindowKey key = new WindowKey(raf, windowStart);
+		MappedByteBuffer window = windows.get(key);
+		if (window != null && window.limit() > offset)
+			return window;
+
+		// the file grew past the window or it was not mapped yet
+		long size = Math.min(WINDOW_SIZE, raf.length() - windowStart);
+		if (size <= offset)
+			return null;
+		try {
+			MappedByteBuffer mapped = raf.getChannel().map(MapMode.READ_ONLY, windowStart, size);
+			if (window != null)
+				MMDiskController.clean(window);
+			windows.put(key, mapped);
+			return mapped;
+		} catch (IOException mapFailed) {
+			if (LOG.isDebugEnabled())
+				LOG.debug("didn't map window at " + windowStart, mapFailed);
+			return null;
+		}
+	}
+
+	/**
+	 * Unmaps the windows of <tt>raf</tt>, all windows if <tt>raf</tt> is
+	 * null.  Needs to be called holding the lock.
+	 */
+	private void unmap(RandomAccessFile raf) {
+		for (Iterator<Map.Entry<WindowKey, MappedByteBuffer>> iter = windows.entrySet().iterator();
+				iter.hasNext();) {
+			Map.Entry<WindowKey, MappedByteBuffer> entry = iter.next();
+			if (raf == null || entry.getKey().raf == raf) {
+				MMDiskController.clean(entry.getValue());
+				iter.remove();
+			}
+		}
+	}
+
+	@Override
+	public void setReadOnly(F completed) throws IOException {
+		fileLock.writeLock().lock();
+		try {
+			super.setReadOnly(completed);
+		} finally {
+			fileLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	protected synchronized RandomAccessFile setReadOnly(RandomAccessFile f, String path) throws IOException {
+		unmap(f);
+		return super.setReadOnly(f, path);
+	}
+
+	@Override
+	public void close() {
+		fileLock.writeLock().lock();
+		try {
+			synchronized(this) {
+				unmap(null);
+				super.close();
+			}
+		} finally {
+			fileLock.writeLock().unlock();
+		}
+	}
+
+	/** Returns the number of windows that are mapped. */
+	synchronized int getNumWindows() {
+		return windows.size();
+	}
+
+	private static class WindowKey {
+
+		private final RandomAccessFile raf;
+
+		private final long start;
+
+		WindowKey(RandomAccessFile raf, long start) {
+			this.raf = raf;
+			this.start = start;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof WindowKey))
+				return false;
+			WindowKey other = (WindowKey)obj;
+			return raf == other.raf && start == other.start;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(raf) * 31 + (int)(start ^ (start >>> 32));
+		}
+	}
+}
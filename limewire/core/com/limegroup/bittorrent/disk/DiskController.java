@@ -2,6 +2,7 @@ package com.limegroup.bittorrent.disk;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -12,6 +13,13 @@ interface DiskController<F extends File> {
 
 	public void write(long startOffset, byte[] data) throws IOException;
 
+	/**
+	 * Writes the remaining bytes of the buffers one after the other,
+	 * starting at <tt>startOffset</tt>.  The positions of the buffers
+	 * are not changed.
+	 */
+	public void write(long startOffset, ByteBuffer[] data) throws IOException;
+
 	/**
 	 * @return true if this disk storage is open
 	 */
@@ -54,6 +62,18 @@ interface DiskController<F extends File> {
 	 */
 	public int read(long position, byte[] buf, int offset, int length) throws IOException;
 	
+	/**
+	 * Reads up to the remaining bytes of <tt>dst</tt>, like 
+	 * {@link #read(long, byte[], int, int)}, without copying them
+	 * through a temporary array.
+	 * 
+	 * @param position the position in the file where to start reading
+	 * @param dst the buffer to store the read bytes in, its position is
+	 * advanced by the number of bytes read
+	 * @return the number of bytes read
+	 */
+	public int read(long position, ByteBuffer dst) throws IOException;
+	
 	/**
 	 * Flushes any changes to disk.
 	 * @throws IOException if flushing fails.
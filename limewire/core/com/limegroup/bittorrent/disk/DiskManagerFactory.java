@@ -2,25 +2,42 @@ package com.limegroup.bittorrent.disk;
 
 import org.limewire.core.settings.BittorrentSettings;
 
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.limegroup.bittorrent.TorrentContext;
 import com.limegroup.bittorrent.TorrentFile;
 import com.limegroup.gnutella.downloader.serial.BTDiskManagerMemento;
+import com.limegroup.gnutella.uploader.UploadBlockCache;
 
 /**
- * Returns either a memory map or a random access file disk manager.
+ * Returns a disk manager using memory mapped files, file channels or
+ * random access files.
  */
 @Singleton
 public class DiskManagerFactory {
 	
+	private final UploadBlockCache blockCache;
+	
+	@Inject
+	public DiskManagerFactory(UploadBlockCache blockCache) {
+		this.blockCache = blockCache;
+	}
+	
 	public TorrentDiskManager getManager(TorrentContext context,
 			BTDiskManagerMemento memento,
 			boolean complete) {
 		return new VerifyingFolder(context, 
 				complete,
 				memento, 
-				BittorrentSettings.TORRENT_USE_MMAP.getValue() ?
-						new MMDiskController<TorrentFile>() :
-							new RAFDiskController<TorrentFile>());
+				createDiskController(),
+				blockCache);
+	}
+	
+	private DiskController<TorrentFile> createDiskController() {
+		if (BittorrentSettings.TORRENT_USE_MMAP.getValue())
+			return new MMDiskController<TorrentFile>();
+		if (BittorrentSettings.TORRENT_USE_CHANNELS.getValue())
+			return new ChannelDiskController<TorrentFile>();
+		return new RAFDiskController<TorrentFile>();
 	}
 }
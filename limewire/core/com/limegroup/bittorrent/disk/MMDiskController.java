@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.security.AccessController;
@@ -73,14 +74,17 @@ public class MMDiskController<F extends File> extends RAFDiskController<F> {
 	}
 
 	@Override
-	protected int readImpl(RandomAccessFile raf, long fileOffset, byte[] dst, int offset, int length) throws IOException {
+	protected int readImpl(RandomAccessFile raf, long fileOffset, ByteBuffer dst) throws IOException {
 		MappedByteBuffer buf = getBuf(raf);
 		if (buf == null) 
-			return super.readImpl(raf, fileOffset, dst, offset, length);
+			return super.readImpl(raf, fileOffset, dst);
 		
-		buf.position((int)fileOffset);
-		buf.get(dst, offset, length);
-		return buf.position() - (int)fileOffset;
+		int length = dst.remaining();
+		ByteBuffer src = buf.duplicate();
+		src.position((int)fileOffset);
+		src.limit((int)fileOffset + length);
+		dst.put(src);
+		return length;
 	}
 	
 	private synchronized MappedByteBuffer getBuf(RandomAccessFile f) {
@@ -3,6 +3,7 @@ package com.limegroup.bittorrent.disk;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -52,6 +53,24 @@ class RAFDiskController<F extends File> implements DiskController<F> {
 		}
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.limegroup.bittorrent.DiskController#write(long, java.nio.ByteBuffer[])
+	 */
+	public synchronized void write(long startOffset, ByteBuffer[] data) throws IOException {
+		for (ByteBuffer buf : data) {
+			byte [] bytes;
+			if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0
+					&& buf.limit() == buf.array().length) {
+				bytes = buf.array();
+			} else {
+				bytes = new byte[buf.remaining()];
+				buf.duplicate().get(bytes);
+			}
+			write(startOffset, bytes);
+			startOffset += bytes.length;
+		}
+	}
+	
 	protected void  writeImpl(RandomAccessFile f, long fileOffset, byte [] data, int offset, int length) 
 	throws IOException {
 		f.seek(fileOffset);
@@ -179,36 +198,62 @@ class RAFDiskController<F extends File> implements DiskController<F> {
 		else if (offset + length > buf.length)
 			throw new ArrayIndexOutOfBoundsException(
 					"buffer to small to store supplied number of bytes");
+		return read(position, ByteBuffer.wrap(buf, offset, length));
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.limegroup.bittorrent.DiskController#read(long, java.nio.ByteBuffer)
+	 */
+	public synchronized int read(long position, ByteBuffer dst) throws IOException {
+		if (position < 0)
+			throw new IllegalArgumentException("cannot seek negative position "+position);
 		if (!isOpen())
 		    throw new IOException("file closed");
         
-		
+		int length = dst.remaining();
+		int limit = dst.limit();
 		int read = 0;
-		for (int i = 0; i < _files.size() && read < length; i++) {
-			File f = _files.get(i);
-			while (position < f.length() && read < length) {
-				assert _fos[i] != null : "file being read & verified at the same time";
-				
-				long currentLength = _fos[i].length();
-				if (currentLength < f.length() && position >= currentLength)
-					return read;
-				int toRead = (int) Math.min(currentLength - position, length
-						- read);
-				int t_read = readImpl(_fos[i], position, buf, read + offset, toRead);
-				if (t_read == -1)
-					throw new IOException();
-				position += t_read;
-				read += t_read;
+		try {
+			for (int i = 0; i < _files.size() && read < length; i++) {
+				File f = _files.get(i);
+				while (position < f.length() && read < length) {
+					assert _fos[i] != null : "file being read & verified at the same time";
+					
+					long currentLength = _fos[i].length();
+					if (currentLength < f.length() && position >= currentLength)
+						return read;
+					int toRead = (int) Math.min(currentLength - position, length
+							- read);
+					dst.limit(dst.position() + toRead);
+					int t_read = readImpl(_fos[i], position, dst);
+					if (t_read == -1)
+						throw new IOException();
+					position += t_read;
+					read += t_read;
+				}
+				position -= f.length();
 			}
-			position -= f.length();
+		} finally {
+			dst.limit(limit);
 		}
 		return read;
 	}
 	
-	protected int readImpl(RandomAccessFile raf, long fileOffset, byte [] dst, int offset, int length) 
+	/**
+	 * Reads up to the remaining bytes of <tt>dst</tt> from <tt>raf</tt>,
+	 * starting at <tt>fileOffset</tt>.
+	 * 
+	 * @return the number of bytes read, -1 at the end of the file
+	 */
+	protected int readImpl(RandomAccessFile raf, long fileOffset, ByteBuffer dst) 
 	throws IOException {
+		if (!dst.hasArray())
+			return raf.getChannel().read(dst, fileOffset);
 		raf.seek(fileOffset);
-		return raf.read(dst, offset, length);
+		int read = raf.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+		if (read > 0)
+			dst.position(dst.position() + read);
+		return read;
 	}
 	
 	/* (non-Javadoc)
@@ -87,6 +87,23 @@ public interface TorrentDiskManager {
 	 */
 	public BTInterval leaseBTInterval(BitField bs, Set<BTInterval> exclude, PieceStrategy pieceStrategy);
 
+	/**
+	 * Returns up to <tt>count</tt> BTIntervals of up to 16k each, selected
+	 * using the given piece strategy.  This is the same as calling
+	 * {@link #leaseBTInterval(BitField, Set, PieceStrategy)} <tt>count</tt>
+	 * times, adding each interval to the excluded ones, but only locks once.
+	 *
+	 * @param bs the <tt>BitField</tt> of available ranges to choose from
+	 * @param exclude the set of ranges that the connection is already about to request,
+	 * it is not modified
+	 * @param pieceStrategy the piece strategy to select the intervals with. Can be null.
+	 * @param count the maximum number of intervals to lease
+	 * @return the BTIntervals that should be requested next, null if there
+	 * is nothing left to request.
+	 */
+	public List<BTInterval> leaseBTIntervals(BitField bs, Set<BTInterval> exclude,
+			PieceStrategy pieceStrategy, int count);
+
 	/**
 	 * Removes an interval from the internal list of already requested intervals.
 	 * <p>
@@ -1,15 +1,22 @@
 package com.limegroup.bittorrent.disk;
 
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -18,10 +25,11 @@ import org.limewire.collection.BitField;
 import org.limewire.collection.BitFieldSet;
 import org.limewire.collection.BitSet;
 import org.limewire.collection.IntervalSet;
+import org.limewire.collection.LongBitField;
 import org.limewire.collection.NECallable;
 import org.limewire.collection.NotView;
-import org.limewire.collection.OrView;
 import org.limewire.collection.RRProcessingQueue;
+import org.limewire.io.BlockCache;
 import org.limewire.io.DiskException;
 import org.limewire.service.ErrorService;
 import org.limewire.util.SystemUtils;
@@ -61,10 +69,24 @@ class VerifyingFolder implements TorrentDiskManager {
 	
 	/**
 	 * Queue for verifying torrents that already exist on the hard
-	 * disk.
+	 * disk.  Several threads verify, the torrents take turns.
 	 */
 	private static final RRProcessingQueue VERIFY_QUEUE = 
-		new RRProcessingQueue("TorrentVerifier");
+		new RRProcessingQueue("TorrentVerifier", Math.max(1, Math.min(
+		        Runtime.getRuntime().availableProcessors(),
+		        BittorrentSettings.TORRENT_VERIFY_THREADS.getValue())));
+	
+	/**
+	 * The number of bytes that are read at once when verifying data
+	 * that exists on disk.
+	 */
+	private static final int READ_AHEAD = 1024 * 1024;
+	
+	/**
+	 * The number of bytes of consecutive pieces one verification job
+	 * checks, at least one piece.
+	 */
+	private static final int VERIFY_JOB_SIZE = 4 * 1024 * 1024;
 	
 	
 	/**
@@ -73,6 +95,26 @@ class VerifyingFolder implements TorrentDiskManager {
 	 */
 	private static final int BLOCK_SIZE = 16384;
 	
+	/**
+	 * The most bytes of contiguous pieces that are written at once.
+	 */
+	private static final int MAX_COALESCED_WRITE = 256 * 1024;
+	
+	/**
+	 * Orders pieces by their offset in the torrent.
+	 */
+	private static final Comparator<BTPiece> OFFSET_COMPARATOR = new Comparator<BTPiece>() {
+	    public int compare(BTPiece a, BTPiece b) {
+	        BTInterval x = a.getInterval();
+	        BTInterval y = b.getInterval();
+	        if (x.getId() != y.getId())
+	            return x.getId() < y.getId() ? -1 : 1;
+	        if (x.getLow() != y.getLow())
+	            return x.getLow() < y.getLow() ? -1 : 1;
+	        return 0;
+	    }
+	};
+	
 	/*
 	 * The files of this torrent as an array
 	 */
@@ -101,6 +143,12 @@ class VerifyingFolder implements TorrentDiskManager {
 	
 	private BitField missing, verified;
 	
+	/** 
+	 * Scratch fields for the pieces we could request, reused for every
+	 * lease.  LOCKING: this
+	 */
+	private final LongBitField interestingScratch, neededScratch;
+	
 	/** a cached bitfield. LOCKING: this*/
 	private byte [] bitField;
 	/** whether the cached bitfield is dirty LOCKING: this */
@@ -130,10 +178,44 @@ class VerifyingFolder implements TorrentDiskManager {
 	/** Whether the files on disk are currently being verified */
 	private volatile boolean isVerifying;
 	
+	/**
+	 * The modification times of the files when they were closed, keyed 
+	 * by path, null while they are open or if the times are not known.
+	 */
+	private volatile Map<String, Long> fileTimes;
+	
 	/**
 	 * Disk controller for performing the reads and writes.
 	 */
 	private final DiskController<TorrentFile> diskController;
+	
+	/**
+	 * The pieces that have been received and wait to be written.
+	 * LOCKING: itself
+	 */
+	private final List<NECallable<BTPiece>> pendingWrites = new ArrayList<NECallable<BTPiece>>();
+	
+	/**
+	 * Whether a <tt>WriteJob</tt> is scheduled that will write the
+	 * <tt>pendingWrites</tt>.  LOCKING: pendingWrites
+	 */
+	private boolean writeScheduled;
+
+    /**
+     * Cache the pieces we send are read through, null if they are read
+     * directly. Keyed by this.
+     */
+    private final BlockCache blockCache;
+
+    /** 
+     * Reads the pieces that are sent straight into the buffer they are 
+     * sent from, or the blocks of the <code>blockCache</code>.
+     */
+    private final BlockCache.BlockReader blockReader = new BlockCache.BlockReader() {
+        public int read(long position, ByteBuffer dst) throws IOException {
+            return diskController.read(position, dst);
+        }
+    };
     
     /** 
      * the last continuous offset in the torrent file that has been verified.
@@ -144,11 +226,14 @@ class VerifyingFolder implements TorrentDiskManager {
 	 * constructs instance of this
 	 * 
 	 * @param complete if the download is completed
+	 * @param blockCache the cache to read pieces that are sent through,
+	 * may be null
 	 */
 	VerifyingFolder(TorrentContext context, 
 			boolean complete, 
             BTDiskManagerMemento data,
-            DiskController<TorrentFile> diskController) {
+            DiskController<TorrentFile> diskController,
+            BlockCache blockCache) {
         TorrentFileSystem system = context.getFileSystem();
         _files = complete? system.getFiles() : system.getIncompleteFiles();
         this.context = context;
@@ -157,7 +242,16 @@ class VerifyingFolder implements TorrentDiskManager {
         partialBlocks = new BlockRangeMap(numBlocks);
         requestedRanges = new BlockRangeMap(numBlocks);
         pendingRanges = new BlockRangeMap(numBlocks);
+        interestingScratch = new LongBitField(numBlocks);
+        neededScratch = new LongBitField(numBlocks);
         this.diskController = diskController;
+        // only verified pieces are sent, so cached blocks must not reach
+        // into other pieces
+        if (blockCache != null
+                && context.getMetaInfo().getPieceLength() % blockCache.getBlockSize() == 0)
+            this.blockCache = blockCache;
+        else
+            this.blockCache = null;
                 
         if (complete) {
             verifiedBlocks = context.getFullBitSet();
@@ -184,46 +278,109 @@ class VerifyingFolder implements TorrentDiskManager {
             verifiedBlocks = data.getVerifiedBlocks();
         
         isVerifying = data.isVerifying();
+        fileTimes = data.getFileTimes();
     }
     
     
     public void writeBlock(NECallable<BTPiece> factory) {
         if (storedException != null)
             return;
-        QUEUE.execute(new WriteJob(factory),context.getMetaInfo().getURN());
+        synchronized(pendingWrites) {
+            pendingWrites.add(factory);
+            if (writeScheduled)
+                return;
+            writeScheduled = true;
+        }
+        QUEUE.execute(new WriteJob(),context.getMetaInfo().getURN());
     }
     
     /**
+     * Writes all pieces that are pending, pieces that are contiguous on
+     * disk are written at once.
+     * <p>
      * This duplicates lots of code from VerifyingFile..
      * the two should eventually be abstracted somehow.
      */
     private class WriteJob implements Runnable {
-        private final NECallable<BTPiece> factory;
-        
-        WriteJob(NECallable<BTPiece> factory) {
-            this.factory = factory;
-        }
         
         public void run() {
+            List<NECallable<BTPiece>> factories;
+            synchronized(pendingWrites) {
+                factories = new ArrayList<NECallable<BTPiece>>(pendingWrites);
+                pendingWrites.clear();
+                writeScheduled = false;
+            }
+            
             if (storedException != null)
                 return;
             
-            BTPiece piece = factory.call();
+            List<BTPiece> pieces = new ArrayList<BTPiece>(factories.size());
+            for (NECallable<BTPiece> factory : factories) {
+                BTPiece piece = factory.call();
+                if (piece.getInterval().getId() >= verified.maxSize()) 
+                    continue; // bad piece.
+                pieces.add(piece);
+            }
             
-            BTInterval in = piece.getInterval();
-            if (in.getId() >=  verified.maxSize()) 
-                return; // bad piece.
-            byte [] data = piece.getData();
+            synchronized(VerifyingFolder.this) {
+                for (Iterator<BTPiece> iter = pieces.iterator(); iter.hasNext();) {
+                    BTInterval in = iter.next().getInterval();
+                    if (hasBlock(in.getId())) {
+                        iter.remove();
+                        continue;
+                    }
+                    pendingRanges.addInterval(in);
+                    requestedRanges.removeInterval(in);
+                }
+            }
             
+            Collections.sort(pieces, OFFSET_COMPARATOR);
+            int runStart = 0;
+            for (int i = 1; i <= pieces.size(); i++) {
+                if (i < pieces.size() && isContiguous(pieces, runStart, i))
+                    continue;
+                writeRun(pieces.subList(runStart, i));
+                runStart = i;
+            }
+        }
+        
+        /**
+         * Returns true if the piece at <code>index</code> continues the run
+         * of pieces starting at <code>runStart</code> on disk.
+         */
+        private boolean isContiguous(List<BTPiece> pieces, int runStart, int index) {
+            BTInterval last = pieces.get(index - 1).getInterval();
+            BTInterval next = pieces.get(index).getInterval();
+            long runLength = getOffset(last) + last.getHigh() - last.getLow() + 1
+                    - getOffset(pieces.get(runStart).getInterval());
+            return getOffset(next) == getOffset(last) + last.getHigh() - last.getLow() + 1 
+                    && runLength + next.getHigh() - next.getLow() + 1 <= MAX_COALESCED_WRITE;
+        }
+        
+        private void writeRun(List<BTPiece> run) {
+            // an earlier run may have completed a piece, whose file 
+            // may not be writable anymore
+            boolean completed = false;
             synchronized(VerifyingFolder.this) {
-                if (hasBlock(in.getId()))
+                for (BTPiece piece : run) {
+                    if (hasBlock(piece.getInterval().getId())) {
+                        completed = true;
+                        break;
+                    }
+                }
+                if (completed && run.size() == 1) {
+                    pendingRanges.removeInterval(run.get(0).getInterval());
                     return;
-                pendingRanges.addInterval(in);
-                requestedRanges.removeInterval(in);
+                }
+            }
+            if (completed) {
+                for (BTPiece piece : run)
+                    writeRun(Collections.singletonList(piece));
+                return;
             }
             
             try {
-                writeBlockImpl(in, data);
+                writeBlockImpl(run);
             } catch (IOException iox) {
                 if (isOpen()) {
                     storedException = iox;
@@ -231,24 +388,50 @@ class VerifyingFolder implements TorrentDiskManager {
                 }
             } finally {
                 synchronized(VerifyingFolder.this) {
-                    pendingRanges.removeInterval(in);
+                    for (BTPiece piece : run)
+                        pendingRanges.removeInterval(piece.getInterval());
                 }
             }
         }
     }
+    
     /**
-     * Writes bytes to the underlying files.
+     * Returns the offset of <code>in</code> in the torrent.
+     */
+    private long getOffset(BTInterval in) {
+        return (long)in.getId() * context.getMetaInfo().getPieceLength() + in.getLow();
+    }
+    
+    /**
+     * Writes pieces that are contiguous on disk to the underlying files
+     * at once.
      * 
-     * @param in the BTInterval that is to be written
-     * @param buf
-     *            an array of byte containing the bytes to write
+     * @param run the pieces to write, sorted by offset
      */
-    private void writeBlockImpl(BTInterval in, byte[] buf) 
+    private void writeBlockImpl(List<BTPiece> run) 
     throws IOException {
         
-        long startOffset = (long)in.getId() * context.getMetaInfo().getPieceLength() + in.getLow();
-        diskController.write(startOffset, buf);
+        long startOffset = getOffset(run.get(0).getInterval());
+        if (run.size() == 1) {
+            diskController.write(startOffset, run.get(0).getData());
+        } else {
+            ByteBuffer [] bufs = new ByteBuffer[run.size()];
+            for (int i = 0; i < bufs.length; i++)
+                bufs[i] = ByteBuffer.wrap(run.get(i).getData());
+            diskController.write(startOffset, bufs);
+        }
         
+        for (BTPiece piece : run)
+            blockWritten(piece.getInterval());
+    }
+    
+    /**
+     * Updates the written ranges and verifies the piece of <code>in</code>
+     * if it is complete.
+     * 
+     * @param in the BTInterval that was written
+     */
+    private void blockWritten(BTInterval in) throws IOException {
         synchronized(this) {
             pendingRanges.removeInterval(in);
             partialBlocks.addInterval(in);
@@ -324,16 +507,8 @@ class VerifyingFolder implements TorrentDiskManager {
             long start = System.nanoTime();
             md.update(buf, 0, readNow);
             
-            if (slow && SystemUtils.getIdleTime() < URN.MIN_IDLE_TIME &&
-                    SharingSettings.FRIENDLY_HASHING.getValue()) {
-                long interval = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
-                // go extra slow if there are active torrents
-                interval *= QUEUE.size() > 0 ? 5 : 3; 
-                if (interval > 0) 
-                    Thread.sleep(interval);
-                else
-                    Thread.yield();
-            }
+            if (slow)
+                pauseHashing(start);
             
             read += readNow;
             offset += readNow;
@@ -343,6 +518,23 @@ class VerifyingFolder implements TorrentDiskManager {
         return context.getMetaInfo().verify(sha1, pieceNum);
     }
     
+    /**
+     * Pauses for a while after hashing that started at <tt>start</tt>,
+     * if the user is active and wants friendly hashing.
+     */
+    private void pauseHashing(long start) throws InterruptedException {
+        if (SystemUtils.getIdleTime() < URN.MIN_IDLE_TIME &&
+                SharingSettings.FRIENDLY_HASHING.getValue()) {
+            long interval = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // go extra slow if there are active torrents
+            interval *= QUEUE.size() > 0 ? 5 : 3; 
+            if (interval > 0) 
+                Thread.sleep(interval);
+            else
+                Thread.yield();
+        }
+    }
+    
     /**
      * performs various tasks after a block has been verified
      * such as notifying any listeners or closing files.
@@ -406,42 +598,85 @@ class VerifyingFolder implements TorrentDiskManager {
 		
 		List<TorrentFile> filesToVerify = diskController.open(_files, isComplete(), isVerifying);
 		
+		// the pieces of files that were changed since they were closed 
+		// can't be trusted
+		boolean timesKnown = fileTimes != null;
+		List<TorrentFile> changedFiles = isComplete() ? 
+		        Collections.<TorrentFile>emptyList() : getChangedFiles();
+		fileTimes = null;
+		
+		BitSet toVerify = new BitSet(context.getMetaInfo().getNumBlocks());
 		// verify any files that needed verification
 		if (filesToVerify != null) {
 			isVerifying = true;
 			// pretend nothing was downloaded
-			if (!wasVerifying) {
-				synchronized(this) {
-					verifiedBlocks.clear();
-					partialBlocks.clear();
-				}
-			}
-			verifyFiles(filesToVerify);
+			if (!wasVerifying) 
+				forgetPieces(changedFiles);
+			addPieces(toVerify, filesToVerify);
+		} else if (timesKnown && !changedFiles.isEmpty()) {
+			isVerifying = true;
+			forgetPieces(changedFiles);
+			addPieces(toVerify, changedFiles);
 		} else
 			isVerifying = false;
 
 		// always verify any partial blocks that are large enough
 		// (could happen if lw was shutdown during verification)
-		for (int block : partialBlocks.keySet() ) {
-			if (context.getMetaInfo().isCompleteBlock(block, partialBlocks)) {
-				isVerifying = true;
-				VERIFY_QUEUE.execute(new VerifyJob(block),context.getMetaInfo().getURN());
+		synchronized(this) {
+			for (int block : partialBlocks.keySet() ) {
+				if (context.getMetaInfo().isCompleteBlock(block, partialBlocks)) {
+					isVerifying = true;
+					toVerify.set(block);
+				}
 			}
 		}
 		
-		// if we had to verify anything, enqueue a notification
-		// after we're done.
-		if (isVerifying) {
-			VERIFY_QUEUE.execute(new Runnable(){
-				public void run() {
-					if (isOpen()) {
-						isVerifying = false;
-						_corruptedBytes = 0;
-						torrent.verificationComplete();
-					}
-				}
-			}, context.getMetaInfo().getURN());
+		// if we had to verify anything, notify the torrent after 
+		// we're done.
+		if (isVerifying) 
+			verifyPieces(toVerify, torrent);
+	}
+	
+	/**
+	 * Returns the files whose modification times differ from the
+	 * times they were closed with, all files if the times are not known.
+	 */
+	private List<TorrentFile> getChangedFiles() {
+		Map<String, Long> times = fileTimes;
+		if (times == null)
+			return _files;
+		List<TorrentFile> changed = new ArrayList<TorrentFile>();
+		for (TorrentFile file : _files) {
+			Long time = times.get(file.getAbsolutePath());
+			if (time == null || !file.exists() || file.lastModified() != time) 
+				changed.add(file);
+		}
+		if (LOG.isDebugEnabled())
+			LOG.debug("changed files: " + changed);
+		return changed;
+	}
+	
+	/**
+	 * Forgets about the verified and partial pieces of <tt>files</tt>.
+	 */
+	private synchronized void forgetPieces(List<TorrentFile> files) {
+		int numBlocks = context.getMetaInfo().getNumBlocks();
+		for (TorrentFile file : files) {
+			for (int i = file.getBeginPiece(); i <= file.getEndPiece() && i < numBlocks; i++) {
+				verifiedBlocks.clear(i);
+				partialBlocks.remove(i);
+			}
 		}
+		bitFieldDirty = true;
+	}
+	
+	/**
+	 * Adds the pieces of <tt>files</tt> to <tt>pieces</tt>.
+	 */
+	private void addPieces(BitSet pieces, List<TorrentFile> files) {
+		int numBlocks = context.getMetaInfo().getNumBlocks();
+		for (TorrentFile file : files) 
+			pieces.set(file.getBeginPiece(), Math.min(file.getEndPiece() + 1, numBlocks));
 	}
 	
 	public boolean isVerifying() {
@@ -464,12 +699,26 @@ class VerifyingFolder implements TorrentDiskManager {
 			pendingRanges.clear();
 		}
 		diskController.close();
+		if (blockCache != null)
+		    blockCache.invalidate(this);
+		
+		// nothing is written anymore, remember what the files looked 
+		// like so they don't have to be verified again if they are
+		// unchanged when they are opened
+		Map<String, Long> times = new HashMap<String, Long>(_files.size());
+		for (TorrentFile file : _files)
+		    times.put(file.getAbsolutePath(), file.lastModified());
+		fileTimes = times;
 		
 		listener = null;
 		// kill all jobs for this torrent
 		URN urn = context.getMetaInfo().getURN();
 		VERIFY_QUEUE.clear(urn);
 		QUEUE.clear(urn);
+		synchronized(pendingWrites) {
+		    pendingWrites.clear();
+		    writeScheduled = false;
+		}
 		
 	}
 
@@ -509,13 +758,19 @@ class VerifyingFolder implements TorrentDiskManager {
             assert length64 <= Integer.MAX_VALUE;
             int length = (int)length64;
             long position = (long)in.getId() * context.getMetaInfo().getPieceLength() + in.getLow();
-            int offset = 0;
             byte[] buf = new byte[length];
+            ByteBuffer dst = ByteBuffer.wrap(buf);
             boolean success = false;
             try {
                 do {
-                    offset += diskController.read(position + offset, buf, offset, length - offset);
-                } while (offset < length);
+                    int read;
+                    if (blockCache != null)
+                        read = blockCache.read(VerifyingFolder.this, position + dst.position(), dst, blockReader);
+                    else
+                        read = blockReader.read(position + dst.position(), dst);
+                    if (read <= 0)
+                        throw new EOFException("piece " + in + " past end of torrent");
+                } while (dst.hasRemaining());
                 success = true;
             } catch (IOException bad) {
                 if (isOpen()) {
@@ -546,28 +801,55 @@ class VerifyingFolder implements TorrentDiskManager {
      * request
      * @return a BTInterval that should be requested next.
      */
-    public synchronized BTInterval leaseBTInterval(BitField bs, Set<BTInterval> exclude,
+    public BTInterval leaseBTInterval(BitField bs, Set<BTInterval> exclude,
             PieceStrategy pieceStrategy) {
-        if (isComplete())
+        List<BTInterval> leased = leaseBTIntervals(bs, exclude, pieceStrategy, 1);
+        return leased == null ? null : leased.get(0);
+    }
+
+    public synchronized List<BTInterval> leaseBTIntervals(BitField bs, Set<BTInterval> exclude,
+            PieceStrategy pieceStrategy, int count) {
+        if (isComplete() || count <= 0)
             return null;
 
         if (LOG.isDebugEnabled())
-            LOG.debug("leasing random chunk from available cardinality " + bs.cardinality());
+            LOG.debug("leasing " + count + " chunks from available cardinality " + bs.cardinality());
 
-        BitField interesting = new AndView(bs, missing);
-        List<BTInterval> toLease = findPiecesWithEndGame(interesting, exclude, pieceStrategy);
-        BTInterval lease = null;
+        BitField interesting = getInteresting(bs);
+        List<BTInterval> leased = new ArrayList<BTInterval>(count);
+        Set<BTInterval> excluded = exclude;
+        while (leased.size() < count) {
+            List<BTInterval> toLease = findPiecesWithEndGame(interesting, excluded, pieceStrategy);
+            if (toLease == null || toLease.isEmpty())
+                break;
 
-        if (toLease != null && toLease.size() > 0) {
-            lease = resize(toLease.get(0));
-            requestedRanges.addInterval(lease);
+            // split what the strategy picked into blocks, excluding each 
+            // block from the next round
+            if (excluded == exclude) {
+                excluded = new HashSet<BTInterval>();
+                if (exclude != null)
+                    excluded.addAll(exclude);
+            }
+            for (int i = 0; i < toLease.size() && leased.size() < count; i++) {
+                BTInterval in = toLease.get(i);
+                for (long low = in.getLow(); low <= in.getHigh() && leased.size() < count; low += BLOCK_SIZE) {
+                    BTInterval lease = resize(new BTInterval(low, in.getHigh(), in.getId()));
+                    requestedRanges.addInterval(lease);
+                    excluded.add(lease);
+                    leased.add(lease);
 
-            if (LOG.isDebugEnabled())
-                LOG.debug("assigning " + lease);
-        } else if (LOG.isDebugEnabled())
-            LOG.debug("couldn't find anything to assign " + exclude);
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("assigning " + lease);
+                }
+            }
+        }
 
-        return lease;
+        if (leased.isEmpty()) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("couldn't find anything to assign " + exclude);
+            return null;
+        }
+        return leased;
     }
 
     private BTInterval resize(BTInterval lease) {
@@ -584,8 +866,7 @@ class VerifyingFolder implements TorrentDiskManager {
         if (LOG.isDebugEnabled())
             LOG.debug("leasing random chunk from available cardinality " + bs.cardinality());
 
-        BitField interesting = new AndView(bs, missing);
-        List<BTInterval> toLease = findPiecesWithEndGame(interesting, exclude, pieceStrategy);
+        List<BTInterval> toLease = findPiecesWithEndGame(getInteresting(bs), exclude, pieceStrategy);
 
         if (toLease != null && toLease.size() > 0) {
             for (BTInterval lease : toLease) {
@@ -601,6 +882,17 @@ class VerifyingFolder implements TorrentDiskManager {
         return toLease;
     }
 
+    /**
+     * Returns the pieces in <code>bs</code> that we are missing.  The returned
+     * field is overwritten by the next lease.
+     */
+    private BitField getInteresting(BitField bs) {
+        interestingScratch.copyFrom(missing);
+        if (bs != context.getFullBitField())
+            interestingScratch.and(bs);
+        return interestingScratch;
+    }
+
     private List<BTInterval> findPiecesWithEndGame(BitField bs, Set<BTInterval> exclude,
             PieceStrategy pieceStrategy) {
 
@@ -633,9 +925,10 @@ class VerifyingFolder implements TorrentDiskManager {
         if (pieceStrategy == null) {
             pieceStrategy = new RandomPieceStrategy(context.getMetaInfo());
         }
-        BitField uninteresting = new OrView(pendingRanges.getBitField(), requestedRanges
-                .getBitField(), partialBlocks.getBitField());
-        BitField neededBlocks = new AndView(missing, new NotView(uninteresting));
+        BitField neededBlocks = neededScratch.copyFrom(missing)
+                .andNot(pendingRanges.getBitField())
+                .andNot(requestedRanges.getBitField())
+                .andNot(partialBlocks.getBitField());
 
         List<BTInterval> nextPieces = pieceStrategy.getNextPieces(availableBlocks, neededBlocks);
         return nextPieces;
@@ -683,41 +976,101 @@ class VerifyingFolder implements TorrentDiskManager {
     }
 
     /**
-     * verifies all the chunks that are associated with a list of files.
+     * Verifies the pieces in <tt>pieces</tt> that are not verified yet
+     * and notifies <tt>torrent</tt> once all of them are done.
+     * <p>
+     * Consecutive pieces are verified by the same job, reading them in
+     * one go, the jobs run in parallel.
      */
-    private void verifyFiles(List<TorrentFile> l) {
-        int lastSet;
+    private void verifyPieces(BitSet pieces, DiskManagerListener torrent) {
+        int piecesPerJob = Math.max(1, VERIFY_JOB_SIZE / context.getMetaInfo().getPieceLength());
+        List<VerifyJob> jobs = new ArrayList<VerifyJob>();
+        final Verification verification = new Verification(torrent);
         synchronized(this) {
-            lastSet = verifiedBlocks.length();
+            for (int first = nextUnverified(pieces, 0); first >= 0; ) {
+                int last = first;
+                while (last - first + 1 < piecesPerJob && pieces.get(last + 1) && !verified.get(last + 1))
+                    last++;
+                jobs.add(new VerifyJob(first, last, verification));
+                first = nextUnverified(pieces, last + 1);
+            }
         }
-        for (TorrentFile f : l) {
-            for (int i = Math.max(lastSet,f.getBeginPiece()); i <= f.getEndPiece(); i++) 
-                VERIFY_QUEUE.execute(new VerifyJob(i),context.getMetaInfo().getURN());
+        
+        if (jobs.isEmpty()) {
+            VERIFY_QUEUE.execute(new Runnable() {
+                public void run() {
+                    verification.complete();
+                }
+            }, context.getMetaInfo().getURN());
+            return;
+        }
+        verification.setJobs(jobs.size());
+        for (VerifyJob job : jobs)
+            VERIFY_QUEUE.execute(job, context.getMetaInfo().getURN());
+    }
+    
+    /**
+     * Returns the next piece from <tt>from</tt> on that is in 
+     * <tt>pieces</tt> and not verified, -1 if there is none.  Needs 
+     * to be called holding the lock.
+     */
+    private int nextUnverified(BitSet pieces, int from) {
+        int i = pieces.nextSetBit(from);
+        while (i >= 0 && verified.get(i))
+            i = pieces.nextSetBit(i + 1);
+        return i;
+    }
+    
+    /**
+     * Keeps track of the jobs of one verification of the files on disk.
+     */
+    private class Verification {
+        private final DiskManagerListener torrent;
+        
+        private final AtomicInteger jobs = new AtomicInteger();
+        
+        Verification(DiskManagerListener torrent) {
+            this.torrent = torrent;
+        }
+        
+        void setJobs(int numJobs) {
+            jobs.set(numJobs);
+        }
+        
+        void jobDone() {
+            if (jobs.decrementAndGet() == 0)
+                complete();
+        }
+        
+        void complete() {
+            if (isOpen()) {
+                isVerifying = false;
+                _corruptedBytes = 0;
+                torrent.verificationComplete();
+            }
         }
     }
 
     /**
-     * A task that checks an already existing file on disk
-     * against the .torrent metadata.  
+     * A task that checks consecutive pieces of an already existing
+     * file on disk against the .torrent metadata.  
      */
     private class VerifyJob implements Runnable {
-        private final int pieceNum;
-        public VerifyJob(int pieceNum) {
-            this.pieceNum = pieceNum;
+        private final int first, last;
+        
+        private final Verification verification;
+        
+        public VerifyJob(int first, int last, Verification verification) {
+            this.first = first;
+            this.last = last;
+            this.verification = verification;
         }
         
         public void run() {
-            if (storedException != null ||
-                    !isOpen() ||
-                    hasBlock(pieceNum))
-                return;
             try {
-                
-                if (verify(pieceNum, true)) {
-                    markPieceCompleted(pieceNum);
-                    handleVerified(pieceNum);
-                } else 
-                    _corruptedBytes += context.getMetaInfo().getPieceSize(pieceNum);
+                if (storedException != null || !isOpen())
+                    return;
+                verifyRange(first, last);
             } catch (IOException bad) {
                 storedException = bad;
             } catch (InterruptedException iex) { // should not happen
@@ -725,9 +1078,67 @@ class VerifyingFolder implements TorrentDiskManager {
             } finally {
                 if (storedException != null && isOpen())
                     notifyDiskProblem(storedException);
+                verification.jobDone();
             }
         }
     }
+    
+    /**
+     * Verifies the pieces from <tt>first</tt> to <tt>last</tt>, reading
+     * ahead of the piece that is hashed.
+     */
+    private void verifyRange(int first, int last) 
+    throws IOException, InterruptedException {
+        BTMetaInfo info = context.getMetaInfo();
+        MessageDigest md = info.getMessageDigest();
+        md.reset();
+        long position = (long)first * info.getPieceLength();
+        long end = (long)last * info.getPieceLength() + info.getPieceSize(last);
+        byte [] buf = new byte[(int)Math.min(READ_AHEAD, end - position)];
+        
+        int piece = first;
+        long pieceEnd = position + info.getPieceSize(first);
+        while (position < end) {
+            int read = diskController.read(position, buf, 0, (int)Math.min(buf.length, end - position));
+            if (read == 0) {
+                // the rest is missing
+                for (; piece <= last; piece++)
+                    pieceVerified(piece, false);
+                return;
+            }
+            
+            long start = System.nanoTime();
+            for (int offset = 0; offset < read; ) {
+                int length = (int)Math.min(read - offset, pieceEnd - position);
+                md.update(buf, offset, length);
+                offset += length;
+                position += length;
+                if (position == pieceEnd) {
+                    pieceVerified(piece, info.verify(md.digest(), piece));
+                    if (++piece <= last)
+                        pieceEnd += info.getPieceSize(piece);
+                }
+            }
+            pauseHashing(start);
+        }
+    }
+    
+    /**
+     * Records the result of verifying a piece that existed on disk.
+     */
+    private void pieceVerified(int pieceNum, boolean ok) throws IOException {
+        if (!ok) {
+            synchronized(this) {
+                _corruptedBytes += context.getMetaInfo().getPieceSize(pieceNum);
+            }
+            return;
+        }
+        // the piece may have been downloaded in the meantime
+        if (hasBlock(pieceNum))
+            return;
+        markPieceCompleted(pieceNum);
+        handleVerified(pieceNum);
+    }
 
     /**
      * @return number of bytes written and verified
@@ -768,15 +1179,16 @@ class VerifyingFolder implements TorrentDiskManager {
         synchronized(this) {
             // Deep-copy the IntervalSet to avoid ConcurrentModificationExceptions
             Map<Integer, IntervalSet> partial = new HashMap<Integer, IntervalSet>(partialBlocks.size());
-            for(Map.Entry<Integer, IntervalSet> entry : partialBlocks.entrySet())
-                try {
+            try {
+                for(Map.Entry<Integer, IntervalSet> entry : partialBlocks.entrySet())
                     partial.put(entry.getKey(), entry.getValue().clone());
-                    memento.setVerifiedBlocks((BitSet)verifiedBlocks.clone());
-                } catch (CloneNotSupportedException e) {
-                   throw new RuntimeException(e);
-                }
+                memento.setVerifiedBlocks((BitSet)verifiedBlocks.clone());
+            } catch (CloneNotSupportedException e) {
+               throw new RuntimeException(e);
+            }
             memento.setPartialBlocks(partial);
             memento.setVerifying(isVerifying);
+            memento.setFileTimes(fileTimes);
         }
         if (BittorrentSettings.TORRENT_FLUSH_VERIRY.getValue()) {
             try {
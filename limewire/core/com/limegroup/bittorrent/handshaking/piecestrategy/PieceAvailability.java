@@ -0,0 +1,169 @@
+package com.limegroup.bittorrent.handshaking.piecestrategy;
+
+import java.util.Random;
+
+import org.limewire.collection.BitField;
+
+/**
+ * Keeps track of how many of the peers of a torrent have each piece.
+ * <p>
+ * The counts are updated incrementally as peers announce their pieces and
+ * disconnect, so the rareness of a piece can be looked up in constant time
+ * instead of asking every connection. Peers that have every piece are only
+ * counted once in {@link #addSeed()}, since they don't change the order.
+ * <p>
+ * The pieces are also kept sorted by their count, grouped into one bucket
+ * per count, which lets {@link #getRarestPiece(BitField, Random)} start at
+ * the rarest pieces instead of comparing all of them. A piece moves to the
+ * neighbouring bucket by swapping it with the piece at the edge of its
+ * bucket, so every update takes constant time.
+ * <p>
+ * This class is thread-safe.
+ */
+public class PieceAvailability {
+
+    /** The number of non-seed peers that have each piece. */
+    private final int[] counts;
+
+    /** The pieces ordered by their count. */
+    private final int[] order;
+
+    /** The index of each piece in <code>order</code>. */
+    private final int[] positions;
+
+    /**
+     * The index in <code>order</code> of the first piece with a count of at
+     * least <code>i</code>, for every count <code>i</code>. Counts higher
+     * than the highest one start at the end of <code>order</code>.
+     */
+    private int[] bucketStarts;
+
+    /** The number of connected peers that have every piece. */
+    private int seeds;
+
+    public PieceAvailability(int numPieces) {
+        counts = new int[numPieces];
+        order = new int[numPieces];
+        positions = new int[numPieces];
+        for (int i = 0; i < numPieces; i++) {
+            order[i] = i;
+            positions[i] = i;
+        }
+        bucketStarts = new int[] { 0, numPieces, numPieces };
+    }
+
+    /** Returns the number of pieces tracked. */
+    public int getNumPieces() {
+        return counts.length;
+    }
+
+    /**
+     * Returns the number of connected peers that have the given piece.
+     */
+    public synchronized int getAvailability(int piece) {
+        return counts[piece] + seeds;
+    }
+
+    /**
+     * Records that a peer announced the given piece.
+     */
+    public synchronized void addPiece(int piece) {
+        int count = counts[piece];
+        if (count + 2 >= bucketStarts.length) {
+            int[] grown = new int[bucketStarts.length * 2];
+            System.arraycopy(bucketStarts, 0, grown, 0, bucketStarts.length);
+            for (int i = bucketStarts.length; i < grown.length; i++)
+                grown[i] = order.length;
+            bucketStarts = grown;
+        }
+        // the last piece of the bucket becomes the first of the next one
+        int last = --bucketStarts[count + 1];
+        swap(positions[piece], last);
+        counts[piece]++;
+    }
+
+    /**
+     * Records that a peer that had the given piece went away.
+     */
+    public synchronized void removePiece(int piece) {
+        int count = counts[piece];
+        if (count == 0)
+            throw new IllegalStateException("no peer has piece " + piece);
+        // the first piece of the bucket becomes the last of the previous one
+        int first = bucketStarts[count]++;
+        swap(positions[piece], first);
+        counts[piece]--;
+    }
+
+    /**
+     * Records that a peer announced all the pieces set in <code>pieces</code>.
+     */
+    public synchronized void addPieces(BitField pieces) {
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1))
+            addPiece(i);
+    }
+
+    /**
+     * Records that a peer with all the pieces set in <code>pieces</code>
+     * went away.
+     */
+    public synchronized void removePieces(BitField pieces) {
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1))
+            removePiece(i);
+    }
+
+    /** Records that a peer with every piece connected. */
+    public synchronized void addSeed() {
+        seeds++;
+    }
+
+    /** Records that a peer with every piece went away. */
+    public synchronized void removeSeed() {
+        if (seeds == 0)
+            throw new IllegalStateException("no seeds");
+        seeds--;
+    }
+
+    /**
+     * Records that a peer whose pieces were counted one by one now
+     * has every piece.
+     *
+     * @param pieces the pieces that were counted for that peer
+     */
+    public synchronized void promoteToSeed(BitField pieces) {
+        removePieces(pieces);
+        addSeed();
+    }
+
+    /**
+     * Returns one of the pieces set in <code>candidates</code> that the
+     * fewest peers have, or -1 if there is no candidate. If several
+     * candidates are equally rare one of them is picked at random, so
+     * different downloaders don't all go after the same piece.
+     */
+    public synchronized int getRarestPiece(BitField candidates, Random randomizer) {
+        int bucket = 0;
+        for (int i = 0; i < order.length; i = bucketStarts[++bucket]) {
+            // pick uniformly among the candidates in this bucket
+            int selected = -1;
+            int found = 0;
+            for (int end = bucketStarts[bucket + 1]; i < end; i++) {
+                int piece = order[i];
+                if (candidates.get(piece) && randomizer.nextInt(++found) == 0)
+                    selected = piece;
+            }
+            if (selected != -1)
+                return selected;
+        }
+        return -1;
+    }
+
+    private void swap(int i, int j) {
+        int a = order[i];
+        int b = order[j];
+        order[i] = b;
+        order[j] = a;
+        positions[b] = i;
+        positions[a] = j;
+    }
+}
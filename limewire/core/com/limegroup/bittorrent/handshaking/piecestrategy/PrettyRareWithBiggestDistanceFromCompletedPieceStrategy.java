@@ -12,9 +12,12 @@ import com.limegroup.bittorrent.BTMetaInfo;
 public class PrettyRareWithBiggestDistanceFromCompletedPieceStrategy extends
         RarestPieceFirstStrategy {
 
+    private final BTLinkManager btLinkManager;
+
     public PrettyRareWithBiggestDistanceFromCompletedPieceStrategy(BTMetaInfo btMetaInfo,
-            BTLinkManager btLinkManager) {
-        super(btMetaInfo, btLinkManager);
+            BTLinkManager btLinkManager, PieceAvailability pieceAvailability) {
+        super(btMetaInfo, pieceAvailability);
+        this.btLinkManager = btLinkManager;
     }
 
     @Override
@@ -28,7 +31,7 @@ public class PrettyRareWithBiggestDistanceFromCompletedPieceStrategy extends
     }
 
     public int getPrettyRarePiece(BitField neededBlocks) {
-        int numPeers = getBTLinkManager().getNumConnections();
+        int numPeers = btLinkManager.getNumConnections();
         int numPieces = getBtMetaInfo().getNumBlocks();
 
         int X = (int) (Math.sqrt(numPeers) - 1);
@@ -40,7 +43,7 @@ public class PrettyRareWithBiggestDistanceFromCompletedPieceStrategy extends
 
         for (int pieceIndex = 0; pieceIndex < numPieces; pieceIndex++) {
             gap++;
-            int pieceRareness = getPieceRareness(pieceIndex, Integer.MAX_VALUE);
+            int pieceRareness = getPieceRareness(pieceIndex);
             boolean peerHasPiece = pieceRareness != 0;
             boolean neededPiece = neededBlocks.get(pieceIndex);
             if (peerHasPiece && neededPiece) {
@@ -5,6 +5,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,7 +22,6 @@ import org.limewire.util.URIUtils;
 import com.google.inject.Provider;
 import com.limegroup.bittorrent.ManagedTorrent;
 import com.limegroup.bittorrent.TorrentContext;
-import com.limegroup.bittorrent.bencoding.Token;
 import com.limegroup.gnutella.ApplicationServices;
 import com.limegroup.gnutella.NetworkManager;
 import com.limegroup.gnutella.http.HTTPHeaderName;
@@ -190,7 +190,7 @@ public class TrackerImpl implements Tracker {
 
                 if (LOG.isDebugEnabled())
                     LOG.debug(new String(body));
-                return new TrackerResponse(Token.parse(body));
+                return new TrackerResponse(ByteBuffer.wrap(body));
             }
             return null;
         } catch (IOException e) {
@@ -1,24 +1,22 @@
 package com.limegroup.bittorrent.tracking;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.limewire.core.settings.BittorrentSettings;
 import org.limewire.io.NetworkUtils;
-import org.limewire.service.ErrorService;
-import org.limewire.util.ByteUtils;
-import org.limewire.util.StringUtils;
 
 import com.limegroup.bittorrent.TorrentLocation;
 import com.limegroup.bittorrent.ValueException;
+import com.limegroup.bittorrent.bencoding.BEReader;
+import com.limegroup.bittorrent.bencoding.Token;
 
 /**
  * Parses the response from a tracker.
@@ -52,81 +50,84 @@ class TrackerResponse {
 	public final String FAILURE_REASON;
 
 	/**
-	 * private constructor for the TrackerResponse
+	 * Parses the bencoded response of a tracker.
 	 * 
-	 * @param t_response
-	 *            the <tt>Map</tt> decoded from the InputSteam
+	 * @param data
+	 *            the response as it was received
 	 * @throws ValueException for received bencoded data that does not 
 	 * match the expected structure  
+	 * @throws IOException if the data is not valid bencoding
 	 */
-	public TrackerResponse(Object t_response) throws ValueException {
-		if (!(t_response instanceof Map))
+	public TrackerResponse(ByteBuffer data) throws IOException {
+		BEReader reader = new BEReader(data);
+		if (reader.next() != Token.DICTIONARY)
 			throw new ValueException("bad tracker response");
-		Map response = (Map) t_response;
 
-		if (response.containsKey("failure reason")) {
-			byte [] failureBytes = (byte [])response.get("failure reason");
-			String reason = StringUtils.getASCIIString(failureBytes);
-			if (reason.length() > 256) 
-				reason = reason.substring(0, 255);
-			FAILURE_REASON = reason;
-		} else
-			FAILURE_REASON = null;
-
-		if (response.containsKey("peers")) {
-			Object t_peers = response.get("peers");
-			if (t_peers instanceof List)
-				PEERS = parsePeers((List) t_peers);
-			else if (t_peers instanceof byte [])
-				PEERS = parsePeers( (byte[]) t_peers);
+		String failureReason = null;
+		List<TorrentLocation> peers = Collections.emptyList();
+		long interval = -1, minInterval = -1;
+		long numPeers = -1, incomplete = -1;
+		long donePeers = -1, complete = -1;
+		while (reader.nextKey()) {
+			if (reader.isString("failure reason")) {
+				if (reader.next() == Token.STRING) {
+					String reason = reader.getASCIIString();
+					if (reason.length() > 256) 
+						reason = reason.substring(0, 255);
+					failureReason = reason;
+				}
+				reader.skip();
+			} else if (reader.isString("peers")) {
+				int type = reader.next();
+				if (type == Token.LIST)
+					peers = parsePeers(reader);
+				else if (type == Token.STRING)
+					peers = parsePeers(reader.getString());
+				else
+					throw new ValueException("bad tracker response - bad peers");
+			} else if (reader.isString("interval"))
+				interval = readCount(reader);
+			else if (reader.isString("min_interval"))
+				minInterval = readCount(reader);
+			else if (reader.isString("num peers"))
+				numPeers = readCount(reader);
+			else if (reader.isString("incomplete"))
+				incomplete = readCount(reader);
+			else if (reader.isString("num done"))
+				donePeers = readCount(reader);
+			else if (reader.isString("complete"))
+				complete = readCount(reader);
 			else
-				throw new ValueException("bad tracker response - bad peers "
-						+ t_peers);
-		} else
-			PEERS = Collections.emptyList();
-
-		Object t_interval = response.get("interval");
-		Object t_minInterval = response.get("min_interval");
-
-		int interval;
-		if (t_interval instanceof Long) {
-			interval = (int) ((Long) t_interval).longValue();
-		} else if (t_minInterval instanceof Long) {
-			interval = (int) ((Long) t_interval).longValue();
-		} else
-			interval = BittorrentSettings.TRACKER_MIN_REASK_INTERVAL.getValue();
+				reader.skipValue();
+		}
 
+		FAILURE_REASON = failureReason;
+		PEERS = peers;
+		
+		if (interval < 0)
+			interval = minInterval;
 		if (interval < BittorrentSettings.TRACKER_MIN_REASK_INTERVAL.getValue())
 			INTERVAL = BittorrentSettings.TRACKER_MIN_REASK_INTERVAL.getValue();
 		else if (interval > BittorrentSettings.TRACKER_MAX_REASK_INTERVAL
 				.getValue())
 			INTERVAL = BittorrentSettings.TRACKER_MAX_REASK_INTERVAL.getValue();
 		else
-			INTERVAL = interval;
+			INTERVAL = (int)interval;
 
-		Object t_numPeers = response.get("num peers");
-		if (t_numPeers instanceof Long) {
-			NUM_PEERS = (int) ((Long) t_numPeers).longValue();
-		} else {
-			t_numPeers = response.get("incomplete");
-			if (t_numPeers instanceof Long) {
-				NUM_PEERS = (int) ((Long) t_numPeers).longValue();
-			} else {
-				NUM_PEERS = 0;
-			}
-		}
+		NUM_PEERS = (int)Math.max(0, numPeers >= 0 ? numPeers : incomplete);
+		DONE_PEERS = (int)Math.max(0, donePeers >= 0 ? donePeers : complete);
+	}
 
-		Object t_donePeers = response.get("num done");
-		if (t_donePeers instanceof Long) {
-			DONE_PEERS = (int) ((Long) t_donePeers).longValue();
-		} else {
-			t_donePeers = response.get("complete");
-			if (t_donePeers instanceof Long) {
-				DONE_PEERS = (int) ((Long) t_donePeers).longValue();
-			} else {
-				DONE_PEERS = 0;
-			}
-		}
+	/**
+	 * Reads a value that should be a count.
+	 * 
+	 * @return the count, -1 if the value is not a count 
+	 */
+	private static long readCount(BEReader reader) throws IOException {
+		if (reader.next() == Token.LONG && reader.getLong() >= 0)
+			return Math.min(reader.getLong(), Integer.MAX_VALUE);
+		reader.skip();
+		return -1;
 	}
 
 	TrackerResponse(List<TorrentLocation> peers, int interval, int numPeers, int donePeers,
@@ -143,21 +144,20 @@ class TrackerResponse {
 	/**
 	 * private utility method to parse a List of peers
 	 * 
-	 * @param peers
-	 *            List of <tt>Map</tt>
+	 * @param reader
+	 *            the reader at the start of a list of dictionaries
 	 * @return List of <tt>TorrentLocation</tt>
 	 * 
 	 * @throws ValueException for received bencoded data that does not 
      * match the expected structure
 	 */
-	private static List<TorrentLocation> parsePeers(List peers) throws ValueException {
+	private static List<TorrentLocation> parsePeers(BEReader reader) throws IOException {
 		List<TorrentLocation> ret = new ArrayList<TorrentLocation>();
-		for (Iterator iter = peers.iterator(); iter.hasNext();) {
-			Object t_peer = iter.next();
-			if (!(t_peer instanceof Map))
-				throw new ValueException("bad tracker response - bad peer "
-						+ t_peer);
-			ret.add(parsePeer((Map) t_peer));
+		int type;
+		while ((type = reader.next()) != BEReader.END) {
+			if (type != Token.DICTIONARY)
+				throw new ValueException("bad tracker response - bad peer");
+			ret.add(parsePeer(reader));
 		}
 		return Collections.unmodifiableList(ret);
 	}
@@ -167,18 +167,20 @@ class TrackerResponse {
 	 * 2-byte ports
 	 * 
 	 * @param bytes
-	 *            the array to parse the peers from
+	 *            the buffer to parse the peers from, its remaining bytes
+	 *            are parsed
 	 * @return non-null <tt>List</tt> of <tt>TorrentLocation</tt>
 	 * @throws ValueException for received bencoded data that does not 
      * match the expected structure
 	 */
-	static List<TorrentLocation> parsePeers(byte[] bytes) throws ValueException {
+	static List<TorrentLocation> parsePeers(ByteBuffer bytes) throws ValueException {
         boolean containedInvalid = false;
-		ArrayList<TorrentLocation> ret = new ArrayList<TorrentLocation>();
-		for (int i = 0; i < bytes.length - 5; i += 6) {
+		ArrayList<TorrentLocation> ret = new ArrayList<TorrentLocation>(bytes.remaining() / 6);
+		for (int i = bytes.position(); i < bytes.limit() - 5; i += 6) {
 			byte[] address = new byte[4];
-			System.arraycopy(bytes, i, address, 0, 4);
-			int port = ByteUtils.beb2int(bytes, i + 4, 2);
+			for (int j = 0; j < 4; j++)
+				address[j] = bytes.get(i + j);
+			int port = ((bytes.get(i + 4) & 0xFF) << 8) | (bytes.get(i + 5) & 0xFF);
             
             if (!NetworkUtils.isValidPort(port)) {
                 containedInvalid = true;
@@ -199,48 +201,51 @@ class TrackerResponse {
 	}
 
 	/**
-	 * private utility method, creates a TorrentLocation from a <tt>Map</tt>
+	 * private utility method, creates a TorrentLocation from a dictionary
 	 * 
-	 * @param peer
-	 *            a <tt>Map</tt> containing peer address, port and id
+	 * @param reader
+	 *            the reader at the start of a dictionary containing peer 
+	 *            address, port and id
 	 * @throws
 	 *         ValueException for received bencoded data that does not 
      * match the expected structure
 	 */
-	private static TorrentLocation parsePeer(Map peer) throws ValueException {
-		Object t_ip = peer.get("ip");
-		if (!(t_ip instanceof byte []))
-			throw new ValueException("bad tracker response - bad peer ip "
-					+ t_ip);
+	private static TorrentLocation parsePeer(BEReader reader) throws IOException {
+		String ip = null;
+		int port = -1;
+		byte [] peerId = null;
+		while (reader.nextKey()) {
+			if (reader.isString("ip")) {
+				if (reader.next() != Token.STRING)
+					throw new ValueException("bad tracker response - bad peer ip");
+				ip = reader.getASCIIString();
+			} else if (reader.isString("port")) {
+				if (reader.next() != Token.LONG || reader.getLong() > 0xFFFF)
+					throw new ValueException("bad tracker response - bad peer port");
+				port = (int)reader.getLong();
+			} else if (reader.isString("peer id")) {
+				if (reader.next() != Token.STRING || reader.getStringLength() != 20)
+					throw new ValueException("bad tracker response - bad peer id ");
+				peerId = reader.getBytes();
+			} else
+				reader.skipValue();
+		}
+		
+		if (ip == null)
+			throw new ValueException("bad tracker response - bad peer ip");
+		if (port == -1)
+			throw new ValueException("bad tracker response - bad peer port");
+		if (peerId == null)
+			throw new ValueException("bad tracker response - bad peer id ");
+		
 		InetAddress addr;
 		try {
-			String ipS = new String((byte [])t_ip, org.limewire.util.Constants.ASCII_ENCODING);
-			addr = InetAddress.getByName(ipS);
+			addr = InetAddress.getByName(ip);
 		} catch (UnknownHostException uhe) {
 			throw new ValueException("bad tracker response - bad peer ip "
-					+ t_ip);
-		} catch (UnsupportedEncodingException impossible) {
-			ErrorService.error(impossible);
-			return null;
+					+ ip);
 		}
-
-		Object t_port = peer.get("port");
-		if (!(t_port instanceof Long))
-			throw new ValueException("bad tracker response - bad peer port "
-					+ t_port);
-
-		int port = (int) ((Long) t_port).longValue();
-
-		Object t_peerId = peer.get("peer id");
-		if ( ! (t_peerId instanceof byte []))
-			throw new ValueException("bad tracker response - bad peer id ");
-		
-		byte [] peerId = (byte []) t_peerId;
-		if (peerId.length != 20)
-			throw new ValueException("bad tracker response - bad peer id ");
-
 		return parsePeer(addr, port, peerId);
-
 	}
 
 	/**
@@ -6,6 +6,9 @@ import org.limewire.nio.Throttle;
 
 /**
  * Defines the interface to control the upload and download rate.
+ * <p>
+ * Each class of traffic gets its own throttle, all classes share the
+ * upload and download rate.
  */
 public interface BandwidthManager {
 
@@ -13,10 +16,16 @@ public interface BandwidthManager {
 
 	public void applyUploadRate();
 	
+	/** Returns the throttle for HTTP downloads. */
 	public Throttle getReadThrottle();
-        
-    public Throttle getWriteThrottle();
     
+    /** Returns the throttle for HTTP uploads over <tt>socket</tt>. */
     public Throttle getWriteThrottle(Socket socket);
+    
+    /** Returns the throttle for reading from torrent connections. */
+    public Throttle getTorrentReadThrottle();
+    
+    /** Returns the throttle for writing to torrent connections. */
+    public Throttle getTorrentWriteThrottle();
 
 }
@@ -1,9 +1,15 @@
 package com.limegroup.gnutella;
 
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.limewire.core.settings.BittorrentSettings;
 import org.limewire.core.settings.ConnectionSettings;
 import org.limewire.core.settings.DownloadSettings;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
+import org.limewire.nio.HierarchicalThrottle;
 import org.limewire.nio.NBThrottle;
 import org.limewire.nio.Throttle;
 import org.limewire.rudp.RUDPSocket;
@@ -16,6 +22,10 @@ public class BandwidthManagerImpl implements BandwidthManager {
 
     private final Throttle UP_TCP, DOWN_TCP, UP_UDP;
     
+    /** The classes of traffic that share the upload and download rate. */
+    private final HierarchicalThrottle UPLOADS_TCP, UPLOADS_UDP, DOWNLOADS,
+        TORRENT_UP, TORRENT_DOWN;
+    
     private final UploadServices uploadServices;
     
     @Inject
@@ -25,6 +35,12 @@ public class BandwidthManagerImpl implements BandwidthManager {
         UP_TCP = new NBThrottle(true,0);
         DOWN_TCP = new NBThrottle(false,0);
         UP_UDP = new NBThrottle(true, 0);
+        
+        UPLOADS_TCP = new HierarchicalThrottle(UP_TCP);
+        UPLOADS_UDP = new HierarchicalThrottle(UP_UDP);
+        DOWNLOADS = new HierarchicalThrottle(DOWN_TCP);
+        TORRENT_UP = new HierarchicalThrottle(UP_TCP);
+        TORRENT_DOWN = new HierarchicalThrottle(DOWN_TCP);
     }
     
     public void applyRate() {
@@ -41,26 +57,78 @@ public class BandwidthManagerImpl implements BandwidthManager {
                     (ConnectionSettings.CONNECTION_SPEED.getValue()/8.f))*1024.f;
         }
         DOWN_TCP.setRate(downloadRate);
+        TORRENT_DOWN.setRate(share(downloadRate, BittorrentSettings.TORRENT_DOWNLOAD_SHARE.getValue()));
     }
     
     public void applyUploadRate() {
-        UP_TCP.setRate(uploadServices.getRequestedUploadSpeed());
-        UP_UDP.setRate(uploadServices.getRequestedUploadSpeed());
+        float uploadRate = uploadServices.getRequestedUploadSpeed();
+        UP_TCP.setRate(uploadRate);
+        UP_UDP.setRate(uploadRate);
+        TORRENT_UP.setRate(share(uploadRate, BittorrentSettings.TORRENT_UPLOAD_SHARE.getValue()));
+    }
+    
+    /**
+     * Returns <tt>percent</tt> of <tt>rate</tt>, or no limit of its own
+     * for a class that may use all of it.
+     */
+    private static float share(float rate, int percent) {
+        if (percent >= 100 || rate == Float.MAX_VALUE)
+            return HierarchicalThrottle.UNLIMITED;
+        return rate * Math.max(0, percent) / 100.f;
     }
     
     public Throttle getReadThrottle() {
         applyDownloadRate();
-        return DOWN_TCP;
+        return DOWNLOADS;
     }
     
-    public Throttle getWriteThrottle() {
+    public Throttle getWriteThrottle(Socket socket) {
         applyUploadRate();
-        return UP_TCP;
+        return (socket instanceof RUDPSocket) ? UPLOADS_UDP : UPLOADS_TCP;
     }
     
-    public Throttle getWriteThrottle(Socket socket) {
+    public Throttle getTorrentReadThrottle() {
+        applyDownloadRate();
+        return TORRENT_DOWN;
+    }
+    
+    public Throttle getTorrentWriteThrottle() {
         applyUploadRate();
-        return (socket instanceof RUDPSocket) ? UP_UDP : UP_TCP;
+        return TORRENT_UP;
     }
+    
+    /**
+     * The bandwidth each class of traffic used since the last inspection,
+     * in bytes per second, and its limit.
+     */
+    @InspectionPoint("bandwidth classes")
+    public final Inspectable bandwidthClasses = new Inspectable() {
+        private final Map<String, Long> lastUsed = new HashMap<String, Long>();
+        private long lastTime = System.currentTimeMillis();
+        
+        public synchronized Object inspect() {
+            long now = System.currentTimeMillis();
+            long elapsed = Math.max(1, now - lastTime);
+            lastTime = now;
+            
+            Map<String, Object> ret = new HashMap<String, Object>();
+            ret.put("ver", 1);
+            add(ret, "uploads tcp", UPLOADS_TCP, elapsed);
+            add(ret, "uploads udp", UPLOADS_UDP, elapsed);
+            add(ret, "downloads", DOWNLOADS, elapsed);
+            add(ret, "torrent up", TORRENT_UP, elapsed);
+            add(ret, "torrent down", TORRENT_DOWN, elapsed);
+            return ret;
+        }
+        
+        private void add(Map<String, Object> ret, String name, HierarchicalThrottle throttle, long elapsed) {
+            long used = throttle.getBytesUsed();
+            Long last = lastUsed.put(name, used);
+            Map<String, Object> stats = new HashMap<String, Object>();
+            stats.put("bps", (used - (last != null ? last : 0)) * 1000 / elapsed);
+            stats.put("rate", throttle.isUnlimited() ? -1 : (long)throttle.getRate());
+            ret.put(name, stats);
+        }
+    };
 
 }
@@ -11,18 +11,20 @@ import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.AbstractCollection;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -92,6 +94,14 @@ import com.limegroup.gnutella.util.ClassCNetworks;
  * average daily uptime.  These are stored in the gnutella.net file.  They
  * are NOT bootstrap servers like router.limewire.com; LimeWire doesn't
  * use those anymore.
+ * <p>
+ * LOCKING: the queue of hosts to try, the free slot sets, the restored hosts
+ * and the waiting observers are guarded by this' monitor, which is only held
+ * for short updates.  The permanent hosts and the locale sets are guarded by
+ * <tt>permanentLock</tt>, so that pongs updating them don't block callers of
+ * getAnEndpoint.  If both locks are needed, this' monitor must be obtained
+ * first.  Lookups of known hosts, the host counts and the expired and
+ * probated hosts need no lock at all.
  */
 @Singleton
 public class HostCatcher implements Service {
@@ -196,8 +206,27 @@ public class HostCatcher implements Service {
     private final RandomAccessMap<ExtendedEndpoint, ExtendedEndpoint> FREE_LEAF_SLOTS_SET = 
         new RandomOrderHashMap<ExtendedEndpoint, ExtendedEndpoint>(200);
     
+    /**
+     * All hosts in ENDPOINT_SET, FREE_ULTRAPEER_SLOTS_SET and
+     * FREE_LEAF_SLOTS_SET, mapped to the instance isHostTLSCapable would have
+     * found in them.  Updated under this' monitor whenever one of them
+     * changes, read without locking.
+     */
+    private final ConcurrentMap<Endpoint, ExtendedEndpoint> KNOWN_HOSTS =
+        new ConcurrentHashMap<Endpoint, ExtendedEndpoint>();
+    
+    /** The result of getNumHosts, updated whenever the hosts change. */
+    private volatile int numHosts;
+    
+    /** The result of getNumUltrapeerHosts, updated with numHosts. */
+    private volatile int numUltrapeerHosts;
+    
+    /** The sizes of the free slot sets, updated with numHosts. */
+    private volatile int numFreeUltrapeerSlotHosts, numFreeLeafSlotHosts;
+    
     /**
      * map of locale (string) to sets (of endpoints).
+     * LOCKING: permanentLock
      */
     private final Map<String, Set<ExtendedEndpoint>> LOCALE_SET_MAP =
         new HashMap<String, Set<ExtendedEndpoint>>();
@@ -217,7 +246,7 @@ public class HostCatcher implements Service {
      *
      * INVARIANT: permanentHosts contains no duplicates and contains exactly
      *  the same elements and permanentHostsSet
-     * LOCKING: obtain this' monitor before modifying either */
+     * LOCKING: obtain permanentLock before modifying or iterating either */
     private final FixedSizeSortedList<ExtendedEndpoint> permanentHosts =
         new FixedSizeSortedList<ExtendedEndpoint>(
                 ExtendedEndpoint.priorityComparator(),
@@ -225,6 +254,18 @@ public class HostCatcher implements Service {
     private final Set<ExtendedEndpoint> permanentHostsSet =
         new HashSet<ExtendedEndpoint>();
     
+    /**
+     * Lock for permanentHosts, permanentHostsSet, LOCALE_SET_MAP and dirty.
+     * If this' monitor is needed as well, it must be obtained first.
+     */
+    private final Object permanentLock = new Object();
+    
+    /**
+     * Lock held while the hosts file is written, so that two writers don't
+     * interleave.  No other lock is held while writing.
+     */
+    private final Object writeLock = new Object();
+    
     /**
      * List of the hosts that were restored from disk.
      * INVARIANT: a subset of permanentHosts.  
@@ -248,18 +289,20 @@ public class HostCatcher implements Service {
      * <tt>Set</tt> of hosts we were unable to create TCP connections with
      * and should therefore not be tried again.  Fixed size.
      * 
-     * LOCKING: obtain this' monitor before modifying/iterating
+     * LOCKING: none, the set is concurrent
      */
-    private final Set<Endpoint> EXPIRED_HOSTS = new HashSet<Endpoint>();
+    private final Set<Endpoint> EXPIRED_HOSTS =
+        Collections.newSetFromMap(new ConcurrentHashMap<Endpoint, Boolean>());
     
     /**
      * <tt>Set</tt> of hosts we were able to create TCP connections with but 
      * did not accept our Gnutella connection, and are therefore put on 
      * "probation".  Fixed size.
      * 
-     * LOCKING: obtain this' monitor before modifying/iterating
+     * LOCKING: none, the set is concurrent
      */    
-    private final Set<Endpoint> PROBATION_HOSTS = new HashSet<Endpoint>();
+    private final Set<Endpoint> PROBATION_HOSTS =
+        Collections.newSetFromMap(new ConcurrentHashMap<Endpoint, Boolean>());
     
     /**
      * Constant for the number of milliseconds to wait before periodically
@@ -299,7 +342,7 @@ public class HostCatcher implements Service {
     /**
      * The last allowed time that we can continue ranking pongs.
      */
-    private long lastAllowedPongRankTime = 0;
+    private volatile long lastAllowedPongRankTime = 0;
     
     /**
      * The amount of time we're allowed to do pong ranking after
@@ -317,6 +360,7 @@ public class HostCatcher implements Service {
     
     /**
      * Whether or not hosts have been added since we wrote to disk.
+     * LOCKING: permanentLock
      */
     private boolean dirty = false;
     
@@ -400,14 +444,16 @@ public class HostCatcher implements Service {
         Runnable probationRestorer = new Runnable() {
             public void run() {
                 LOG.trace("restoring hosts on probation");
-                List<Endpoint> toAdd;
-                synchronized(HostCatcher.this) {
-                    if(LOG.isTraceEnabled()) {
-                        LOG.trace("Restoring " + PROBATION_HOSTS.size() +
-                                " probated hosts");
-                    }
-                    toAdd = new ArrayList<Endpoint>(PROBATION_HOSTS);
-                    PROBATION_HOSTS.clear();
+                if(LOG.isTraceEnabled()) {
+                    LOG.trace("Restoring " + PROBATION_HOSTS.size() +
+                            " probated hosts");
+                }
+                // remove one by one so hosts put on probation meanwhile
+                // are either restored or kept
+                List<Endpoint> toAdd = new ArrayList<Endpoint>();
+                for(Iterator<Endpoint> i = PROBATION_HOSTS.iterator(); i.hasNext(); ) {
+                    toAdd.add(i.next());
+                    i.remove();
                 }
                 
                 for(Endpoint e : toAdd)
@@ -465,14 +511,43 @@ public class HostCatcher implements Service {
         uniqueHostPinger.rank(getAllHosts(), listener, c, m);
     }
     
-    private synchronized Collection<ExtendedEndpoint> getAllHosts() {
-        //keep them ordered -- TODO: Why?
-        Collection<ExtendedEndpoint> hosts = new LinkedHashSet<ExtendedEndpoint>(getNumHosts());
-        hosts.addAll(FREE_ULTRAPEER_SLOTS_SET.keySet());
-        hosts.addAll(FREE_LEAF_SLOTS_SET.keySet());
-        hosts.addAll(ENDPOINT_SET.keySet());
-        hosts.addAll(restoredHosts);
-        return hosts;
+    /**
+     * Returns all known hosts without copying them: the hosts with free slots
+     * and the hosts in the queue are a live view of KNOWN_HOSTS, only the
+     * restored hosts that aren't known otherwise are copied.
+     */
+    private Collection<ExtendedEndpoint> getAllHosts() {
+        final List<ExtendedEndpoint> restored;
+        synchronized(this) {
+            restored = new ArrayList<ExtendedEndpoint>(restoredHosts.size());
+            for(ExtendedEndpoint e : restoredHosts) {
+                if(!KNOWN_HOSTS.containsKey(e))
+                    restored.add(e);
+            }
+        }
+        final Collection<ExtendedEndpoint> known = KNOWN_HOSTS.values();
+        return new AbstractCollection<ExtendedEndpoint>() {
+            @Override
+            public Iterator<ExtendedEndpoint> iterator() {
+                final Iterator<ExtendedEndpoint> first = known.iterator();
+                final Iterator<ExtendedEndpoint> second = restored.iterator();
+                return new Iterator<ExtendedEndpoint>() {
+                    public boolean hasNext() {
+                        return first.hasNext() || second.hasNext();
+                    }
+                    public ExtendedEndpoint next() {
+                        return first.hasNext() ? first.next() : second.next();
+                    }
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+            @Override
+            public int size() {
+                return known.size() + restored.size();
+            }
+        };
     }
     
     /**
@@ -484,7 +559,7 @@ public class HostCatcher implements Service {
      * 
      * @return A Collection of ExtendedEndpoints that support the DHT.
      */
-    public synchronized List<ExtendedEndpoint> getDHTSupportEndpoint(int minVersion) {
+    public List<ExtendedEndpoint> getDHTSupportEndpoint(int minVersion) {
         List<ExtendedEndpoint> hosts = new ArrayList<ExtendedEndpoint>();
         IntSet masked = new IntSet();
         boolean filter = ConnectionSettings.FILTER_CLASS_C.getValue();
@@ -502,7 +577,7 @@ public class HostCatcher implements Service {
     /**
      * Determines if UDP Pongs need to be sent out.
      */
-    private synchronized boolean needsPongRanking() {
+    private boolean needsPongRanking() {
         if(connectionServices.isFullyConnected()) {
             if(LOG.isTraceEnabled())
                 LOG.trace("Pong ranking not needed - fully connected");
@@ -521,15 +596,10 @@ public class HostCatcher implements Service {
             return false;
         }
         int size;
-        if(connectionServices.isSupernode()) {
-            synchronized(this) {
-                size = FREE_ULTRAPEER_SLOTS_SET.size();
-            }
-        } else {
-            synchronized(this) {
-                size = FREE_LEAF_SLOTS_SET.size();
-            }
-        }
+        if(connectionServices.isSupernode())
+            size = numFreeUltrapeerSlotHosts;
+        else
+            size = numFreeLeafSlotHosts;
         int preferred = connectionManager.get().getPreferredConnectionCount();        
         boolean needsPongRanking =  size < preferred - have;
         if(!needsPongRanking)
@@ -568,9 +638,10 @@ public class HostCatcher implements Service {
                     if(e.isUDPHostCache()) {
                         addUDPHostCache(e);
                     } else if(isValidHost(e)) {
+                        addPermanent(e);
                         synchronized(this) {
-                            addPermanent(e);
                             restoredHosts.add(e);
+                            hostsChanged();
                         }
                         endpointAdded();
                     } else {
@@ -597,7 +668,7 @@ public class HostCatcher implements Service {
 	 *
 	 * @throws <tt>IOException</tt> if the file cannot be written
 	 */
-	synchronized void write() throws IOException {
+	void write() throws IOException {
 		write(getHostsFile());
 	}
 
@@ -606,10 +677,18 @@ public class HostCatcher implements Service {
      * @effects writes this to the given file.  The file
      *  is prioritized by rough probability of being good.
      */
-    synchronized void write(File hostFile) throws IOException {
+    void write(File hostFile) throws IOException {
         checkInvariants();
         LOG.trace("Writing host file");
-        if(dirty || udpHostCache.isWriteDirty()) {
+        boolean udpDirty = udpHostCache.isWriteDirty();
+        List<ExtendedEndpoint> permanent;
+        synchronized(permanentLock) {
+            if(!dirty && !udpDirty)
+                return;
+            permanent = new ArrayList<ExtendedEndpoint>(permanentHosts);
+        }
+        
+        synchronized(writeLock) {
             FileWriter out = new FileWriter(hostFile);
                 
             //Write udp hostcache endpoints.
@@ -618,7 +697,7 @@ public class HostCatcher implements Service {
             //Write elements of permanent from worst to best.  Order matters, as it
             //allows read() to put them into queue in the right order without any
             //difficulty.
-            for(ExtendedEndpoint e : permanentHosts)
+            for(ExtendedEndpoint e : permanent)
                 e.write(out);
             
             out.close();
@@ -799,19 +878,23 @@ public class HostCatcher implements Service {
     private void addToFreeSlotSet(ExtendedEndpoint host, Map<? super ExtendedEndpoint, ? super ExtendedEndpoint> hosts) {
         synchronized(this) {
             hosts.put(host, host);
-            
-            // Also add it to the list of permanent hosts stored on disk.
-            addPermanent(host);
+            reindex(host);
+            hostsChanged();
         }
         
+        // Also add it to the list of permanent hosts stored on disk.
+        addPermanent(host);
+        
         endpointAdded();
     }
 
     /**
      * add the endpoint to the map which matches locales to a set of 
      * endpoints
+     * 
+     * LOCKING: permanentLock
      */
-    private synchronized void addToLocaleMap(ExtendedEndpoint endpoint) {
+    private void addToLocaleMap(ExtendedEndpoint endpoint) {
         String loc = endpoint.getClientLocale();
         if(LOCALE_SET_MAP.containsKey(loc)) { //if set exists for ths locale
             Set<ExtendedEndpoint> s = LOCALE_SET_MAP.get(loc);
@@ -914,23 +997,27 @@ public class HostCatcher implements Service {
             return addUDPHostCache(e);
         }
         
+        //Add to permanent list, regardless of whether it's actually in queue.
+        //Note that this modifies e.
+        addPermanent(e);
+        
         boolean added = false;
         synchronized(this) {
-            //Add to permanent list, regardless of whether it's actually in queue.
-            //Note that this modifies e.
-            addPermanent(e);            
             if(!(ENDPOINT_SET.containsKey(e))) {
                 added = true;
                 //Add to temporary list. Adding e may eject an older point from
                 //queue, so we have to cleanup the set to maintain
                 //rep. invariant.
                 ENDPOINT_SET.put(e, e);
+                reindex(e);
                 ExtendedEndpoint ejected = ENDPOINT_QUEUE.insert(e, priority);
                 if(ejected != null) {
                     ENDPOINT_SET.remove(ejected);
+                    reindex(ejected);
                     if(LOG.isTraceEnabled())
                         LOG.trace("Ejected host " + ejected);
                 }
+                hostsChanged();
             }
         }
         endpointAdded();
@@ -947,11 +1034,22 @@ public class HostCatcher implements Service {
      * @param e the endpoint to add
      * @return true iff e was actually added 
      */
-    private synchronized boolean addPermanent(ExtendedEndpoint e) {
+    private boolean addPermanent(ExtendedEndpoint e) {
         if(networkInstanceUtils.isPrivateAddress(e.getInetAddress())) {
             LOG.trace("Not permanently adding host with private address");
             return false;
         }
+        synchronized(permanentLock) {
+            return addPermanentInternal(e);
+        }
+    }
+    
+    /**
+     * Adds a host that doesn't have a private address to the permanent list.
+     * 
+     * LOCKING: permanentLock
+     */
+    private boolean addPermanentInternal(ExtendedEndpoint e) {
         if(permanentHostsSet.contains(e)) {
             //TODO: we could adjust the key
             LOG.trace("Not permanently adding duplicate host");
@@ -980,8 +1078,9 @@ public class HostCatcher implements Service {
     }
     
     /** Removes e from permanentHostsSet and permanentHosts. 
-     *  @return true iff this was modified */
-    private synchronized boolean removePermanent(ExtendedEndpoint e) {
+     *  @return true iff this was modified
+     *  LOCKING: permanentLock */
+    private boolean removePermanent(ExtendedEndpoint e) {
         boolean removed1 = permanentHosts.remove(e);
         boolean removed2 = permanentHostsSet.remove(e);
         assert removed1 == removed2 : "Queue "+removed1+" but set "+removed2;
@@ -1043,18 +1142,16 @@ public class HostCatcher implements Service {
             return false;
         }
         
-        synchronized(this) {
-            // Don't add this host if it has previously failed.
-            if(EXPIRED_HOSTS.contains(host)) {
-                LOG.trace("Host is invalid: expired");
-                return false;
-            }
-            
-            // Don't add this host if it has previously rejected us.
-            if(PROBATION_HOSTS.contains(host)) {
-                LOG.trace("Host is invalid: on probation");
-                return false;
-            }
+        // Don't add this host if it has previously failed.
+        if(EXPIRED_HOSTS.contains(host)) {
+            LOG.trace("Host is invalid: expired");
+            return false;
+        }
+        
+        // Don't add this host if it has previously rejected us.
+        if(PROBATION_HOSTS.contains(host)) {
+            LOG.trace("Host is invalid: on probation");
+            return false;
         }
         
         LOG.trace("Host is valid");
@@ -1074,15 +1171,7 @@ public class HostCatcher implements Service {
         // already implement HostInfo.
         Endpoint p = new Endpoint(ipp.getAddress(), ipp.getPort());
         
-        ExtendedEndpoint ee;
-        synchronized(this) {
-            ee = ENDPOINT_SET.get(p);
-            if(ee == null)
-                ee = FREE_ULTRAPEER_SLOTS_SET.get(p);
-            if(ee == null)
-                ee = FREE_LEAF_SLOTS_SET.get(p);
-        }
-        
+        ExtendedEndpoint ee = KNOWN_HOSTS.get(p);
         if(ee == null) {
             if(LOG.isTraceEnabled())
                 LOG.trace(ipp + " is not known to be TLS capable");
@@ -1114,7 +1203,7 @@ public class HostCatcher implements Service {
                 return; // no one waiting.
             }
             
-            p = getAnEndpointInternal();
+            p = takeEndpoint();
             if(p == null) {
                 LOG.trace("No hosts available");
                 return; // no more endpoints to give.
@@ -1136,7 +1225,7 @@ public class HostCatcher implements Service {
         // We can only lock around endpoint retrieval & _catchersWaiting,
         // we don't want to expose our lock to the observer.
         synchronized(this) {
-            p = getAnEndpointInternal();
+            p = takeEndpoint();
             if(p == null) {
                 LOG.trace("Couldn't get a host immediately; waiting");
                 _catchersWaiting.add(observer);
@@ -1162,7 +1251,7 @@ public class HostCatcher implements Service {
         Endpoint p;
         
         synchronized(this) {
-            p = getAnEndpointInternal();
+            p = takeEndpoint();
             if(p == null && observer != null) {
                 LOG.trace("Couldn't get a host immediately; waiting");
                 _catchersWaiting.add(observer);
@@ -1220,7 +1309,7 @@ public class HostCatcher implements Service {
      *            true if we successfully established a messaging connection to
      *            e, at least temporarily; false otherwise
      */
-    public synchronized void doneWithConnect(Endpoint e, boolean success) {
+    public void doneWithConnect(Endpoint e, boolean success) {
         //Normal host: update key.  TODO: adjustKey() operation may be more
         //efficient.
         if(!(e instanceof ExtendedEndpoint)) {
@@ -1232,13 +1321,63 @@ public class HostCatcher implements Service {
         
         ExtendedEndpoint ee = (ExtendedEndpoint)e;
 
-        removePermanent(ee);
-        if(success) {
-            ee.recordConnectionSuccess();
-        } else {
-            ee.recordConnectionFailure();
+        synchronized(permanentLock) {
+            removePermanent(ee);
+            if(success) {
+                ee.recordConnectionSuccess();
+            } else {
+                ee.recordConnectionFailure();
+            }
+            if(!networkInstanceUtils.isPrivateAddress(ee.getInetAddress()))
+                addPermanentInternal(ee);
         }
-        addPermanent(ee);
+    }
+    
+    /**
+     * Removes and returns the best available host like getAnEndpointInternal,
+     * keeping the index of known hosts and the host counts up to date.
+     * 
+     * LOCKING: this
+     */
+    private ExtendedEndpoint takeEndpoint() {
+        ExtendedEndpoint p = getAnEndpointInternal();
+        if(p != null) {
+            reindex(p);
+            hostsChanged();
+        }
+        return p;
+    }
+    
+    /**
+     * Updates the entry of the given host in KNOWN_HOSTS after it was added
+     * to or removed from ENDPOINT_SET or one of the free slot sets.
+     * 
+     * LOCKING: this
+     */
+    private void reindex(Endpoint host) {
+        ExtendedEndpoint ee = ENDPOINT_SET.get(host);
+        if(ee == null)
+            ee = FREE_ULTRAPEER_SLOTS_SET.get(host);
+        if(ee == null)
+            ee = FREE_LEAF_SLOTS_SET.get(host);
+        if(ee == null)
+            KNOWN_HOSTS.remove(host);
+        else
+            KNOWN_HOSTS.put(host, ee);
+    }
+    
+    /**
+     * Updates the host counts after the hosts changed.
+     * 
+     * LOCKING: this
+     */
+    private void hostsChanged() {
+        numFreeUltrapeerSlotHosts = FREE_ULTRAPEER_SLOTS_SET.size();
+        numFreeLeafSlotHosts = FREE_LEAF_SLOTS_SET.size();
+        numHosts = ENDPOINT_QUEUE.size() + numFreeLeafSlotHosts +
+            numFreeUltrapeerSlotHosts + restoredHosts.size();
+        numUltrapeerHosts = ENDPOINT_QUEUE.size(GOOD_PRIORITY) +
+            numFreeLeafSlotHosts + numFreeUltrapeerSlotHosts;
     }
 
     /**
@@ -1301,14 +1440,16 @@ public class HostCatcher implements Service {
         ExtendedEndpoint ret = null;
         // preference a locale host if we haven't matched any locales yet
         if(!connectionManager.get().isLocaleMatched()) {
-            if(LOCALE_SET_MAP.containsKey(loc)) {
-                Set<ExtendedEndpoint> locales = LOCALE_SET_MAP.get(loc);
-                for(ExtendedEndpoint e : base.keySet()) {
-                    if(locales.contains(e)) {
-                        LOG.trace("Found a host with matching locale");
-                        locales.remove(e);
-                        ret = e;
-                        break;
+            synchronized(permanentLock) {
+                if(LOCALE_SET_MAP.containsKey(loc)) {
+                    Set<ExtendedEndpoint> locales = LOCALE_SET_MAP.get(loc);
+                    for(ExtendedEndpoint e : base.keySet()) {
+                        if(locales.contains(e)) {
+                            LOG.trace("Found a host with matching locale");
+                            locales.remove(e);
+                            ret = e;
+                            break;
+                        }
                     }
                 }
             }
@@ -1332,26 +1473,25 @@ public class HostCatcher implements Service {
      * 
      * @return the total number of hosts stored 
      */
-    public synchronized int getNumHosts() {
-        return ENDPOINT_QUEUE.size()+FREE_LEAF_SLOTS_SET.size()+
-            FREE_ULTRAPEER_SLOTS_SET.size()+restoredHosts.size();
+    public int getNumHosts() {
+        return numHosts;
     }
 
     /**
      * Returns the number of marked ultrapeer hosts.
      */
-    public synchronized int getNumUltrapeerHosts() {
-        return ENDPOINT_QUEUE.size(GOOD_PRIORITY)+FREE_LEAF_SLOTS_SET.size()+
-            FREE_ULTRAPEER_SLOTS_SET.size();
+    public int getNumUltrapeerHosts() {
+        return numUltrapeerHosts;
     }
 
     /**
-     * Returns an iterator of this' "permanent" hosts, from worst to best.
-     * This method exists primarily for testing.  THIS MUST NOT BE MODIFIED
-     * WHILE ITERATOR IS IN USE.
+     * Returns an iterator of a copy of this' "permanent" hosts, from worst
+     * to best.  This method exists primarily for testing.
      */
     Iterator<ExtendedEndpoint> getPermanentHosts() {
-        return permanentHosts.iterator();
+        synchronized(permanentLock) {
+            return new ArrayList<ExtendedEndpoint>(permanentHosts).iterator();
+        }
     }
 
     
@@ -1407,20 +1547,22 @@ public class HostCatcher implements Service {
         Set<IpPort> hosts = new HashSet<IpPort>(num);
         IntSet masked = new IntSet();
         
-        Set<ExtendedEndpoint> locales = LOCALE_SET_MAP.get(loc);
         boolean filter = ConnectionSettings.FILTER_CLASS_C.getValue();
-        if(locales != null) {
-            for(ExtendedEndpoint e : locales) {
-                if(hosts.size() >= num)
-                    break;
-                if(base.containsKey(e)) { 
-                    int ip = NetworkUtils.getMaskedIP(e.getInetAddress(), PONG_MASK);
-                    if(!filter || masked.add(ip))
-                        hosts.add(e);
+        synchronized(permanentLock) {
+            Set<ExtendedEndpoint> locales = LOCALE_SET_MAP.get(loc);
+            if(locales != null) {
+                for(ExtendedEndpoint e : locales) {
+                    if(hosts.size() >= num)
+                        break;
+                    if(base.containsKey(e)) { 
+                        int ip = NetworkUtils.getMaskedIP(e.getInetAddress(), PONG_MASK);
+                        if(!filter || masked.add(ip))
+                            hosts.add(e);
+                    }
                 }
+                if(LOG.isTraceEnabled())
+                    LOG.trace("Found " + hosts.size() + " locale-matched hosts");
             }
-            if(LOG.isTraceEnabled())
-                LOG.trace("Found " + hosts.size() + " locale-matched hosts");
         }
         
         for(IpPort ipp : base.keySet()) {
@@ -1442,10 +1584,7 @@ public class HostCatcher implements Service {
      * out bootstrap pongs if necessary.
      */
     public void expire() {
-        synchronized(this) {
-            long now = System.currentTimeMillis();
-            lastAllowedPongRankTime = now + PONG_RANKING_EXPIRE_TIME;
-        }
+        lastAllowedPongRankTime = System.currentTimeMillis() + PONG_RANKING_EXPIRE_TIME;
         
         recoverHosts();
         
@@ -1468,14 +1607,18 @@ public class HostCatcher implements Service {
         LOG.trace("Clearing hosts");
         FREE_LEAF_SLOTS_SET.clear();
         FREE_ULTRAPEER_SLOTS_SET.clear();
-        LOCALE_SET_MAP.clear();
         ENDPOINT_QUEUE.clear();
         ENDPOINT_SET.clear();
+        KNOWN_HOSTS.clear();
         restoredHosts.clear();
+        hostsChanged();
         PROBATION_HOSTS.clear();
         EXPIRED_HOSTS.clear();
-        permanentHosts.clear();
-        permanentHostsSet.clear();
+        synchronized(permanentLock) {
+            LOCALE_SET_MAP.clear();
+            permanentHosts.clear();
+            permanentHostsSet.clear();
+        }
     }
     
     public UDPPinger getPinger() {
@@ -1497,11 +1640,21 @@ public class HostCatcher implements Service {
                     assert ENDPOINT_SET.containsKey(ee);
                 }
                 assert ENDPOINT_QUEUE.size() == ENDPOINT_SET.size();
-                // Check permanentHostsSet === permanentHosts
-                for(ExtendedEndpoint ee : permanentHosts) {
-                    assert permanentHostsSet.contains(ee);
+                // Check KNOWN_HOSTS == ENDPOINT_SET + free slot sets
+                for(ExtendedEndpoint ee : ENDPOINT_SET.keySet())
+                    assert KNOWN_HOSTS.get(ee) == ee;
+                for(Endpoint p : KNOWN_HOSTS.keySet()) {
+                    assert ENDPOINT_SET.containsKey(p) ||
+                        FREE_ULTRAPEER_SLOTS_SET.containsKey(p) ||
+                        FREE_LEAF_SLOTS_SET.containsKey(p);
+                }
+                synchronized(permanentLock) {
+                    // Check permanentHostsSet === permanentHosts
+                    for(ExtendedEndpoint ee : permanentHosts) {
+                        assert permanentHostsSet.contains(ee);
+                    }
+                    assert permanentHosts.size() == permanentHostsSet.size();
                 }
-                assert permanentHosts.size() == permanentHostsSet.size();
             }
         }
     }
@@ -1538,6 +1691,7 @@ public class HostCatcher implements Service {
             tcpBootstrap.resetData();
             tcpBootstrap.loadDefaults();
             restoredHosts.clear();
+            hostsChanged();
             uniqueHostPinger.resetData();
         }
         
@@ -1553,7 +1707,7 @@ public class HostCatcher implements Service {
      * 
      * @param host the <tt>Endpoint</tt> to put on probation
      */
-    public synchronized void putHostOnProbation(Endpoint host) {
+    public void putHostOnProbation(Endpoint host) {
         LOG.trace("Putting a host on probation");
         PROBATION_HOSTS.add(host);
         if(PROBATION_HOSTS.size() > PROBATION_HOSTS_SIZE) {
@@ -1568,7 +1722,7 @@ public class HostCatcher implements Service {
      * 
      * @param host the <tt>Endpoint</tt> to expire
      */
-    public synchronized void expireHost(Endpoint host) {
+    public void expireHost(Endpoint host) {
         LOG.trace("Expiring a host");
         EXPIRED_HOSTS.add(host);
         if(EXPIRED_HOSTS.size() > EXPIRED_HOSTS_SIZE) {
@@ -1660,19 +1814,17 @@ public class HostCatcher implements Service {
          * Determines whether or not we need more hosts.
          */
         private synchronized boolean needsHosts(long now) {
-            synchronized(HostCatcher.this) { 
-                if(getNumHosts() == 0) {
-                    LOG.trace("Need hosts: none known");
-                    return true;
-                }
-                long delay = now - firstBootstrapCheck;
-                if(!connectionServices.isConnected() &&
-                        delay > ConnectionSettings.BOOTSTRAP_DELAY.getValue()) {
-                    if(LOG.isTraceEnabled())
-                        LOG.trace("Need hosts: not connected after " +
-                                delay + " milliseconds");
-                    return true;
-                }
+            if(getNumHosts() == 0) {
+                LOG.trace("Need hosts: none known");
+                return true;
+            }
+            long delay = now - firstBootstrapCheck;
+            if(!connectionServices.isConnected() &&
+                    delay > ConnectionSettings.BOOTSTRAP_DELAY.getValue()) {
+                if(LOG.isTraceEnabled())
+                    LOG.trace("Need hosts: not connected after " +
+                            delay + " milliseconds");
+                return true;
             }
             LOG.trace("Do not need hosts");
             return false;
@@ -1775,6 +1927,7 @@ public class HostCatcher implements Service {
                 ClassCNetworks freeUp = new ClassCNetworks();
                 ClassCNetworks all = new ClassCNetworks();
                 synchronized(HostCatcher.this) {
+                synchronized(permanentLock) {
                     IpPortSet everybody = new IpPortSet();
                     everybody.addAll(permanentHostsSet);
                     everybody.addAll(restoredHosts);
@@ -1792,6 +1945,7 @@ public class HostCatcher implements Service {
                     for(IpPort ip : everybody) 
                         all.add(ip.getInetAddress(), 1);
                 }
+                }
                 
                 ret.put("perm", permanent.getTopInspectable(10));
                 ret.put("rest", restored.getTopInspectable(10));
@@ -1810,6 +1964,7 @@ public class HostCatcher implements Service {
                 ret.put("ver",1);
                 int perm, permtls, rest,resttls,fl, fltls, fu,futls;
                 synchronized(HostCatcher.this) {
+                synchronized(permanentLock) {
                     perm = permanentHostsSet.size();
                     rest = restoredHosts.size();
                     fl = FREE_LEAF_SLOTS_SET.size();
@@ -1827,6 +1982,7 @@ public class HostCatcher implements Service {
                     for (ExtendedEndpoint e : FREE_ULTRAPEER_SLOTS_SET.keySet())
                         futls += e.isTLSCapable() ? 1 : 0;
                 }
+                }
                 ret.put("perm",perm);
                 ret.put("permtls",permtls);
                 ret.put("rest",rest);
@@ -1847,6 +2003,7 @@ public class HostCatcher implements Service {
                 ret.put("ver",1);
                 int perm, permdht, rest,restdht,fl, fldht, fu,fudht;
                 synchronized(HostCatcher.this) {
+                synchronized(permanentLock) {
                     perm = permanentHostsSet.size();
                     rest = restoredHosts.size();
                     fl = FREE_LEAF_SLOTS_SET.size();
@@ -1866,6 +2023,7 @@ public class HostCatcher implements Service {
                     for (ExtendedEndpoint e : FREE_ULTRAPEER_SLOTS_SET.keySet())
                         fudht += e.supportsDHT() ? 1 : 0;
                 }
+                }
                 ret.put("perm",perm);
                 ret.put("permdht",permdht);
                 ret.put("rest",rest);
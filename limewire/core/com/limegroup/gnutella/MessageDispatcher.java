@@ -10,6 +10,7 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.limegroup.gnutella.connection.RoutedConnection;
 import com.limegroup.gnutella.messages.Message;
+import com.limegroup.gnutella.messages.PooledMessage;
 import com.limegroup.gnutella.util.LimeWireUtils;
 
 /**
@@ -71,8 +72,14 @@ public class MessageDispatcher {
         }
         
         public void run() {
-            counter.countMessage(m);
-            dispatch();
+            try {
+                counter.countMessage(m);
+                dispatch();
+            } finally {
+                // the message was handled, return its buffer
+                if(m instanceof PooledMessage)
+                    ((PooledMessage)m).releasePayload();
+            }
         }
         
         protected abstract void dispatch();
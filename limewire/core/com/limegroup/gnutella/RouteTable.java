@@ -2,17 +2,22 @@ package com.limegroup.gnutella;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.limewire.collection.MultiIterable;
 import org.limewire.core.settings.MessageSettings;
 import org.limewire.inspection.Inspectable;
 import org.limewire.io.GUID;
 import org.limewire.util.Base32;
+import org.limewire.util.ByteUtils;
 
 import com.limegroup.gnutella.messages.QueryReply;
 import com.limegroup.gnutella.messages.Message.Network;
@@ -30,7 +35,10 @@ import com.limegroup.gnutella.util.ClassCNetworks;
  *
  * This class can also optionally keep track of the number of reply bytes 
  * routed per GUID.  This can be useful for implementing fair flow-control
- * strategies.
+ * strategies.<p>
+ *
+ * This class is thread-safe.  Lookups and updates for different GUIDs
+ * mostly proceed in parallel.
  */
 public final class RouteTable implements Inspectable {
     /**
@@ -41,7 +49,7 @@ public final class RouteTable implements Inspectable {
      * the entire table to clean all references (which wastes time AND removes
      * valuable information for preventing duplicate queries).
      *
-     * Instead we use a layer of indirection.  _newMap/_oldMap maps GUIDs to
+     * Instead we use a layer of indirection.  The GUID table maps GUIDs to
      * integers, which act as IDs for each connection.  _idMap maps IDs to
      * ReplyHandlers.  _handlerMap maps ReplyHandler to IDs.  So to clean up a
      * connection, we just purge the entries from _handlerMap and _idMap; there
@@ -54,73 +62,120 @@ public final class RouteTable implements Inspectable {
      * _idMap--there is a very low probability that an ID in _map could be
      * prematurely reused.
      *
-     * To approximate FIFO behavior, we keep two sets around, _newMap and
-     * _oldMap.  Every few seconds, when the system time is greater than
-     * nextSwitch, we clear _oldMap and replace it with _newMap.
-     * (DuplicateFilter uses the same trick.)  In this way, we remember the last
-     * N to 2N minutes worth of GUIDs.  This is superior to a fixed size route
-     * table.
+     * To approximate FIFO behavior, we used to keep two maps around, _newMap
+     * and _oldMap, clearing _oldMap and swapping the two every few seconds.
+     * (DuplicateFilter uses the same trick.)  In this way, we remember the
+     * last N to 2N minutes worth of GUIDs.  This is superior to a fixed size
+     * route table.  The same two generations are now kept by tagging each
+     * entry with the generation it was last routed in: entries of the
+     * current generation are "new", entries of the previous one are "old",
+     * and everything older is expired.  Switching generations just
+     * increments _generation; expired entries are dropped while the tables
+     * are locked for the switch, or when a stripe is rebuilt because it is
+     * full.
+     *
+     * The GUIDs are stored as two longs in open-addressing tables that are
+     * split into STRIPES stripes by the hash of the GUID, each with its own
+     * lock, so routing on different connections rarely contends.  Switching
+     * generations takes all stripe locks, which only happens every few
+     * minutes.
      *
      * For flow-control reasons, we also store the number of bytes routed per
-     * GUID in each table.  Hence the RouteTableEntry class.
+     * GUID in each entry.  Hence the RouteTableEntry class.
      *
-     * INVARIANT: keys of _newMap and _oldMap are disjoint
-     * INVARIANT: _idMap and _replyMap are inverses
+     * INVARIANT: a GUID is stored at most once across all stripes
+     * INVARIANT: _idMap and _handlerMap are inverses
      *
      * TODO3: if IDs were stored in each ReplyHandler, we would not need
      *  _replyMap.  Better yet, if the values of _map were indices (with tags)
      *  into ConnectionManager._initialized[Client]Connections, we would not
      *  need _idMap either.  However, this increases dependencies.  
      */
-    private Map<byte[], RouteTableEntry> _newMap = new ExperimentalGUIDMap();
-    private Map<byte[], RouteTableEntry> _oldMap= new ExperimentalGUIDMap();
-    private int _mseconds;
-    private long _nextSwitchTime;
-    private int _maxSize;
+    
+    /** The number of independently locked parts of the GUID table. */
+    private static final int STRIPES = 16;
+    
+    private final Stripe[] _stripes = new Stripe[STRIPES];
+    
+    /** 
+     * The current generation.  Only changed while all stripes are locked,
+     * so it may be read without synchronization while holding any stripe lock.
+     */
+    private volatile int _generation;
+    
+    /** The number of entries in the current generation (the old _newMap). */
+    private final AtomicInteger _newCount = new AtomicInteger();
+    
+    /** The number of entries in the previous generation (the old _oldMap). */
+    private final AtomicInteger _oldCount = new AtomicInteger();
+    
+    private final int _mseconds;
+    private volatile long _nextSwitchTime;
+    private final int _maxSize;
 
-    private Map<Integer, ReplyHandler> _idMap  = new HashMap<Integer, ReplyHandler>();
-    private Map<ReplyHandler, Integer> _handlerMap = new HashMap<ReplyHandler, Integer>();
+    private final Map<Integer, ReplyHandler> _idMap  = new ConcurrentHashMap<Integer, ReplyHandler>();
+    private final Map<ReplyHandler, Integer> _handlerMap = new ConcurrentHashMap<ReplyHandler, Integer>();
+    /** The next ID to hand out.  LOCKING: this. */
     private int _nextID;
     
-    /** Values stored in _newMap/_oldMap. */
+    /** Values stored in the GUID table. */
     private static final class RouteTableEntry implements ResultCounter {
+        /** The generation this entry was last routed in. */
+        private int generation;
         /** The numericID of the reply connection. */
         private int handlerID;
         /** The bytes already routed for this GUID. */
         private int bytesRouted;
         /** The number of replies already routed for this GUID. */
-        private int repliesRouted;
+        private volatile int repliesRouted;
         /** The number of replies for partial files already routed for this GUID */
-        private int partialRepliesRouted;
+        private volatile int partialRepliesRouted;
         /** The number of replies not counted for flow control */
         private int repliesNotCounted;
         /** The ttl associated with this RTE - meaningful only if > 0. */
         private byte ttl = 0;
-        /** The class C networks that have returned a reply for this query */
-        private final ClassCNetworks classCnetworks = new ClassCNetworks();
+        /** 
+         * The class C networks that have returned a reply for this query,
+         * null until the first reply with a known network is routed.
+         */
+        private ClassCNetworks classCnetworks;
         /** Timestamp when this entry was created */
         private final long creationTime = System.currentTimeMillis();
-        /** The times when results for this query arrived */
-        private final List<Double> resultTimeStamps = new ArrayList<Double>();
-        /** The number of results that came each time */
-        private final List<Double> resultCounts = new ArrayList<Double>();
-        /** The network from which the replies came */
-        private final int[] networks = new int[4];
-        /** The hops of the replies */
-        private final int[] hops = new int[5];
-        /** The ttls of the replies */
-        private final int[] ttls = new int[5];
+        /** 
+         * The milliseconds after the creation of the entry when results for
+         * this query arrived, and the number of results that came each time,
+         * stored alternately.  null until the first results arrive.
+         */
+        private int[] resultTimesAndCounts;
+        /** The number of ints used in resultTimesAndCounts. */
+        private int resultTimesAndCountsSize;
+        /** 
+         * The network from which the replies came, the hops of the replies
+         * and the ttls of the replies, at NETWORKS, HOPS and TTLS.  null
+         * until the first reply is counted.
+         */
+        private int[] replyCounts;
+        
+        private static final int NETWORKS = 0, NUM_NETWORKS = 4;
+        private static final int HOPS = NETWORKS + NUM_NETWORKS, NUM_HOPS = 5;
+        private static final int TTLS = HOPS + NUM_HOPS, NUM_TTLS = 5;
         
         /** Creates a new entry for the given ID, with zero bytes routed. */
-        RouteTableEntry(int handlerID) {
+        RouteTableEntry(int handlerID, int generation) {
             this.handlerID = handlerID;
-            this.bytesRouted = 0;
-			this.repliesRouted = 0;
-            this.repliesNotCounted = 0;
+            this.generation = generation;
         }
 		
-        public void setTTL(byte ttl) { this.ttl = ttl; }
-        public byte getTTL() { return ttl; }
+        public synchronized void setTTL(byte ttl) { this.ttl = ttl; }
+        public synchronized byte getTTL() { return ttl; }
+        
+        /** Sets the TTL to setTTL if it currently is getTTL. */
+        synchronized boolean compareAndSetTTL(byte getTTL, byte setTTL) {
+            if (ttl != getTTL)
+                return false;
+            ttl = setTTL;
+            return true;
+        }
 
 		/** Accessor for the number of results for this entry. */
         public int getNumResults() {
@@ -128,18 +183,124 @@ public final class RouteTable implements Inspectable {
         }
         
         void updateClassCNetworks(int classCNetwork, int numReplies) {
+            if (classCnetworks == null)
+                classCnetworks = new ClassCNetworks();
             classCnetworks.add(classCNetwork, numReplies);
         }
         
         void timeStampResults(int count) {
-            resultTimeStamps.add((double)(System.currentTimeMillis() - creationTime));
-            resultCounts.add((double)count);
+            if (resultTimesAndCounts == null)
+                resultTimesAndCounts = new int[8];
+            else if (resultTimesAndCountsSize == resultTimesAndCounts.length)
+                resultTimesAndCounts = Arrays.copyOf(resultTimesAndCounts, resultTimesAndCountsSize * 2);
+            resultTimesAndCounts[resultTimesAndCountsSize++] = (int)(System.currentTimeMillis() - creationTime);
+            resultTimesAndCounts[resultTimesAndCountsSize++] = count;
         }
         
         void countHopsTTLNet(Network network, byte hop, byte ttl) {
-            networks[Math.max(0,Math.min(network.ordinal(),networks.length - 1))]++;
-            hops[Math.min(hops.length - 1, Math.max(0,hop-1))]++;
-            ttls[Math.min(ttls.length - 1, Math.max(0,ttl-1))]++;
+            if (replyCounts == null)
+                replyCounts = new int[NUM_NETWORKS + NUM_HOPS + NUM_TTLS];
+            replyCounts[NETWORKS + Math.max(0,Math.min(network.ordinal(),NUM_NETWORKS - 1))]++;
+            replyCounts[HOPS + Math.min(NUM_HOPS - 1, Math.max(0,hop-1))]++;
+            replyCounts[TTLS + Math.min(NUM_TTLS - 1, Math.max(0,ttl-1))]++;
+        }
+        
+        /** Returns every second int of resultTimesAndCounts starting at start. */
+        List<Double> getResultTimesOrCounts(int start) {
+            List<Double> ret = new ArrayList<Double>(resultTimesAndCountsSize / 2);
+            for (int i = start; i < resultTimesAndCountsSize; i += 2)
+                ret.add((double)resultTimesAndCounts[i]);
+            return ret;
+        }
+        
+        int[] getReplyCounts(int start, int length) {
+            if (replyCounts == null)
+                return new int[length];
+            return Arrays.copyOfRange(replyCounts, start, start + length);
+        }
+    }
+    
+    /**
+     * One part of the GUID table: an open-addressing hash table with linear
+     * probing whose keys are the two halves of the GUIDs.  Entries are only
+     * removed when the table is rebuilt, so no tombstones are needed.
+     * LOCKING: lock, also for rebuilding, which only touches this stripe.
+     * The minimum generation a stripe is rebuilt with is read while holding
+     * its lock; since switching generations locks all stripes, it can't
+     * change during the rebuild.
+     */
+    private static final class Stripe {
+        final Lock lock = new ReentrantLock();
+        long[] his = new long[16];
+        long[] los = new long[16];
+        RouteTableEntry[] entries = new RouteTableEntry[16];
+        /** The number of entries, including expired ones. */
+        int size;
+        
+        /** Returns the entry for the key or null. */
+        RouteTableEntry get(long hi, long lo, int hash) {
+            int mask = entries.length - 1;
+            for (int i = hash & mask; entries[i] != null; i = (i + 1) & mask) {
+                if (his[i] == hi && los[i] == lo)
+                    return entries[i];
+            }
+            return null;
+        }
+        
+        /** Adds or replaces the entry for the key. */
+        void put(long hi, long lo, int hash, RouteTableEntry entry, int minGeneration) {
+            if ((size + 1) * 2 > entries.length)
+                rebuild(minGeneration, true);
+            int mask = entries.length - 1;
+            int i = hash & mask;
+            for (; entries[i] != null; i = (i + 1) & mask) {
+                if (his[i] == hi && los[i] == lo) {
+                    entries[i] = entry;
+                    return;
+                }
+            }
+            his[i] = hi;
+            los[i] = lo;
+            entries[i] = entry;
+            size++;
+        }
+        
+        /**
+         * Copies the entries of at least minGeneration into new arrays,
+         * doubling the capacity if more than a quarter of it is still used
+         * and grow is true, or shrinking it if very little of it is used.
+         */
+        void rebuild(int minGeneration, boolean grow) {
+            long[] oldHis = his;
+            long[] oldLos = los;
+            RouteTableEntry[] oldEntries = entries;
+            int live = 0;
+            for (RouteTableEntry entry : oldEntries) {
+                if (entry != null && entry.generation >= minGeneration)
+                    live++;
+            }
+            int capacity = 16;
+            while (capacity < live * 4)
+                capacity <<= 1;
+            if (!grow && capacity > oldEntries.length)
+                capacity = oldEntries.length;
+            his = new long[capacity];
+            los = new long[capacity];
+            entries = new RouteTableEntry[capacity];
+            size = 0;
+            int mask = capacity - 1;
+            for (int j = 0; j < oldEntries.length; j++) {
+                RouteTableEntry entry = oldEntries[j];
+                if (entry == null || entry.generation < minGeneration)
+                    continue;
+                int i = hash(oldHis[j], oldLos[j]) & mask;
+                while (entries[i] != null)
+                    i = (i + 1) & mask;
+                his[i] = oldHis[j];
+                los[i] = oldLos[j];
+                entries[i] = entry;
+                size++;
+            }
         }
     }
 
@@ -156,6 +317,8 @@ public final class RouteTable implements Inspectable {
         this._mseconds=seconds*1000;
         this._nextSwitchTime=System.currentTimeMillis()+_mseconds;
         this._maxSize=maxSize;
+        for (int i = 0; i < STRIPES; i++)
+            _stripes[i] = new Stripe();
     }
 
     /**
@@ -170,9 +333,8 @@ public final class RouteTable implements Inspectable {
 	 * @return the <tt>RouteTableEntry</tt> entered into the routing 
 	 *  tables, or <tt>null</tt> if it could not be entered
      */
-    public synchronized ResultCounter routeReply(byte[] guid,
-												 ReplyHandler replyHandler) {
-        repOk();
+    public ResultCounter routeReply(byte[] guid,
+									ReplyHandler replyHandler) {
         purge();
 		if(replyHandler == null) {
 			throw new NullPointerException("null reply handler");
@@ -181,22 +343,28 @@ public final class RouteTable implements Inspectable {
         if (! replyHandler.isOpen())
             return null;
 
-        //First clear out any old entries for the guid, memorizing the volume
-        //routed if found.  Note that if the guid is found in _newMap, we don't
-        //need to look in _oldMap.
         int id=handler2id(replyHandler).intValue();
-        RouteTableEntry entry = _newMap.remove(guid);
-        if (entry==null)
-            entry = _oldMap.remove(guid);
-
-        //Now map the guid to the new reply handler, using the volume routed if
-        //found, or zero otherwise.
-        if (entry==null)
-            entry=new RouteTableEntry(id);
-        else
-            entry.handlerID=id;            //avoids allocation
-        _newMap.put(guid, entry);
-		return entry;
+        long hi = hi(guid), lo = lo(guid);
+        int hash = hash(hi, lo);
+        Stripe stripe = stripe(hash);
+        stripe.lock.lock();
+        try {
+            //Reuse any entry for the guid, keeping the volume routed if
+            //found, and move it to the current generation.
+            int generation = _generation;
+            RouteTableEntry entry = getLive(stripe, hi, lo, hash, generation);
+            if (entry == null) {
+                entry = new RouteTableEntry(id, generation);
+                stripe.put(hi, lo, hash, entry, generation - 1);
+                _newCount.incrementAndGet();
+            } else {
+                entry.handlerID = id;            //avoids allocation
+                renew(entry, generation);
+            }
+            return entry;
+        } finally {
+            stripe.lock.unlock();
+        }
     }
 
     /**
@@ -209,9 +377,8 @@ public final class RouteTable implements Inspectable {
      *  replyHandler is still open, adds the routing entry to this
      *  and returns true.  Otherwise returns false, without modifying this.
      */
-    public synchronized ResultCounter tryToRouteReply(byte[] guid,
-													  ReplyHandler replyHandler) {
-        repOk();
+    public ResultCounter tryToRouteReply(byte[] guid,
+										 ReplyHandler replyHandler) {
         purge();
         assert replyHandler != null;
         assert guid!=null : "Null GUID in tryToRouteReply";
@@ -219,14 +386,21 @@ public final class RouteTable implements Inspectable {
         if (! replyHandler.isOpen())
             return null;
 
-        if(!_newMap.containsKey(guid) && !_oldMap.containsKey(guid)) {
+        long hi = hi(guid), lo = lo(guid);
+        int hash = hash(hi, lo);
+        Stripe stripe = stripe(hash);
+        stripe.lock.lock();
+        try {
+            int generation = _generation;
+            if (getLive(stripe, hi, lo, hash, generation) != null)
+                return null;
             int id=handler2id(replyHandler).intValue();
-			RouteTableEntry entry = new RouteTableEntry(id);
-			_newMap.put(guid, entry);
-            //_newMap.put(guid, new RouteTableEntry(id));
+            RouteTableEntry entry = new RouteTableEntry(id, generation);
+            stripe.put(hi, lo, hash, entry, generation - 1);
+            _newCount.incrementAndGet();
             return entry;
-        } else {
-            return null;
+        } finally {
+            stripe.lock.unlock();
         }
     }
 
@@ -237,7 +411,7 @@ public final class RouteTable implements Inspectable {
      *  @exception IllegalArgumentException thrown if !(ttl > 0), or if entry is
      *  null or is not something I recognize.  So only put in what I dole out.
      */
-    public synchronized void setTTL(ResultCounter entry, byte ttl) {
+    public void setTTL(ResultCounter entry, byte ttl) {
         if (entry == null)
             throw new IllegalArgumentException("Null entry!!");
         if (!(entry instanceof RouteTableEntry))
@@ -256,21 +430,13 @@ public final class RouteTable implements Inspectable {
      *  @throws IllegalArgumentException if getTTL or setTTL is less than 1, or
      *  if setTTL < getTTL
      */
-    public synchronized boolean getAndSetTTL(byte[] guid, byte getTTL, 
-                                             byte setTTL) {
+    public boolean getAndSetTTL(byte[] guid, byte getTTL, byte setTTL) {
         if ((getTTL < 1) || (setTTL <= getTTL))
             throw new IllegalArgumentException("Bad ttl input (get/set): " +
                                                getTTL + "/" + setTTL);
 
-        RouteTableEntry entry = _newMap.get(guid);
-        if (entry==null)
-            entry = _oldMap.get(guid);
-        
-        if ((entry != null) && (entry.getTTL() == getTTL)) {
-                entry.setTTL(setTTL);
-                return true;
-        }
-        return false;
+        RouteTableEntry entry = getEntry(guid);
+        return entry != null && entry.compareAndSetTTL(getTTL, setTTL);
     }
 
 
@@ -282,20 +448,27 @@ public final class RouteTable implements Inspectable {
      *  Returns null if no mapping for guid, or guid maps to null (i.e., 
      *  to a removed ReplyHandler.
      */
-    public synchronized ReplyHandler getReplyHandler(byte[] guid) {        
+    public ReplyHandler getReplyHandler(byte[] guid) {        
         //no purge
-        repOk();
-
-        //Look up guid in _newMap. If not there, check _oldMap. 
-        RouteTableEntry entry = _newMap.get(guid);
-        if (entry==null)
-            entry = _oldMap.get(guid);
+        long hi = hi(guid), lo = lo(guid);
+        int hash = hash(hi, lo);
+        Stripe stripe = stripe(hash);
+        int id;
+        stripe.lock.lock();
+        try {
+            RouteTableEntry entry = getLive(stripe, hi, lo, hash, _generation);
+            if (entry == null)
+                return null;
+            id = entry.handlerID;
+        } finally {
+            stripe.lock.unlock();
+        }
 
         //Note that id2handler may return null.
-        return (entry==null) ? null : id2handler(new Integer(entry.handlerID));
+        return id2handler(id);
     }
 
-    public synchronized ReplyRoutePair getReplyHandler(byte[] guid, 
+    public ReplyRoutePair getReplyHandler(byte[] guid, 
             int replyBytes, short numReplies, short partialReplies) {
         return getReplyHandler(guid, replyBytes, numReplies, partialReplies, 0, true);
     }
@@ -315,60 +488,75 @@ public final class RouteTable implements Inspectable {
      *  messages already routed for that guid.  Afterwards, increments the reply
      *  count by replyBytes.
      */
-    public synchronized ReplyRoutePair getReplyHandler(byte[] guid, 
-                                                       int replyBytes,
-													   short numReplies,
-													   short partialReplies,
-                                                       int classCNetwork,
-                                                       boolean count) {
+    public ReplyRoutePair getReplyHandler(byte[] guid, 
+                                          int replyBytes,
+										  short numReplies,
+										  short partialReplies,
+                                          int classCNetwork,
+                                          boolean count) {
         //no purge
-        repOk();
-
-        //Look up guid in _newMap. If not there, check _oldMap. 
-        RouteTableEntry entry = _newMap.get(guid);
-        if (entry==null)
-            entry = _oldMap.get(guid);
+        long hi = hi(guid), lo = lo(guid);
+        int hash = hash(hi, lo);
+        Stripe stripe = stripe(hash);
+        stripe.lock.lock();
+        try {
+            RouteTableEntry entry = getLive(stripe, hi, lo, hash, _generation);
         
-        //If no mapping for guid, or guid maps to a removed reply handler,
-        //return null.
-        if (entry==null)
-            return null;
-        ReplyHandler handler=id2handler(new Integer(entry.handlerID));
-        if (handler==null)
-            return null;
+            //If no mapping for guid, or guid maps to a removed reply handler,
+            //return null.
+            if (entry==null)
+                return null;
+            ReplyHandler handler=id2handler(entry.handlerID);
+            if (handler==null)
+                return null;
             
-        //Increment count, returning old count in tuple.
-        ReplyRoutePair ret = 
-            new ReplyRoutePair(handler, entry.bytesRouted, entry.repliesRouted);
-        if(count) {
-            entry.bytesRouted += replyBytes;
-            entry.repliesRouted += numReplies;
-            entry.partialRepliesRouted += partialReplies;
-        } else {
-            entry.repliesNotCounted += numReplies;
+            //Increment count, returning old count in tuple.
+            ReplyRoutePair ret = 
+                new ReplyRoutePair(handler, entry.bytesRouted, entry.repliesRouted);
+            if(count) {
+                entry.bytesRouted += replyBytes;
+                entry.repliesRouted += numReplies;
+                entry.partialRepliesRouted += partialReplies;
+            } else {
+                entry.repliesNotCounted += numReplies;
+            }
+            if (classCNetwork != 0)
+                entry.updateClassCNetworks(classCNetwork, numReplies);
+            return ret;
+        } finally {
+            stripe.lock.unlock();
         }
-        if (classCNetwork != 0)
-            entry.updateClassCNetworks(classCNetwork, numReplies);
-        return ret;
     }
     
     /** Remembers that the specified number of results came now */
-    public synchronized void timeStampResults(QueryReply reply) {
-        RouteTableEntry entry = _newMap.get(reply.getGUID());
-        if (entry==null)
-            entry = _oldMap.get(reply.getGUID());
-        if (entry==null)
-            return;
-        entry.timeStampResults(reply.getUniqueResultCount());
+    public void timeStampResults(QueryReply reply) {
+        byte[] guid = reply.getGUID();
+        long hi = hi(guid), lo = lo(guid);
+        int hash = hash(hi, lo);
+        Stripe stripe = stripe(hash);
+        stripe.lock.lock();
+        try {
+            RouteTableEntry entry = getLive(stripe, hi, lo, hash, _generation);
+            if (entry != null)
+                entry.timeStampResults(reply.getUniqueResultCount());
+        } finally {
+            stripe.lock.unlock();
+        }
     }
     
-    public synchronized void countHopsTTLNet(QueryReply reply) {
-        RouteTableEntry entry = _newMap.get(reply.getGUID());
-        if (entry==null)
-            entry = _oldMap.get(reply.getGUID());
-        if (entry==null)
-            return;
-        entry.countHopsTTLNet(reply.getNetwork(), reply.getHops(), reply.getTTL());
+    public void countHopsTTLNet(QueryReply reply) {
+        byte[] guid = reply.getGUID();
+        long hi = hi(guid), lo = lo(guid);
+        int hash = hash(hi, lo);
+        Stripe stripe = stripe(hash);
+        stripe.lock.lock();
+        try {
+            RouteTableEntry entry = getLive(stripe, hi, lo, hash, _generation);
+            if (entry != null)
+                entry.countHopsTTLNet(reply.getNetwork(), reply.getHops(), reply.getTTL());
+        } finally {
+            stripe.lock.unlock();
+        }
     }
 
     /** The return value from getReplyHandler. */
@@ -408,7 +596,6 @@ public final class RouteTable implements Inspectable {
      */
     public synchronized void removeReplyHandler(ReplyHandler replyHandler) {        
         //no purge
-        repOk();
         //The aggressive asserts below are to make sure bug X75 has been fixed.
         assert replyHandler!=null : "Null replyHandler in removeReplyHandler";
 
@@ -432,63 +619,150 @@ public final class RouteTable implements Inspectable {
         Integer id = _handlerMap.get(handler);
         if (id!=null)
             return id;
+        
+        synchronized (this) {
+            id = _handlerMap.get(handler);
+            if (id!=null)
+                return id;
+            
+            //Otherwise return the next free id, searching in extremely rare cases
+            //if needed.  Note that his enters an infinite loop if all 2^32 IDs are
+            //taken up.  BFD.
+            while (true) {
+                //don't worry about overflow; Java wraps around TODO1?
+                id=Integer.valueOf(_nextID++);
+                if (_idMap.get(id)==null)
+                    break;            
+            }
     
-        //Otherwise return the next free id, searching in extremely rare cases
-        //if needed.  Note that his enters an infinite loop if all 2^32 IDs are
-        //taken up.  BFD.
-        while (true) {
-            //don't worry about overflow; Java wraps around TODO1?
-            id=new Integer(_nextID++);
-            if (_idMap.get(id)==null)
-                break;            
+            _idMap.put(id, handler);
+            _handlerMap.put(handler, id);
+            return id;
         }
-    
-        _handlerMap.put(handler, id);
-        _idMap.put(id, handler);
-        return id;
     }
 
     /**
      * Returns the ReplyHandler associated with the following ID, or
      * null if none.
      */
-    private ReplyHandler id2handler(Integer id) {
+    private ReplyHandler id2handler(int id) {
         return _idMap.get(id);
     }
+    
+    /**
+     * Returns the entry for the key if it belongs to the current or the
+     * previous generation.  The stripe must be locked.
+     */
+    private static RouteTableEntry getLive(Stripe stripe, long hi, long lo, int hash, int generation) {
+        RouteTableEntry entry = stripe.get(hi, lo, hash);
+        if (entry == null || entry.generation < generation - 1)
+            return null;
+        return entry;
+    }
+    
+    /** Looks up the live entry for the guid. */
+    private RouteTableEntry getEntry(byte[] guid) {
+        long hi = hi(guid), lo = lo(guid);
+        int hash = hash(hi, lo);
+        Stripe stripe = stripe(hash);
+        stripe.lock.lock();
+        try {
+            return getLive(stripe, hi, lo, hash, _generation);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+    
+    /**
+     * Moves a live entry into the current generation.  The stripe of the
+     * entry must be locked.
+     */
+    private void renew(RouteTableEntry entry, int generation) {
+        if (entry.generation != generation) {
+            entry.generation = generation;
+            _oldCount.decrementAndGet();
+            _newCount.incrementAndGet();
+        }
+    }
 
     /**
      * Purges old entries.
      *
-     * @modifies _nextSwitchTime, _newMap, _oldMap
+     * @modifies _nextSwitchTime, _generation
      * @effects if the system time is less than _nextSwitchTime, returns
-     *  false.  Otherwise, clears _oldMap and swaps _oldMap and _newMap,
-     *  updates _nextSwitchTime, and returns true.
+     *  false.  Otherwise, drops the entries of the previous generation and
+     *  starts a new one, updates _nextSwitchTime, and returns true.
      */
     private final boolean purge() {
         long now=System.currentTimeMillis();
-        if (now<_nextSwitchTime && _newMap.size()<_maxSize) 
+        if (now<_nextSwitchTime && _newCount.get()<_maxSize) 
             //not enough time has elapsed and sets too small
             return false;
-
-        //System.out.println(now+" "+this.hashCode()+" purging "
-        //                   +_oldMap.size()+" old, "
-        //                   +_newMap.size()+" new");
-        _oldMap.clear();
-        Map<byte[], RouteTableEntry> tmp=_oldMap;
-        _oldMap=_newMap;
-        _newMap=tmp;
-        _nextSwitchTime=now+_mseconds;
-        return true;
+        
+        lockAll();
+        try {
+            //check again, another thread may have purged already
+            if (now<_nextSwitchTime && _newCount.get()<_maxSize)
+                return false;
+            
+            int generation = ++_generation;
+            _oldCount.set(_newCount.getAndSet(0));
+            for (Stripe stripe : _stripes)
+                stripe.rebuild(generation - 1, false);
+            _nextSwitchTime=now+_mseconds;
+            return true;
+        } finally {
+            unlockAll();
+        }
+    }
+    
+    private void lockAll() {
+        for (Stripe stripe : _stripes)
+            stripe.lock.lock();
+    }
+    
+    private void unlockAll() {
+        for (int i = _stripes.length - 1; i >= 0; i--)
+            _stripes[i].lock.unlock();
+    }
+    
+    /** Returns the number of GUIDs routed in the current generation. */
+    int getNewSize() {
+        return _newCount.get();
+    }
+    
+    /** Returns the number of GUIDs that were last routed in the previous generation. */
+    int getOldSize() {
+        return _oldCount.get();
+    }
+    
+    /** Returns all live entries and their GUIDs.  All stripes must be locked. */
+    private Map<byte[], RouteTableEntry> getEntries() {
+        Map<byte[], RouteTableEntry> entries = 
+            new TreeMap<byte[], RouteTableEntry>(new GUID.GUIDByteComparator());
+        int generation = _generation;
+        for (Stripe stripe : _stripes) {
+            for (int i = 0; i < stripe.entries.length; i++) {
+                RouteTableEntry entry = stripe.entries[i];
+                if (entry != null && entry.generation >= generation - 1) {
+                    entries.put(toGUID(stripe.his[i], stripe.los[i]), entry);
+                }
+            }
+        }
+        return entries;
     }
 
     @Override
-    public synchronized String toString() {
+    public String toString() {
         //Inefficient, but this is only for debugging anyway.
         StringBuilder buf=new StringBuilder("{");
-        Map<byte[], RouteTableEntry> bothMaps=new TreeMap<byte[], RouteTableEntry>(new GUID.GUIDByteComparator());
-        bothMaps.putAll(_oldMap);
-        bothMaps.putAll(_newMap);
-
+        Map<byte[], RouteTableEntry> bothMaps;
+        lockAll();
+        try {
+            bothMaps = getEntries();
+        } finally {
+            unlockAll();
+        }
         
         Iterator<byte[]> iter=bothMaps.keySet().iterator();
         while (iter.hasNext()) {
@@ -496,7 +770,7 @@ public final class RouteTable implements Inspectable {
             buf.append(new GUID(key)); // GUID
             buf.append("->");
             int id= bothMaps.get(key).handlerID;
-            ReplyHandler handler=id2handler(new Integer(id));
+            ReplyHandler handler=id2handler(id);
             buf.append(handler==null ? "null" : handler.toString());//connection
             if (iter.hasNext())
                 buf.append(", ");
@@ -504,95 +778,46 @@ public final class RouteTable implements Inspectable {
         buf.append("}");
         return buf.toString();
     }
-
-//    private static boolean warned=false;
-    /** Tests internal consistency.  VERY slow. */
-    private final void repOk() {
-        /*
-        if (!warned) {
-            System.err.println(
-                "WARNING: RouteTable.repOk enabled.  Expect performance problems!");
-            warned=true;
-        }
-
-        //Check that _idMap is inverse of _handlerMap...
-        for (Iterator iter=_idMap.keySet().iterator(); iter.hasNext(); ) {
-            Integer key=(Integer)iter.next();
-            ReplyHandler value=(ReplyHandler)_idMap.get(key);
-            Assert.that(_handlerMap.get(value)==key);
-        }
-        //..and vice versa
-        for (Iterator iter=_handlerMap.keySet().iterator(); iter.hasNext(); ) {
-            ReplyHandler key=(ReplyHandler)iter.next();
-            Integer value=(Integer)_handlerMap.get(key);
-            Assert.that(_idMap.get(value)==key);
-        }
-        
-        //Check that keys of _newMap aren't in _oldMap, values are RouteTableEntry
-        for (Iterator iter=_newMap.keySet().iterator(); iter.hasNext(); ) {
-            byte[] guid=(byte[])iter.next();
-            Assert.that(! _oldMap.containsKey(guid));
-            Assert.that(_newMap.get(guid) instanceof RouteTableEntry);
-        }
-        
-        //Check that keys of _oldMap aren't in _newMap
-        for (Iterator iter=_oldMap.keySet().iterator(); iter.hasNext(); ) {
-            byte[] guid=(byte[])iter.next();
-            Assert.that(! _newMap.containsKey(guid));
-            Assert.that(_oldMap.get(guid) instanceof RouteTableEntry);
-        }
-        */
+    
+    /** Returns the stripe for the hash of a GUID. */
+    private Stripe stripe(int hash) {
+        return _stripes[(hash >>> 28) & (STRIPES - 1)];
+    }
+    
+    /** Mixes the halves of a GUID into the hash used by the tables. */
+    private static int hash(long hi, long lo) {
+        long h = (hi ^ (lo * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+        return (int)(h ^ (h >>> 32));
     }
-
     
     /**
-     * @param guid a guid of a message we wish to route
-     * @return the same guid if the zero guid experiment is enabled,
-     * otherwise a clone with the oob-affected bytes zeroed.
+     * Returns the first 8 bytes of the guid, without the OOB-affected bytes
+     * if the zero guid experiment is enabled.
      */
-    private static final byte [] zeroOOBBytes(byte [] guid) {
-        if (!MessageSettings.GUID_ZERO_EXPERIMENT.getValue())
-            return guid;
-        guid = guid.clone();
-        for (int i : new int[]{0,1,2,3,13,14})
-            guid[i] = 0;
-        return guid;
+    private static long hi(byte[] guid) {
+        long hi = ByteUtils.beb2long(guid, 0, 8);
+        if (MessageSettings.GUID_ZERO_EXPERIMENT.getValue())
+            hi &= 0x00000000FFFFFFFFL;   // bytes 0-3
+        return hi;
     }
     
     /**
-     * A map that can optionally zero out the OOB-mutated bytes of a guid.
+     * Returns the last 8 bytes of the guid, without the OOB-affected bytes
+     * if the zero guid experiment is enabled.
      */
-    private static class ExperimentalGUIDMap extends TreeMap<byte [], RouteTableEntry> {
-        ExperimentalGUIDMap() {
-            super(GUID.GUID_BYTE_COMPARATOR);
-        }
-
-        @Override
-        public boolean containsKey(Object key) {
-            if (key instanceof byte[])
-                key = zeroOOBBytes((byte[]) key);
-            return super.containsKey(key);
-        }
-
-        @Override
-        public RouteTableEntry get(Object key) {
-            if (key instanceof byte[])
-                key = zeroOOBBytes((byte[]) key);
-            return super.get(key);
-        }
-
-        @Override
-        public RouteTableEntry put(byte[] key, RouteTableEntry value) {
-            key = zeroOOBBytes(key);
-            return super.put(key, value);
-        }
-
-        @Override
-        public RouteTableEntry remove(Object key) {
-            if (key instanceof byte[])
-                key = zeroOOBBytes((byte[]) key);
-            return super.remove(key);
-        }
+    private static long lo(byte[] guid) {
+        long lo = ByteUtils.beb2long(guid, 8, 8);
+        if (MessageSettings.GUID_ZERO_EXPERIMENT.getValue())
+            lo &= 0xFFFFFFFFFF0000FFL;   // bytes 13-14
+        return lo;
+    }
+    
+    /** Returns the GUID for the two halves of a key. */
+    private static byte[] toGUID(long hi, long lo) {
+        byte[] guid = new byte[16];
+        ByteUtils.long2beb(hi, guid, 0);
+        ByteUtils.long2beb(lo, guid, 8);
+        return guid;
     }
     
     /** 
@@ -600,35 +825,38 @@ public final class RouteTable implements Inspectable {
      * its a good idea to first inspect the stats to see how many
      * entries there are.
      */
-    public synchronized Object inspect() {
+    public Object inspect() {
         Map<String, Object> ret = new HashMap<String, Object>();
-        Iterable<Map.Entry<byte[], RouteTableEntry>> bothMaps = 
-            new MultiIterable<Map.Entry<byte[],RouteTableEntry>>(_newMap.entrySet(),_oldMap.entrySet());
-        for (Map.Entry<byte[], RouteTableEntry> entry : bothMaps) {
-            RouteTableEntry e = entry.getValue();
-            Map<String, Object> m = new HashMap<String, Object>();
-            m.put("br", e.bytesRouted);
-            m.put("ttl", e.ttl);
-            m.put("rr", e.repliesRouted);
-            m.put("rnc", e.repliesNotCounted);
-            m.put("prr", e.partialRepliesRouted);
-            m.put("cc", e.classCnetworks.getMap());
-            m.put("rt", e.resultTimeStamps);
-            m.put("rc", e.resultCounts);
-            m.put("ct", e.creationTime);
-            m.put("id", e.handlerID);
-            m.put("nets", getBytes(e.networks));
-            m.put("hops", getBytes(e.hops));
-            m.put("ttls", getBytes(e.ttls));
-            ret.put(Base32.encode(entry.getKey()), m);
+        lockAll();
+        try {
+            for (Map.Entry<byte[], RouteTableEntry> entry : getEntries().entrySet()) {
+                RouteTableEntry e = entry.getValue();
+                Map<String, Object> m = new HashMap<String, Object>();
+                m.put("br", e.bytesRouted);
+                m.put("ttl", e.getTTL());
+                m.put("rr", e.repliesRouted);
+                m.put("rnc", e.repliesNotCounted);
+                m.put("prr", e.partialRepliesRouted);
+                m.put("cc", e.classCnetworks == null ? new HashMap<Integer, Integer>() : e.classCnetworks.getMap());
+                m.put("rt", e.getResultTimesOrCounts(0));
+                m.put("rc", e.getResultTimesOrCounts(1));
+                m.put("ct", e.creationTime);
+                m.put("id", e.handlerID);
+                m.put("nets", getBytes(e.getReplyCounts(RouteTableEntry.NETWORKS, RouteTableEntry.NUM_NETWORKS)));
+                m.put("hops", getBytes(e.getReplyCounts(RouteTableEntry.HOPS, RouteTableEntry.NUM_HOPS)));
+                m.put("ttls", getBytes(e.getReplyCounts(RouteTableEntry.TTLS, RouteTableEntry.NUM_TTLS)));
+                ret.put(Base32.encode(entry.getKey()), m);
+            }
+        } finally {
+            unlockAll();
         }
-        for (int id : _idMap.keySet()) {
-            ReplyHandler r = _idMap.get(id);
+        for (Map.Entry<Integer, ReplyHandler> entry : _idMap.entrySet()) {
+            ReplyHandler r = entry.getValue();
             Map<String,Object> m = new HashMap<String,Object>();
             m.put("ip",r.getAddress());
             m.put("port", r.getPort());
             m.put("cguid",r.getClientGUID());
-            ret.put(String.valueOf(id),m);
+            ret.put(String.valueOf(entry.getKey()),m);
         }
         return ret;
     }
@@ -639,5 +867,3 @@ public final class RouteTable implements Inspectable {
         return b.array();
     }
 }
-
-
@@ -17,7 +17,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.limewire.core.settings.SharingSettings;
 import org.limewire.io.GUID;
@@ -32,6 +32,7 @@ import com.limegroup.gnutella.library.FileDesc;
 import com.limegroup.gnutella.library.UrnCache;
 import com.limegroup.gnutella.security.MerkleTree;
 import com.limegroup.gnutella.security.Tiger;
+import com.limegroup.gnutella.tigertree.LeafNodeHasher;
 
 /**
  * This class represents an individual Uniform Resource Name (URN), as
@@ -217,10 +218,10 @@ public final class URN implements HTTPHeaderValue, Serializable {
 	 * The progress of files currently being hashed.
 	 * Files are added to this when hashing is started
 	 * and removed when hashing finishes.
-	 * IntWrapper stores the amount of bytes read.
+	 * The AtomicLong stores the amount of bytes read.
 	 */
-	private static final Map<File, AtomicInteger> progressMap =
-	    Collections.synchronizedMap(new HashMap<File, AtomicInteger>());
+	private static final Map<File, AtomicLong> progressMap =
+	    Collections.synchronizedMap(new HashMap<File, AtomicLong>());
     
     /** Cache for byte[] used while creating the hash */
     private static final ThreadLocal<byte[]> threadLocal = new ThreadLocal<byte[]>() {
@@ -235,8 +236,8 @@ public final class URN implements HTTPHeaderValue, Serializable {
 	 * Gets the amount of bytes hashed for a file that is being hashed.
 	 * Returns -1 if the file is not being hashed at all.
 	 */
-	public static int getHashingProgress(File file) {
-	    AtomicInteger progress = progressMap.get(file);
+	public static long getHashingProgress(File file) {
+	    AtomicLong progress = progressMap.get(file);
 	    if ( progress == null )
 	        return -1;
 	    else
@@ -822,10 +823,31 @@ public final class URN implements HTTPHeaderValue, Serializable {
 	 */
 	public static UrnSet generateUrnsFromFile(final File file) 
       throws IOException, InterruptedException {
+	    return generateUrnsFromFile(file, null);
+	}
+	
+	/**
+	 * Creates a new SHA1 hash string for the specified file on disk and,
+	 * if <code>leafHasher</code> is non-null, feeds the same bytes to it
+	 * so that the THEX leaf nodes are calculated without reading the file
+	 * a second time.  If the hasher fails, for example because the file
+	 * grew while it was read, it is not used anymore and its
+	 * {@link LeafNodeHasher#getNodes()} will fail, but the SHA1 is still
+	 * returned.
+	 * 
+	 * @param file the file to construct the hash from
+	 * @param leafHasher the hasher for the tree leaves, may be null
+	 * @return the SHA1 hash string
+	 * @throws <tt>IOException</tt> if there is an error creating the hash
+	 * @throws <tt>InterruptedException</tt> if the calling thread was 
+	 *  interrupted while hashing
+	 */
+	public static UrnSet generateUrnsFromFile(final File file, LeafNodeHasher leafHasher) 
+	  throws IOException, InterruptedException {
 		MessageDigest md = new SHA1();
         byte[] buffer = threadLocal.get();
         int read;
-        AtomicInteger progress = new AtomicInteger(0);
+        AtomicLong progress = new AtomicLong(0);
         progressMap.put( file, progress );
         InputStream fis = null;        
         
@@ -836,6 +858,16 @@ public final class URN implements HTTPHeaderValue, Serializable {
             while ((read=fis.read(buffer))!=-1) {
                 long start = System.nanoTime();
                 md.update(buffer,0,read);
+                if(leafHasher != null) {
+                    try {
+                        leafHasher.update(buffer, 0, read);
+                    } catch(IOException treeFailed) {
+                        // the file changed since the hasher was created,
+                        // the tree can be calculated later on, but the
+                        // SHA1 must not fail because of it.
+                        leafHasher = null;
+                    }
+                }
                 progress.addAndGet( read );
                 if(SystemUtils.getIdleTime() < MIN_IDLE_TIME && SharingSettings.FRIENDLY_HASHING.getValue()) {
                     long interval = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
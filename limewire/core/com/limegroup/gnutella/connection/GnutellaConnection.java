@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
@@ -28,6 +29,7 @@ import org.limewire.logging.LogFactory;
 import org.limewire.net.SocketsManager;
 import org.limewire.net.SocketsManager.ConnectType;
 import org.limewire.nio.NBThrottle;
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.Throttle;
 import org.limewire.nio.channel.ChannelWriter;
 import org.limewire.nio.channel.DeflaterWriter;
@@ -731,11 +733,12 @@ public class GnutellaConnection extends AbstractConnection implements ReplyHandl
                 writer = addWriter(writer, statsWriters.get(StatsWriters.DEFLATER));
         }
         
-        writer = addWriter(writer, new DelayedBufferWriter(1400));
+        ScheduledExecutorService executor = NIODispatcher.instance().getScheduledExecutorService(getSocket());
+        writer = addWriter(writer, new DelayedBufferWriter(1400, DelayedBufferWriter.DEFAULT_DELAY, executor));
         if (statsWriters.containsKey(StatsWriters.DELAYER))
             writer = addWriter(writer, statsWriters.get(StatsWriters.DELAYER));
         
-        writer = addWriter(writer, new ThrottleWriter(_nbThrottle));
+        writer = addWriter(writer, new ThrottleWriter(_nbThrottle, null, executor));
         if (statsWriters.containsKey(StatsWriters.THROTTLE))
             writer = addWriter(writer, statsWriters.get(StatsWriters.THROTTLE));
 
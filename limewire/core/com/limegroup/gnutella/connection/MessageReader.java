@@ -4,12 +4,16 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import org.limewire.core.settings.MessageSettings;
+import org.limewire.nio.ByteBufferCache;
 import org.limewire.nio.channel.ChannelReadObserver;
 import org.limewire.nio.channel.InterestReadableByteChannel;
 
 import com.limegroup.gnutella.messages.BadPacketException;
 import com.limegroup.gnutella.messages.Message;
 import com.limegroup.gnutella.messages.MessageFactory;
+import com.limegroup.gnutella.messages.PooledMessage;
+import com.limegroup.gnutella.messages.PooledPayload;
 
 /**
  * Reads messages from a channel.  This class is notified when more of a message
@@ -31,6 +35,8 @@ public class MessageReader implements ChannelReadObserver {
     private static final int HEADER_SIZE = 23;
     /** where in the header the payload is */
     private static final int PAYLOAD_LENGTH_OFFSET = 19;
+    /** where in the header the function is */
+    private static final int FUNCTION_OFFSET = 16;
     
     /** the constant buffer to use for emtpy payloads. */
     private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
@@ -39,6 +45,14 @@ public class MessageReader implements ChannelReadObserver {
     private final ByteBuffer header;
     /** the buffer used for parsing the payload -- recreated for each message */
     private ByteBuffer payload;
+    /** the pooled buffer payload belongs to, null if it was allocated */
+    private PooledPayload pooledPayload;
+    
+    /** 
+     * the cache that payloads of messages with a pooled payload parser are
+     * taken from, null if every payload is allocated
+     */
+    private final ByteBufferCache bufferCache;
     
     /** the sole receiver of messages */
     private final MessageReceiver receiver;
@@ -62,7 +76,18 @@ public class MessageReader implements ChannelReadObserver {
      * Constructs a new MessageReader with the given source channel & receiver.
      */
     MessageReader(InterestReadableByteChannel channel, MessageReceiver receiver, MessageFactory messageFactory) {
+        this(channel, receiver, messageFactory, null);
+    }
+    
+    /**
+     * Constructs a new MessageReader with the given source channel & receiver
+     * that reads the payloads of messages that can share a buffer into
+     * buffers from the given cache.
+     */
+    MessageReader(InterestReadableByteChannel channel, MessageReceiver receiver, 
+            MessageFactory messageFactory, ByteBufferCache bufferCache) {
         this.messageFactory = messageFactory;
+        this.bufferCache = bufferCache;
         if(receiver == null)
             throw new NullPointerException("null receiver");
             
@@ -118,6 +143,11 @@ public class MessageReader implements ChannelReadObserver {
                 
                 if(payloadLength == 0) {
                     payload = EMPTY_PAYLOAD;
+                } else if(bufferCache != null 
+                        && MessageSettings.REUSE_PAYLOAD_BUFFERS.getValue()
+                        && messageFactory.isPayloadPoolable(header.get(FUNCTION_OFFSET))) {
+                    pooledPayload = new PooledPayload(bufferCache, payloadLength);
+                    payload = pooledPayload.getBuffer();
                 } else {
                     try {
                         payload = ByteBuffer.allocate(payloadLength);
@@ -138,18 +168,28 @@ public class MessageReader implements ChannelReadObserver {
             }
                 
             // Yay, we've got a full message.
+            Message m = null;
             try {
-                Message m = messageFactory.createMessage(header.array(), payload.array(), 
+                m = messageFactory.createMessage(header.array(), payload.array(), 
                         receiver.getNetwork(), receiver.getSoftMax(), null);
-                receiver.processReadMessage(m);
+                if(pooledPayload != null && m instanceof PooledMessage)
+                    ((PooledMessage)m).setPooledPayload(pooledPayload);
             } catch(BadPacketException ignored) {
+            } finally {
+                // the message retained the buffer if it still needs it
+                if(pooledPayload != null) {
+                    pooledPayload.release();
+                    pooledPayload = null;
+                }
+                payload = null;
+                header.clear();
             }
             
+            if(m != null)
+                receiver.processReadMessage(m);
+            
             if(read == -1)
                 throw new IOException("eof");
-            
-            payload = null;
-            header.clear();
         }
     }
     
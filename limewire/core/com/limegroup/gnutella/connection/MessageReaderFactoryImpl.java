@@ -1,5 +1,6 @@
 package com.limegroup.gnutella.connection;
 
+import org.limewire.nio.ByteBufferCache;
 import org.limewire.nio.channel.InterestReadableByteChannel;
 
 import com.google.inject.Inject;
@@ -10,19 +11,21 @@ import com.limegroup.gnutella.messages.MessageFactory;
 public class MessageReaderFactoryImpl implements MessageReaderFactory {
 
     private final MessageFactory messageFactory;
+    private final ByteBufferCache bufferCache;
 
     @Inject
-    public MessageReaderFactoryImpl(MessageFactory messageFactory) {
+    public MessageReaderFactoryImpl(MessageFactory messageFactory, ByteBufferCache bufferCache) {
         this.messageFactory = messageFactory;
+        this.bufferCache = bufferCache;
     }
     
     public MessageReader createMessageReader(MessageReceiver receiver) {
-        return new MessageReader(receiver, messageFactory);
+        return new MessageReader(null, receiver, messageFactory, bufferCache);
     }
 
     public MessageReader createMessageReader(InterestReadableByteChannel channel, 
             MessageReceiver receiver) {
-            return new MessageReader(channel, receiver, messageFactory);
+            return new MessageReader(channel, receiver, messageFactory, bufferCache);
     }
 
 }
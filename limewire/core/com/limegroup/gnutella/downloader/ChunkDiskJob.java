@@ -5,8 +5,15 @@ public abstract class ChunkDiskJob {
     
     private final byte[] buf;
     
-    public ChunkDiskJob(byte[] buf) {
+    private final Object owner;
+    
+    /**
+     * @param owner the owner of the job, jobs of the same owner are run
+     * in the order they are added
+     */
+    public ChunkDiskJob(byte[] buf, Object owner) {
         this.buf = buf;
+        this.owner = owner;
     }
     
     /** Retrieves the chunk. */
@@ -14,6 +21,11 @@ public abstract class ChunkDiskJob {
         return buf;
     }
     
+    /** Retrieves the owner of the job. */
+    Object getOwner() {
+        return owner;
+    }
+    
     /** Runs the actual job. */
     abstract void runChunkJob(byte[] buf);
     
@@ -1,11 +1,14 @@
 package com.limegroup.gnutella.downloader;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -13,114 +16,183 @@ import org.limewire.collection.ByteArrayCache;
 import org.limewire.collection.PowerOf2ByteArrayCache;
 import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.concurrent.ManagedThread;
+import org.limewire.core.settings.DownloadSettings;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
-/** Manages writing / reading from / to disk. */
+/**
+ * Manages writing / reading from / to disk.
+ * <p>
+ * The jobs are run by a few threads, each with its own queue. All jobs
+ * of the same owner, usually a <code>VerifyingFile</code>, go to the same
+ * thread so they run in the order they were added, while the jobs of
+ * different files can run at the same time.
+ */
 @Singleton
 public class DiskController {
-    
+
     private final Log LOG = LogFactory.getLog(DiskController.class);
 
-    /** The thread that does the actual verification & writing */
-    private final ThreadPoolExecutor QUEUE = ExecutorsHelper.newSingleThreadExecutor(
-            new ThreadFactory() {
-                public Thread newThread(Runnable r) {
-                    Thread t = new ManagedThread(r, "BlockingVF");
-                    t.setDaemon(true);
-                    t.setPriority(Thread.NORM_PRIORITY+1);
-                    return t;
-                }
-            });
-    
+    /** The threads that do the actual verification & writing. */
+    private final Stripe[] STRIPES;
+
+    /** The stripe whose thread is the current thread, if any. */
+    private final ThreadLocal<Stripe> CURRENT_STRIPE = new ThreadLocal<Stripe>();
+
     /**
      * A list of DelayedWrites that will write when space becomes available in the cache.
      * LOCKING: Lock on the below CACHE.
      */
-    private final List<DelayedWrite> DELAYED = new LinkedList<DelayedWrite>();   
+    private final List<DelayedWrite> DELAYED = new LinkedList<DelayedWrite>();
     /**  A cache for byte[]s. */
-    private final ByteArrayCache CACHE = new ByteArrayCache(512, HTTPDownloader.BUF_LENGTH);    
-    /** a bunch of cached byte[]s for verifiable chunks */
-    private final PowerOf2ByteArrayCache CHUNK_CACHE = new PowerOf2ByteArrayCache();
+    private final ByteArrayCache CACHE = new ByteArrayCache(512, HTTPDownloader.BUF_LENGTH);
     /** The number of chunks scheduled to be written. */
     private int chunksScheduled = 0;
     /** A lock to use for the queue size + chunksScheduled. */
     private final Object SCHEDULE_LOCK = new Object();
-    
+
+    /** The number of chunk jobs that have been run. */
+    private final AtomicLong chunkJobs = new AtomicLong();
+    /** The total time chunk jobs waited in the queues, in nanoseconds. */
+    private final AtomicLong queuedNanos = new AtomicLong();
+    /** The total time it took to run chunk jobs, in nanoseconds. */
+    private final AtomicLong writeNanos = new AtomicLong();
+    /** The longest time it took to run a chunk job, in nanoseconds. */
+    private volatile long maxWriteNanos;
+    /** The highest number of jobs that were waiting at once. */
+    private volatile int maxPending;
+
+    @InspectionPoint("disk controller stats")
+    @SuppressWarnings("unused")
+    private final Inspectable stats = new Inspectable() {
+        public Object inspect() {
+            Map<String, Object> ret = new HashMap<String, Object>();
+            ret.put("ver", 1);
+            ret.put("threads", STRIPES.length);
+            ret.put("pending", getNumPendingItems());
+            ret.put("max pending", maxPending);
+            ret.put("delayed", getNumDelayedWrites());
+            ret.put("jobs", chunkJobs.get());
+            ret.put("avg queue ms", getAverageQueueTime());
+            ret.put("avg write ms", getAverageWriteTime());
+            ret.put("max write ms", maxWriteNanos / 1000000);
+            return ret;
+        }
+    };
+
     @Inject
     public DiskController(@Named("backgroundExecutor") ScheduledExecutorService backgroundExecutor) {
+        STRIPES = new Stripe[Math.max(1, DownloadSettings.DISK_WRITER_THREADS.getValue())];
+        for (int i = 0; i < STRIPES.length; i++)
+            STRIPES[i] = new Stripe(STRIPES.length == 1 ? "BlockingVF" : "BlockingVF-" + i);
         backgroundExecutor.scheduleWithFixedDelay(new CacheCleaner(), 10 * 60 * 1000, 10 * 60 * 1000, TimeUnit.MILLISECONDS);
     }
-    
+
     /** Adds a DelayedWrite to the queue of writers. */
     public void addDelayedWrite(DelayedWrite dw) {
         synchronized(CACHE) {
             DELAYED.add(dw);
         }
     }
-    
+
     /** Returns true if no delayed writes are pending. */
     public boolean canWriteNow() {
         synchronized(CACHE) {
             return DELAYED.isEmpty();
         }
     }
-    
+
     /** Returns a chunk for writing.  Will return false if no chunks are available for writing. */
     public byte[] getWriteChunk() {
         return CACHE.getQuick();
     }
-    
-    /** Adds a job to be performed on the disk. */
+
+    /**
+     * Adds a job to be performed on the disk.  Jobs of the same owner are
+     * performed in the order they were added.
+     */
     public void addDiskJob(final ChunkDiskJob job) {
+        final long queued = System.nanoTime();
+        Stripe stripe = getStripe(job.getOwner());
         synchronized(SCHEDULE_LOCK) {
             chunksScheduled++;
-            QUEUE.execute(new Runnable() {
+            stripe.queue.execute(new Runnable() {
                 public void run() {
+                    long start = System.nanoTime();
                     try {
                         job.runChunkJob(job.getChunk());
                     } finally {
+                        recordJob(start - queued, System.nanoTime() - start);
+
                         synchronized(SCHEDULE_LOCK) {
                             chunksScheduled--;
                         }
-                        
+
                         releaseChunk(job.getChunk(), true);
-                        
+
                         job.finish();
                     }
                 }
             });
         }
+        int pending = stripe.queue.getQueue().size();
+        if (pending > maxPending)
+            maxPending = pending;
     }
-    
-    /** Adds a job to be performed on the disk that doesn't involve chunks. */
-    public void addDiskJobWithoutChunk(Runnable job) {
-        QUEUE.execute(job);
+
+    /**
+     * Adds a job to be performed on the disk that doesn't involve chunks,
+     * after the jobs of the same owner that were added before it.
+     */
+    public void addDiskJobWithoutChunk(Object owner, Runnable job) {
+        getStripe(owner).queue.execute(job);
     }
-    
+
     /** Gets a byte[] to the closest power of 2. */
     public byte[] getPowerOf2Chunk(int size) {
-        return CHUNK_CACHE.get(size);
+        Stripe stripe = CURRENT_STRIPE.get();
+        if (stripe != null)
+            return stripe.chunkCache.get(size);
+        // the cached chunks are only shared by the jobs of one thread
+        return new PowerOf2ByteArrayCache().get(size);
+    }
+
+    private Stripe getStripe(Object owner) {
+        int hash = System.identityHashCode(owner);
+        hash ^= hash >>> 16;
+        return STRIPES[(hash & Integer.MAX_VALUE) % STRIPES.length];
+    }
+
+    private void recordJob(long queueTime, long writeTime) {
+        chunkJobs.incrementAndGet();
+        queuedNanos.addAndGet(queueTime);
+        writeNanos.addAndGet(writeTime);
+        if (writeTime > maxWriteNanos)
+            maxWriteNanos = writeTime;
     }
-    
+
     /**
      * A Runnable that clears the cache used for storing byte[]s used for
-     * writing data read from network to disk, and schedules a ChunkCacheCleaner.
+     * writing data read from network to disk, and schedules a ChunkCacheCleaner
+     * on every disk thread.
      */
     private class CacheCleaner implements Runnable {
         public void run() {
             LOG.info("clearing cache");
             CACHE.clear();
-            QUEUE.execute(new ChunkCacheCleaner());
+            for (Stripe stripe : STRIPES)
+                stripe.queue.execute(new ChunkCacheCleaner());
         }
     }
-    
+
     /** A Runnable that clears the cache storing byte[]s used for verifying. */
     private class ChunkCacheCleaner implements Runnable {
         public void run() {
-            CHUNK_CACHE.clear();
+            CURRENT_STRIPE.get().chunkCache.clear();
         }
     }
 
@@ -135,34 +207,34 @@ public class DiskController {
             if(chunksScheduled > 0)
                 return;
         }
-        
+
         while(CACHE.isBufferAvailable()) {
             DelayedWrite dw;
-            
+
+            // take the write off the list so no other disk thread runs it too
             synchronized(CACHE) {
                 if(DELAYED.isEmpty()) {
                     LOG.debug("Nothing delayed to run.");
                     return;
                 }
-                dw = DELAYED.get(0);
+                dw = DELAYED.remove(0);
             }
-    
+
             // write & notify outside of lock
-            if(dw.write()) {
-                // if we wrote succesfully, remove the item from the cache.
-                synchronized(CACHE) {
-                    DELAYED.remove(0);
-                }
-            } else {
-                // otherwise, something went wrong, so reschedule another
-                // delayed write later on.
+            if(!dw.write()) {
+                // otherwise, something went wrong, so put it back and
+                // reschedule another delayed write later on.
                 // NOTE: this should be impossible to happen, but it's happening,
                 //       and its no huge deal, so we're preparing for it.
-                QUEUE.execute(new Runnable() {
+                synchronized(CACHE) {
+                    DELAYED.add(0, dw);
+                }
+                getStripe(dw).queue.execute(new Runnable() {
                     public void run() {
                         runDelayedWrites();
                     }
                 });
+                return;
             }
         }
     }
@@ -178,13 +250,65 @@ public class DiskController {
         return CACHE.getCacheSize();
     }
 
-    /** Returns the number of bytes cached in the verifying cache. */
+    /** Returns the number of bytes cached in the verifying caches. */
     public int getSizeOfVerifyingCache() {
-        return CHUNK_CACHE.getCacheSize();
+        int size = 0;
+        for (Stripe stripe : STRIPES)
+            size += stripe.chunkCache.getCacheSize();
+        return size;
     }
 
+    /** Returns the number of jobs waiting for a disk thread. */
     public int getNumPendingItems() {
-        return QUEUE.getQueue().size();
+        int pending = 0;
+        for (Stripe stripe : STRIPES)
+            pending += stripe.queue.getQueue().size();
+        return pending;
+    }
+
+    /** Returns the number of writes waiting for a free chunk. */
+    public int getNumDelayedWrites() {
+        synchronized(CACHE) {
+            return DELAYED.size();
+        }
+    }
+
+    /** Returns the average time chunk jobs waited for a disk thread, in milliseconds. */
+    public long getAverageQueueTime() {
+        long jobs = chunkJobs.get();
+        return jobs == 0 ? 0 : queuedNanos.get() / jobs / 1000000;
+    }
+
+    /** Returns the average time it took to write a chunk, in milliseconds. */
+    public long getAverageWriteTime() {
+        long jobs = chunkJobs.get();
+        return jobs == 0 ? 0 : writeNanos.get() / jobs / 1000000;
+    }
+
+    /** A disk thread with its queue of jobs. */
+    private class Stripe {
+        private final ThreadPoolExecutor queue;
+        /**
+         * A bunch of cached byte[]s for verifiable chunks, only used
+         * by the thread of this stripe.
+         */
+        private final PowerOf2ByteArrayCache chunkCache = new PowerOf2ByteArrayCache();
+
+        Stripe(final String name) {
+            queue = ExecutorsHelper.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new ManagedThread(new Runnable() {
+                        public void run() {
+                            CURRENT_STRIPE.set(Stripe.this);
+                            r.run();
+                        }
+                    }, name);
+                    t.setDaemon(true);
+                    t.setPriority(Thread.NORM_PRIORITY+1);
+                    return t;
+                }
+            });
+        }
     }
 
 }
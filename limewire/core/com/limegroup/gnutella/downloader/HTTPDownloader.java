@@ -420,7 +420,8 @@ public class HTTPDownloader implements BandwidthTracker {
             LOG.warn("couldn't set keepalive");
         }
         observerHandler = new Observer();
-        _stateMachine = new IOStateMachine(observerHandler, new LinkedList<IOState>(), BUF_LENGTH);
+        _stateMachine = new IOStateMachine(observerHandler, new LinkedList<IOState>(), BUF_LENGTH,
+                NIODispatcher.instance().getScheduledExecutorService(_socket));
         _stateMachine.setReadChannel(new ThrottleReader(bandwidthManager.getReadThrottle()));
         ((NIOMultiplexor)_socket).setReadObserver(_stateMachine);
         ((NIOMultiplexor)_socket).setWriteObserver(_stateMachine);
@@ -1603,7 +1604,7 @@ public class HTTPDownloader implements BandwidthTracker {
     					irc.interestRead(false);
     					doingWrite = true;
     					_incompleteFile.registerWriteCallback(request,
-    							new DownloadRestarter(irc, buffer, this));
+    							new DownloadRestarter(irc, buffer, this, _socket));
     					return true;
     				}
     			} catch (AssertFailure bad) {
@@ -1643,16 +1644,18 @@ public class HTTPDownloader implements BandwidthTracker {
         private final DownloadState downloader;
         private final InterestReadableByteChannel irc;
         private final ByteBuffer buffer;
+        private final Socket socket;
         
-        DownloadRestarter(InterestReadableByteChannel irc, ByteBuffer buffer, DownloadState downloader) {
+        DownloadRestarter(InterestReadableByteChannel irc, ByteBuffer buffer, DownloadState downloader, Socket socket) {
             this.irc = irc;
             this.buffer = buffer;
             this.downloader = downloader;
+            this.socket = socket;
         }
         
         public void writeScheduled() {
             LOG.debug("Delayed write scheduled");
-            NIODispatcher.instance().executeLaterAlways(this);
+            NIODispatcher.instance().executeLaterAlways(socket.getChannel(), this);
         }
         
         public void run() {
@@ -1674,7 +1677,7 @@ public class HTTPDownloader implements BandwidthTracker {
 	    }
         
         // Close in the NIO thread, so everything stays there.
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        NIODispatcher.instance().getScheduledExecutorService(_socket).execute(new Runnable() {
             public void run() {
                 IOUtils.close(_socket);
             }
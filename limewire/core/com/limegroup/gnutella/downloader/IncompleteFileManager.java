@@ -367,9 +367,10 @@ public class IncompleteFileManager  {
     }
     
     /**
-     * Initializes entries with URNs, Files & Ranges.
+     * Initializes entries with URNs, Files, Ranges & the state of the
+     * streaming hash (which may be null).
      */
-    public synchronized void initEntry(File incompleteFile, List<Range> ranges, URN sha1, boolean publish) throws InvalidDataException {
+    public synchronized void initEntry(File incompleteFile, List<Range> ranges, byte[] hashState, URN sha1, boolean publish) throws InvalidDataException {
         try {
             incompleteFile = canonicalize(incompleteFile);
         } catch(IOException iox) {
@@ -393,6 +394,8 @@ public class IncompleteFileManager  {
             } catch(IOException iox) {
                 throw new InvalidDataException(iox);
             }
+        } else if(hashState != null) {
+            verifyingFile.setHashState(hashState);
         }
         blocks.put(incompleteFile, verifyingFile);
         if(sha1 != null)
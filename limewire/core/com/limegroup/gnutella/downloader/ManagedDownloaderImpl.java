@@ -1967,13 +1967,16 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
             return null;
         
         //if the user has not been asked before.               
-        URN fileHash=null;
-        try {
-            // let the user know we're hashing the file
-            setState(DownloadStatus.HASHING);
-            fileHash = URN.createSHA1Urn(incompleteFile);
+        // use the hash calculated while the file was written if there is one 
+        URN fileHash = commonOutFile.getStreamedSHA1Urn();
+        if (fileHash == null) {
+            try {
+                // let the user know we're hashing the file
+                setState(DownloadStatus.HASHING);
+                fileHash = URN.createSHA1Urn(incompleteFile);
+            }
+            catch(IOException ignored) {}
         }
-        catch(IOException ignored) {}
         
         // If we have no hash, we can't check at all.
         if(getSha1Urn() == null)
@@ -2117,10 +2120,14 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
      * @return the root of the tree
      */
     protected URN saveTreeHash(URN fileHash) {
-            // save the trees!
-            if (getSha1Urn() != null && getSha1Urn().equals(fileHash) && commonOutFile.getHashTree() != null) {
-                tigerTreeCache.get().addHashTree(getSha1Urn(),commonOutFile.getHashTree());
-                return commonOutFile.getHashTree().getTreeRootUrn();
+            // save the trees!  if we never got one, use the tree of the leaves
+            // calculated while writing, so it isn't built again from disk.
+            HashTree tree = commonOutFile.getHashTree();
+            if (tree == null)
+                tree = commonOutFile.getStreamedHashTree();
+            if (getSha1Urn() != null && getSha1Urn().equals(fileHash) && tree != null) {
+                tigerTreeCache.get().addHashTree(getSha1Urn(), tree);
+                return tree.getTreeRootUrn();
             }
             return null;
         }
@@ -3111,7 +3118,7 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
         addInitialSources(toRfds(gmem.getRemoteHosts()), gmem.getDefaultFileName());
         
         if(getIncompleteFile() != null) {
-            incompleteFileManager.initEntry(getIncompleteFile(), gmem.getSavedBlocks(), getSha1Urn(), shouldPublishIFD());
+            incompleteFileManager.initEntry(getIncompleteFile(), gmem.getSavedBlocks(), gmem.getHashState(), getSha1Urn(), shouldPublishIFD());
         }
     }
     
@@ -3126,8 +3133,10 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
         super.fillInMemento(gmem);
         gmem.setContentLength(getContentLength());
         gmem.setSha1Urn(getSha1Urn());
-        if(commonOutFile != null)
+        if(commonOutFile != null) {
             gmem.setSavedBlocks(commonOutFile.getSerializableBlocks());
+            gmem.setHashState(commonOutFile.getHashState());
+        }
         gmem.setIncompleteFile(getIncompleteFile());
         gmem.setRemoteHosts(getRemoteHostMementos());
     }
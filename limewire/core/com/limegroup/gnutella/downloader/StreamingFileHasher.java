@@ -0,0 +1,192 @@
+package com.limegroup.gnutella.downloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.limewire.security.SHA1;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.security.MerkleTree;
+import com.limegroup.gnutella.security.Tiger;
+import com.limegroup.gnutella.tigertree.HashTreeUtils;
+
+/**
+ * Calculates the SHA1 and the THEX leaf nodes of a file while it is
+ * downloaded, from the bytes that are written at the end of the contiguous
+ * range hashed so far.
+ * <p>
+ * The state at the last completed leaf can be saved with {@link #getState()}
+ * and restored with {@link #StreamingFileHasher(long, byte[])}, so a resumed
+ * download only has to hash the data after that leaf again.
+ * <p>
+ * This class is thread-safe.
+ */
+class StreamingFileHasher {
+
+    private static final int STATE_VERSION = 1;
+
+    /** The size of the file that is hashed. */
+    private final long fileSize;
+
+    /** The amount of bytes covered by each leaf node. */
+    private final int nodeSize;
+
+    /** The completed leaf nodes. */
+    private final List<byte[]> leaves;
+
+    /** The digest of the leaf that is currently hashed. */
+    private final MessageDigest leafDigest = new MerkleTree(new Tiger());
+
+    /** The SHA1 of the bytes hashed so far. */
+    private final SHA1 sha1;
+
+    /** The amount of bytes hashed so far. */
+    private long offset;
+
+    /** The SHA1 state at the end of the last completed leaf. */
+    private byte[] checkpoint;
+
+    /** The SHA1 of the whole file, once all bytes have been hashed. */
+    private URN sha1Urn;
+
+    /** Creates a hasher that starts at the beginning of the file. */
+    StreamingFileHasher(long fileSize) {
+        this.fileSize = fileSize;
+        this.nodeSize = calculateNodeSize(fileSize);
+        this.leaves = new ArrayList<byte[]>(leafCount());
+        this.sha1 = new SHA1();
+        this.checkpoint = sha1.getState();
+    }
+
+    /**
+     * Creates a hasher that continues at the end of the last leaf
+     * that was completed when <code>state</code> was saved.
+     *
+     * @throws IOException if the state is malformed or doesn't belong
+     * to a file of the given size
+     */
+    StreamingFileHasher(long fileSize, byte[] state) throws IOException {
+        this.fileSize = fileSize;
+        this.nodeSize = calculateNodeSize(fileSize);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        if (in.readInt() != STATE_VERSION)
+            throw new IOException("unknown state version");
+        if (in.readLong() != fileSize || in.readInt() != nodeSize)
+            throw new IOException("state of another file");
+        offset = in.readLong();
+        checkpoint = new byte[in.readInt()];
+        in.readFully(checkpoint);
+        int count = in.readInt();
+        if (count < 0 || count > leafCount() || offset != Math.min(fileSize, (long)count * nodeSize))
+            throw new IOException("invalid leaf count: " + count);
+        leaves = new ArrayList<byte[]>(leafCount());
+        for (int i = 0; i < count; i++) {
+            byte[] leaf = new byte[MerkleTree.HASHSIZE];
+            in.readFully(leaf);
+            leaves.add(leaf);
+        }
+        try {
+            sha1 = new SHA1(checkpoint);
+        } catch (IllegalArgumentException iae) {
+            throw (IOException)new IOException("invalid sha1 state").initCause(iae);
+        }
+        if (offset == fileSize)
+            sha1Urn = URN.createSHA1UrnFromBytes(sha1.digest());
+    }
+
+    private static int calculateNodeSize(long fileSize) {
+        return HashTreeUtils.calculateNodeSize(fileSize, HashTreeUtils.calculateDepth(fileSize));
+    }
+
+    private int leafCount() {
+        return (int)((fileSize + nodeSize - 1) / nodeSize);
+    }
+
+    /** Returns the amount of bytes covered by each leaf node. */
+    int getNodeSize() {
+        return nodeSize;
+    }
+
+    /** Returns the amount of bytes that have been hashed. */
+    synchronized long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Hashes the next <code>length</code> bytes of the file, which must
+     * start at {@link #getOffset()}.
+     */
+    synchronized void update(byte[] data, int off, int length) throws IOException {
+        if (offset + length > fileSize)
+            throw new IOException("more data than fileSize!");
+        while (length > 0) {
+            int nodeOffset = (int)(offset % nodeSize);
+            int toHash = Math.min(length, nodeSize - nodeOffset);
+            sha1.update(data, off, toHash);
+            leafDigest.update(data, off, toHash);
+            off += toHash;
+            length -= toHash;
+            offset += toHash;
+            if (nodeOffset + toHash == nodeSize || offset == fileSize) {
+                leaves.add(leafDigest.digest());
+                checkpoint = sha1.getState();
+            }
+        }
+        if (offset == fileSize && sha1Urn == null)
+            sha1Urn = URN.createSHA1UrnFromBytes(sha1.digest());
+    }
+
+    /** Returns whether the whole file has been hashed. */
+    synchronized boolean isComplete() {
+        return sha1Urn != null;
+    }
+
+    /**
+     * Returns the leaf node with the given index, or null if the bytes
+     * of that leaf haven't all been hashed yet.
+     */
+    synchronized byte[] getLeaf(int index) {
+        return index < leaves.size() ? leaves.get(index) : null;
+    }
+
+    /** Returns all leaf nodes, or null if the file isn't completely hashed. */
+    synchronized List<byte[]> getLeaves() {
+        return isComplete() ? new ArrayList<byte[]>(leaves) : null;
+    }
+
+    /** Returns the SHA1 of the file, or null if it isn't completely hashed. */
+    synchronized URN getSHA1Urn() {
+        return sha1Urn;
+    }
+
+    /**
+     * Returns the state at the end of the last completed leaf, from which
+     * {@link #StreamingFileHasher(long, byte[])} can continue.
+     */
+    synchronized byte[] getState() {
+        long stateOffset = Math.min(fileSize, (long)leaves.size() * nodeSize);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(40 + checkpoint.length
+                + leaves.size() * MerkleTree.HASHSIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(STATE_VERSION);
+            out.writeLong(fileSize);
+            out.writeInt(nodeSize);
+            out.writeLong(stateOffset);
+            out.writeInt(checkpoint.length);
+            out.write(checkpoint);
+            out.writeInt(leaves.size());
+            for (byte[] leaf : leaves)
+                out.write(leaf);
+        } catch (IOException impossible) {
+            throw new RuntimeException(impossible);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 
@@ -17,7 +18,9 @@ import org.limewire.io.DiskException;
 import org.limewire.util.FileUtils;
 
 import com.google.inject.Provider;
+import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.tigertree.HashTree;
+import com.limegroup.gnutella.tigertree.HashTreeFactory;
 
 
 /**
@@ -59,6 +62,13 @@ public class VerifyingFile {
     /** How much to verify at a time */
     private static final int VERIFYABLE_CHUNK = 64 * 1024; // 64k
     
+    /**
+     * The most data that is read back from disk for the streaming hash
+     * after a single write, so out-of-order blocks that become contiguous
+     * don't hold up the disk thread for long.
+     */
+    private static final int MAX_HASH_CATCH_UP = 16 * VERIFYABLE_CHUNK;
+    
     /**
      * The file we're writing to / reading from.
      */
@@ -160,12 +170,22 @@ public class VerifyingFile {
     
     /** The controller for doing disk reads/writes. */
     private final Provider<DiskController> diskController;
+    
+    private final Provider<HashTreeFactory> hashTreeFactory;
+    
+    /**
+     * Calculates the SHA1 and the tree leaves of the data as it is written,
+     * null if the file cannot be hashed that way or some data that was
+     * hashed has been discarded.
+     */
+    private volatile StreamingFileHasher hasher;
         
     /**
      * Constructs a new VerifyingFile for the specified size.
      * If checkOverlap is true, will scan for overlap corruption.
      */
-    VerifyingFile(long completedSize, Provider<DiskController> diskController) {
+    VerifyingFile(long completedSize, Provider<DiskController> diskController,
+            Provider<HashTreeFactory> hashTreeFactory) {
         this.completedSize = completedSize;
         verifiedBlocks = new IntervalSet();
         leasedBlocks = new IntervalSet();
@@ -173,6 +193,9 @@ public class VerifyingFile {
         partialBlocks = new IntervalSet();
         savedCorruptBlocks = new IntervalSet();
         this.diskController = diskController;
+        this.hashTreeFactory = hashTreeFactory;
+        if (completedSize > 0)
+            hasher = new StreamingFileHasher(completedSize);
     }
     
     /**
@@ -616,6 +639,9 @@ public class VerifyingFile {
                     } catch (InterruptedException ignore) { }
                 }
             }
+            // hash whatever wasn't written in order while we can still read it
+            if (isComplete())
+                hashWrittenData(Long.MAX_VALUE, new byte[VERIFYABLE_CHUNK]);
             fos.close();
         } catch (IOException ignore) {}
     }
@@ -714,7 +740,7 @@ public class VerifyingFile {
             if (verifiedBlocks.getSize() > 0) {
                 partialBlocks.add(verifiedBlocks);
                 verifiedBlocks.clear();
-                diskController.get().addDiskJobWithoutChunk(new EmptyVerifier(existingFileSize));
+                diskController.get().addDiskJobWithoutChunk(this, new EmptyVerifier(existingFileSize));
             }
         }
         
@@ -728,7 +754,7 @@ public class VerifyingFile {
         if (previous == null && tree != null && (existingFileSize != -1 ||
                 (pendingBlocks.getSize() == 0 && partialBlocks.getSize() > 0))
            ) {
-            diskController.get().addDiskJobWithoutChunk(new EmptyVerifier(existingFileSize));
+            diskController.get().addDiskJobWithoutChunk(this, new EmptyVerifier(existingFileSize));
             existingFileSize = -1;
         }
         return true;
@@ -745,6 +771,57 @@ public class VerifyingFile {
         return hashTreeRequested;
     }
     
+    /**
+     * Returns the state of the streaming hash, to be stored with the
+     * download, or null if the data isn't hashed as it is written.
+     */
+    public byte[] getHashState() {
+        StreamingFileHasher current = hasher;
+        return current == null ? null : current.getState();
+    }
+    
+    /**
+     * Continues the streaming hash from a state returned by 
+     * {@link #getHashState()}.  The data written after the state
+     * was saved is read back from disk once it is needed.
+     */
+    public void setHashState(byte[] state) {
+        if (completedSize <= 0)
+            return;
+        try {
+            StreamingFileHasher restored = new StreamingFileHasher(completedSize, state);
+            // the hashed data must still be there
+            if (getWrittenEnd(0) >= restored.getOffset())
+                hasher = restored;
+        } catch (IOException iox) {
+            LOG.debug("ignoring invalid hash state", iox);
+        }
+    }
+    
+    /**
+     * Returns the SHA1 of the completed file, calculated while its data was
+     * written, or null if the file has to be hashed from disk.
+     */
+    public URN getStreamedSHA1Urn() {
+        StreamingFileHasher current = hasher;
+        return current == null ? null : current.getSHA1Urn();
+    }
+    
+    /**
+     * Returns a hash tree built from the leaves calculated while the data of
+     * the completed file was written, or null if they are not available.
+     */
+    public HashTree getStreamedHashTree() {
+        StreamingFileHasher current = hasher;
+        if (current == null)
+            return null;
+        List<byte[]> leaves = current.getLeaves();
+        if (leaves == null)
+            return null;
+        return hashTreeFactory.get().createHashTree(leaves, current.getNodeSize(),
+                current.getSHA1Urn(), completedSize);
+    }
+    
     public synchronized void setDiscardUnverified(boolean yes) {
         discardBad = yes;
     }
@@ -770,8 +847,15 @@ public class VerifyingFile {
         // if we have a tree, see if there is a completed chunk in the partial list
         if(tree != null) {
             for(Range i : findVerifyableBlocks(existingFileSize)) {
-                byte[] tmp = diskController.get().getPowerOf2Chunk(Math.min(VERIFYABLE_CHUNK,tree.getNodeSize()));
-                boolean good = !tree.isCorrupt(i, fos, tmp);
+                byte[] leaf = getStreamedLeaf(tree, i);
+                boolean good;
+                if (leaf != null) {
+                    good = Arrays.equals(leaf, tree.getNodes().get((int)(i.getLow() / tree.getNodeSize())));
+                } else {
+                    byte[] tmp = diskController.get().getPowerOf2Chunk(Math.min(VERIFYABLE_CHUNK,tree.getNodeSize()));
+                    good = !tree.isCorrupt(i, fos, tmp);
+                }
+                boolean discarded = false;
                 synchronized (this) {
                     partialBlocks.delete(i);
                     if (good)
@@ -782,12 +866,109 @@ public class VerifyingFile {
                                 savedCorruptBlocks.add(i);
                             lostSize += (i.getHigh() - i.getLow() + 1);
                         }
+                        discarded = fullScan || discardBad;
                     }
                 }
+                if (discarded)
+                    discardStreamedData(i);
             }
         }
     }
         
+    /**
+     * Returns the streamed leaf covering the given chunk of the tree, or null
+     * if the chunk hasn't been hashed yet or the tree uses other leaves.
+     */
+    private byte[] getStreamedLeaf(HashTree tree, Range chunk) {
+        StreamingFileHasher current = hasher;
+        if (current == null || current.getNodeSize() != tree.getNodeSize() 
+                || chunk.getLow() % tree.getNodeSize() != 0)
+            return null;
+        return current.getLeaf((int)(chunk.getLow() / tree.getNodeSize()));
+    }
+    
+    /**
+     * Gives up on the streaming hash if the given range, which will be 
+     * downloaded again, has already been hashed.
+     */
+    private void discardStreamedData(Range range) {
+        StreamingFileHasher current = hasher;
+        if (current != null && range.getLow() < current.getOffset()) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("discarding streaming hash, " + range + " is corrupt");
+            hasher = null;
+        }
+    }
+    
+    /**
+     * Hashes the data that was just written if it continues the data hashed
+     * so far, followed by the data that was written earlier out of order and
+     * follows it now.
+     */
+    private void hashWrittenBlock(Range intvl, byte[] buf) {
+        StreamingFileHasher current = hasher;
+        if (current == null)
+            return;
+        try {
+            synchronized (current) {
+                if (current.getOffset() == intvl.getLow())
+                    current.update(buf, 0, (int)(intvl.getHigh() - intvl.getLow() + 1));
+            }
+            hashWrittenData(MAX_HASH_CATCH_UP, 
+                    diskController.get().getPowerOf2Chunk(VERIFYABLE_CHUNK));
+        } catch (IOException iox) {
+            LOG.debug("stopping streaming hash", iox);
+            hasher = null;
+        }
+    }
+    
+    /**
+     * Reads back and hashes up to <code>limit</code> bytes of the data that
+     * has been written after the data hashed so far.
+     */
+    private void hashWrittenData(long limit, byte[] buf) {
+        StreamingFileHasher current = hasher;
+        if (current == null)
+            return;
+        try {
+            synchronized (current) {
+                long offset = current.getOffset();
+                long end = getWrittenEnd(offset);
+                if (end - offset > limit)
+                    end = offset + limit;
+                while (offset < end) {
+                    int size = (int)Math.min(buf.length, end - offset);
+                    synchronized (fos) {
+                        fos.seek(offset);
+                        fos.readFully(buf, 0, size);
+                    }
+                    current.update(buf, 0, size);
+                    offset += size;
+                }
+            }
+        } catch (IOException iox) {
+            LOG.debug("stopping streaming hash", iox);
+            hasher = null;
+        }
+    }
+    
+    /**
+     * Returns the end (exclusive) of the written data that starts at or
+     * contains <code>offset</code>, or <code>offset</code> if nothing
+     * has been written there.
+     */
+    private synchronized long getWrittenEnd(long offset) {
+        IntervalSet written = new IntervalSet();
+        written.add(verifiedBlocks);
+        written.add(partialBlocks);
+        written.add(savedCorruptBlocks);
+        for (Range range : written) {
+            if (range.getLow() <= offset && range.getHigh() >= offset)
+                return range.getHigh() + 1;
+        }
+        return offset;
+    }
+    
     /**
      * iterates through the pending blocks and checks if the recent write has created
      * some (verifiable) full chunks.  Its not possible to verify more than two chunks
@@ -856,7 +1037,7 @@ public class VerifyingFile {
         private boolean freedPending = false;
         
         public ChunkHandler(byte[] buf, Range intvl) {
-            super(buf);
+            super(buf, VerifyingFile.this);
             this.intvl = intvl;
             long length = intvl.getHigh() - intvl.getLow() + 1;
             assert length <= buf.length : 
@@ -880,6 +1061,7 @@ public class VerifyingFile {
                     freedPending = true;
     			}
     			
+    			hashWrittenBlock(intvl, buf);
     			verifyChunks();
             } catch(IOException diskIO) {
                 synchronized(VerifyingFile.this) {
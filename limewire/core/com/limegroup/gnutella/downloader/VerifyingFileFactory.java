@@ -3,6 +3,7 @@ package com.limegroup.gnutella.downloader;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.limegroup.gnutella.tigertree.HashTreeFactory;
 
 /** A factory for creating VerifyingFiles. */
 @Singleton
@@ -10,20 +11,24 @@ public class VerifyingFileFactory {
     
     private final Provider<DiskController> diskController;
     
+    private final Provider<HashTreeFactory> hashTreeFactory;
+    
     /** Constructs a VerifyingFileFactory that uses the given DiskController when constructing VerifyingFiles. */
     @Inject
-    public VerifyingFileFactory(Provider<DiskController> diskController) {
+    public VerifyingFileFactory(Provider<DiskController> diskController,
+            Provider<HashTreeFactory> hashTreeFactory) {
         this.diskController = diskController;
+        this.hashTreeFactory = hashTreeFactory;
     }
 
     /** Constructs a verifying file with the given completed size. */
     public VerifyingFile createVerifyingFile(long completedSize) {
-        return new VerifyingFile(completedSize, diskController);
+        return new VerifyingFile(completedSize, diskController, hashTreeFactory);
     }
 
     /** Constructs a verifying file for testing. */
     public VerifyingFile createVerifyingFile() {
-        return new VerifyingFile(-1, diskController);
+        return new VerifyingFile(-1, diskController, hashTreeFactory);
     }
     
 }
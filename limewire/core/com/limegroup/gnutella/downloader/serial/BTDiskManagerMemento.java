@@ -18,4 +18,12 @@ public interface BTDiskManagerMemento {
     void setPartialBlocks(Map<Integer, IntervalSet> partialBlocks);
     
     void setVerifiedBlocks(BitSet verifiedBlocks);
+    
+    /**
+     * Returns the modification times of the files when the verified
+     * blocks were recorded, keyed by path, null if they were not recorded.
+     */
+    Map<String, Long> getFileTimes();
+    
+    void setFileTimes(Map<String, Long> fileTimes);
 }
@@ -41,4 +41,13 @@ public class BTDiskManagerMementoImpl implements BTDiskManagerMemento, Serializa
         serialObjects.put("verifying", verifying);
     }
 
+    @SuppressWarnings("unchecked")
+    public Map<String, Long> getFileTimes() {
+        return (Map<String, Long>)serialObjects.get("fileTimes");
+    }
+
+    public void setFileTimes(Map<String, Long> fileTimes) {
+        serialObjects.put("fileTimes", fileTimes);
+    }
+
 }
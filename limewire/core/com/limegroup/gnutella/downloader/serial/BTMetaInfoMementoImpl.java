@@ -1,25 +1,71 @@
 package com.limegroup.gnutella.downloader.serial;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.limegroup.bittorrent.bencoding.BEReader;
+import com.limegroup.bittorrent.bencoding.BEWriter;
+import com.limegroup.bittorrent.bencoding.Token;
 
 public class BTMetaInfoMementoImpl implements BTMetaInfoMemento, Serializable {
     private static final long serialVersionUID = 4808344749443143000L;
 
     private Map<String, Object> serialObjects = new HashMap<String, Object>();
 
+    /**
+     * Returns the piece hashes, or null if they are missing or malformed.
+     * Mementos written before the hashes were bencoded store them as a list.
+     */
     @SuppressWarnings("unchecked")
     public List<byte[]> getHashes() {
-        return (List<byte[]>)serialObjects.get("hashes");    
+        byte[] pieces = (byte[])serialObjects.get("pieces");
+        if (pieces == null)
+            return (List<byte[]>)serialObjects.get("hashes");
+        
+        try {
+            BEReader reader = new BEReader(ByteBuffer.wrap(pieces));
+            if (reader.next() != Token.LIST)
+                return null;
+            List<byte[]> hashes = new ArrayList<byte[]>();
+            int type;
+            while ((type = reader.next()) != BEReader.END) {
+                if (type != Token.STRING)
+                    return null;
+                hashes.add(reader.getBytes());
+            }
+            return hashes;
+        } catch (IOException malformed) {
+            return null;
+        }
     }
 
+    /**
+     * Stores the piece hashes as one bencoded list of strings, which
+     * serializes to a single array instead of an object per piece.
+     */
     public void setHashes(List<byte[]> hashes) {
-        serialObjects.put("hashes", hashes);
+        serialObjects.remove("hashes");
+        if (hashes == null) {
+            serialObjects.remove("pieces");
+            return;
+        }
+        
+        int size = 2;
+        for (byte[] hash : hashes)
+            size += String.valueOf(hash.length).length() + 1 + hash.length;
+        BEWriter writer = new BEWriter(ByteBuffer.allocate(size));
+        writer.startList();
+        for (byte[] hash : hashes)
+            writer.writeString(hash);
+        writer.end();
+        serialObjects.put("pieces", writer.getBuffer().array());
     }
 
     public int getPieceLength() {
@@ -16,6 +16,8 @@ public interface GnutellaDownloadMemento extends DownloadMemento {
 
     void setSavedBlocks(List<Range> serializableBlocks);
 
+    void setHashState(byte[] hashState);
+
     void setIncompleteFile(File incompleteFile);
 
     void setRemoteHosts(Set<RemoteHostMemento> remoteHostMementos);
@@ -30,4 +32,6 @@ public interface GnutellaDownloadMemento extends DownloadMemento {
 
     List<Range> getSavedBlocks();
 
+    byte[] getHashState();
+
 }
\ No newline at end of file
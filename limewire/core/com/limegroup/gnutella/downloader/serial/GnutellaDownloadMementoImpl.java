@@ -89,6 +89,14 @@ public class GnutellaDownloadMementoImpl implements GnutellaDownloadMemento, Ser
         serialObjects.put("savedBlocks", serializableBlocks);
     }
 
+    public byte[] getHashState() {
+        return (byte[])serialObjects.get("hashState");
+    }
+
+    public void setHashState(byte[] hashState) {
+        serialObjects.put("hashState", hashState);
+    }
+
     public void setSaveFile(File saveFile) {
         serialObjects.put("saveFile", saveFile);
     }
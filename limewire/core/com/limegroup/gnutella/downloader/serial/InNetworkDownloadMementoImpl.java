@@ -121,6 +121,14 @@ public class InNetworkDownloadMementoImpl implements InNetworkDownloadMemento, S
         serialObjects.put("savedBlocks", serializableBlocks);
     }
 
+    public byte[] getHashState() {
+        return (byte[])serialObjects.get("hashState");
+    }
+
+    public void setHashState(byte[] hashState) {
+        serialObjects.put("hashState", hashState);
+    }
+
     public void setSaveFile(File saveFile) {
         serialObjects.put("saveFile", saveFile);
     }
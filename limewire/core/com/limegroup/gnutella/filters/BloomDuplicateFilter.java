@@ -0,0 +1,340 @@
+package com.limegroup.gnutella.filters;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectablePrimitive;
+import org.limewire.inspection.InspectionPoint;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.messages.Message;
+import com.limegroup.gnutella.messages.PingRequest;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.xml.LimeXMLDocument;
+
+/**
+ * A {@link DuplicateFilter} alternative whose memory use is fixed and
+ * whose checks don't allocate.
+ * <p>
+ * Pings and queries with similar GUIDs are detected the same way as in
+ * <code>DuplicateFilter</code>, but the recent GUIDs are kept in
+ * preallocated arrays instead of a buffer of objects.
+ * <p>
+ * Recent queries are kept in two generations of a Bloom filter that are
+ * rotated the same way <code>DuplicateFilter</code> rotates its sets of
+ * queries.  A query matches if all of its bits are set in one of the
+ * generations, so an unrelated query may be rejected by mistake.  To bound
+ * the rate of such false positives, the young generation is rotated early
+ * once so many of its bits are set that its false positive rate would
+ * exceed the configured maximum.  Under heavy traffic this shortens the
+ * window in which duplicates are detected rather than letting the filter
+ * fill up.
+ */
+public class BloomDuplicateFilter implements SpamFilter {
+
+    /** The number of recent GUIDs that are compared against. */
+    private static final int BUF_SIZE = 20;
+
+    /** The number of bytes in a GUID. */
+    private static final int GUID_LENGTH = 16;
+
+    /**
+     * The number of bytes two GUIDs may differ in and still be considered
+     * similar.
+     */
+    private static final int TOLERANCE = 2;
+
+    @InspectablePrimitive("bloom duplicate filter queries")
+    private static final AtomicLong queries = new AtomicLong();
+    @InspectablePrimitive("bloom duplicate filter duplicates")
+    private static final AtomicLong duplicates = new AtomicLong();
+    @InspectablePrimitive("bloom duplicate filter early rotations")
+    private static final AtomicLong earlyRotations = new AtomicLong();
+
+    /**
+     * The sum of the false positive rates the queries were checked at, in
+     * billionths.
+     */
+    private static final AtomicLong falsePositiveNanos = new AtomicLong();
+
+    @InspectionPoint("bloom duplicate filter false positive rate")
+    @SuppressWarnings("unused")
+    private static final Inspectable FALSE_POSITIVE_RATE = new Inspectable() {
+        public Object inspect() {
+            return getObservedFalsePositiveRate();
+        }
+    };
+
+    /** The recent GUIDs, GUID_LENGTH bytes each. */
+    private final byte[] guids = new byte[BUF_SIZE * GUID_LENGTH];
+    /** The arrival times of the recent GUIDs. */
+    private final long[] guidTimes = new long[BUF_SIZE];
+    /** The hops of the messages of the recent GUIDs. */
+    private final byte[] guidHops = new byte[BUF_SIZE];
+    /** The slot the next GUID is written to. */
+    private int guidHead;
+    /** The number of slots in use. */
+    private int guidCount;
+
+    private int guidLag = DuplicateFilter.GUID_LAG;
+
+    private int queryLag = DuplicateFilter.QUERY_LAG;
+
+    /** The system time when we will promote the young generation. */
+    private long querySwapTime = 0;
+    /**
+     * The system time when we will clear both generations.
+     * INVARIANT: queryClearTime=querySwapTime+queryLag.
+     */
+    private long queryClearTime = queryLag;
+
+    /** The bits of the young and old generations. */
+    private long[] youngBits, oldBits;
+    /** The number of bits set in each generation. */
+    private int youngCount, oldCount;
+
+    /** One less than the number of bits in a generation, a power of two. */
+    private final int mask;
+
+    /** The number of bits set for each query. */
+    private final int hashes;
+
+    /**
+     * The number of set bits at which a generation reaches the highest
+     * allowed false positive rate.
+     */
+    private final int maxCount;
+
+    /**
+     * Creates a filter whose generations have at least the given number of
+     * bits.
+     *
+     * @param bits the number of bits of each generation, rounded up to a
+     * power of two
+     * @param hashes the number of bits set for each query
+     * @param maxFalsePositiveRate the highest false positive rate a
+     * generation may reach before it is rotated
+     */
+    public BloomDuplicateFilter(int bits, int hashes, float maxFalsePositiveRate) {
+        if (bits < 64 || hashes < 1 || maxFalsePositiveRate <= 0 || maxFalsePositiveRate >= 1)
+            throw new IllegalArgumentException("bits: " + bits + ", hashes: " + hashes
+                    + ", max rate: " + maxFalsePositiveRate);
+        int size = Integer.highestOneBit(bits - 1) << 1;
+        this.mask = size - 1;
+        this.hashes = hashes;
+        // a generation with a fraction f of its bits set matches a random
+        // query with probability f^hashes
+        this.maxCount = (int)(size * Math.pow(maxFalsePositiveRate, 1.0 / hashes));
+        this.youngBits = new long[size >>> 6];
+        this.oldBits = new long[size >>> 6];
+    }
+
+    /** Returns the approximate system time in milliseconds. */
+    private static long getTime() {
+        return System.currentTimeMillis();
+    }
+
+    public boolean allow(Message m) {
+        if (!allowGUID(m))
+            return false;
+        else if (m instanceof QueryRequest)
+            return allowQuery((QueryRequest)m);
+        else
+            return true;
+    }
+
+    public boolean allowGUID(Message m) {
+        // Do NOT apply this filter to pongs, query replies, or pushes,
+        // since many of those will (legally) have the same GUID.
+        if (!((m instanceof QueryRequest) || (m instanceof PingRequest)))
+            return true;
+
+        byte[] guid = m.getGUID();
+        byte hops = m.getHops();
+        long time = getTime();
+
+        boolean allowed = true;
+        for (int j = 0; j < guidCount; j++) {
+            int slot = (guidHead - 1 - j + BUF_SIZE) % BUF_SIZE;
+            if (time - guidTimes[slot] > guidLag)
+                break; // all remaining GUIDs are older
+            if (guidHops[slot] != hops)
+                continue;
+            int offset = slot * GUID_LENGTH;
+            int misses = 0;
+            for (int i = 0; i < GUID_LENGTH && misses <= TOLERANCE; i++) {
+                if (guid[i] != guids[offset + i])
+                    misses++;
+            }
+            if (misses <= TOLERANCE) {
+                allowed = false;
+                break;
+            }
+        }
+
+        System.arraycopy(guid, 0, guids, guidHead * GUID_LENGTH, GUID_LENGTH);
+        guidTimes[guidHead] = time;
+        guidHops[guidHead] = hops;
+        guidHead = (guidHead + 1) % BUF_SIZE;
+        if (guidCount < BUF_SIZE)
+            guidCount++;
+        return allowed;
+    }
+
+    public boolean allowQuery(QueryRequest qr) {
+        queries.incrementAndGet();
+        long time = getTime();
+        if (time > querySwapTime) {
+            if (time <= queryClearTime) {
+                // A little time has passed.  Promote the young generation.
+                rotate();
+            } else {
+                // A lot of time has passed.  Clear both.
+                Arrays.fill(youngBits, 0);
+                Arrays.fill(oldBits, 0);
+                youngCount = oldCount = 0;
+            }
+            querySwapTime = time + queryLag;
+            queryClearTime = querySwapTime + queryLag;
+        }
+
+        falsePositiveNanos.addAndGet(Math.round(getFalsePositiveRate() * 1e9));
+
+        long hash = hash(qr.getQuery(), qr.getHops(), qr.getRichQuery(),
+                qr.getQueryUrns(), qr.getMetaMask());
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32) | 1;
+
+        if (contains(oldBits, h1, h2)) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+
+        // set the bits in the young generation, the query is new
+        // if any of them wasn't set yet
+        int added = 0;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            long word = youngBits[bit >>> 6];
+            long bitMask = 1L << bit;
+            if ((word & bitMask) == 0) {
+                youngBits[bit >>> 6] = word | bitMask;
+                added++;
+            }
+        }
+        if (added == 0) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+
+        youngCount += added;
+        if (youngCount >= maxCount) {
+            earlyRotations.incrementAndGet();
+            rotate();
+            querySwapTime = time + queryLag;
+            queryClearTime = querySwapTime + queryLag;
+        }
+        return true;
+    }
+
+    /** Makes the young generation old and starts an empty young one. */
+    private void rotate() {
+        long[] tmp = oldBits;
+        oldBits = youngBits;
+        oldCount = youngCount;
+        youngBits = tmp;
+        Arrays.fill(youngBits, 0);
+        youngCount = 0;
+    }
+
+    private boolean contains(long[] bits, int h1, int h2) {
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a 64 bit hash of everything <code>DuplicateFilter</code>
+     * compares queries by.
+     */
+    private static long hash(String query, int hops, LimeXMLDocument xml,
+            Set<? extends URN> urns, int metaMask) {
+        // FNV-1a over the characters of the query
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < query.length(); i++) {
+            h ^= query.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = h * 31 + hops;
+        h = h * 31 + metaMask;
+        if (xml != null)
+            h = h * 31 + xml.hashCode();
+        if (!urns.isEmpty())
+            h = h * 31 + urns.hashCode();
+        // spread the bits so both halves can be used as hashes
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Returns the estimated probability that a query which wasn't seen
+     * recently is rejected as a duplicate.
+     */
+    public double getFalsePositiveRate() {
+        double size = mask + 1;
+        double young = Math.pow(youngCount / size, hashes);
+        double old = Math.pow(oldCount / size, hashes);
+        return 1 - (1 - young) * (1 - old);
+    }
+
+    /**
+     * Returns the average of the false positive rates that the queries
+     * checked by all filters so far were checked at.
+     */
+    static double getObservedFalsePositiveRate() {
+        long checked = queries.get();
+        return checked == 0 ? 0 : falsePositiveNanos.get() / 1e9 / checked;
+    }
+
+    /** Returns the number of bits in each generation. */
+    int getBitsPerGeneration() {
+        return mask + 1;
+    }
+
+    /**
+     * For testing.
+     */
+    void setQueryLag(int queryLag) {
+        this.queryLag = queryLag;
+    }
+
+    /**
+     * For testing.
+     */
+    int getQueryLag() {
+        return queryLag;
+    }
+
+    /**
+     * For testing.
+     */
+    void setGUIDLag(int guidLag) {
+        this.guidLag = guidLag;
+    }
+
+    /**
+     * For testing.
+     */
+    int getGUIDLag() {
+        return guidLag;
+    }
+}
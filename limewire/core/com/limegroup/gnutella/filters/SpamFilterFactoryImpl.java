@@ -90,7 +90,7 @@ class SpamFilterFactoryImpl implements SpamFilterFactory {
 
         //2. Duplicate-based techniques.
         if (FilterSettings.FILTER_DUPLICATES.getValue())
-            buf.add(new DuplicateFilter());
+            buf.add(createDuplicateFilter());
 
         //3. Greedy queries.  Yes, this is a route filter issue.
         if (FilterSettings.FILTER_GREEDY_QUERIES.getValue())
@@ -110,6 +110,20 @@ class SpamFilterFactoryImpl implements SpamFilterFactory {
         return compose(buf);
     }
 
+    /**
+     * Returns the duplicate filter implementation selected by
+     * {@link FilterSettings#USE_BLOOM_DUPLICATE_FILTER}.
+     */
+    private static SpamFilter createDuplicateFilter() {
+        if (FilterSettings.USE_BLOOM_DUPLICATE_FILTER.getValue())
+            return new BloomDuplicateFilter(
+                    FilterSettings.BLOOM_DUPLICATE_FILTER_BITS.getValue(),
+                    FilterSettings.BLOOM_DUPLICATE_FILTER_HASHES.getValue(),
+                    FilterSettings.BLOOM_DUPLICATE_FILTER_MAX_FALSE_POSITIVES.getValue());
+        else
+            return new DuplicateFilter();
+    }
+
     /**
      * Returns a composite filter of the given filters.
      * @param filters a Vector of SpamFilter.
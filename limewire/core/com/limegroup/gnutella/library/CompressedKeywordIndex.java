@@ -0,0 +1,445 @@
+package com.limegroup.gnutella.library;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+
+import org.limewire.concurrent.ExecutorsHelper;
+
+/**
+ * Maps keywords to the indices of the files whose names contain them, and
+ * finds the indices of all keywords starting with a given prefix.
+ * <p>
+ * Most of the index is kept in an immutable segment: the keywords are
+ * sorted, and the indices of each keyword are stored as a list of
+ * variable-length encoded differences between consecutive indices.
+ * Changes go to a small delta that records, for each keyword, the indices
+ * added and removed since the segment was built.  Once the delta grows
+ * large compared to the segment, it is merged into a new segment in the
+ * background.
+ * <p>
+ * Lookups don't lock: they read the current segment and deltas, which are
+ * only ever replaced, never changed in place.  Changes are serialized by a
+ * lock of their own.
+ */
+public final class CompressedKeywordIndex {
+
+    /** Merges deltas into new segments. */
+    private static final Executor MERGER =
+        ExecutorsHelper.newProcessingQueue("KeywordIndexMerger");
+
+    /** The smallest delta that is merged in the background. */
+    static final int MIN_MERGE_POSTINGS = 16 * 1024;
+
+    private static final int[] NO_INDICES = new int[0];
+
+    /** Serializes changes and publishing of new states. */
+    private final Object writeLock = new Object();
+
+    /** The segment and deltas lookups read.  LOCKING: written under writeLock. */
+    private volatile State state = new State(Segment.EMPTY, null, new Delta());
+
+    /** Returns the form keywords are stored and looked up in. */
+    public String canonicalCase(String s) {
+        return s.toUpperCase(Locale.US).toLowerCase(Locale.US);
+    }
+
+    /** Adds <code>index</code> to the indices of <code>keyword</code>. */
+    public void add(String keyword, int index) {
+        keyword = canonicalCase(keyword);
+        synchronized (writeLock) {
+            Delta live = state.live;
+            live.removed(keyword, index, false);
+            live.added(keyword, index, true);
+            mergeIfNeeded();
+        }
+    }
+
+    /** Removes <code>index</code> from the indices of <code>keyword</code>. */
+    public void remove(String keyword, int index) {
+        keyword = canonicalCase(keyword);
+        synchronized (writeLock) {
+            Delta live = state.live;
+            live.added(keyword, index, false);
+            live.removed(keyword, index, true);
+            mergeIfNeeded();
+        }
+    }
+
+    /** Removes all keywords. */
+    public void clear() {
+        synchronized (writeLock) {
+            state = new State(Segment.EMPTY, null, new Delta());
+        }
+    }
+
+    /**
+     * Merges all changes into a single segment, so the index takes the
+     * least amount of space.  Blocks changes, but not lookups, while the
+     * segment is built.
+     */
+    public void compact() {
+        synchronized (writeLock) {
+            State s = state;
+            Segment merged = s.base;
+            if (s.frozen != null)
+                merged = Segment.merge(merged, s.frozen);
+            merged = Segment.merge(merged, s.live);
+            state = new State(merged, null, new Delta());
+        }
+    }
+
+    /**
+     * Returns the number of keywords in the index.  Keywords that were
+     * changed since the last merge may be counted twice.
+     */
+    public int size() {
+        State s = state;
+        int size = s.base.keywords.length + s.live.added.size();
+        if (s.frozen != null)
+            size += s.frozen.added.size();
+        return size;
+    }
+
+    /**
+     * Sets the bits of the indices of all keywords starting with
+     * <code>query[start...end - 1]</code> in <code>matches</code>.  The query
+     * must already be in canonical case.
+     */
+    public void addPrefixedBy(String query, int start, int end, BitSet matches) {
+        State s = state;
+        String prefix = query.substring(start, end);
+
+        Segment base = s.base;
+        for (int k = base.firstWithPrefix(prefix); k < base.keywords.length
+                && base.keywords[k].startsWith(prefix); k++) {
+            String keyword = base.keywords[k];
+            Postings frozenRemoved = s.frozen == null ? Postings.NONE : s.frozen.getRemoved(keyword);
+            Postings liveRemoved = s.live.getRemoved(keyword);
+            for (int i = base.offsets[k], index = 0; i < base.offsets[k + 1]; ) {
+                // decode the next difference
+                int delta = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = base.data[i++];
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                index += delta;
+                if (!frozenRemoved.contains(index) && !liveRemoved.contains(index))
+                    matches.set(index);
+            }
+        }
+
+        if (s.frozen != null) {
+            for (Map.Entry<String, Postings> entry : s.frozen.added.tailMap(prefix).entrySet()) {
+                if (!entry.getKey().startsWith(prefix))
+                    break;
+                Postings added = entry.getValue();
+                Postings liveRemoved = s.live.getRemoved(entry.getKey());
+                for (int i = 0, size = added.size; i < size; i++) {
+                    if (!liveRemoved.contains(added.values[i]))
+                        matches.set(added.values[i]);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Postings> entry : s.live.added.tailMap(prefix).entrySet()) {
+            if (!entry.getKey().startsWith(prefix))
+                break;
+            Postings added = entry.getValue();
+            for (int i = 0, size = added.size; i < size; i++)
+                matches.set(added.values[i]);
+        }
+    }
+
+    /**
+     * Hands the live delta to the merger if it has grown large compared to
+     * the segment and no merge is running.
+     *
+     * LOCKING: writeLock
+     */
+    private void mergeIfNeeded() {
+        final State s = state;
+        if (s.frozen != null
+                || s.live.postings < Math.max(MIN_MERGE_POSTINGS, s.base.postings / 4))
+            return;
+
+        state = new State(s.base, s.live, new Delta());
+        MERGER.execute(new Runnable() {
+            public void run() {
+                Segment merged = Segment.merge(s.base, s.live);
+                synchronized (writeLock) {
+                    // the index may have been cleared or compacted meanwhile
+                    if (state.frozen == s.live)
+                        state = new State(merged, null, state.live);
+                }
+            }
+        });
+    }
+
+    /** Returns true while a delta is being merged in the background. */
+    boolean isMerging() {
+        return state.frozen != null;
+    }
+
+    /**
+     * A segment and the deltas applied on top of it, oldest first.
+     */
+    private static final class State {
+        final Segment base;
+        /** The delta being merged into base, or null. */
+        final Delta frozen;
+        /** The delta changes go to. */
+        final Delta live;
+
+        State(Segment base, Delta frozen, Delta live) {
+            this.base = base;
+            this.frozen = frozen;
+            this.live = live;
+        }
+    }
+
+    /**
+     * The indices added to and removed from each keyword since the segment
+     * below was built.  No index is both added and removed for the same
+     * keyword.
+     */
+    private static final class Delta {
+        final ConcurrentSkipListMap<String, Postings> added = new ConcurrentSkipListMap<String, Postings>();
+        final ConcurrentSkipListMap<String, Postings> removed = new ConcurrentSkipListMap<String, Postings>();
+        /** The number of indices in added and removed.  LOCKING: writeLock */
+        int postings;
+
+        Postings getAdded(String keyword) {
+            Postings indices = added.get(keyword);
+            return indices == null ? Postings.NONE : indices;
+        }
+
+        Postings getRemoved(String keyword) {
+            Postings indices = removed.get(keyword);
+            return indices == null ? Postings.NONE : indices;
+        }
+
+        void added(String keyword, int index, boolean present) {
+            update(added, keyword, index, present);
+        }
+
+        void removed(String keyword, int index, boolean present) {
+            update(removed, keyword, index, present);
+        }
+
+        /**
+         * Adds or removes index to or from the indices of keyword in map.
+         * Files are mostly added in the order of their indices, so indices
+         * are appended in place where possible.  Anything else replaces the
+         * indices with a copy.
+         */
+        private void update(Map<String, Postings> map, String keyword, int index, boolean present) {
+            Postings indices = map.get(keyword);
+            if (indices == null)
+                indices = Postings.NONE;
+            int size = indices.size;
+            int i = Arrays.binarySearch(indices.values, 0, size, index);
+            if (present == i >= 0)
+                return;
+
+            if (present) {
+                postings++;
+                i = -i - 1;
+                if (i == size && size < indices.values.length) {
+                    indices.values[size] = index;
+                    indices.size = size + 1;
+                    return;
+                }
+                int[] values = new int[Math.max(4, size + (size >> 1) + 1)];
+                System.arraycopy(indices.values, 0, values, 0, i);
+                values[i] = index;
+                System.arraycopy(indices.values, i, values, i + 1, size - i);
+                map.put(keyword, new Postings(values, size + 1));
+            } else {
+                postings--;
+                if (size == 1) {
+                    map.remove(keyword);
+                    return;
+                }
+                int[] values = new int[size - 1];
+                System.arraycopy(indices.values, 0, values, 0, i);
+                System.arraycopy(indices.values, i + 1, values, i, values.length - i);
+                map.put(keyword, new Postings(values, values.length));
+            }
+        }
+    }
+
+    /**
+     * Sorted indices of a keyword in a delta.  Indices beyond the size are
+     * only ever written before the size is increased, so the valid indices
+     * can be read without locking.
+     */
+    private static final class Postings {
+        static final Postings NONE = new Postings(NO_INDICES, 0);
+
+        final int[] values;
+        /** The number of valid values.  Written after the values. */
+        volatile int size;
+
+        Postings(int[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        boolean contains(int index) {
+            return Arrays.binarySearch(values, 0, size, index) >= 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * An immutable list of sorted keywords with their indices.  The indices
+     * of keyword k are encoded in data[offsets[k]...offsets[k + 1] - 1] as
+     * the differences between consecutive indices, seven bits per byte, the
+     * highest bit set in all but the last byte of each difference.
+     */
+    private static final class Segment {
+        static final Segment EMPTY = new Segment(new String[0], new int[] { 0 }, new byte[0], 0);
+
+        final String[] keywords;
+        final int[] offsets;
+        final byte[] data;
+        /** The total number of indices. */
+        final int postings;
+
+        Segment(String[] keywords, int[] offsets, byte[] data, int postings) {
+            this.keywords = keywords;
+            this.offsets = offsets;
+            this.data = data;
+            this.postings = postings;
+        }
+
+        /** Returns the position of the first keyword not less than prefix. */
+        int firstWithPrefix(String prefix) {
+            int i = Arrays.binarySearch(keywords, prefix);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        /** Decodes the indices of the keyword at position k. */
+        int[] decode(int k) {
+            int[] indices = new int[offsets[k + 1] - offsets[k]];
+            int n = 0;
+            for (int i = offsets[k], index = 0; i < offsets[k + 1]; ) {
+                int delta = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[i++];
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                index += delta;
+                indices[n++] = index;
+            }
+            return n == indices.length ? indices : Arrays.copyOf(indices, n);
+        }
+
+        /** Returns a new segment with the changes of delta applied to base. */
+        static Segment merge(Segment base, Delta delta) {
+            Builder builder = new Builder(base.keywords.length + delta.added.size());
+            Iterator<String> added = delta.added.keySet().iterator();
+            String nextAdded = added.hasNext() ? added.next() : null;
+            int k = 0;
+            while (k < base.keywords.length || nextAdded != null) {
+                int cmp;
+                if (k == base.keywords.length)
+                    cmp = 1;
+                else if (nextAdded == null)
+                    cmp = -1;
+                else
+                    cmp = base.keywords[k].compareTo(nextAdded);
+
+                if (cmp < 0) {
+                    String keyword = base.keywords[k];
+                    builder.add(keyword, mergeIndices(base.decode(k), delta.getRemoved(keyword), NO_INDICES));
+                    k++;
+                } else if (cmp > 0) {
+                    builder.add(nextAdded, delta.getAdded(nextAdded).toArray());
+                    nextAdded = added.hasNext() ? added.next() : null;
+                } else {
+                    builder.add(nextAdded, mergeIndices(base.decode(k),
+                            delta.getRemoved(nextAdded), delta.getAdded(nextAdded).toArray()));
+                    k++;
+                    nextAdded = added.hasNext() ? added.next() : null;
+                }
+            }
+            return builder.build();
+        }
+
+        /** Returns (indices - removed) + added, all sorted. */
+        private static int[] mergeIndices(int[] indices, Postings removed, int[] added) {
+            int[] merged = new int[indices.length + added.length];
+            int n = 0, i = 0, a = 0;
+            while (i < indices.length || a < added.length) {
+                int next;
+                if (a == added.length || (i < indices.length && indices[i] < added[a])) {
+                    next = indices[i++];
+                    if (removed.contains(next))
+                        continue;
+                } else {
+                    next = added[a++];
+                    if (i < indices.length && indices[i] == next)
+                        i++;
+                }
+                merged[n++] = next;
+            }
+            return n == merged.length ? merged : Arrays.copyOf(merged, n);
+        }
+    }
+
+    /** Builds a segment from keywords added in sorted order. */
+    private static final class Builder {
+        private String[] keywords;
+        private int[] offsets;
+        private byte[] data = new byte[1024];
+        private int count, length, postings;
+
+        Builder(int expectedKeywords) {
+            keywords = new String[expectedKeywords];
+            offsets = new int[expectedKeywords + 1];
+        }
+
+        /** Adds a keyword with its sorted indices, unless there are none. */
+        void add(String keyword, int[] indices) {
+            if (indices.length == 0)
+                return;
+            if (count == keywords.length) {
+                keywords = Arrays.copyOf(keywords, count * 2 + 1);
+                offsets = Arrays.copyOf(offsets, count * 2 + 2);
+            }
+            keywords[count] = keyword;
+            int previous = 0;
+            for (int index : indices) {
+                if (data.length - length < 5)
+                    data = Arrays.copyOf(data, data.length * 2);
+                int delta = index - previous;
+                previous = index;
+                while ((delta & ~0x7F) != 0) {
+                    data[length++] = (byte)((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                data[length++] = (byte)delta;
+            }
+            postings += indices.length;
+            offsets[++count] = length;
+        }
+
+        Segment build() {
+            return new Segment(Arrays.copyOf(keywords, count), Arrays.copyOf(offsets, count + 1),
+                    Arrays.copyOf(data, length), postings);
+        }
+    }
+}
@@ -1,13 +1,11 @@
 package com.limegroup.gnutella.library;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -28,6 +26,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.limewire.collection.Comparators;
 import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.io.AppendOnlyStore;
 import org.limewire.io.IOUtils;
 import org.limewire.lifecycle.Service;
 import org.limewire.lifecycle.ServiceRegistry;
@@ -35,6 +34,7 @@ import org.limewire.listener.EventListener;
 import org.limewire.util.CommonUtils;
 import org.limewire.util.ConverterObjectInputStream;
 import org.limewire.util.GenericsUtils;
+import org.limewire.util.StringUtils;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -70,6 +70,12 @@ public final class CreationTimeCache {
     /**
      * File where creation times for files are stored.
      */
+    private final File CTIME_STORE_FILE = 
+        new File(CommonUtils.getUserSettingsDir(), "createtimes.store");
+    
+    /**
+     * File where creation times were serialized by older versions.
+     */
     private final File CTIME_CACHE_FILE = 
         new File(CommonUtils.getUserSettingsDir(), "createtimes.cache");
     
@@ -89,9 +95,10 @@ public final class CreationTimeCache {
         this.fileManager = fileManager;
         this.deserializer = deserializeQueue.submit(new Callable<Maps>() {
             public Maps call() throws Exception {
-                Map<URN, Long> urnToTime = createMap();
+                AppendOnlyStore store = AppendOnlyStore.openOrRecreate(CTIME_STORE_FILE);
+                Map<URN, Long> urnToTime = createMap(store);
                 SortedMap<Long, Set<URN>> timeToUrn = constructURNMap(urnToTime);
-                return new Maps(urnToTime, timeToUrn);
+                return new Maps(urnToTime, timeToUrn, store);
             }
         });
 	}
@@ -147,6 +154,10 @@ public final class CreationTimeCache {
         return getMaps().getTimeToUrn();
     }
     
+    private AppendOnlyStore getStore() {
+        return getMaps().getStore();
+    }
+    
     private Maps getMaps() {
         boolean interrupted = false;
         try {
@@ -201,7 +212,7 @@ public final class CreationTimeCache {
         Long time = getUrnToTime().remove(urn);
         removeURNFromURNSet(urn, time);
         if(time != null)
-            dirty = true;
+            removeStoredTime(urn);
     }
 
 
@@ -223,7 +234,7 @@ public final class CreationTimeCache {
                 // to know about one.  getFileDescForUrn prefers FDs over iFDs.
                 FileDesc fd = fileManager.getGnutellaFileList().getFileDesc(currURN);
                 if ((fd == null) || (fd.getFile() == null) || !fd.getFile().exists()) {
-                    dirty = true;
+                    removeStoredTime(currURN);
                     iter.remove();
                     if (shouldClearURNSetMap)
                         removeURNFromURNSet(currURN, cTime);
@@ -261,8 +272,29 @@ public final class CreationTimeCache {
         // populate urn to time
         Long existing = getUrnToTime().get(urn);
         if(existing == null || !existing.equals(cTime)) {
-            dirty = true;
             getUrnToTime().put(urn, cTime);
+            storeTime(urn, time);
+        }
+    }
+    
+    /** Writes the time of the urn to the store. */
+    private void storeTime(URN urn, long time) {
+        try {
+            getStore().put(StringUtils.toUTF8Bytes(urn.toString()),
+                    ByteBuffer.allocate(8).putLong(time).array());
+            dirty = true;
+        } catch(IOException iox) {
+            LOG.warn("Unable to store creation time", iox);
+        }
+    }
+    
+    /** Removes the time of the urn from the store. */
+    private void removeStoredTime(URN urn) {
+        try {
+            if(getStore().remove(StringUtils.toUTF8Bytes(urn.toString())))
+                dirty = true;
+        } catch(IOException iox) {
+            LOG.warn("Unable to remove creation time", iox);
         }
     }
 
@@ -372,23 +404,17 @@ public final class CreationTimeCache {
     
         
     /**
-     * Write cache so that we only have to calculate them once.
+     * Forces the times added since the last save to disk.
      */
     synchronized void persistCache() {
         if(!dirty)
             return;
         
-        //It's not ideal to hold a lock while writing to disk, but I doubt think
-        //it's a problem in practice.
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(CTIME_CACHE_FILE)));
-            oos.writeObject(getUrnToTime());
+            getStore().flush();
+            getStore().compactIfNeeded();
         } catch (IOException e) {
             LOG.error("Unable to write creation cache", e);
-        } finally {
-            IOUtils.close(oos);
         }
         
         dirty = false;
@@ -449,26 +475,67 @@ public final class CreationTimeCache {
 
 
     /**
-     * Loads values from cache file, if available.
+     * Loads values from the store. If a cache file of an older version
+     * exists, the store is replaced with its contents.
      */
-    Map<URN, Long> createMap() {
-        if (!CTIME_CACHE_FILE.exists()) {
+    Map<URN, Long> createMap(AppendOnlyStore store) {
+        final Map<URN, Long> map = new HashMap<URN, Long>();
+        try {
+            if (CTIME_CACHE_FILE.exists()) {
+                importCacheFile(store);
+            }
+            store.visit(new AppendOnlyStore.Visitor() {
+                public boolean visit(ByteBuffer key, ByteBuffer value) {
+                    byte[] urn = new byte[key.remaining()];
+                    key.get(urn);
+                    try {
+                        if (value.remaining() == 8) {
+                            map.put(URN.createUrnFromString(StringUtils.getUTF8String(urn)), value.getLong());
+                            return true;
+                        }
+                    } catch(IOException invalid) {
+                        LOG.warn("Invalid urn in creation time store", invalid);
+                    }
+                    dirty = true;
+                    return false;
+                }
+            });
+        } catch(IOException iox) {
             dirty = true;
-            return new HashMap<URN, Long>();
+            LOG.error("Unable to read creation time store", iox);
         }
+        return map;
+    }
+    
+    /**
+     * Replaces the contents of the store with the times in the cache file
+     * of an older version and deletes the file.
+     */
+    private void importCacheFile(AppendOnlyStore store) throws IOException {
         ObjectInputStream ois = null;
+        Map<URN, Long> map;
 		try {
             ois = new ConverterObjectInputStream(new BufferedInputStream(
                             new FileInputStream(CTIME_CACHE_FILE)));
-            Map<URN, Long> map = GenericsUtils.scanForMap(ois.readObject(), URN.class, Long.class, GenericsUtils.ScanMode.REMOVE);
-            return map;
+            map = GenericsUtils.scanForMap(ois.readObject(), URN.class, Long.class, GenericsUtils.ScanMode.REMOVE);
 	    } catch(Throwable t) {
-            dirty = true;
 	        LOG.error("Unable to read creation time file", t);
-	        return new HashMap<URN, Long>();
+	        map = new HashMap<URN, Long>();
 	    } finally {
             IOUtils.close(ois);
         }
+	    
+	    store.visit(new AppendOnlyStore.Visitor() {
+	        public boolean visit(ByteBuffer key, ByteBuffer value) {
+	            return false;
+	        }
+	    });
+	    for(Map.Entry<URN, Long> entry : map.entrySet()) {
+	        store.put(StringUtils.toUTF8Bytes(entry.getKey().toString()),
+	                ByteBuffer.allocate(8).putLong(entry.getValue()).array());
+	    }
+	    dirty = true;
+	    CTIME_CACHE_FILE.delete();
 	}
     
     private static class Maps {
@@ -476,12 +543,19 @@ public final class CreationTimeCache {
        private final Map<URN, Long> urnToTime;
        /**  Creation Time (Long) -> Set of URNs */
        private final SortedMap<Long, Set<URN>> timeToUrn;
+       /** The persistent copy of urnToTime */
+       private final AppendOnlyStore store;
        
-       Maps(Map<URN, Long> urnToTime, SortedMap<Long, Set<URN>> timeToUrn) {
+       Maps(Map<URN, Long> urnToTime, SortedMap<Long, Set<URN>> timeToUrn, AppendOnlyStore store) {
            this.urnToTime = urnToTime;
            this.timeToUrn = timeToUrn;
+           this.store = store;
            }
     
+        public AppendOnlyStore getStore() {
+            return store;
+        }
+    
         public SortedMap<Long, Set<URN>> getTimeToUrn() {
             return timeToUrn;
         }
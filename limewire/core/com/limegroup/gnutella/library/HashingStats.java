@@ -0,0 +1,124 @@
+package com.limegroup.gnutella.library;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.inspection.Inspectable;
+
+/**
+ * Keeps track of the progress and throughput of the threads
+ * that hash files for the {@link UrnCache}.
+ * <p>
+ * The per-file progress of a file that is currently being hashed is
+ * available from {@link com.limegroup.gnutella.URN#getHashingProgress(java.io.File)}.
+ */
+public class HashingStats implements Inspectable {
+
+    /** The number of files waiting to be hashed. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** The number of files currently being hashed. */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /** The number of files that finished hashing. */
+    private final AtomicInteger hashed = new AtomicInteger();
+
+    /** The number of files that couldn't be hashed. */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /** The number of bytes hashed by finished files. */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** The summed time all workers spent hashing finished files. */
+    private final AtomicLong nanos = new AtomicLong();
+
+    /** The number of threads hashing in parallel. */
+    private final int workers;
+
+    HashingStats(int workers) {
+        this.workers = workers;
+    }
+
+    void fileQueued() {
+        queued.incrementAndGet();
+    }
+
+    void fileStarted() {
+        queued.decrementAndGet();
+        active.incrementAndGet();
+    }
+
+    /** Records a file whose URNs were already known when it was dequeued. */
+    void fileSkipped() {
+        active.decrementAndGet();
+    }
+
+    void fileFinished(long length, long elapsedNanos) {
+        active.decrementAndGet();
+        hashed.incrementAndGet();
+        bytes.addAndGet(length);
+        nanos.addAndGet(elapsedNanos);
+    }
+
+    void fileFailed() {
+        active.decrementAndGet();
+        failed.incrementAndGet();
+    }
+
+    /** Returns the number of threads hashing in parallel. */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /** Returns the number of files waiting to be hashed. */
+    public int getQueuedFiles() {
+        return queued.get();
+    }
+
+    /** Returns the number of files currently being hashed. */
+    public int getActiveFiles() {
+        return active.get();
+    }
+
+    /** Returns the number of files that finished hashing. */
+    public int getHashedFiles() {
+        return hashed.get();
+    }
+
+    /** Returns the number of files that couldn't be hashed. */
+    public int getFailedFiles() {
+        return failed.get();
+    }
+
+    /** Returns the number of bytes hashed so far. */
+    public long getHashedBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the average number of bytes a single worker hashes per
+     * second, or 0 if nothing was hashed yet.
+     */
+    public long getBytesPerSecond() {
+        long time = nanos.get();
+        if (time <= 0)
+            return 0;
+        return bytes.get() * TimeUnit.SECONDS.toNanos(1) / time;
+    }
+
+    public Object inspect() {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("ver", 1);
+        data.put("workers", workers);
+        data.put("queued", getQueuedFiles());
+        data.put("active", getActiveFiles());
+        data.put("hashed", getHashedFiles());
+        data.put("failed", getFailedFiles());
+        data.put("bytes", getHashedBytes());
+        data.put("bps", getBytesPerSecond());
+        return data;
+    }
+}
@@ -2,18 +2,15 @@ package com.limegroup.gnutella.library;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
-import org.limewire.collection.Function;
 import org.limewire.collection.IdentityHashSet;
 import org.limewire.collection.IntSet;
-import org.limewire.collection.MultiIterator;
-import org.limewire.collection.StringTrie;
 import org.limewire.core.settings.SearchSettings;
 import org.limewire.core.settings.SharingSettings;
 import org.limewire.inspection.InspectableForSize;
@@ -48,30 +45,30 @@ import com.limegroup.gnutella.xml.SchemaReplyCollectionMapper;
 class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
 
     /**
-     * A trie mapping keywords in complete filenames to the indices in _files.
+     * An index mapping keywords in complete filenames to the indices in _files.
      * Keywords are the tokens when the filename is tokenized with the
      * characters from DELIMITERS as delimiters.
      * 
      * IncompleteFile keywords are NOT stored.
      * 
-     * INVARIANT: For all keys k in _keywordTrie, for all i in the IntSet
-     * _keywordTrie.get(k), _files[i]._path.substring(k)!=-1. Likewise for all
+     * INVARIANT: For all keywords k in keywordIndex, for all indices i of
+     * k, _files[i]._path.substring(k)!=-1. Likewise for all
      * i, for all k in _files[i]._path where _files[i] is not an
-     * IncompleteFileDesc, _keywordTrie.get(k) contains i.
+     * IncompleteFileDesc, the indices of k contain i.
      * 
-     * Not threadsafe, hold lock on field.
+     * Threadsafe, lookups don't lock.
      */
     @InspectableForSize("size of keyword trie")
-    private final StringTrie<IntSet> keywordTrie = new StringTrie<IntSet>(true);
+    private final CompressedKeywordIndex keywordIndex = new CompressedKeywordIndex();
 
     /**
-     * A trie mapping keywords in complete filenames to the indices in _files.
+     * An index mapping keywords in complete filenames to the indices in _files.
      * Contains ONLY incomplete keywords.
      * 
-     * Not threadsafe, hold lock on field.
+     * Threadsafe, lookups don't lock.
      */
     @InspectableForSize("size of incomplete keyword trie")
-    private final StringTrie<IntSet> incompleteKeywordTrie = new StringTrie<IntSet>(true);
+    private final CompressedKeywordIndex incompleteKeywordIndex = new CompressedKeywordIndex();
 
     private final Provider<CreationTimeCache> creationTimeCache;
 
@@ -176,10 +173,10 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
         // Normal case: query the index to find all matches. TODO: this
         // sometimes returns more results (>255) than we actually send out.
         // That's wasted work.
-        // Trie requires that getPrefixedBy(String, int, int) passes
-        // an already case-changed string. Both search & urnSearch
+        // The index requires that addPrefixedBy(String, int, int, BitSet)
+        // passes an already case-changed string. Both search & urnSearch
         // do this kind of match, so we canonicalize the case for them.
-        str = keywordTrie.canonicalCase(str);
+        str = keywordIndex.canonicalCase(str);
         IntSet matches = search(str, null, request.desiresPartialResults());
         if (request.getQueryUrns().size() > 0)
             matches = urnSearch(request.getQueryUrns(), matches);
@@ -284,9 +281,9 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
 
     private void clear(boolean complete) {
         if(complete) {
-            keywordTrie.clear();
+            keywordIndex.clear();
         } else {
-            incompleteKeywordTrie.clear();
+            incompleteKeywordIndex.clear();
         }
     }
     
@@ -334,9 +331,9 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
 
     private void removeFileDesc(FileDesc fileDesc, boolean complete) {
         if(complete) {
-            removeKeywords(keywordTrie, fileDesc);
+            removeKeywords(keywordIndex, fileDesc);
         } else {
-            removeKeywords(incompleteKeywordTrie, fileDesc);
+            removeKeywords(incompleteKeywordIndex, fileDesc);
         }
     }
 
@@ -346,49 +343,30 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
                                                 && SharingSettings.LOAD_PARTIAL_KEYWORDS.getValue();
             IncompleteFileDesc ifd = (IncompleteFileDesc) fileDesc;
             if (indexIncompleteFiles && ifd.hasUrnsAndPartialData()) {
-                loadKeywords(incompleteKeywordTrie, fileDesc);
+                loadKeywords(incompleteKeywordIndex, fileDesc);
             }
         } else {
-            loadKeywords(keywordTrie, fileDesc);
+            loadKeywords(keywordIndex, fileDesc);
         }
     }
 
     /**
-     * @param trie to update
+     * @param index to update
      * @param fd to load keywords from
      */
-    private void loadKeywords(StringTrie<IntSet> trie, FileDesc fd) {
+    private void loadKeywords(CompressedKeywordIndex index, FileDesc fd) {
         // Index the filename. For each keyword...
         String[] keywords = extractKeywords(fd);
 
-        for (String keyword : keywords) {
-            synchronized (trie) {
-                // Ensure the _keywordTrie has a set of indices associated with
-                // keyword.
-                IntSet indices = trie.get(keyword);
-                if (indices == null) {
-                    indices = new IntSet();
-                    trie.add(keyword, indices);
-                }
-                // Add fileIndex to the set.
-                indices.add(fd.getIndex());
-            }
-        }
+        for (String keyword : keywords)
+            index.add(keyword, fd.getIndex());
     }
 
-    private void removeKeywords(StringTrie<IntSet> trie, FileDesc fd) {
+    private void removeKeywords(CompressedKeywordIndex index, FileDesc fd) {
         // Remove references to this from index.
         String[] keywords = extractKeywords(fd);
-        for (String keyword : keywords) {
-            synchronized (trie) {
-                IntSet indices = trie.get(keyword);
-                if (indices != null) {
-                    indices.remove(fd.getIndex());
-                    if (indices.size() == 0)
-                        trie.remove(keyword);
-                }
-            }
-        }
+        for (String keyword : keywords)
+            index.remove(keyword, fd.getIndex());
     }
 
     /**
@@ -398,13 +376,12 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
      * returned value.
      */
     protected IntSet search(String query, IntSet priors, boolean partial) {
-        // As an optimization, we lazily allocate all sets in case there are no
-        // matches. TODO2: we can avoid allocating sets when getPrefixedBy
-        // returns an iterator of one element and there is only one keyword.
-        IntSet ret = priors;
+        BitSet ret = null;
+        boolean includeIncomplete = SharingSettings.ALLOW_PARTIAL_SHARING.getValue()
+                && SharingSettings.ALLOW_PARTIAL_RESPONSES.getValue() && partial;
 
         // For each keyword in the query.... (Note that we avoid calling
-        // StringUtils.split and take advantage of Trie's offset/limit feature.)
+        // StringUtils.split and take advantage of the index's offset/limit feature.)
         for (int i = 0; i < query.length();) {
             if (QueryUtils.isDelimiter(query.charAt(i))) {
                 i++;
@@ -416,63 +393,41 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
                     break;
             }
 
-            // Search for keyword, i.e., keywords[i...j-1].
-            Iterator<IntSet> iter;
-            synchronized (keywordTrie) {
-                iter = keywordTrie.getPrefixedBy(query, i, j);
-            }
-            if (SharingSettings.ALLOW_PARTIAL_SHARING.getValue()
-                    && SharingSettings.ALLOW_PARTIAL_RESPONSES.getValue() && partial) {
-                Iterator<IntSet> incompleteIndices;
-                synchronized (incompleteKeywordTrie) {
-                    incompleteIndices = incompleteKeywordTrie.getPrefixedBy(query, i, j);
-                }
-                iter = new MultiIterator<IntSet>(iter, incompleteIndices);
-            }
-
-            synchronized (keywordTrie) {
-                synchronized (incompleteKeywordTrie) {
-                    if (iter.hasNext()) {
-                        // Got match. Union contents of the iterator and store
-                        // in
-                        // matches. As an optimization, if this is the only
-                        // keyword and
-                        // there is only one set returned, return that set
-                        // without
-                        // copying.
-                        IntSet matches = null;
-                        while (iter.hasNext()) {
-                            IntSet s = iter.next();
-                            if (matches == null) {
-                                if (i == 0 && j == query.length() && !(iter.hasNext()))
-                                    return s;
-                                matches = new IntSet();
-                            }
-                            matches.addAll(s);
-                        }
-
-                        // Intersect matches with ret. If ret isn't allocated,
-                        // initialize to matches.
-                        if (ret == null)
-                            ret = matches;
-                        else
-                            ret.retainAll(matches);
-                    } else {
-                        // No match. Optimization: no matches for keyword =>
-                        // failure
-                        return null;
-                    }
-
-                    // Optimization: no matches after intersect => failure
-                    if (ret.size() == 0)
-                        return null;
-                    i = j;
-                }
-            }
+            // Search for keyword, i.e., keywords[i...j-1], and union the
+            // indices of all keywords it is a prefix of.
+            BitSet matches = new BitSet();
+            keywordIndex.addPrefixedBy(query, i, j, matches);
+            if (includeIncomplete)
+                incompleteKeywordIndex.addPrefixedBy(query, i, j, matches);
+
+            // No match. Optimization: no matches for keyword => failure
+            if (matches.isEmpty())
+                return null;
+
+            // Intersect matches with ret. If ret isn't allocated,
+            // initialize to matches.
+            if (ret == null)
+                ret = matches;
+            else
+                ret.and(matches);
+
+            // Optimization: no matches after intersect => failure
+            if (ret.isEmpty())
+                return null;
+            i = j;
         }
-        if (ret == null || ret.size() == 0)
+        if (ret == null)
+            return priors == null || priors.size() == 0 ? null : priors;
+
+        // adding in increasing order only ever extends the last interval
+        IntSet result = new IntSet(ret.cardinality());
+        for (int i = ret.nextSetBit(0); i >= 0; i = ret.nextSetBit(i + 1))
+            result.add(i);
+        if (priors != null)
+            result.retainAll(priors);
+        if (result.size() == 0)
             return null;
-        return ret;
+        return result;
     }
 
     /**
@@ -494,16 +449,8 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
      * performance, not correctness; hence no modifies clause.
      */
     private void trim() {
-        for (StringTrie<IntSet> trie : new StringTrie[] { keywordTrie, incompleteKeywordTrie }) {
-            synchronized (trie) {
-                trie.trim(new Function<IntSet, IntSet>() {
-                    public IntSet apply(IntSet intSet) {
-                        intSet.trim();
-                        return intSet;
-                    }
-                });
-            }
-        }
+        keywordIndex.compact();
+        incompleteKeywordIndex.compact();
     }
 
     /**
@@ -1,17 +1,16 @@
 package com.limegroup.gnutella.library;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
@@ -24,14 +23,24 @@ import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.concurrent.ListeningExecutorService;
 import org.limewire.concurrent.ListeningFuture;
 import org.limewire.concurrent.SimpleFuture;
+import org.limewire.core.settings.SharingSettings;
+import org.limewire.inspection.InspectionPoint;
+import org.limewire.io.AppendOnlyStore;
 import org.limewire.io.IOUtils;
 import org.limewire.util.CommonUtils;
 import org.limewire.util.ConverterObjectInputStream;
 import org.limewire.util.GenericsUtils;
+import org.limewire.util.StringUtils;
 
+import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.UrnSet;
+import com.limegroup.gnutella.tigertree.HashTree;
+import com.limegroup.gnutella.tigertree.HashTreeCache;
+import com.limegroup.gnutella.tigertree.HashTreeFactory;
+import com.limegroup.gnutella.tigertree.LeafNodeHasher;
 
 
 /**
@@ -51,6 +60,13 @@ public final class UrnCache {
     /**
      * File where urns (currently SHA1 urns) for files are stored.
      */
+    private static final File URN_STORE_FILE = 
+        new File(CommonUtils.getUserSettingsDir(), "fileurns.store");
+    
+    /**
+     * File where urns were serialized by older versions, imported
+     * into the store the first time it is opened.
+     */
     private static final File URN_CACHE_FILE = 
         new File(CommonUtils.getUserSettingsDir(), "fileurns.cache");
 
@@ -61,31 +77,57 @@ public final class UrnCache {
         new File(CommonUtils.getUserSettingsDir(), "fileurns.bak");
     
     /**
-     * The ProcessingQueue that Files are hashed in.
+     * The thread pool that Files are hashed in.
      */
-    private final ListeningExecutorService QUEUE =
-        ExecutorsHelper.newProcessingQueue("Hasher");
+    private final ListeningExecutorService QUEUE;
+    
+    /** Progress and throughput of the hashing threads. */
+    @InspectionPoint("hashing stats")
+    private final HashingStats stats;
+    
+    /**
+     * The cache the trees calculated alongside the URNs are added to,
+     * null if trees should not be calculated.
+     */
+    private final Provider<HashTreeCache> hashTreeCache;
+    
+    private final Provider<HashTreeFactory> hashTreeFactory;
     
     /**
      * Whether or not data is dirty since the last time we saved.
      */
     private volatile boolean dirty = false;
     
-    /** The future that will contain the URN_MAP when it is done. */
-    private final Future<Map<UrnSetKey, Set<URN>>> deserializer;
+    /** The future that will contain the store when it is opened. */
+    private final Future<AppendOnlyStore> opener;
 
     /**
-     * Create and initialize urn cache.
+     * Create and initialize an urn cache that only calculates URNs.
      */
     UrnCache() {
-        deserializer = QUEUE.submit(new Callable<Map<UrnSetKey, Set<URN>>>() {
-            @SuppressWarnings("unchecked")
-            public Map<UrnSetKey, Set<URN>> call() {
+        this(null, null);
+    }
+    
+    /**
+     * Create and initialize urn cache.
+     */
+    @Inject
+    UrnCache(Provider<HashTreeCache> hashTreeCache, Provider<HashTreeFactory> hashTreeFactory) {
+        this.hashTreeCache = hashTreeCache;
+        this.hashTreeFactory = hashTreeFactory;
+        int workers = Math.max(1, SharingSettings.HASHING_THREADS.getValue());
+        QUEUE = ExecutorsHelper.newFixedSizeThreadPool(workers, "Hasher");
+        stats = new HashingStats(workers);
+        opener = QUEUE.submit(new Callable<AppendOnlyStore>() {
+            public AppendOnlyStore call() throws IOException {
                 // This cannot be inside a synchronized block, otherwise other methods
                 // can block its construction.
-                Map map = createMap();
-                dirty = scanAndRemoveOldEntries(map);
-                return map;
+                AppendOnlyStore store = AppendOnlyStore.openOrRecreate(URN_STORE_FILE);
+                if(importOldCache(store))
+                    dirty = true;
+                if(scanAndRemoveOldEntries(store))
+                    dirty = true;
+                return store;
             }
         });
 	}
@@ -107,6 +149,7 @@ public final class UrnCache {
             if (urns.isEmpty()) {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding: " + file + " to be hashed.");
+                stats.fileQueued();
                 return QUEUE.submit(new Processor(file));
             }
         }
@@ -132,55 +175,114 @@ public final class UrnCache {
 			return Collections.emptySet();
         }
 
-		UrnSetKey key = new UrnSetKey(file);
-		if(key._modTime != modified) {
-		    return Collections.emptySet();
-		} else { 
-    		Set<URN> cachedUrns = getUrnMap().get(key);
-    		if(cachedUrns == null) {
-    			return Collections.emptySet();
-    		} else { 
-    		    return cachedUrns;
-    		}
-		}
+        try {
+            ByteBuffer value = getStore().get(createKey(file));
+            if(value == null || value.getLong() != modified || value.getLong() != file.length())
+                return Collections.emptySet();
+            return readUrns(value);
+        } catch(IOException iox) {
+            LOG.warn("Unable to read URNs", iox);
+            return Collections.emptySet();
+        }
     }
     
     /**
      * Removes any URNs that associated with a specified file.
      */
     public synchronized void removeUrns(File f) {
-        UrnSetKey k = new UrnSetKey(f);
-        getUrnMap().remove(k);
-        dirty = true;
+        try {
+            if(getStore().remove(createKey(f)))
+                dirty = true;
+        } catch(IOException iox) {
+            LOG.warn("Unable to remove URNs", iox);
+        }
     }
 
     /**
-     * Add URNs for the specified <tt>FileDesc</tt> instance to URN_MAP.
+     * Add URNs for the specified <tt>FileDesc</tt> instance to the store.
 	 *
 	 * @param file the <tt>File</tt> instance containing URNs to store
      */
     public synchronized void addUrns(File file, Set<? extends URN> urns) {
-		UrnSetKey key = new UrnSetKey(file);
-        getUrnMap().put(key, Collections.unmodifiableSet(urns));
-        dirty = true;
+        try {
+            getStore().put(createKey(file), createValue(file.lastModified(), file.length(), urns));
+            dirty = true;
+        } catch(IOException iox) {
+            LOG.warn("Unable to store URNs", iox);
+        }
     }
-        
+    
+    /** Returns the key a file's URNs are stored under: its absolute path. */
+    private static byte[] createKey(File file) {
+        return StringUtils.toUTF8Bytes(file.getAbsolutePath());
+    }
+    
+    /**
+     * Returns the value a file's URNs are stored as: the modification time
+     * and the size of the file followed by each URN as a length-prefixed 
+     * string.
+     */
+    private static byte[] createValue(long modTime, long size, Set<? extends URN> urns) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(modTime);
+            out.writeLong(size);
+            for(URN urn : urns)
+                out.writeUTF(urn.toString());
+        } catch(IOException impossible) {
+            throw new RuntimeException(impossible);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /** Reads the URNs that follow the modification time and size in a stored value. */
+    private static Set<URN> readUrns(ByteBuffer value) throws IOException {
+        UrnSet urns = new UrnSet();
+        while(value.hasRemaining()) {
+            int length = value.getShort() & 0xFFFF;
+            if(length > value.remaining())
+                throw new IOException("invalid urn length: " + length);
+            byte[] urn = new byte[length];
+            value.get(urn);
+            urns.add(URN.createUrnFromString(StringUtils.getUTF8String(urn)));
+        }
+        return Collections.unmodifiableSet(urns);
+    }
+    
     /**
-     * Loads values from cache file, if available.  If the cache file is
-     * not readable, tries the backup.
+     * Imports the serialized map of older versions into the store and
+     * deletes it.
+     * 
+     * @return true if anything was imported
      */
-    private static Map createMap() {
-        Map result;
-        result = readMap(URN_CACHE_FILE);
-        if(result == null)
-            result = readMap(URN_CACHE_BACKUP_FILE);
-        if(result == null)
-            result = new HashMap<Object, Object>();
-        return result;
+    @SuppressWarnings("unchecked")
+    private static boolean importOldCache(AppendOnlyStore store) throws IOException {
+        Map map = readMap(URN_CACHE_FILE);
+        if(map == null)
+            map = readMap(URN_CACHE_BACKUP_FILE);
+        URN_CACHE_FILE.delete();
+        URN_CACHE_BACKUP_FILE.delete();
+        if(map == null)
+            return false;
+        
+        for(Map.Entry<Object, Object> entry : ((Map<Object, Object>)map).entrySet()) {
+            if(!(entry.getKey() instanceof UrnSetKey) || !(entry.getValue() instanceof Set))
+                continue;
+            UrnSetKey key = (UrnSetKey)entry.getKey();
+            Set<URN> urns = GenericsUtils.scanForSet(entry.getValue(),
+                                                     URN.class,
+                                                     GenericsUtils.ScanMode.NEW_COPY_REMOVED,
+                                                     UrnSet.class);
+            if(!urns.isEmpty())
+                store.put(StringUtils.toUTF8Bytes(key._path), 
+                        createValue(key._modTime, new File(key._path).length(), urns));
+        }
+        return true;
     }
     
     /**
-     * Loads values from cache file, if available.
+     * Loads values from an old cache file, if available.
      * 
      * @return null if the file does not exist or there was an error
      * reading the map from the file.
@@ -206,87 +308,97 @@ public final class UrnCache {
 	}
 
 	/**
-	 * Removes any stale entries from the map so that they will automatically
+	 * Removes any stale entries from the store so that they will automatically
 	 * be replaced.
 	 *
-	 * @param map the <tt>Map</tt> to check
+	 * @param store the <tt>AppendOnlyStore</tt> to check
 	 */
-    private static boolean scanAndRemoveOldEntries(Map<Object, Object> map) {
+    private static boolean scanAndRemoveOldEntries(AppendOnlyStore store) throws IOException {
         // discard outdated info
-        boolean dirty = false;
-        for(Iterator<Map.Entry<Object, Object>> i = map.entrySet().iterator(); i.hasNext(); ) {
-            Map.Entry<Object, Object> entry = i.next();
-            if(!(entry.getKey() instanceof UrnSetKey)) {
-                i.remove();
-                dirty = true;
-                continue;
-            }
-            
-            UrnSetKey key = (UrnSetKey)entry.getKey();
-            File f = new File(key._path);
-            if (!f.exists() || f.lastModified() != key._modTime) {
-                dirty = true;
-                i.remove();
-                continue;
-            }
-            
-            if(!(entry.getValue() instanceof Set)) {
-                i.remove();
-                dirty = true;
-                continue;
-            }
-            
-            Set<URN> set = GenericsUtils.scanForSet(entry.getValue(),
-                                                    URN.class,
-                                                    GenericsUtils.ScanMode.NEW_COPY_REMOVED,
-                                                    UrnSet.class);
-            if(set.isEmpty()) {
-                i.remove();
-                dirty = true;
-                continue;
-            }
-            
-            if(set != entry.getValue()) { // if it changed, replace the value w/ unmodifiable
-                dirty = true;
-                entry.setValue(Collections.unmodifiableSet(set));
+        final boolean[] dirty = new boolean[1];
+        store.visit(new AppendOnlyStore.Visitor() {
+            public boolean visit(ByteBuffer key, ByteBuffer value) {
+                byte[] path = new byte[key.remaining()];
+                key.get(path);
+                File f = new File(StringUtils.getUTF8String(path));
+                if(value.remaining() < 16 || !f.exists() || f.lastModified() != value.getLong()
+                        || f.length() != value.getLong()) {
+                    dirty[0] = true;
+                    return false;
+                }
+                return true;
             }
-        }
-        return dirty;
+        });
+        return dirty[0];
     }
     
     /**
-     * Write cache so that we only have to calculate them once.
+     * Forces recent changes to disk, compacting the store if it has
+     * accumulated too many outdated entries.
      */
     synchronized void persistCache() {
-        getUrnMap(); // make sure it's finished constructing.
+        AppendOnlyStore store = getStore(); // make sure it's finished opening.
         
         if(!dirty)
             return;
         
-        //It's not ideal to hold a lock while writing to disk, but I doubt think
-        //it's a problem in practice.
-        URN_CACHE_FILE.renameTo(URN_CACHE_BACKUP_FILE);
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(URN_CACHE_FILE)));
-            oos.writeObject(getUrnMap());
-            oos.flush();
+            store.flush();
+            store.compactIfNeeded();
         } catch (IOException e) {
             LOG.error("Unable to persist cache", e);
-        } finally {
-            IOUtils.close(oos);
         }
         
         dirty = false;
     }
     
-    private Map<UrnSetKey, Set<URN>> getUrnMap() {
+    /**
+     * Persists the cache and closes its store, the cache cannot be used
+     * afterwards.
+     */
+    synchronized void close() {
+        persistCache();
+        getStore().close();
+    }
+    
+    /**
+     * Returns the progress and throughput of the hashing threads.
+     */
+    public HashingStats getHashingStats() {
+        return stats;
+    }
+    
+    /**
+     * Returns a hasher for the tree leaves of the file if the tree should
+     * be calculated along with the URNs, null otherwise.
+     */
+    private LeafNodeHasher createLeafHasher(File file) {
+        if(hashTreeCache == null || !SharingSettings.HASH_TREES_WITH_URNS.getValue())
+            return null;
+        return new LeafNodeHasher(file.length());
+    }
+    
+    /**
+     * Builds the tree from the leaves that were calculated while hashing
+     * and hands it to the tree cache, so the file does not need to be
+     * read again to serve the tree.
+     */
+    private void addHashTree(URN sha1, LeafNodeHasher leafHasher) {
+        try {
+            HashTree tree = hashTreeFactory.get().createHashTree(leafHasher.getNodes(),
+                    leafHasher.getNodeSize(), sha1, leafHasher.getFileSize());
+            hashTreeCache.get().addHashTree(sha1, tree);
+        } catch(IOException e) {
+            LOG.warn("Unable to calculate hash tree", e);
+        }
+    }
+    
+    private AppendOnlyStore getStore() {
         boolean interrupted = Thread.interrupted();
         try {
             while(true) {
                 try {
-                    return deserializer.get();
+                    return opener.get();
                 }catch (InterruptedException tryAgain) {
                     interrupted = true;
                 }
@@ -308,6 +420,7 @@ public final class UrnCache {
         
         public Set<URN> call() {
             Set<URN> urns;
+            stats.fileStarted();
             
             synchronized(UrnCache.this) {
                 urns = getUrns(file); // already calculated?
@@ -317,14 +430,24 @@ public final class UrnCache {
             if(urns.isEmpty()) {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Hashing file: " + file);
+                long start = System.nanoTime();
+                LeafNodeHasher leafHasher = createLeafHasher(file);
                 try {
-                    urns = URN.generateUrnsFromFile(file);
-                    addUrns(file, urns);
+                    UrnSet urnSet = URN.generateUrnsFromFile(file, leafHasher);
+                    addUrns(file, urnSet);
+                    urns = urnSet;
+                    stats.fileFinished(file.length(), System.nanoTime() - start);
+                    if(leafHasher != null)
+                        addHashTree(UrnSet.getSha1(urnSet), leafHasher);
                 } catch(IOException ignored) {
+                    stats.fileFailed();
                     LOG.warn("Unable to calculate URNs", ignored);
                 } catch(InterruptedException ignored) {
+                    stats.fileFailed();
                     LOG.warn("Unable to calculate URNs", ignored);
                 }
+            } else {
+                stats.fileSkipped();
             }
             
             return urns;
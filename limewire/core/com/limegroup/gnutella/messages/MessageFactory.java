@@ -112,6 +112,13 @@ public interface MessageFactory {
      */
     public Message createMessage(byte[] header, byte[] payload, Network network,
             byte softMax, SocketAddress addr) throws BadPacketException, IOException;
+    
+    /**
+     * Returns true if messages with the provided functionId are parsed by a
+     * {@link PooledPayloadParser}.  The payload of such messages does not
+     * need to be unique; it may be read into a {@link PooledPayload}.
+     */
+    public boolean isPayloadPoolable(byte functionId);
 
 
     /**
@@ -121,5 +128,13 @@ public interface MessageFactory {
         public Message parse(byte[] header, byte[] payload,
                 Network network, byte softMax, SocketAddress addr) throws BadPacketException, IOException;
     }
+    
+    /**
+     * A MessageParser whose messages either copy everything they need out
+     * of the payload while parsing, or are {@link PooledMessage PooledMessages}
+     * that retain the {@link PooledPayload} the payload was read into.
+     */
+    public interface PooledPayloadParser extends MessageParser {
+    }
    
 }
\ No newline at end of file
@@ -28,6 +28,17 @@ public class MessageFactoryImpl implements MessageFactory {
     /** Array of MessageParser(s) */
     private final MessageParser[] PARSERS = new MessageParser[0xFF + 1];
     
+    /**
+     * Scratch space for reading headers when the caller doesn't provide any.
+     * Parsers copy what they need out of the header, so it can be reused.
+     */
+    private static final ThreadLocal<byte[]> HEADER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[23];
+        }
+    };
+    
     /**
      * Cached soft max ttl -- if the TTL+hops is greater than SOFT_MAX,
      * the TTL is set to SOFT_MAX-hops.
@@ -64,15 +75,19 @@ public class MessageFactoryImpl implements MessageFactory {
     public MessageParser getParser(byte functionId) {
         return PARSERS[functionId & 0xFF];
     }
+    
+    public boolean isPayloadPoolable(byte functionId) {
+        return getParser(functionId) instanceof PooledPayloadParser;
+    }
 
     public Message read(InputStream in, Network network)
             throws BadPacketException, IOException {
-        return read(in, network, new byte[23], defaultSoftMax, null);
+        return read(in, network, HEADER_BUFFER.get(), defaultSoftMax, null);
     }
 
     public Message read(InputStream in, Network network, byte softMax)
             throws BadPacketException, IOException {
-        return read(in, network, new byte[23], softMax, null);
+        return read(in, network, HEADER_BUFFER.get(), softMax, null);
     }
 
     public Message read(InputStream in, Network network, byte[] buf, byte softMax)
@@ -9,6 +9,7 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.limegroup.gnutella.messages.Message.Network;
 import com.limegroup.gnutella.messages.MessageFactory.MessageParser;
+import com.limegroup.gnutella.messages.MessageFactory.PooledPayloadParser;
 import com.limegroup.gnutella.messages.vendor.VendorMessageFactory;
 import com.limegroup.gnutella.routing.RouteTableMessage;
 
@@ -153,7 +154,11 @@ public class MessageParserBinderImpl implements MessageParserBinder {
         }
     }
     
-    private static class RouteTableUpdateParser extends GnutellaMessageParser {
+    /** 
+     * Resets copy their values out of the payload and patches hold on to
+     * its pooled buffer until they were handled.
+     */
+    private static class RouteTableUpdateParser extends GnutellaMessageParser implements PooledPayloadParser {
         @Override
         protected Message parse(byte[] guid, byte ttl, byte hops, 
                 byte[] payload, Network network) throws BadPacketException {
@@ -0,0 +1,20 @@
+package com.limegroup.gnutella.messages;
+
+/**
+ * A message that refers to the {@link PooledPayload} it was read from 
+ * instead of copying its payload.  The payload is released once the message
+ * was handled; the message's data must not be used after that.
+ */
+public interface PooledMessage extends Message {
+    
+    /**
+     * Tells the message that its payload was read into <code>payload</code>.
+     * The message retains the payload if it keeps a reference to it.
+     */
+    public void setPooledPayload(PooledPayload payload);
+    
+    /**
+     * Releases the pooled payload of this message, if it has one.
+     */
+    public void releasePayload();
+}
@@ -0,0 +1,72 @@
+package com.limegroup.gnutella.messages;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.limewire.nio.ByteBufferCache;
+
+/**
+ * A message payload that was read into a buffer from a 
+ * {@link ByteBufferCache}.  The payload is reference counted: whoever 
+ * creates it holds the first reference, everyone else who keeps the buffer 
+ * must {@link #retain()} it.  The buffer is returned to the cache once every
+ * reference was released, so nobody may use it afterwards.
+ */
+public class PooledPayload {
+    
+    private final ByteBufferCache cache;
+    
+    private final ByteBuffer buffer;
+    
+    private final AtomicInteger references = new AtomicInteger(1);
+    
+    /**
+     * Takes a buffer of <code>length</code> bytes from <code>cache</code>.
+     */
+    public PooledPayload(ByteBufferCache cache, int length) {
+        this.cache = cache;
+        this.buffer = cache.getHeap(length);
+    }
+    
+    /** Returns the buffer to read the payload into. */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+    
+    /** Returns the array backing the buffer. */
+    public byte[] array() {
+        return buffer.array();
+    }
+    
+    /**
+     * Adds a reference to the payload.
+     * 
+     * @throws IllegalStateException if the payload was released already
+     */
+    public PooledPayload retain() {
+        while(true) {
+            int current = references.get();
+            if(current <= 0)
+                throw new IllegalStateException("payload was released");
+            if(references.compareAndSet(current, current + 1))
+                return this;
+        }
+    }
+    
+    /**
+     * Releases a reference to the payload, the buffer goes back to the cache
+     * when the last one is released.
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if(remaining == 0)
+            cache.release(buffer);
+        else if(remaining < 0)
+            throw new IllegalStateException("payload was released too often");
+    }
+    
+    /** Returns whether the buffer was returned to the cache. */
+    public boolean isReleased() {
+        return references.get() <= 0;
+    }
+}
@@ -5,6 +5,7 @@ import java.util.Set;
 import org.limewire.security.AddressSecurityToken;
 
 import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.routing.QueryRouteHashes;
 import com.limegroup.gnutella.xml.LimeXMLDocument;
 
 public interface QueryRequest extends Message {
@@ -285,4 +286,10 @@ public interface QueryRequest extends Message {
      * @return whether or not a response to this query should include XML.
      */
     public boolean shouldIncludeXMLInResponse();
+    
+    /**
+     * Returns the hashes query route tables of the given size look up for
+     * this query.  They are computed once per size.
+     */
+    public QueryRouteHashes getQueryRouteHashes(int tableSize);
 }
\ No newline at end of file
@@ -28,7 +28,9 @@ import org.xml.sax.SAXException;
 
 import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.UrnSet;
+import com.limegroup.gnutella.routing.QueryRouteHashes;
 import com.limegroup.gnutella.util.QueryUtils;
+import com.limegroup.gnutella.util.Utilities;
 import com.limegroup.gnutella.messages.HUGEExtension.GGEPBlock;
 import com.limegroup.gnutella.xml.LimeXMLDocument;
 import com.limegroup.gnutella.xml.LimeXMLDocumentFactory;
@@ -115,6 +117,12 @@ public class QueryRequestImpl extends AbstractMessage implements QueryRequest {
 	 * Cached hash code for this instance.
 	 */
 	private volatile int _hashCode = 0;
+	
+	/**
+	 * The query route hashes computed so far, indexed by the log2 of the
+	 * table size they were computed for.
+	 */
+	private volatile QueryRouteHashes[] _routeHashes;
     
 	/**
      * Cached illegal characters in search strings.
@@ -789,6 +797,23 @@ public class QueryRequestImpl extends AbstractMessage implements QueryRequest {
         return desiresXMLResponses() || desiresOutOfBandReplies();
     }
     
+    public QueryRouteHashes getQueryRouteHashes(int tableSize) {
+        QueryRouteHashes[] cache = _routeHashes;
+        if (cache == null) {
+            cache = new QueryRouteHashes[32];
+            _routeHashes = cache;
+        }
+        // if two threads compute the same hashes at once, either result
+        // is fine to keep
+        int index = Utilities.log2(tableSize);
+        QueryRouteHashes hashes = cache[index];
+        if (hashes == null || hashes.getTableSize() != tableSize) {
+            hashes = new QueryRouteHashes(this, tableSize);
+            cache[index] = hashes;
+        }
+        return hashes;
+    }
+    
     @Override
     public Class<? extends Message> getHandlerClass() {
         return QueryRequest.class;
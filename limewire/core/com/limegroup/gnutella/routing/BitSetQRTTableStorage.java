@@ -1,72 +1,87 @@
 package com.limegroup.gnutella.routing;
 
+import java.util.Arrays;
 import java.util.Iterator;
 
-import org.limewire.collection.BitSet;
 import org.limewire.collection.UnmodifiableIterator;
 
 /**
- * Implementation of QRTTableStorage which uses a BitSet.
+ * Implementation of QRTTableStorage which packs the table into a
+ * <code>long[]</code> covering the whole table, so that looking up
+ * an entry is a single array access.
  */
 class BitSetQRTTableStorage implements QRTTableStorage {
 
-    private final BitSet bitSet;
+    private final long[] words;
     private final int bitTableLength;
-    
-    private BitSet cachedResizedSet;
-    private int cachedResizedSetLength;
-    
+
+    private BitSetQRTTableStorage cachedResized;
+
     BitSetQRTTableStorage(int bitTableLength) {
-        this.bitTableLength = bitTableLength;
-        this.bitSet = new BitSet();
+        this(new long[(bitTableLength + 63) >>> 6], bitTableLength);
     }
-    
+
     /**
      * copy constructor.
      */
-    private BitSetQRTTableStorage(BitSet bitSet, int bitTableLength) {
-        this.bitSet = bitSet;
+    private BitSetQRTTableStorage(long[] words, int bitTableLength) {
+        this.words = words;
         this.bitTableLength = bitTableLength;
     }
-    
+
     public double getPercentFull() {
-        return bitSet.cardinality() * 100.0 / bitTableLength;
+        return cardinality() * 100.0 / bitTableLength;
     }
-    
+
     @Override
     public QRTTableStorage clone() throws CloneNotSupportedException {
-        return new BitSetQRTTableStorage((BitSet)bitSet.clone(), bitTableLength);
+        return new BitSetQRTTableStorage(words.clone(), bitTableLength);
     }
-    
-    public void clear(int hash) {
-        cachedResizedSet = null;
-        bitSet.clear(hash);
 
+    public void clear(int hash) {
+        cachedResized = null;
+        words[hash >>> 6] &= ~(1L << hash);
     }
 
+    /** Does nothing, the table is always fully allocated. */
     public void compact() {
-        bitSet.compact();
     }
 
+    /**
+     * Returns the number of words up to the last one with entries,
+     * like a compacted BitSet would use.
+     */
     public int getUnitsInUse() {
-        return bitSet.getUnitsInUse();
+        int i = words.length;
+        while (i > 0 && words[i - 1] == 0)
+            i--;
+        return i;
     }
 
     public int getUnusedUnits() {
-        return bitSet.unusedUnits();
+        return numUnitsWithLoad(0);
     }
 
     public int numUnitsWithLoad(int load) {
-        return bitSet.numUnitsWithLoad(load);
+        int sum = 0;
+        int units = getUnitsInUse();
+        for (int i = 0; i < units; i++) {
+            if (Long.bitCount(words[i]) == load)
+                sum++;
+        }
+        return sum;
     }
 
     public void or(QRTTableStorage other) {
-        if (other instanceof BitSetQRTTableStorage) {
-            BitSetQRTTableStorage optimized = (BitSetQRTTableStorage) other;
-            bitSet.or(optimized.bitSet);
+        cachedResized = null;
+        if (other instanceof BitSetQRTTableStorage
+                && ((BitSetQRTTableStorage)other).words.length == words.length) {
+            long[] otherWords = ((BitSetQRTTableStorage)other).words;
+            for (int i = 0; i < words.length; i++)
+                words[i] |= otherWords[i];
         } else {
-            for (int i : other) 
-                bitSet.set(i);
+            for (int i : other)
+                set(i);
         }
     }
 
@@ -75,15 +90,14 @@ class BitSetQRTTableStorage implements QRTTableStorage {
         // return it
         if (bitTableLength == newSize)
             return this;
-        
+
         // if we already have a cached resizedQRT and
         // it is the correct size, then use it.
-        if (cachedResizedSet != null && cachedResizedSetLength == newSize)
-            return new BitSetQRTTableStorage(cachedResizedSet, cachedResizedSetLength);
-        
-        cachedResizedSet = new BitSet();
-        cachedResizedSetLength = newSize;
-        
+        if (cachedResized != null && cachedResized.bitTableLength == newSize)
+            return new BitSetQRTTableStorage(cachedResized.words, newSize);
+
+        BitSetQRTTableStorage resized = new BitSetQRTTableStorage(newSize);
+
         //This algorithm scales between tables of different lengths.
         //Refer to the query routing paper for a full explanation.
         //(The below algorithm, contributed by Philippe Verdy,
@@ -91,46 +105,77 @@ class BitSetQRTTableStorage implements QRTTableStorage {
         // as both double & float can cause precision problems on machines
         // with odd setups, causing the wrong values to be set in tables)
         final int m = this.bitTableLength;
-        final int m2 = cachedResizedSetLength;
-        for (int i = this.bitSet.nextSetBit(0); i >= 0;
-          i = this.bitSet.nextSetBit(i + 1)) {
+        final int m2 = newSize;
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
              // floor(i*m2/m)
              final int firstSet = (int)(((long)i * m2) / m);
-             i = this.bitSet.nextClearBit(i + 1);
+             i = Math.min(nextClearBit(i + 1), m);
              // ceil(i*m2/m)
              final int lastNotSet = (int)(((long)i * m2 - 1) / m + 1);
-             cachedResizedSet.set(firstSet, lastNotSet);
+             for (int j = firstSet; j < lastNotSet; j++)
+                 resized.words[j >>> 6] |= 1L << j;
         }
-        
-        return new BitSetQRTTableStorage(cachedResizedSet, cachedResizedSetLength);
+
+        cachedResized = resized;
+        return new BitSetQRTTableStorage(resized.words, newSize);
     }
 
     public void set(int hash) {
-        cachedResizedSet = null;
-        bitSet.set(hash);
+        cachedResized = null;
+        words[hash >>> 6] |= 1L << hash;
     }
 
     public void xor(QRTTableStorage other) {
-        if (other instanceof BitSetQRTTableStorage) {
-            BitSetQRTTableStorage optimized = (BitSetQRTTableStorage) other;
-            bitSet.xor(optimized.bitSet);
+        cachedResized = null;
+        if (other instanceof BitSetQRTTableStorage
+                && ((BitSetQRTTableStorage)other).words.length == words.length) {
+            long[] otherWords = ((BitSetQRTTableStorage)other).words;
+            for (int i = 0; i < words.length; i++)
+                words[i] ^= otherWords[i];
         } else {
-            for (int i=0; i < bitTableLength; i++) 
-                bitSet.set(i,bitSet.get(i) != other.get(i));
+            for (int i : other)
+                words[i >>> 6] ^= 1L << i;
         }
+    }
 
+    public boolean containsAll(int[] hashes) {
+        for (int hash : hashes) {
+            if ((words[hash >>> 6] & (1L << hash)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public boolean containsAny(int[] hashes) {
+        for (int hash : hashes) {
+            if ((words[hash >>> 6] & (1L << hash)) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    public int countContained(int[] hashes) {
+        int count = 0;
+        for (int hash : hashes) {
+            if ((words[hash >>> 6] & (1L << hash)) != 0)
+                count++;
+        }
+        return count;
     }
 
     public Iterator<Integer> iterator() {
         return new BitSetIterator();
     }
-    
+
     public int cardinality() {
-        return bitSet.cardinality();
+        int sum = 0;
+        for (long word : words)
+            sum += Long.bitCount(word);
+        return sum;
     }
 
     public boolean get(int i) {
-        return bitSet.get(i);
+        return (words[i >>> 6] & (1L << i)) != 0;
     }
 
     public int maxSize() {
@@ -138,43 +183,63 @@ class BitSetQRTTableStorage implements QRTTableStorage {
     }
 
     public int nextClearBit(int i) {
-        return bitSet.nextClearBit(i);
+        int u = i >>> 6;
+        if (u >= words.length)
+            return i;
+        long word = ~words[u] & (-1L << i);
+        while (true) {
+            if (word != 0)
+                return (u << 6) + Long.numberOfTrailingZeros(word);
+            if (++u == words.length)
+                return words.length << 6;
+            word = ~words[u];
+        }
     }
 
     public int nextSetBit(int i) {
-        return bitSet.nextSetBit(i);
+        int u = i >>> 6;
+        if (u >= words.length)
+            return -1;
+        long word = words[u] & (-1L << i);
+        while (true) {
+            if (word != 0)
+                return (u << 6) + Long.numberOfTrailingZeros(word);
+            if (++u == words.length)
+                return -1;
+            word = words[u];
+        }
     }
-    
+
     @Override
     public boolean equals(Object o) {
-        if (! (o instanceof QRTTableStorage)) 
+        if (! (o instanceof QRTTableStorage))
             return false;
-        
-        if (o instanceof BitSetQRTTableStorage) {
-            BitSetQRTTableStorage other = (BitSetQRTTableStorage)o;
-            return bitSet.equals(other.bitSet);
+
+        if (o instanceof BitSetQRTTableStorage
+                && ((BitSetQRTTableStorage)o).words.length == words.length) {
+            return Arrays.equals(words, ((BitSetQRTTableStorage)o).words);
         }
-        
+
         QRTTableStorage other = (QRTTableStorage)o;
         if (cardinality() != other.cardinality())
             return false;
         for (int i : other) {
-            if (!get(i))
+            if (i >= bitTableLength || !get(i))
                 return false;
         }
         return true;
     }
 
     private class BitSetIterator extends UnmodifiableIterator<Integer> {
-        private int current = bitSet.nextSetBit(0);
-        
+        private int current = nextSetBit(0);
+
         public boolean hasNext() {
             return current >= 0;
         }
-        
+
         public Integer next() {
             int ret = current;
-            current = bitSet.nextSetBit(ret + 1);
+            current = nextSetBit(ret + 1);
             return ret;
         }
     }
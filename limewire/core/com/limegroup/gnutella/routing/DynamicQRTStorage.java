@@ -90,6 +90,18 @@ class DynamicQRTStorage implements QRTTableStorage {
         storage.xor(other);
     }
 
+    public boolean containsAll(int[] hashes) {
+        return storage.containsAll(hashes);
+    }
+
+    public boolean containsAny(int[] hashes) {
+        return storage.containsAny(hashes);
+    }
+
+    public int countContained(int[] hashes) {
+        return storage.countContained(hashes);
+    }
+
     public int cardinality() {
         return storage.cardinality();
     }
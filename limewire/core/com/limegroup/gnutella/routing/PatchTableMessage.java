@@ -6,6 +6,8 @@ import java.io.OutputStream;
 import org.limewire.util.ByteUtils;
 
 import com.limegroup.gnutella.messages.BadPacketException;
+import com.limegroup.gnutella.messages.PooledMessage;
+import com.limegroup.gnutella.messages.PooledPayload;
 
 
 /**
@@ -15,8 +17,13 @@ import com.limegroup.gnutella.messages.BadPacketException;
  * patch value.  (Note that this is trivial if getEntryBits() returns 8.)  This
  * is by intention, as patches are normally split into several 
  * PatchTableMessages.
+ * <p>
+ * Patches read from the network refer to their payload instead of copying
+ * the data out of it.  If the payload is a {@link PooledPayload} the data
+ * can't be used once the message was handled and {@link #releasePayload()}
+ * was called.
  */
-public class PatchTableMessage extends RouteTableMessage {
+public class PatchTableMessage extends RouteTableMessage implements PooledMessage {
     /** For sequenceNumber and size, we really do need values of 0-255.
      *  Java bytes are signed, of course, so we store shorts internally
      *  and convert to bytes when writing. */
@@ -24,8 +31,14 @@ public class PatchTableMessage extends RouteTableMessage {
     private short sequenceSize;
     private byte compressor;
     private byte entryBits;
-    //TODO: I think storing payload here would be more efficient
+    /** the array holding the data, null once the payload was released */
     private byte[] data;
+    /** where the data starts in data */
+    private final int dataOffset;
+    /** the number of bytes of data */
+    private final int dataLength;
+    /** the pooled buffer data belongs to, if any */
+    private PooledPayload pooledPayload;
 
     public static final byte COMPRESSOR_NONE=0x0;
     public static final byte COMPRESSOR_DEFLATE=0x1;
@@ -64,18 +77,20 @@ public class PatchTableMessage extends RouteTableMessage {
         //Copy dataSrc[dataSrcStart...dataSrcStop-1] to data
         data=new byte[dataSrcStop-dataSrcStart];       //TODO3: avoid
         System.arraycopy(dataSrc, dataSrcStart, data, 0, data.length);
+        dataOffset=0;
+        dataLength=data.length;
     }
 
     @Override
     protected void writePayloadData(OutputStream out) throws IOException {
         //Does NOT include variant
-        byte[] buf=new byte[4+data.length];
+        byte[] buf=new byte[4];
         buf[0]=(byte)sequenceNumber;
         buf[1]=(byte)sequenceSize;
         buf[2]=compressor;
         buf[3]=entryBits;
-        System.arraycopy(data, 0, buf, 4, data.length); //TODO3: avoid
         out.write(buf);
+        out.write(getDataArray(), dataOffset, dataLength);
     }
 
     
@@ -108,8 +123,28 @@ public class PatchTableMessage extends RouteTableMessage {
         this.entryBits=payload[4];
         if (entryBits<0)
             throw new BadPacketException("Negative entryBits: "+entryBits);
-        this.data=new byte[payload.length-5];        
-        System.arraycopy(payload, 5, data, 0, data.length);  //TODO3: avoid
+        this.data=payload;
+        this.dataOffset=5;
+        this.dataLength=payload.length-5;
+    }
+    
+    /**
+     * Retains the pooled payload this message's data is part of.
+     */
+    public synchronized void setPooledPayload(PooledPayload payload) {
+        if (payload.array() == data && pooledPayload == null)
+            pooledPayload = payload.retain();
+    }
+    
+    /**
+     * Releases the pooled payload, the data can't be used afterwards.
+     */
+    public synchronized void releasePayload() {
+        if (pooledPayload != null) {
+            data = null;
+            pooledPayload.release();
+            pooledPayload = null;
+        }
     }
 
 
@@ -131,9 +166,38 @@ public class PatchTableMessage extends RouteTableMessage {
         return entryBits;
     }
 
+    /**
+     * Returns a copy of the patch data if the message was read from the
+     * network.  Use {@link #getDataArray()} to avoid the copy.
+     */
     public byte[] getData() {
+        byte[] array = getDataArray();
+        if (dataOffset == 0 && dataLength == array.length)
+            return array;
+        byte[] copy = new byte[dataLength];
+        System.arraycopy(array, dataOffset, copy, 0, dataLength);
+        return copy;
+    }
+    
+    /**
+     * Returns the array holding the patch data, from 
+     * {@link #getDataOffset()} on for {@link #getDataLength()} bytes.
+     * 
+     * @throws IllegalStateException if the pooled payload was released
+     */
+    public synchronized byte[] getDataArray() {
+        if (data == null)
+            throw new IllegalStateException("payload was released");
         return data;
     }
+    
+    public int getDataOffset() {
+        return dataOffset;
+    }
+    
+    public int getDataLength() {
+        return dataLength;
+    }
 
     @Override
     public String toString() {
@@ -144,7 +208,7 @@ public class PatchTableMessage extends RouteTableMessage {
 //              if (data[i]!=0)
 //                  buf.append(i+"/"+data[i]+", ");
 //          }
-        buf.append("<"+data.length+" bytes>");
+        buf.append("<"+dataLength+" bytes>");
         buf.append("]");
         return buf.toString();
     }
@@ -63,5 +63,19 @@ interface QRTTableStorage extends BitField, Iterable<Integer> {
      */
     public void xor(QRTTableStorage other);
     
+    /**
+     * @return true if all of the given entries are present.
+     */
+    public boolean containsAll(int[] hashes);
+    
+    /**
+     * @return true if any of the given entries is present.
+     */
+    public boolean containsAny(int[] hashes);
+    
+    /**
+     * @return the number of the given entries that are present.
+     */
+    public int countContained(int[] hashes);
     
 }
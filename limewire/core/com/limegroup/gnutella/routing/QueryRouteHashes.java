@@ -0,0 +1,150 @@
+package com.limegroup.gnutella.routing;
+
+import java.util.Set;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.util.Utilities;
+import com.limegroup.gnutella.xml.LimeXMLDocument;
+
+/**
+ * The hashes a {@link QueryRouteTable} of a given size looks up to decide
+ * whether it could answer a query.
+ * <p>
+ * An ultrapeer checks each query against the tables of all its leaves, and
+ * most of those tables have the same size.  Computing the hashes once per
+ * size and keeping them with the query (see
+ * {@link QueryRequest#getQueryRouteHashes(int)}) leaves only the table
+ * lookups to be done per leaf.
+ */
+public final class QueryRouteHashes {
+
+    private static final int[] EMPTY = new int[0];
+
+    /** The size of the tables these hashes are for. */
+    private final int tableSize;
+
+    /** Whether the query has nothing that could be looked up. */
+    private final boolean empty;
+
+    /** The hashes of the URNs, null if the query has no URNs. */
+    private final int[] urnHashes;
+
+    /** The hashes of the keywords of the plain-text query. */
+    private final int[] keywordHashes;
+
+    /** The hash of the schema of the rich query, -1 if there isn't any. */
+    private final int schemaHash;
+
+    /**
+     * The hashes of the keywords and indivisible values of the rich query,
+     * one per keyword even if two keywords have the same hash.
+     */
+    private final int[] metaHashes;
+
+    /**
+     * Computes the hashes of the given query for tables of the given size.
+     */
+    public QueryRouteHashes(QueryRequest qr, int tableSize) {
+        this.tableSize = tableSize;
+        byte bits = Utilities.log2(tableSize);
+
+        String query = qr.getQuery();
+        LimeXMLDocument richQuery = qr.getRichQuery();
+        boolean hasUrns = qr.hasQueryUrns();
+        this.empty = query.length() == 0 && richQuery == null && !hasUrns;
+
+        if (hasUrns) {
+            Set<URN> urns = qr.getQueryUrns();
+            int[] hashes = new int[urns.size()];
+            int i = 0;
+            for (URN urn : urns)
+                hashes[i++] = HashFunction.hash(urn.toString(), bits);
+            this.urnHashes = hashes;
+            this.keywordHashes = EMPTY;
+            this.schemaHash = -1;
+            this.metaHashes = EMPTY;
+            return;
+        }
+
+        this.urnHashes = null;
+        this.keywordHashes = keywordHashes(query, bits, EMPTY);
+        if (richQuery == null) {
+            this.schemaHash = -1;
+            this.metaHashes = EMPTY;
+        } else {
+            this.schemaHash = HashFunction.hash(richQuery.getSchemaURI(), bits);
+            int[] hashes = EMPTY;
+            for (String words : richQuery.getKeyWords())
+                hashes = keywordHashes(words, bits, hashes);
+            for (String str : richQuery.getKeyWordsIndivisible())
+                hashes = append(hashes, HashFunction.hash(str, bits));
+            this.metaHashes = hashes;
+        }
+    }
+
+    /**
+     * Appends the hashes of the keywords in <code>words</code> to
+     * <code>hashes</code>.
+     */
+    private static int[] keywordHashes(String words, byte bits, int[] hashes) {
+        for (int i = 0; ; ) {
+            //Find next keyword...
+            //    _ _ W O R D _ _ _ A B
+            //    i   j       k
+            int j = HashFunction.keywordStart(words, i);
+            if (j < 0)
+                break;
+            int k = HashFunction.keywordEnd(words, j);
+            hashes = append(hashes, HashFunction.hash(words, j, k, bits));
+            i = k + 1;
+        }
+        return hashes;
+    }
+
+    private static int[] append(int[] hashes, int hash) {
+        int[] result = new int[hashes.length + 1];
+        System.arraycopy(hashes, 0, result, 0, hashes.length);
+        result[hashes.length] = hash;
+        return result;
+    }
+
+    /** Returns the size of the tables these hashes are for. */
+    public int getTableSize() {
+        return tableSize;
+    }
+
+    /**
+     * Returns true if a table with the given entries could answer
+     * the query.  See {@link QueryRouteTable#contains(QueryRequest)}.
+     */
+    boolean matches(QRTTableStorage storage) {
+        if (empty)
+            return false;
+
+        //1. URN queries match if any of the URNs are in the table.
+        if (urnHashes != null)
+            return storage.containsAny(urnHashes);
+
+        //2. All the normal keywords must be in the table.
+        if (!storage.containsAll(keywordHashes))
+            return false;
+
+        //3. If there is meta information, the URI must be in the table...
+        if (schemaHash < 0) //Normal case for matching query with no metadata.
+            return true;
+        if (!storage.get(schemaHash))
+            return false;
+
+        //4. ...and "enough" of the metainformation keywords:
+        //   2/3 or 3, whichever is more.
+        int wordCount = metaHashes.length;
+        int matchCount = storage.countContained(metaHashes);
+        if (wordCount < 3)
+            //less than three word? 100% match required
+            return wordCount == matchCount;
+        else
+            //a 67% match will do...
+            return ((float)matchCount / (float)wordCount) > 0.67;
+    }
+}
@@ -4,7 +4,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
@@ -12,11 +11,9 @@ import java.util.zip.Inflater;
 import org.limewire.core.settings.ConnectionSettings;
 import org.limewire.io.IOUtils;
 
-import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.messages.BadPacketException;
 import com.limegroup.gnutella.messages.QueryRequest;
 import com.limegroup.gnutella.util.Utilities;
-import com.limegroup.gnutella.xml.LimeXMLDocument;
 
 //Please note that &#60; and &#62; are the HTML escapes for '<' and '>'.
 
@@ -204,106 +201,25 @@ public class QueryRouteTable {
      * been decremented, i.e., is the outbound not inbound TTL.  
      */
     public boolean contains(QueryRequest qr) {
-        byte bits=Utilities.log2(bitTableLength);
-
-        //1. First we check that all the normal keywords of qr are in the route
-        //   table.  Note that this is done with zero allocations!  Also note
-        //   that HashFunction.hash() takes cares of the capitalization.
-        String query = qr.getQuery();
-        LimeXMLDocument richQuery = qr.getRichQuery();
-		if(query.length() == 0 && 
-		   richQuery == null && 
-		   !qr.hasQueryUrns()) {
-			return false;
-		}
-		if(qr.hasQueryUrns()) {
-			Set<URN> urns = qr.getQueryUrns();
-            for(URN qurn : urns) {
-				int hash = HashFunction.hash(qurn.toString(), bits);
-				if(contains(hash)) {
-					// we note a match if any one of the hashes matches
-					return true;
-				}
-			}
-			return false;
-		}
-        for (int i=0 ; ; ) {
-            //Find next keyword...
-            //    _ _ W O R D _ _ _ A B
-            //    i   j       k
-            int j=HashFunction.keywordStart(query, i);     
-            if (j<0)
-                break;
-            int k=HashFunction.keywordEnd(query, j);
-
-            //...and look up its hash.
-            int hash=HashFunction.hash(query, j, k, bits);
-            if (!contains(hash))
-                return false;
-            i=k+1;
-        }        
-        
-        //2. Now we extract meta information in the query.  If there isn't any,
-        //   declare success now.  Otherwise ensure that the URI is in the 
-        //   table.
-        if (richQuery == null) //Normal case for matching query with no metadata.
-            return true;
-        String docSchemaURI = richQuery.getSchemaURI();
-        int hash = HashFunction.hash(docSchemaURI, bits);
-        if (!contains(hash))//don't know the URI? can't answer query
-            return false;
-            
-        //3. Finally check that "enough" of the metainformation keywords are in
-        //   the table: 2/3 or 3, whichever is more.
-        int wordCount=0;
-        int matchCount=0;
-        for(String words : richQuery.getKeyWords()) {
-            //getKeyWords only returns all the fields, so we still need to split
-            //the words.  The code is copied from part (1) above.  It could be
-            //factored, but that's slightly tricky; the above code terminates if
-            //a match fails--a nice optimization--while this code simply counts
-            //the number of words and matches.
-            for (int i=0 ; ; ) {
-                //Find next keyword...
-                //    _ _ W O R D _ _ _ A B
-                //    i   j       k
-                int j=HashFunction.keywordStart(words, i);     
-                if (j<0)
-                    break;
-                int k=HashFunction.keywordEnd(words, j);
-                
-                //...and look up its hash.
-                int wordHash = HashFunction.hash(words, j, k, bits);
-                if (contains(wordHash))
-                    matchCount++;
-                wordCount++;
-                i=k+1;
-            }
-        }
-
-        // some parts of the query are indivisible, so do some nonstandard
-        // matching
-        for(String str : richQuery.getKeyWordsIndivisible()) {
-            hash = HashFunction.hash(str, bits);
-            if (contains(hash))
-                matchCount++;
-            wordCount++;
-        }
-
-        if (wordCount<3)
-            //less than three word? 100% match required
-            return wordCount==matchCount;
-        else 
-            //a 67% match will do...
-            return ((float)matchCount/(float)wordCount) > 0.67;
+        // the hashes are computed once per table size and kept with the
+        // query, so checking it against many tables only costs the lookups
+        return contains(qr.getQueryRouteHashes(bitTableLength));
     }
     
-    // In the new version, we will not accept TTLs for methods.  Tables are only
-    // 1 hop deep....
-    private final boolean contains(int hash) {
-        return storage.get(hash);
+    /**
+     * Returns true if a response could be generated for the query the
+     * given hashes were computed from.
+     * 
+     * @throws IllegalArgumentException if the hashes were computed for
+     * tables of another size
+     */
+    public boolean contains(QueryRouteHashes hashes) {
+        if (hashes.getTableSize() != bitTableLength)
+            throw new IllegalArgumentException("hashes for size " + hashes.getTableSize()
+                    + ", table size " + bitTableLength);
+        return hashes.matches(storage);
     }
-
+    
     /**
      * For all keywords k in filename, adds <k> to this.
      */
@@ -425,7 +341,9 @@ public class QueryRouteTable {
                                          +m.getSequenceNumber()
                                          +" vs. "+sequenceNumber);
 
-        byte[] data=m.getData();
+        byte[] data=m.getDataArray();
+        int offset=m.getDataOffset();
+        int length=m.getDataLength();
 
         //1. Start pipelined uncompression.
         //TODO: check that compression is same as last message.
@@ -437,7 +355,9 @@ public class QueryRouteTable {
                 }       
                 assert uncompressor!=null : 
                     "Null uncompressor.  Sequence: "+m.getSequenceNumber();
-                data=uncompress(data);            
+                data=uncompress(data, offset, length);
+                offset=0;
+                length=data.length;
             } catch (IOException e) {
                 throw new BadPacketException("Couldn't uncompress data: "+e);
             }
@@ -446,13 +366,15 @@ public class QueryRouteTable {
         }
         
         //2. Expand nibbles if necessary.
-        if (m.getEntryBits()==4) 
-            data=unhalve(data);
-        else if (m.getEntryBits()!=8)
+        if (m.getEntryBits()==4) {
+            data=unhalve(data, offset, length);
+            offset=0;
+            length=data.length;
+        } else if (m.getEntryBits()!=8)
             throw new BadPacketException("Unknown value for entry bits");
 
         //3. Add data[0...] to table[nextPatch...]            
-        for (int i=0; i<data.length; i++) {
+        for (int i=offset; i<offset+length; i++) {
             if(nextPatch >= bitTableLength)
                 throw new BadPacketException("Tried to patch "+nextPatch
                                              +" on a bitTable of size "
@@ -623,8 +545,13 @@ public class QueryRouteTable {
      *      @requires inflater initialized 
      *      @modifies inflater */
     private byte[] uncompress(byte[] data) throws IOException {
+        return uncompress(data, 0, data.length);
+    }
+    
+    /** Like uncompress(byte[]) for data[offset...offset+length-1]. */
+    private byte[] uncompress(byte[] data, int offset, int length) throws IOException {
         ByteArrayOutputStream baos=new ByteArrayOutputStream();
-        uncompressor.setInput(data);
+        uncompressor.setInput(data, offset, length);
         
         try {
             byte[] buf=new byte[1024];
@@ -668,10 +595,15 @@ public class QueryRouteTable {
      *  sign-extended high nibble of floor(i/2) if i even, or the sign-extended
      *  low nibble of floor(i/2) if i odd. */        
     static byte[] unhalve(byte[] array) {
-        byte[] ret=new byte[array.length*2];
-        for (int i=0; i<array.length; i++) {
-            ret[2*i]=(byte)(array[i]>>4);     //sign extension
-            ret[2*i+1]=extendNibble((byte)(array[i]&0xF));
+        return unhalve(array, 0, array.length);
+    }
+    
+    /** Like unhalve(byte[]) for array[offset...offset+length-1]. */
+    static byte[] unhalve(byte[] array, int offset, int length) {
+        byte[] ret=new byte[length*2];
+        for (int i=0; i<length; i++) {
+            ret[2*i]=(byte)(array[offset+i]>>4);     //sign extension
+            ret[2*i+1]=extendNibble((byte)(array[offset+i]&0xF));
         }
         return ret;
     }    
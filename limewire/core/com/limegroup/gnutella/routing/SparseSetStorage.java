@@ -85,6 +85,31 @@ class SparseSetStorage implements QRTTableStorage {
         }
     }
 
+    public boolean containsAll(int[] hashes) {
+        for (int hash : hashes) {
+            if (!set.contains(hash))
+                return false;
+        }
+        return true;
+    }
+
+    public boolean containsAny(int[] hashes) {
+        for (int hash : hashes) {
+            if (set.contains(hash))
+                return true;
+        }
+        return false;
+    }
+
+    public int countContained(int[] hashes) {
+        int count = 0;
+        for (int hash : hashes) {
+            if (set.contains(hash))
+                count++;
+        }
+        return count;
+    }
+
     public int cardinality() {
         return set.size();
     }
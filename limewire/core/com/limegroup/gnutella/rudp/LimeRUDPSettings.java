@@ -28,4 +28,8 @@ class LimeRUDPSettings implements RUDPSettings {
         return DownloadSettings.SKIP_ACKS.getValue();
     }
 
+    public int getMaxWindowSize() {
+        return DownloadSettings.RUDP_MAX_WINDOW_SIZE.getValue();
+    }
+
 }
@@ -20,4 +20,8 @@ class LimeAckMessageImpl extends AbstractLimeRUDPMessage<AckMessage> implements
         return delegate.getWindowStart();
     }
 
+    public int[] getSelectiveAcks() {
+        return delegate.getSelectiveAcks();
+    }
+
 }
@@ -21,4 +21,8 @@ class LimeSynMessageImpl extends AbstractLimeRUDPMessage<SynMessage> implements
         return delegate.getRole();
     }
 
+    public int getWindowSize() {
+        return delegate.getWindowSize();
+    }
+
 }
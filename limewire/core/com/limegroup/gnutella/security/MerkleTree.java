@@ -72,12 +72,16 @@ public class MerkleTree extends MessageDigest {
         nodes.ensureCapacity(log2Ceil(byteCount / BLOCKSIZE));
 
         if (bufferOffset > 0) {
-            int remaining = BLOCKSIZE - bufferOffset;
-            System.arraycopy(in, offset, buffer, bufferOffset, remaining);
+            // the input may not even fill the buffered block
+            int toCopy = Math.min(BLOCKSIZE - bufferOffset, length);
+            System.arraycopy(in, offset, buffer, bufferOffset, toCopy);
+            bufferOffset += toCopy;
+            length -= toCopy;
+            offset += toCopy;
+            if (bufferOffset < BLOCKSIZE)
+                return;
             blockUpdate();
             bufferOffset = 0;
-            length -= remaining;
-            offset += remaining;
         }
 
         while (length >= BLOCKSIZE) {
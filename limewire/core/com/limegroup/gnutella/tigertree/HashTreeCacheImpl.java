@@ -2,9 +2,10 @@ package com.limegroup.gnutella.tigertree;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -18,9 +19,10 @@ import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.limewire.collection.Tuple;
 import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.concurrent.SimpleFuture;
+import org.limewire.core.settings.SharingSettings;
+import org.limewire.io.AppendOnlyStore;
 import org.limewire.util.CommonUtils;
 import org.limewire.util.FileUtils;
 import org.limewire.util.GenericsUtils;
@@ -41,10 +43,15 @@ public final class HashTreeCacheImpl implements HashTreeCache {
     
     private static final Log LOG = LogFactory.getLog(HashTreeCacheImpl.class);
     
+    /** The size of a single node of a tree. */
+    private static final int TIGER_HASH_SIZE = 24;
+    
     /**
-     * The ProcessingQueue to do the hashing.
+     * The thread pool to do the hashing of trees that were not calculated
+     * along with the file's URNs.
      */
-    private final ExecutorService QUEUE = ExecutorsHelper.newProcessingQueue("TreeHashTread"); 
+    private final ExecutorService QUEUE = ExecutorsHelper.newFixedSizeThreadPool(
+            Math.max(1, SharingSettings.HASHING_THREADS.getValue()), "TreeHashTread"); 
     
     /** A copy of thin SHA1 -> Tiger Tree Root */
     private final Map<URN /* sha1 */, Future<URN> /* ttroot */> SHA1_TO_ROOT_MAP = new HashMap<URN, Future<URN>>();
@@ -52,11 +59,30 @@ public final class HashTreeCacheImpl implements HashTreeCache {
     /** TigerTreeCache container. */
     private final Map<URN /* sha1 */, Future<HashTree>> TTREE_MAP = new HashMap<URN, Future<HashTree>>();
     
-    /** Where the SHA1 -> ttRoot info is stored. */
+    /** Where the SHA1 -> ttRoot info was serialized by older versions. */
     private final File ROOTS_FILE = new File(CommonUtils.getUserSettingsDir(), "ttroot.cache");
     
-    /** File where tiger tree data is stored. */
+    /** File where tiger tree data was serialized by older versions. */
     private final File DATA_FILE = new File(CommonUtils.getUserSettingsDir(), "ttdata.cache"); 
+    
+    /**
+     * Where the SHA1 -> ttRoot info is stored, keyed by the bytes of the
+     * SHA1 with the bytes of the root as value.
+     */
+    private final File ROOTS_STORE_FILE = new File(CommonUtils.getUserSettingsDir(), "ttroot.store");
+    
+    /**
+     * Where tiger tree data is stored, keyed by the bytes of the SHA1.
+     * Only the leaves of the tree are stored, the rest of the tree is
+     * recalculated when it is read.
+     */
+    private final File DATA_STORE_FILE = new File(CommonUtils.getUserSettingsDir(), "ttdata.store");
+    
+    /** The roots of all known trees and of files we only calculated the root for. */
+    private final AppendOnlyStore rootStore;
+    
+    /** The leaves of all trees with a good depth. */
+    private final AppendOnlyStore treeStore;
         
     /** Whether or not data dirtied since the last time we saved. */
     private volatile boolean dirty = false;
@@ -68,13 +94,15 @@ public final class HashTreeCacheImpl implements HashTreeCache {
     HashTreeCacheImpl(HashTreeFactory tigerTreeFactory, ManagedFileList managedFileList) {
         this.tigerTreeFactory = tigerTreeFactory;
         this.managedFileList = managedFileList;
-        Tuple<Map<URN, URN>, Map<URN, HashTree>> tuple = loadCaches();
-        for(Map.Entry<URN, URN> entry : tuple.getFirst().entrySet()) {
-            SHA1_TO_ROOT_MAP.put(entry.getKey(), new SimpleFuture<URN>(entry.getValue()));
-        }        
-        for(Map.Entry<URN, HashTree> entry : tuple.getSecond().entrySet()) {
-            TTREE_MAP.put(entry.getKey(), new SimpleFuture<HashTree>(entry.getValue()));
+        try {
+            rootStore = AppendOnlyStore.openOrRecreate(ROOTS_STORE_FILE);
+            treeStore = AppendOnlyStore.openOrRecreate(DATA_STORE_FILE);
+        } catch(IOException iox) {
+            // not even a temporary store could be created
+            throw new IllegalStateException("unable to open the tree stores in " 
+                    + CommonUtils.getUserSettingsDir(), iox);
         }
+        importOldCaches();
     }
     
     public HashTree getHashTreeAndWait(FileDesc fd, long timeout) throws InterruptedException, TimeoutException, ExecutionException {
@@ -147,8 +175,8 @@ public final class HashTreeCacheImpl implements HashTreeCache {
     @Override
     public synchronized URN getOrScheduleHashTreeRoot(FileDesc fd) {
         URN sha1 = fd.getSHA1Urn();
-        Future<HashTree> futureTree = TTREE_MAP.get(sha1);
-        Future<URN> futureRoot = SHA1_TO_ROOT_MAP.get(sha1);
+        Future<HashTree> futureTree = getTreeFuture(sha1);
+        Future<URN> futureRoot = getRootFuture(sha1);
         HashTree tree = futureTree == null ? null : getTreeFromFuture(sha1, futureTree);        
         URN root = futureRoot == null ? null : getRootFromFuture(sha1, futureRoot);
         if(tree != null) {
@@ -171,7 +199,7 @@ public final class HashTreeCacheImpl implements HashTreeCache {
     
     private synchronized Future<HashTree> getOrScheduleHashTreeFuture(FileDesc fd) {
         URN sha1 = fd.getSHA1Urn();
-        Future<HashTree> futureTree = TTREE_MAP.get(sha1);
+        Future<HashTree> futureTree = getTreeFuture(sha1);
         if(futureTree == null) {
             if(LOG.isDebugEnabled()) {
                 LOG.debug("Scheduling: " + sha1 + " for full tree");
@@ -196,7 +224,7 @@ public final class HashTreeCacheImpl implements HashTreeCache {
         if (!sha1.isSHA1())
             throw new IllegalArgumentException();
         
-        Future<HashTree> futureTree = TTREE_MAP.get(sha1);
+        Future<HashTree> futureTree = getTreeFuture(sha1);
         if(futureTree != null) {
             return getTreeFromFuture(sha1, futureTree);
         } else {
@@ -222,7 +250,7 @@ public final class HashTreeCacheImpl implements HashTreeCache {
             if(LOG.isDebugEnabled()) {
                 LOG.debug("Retrieving root from root map for: " + sha1);
             }
-            Future<URN> urnFuture = SHA1_TO_ROOT_MAP.get(sha1);
+            Future<URN> urnFuture = getRootFuture(sha1);
             if(urnFuture != null) {
                 return getRootFromFuture(sha1, urnFuture);
             } else {
@@ -240,7 +268,12 @@ public final class HashTreeCacheImpl implements HashTreeCache {
         Future<HashTree> futureTree = TTREE_MAP.remove(sha1);
         if(futureTree != null) {
             futureTree.cancel(true);
-            dirty = true;
+        }
+        try {
+            if(treeStore.remove(sha1.getBytes()))
+                dirty = true;
+        } catch(IOException iox) {
+            LOG.warn("Unable to remove tree", iox);
         }
     }
 
@@ -266,6 +299,7 @@ public final class HashTreeCacheImpl implements HashTreeCache {
                 futureRoot.cancel(true);
             }
             
+            storeTree(sha1, tree);
             dirty = true;
             if (LOG.isDebugEnabled())
                 LOG.debug("added hashtree for urn " +
@@ -288,13 +322,114 @@ public final class HashTreeCacheImpl implements HashTreeCache {
         if(oldFuture != null) {
             oldFuture.cancel(true);
         }
-        dirty = true;
+        storeRoot(sha1, ttroot);
+    }
+    
+    /**
+     * Returns the future of the tree for the sha1, reading the tree from
+     * disk if it was not used in this session yet.
+     */
+    private synchronized Future<HashTree> getTreeFuture(URN sha1) {
+        Future<HashTree> futureTree = TTREE_MAP.get(sha1);
+        if(futureTree == null) {
+            HashTree tree = loadTree(sha1);
+            if(tree != null) {
+                futureTree = new SimpleFuture<HashTree>(tree);
+                TTREE_MAP.put(sha1, futureTree);
+            }
+        }
+        return futureTree;
     }
     
     /**
-     * Loads values from the root and tree caches
+     * Returns the future of the root for the sha1, reading the root from
+     * disk if it was not used in this session yet.
      */
-    private Tuple<Map<URN, URN>, Map<URN, HashTree>> loadCaches() {
+    private synchronized Future<URN> getRootFuture(URN sha1) {
+        Future<URN> futureRoot = SHA1_TO_ROOT_MAP.get(sha1);
+        if(futureRoot == null) {
+            URN root = loadRoot(sha1);
+            if(root != null) {
+                futureRoot = new SimpleFuture<URN>(root);
+                SHA1_TO_ROOT_MAP.put(sha1, futureRoot);
+            }
+        }
+        return futureRoot;
+    }
+    
+    /** Reads the root of the sha1 from disk, null if it isn't stored. */
+    private URN loadRoot(URN sha1) {
+        try {
+            byte[] root = rootStore.getBytes(sha1.getBytes());
+            return root == null ? null : URN.createTTRootFromBytes(root);
+        } catch(IOException iox) {
+            LOG.warn("Unable to read root for: " + sha1, iox);
+            return null;
+        }
+    }
+    
+    /**
+     * Reads the tree of the sha1 from disk, null if it isn't stored.
+     * Only the leaves are stored, so the rest of the tree is recalculated.
+     */
+    private HashTree loadTree(URN sha1) {
+        try {
+            ByteBuffer data = treeStore.get(sha1.getBytes());
+            if(data == null)
+                return null;
+            long fileSize = data.getLong();
+            int nodeSize = data.getInt();
+            int count = data.getInt();
+            if(count <= 0 || count * (long)TIGER_HASH_SIZE != data.remaining())
+                throw new IOException("invalid node count: " + count);
+            List<byte[]> nodes = new ArrayList<byte[]>(count);
+            for(int i = 0; i < count; i++) {
+                byte[] node = new byte[TIGER_HASH_SIZE];
+                data.get(node);
+                nodes.add(node);
+            }
+            return tigerTreeFactory.createHashTree(nodes, nodeSize, sha1, fileSize);
+        } catch(IOException iox) {
+            LOG.warn("Unable to read tree for: " + sha1, iox);
+            return null;
+        }
+    }
+    
+    /** Writes the root of the sha1 to disk. */
+    private void storeRoot(URN sha1, URN ttroot) {
+        try {
+            rootStore.put(sha1.getBytes(), ttroot.getBytes());
+            dirty = true;
+        } catch(IOException iox) {
+            LOG.warn("Unable to store root for: " + sha1, iox);
+        }
+    }
+    
+    /** Writes the leaves of the tree for the sha1 to disk. */
+    private void storeTree(URN sha1, HashTree tree) {
+        List<byte[]> nodes = tree.getNodes();
+        ByteBuffer data = ByteBuffer.allocate(16 + nodes.size() * TIGER_HASH_SIZE);
+        data.putLong(tree.getFileSize());
+        data.putInt(tree.getNodeSize());
+        data.putInt(nodes.size());
+        for(byte[] node : nodes)
+            data.put(node);
+        try {
+            treeStore.put(sha1.getBytes(), data.array());
+            dirty = true;
+        } catch(IOException iox) {
+            LOG.warn("Unable to store tree for: " + sha1, iox);
+        }
+    }
+    
+    /**
+     * Moves the roots and trees serialized by older versions into the
+     * stores and deletes the old files.
+     */
+    private void importOldCaches() {
+        if(!ROOTS_FILE.exists() && !DATA_FILE.exists())
+            return;
+        
         Object roots;
         Object trees;
         try {
@@ -308,59 +443,64 @@ public final class HashTreeCacheImpl implements HashTreeCache {
 
         Map<URN,URN> rootsMap = GenericsUtils.scanForMap(roots, URN.class, URN.class, GenericsUtils.ScanMode.REMOVE);
         Map<URN,HashTree> treesMap = GenericsUtils.scanForMap(trees, URN.class, HashTree.class, GenericsUtils.ScanMode.REMOVE);
-                
-        // remove roots which we have a tree for, 
-        // because we don't need them
-        rootsMap.keySet().removeAll(treesMap.keySet());                
         
-        // and make sure urns are the correct type
-        for (Iterator<Map.Entry<URN, URN>> iter = rootsMap.entrySet().iterator();iter.hasNext();) {
-            Map.Entry<URN, URN> e = iter.next();
-            if (!e.getKey().isSHA1() || !e.getValue().isTTRoot()) {
-                iter.remove();
+        // make sure urns are the correct type
+        for(Map.Entry<URN, URN> e : rootsMap.entrySet()) {
+            if (e.getKey().isSHA1() && e.getValue().isTTRoot()) {
+                storeRoot(e.getKey(), e.getValue());
             }
         }
         
-        for (Iterator<URN> iter = treesMap.keySet().iterator(); iter.hasNext();) {
-            URN urn = iter.next();
-            if (!urn.isSHA1()) {
-                iter.remove();
+        for(Map.Entry<URN, HashTree> e : treesMap.entrySet()) {
+            if (e.getKey().isSHA1()) {
+                storeRoot(e.getKey(), e.getValue().getTreeRootUrn());
+                storeTree(e.getKey(), e.getValue());
             }
         }
         
-        // Note: its ok to have roots without trees.
-        return new Tuple<Map<URN,URN>, Map<URN,HashTree>>(rootsMap, treesMap);
+        ROOTS_FILE.delete();
+        DATA_FILE.delete();
     }
 
     /**
-     * Removes any stale entries from the map so that they will automatically
-     * be replaced.
+     * Removes any stale entries from the stores so that they will automatically
+     * be replaced.  The managers are asked about the entries after the keys 
+     * are collected, not while the store is locked by the visit.
      * 
-     * @param map
-     *            the <tt>Map</tt> to check
+     * @return the sha1s that were removed
      */
-    private Set<URN> removeOldEntries(Map<URN,URN> roots, Map <URN, HashTree> map, FileManager fileManager, DownloadManager downloadManager) {
+    private Set<URN> removeOldEntries(FileManager fileManager, DownloadManager downloadManager) throws IOException {
+        final List<URN> sha1s = new ArrayList<URN>(rootStore.size());
+        rootStore.visit(new AppendOnlyStore.Visitor() {
+            public boolean visit(ByteBuffer key, ByteBuffer value) throws IOException {
+                byte[] bytes = new byte[key.remaining()];
+                key.get(bytes);
+                sha1s.add(URN.createSHA1UrnFromBytes(bytes));
+                return true;
+            }
+        });
+        
         Set<URN> removed = new HashSet<URN>();
+        int trees = treeStore.size();
         // discard outdated info
-        Iterator<URN> iter = roots.keySet().iterator();
-        while (iter.hasNext()) {
-            URN sha1 = iter.next();
+        for(URN sha1 : sha1s) {
             if (!fileManager.getManagedFileList().getFileDescsMatching(sha1).isEmpty()) {
                 continue;
             } else if (downloadManager.getIncompleteFileManager().getFileForUrn(sha1) != null) {
                 continue;
-            } else if (Math.random() > map.size() / 200) {
+            } else if (Math.random() > trees / 200) {
                 // lazily removing entries if we don't have
                 // that many anyway. Maybe some of the files are
                 // just temporarily unshared.
                 continue;
             } else {
                 removed.add(sha1);
-                iter.remove();
-                map.remove(sha1);
-                dirty = true;
             }
         }
+        for(URN sha1 : removed) {
+            rootStore.remove(sha1.getBytes());
+            treeStore.remove(sha1.getBytes());
+        }
         return removed;
     }
 
@@ -369,47 +509,24 @@ public final class HashTreeCacheImpl implements HashTreeCache {
         if(!dirty)
             return;
         
-        Map<URN,URN> roots;
-        Map<URN, HashTree> trees;
-        synchronized(this) {
-            trees = new HashMap<URN,HashTree>(TTREE_MAP.size());
-            for(Map.Entry<URN, Future<HashTree>> entry : TTREE_MAP.entrySet()) {
-                if(entry.getValue().isDone()) {
-                    try {
-                        trees.put(entry.getKey(), entry.getValue().get());
-                    } catch (InterruptedException e) {
-                    } catch (ExecutionException e) {
-                    } catch (CancellationException e) {
-                    }
-                }
-            }
-            roots = new HashMap<URN,URN>(SHA1_TO_ROOT_MAP.size());
-            for(Map.Entry<URN, Future<URN>> entry : SHA1_TO_ROOT_MAP.entrySet()) {
-                if(entry.getValue().isDone()) {
-                    try {
-                        roots.put(entry.getKey(), entry.getValue().get());
-                    } catch (InterruptedException e) {
-                    } catch (ExecutionException e) {
-                    } catch (CancellationException e) {
-                    }
+        dirty = false;
+        try {
+            Set<URN> removed = removeOldEntries(fileManager, downloadManager);
+            if(!removed.isEmpty()) {        
+                synchronized(this) {
+                    SHA1_TO_ROOT_MAP.keySet().removeAll(removed);
+                    TTREE_MAP.keySet().removeAll(removed);
                 }
             }
+            
+            rootStore.flush();
+            rootStore.compactIfNeeded();
+            treeStore.flush();
+            treeStore.compactIfNeeded();
+        } catch (IOException e) {
+            LOG.warn("Unable to persist cache", e);
+            dirty = true;
         }
-        
-        Set<URN> removed = removeOldEntries(roots, trees, fileManager, downloadManager);
-        if(!removed.isEmpty()) {        
-            synchronized(this) {
-                SHA1_TO_ROOT_MAP.keySet().removeAll(removed);
-                TTREE_MAP.keySet().removeAll(removed);
-            }
-        }
-        
-        try {
-            FileUtils.writeObject(ROOTS_FILE, roots);
-            FileUtils.writeObject(DATA_FILE, trees);
-            dirty = false;
-        } catch (IOException e) {} 
-        // this may any roots added while writing to get lost
     }
 
     /** Simple runnable that processes the hash of a FileDesc. */
@@ -446,7 +563,7 @@ public final class HashTreeCacheImpl implements HashTreeCache {
             for(FileDesc fd : fds) {
                 fd.setTTRoot(ttRoot);
             }
-            dirty = true;
+            storeRoot(FD.getSHA1Urn(), ttRoot);
             return ttRoot;
         }
     }    
@@ -3,6 +3,7 @@ package com.limegroup.gnutella.tigertree;
 import java.io.IOException;
 import java.util.List;
 
+import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.library.FileDesc;
 
 /**
@@ -16,4 +17,10 @@ public interface HashTreeFactory {
      * Creates a new TigerTree for the given FileDesc.
      */
     HashTree createHashTree(FileDesc fd) throws IOException;
+
+    /**
+     * Creates a new TigerTree from leaf nodes that were already calculated
+     * with the given node size, for example by a {@link LeafNodeHasher}.
+     */
+    HashTree createHashTree(List<byte[]> leafNodes, int nodeSize, URN sha1, long fileSize);
 }
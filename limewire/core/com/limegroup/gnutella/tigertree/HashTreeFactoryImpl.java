@@ -81,9 +81,12 @@ public class HashTreeFactoryImpl implements HashTreeFactory {
         // do the actual hashing
         int nodeSize = HashTreeUtils.calculateNodeSize(fileSize, HashTreeUtils.calculateDepth(fileSize));
         List<byte[]> nodes = HashTreeUtils.createTreeNodes(nodeSize, fileSize, is, new Tiger());
+        return createHashTree(nodes, nodeSize, sha1, fileSize);
+    }
 
+    public HashTree createHashTree(List<byte[]> leafNodes, int nodeSize, URN sha1, long fileSize) {
         // calculate the intermediary nodes to get the root hash & others.
-        List<List<byte[]>> allNodes = HashTreeUtils.createAllParentNodes(nodes, new Tiger());
+        List<List<byte[]>> allNodes = HashTreeUtils.createAllParentNodes(leafNodes, new Tiger());
         return createHashTree(allNodes, sha1.toString(), fileSize, nodeSize);
     }
 
@@ -0,0 +1,116 @@
+package com.limegroup.gnutella.tigertree;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.limegroup.gnutella.security.MerkleTree;
+import com.limegroup.gnutella.security.Tiger;
+
+/**
+ * Incrementally calculates the leaf generation of a THEX hash tree.
+ * <p>
+ * Unlike {@link HashTreeUtils#createTreeNodes(int, long, java.io.InputStream, MessageDigest)},
+ * this does not read the data itself.  Callers feed it the bytes of the file
+ * in order, which lets the leaves be computed from the same read that
+ * calculates other hashes of the file.  The resulting nodes are identical
+ * to the nodes created by <code>createTreeNodes</code> for the same file.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class LeafNodeHasher {
+
+    /** The size of the file whose nodes are calculated. */
+    private final long fileSize;
+
+    /** The amount of bytes covered by each leaf node, always 2^n (n>=10). */
+    private final int nodeSize;
+
+    /** The digest of the current node. */
+    private final MessageDigest tt = new MerkleTree(new Tiger());
+
+    /** The finished leaf nodes. */
+    private final List<byte[]> nodes;
+
+    /** The total amount of bytes consumed so far. */
+    private long offset = 0;
+
+    /** The amount of bytes consumed for the current node. */
+    private int nodeOffset = 0;
+
+    /** Whether more data than the file size was given. */
+    private boolean overflowed = false;
+
+    /**
+     * Creates a hasher that uses the node size a {@link HashTree}
+     * for a file of the given size would use.
+     */
+    public LeafNodeHasher(long fileSize) {
+        this(fileSize, HashTreeUtils.calculateNodeSize(fileSize, HashTreeUtils.calculateDepth(fileSize)));
+    }
+
+    /**
+     * Creates a hasher with the given node size.  It is very important
+     * that nodeSize equals 2^n (n>=10).
+     */
+    public LeafNodeHasher(long fileSize, int nodeSize) {
+        this.fileSize = fileSize;
+        this.nodeSize = nodeSize;
+        this.nodes = new ArrayList<byte[]>((int)Math.ceil((double)fileSize / nodeSize));
+    }
+
+    /** Returns the size of the file this is hashing. */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /** Returns the amount of bytes covered by each leaf node. */
+    public int getNodeSize() {
+        return nodeSize;
+    }
+
+    /**
+     * Consumes the next <code>length</code> bytes of the file.
+     *
+     * @throws IOException if more data than the file size was given,
+     * the hasher cannot be used anymore after that
+     */
+    public void update(byte[] data, int off, int length) throws IOException {
+        if (overflowed || offset + length > fileSize) {
+            overflowed = true;
+            throw new IOException("more data than fileSize!");
+        }
+
+        while (length > 0) {
+            int toHash = Math.min(length, nodeSize - nodeOffset);
+            tt.update(data, off, toHash);
+            off += toHash;
+            length -= toHash;
+            nodeOffset += toHash;
+            offset += toHash;
+            if (nodeOffset == nodeSize) {
+                nodes.add(tt.digest());
+                nodeOffset = 0;
+            }
+        }
+    }
+
+    /**
+     * Finishes the calculation and returns the leaf nodes.
+     *
+     * @throws IOException if fewer or more bytes than the file size 
+     * were given
+     */
+    public List<byte[]> getNodes() throws IOException {
+        if (overflowed)
+            throw new IOException("more data than fileSize!");
+        if (offset != fileSize)
+            throw new IOException("couldn't hash whole file.");
+        if (nodeOffset > 0) {
+            nodes.add(tt.digest());
+            nodeOffset = 0;
+        }
+        return nodes;
+    }
+}
@@ -9,11 +9,14 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
 import org.apache.http.nio.ContentEncoder;
 import org.apache.http.nio.IOControl;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.http.entity.AbstractProducingNHttpEntity;
+import org.limewire.http.entity.FileChannelTransfer;
 import org.limewire.http.entity.FilePieceReader;
 import org.limewire.http.entity.Piece;
 import org.limewire.http.entity.PieceListener;
 import org.limewire.http.reactor.HttpIOSession;
+import org.limewire.io.BlockCache;
 import org.limewire.nio.NIODispatcher;
 
 import com.google.inject.Provider;
@@ -23,6 +26,11 @@ import com.limegroup.gnutella.Constants;
 /**
  * An event based {@link HttpEntity} that uploads a {@link File}. A
  * corresponding {@link HTTPUploader} is updated with progress.
+ * <p>
+ * If {@link UploadSettings#ZERO_COPY_UPLOADS} is enabled and the connection
+ * allows it the file is sent with a {@link FileChannelTransfer}, otherwise
+ * it is read by a {@link FilePieceReader} through the shared
+ * {@link UploadBlockCache}.
  */
 public class FileResponseEntity extends AbstractProducingNHttpEntity {
 
@@ -49,12 +57,19 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
     /** Piece that is currently transferred. */
     private Piece piece;
 
+    /** Sends the file if the connection supports zero-copy transfers. */
+    private FileChannelTransfer fileTransfer;
+
     private final Provider<BandwidthManager> bandwidthManager;
 
-    FileResponseEntity(HTTPUploader uploader, File file, Provider<BandwidthManager> bandwidthManager) {
+    private final BlockCache blockCache;
+
+    FileResponseEntity(HTTPUploader uploader, File file, Provider<BandwidthManager> bandwidthManager,
+            BlockCache blockCache) {
         this.uploader = uploader;
         this.file = file;
         this.bandwidthManager = bandwidthManager;
+        this.blockCache = blockCache;
 
         setContentType(Constants.FILE_MIME_TYPE);
 
@@ -86,7 +101,15 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
         HttpIOSession ioSession = uploader.getSession().getIOSession();
         ioSession.setThrottle(bandwidthManager.get().getWriteThrottle(ioSession.getSocket()));
 
-        reader = new FilePieceReader(NIODispatcher.instance().getBufferCache(), file, begin, length, new PieceHandler(ioctrl));
+        if (UploadSettings.ZERO_COPY_UPLOADS.getValue() && FileChannelTransfer.canTransfer(contentEncoder)) {
+            fileTransfer = new FileChannelTransfer(file, begin, length);
+        } else {
+            startReader(begin, length, ioctrl);
+        }
+    }
+    
+    private void startReader(long offset, long count, IOControl ioctrl) {
+        reader = new FilePieceReader(NIODispatcher.instance().getBufferCache(), blockCache, file, offset, count, new PieceHandler(ioctrl));
         reader.start();
     }
     
@@ -98,12 +121,39 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
         if (reader != null) {
             reader.shutdown();
         }
+        if (fileTransfer != null) {
+            fileTransfer.close();
+        }
     }
     
     @Override
     public boolean writeContent(ContentEncoder contentEncoder, IOControl ioctrl) throws IOException {
 //        Throwable t = new Throwable();
 //        LOG.debug(t, t);
+        if (fileTransfer != null) {
+            int written;
+            do {
+                written = fileTransfer.transfer(contentEncoder);
+                if (written == -1) {
+                    break;
+                }
+                uploader.addAmountUploaded(written);
+                remaining -= written;
+            } while (written > 0 && remaining > 0);
+
+            if (written != -1) {
+                activateTimeout();
+                return remaining > 0;
+            }
+
+            // TLS or compression in the way, read the file into buffers instead
+            if (LOG.isDebugEnabled())
+                LOG.debug("Connection can't transfer files, falling back to reading " + file.getName());
+            startReader(fileTransfer.getPosition(), fileTransfer.getRemaining(), ioctrl);
+            fileTransfer.close();
+            fileTransfer = null;
+        }
+        
         // flush current buffer
         if (buffer != null && buffer.hasRemaining()) {
             int written = contentEncoder.write(buffer);
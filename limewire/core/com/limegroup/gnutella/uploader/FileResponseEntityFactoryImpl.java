@@ -12,15 +12,18 @@ public class FileResponseEntityFactoryImpl implements FileResponseEntityFactory
 
     private final Provider<BandwidthManager> bandwidthManager;
 
+    private final Provider<UploadBlockCache> blockCache;
+
     @Inject
-    public FileResponseEntityFactoryImpl(Provider<BandwidthManager> bandwidthManager) {
+    public FileResponseEntityFactoryImpl(Provider<BandwidthManager> bandwidthManager,
+            Provider<UploadBlockCache> blockCache) {
         this.bandwidthManager = bandwidthManager;
-        
+        this.blockCache = blockCache;
     }
     
     public FileResponseEntity createFileResponseEntity(
             HTTPUploader uploader, File file) {
-        return new FileResponseEntity(uploader, file, bandwidthManager);
+        return new FileResponseEntity(uploader, file, bandwidthManager, blockCache.get());
     }
 
 }
@@ -0,0 +1,54 @@
+package com.limegroup.gnutella.uploader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.limewire.core.settings.UploadSettings;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
+import org.limewire.io.BlockCache;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * The {@link BlockCache} shared by HTTP uploads and BitTorrent piece sends,
+ * so many hosts downloading the same popular file from us don't make us
+ * read it from disk again for each of them.
+ * <p>
+ * The size of the cache is set by {@link UploadSettings#BLOCK_CACHE_SIZE}
+ * when it is created.
+ */
+@Singleton
+public class UploadBlockCache extends BlockCache {
+
+    /**
+     * The size of a block, the same as the size of a BitTorrent request so
+     * torrent blocks map to cache blocks.
+     */
+    public static final int BLOCK_SIZE = 16 * 1024;
+
+    @InspectionPoint("upload block cache")
+    @SuppressWarnings("unused")
+    private final Inspectable stats = new Inspectable() {
+        public Object inspect() {
+            Map<String, Object> ret = new HashMap<String, Object>();
+            ret.put("ver", 1);
+            ret.put("max", getMaxSize());
+            ret.put("blocks", getNumBlocks());
+            ret.put("hits", getHits());
+            ret.put("misses", getMisses());
+            ret.put("ratio", getHitRatio());
+            ret.put("saved", getBytesSaved());
+            ret.put("read", getBytesRead());
+            ret.put("evictions", getEvictions());
+            return ret;
+        }
+    };
+
+    @Inject
+    public UploadBlockCache() {
+        super(BLOCK_SIZE, Math.max(0, UploadSettings.BLOCK_CACHE_SIZE.getValue()) / BLOCK_SIZE);
+    }
+
+}
@@ -1,17 +1,35 @@
 package com.limegroup.bittorrent;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import junit.framework.Assert;
 import junit.framework.Test;
 
+import org.limewire.security.SHA1;
 import org.limewire.util.AssertComparisons;
+import org.limewire.util.BEncoder;
+import org.limewire.util.CommonUtils;
 import org.limewire.util.FileUtils;
+import org.limewire.util.PrivilegedAccessor;
+import org.limewire.util.StringUtils;
 import org.limewire.util.TestUtils;
 
+import com.limegroup.bittorrent.bencoding.BEWriter;
+import com.limegroup.bittorrent.bencoding.Token;
+import com.limegroup.gnutella.downloader.serial.BTMetaInfoMemento;
+import com.limegroup.gnutella.downloader.serial.BTMetaInfoMementoImpl;
 import com.limegroup.gnutella.util.LimeTestCase;
 
 public class BTMetaInfoTest extends LimeTestCase {
@@ -152,6 +170,118 @@ public class BTMetaInfoTest extends LimeTestCase {
         }
     }
 
+    /**
+     * The info hash of the raw data has to match the hash of the info
+     * dictionary encoded again.
+     */
+    public void testInfoHash() throws Exception {
+        for (String name : new String[] { "test-basics.torrent",
+                "test-single-webseed-multiple-file-no-peer.torrent",
+                "test-multiple-webseed-single-file-no-peer.torrent" }) {
+            byte[] bytes = FileUtils.readFileFully(getFile(name));
+            Map<?, ?> info = (Map<?, ?>) ((Map<?, ?>) Token.parse(bytes)).get("info");
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            BEncoder.getEncoder(encoded, true, false, "UTF-8").encodeDict(info);
+            byte[] expected = new SHA1().digest(encoded.toByteArray());
+
+            BTData data = new BTDataImpl(ByteBuffer.wrap(bytes));
+            AssertComparisons.assertEquals(expected, data.getInfoHash());
+        }
+    }
+
+    /**
+     * Names and paths are decoded as ASCII, unless there is a UTF-8 version.
+     */
+    public void testNamesAndPathsAreDecodedAsASCII() throws Exception {
+        byte[] cafe = StringUtils.toUTF8Bytes("caf\u00e9");
+        byte[] ete = StringUtils.toUTF8Bytes("\u00e9t\u00e9");
+        BEWriter writer = new BEWriter(ByteBuffer.allocate(1024));
+        writer.startDictionary();
+        writer.writeString("announce");
+        writer.writeString("http://localhost/announce");
+        writer.writeString("info");
+        writer.startDictionary();
+        writer.writeString("files");
+        writer.startList();
+        writer.startDictionary();
+        writer.writeString("length");
+        writer.writeLong(1);
+        writer.writeString("path");
+        writer.startList();
+        writer.writeString(cafe);
+        writer.end();
+        writer.end();
+        writer.startDictionary();
+        writer.writeString("length");
+        writer.writeLong(2);
+        writer.writeString("path");
+        writer.startList();
+        writer.writeString("ete");
+        writer.end();
+        writer.writeString("path.utf-8");
+        writer.startList();
+        writer.writeString(ete);
+        writer.end();
+        writer.end();
+        writer.end();
+        writer.writeString("name");
+        writer.writeString(cafe);
+        writer.writeString("piece length");
+        writer.writeLong(16384);
+        writer.writeString("pieces");
+        writer.writeString(new byte[20]);
+        writer.end();
+        writer.end();
+        ByteBuffer torrent = writer.getBuffer();
+        torrent.flip();
+
+        BTData data = new BTDataImpl(torrent);
+        assertEquals(StringUtils.getASCIIString(cafe), data.getName());
+        assertEquals(2, data.getFiles().size());
+        assertEquals(File.separator + CommonUtils.convertFileName(StringUtils.getASCIIString(cafe)),
+                data.getFiles().get(0).getPath());
+        assertEquals(File.separator + CommonUtils.convertFileName("\u00e9t\u00e9"),
+                data.getFiles().get(1).getPath());
+    }
+
+    public void testMementoHashesSurviveSerialization() throws Exception {
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        for (int i = 0; i < 3; i++) {
+            byte[] hash = new byte[20];
+            Arrays.fill(hash, (byte)i);
+            hashes.add(hash);
+        }
+        hashes.add(new byte[0]);
+        BTMetaInfoMementoImpl memento = new BTMetaInfoMementoImpl();
+        memento.setHashes(hashes);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(memento);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()));
+        BTMetaInfoMemento read = (BTMetaInfoMemento)ois.readObject();
+
+        List<byte[]> readHashes = read.getHashes();
+        assertEquals(hashes.size(), readHashes.size());
+        for (int i = 0; i < hashes.size(); i++)
+            assertTrue(Arrays.equals(hashes.get(i), readHashes.get(i)));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testMementoHashesWrittenAsList() throws Exception {
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        hashes.add(new byte[20]);
+        BTMetaInfoMementoImpl memento = new BTMetaInfoMementoImpl();
+        Map<String, Object> serialObjects = 
+            (Map<String, Object>)PrivilegedAccessor.getValue(memento, "serialObjects");
+        serialObjects.put("hashes", hashes);
+        assertSame(hashes, memento.getHashes());
+
+        serialObjects.put("pieces", new byte[] { 'i', '1', 'e' });
+        assertNull(memento.getHashes());
+    }
+
     /**
      * Returns a file in the TEST_DATA_DIR by the given filename.
      * 
@@ -0,0 +1,95 @@
+package com.limegroup.bittorrent;
+
+import junit.framework.Test;
+
+import com.limegroup.gnutella.util.LimeTestCase;
+
+public class RequestPipelineTest extends LimeTestCase {
+
+    private static final int BLOCK = RequestPipeline.BLOCK_SIZE;
+
+    private RequestPipeline pipeline;
+
+    public RequestPipelineTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(RequestPipelineTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        pipeline = new RequestPipeline(64);
+    }
+
+    public void testMinimumDepthWithoutMeasurements() throws Exception {
+        assertEquals(-1, pipeline.getRoundTripTime());
+        assertEquals(RequestPipeline.MIN_DEPTH, pipeline.getDepth(0));
+        pipeline.requestSent(block(0), 0);
+        pipeline.requestAnswered(block(0), 100);
+        assertEquals(100, pipeline.getRoundTripTime());
+        assertEquals(RequestPipeline.MIN_DEPTH, pipeline.getDepth(0));
+
+        pipeline = new RequestPipeline(64);
+        assertEquals(RequestPipeline.MIN_DEPTH, pipeline.getDepth(1000));
+    }
+
+    public void testDepthFollowsBandwidthDelayProduct() throws Exception {
+        pipeline.requestSent(block(0), 0);
+        pipeline.requestAnswered(block(0), 200);
+        // 1MB/s for 200ms is 200KB, twice that in 16KB blocks
+        assertEquals(25, pipeline.getDepth(1024));
+        // slow hosts get the minimum
+        assertEquals(RequestPipeline.MIN_DEPTH, pipeline.getDepth(10));
+        // fast hosts get the maximum
+        assertEquals(64, pipeline.getDepth(100 * 1024));
+    }
+
+    public void testQueuedRequestsDontInflateRoundTripTime() throws Exception {
+        pipeline.getDepth(BLOCK / 10f);
+        pipeline.requestSent(block(0), 0);
+        pipeline.requestSent(block(1), 0);
+        pipeline.requestSent(block(2), 0);
+        pipeline.requestAnswered(block(0), 50);
+        assertEquals(50, pipeline.getRoundTripTime());
+        // waited 10ms for block 0 and 10ms for block 1
+        pipeline.requestAnswered(block(1), 60);
+        pipeline.requestAnswered(block(2), 70);
+        assertEquals(50, pipeline.getRoundTripTime());
+    }
+
+    public void testQueuedRequestsNeedBandwidth() throws Exception {
+        pipeline.requestSent(block(0), 0);
+        pipeline.requestSent(block(1), 0);
+        pipeline.requestAnswered(block(1), 100);
+        assertEquals(-1, pipeline.getRoundTripTime());
+    }
+
+    public void testCancelledRequestsAreNotAhead() throws Exception {
+        pipeline.requestSent(block(0), 0);
+        pipeline.requestCancelled(block(0));
+        pipeline.requestSent(block(1), 0);
+        pipeline.requestAnswered(block(1), 100);
+        assertEquals(100, pipeline.getRoundTripTime());
+
+        pipeline.requestSent(block(2), 0);
+        pipeline.clear();
+        pipeline.requestAnswered(block(2), 10);
+        pipeline.requestSent(block(3), 0);
+        pipeline.requestAnswered(block(3), 100);
+        assertEquals(100, pipeline.getRoundTripTime());
+    }
+
+    public void testRoundTripTimeIsSmoothed() throws Exception {
+        pipeline.requestSent(block(0), 0);
+        pipeline.requestAnswered(block(0), 100);
+        pipeline.requestSent(block(1), 100);
+        pipeline.requestAnswered(block(1), 980);
+        assertEquals(197, pipeline.getRoundTripTime());
+    }
+
+    private static BTInterval block(int index) {
+        return new BTInterval(0, BLOCK - 1, index);
+    }
+}
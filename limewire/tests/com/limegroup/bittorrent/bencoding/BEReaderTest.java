@@ -0,0 +1,191 @@
+package com.limegroup.bittorrent.bencoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+
+import org.limewire.util.BEncoder;
+import org.limewire.util.StringUtils;
+
+import com.limegroup.gnutella.util.LimeTestCase;
+
+public class BEReaderTest extends LimeTestCase {
+
+    public BEReaderTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(BEReaderTest.class);
+    }
+
+    public void testReadsElements() throws Exception {
+        BEReader reader = reader("d3:agei-42e4:data5:hello5:emptyl0:e4:flagte");
+        assertEquals(Token.DICTIONARY, reader.next());
+        assertTrue(reader.nextKey());
+        assertTrue(reader.isString("age"));
+        assertFalse(reader.isString("ag"));
+        assertEquals(Token.LONG, reader.next());
+        assertEquals(-42, reader.getLong());
+
+        assertTrue(reader.nextKey());
+        assertTrue(reader.isString("data"));
+        assertEquals(Token.STRING, reader.next());
+        assertEquals(5, reader.getStringLength());
+        assertEquals("hello", reader.getASCIIString());
+        ByteBuffer string = reader.getString();
+        assertEquals(5, string.remaining());
+        assertEquals('h', string.get(0));
+
+        assertTrue(reader.nextKey());
+        assertEquals(Token.LIST, reader.next());
+        assertEquals(Token.STRING, reader.next());
+        assertEquals(0, reader.getBytes().length);
+        assertEquals(BEReader.END, reader.next());
+
+        assertTrue(reader.nextKey());
+        assertEquals(Token.BOOLEAN, reader.next());
+        assertTrue(reader.getBoolean());
+        assertFalse(reader.nextKey());
+    }
+
+    public void testSkipsNestedValues() throws Exception {
+        BEReader reader = reader("d1:ald1:bl1:cee2:xxe1:zi3ee");
+        assertEquals(Token.DICTIONARY, reader.next());
+        assertTrue(reader.nextKey());
+        assertTrue(reader.isString("a"));
+        reader.skipValue();
+        assertTrue(reader.nextKey());
+        assertTrue(reader.isString("z"));
+        assertEquals(Token.LONG, reader.next());
+        assertEquals(3, reader.getLong());
+        assertFalse(reader.nextKey());
+    }
+
+    public void testSlicesRawData() throws Exception {
+        ByteBuffer data = buffer("d4:infod1:xi1eee");
+        BEReader reader = new BEReader(data);
+        reader.next();
+        reader.nextKey();
+        int start = reader.position();
+        assertEquals(Token.DICTIONARY, reader.next());
+        reader.skip();
+        assertEquals("d1:xi1ee", StringUtils.getASCIIString(bytes(reader.slice(start, reader.position()))));
+        // the buffer that was read is not changed
+        assertEquals(0, data.position());
+    }
+
+    public void testInvalidData() throws Exception {
+        assertInvalid("", EOFException.class);
+        assertInvalid("i12", EOFException.class);
+        assertInvalid("5:abc", EOFException.class);
+        assertInvalid("ie", IOException.class);
+        assertInvalid("i1x2e", IOException.class);
+        assertInvalid("i99999999999999999999e", IOException.class);
+        assertInvalid("x", IOException.class);
+        assertInvalid("e", IOException.class);
+
+        BEReader reader = reader("di1ei2ee");
+        reader.next();
+        try {
+            reader.nextKey();
+            fail("expected exception");
+        } catch (IOException expected) {}
+
+        reader = reader("d1:ae");
+        reader.next();
+        reader.nextKey();
+        try {
+            reader.skipValue();
+            fail("expected exception");
+        } catch (IOException expected) {}
+
+        try {
+            reader.getLong();
+            fail("expected exception");
+        } catch (IllegalStateException expected) {}
+    }
+
+    public void testWriterMatchesEncoder() throws Exception {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("a", Arrays.asList(new Object[] { Long.MIN_VALUE, 0L, Long.MAX_VALUE, 1.5d }));
+        map.put("b", "text".getBytes());
+        map.put("c", Boolean.TRUE);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        BEncoder.getEncoder(expected).encodeDict(map);
+
+        ByteBuffer buf = ByteBuffer.allocate(expected.size());
+        BEWriter writer = new BEWriter(buf);
+        writer.startDictionary();
+        writer.writeString("a");
+        writer.startList();
+        writer.writeLong(Long.MIN_VALUE);
+        writer.writeLong(0);
+        writer.writeLong(Long.MAX_VALUE);
+        writer.writeDouble(1.5d);
+        writer.end();
+        writer.writeString("b");
+        writer.writeString(ByteBuffer.wrap("text".getBytes()));
+        writer.writeString("c");
+        writer.writeBoolean(true);
+        writer.end();
+        assertFalse(buf.hasRemaining());
+        assertEquals(expected.toByteArray(), buf.array());
+
+        BEReader reader = new BEReader((ByteBuffer)buf.flip());
+        reader.next();
+        reader.nextKey();
+        reader.next();
+        assertEquals(Token.LONG, reader.next());
+        assertEquals(Long.MIN_VALUE, reader.getLong());
+        reader.next();
+        reader.next();
+        assertEquals(Long.MAX_VALUE, reader.getLong());
+        assertEquals(Token.RATIONAL, reader.next());
+        assertEquals(1.5d, reader.getDouble());
+    }
+
+    public void testWriterOverflow() throws Exception {
+        BEWriter writer = new BEWriter(ByteBuffer.allocate(4));
+        try {
+            writer.writeLong(12345);
+            fail("expected exception");
+        } catch (BufferOverflowException expected) {}
+        writer = new BEWriter(ByteBuffer.allocate(4));
+        try {
+            writer.writeString("abc");
+            fail("expected exception");
+        } catch (BufferOverflowException expected) {}
+    }
+
+    private void assertInvalid(String data, Class<? extends IOException> expected) throws Exception {
+        BEReader reader = reader(data);
+        try {
+            reader.next();
+            fail("expected exception for " + data);
+        } catch (IOException e) {
+            assertInstanceof(expected, e);
+        }
+    }
+
+    private static BEReader reader(String data) {
+        return new BEReader(buffer(data));
+    }
+
+    private static ByteBuffer buffer(String data) {
+        return ByteBuffer.wrap(StringUtils.toAsciiBytes(data));
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+}
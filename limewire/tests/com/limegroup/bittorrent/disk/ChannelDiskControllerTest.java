@@ -0,0 +1,200 @@
+package com.limegroup.bittorrent.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Test;
+
+import com.limegroup.gnutella.util.LimeTestCase;
+
+public class ChannelDiskControllerTest extends LimeTestCase {
+
+    private ChannelDiskController<File> controller;
+
+    private List<File> files;
+
+    public ChannelDiskControllerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(ChannelDiskControllerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        controller = new ChannelDiskController<File>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        controller.close();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+    }
+
+    public void testGatheringWriteAcrossFiles() throws Exception {
+        open(10, 5, 20);
+        ByteBuffer first = ByteBuffer.wrap(data(0, 4));
+        ByteBuffer second = ByteBuffer.wrap(data(4, 6));
+        controller.write(8, new ByteBuffer[] { first, second });
+        assertEquals(0, first.position());
+        assertEquals(0, second.position());
+
+        assertEquals(data(0, 2), contents(0, 8, 2));
+        assertEquals(data(2, 5), contents(1, 0, 5));
+        assertEquals(data(7, 3), contents(2, 0, 3));
+
+        byte[] read = new byte[10];
+        assertEquals(10, controller.read(8, read, 0, 10));
+        assertEquals(data(0, 10), read);
+    }
+
+    public void testReadsGrowingFiles() throws Exception {
+        open(10, 20);
+        controller.write(10, data(0, 4));
+        byte[] read = new byte[10];
+        assertEquals(4, controller.read(10, read, 0, 10));
+        assertEquals(1, controller.getNumWindows());
+
+        // the window is mapped again once the file is longer
+        controller.write(14, data(4, 6));
+        assertEquals(10, controller.read(10, read, 0, 10));
+        assertEquals(data(0, 10), read);
+        assertEquals(1, controller.getNumWindows());
+    }
+
+    public void testWindowsAreUnmapped() throws Exception {
+        open(10, 5);
+        controller.write(0, data(0, 15));
+        byte[] read = new byte[15];
+        assertEquals(15, controller.read(0, read, 0, 15));
+        assertEquals(data(0, 15), read);
+        assertEquals(2, controller.getNumWindows());
+
+        controller.setReadOnly(files.get(0));
+        assertEquals(1, controller.getNumWindows());
+        assertEquals(15, controller.read(0, read, 0, 15));
+        assertEquals(data(0, 15), read);
+
+        controller.close();
+        assertEquals(0, controller.getNumWindows());
+        try {
+            controller.write(0, data(0, 1));
+            fail("expected exception");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testWriteToReadOnlyFileFails() throws Exception {
+        open(10, 5);
+        controller.setReadOnly(files.get(0));
+        try {
+            controller.write(8, data(0, 4));
+            fail("expected exception");
+        } catch (IOException expected) {
+            assertEquals("file is read-only", expected.getMessage());
+        }
+        controller.write(10, data(0, 4));
+        assertEquals(data(0, 4), contents(1, 0, 4));
+    }
+
+    public void testFilesAreNotClosedWhileWritten() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            open(10, 1024 * 1024);
+            final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    byte[] data = new byte[64 * 1024];
+                    try {
+                        for (int i = 0; ; i = (i + 1) % 16)
+                            controller.write(10 + i * data.length, data);
+                    } catch (IOException iox) {
+                        failure.set(iox);
+                    }
+                }
+            };
+            writer.start();
+            Thread.sleep(5);
+            controller.setReadOnly(files.get(0));
+            controller.close();
+            writer.join();
+            
+            // the writer notices that the files were closed, but never 
+            // writes to a closed channel
+            assertNotNull(failure.get());
+            assertNotInstanceof(ClosedChannelException.class, failure.get());
+            assertEquals("file closed", failure.get().getMessage());
+            controller = new ChannelDiskController<File>();
+        }
+    }
+
+    public void testNumberOfWindowsIsLimited() throws Exception {
+        long length = (long) (ChannelDiskController.MAX_WINDOWS + 2) * ChannelDiskController.WINDOW_SIZE;
+        open(length);
+        controller.write(length - 1, new byte[1]);
+        byte[] read = new byte[1];
+        for (int i = 0; i < ChannelDiskController.MAX_WINDOWS + 2; i++) {
+            controller.write((long) i * ChannelDiskController.WINDOW_SIZE, new byte[] { (byte) i });
+            assertEquals(1, controller.read((long) i * ChannelDiskController.WINDOW_SIZE, read, 0, 1));
+            assertEquals(i, read[0]);
+        }
+        assertEquals(ChannelDiskController.MAX_WINDOWS, controller.getNumWindows());
+    }
+
+    private void open(long... lengths) throws Exception {
+        files = new ArrayList<File>();
+        for (int i = 0; i < lengths.length; i++) {
+            File file = new SizedFile(_scratchDir, "torrent" + i, lengths[i]);
+            file.delete();
+            files.add(file);
+        }
+        assertNull(controller.open(files, false, false));
+    }
+
+    private byte[] contents(int file, long position, int length) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(files.get(file), "r");
+        try {
+            byte[] buf = new byte[length];
+            raf.seek(position);
+            raf.readFully(buf);
+            return buf;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] data(int start, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (start + i + 1);
+        return data;
+    }
+
+    /** A file with the length it will have once it is complete. */
+    private static class SizedFile extends File {
+
+        private static final long serialVersionUID = -1793240805195556837L;
+
+        private final long length;
+
+        SizedFile(File dir, String name, long length) {
+            super(dir, name);
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.limegroup.bittorrent.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the disk controllers on a multi-file torrent: blocks are written
+ * in random order, four contiguous 16k blocks at a time like coalesced
+ * torrent writes, and then read back in random order like pieces that are
+ * verified and sent.
+ * <p>
+ * Usage: <code>DiskControllerBenchmark [dir] [files] [megabytes]</code>
+ */
+public class DiskControllerBenchmark {
+
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    private static final int BLOCKS_PER_WRITE = 4;
+
+    private static final int READ_SIZE = 256 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        int numFiles = args.length > 1 ? Integer.parseInt(args[1]) : 7;
+        int megabytes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        // files of different sizes, so writes and reads span file boundaries
+        long total = megabytes * 1024L * 1024L;
+        List<File> files = new ArrayList<File>();
+        long left = total;
+        for (int i = 0; i < numFiles; i++) {
+            long length = i == numFiles - 1 ? left : total / numFiles + (i % 2 == 0 ? 12345 : -12345);
+            files.add(new SizedFile(dir, "benchmark" + i, length));
+            left -= length;
+        }
+        System.out.println(numFiles + " files, " + megabytes + " MB");
+
+        for (int round = 0; round < 3; round++) {
+            run("raf", new RAFDiskController<File>(), files, total);
+            run("mmap", new MMDiskController<File>(), files, total);
+            run("channel", new ChannelDiskController<File>(), files, total);
+        }
+    }
+
+    private static void run(String name, DiskController<File> controller, List<File> files,
+            long total) throws IOException {
+        for (File file : files)
+            file.delete();
+        controller.open(files, false, false);
+        try {
+            Random random = new Random(1);
+            byte[] data = new byte[BLOCK_SIZE * BLOCKS_PER_WRITE];
+            random.nextBytes(data);
+            ByteBuffer[] blocks = new ByteBuffer[BLOCKS_PER_WRITE];
+
+            long start = System.nanoTime();
+            for (long offset : shuffledOffsets(total, data.length, random)) {
+                int length = (int) Math.min(data.length, total - offset);
+                int numBlocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                ByteBuffer[] bufs = numBlocks == BLOCKS_PER_WRITE ? blocks : new ByteBuffer[numBlocks];
+                for (int i = 0; i < numBlocks; i++) {
+                    int blockLength = Math.min(BLOCK_SIZE, length - i * BLOCK_SIZE);
+                    bufs[i] = ByteBuffer.wrap(data, i * BLOCK_SIZE, blockLength).slice();
+                }
+                controller.write(offset, bufs);
+            }
+            controller.flush();
+            long write = System.nanoTime() - start;
+
+            byte[] buf = new byte[READ_SIZE];
+            long read = 0;
+            start = System.nanoTime();
+            for (long offset : shuffledOffsets(total, READ_SIZE, random))
+                read += controller.read(offset, buf, 0, (int) Math.min(READ_SIZE, total - offset));
+            long reading = System.nanoTime() - start;
+            if (read != total)
+                throw new IllegalStateException("read " + read + " of " + total);
+
+            System.out.println(name + ": write " + rate(total, write) + " MB/s, read "
+                    + rate(total, reading) + " MB/s");
+        } finally {
+            controller.close();
+            for (File file : files)
+                file.delete();
+        }
+    }
+
+    private static List<Long> shuffledOffsets(long total, int step, Random random) {
+        List<Long> offsets = new ArrayList<Long>();
+        for (long offset = 0; offset < total; offset += step)
+            offsets.add(offset);
+        Collections.shuffle(offsets, random);
+        return offsets;
+    }
+
+    private static long rate(long bytes, long nanos) {
+        return (long) (bytes * 1e9 / Math.max(1, nanos) / (1024 * 1024));
+    }
+
+    /** A file with the length it will have once it is complete. */
+    private static class SizedFile extends File {
+
+        private static final long serialVersionUID = 1785617070044657127L;
+
+        private final long length;
+
+        SizedFile(File dir, String name, long length) {
+            super(dir, name);
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.limegroup.bittorrent.disk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Test;
+
+import org.limewire.collection.BitSet;
+import org.limewire.collection.NECallable;
+import org.limewire.io.BlockCache;
+import org.limewire.io.IOUtils;
+import org.limewire.util.FileUtils;
+import org.limewire.util.TestUtils;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.limegroup.bittorrent.BTContext;
+import com.limegroup.bittorrent.BTInterval;
+import com.limegroup.bittorrent.BTMetaInfo;
+import com.limegroup.bittorrent.BTMetaInfoFactory;
+import com.limegroup.bittorrent.BTPiece;
+import com.limegroup.bittorrent.PieceReadListener;
+import com.limegroup.bittorrent.TorrentContext;
+import com.limegroup.bittorrent.TorrentFile;
+import com.limegroup.gnutella.LimeWireCoreModule;
+import com.limegroup.gnutella.downloader.serial.BTDiskManagerMemento;
+import com.limegroup.gnutella.downloader.serial.BTDiskManagerMementoImpl;
+import com.limegroup.gnutella.stubs.ActivityCallbackStub;
+import com.limegroup.gnutella.uploader.UploadBlockCache;
+import com.limegroup.gnutella.util.LimeTestCase;
+
+public class VerifyingFolderTest extends LimeTestCase {
+
+    private static final File FILE_DIR = TestUtils
+            .getResourceFile("org/limewire/swarm/bittorrent/public_html");
+
+    private TorrentContext context;
+
+    private List<TorrentFile> files;
+
+    private VerifyingFolder folder;
+
+    public VerifyingFolderTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(VerifyingFolderTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Injector injector = Guice.createInjector(new LimeWireCoreModule(ActivityCallbackStub.class));
+        BTMetaInfo metaInfo = injector.getInstance(BTMetaInfoFactory.class).createMetaInfo(
+                new File(FILE_DIR, "torrents/test-single-webseed-multiple-file-no-peer.torrent"));
+        context = new BTContext(metaInfo, new DiskManagerFactory(new UploadBlockCache()));
+        files = context.getFileSystem().getIncompleteFiles();
+        assertEquals(2, files.size());
+        assertEquals(2, metaInfo.getNumBlocks());
+
+        // the first piece spans both files, the second one is corrupt
+        for (TorrentFile file : files) {
+            file.getParentFile().mkdirs();
+            assertTrue(FileUtils.copy(new File(FILE_DIR, "pub2/test/" + file.getName()), file));
+            file.deleteOnExit();
+        }
+        flipLastByte();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (folder != null)
+            folder.close();
+        for (TorrentFile file : files)
+            file.delete();
+    }
+
+    public void testVerifiesExistingFiles() throws Exception {
+        BTDiskManagerMemento memento = new BTDiskManagerMementoImpl();
+        memento.setVerifying(true);
+        openAndVerify(memento);
+        assertTrue(folder.hasBlock(0));
+        assertFalse(folder.hasBlock(1));
+        assertEquals(context.getMetaInfo().getPieceLength(), folder.getVerifiedBlockSize());
+    }
+
+    public void testUnchangedFilesAreNotVerifiedAgain() throws Exception {
+        BTDiskManagerMemento memento = new BTDiskManagerMementoImpl();
+        memento.setVerifying(true);
+        openAndVerify(memento);
+        folder.close();
+        memento = folder.toMemento();
+        assertEquals(2, memento.getFileTimes().size());
+
+        // the fixed piece is not noticed as long as the file looks the same
+        long modified = files.get(1).lastModified();
+        flipLastByte();
+        assertTrue(files.get(1).setLastModified(modified));
+        folder = createFolder(memento);
+        folder.open(new LoggingDiskListener());
+        assertFalse(folder.isVerifying());
+        assertTrue(folder.hasBlock(0));
+        assertFalse(folder.hasBlock(1));
+        folder.close();
+        memento = folder.toMemento();
+
+        assertTrue(files.get(1).setLastModified(modified - 10000));
+        openAndVerify(memento);
+        assertTrue(folder.hasBlock(0));
+        assertTrue(folder.hasBlock(1));
+    }
+
+    public void testChangedFilesLosePieces() throws Exception {
+        BTDiskManagerMemento memento = new BTDiskManagerMementoImpl();
+        BitSet verified = new BitSet();
+        verified.set(0);
+        verified.set(1);
+        memento.setVerifiedBlocks(verified);
+        memento.setFileTimes(new HashMap<String, Long>());
+
+        // no times are recorded for the files, so both pieces are checked
+        openAndVerify(memento);
+        assertTrue(folder.hasBlock(0));
+        assertFalse(folder.hasBlock(1));
+    }
+
+    public void testSendsPiecesThroughBlockCache() throws Exception {
+        int pieceLength = context.getMetaInfo().getPieceLength();
+        BlockCache cache = new BlockCache(UploadBlockCache.BLOCK_SIZE, 64);
+        assertEquals(0, pieceLength % cache.getBlockSize());
+        BTDiskManagerMemento memento = new BTDiskManagerMementoImpl();
+        memento.setVerifying(true);
+        openAndVerify(memento, cache);
+        assertTrue(folder.hasBlock(0));
+        byte[] expected = readFirstPiece(pieceLength);
+
+        // the first piece spans both files
+        assertTrue(Arrays.equals(expected, readPiece(new BTInterval(0, pieceLength - 1, 0))));
+        assertEquals(0, cache.getHits());
+        assertGreaterThan(0, cache.getMisses());
+        assertEquals(pieceLength / cache.getBlockSize(), cache.getNumBlocks());
+        
+        assertTrue(Arrays.equals(expected, readPiece(new BTInterval(0, pieceLength - 1, 0))));
+        assertEquals(pieceLength / cache.getBlockSize(), cache.getHits());
+        
+        // an interval that doesn't start at a block
+        int low = 1000, high = 3 * cache.getBlockSize() + 17;
+        byte[] data = readPiece(new BTInterval(low, high, 0));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(expected, low, high + 1), data));
+        
+        folder.close();
+        assertEquals(0, cache.getNumBlocks());
+    }
+
+    public void testContiguousBlocksAreWrittenAtOnce() throws Exception {
+        int pieceLength = context.getMetaInfo().getPieceLength();
+        final int blockSize = 16 * 1024;
+        byte[] expected = readFirstPiece(pieceLength);
+        clearFirstFile();
+        
+        RecordingDiskController controller = new RecordingDiskController();
+        openAndVerify(new VerifyingFolder(context, false, new BTDiskManagerMementoImpl(), controller, null));
+        assertFalse(folder.hasBlock(0));
+        
+        // all blocks of the first piece but one, in random order, are 
+        // written by one job
+        List<Integer> blocks = new ArrayList<Integer>();
+        for (int i = 0; i < pieceLength / blockSize; i++) {
+            if (i != 5)
+                blocks.add(i);
+        }
+        Collections.shuffle(blocks);
+        CountDownLatch release = blockQueue();
+        for (int block : blocks)
+            writeBlock(expected, block * blockSize, blockSize);
+        release.countDown();
+        waitForQueue();
+        
+        assertEquals(2, controller.writes.size());
+        assertEquals(new Write(0, 5 * blockSize, 5), controller.writes.get(0));
+        assertEquals(new Write(6 * blockSize, pieceLength - 6 * blockSize, blocks.size() - 5), 
+                controller.writes.get(1));
+        assertFalse(folder.hasBlock(0));
+        
+        // the missing block completes the piece
+        writeBlock(expected, 5 * blockSize, blockSize);
+        waitForQueue();
+        assertEquals(3, controller.writes.size());
+        assertEquals(new Write(5 * blockSize, blockSize, 1), controller.writes.get(2));
+        assertTrue(folder.hasBlock(0));
+        assertTrue(Arrays.equals(expected, readFirstPiece(pieceLength)));
+    }
+
+    public void testLeasesBatchesOfBlocks() throws Exception {
+        final int blockSize = 16 * 1024;
+        clearFirstFile();
+        openAndVerify(new BTDiskManagerMementoImpl());
+        assertFalse(folder.hasBlock(0));
+        assertFalse(folder.hasBlock(1));
+        assertNull(folder.leaseBTIntervals(context.getFullBitField(), null, null, 0));
+        
+        // the blocks of one piece, one after the other
+        List<BTInterval> leased = folder.leaseBTIntervals(context.getFullBitField(), null, null, 5);
+        assertEquals(5, leased.size());
+        for (int i = 0; i < leased.size(); i++) {
+            BTInterval in = leased.get(i);
+            assertEquals(leased.get(0).getId(), in.getId());
+            assertEquals(leased.get(0).getLow() + i * blockSize, in.getLow());
+            assertEquals(blockSize, in.getHigh() - in.getLow() + 1);
+        }
+        
+        // the next batch leaves out the blocks that were leased already
+        Set<BTInterval> exclude = new HashSet<BTInterval>(leased);
+        List<BTInterval> more = folder.leaseBTIntervals(context.getFullBitField(), exclude, null, 10);
+        assertEquals(10, more.size());
+        for (BTInterval in : more) {
+            assertEquals(0, in.getLow() % blockSize);
+            assertLessThanOrEquals(blockSize, in.getHigh() - in.getLow() + 1);
+            assertTrue(in + " leased twice", exclude.add(in));
+        }
+    }
+
+    /**
+     * Blocks the disk queue until the returned latch is counted down, so
+     * that the writes that are requested meanwhile are done by one job.
+     */
+    private CountDownLatch blockQueue() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        folder.requestPieceRead(new BTInterval(0, 0, 0), new PieceReadListener() {
+            public void pieceRead(BTInterval interval, byte[] data) {
+                blocked.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+
+            public void pieceReadFailed(BTInterval interval) {
+                blocked.countDown();
+            }
+        });
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    /**
+     * Waits until the jobs that were queued for the folder so far are done.
+     */
+    private void waitForQueue() throws Exception {
+        readPiece(new BTInterval(0, 0, 0));
+    }
+
+    private void writeBlock(byte[] piece, int low, int length) {
+        final BTInterval in = new BTInterval(low, low + length - 1, 0);
+        final byte[] data = Arrays.copyOfRange(piece, low, low + length);
+        folder.writeBlock(new NECallable<BTPiece>() {
+            public BTPiece call() {
+                return new BTPiece() {
+                    public BTInterval getInterval() {
+                        return in;
+                    }
+
+                    public byte[] getData() {
+                        return data;
+                    }
+                };
+            }
+        });
+    }
+
+    private byte[] readPiece(BTInterval in) throws Exception {
+        final CountDownLatch read = new CountDownLatch(1);
+        final AtomicReference<byte[]> data = new AtomicReference<byte[]>();
+        folder.requestPieceRead(in, new PieceReadListener() {
+            public void pieceRead(BTInterval interval, byte[] piece) {
+                data.set(piece);
+                read.countDown();
+            }
+
+            public void pieceReadFailed(BTInterval interval) {
+                read.countDown();
+            }
+        });
+        assertTrue(read.await(10, TimeUnit.SECONDS));
+        assertNotNull(data.get());
+        return data.get();
+    }
+
+    /**
+     * Returns the first piece of the files, read without the folder.
+     */
+    private byte[] readFirstPiece(int pieceLength) throws Exception {
+        byte[] piece = new byte[pieceLength];
+        int read = 0;
+        for (TorrentFile file : files) {
+            InputStream in = new FileInputStream(file);
+            try {
+                int n;
+                while (read < piece.length && (n = in.read(piece, read, piece.length - read)) > 0)
+                    read += n;
+            } finally {
+                IOUtils.close(in);
+            }
+        }
+        assertEquals(pieceLength, read);
+        return piece;
+    }
+
+    private void openAndVerify(BTDiskManagerMemento memento) throws Exception {
+        openAndVerify(memento, null);
+    }
+
+    private void openAndVerify(BTDiskManagerMemento memento, BlockCache cache) throws Exception {
+        openAndVerify(createFolder(memento, cache));
+    }
+
+    private void openAndVerify(VerifyingFolder newFolder) throws Exception {
+        final CountDownLatch verified = new CountDownLatch(1);
+        folder = newFolder;
+        folder.open(new LoggingDiskListener() {
+            @Override
+            public void verificationComplete() {
+                verified.countDown();
+            }
+        });
+        // the small pieces may be verified before open returns, so only
+        // the notification shows that they were verified
+        assertTrue(verified.await(10, TimeUnit.SECONDS));
+        assertFalse(folder.isVerifying());
+    }
+
+    private VerifyingFolder createFolder(BTDiskManagerMemento memento) {
+        return createFolder(memento, null);
+    }
+
+    private VerifyingFolder createFolder(BTDiskManagerMemento memento, BlockCache cache) {
+        return new VerifyingFolder(context, false, memento,
+                new ChannelDiskController<TorrentFile>(), cache);
+    }
+
+    /** Records the writes that are made to the files. */
+    private static class RecordingDiskController extends ChannelDiskController<TorrentFile> {
+        private final List<Write> writes = Collections.synchronizedList(new ArrayList<Write>());
+
+        @Override
+        public void write(long startOffset, ByteBuffer[] data) throws IOException {
+            long length = 0;
+            for (ByteBuffer buffer : data)
+                length += buffer.remaining();
+            writes.add(new Write(startOffset, length, data.length));
+            super.write(startOffset, data);
+        }
+    }
+
+    private static class Write {
+        private final long offset;
+        private final long length;
+        private final int buffers;
+
+        Write(long offset, long length, int buffers) {
+            this.offset = offset;
+            this.length = length;
+            this.buffers = buffers;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Write))
+                return false;
+            Write other = (Write)obj;
+            return offset == other.offset && length == other.length && buffers == other.buffers;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)offset * 31 + buffers;
+        }
+
+        @Override
+        public String toString() {
+            return offset + "+" + length + " in " + buffers;
+        }
+    }
+
+    /**
+     * Overwrites the first file, which lies within the first piece, with
+     * zeros, so that piece has to be downloaded again.
+     */
+    private void clearFirstFile() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(files.get(0), "rw");
+        try {
+            raf.write(new byte[(int)raf.length()]);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Changes the last byte of the second file, or changes it back.
+     */
+    private void flipLastByte() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(files.get(1), "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.limegroup.bittorrent.handshaking.piecestrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.limewire.collection.BitField;
+import org.limewire.collection.BitFieldSet;
+import org.limewire.collection.BitSet;
+import org.limewire.util.BaseTestCase;
+
+import com.limegroup.bittorrent.BTInterval;
+import com.limegroup.bittorrent.BTMetaInfo;
+
+public class PieceAvailabilityTest extends BaseTestCase {
+
+    private static final int NUM_PIECES = 40;
+
+    private PieceAvailability availability;
+
+    public PieceAvailabilityTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(PieceAvailabilityTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        availability = new PieceAvailability(NUM_PIECES);
+    }
+
+    public void testCountsPiecesAndSeeds() throws Exception {
+        availability.addPiece(3);
+        availability.addPiece(3);
+        availability.addPieces(bitField(3, 4));
+        assertEquals(3, availability.getAvailability(3));
+        assertEquals(1, availability.getAvailability(4));
+        assertEquals(0, availability.getAvailability(5));
+
+        availability.addSeed();
+        assertEquals(4, availability.getAvailability(3));
+        assertEquals(1, availability.getAvailability(5));
+
+        availability.promoteToSeed(bitField(3, 4));
+        assertEquals(4, availability.getAvailability(3));
+        assertEquals(2, availability.getAvailability(4));
+
+        availability.removeSeed();
+        availability.removeSeed();
+        availability.removePiece(3);
+        availability.removePiece(3);
+        assertEquals(0, availability.getAvailability(3));
+        assertEquals(0, availability.getAvailability(4));
+
+        try {
+            availability.removePiece(3);
+            fail("removed a piece nobody had");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            availability.removeSeed();
+            fail("removed a seed that wasn't there");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testRarestPieceAmongCandidates() throws Exception {
+        Random random = new Random(3);
+        assertEquals(-1, availability.getRarestPiece(bitField(), random));
+
+        availability.addPieces(bitField(1, 2, 3, 7));
+        availability.addPieces(bitField(1, 2, 3));
+        availability.addPieces(bitField(2, 3));
+        assertEquals(7, availability.getRarestPiece(bitField(1, 2, 3, 7), random));
+        assertEquals(1, availability.getRarestPiece(bitField(1, 2, 3), random));
+        // pieces nobody has are the rarest of all
+        assertEquals(9, availability.getRarestPiece(bitField(3, 9), random));
+
+        // equally rare pieces are picked at random
+        boolean[] picked = new boolean[NUM_PIECES];
+        for (int i = 0; i < 100; i++)
+            picked[availability.getRarestPiece(bitField(2, 3), random)] = true;
+        assertTrue(picked[2]);
+        assertTrue(picked[3]);
+    }
+
+    public void testRandomChangesMatchRecount() throws Exception {
+        Random random = new Random(11);
+        List<BitSet> peers = new ArrayList<BitSet>();
+        for (int op = 0; op < 5000; op++) {
+            int action = random.nextInt(4);
+            if (action == 0 || peers.isEmpty()) {
+                BitSet pieces = new BitSet(NUM_PIECES);
+                for (int i = 0; i < NUM_PIECES; i++) {
+                    if (random.nextInt(4) == 0)
+                        pieces.set(i);
+                }
+                peers.add(pieces);
+                availability.addPieces(new BitFieldSet(pieces, NUM_PIECES));
+            } else if (action == 1) {
+                BitSet pieces = peers.remove(random.nextInt(peers.size()));
+                availability.removePieces(new BitFieldSet(pieces, NUM_PIECES));
+            } else {
+                BitSet pieces = peers.get(random.nextInt(peers.size()));
+                int piece = random.nextInt(NUM_PIECES);
+                if (!pieces.get(piece)) {
+                    pieces.set(piece);
+                    availability.addPiece(piece);
+                }
+            }
+
+            int[] counts = new int[NUM_PIECES];
+            for (BitSet pieces : peers) {
+                for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1))
+                    counts[i]++;
+            }
+            BitSet candidates = new BitSet(NUM_PIECES);
+            int rarest = Integer.MAX_VALUE;
+            for (int i = 0; i < NUM_PIECES; i++) {
+                assertEquals(counts[i], availability.getAvailability(i));
+                if (random.nextBoolean()) {
+                    candidates.set(i);
+                    rarest = Math.min(rarest, counts[i]);
+                }
+            }
+            int piece = availability.getRarestPiece(new BitFieldSet(candidates, NUM_PIECES), random);
+            if (candidates.isEmpty()) {
+                assertEquals(-1, piece);
+            } else {
+                assertTrue(candidates.get(piece));
+                assertEquals(rarest, counts[piece]);
+            }
+        }
+    }
+
+    public void testRarestPieceFirstStrategy() throws Exception {
+        Mockery context = new Mockery();
+        final BTMetaInfo btMetaInfo = context.mock(BTMetaInfo.class);
+        context.checking(new Expectations() {
+            {
+                allowing(btMetaInfo).getPiece(6);
+                will(returnValue(new BTInterval(0, 99, 6)));
+            }
+        });
+
+        availability.addPieces(bitField(5, 6, 8));
+        availability.addPieces(bitField(5, 8));
+        availability.addSeed();
+        RarestPieceFirstStrategy strategy = new RarestPieceFirstStrategy(btMetaInfo, availability);
+        assertEquals(2, strategy.getPieceRareness(6));
+
+        // 4 is rarer but not available, 8 is available but not needed
+        List<BTInterval> pieces = strategy.getNextPieces(bitField(5, 6, 8), bitField(4, 5, 6));
+        assertEquals(1, pieces.size());
+        assertEquals(new BTInterval(0, 99, 6), pieces.get(0));
+        assertTrue(strategy.getNextPieces(bitField(8), bitField(4, 5, 6)).isEmpty());
+        context.assertIsSatisfied();
+    }
+
+    private static BitField bitField(int... pieces) {
+        BitSet bits = new BitSet(NUM_PIECES);
+        for (int piece : pieces)
+            bits.set(piece);
+        return new BitFieldSet(bits, NUM_PIECES);
+    }
+}
@@ -41,6 +41,7 @@ import com.limegroup.bittorrent.handshaking.piecestrategy.RandomGapStrategy;
 import com.limegroup.bittorrent.handshaking.piecestrategy.RandomPieceStrategy;
 import com.limegroup.gnutella.LimeWireCoreModule;
 import com.limegroup.gnutella.stubs.ActivityCallbackStub;
+import com.limegroup.gnutella.uploader.UploadBlockCache;
 import com.limegroup.gnutella.util.LimeTestCase;
 
 public class BTSwarmCoordinatorTest extends LimeTestCase {
@@ -92,7 +93,7 @@ public class BTSwarmCoordinatorTest extends LimeTestCase {
         File torrentFile = getFile("test-single-webseed-single-file-no-peer.torrent");
 
         final BTMetaInfo metaInfo = metaInfoFactory.createMetaInfo(torrentFile);
-        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory());
+        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory(new UploadBlockCache()));
         TorrentFileSystem torrentFileSystem = torrentContext.getFileSystem();
         File completeFile = torrentFileSystem.getCompleteFile();
         completeFile.delete();
@@ -116,7 +117,7 @@ public class BTSwarmCoordinatorTest extends LimeTestCase {
         File torrentFile = getFile("test-single-webseed-multiple-file-no-peer.torrent");
 
         final BTMetaInfo metaInfo = metaInfoFactory.createMetaInfo(torrentFile);
-        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory());
+        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory(new UploadBlockCache()));
         TorrentFileSystem torrentFileSystem = torrentContext.getFileSystem();
         File completeFile = torrentFileSystem.getCompleteFile();
         completeFile.delete();
@@ -145,7 +146,7 @@ public class BTSwarmCoordinatorTest extends LimeTestCase {
         File torrentFile = getFile("test-single-webseed-multiple-file-no-peer.torrent");
 
         final BTMetaInfo metaInfo = metaInfoFactory.createMetaInfo(torrentFile);
-        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory());
+        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory(new UploadBlockCache()));
         TorrentFileSystem torrentFileSystem = torrentContext.getFileSystem();
         File completeFile = torrentFileSystem.getCompleteFile();
         completeFile.delete();
@@ -175,7 +176,7 @@ public class BTSwarmCoordinatorTest extends LimeTestCase {
         File torrentFile = getFile("test-single-webseed-multiple-file-no-peer.torrent");
 
         final BTMetaInfo metaInfo = metaInfoFactory.createMetaInfo(torrentFile);
-        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory());
+        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory(new UploadBlockCache()));
         TorrentFileSystem torrentFileSystem = torrentContext.getFileSystem();
         File completeFile = torrentFileSystem.getCompleteFile();
         completeFile.delete();
@@ -206,7 +207,7 @@ public class BTSwarmCoordinatorTest extends LimeTestCase {
         File torrentFile = getFile("test_vuze_getright.torrent");
 
         final BTMetaInfo metaInfo = metaInfoFactory.createMetaInfo(torrentFile);
-        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory());
+        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory(new UploadBlockCache()));
         TorrentFileSystem torrentFileSystem = torrentContext.getFileSystem();
         File completeFile = torrentFileSystem.getCompleteFile();
         completeFile.delete();
@@ -236,7 +237,7 @@ public class BTSwarmCoordinatorTest extends LimeTestCase {
         File torrentFile = getFile("test-multiple-webseed-single-file-no-peer.torrent");
 
         final BTMetaInfo metaInfo = metaInfoFactory.createMetaInfo(torrentFile);
-        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory());
+        final TorrentContext torrentContext = new BTContext(metaInfo, new DiskManagerFactory(new UploadBlockCache()));
         TorrentFileSystem torrentFileSystem = torrentContext.getFileSystem();
         File completeFile = torrentFileSystem.getCompleteFile();
         completeFile.delete();
@@ -0,0 +1,121 @@
+package com.limegroup.bittorrent.tracking;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+
+import org.limewire.core.settings.BittorrentSettings;
+import org.limewire.util.StringUtils;
+
+import com.limegroup.bittorrent.TorrentLocation;
+import com.limegroup.bittorrent.ValueException;
+import com.limegroup.bittorrent.bencoding.BEWriter;
+import com.limegroup.gnutella.util.LimeTestCase;
+
+public class TrackerResponseTest extends LimeTestCase {
+
+    public TrackerResponseTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(TrackerResponseTest.class);
+    }
+
+    public void testCompactPeers() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        BEWriter writer = new BEWriter(buf);
+        writer.startDictionary();
+        writer.writeString("complete");
+        writer.writeLong(3);
+        writer.writeString("incomplete");
+        writer.writeLong(7);
+        writer.writeString("interval");
+        writer.writeLong(BittorrentSettings.TRACKER_MIN_REASK_INTERVAL.getValue() + 1);
+        writer.writeString("peers");
+        writer.writeString(new byte[] { 1, 2, 3, 4, 0x1A, (byte) 0xE1,
+                                        5, 6, 7, 8, 0, 0, // invalid port
+                                        9, 10, 11, 12, 0, 80 });
+        writer.end();
+        buf.flip();
+
+        TrackerResponse response = new TrackerResponse(buf);
+        assertNull(response.FAILURE_REASON);
+        assertEquals(3, response.DONE_PEERS);
+        assertEquals(7, response.NUM_PEERS);
+        assertEquals(BittorrentSettings.TRACKER_MIN_REASK_INTERVAL.getValue() + 1, response.INTERVAL);
+        assertEquals(2, response.PEERS.size());
+        assertEquals("1.2.3.4", response.PEERS.get(0).getAddress());
+        assertEquals(6881, response.PEERS.get(0).getPort());
+        assertEquals("9.10.11.12", response.PEERS.get(1).getAddress());
+        assertEquals(80, response.PEERS.get(1).getPort());
+    }
+
+    public void testPeerDictionaries() throws Exception {
+        byte[] peerId = new byte[20];
+        peerId[0] = 1;
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        BEWriter writer = new BEWriter(buf);
+        writer.startDictionary();
+        writer.writeString("interval");
+        writer.writeLong(1);
+        writer.writeString("num done");
+        writer.writeLong(2);
+        writer.writeString("num peers");
+        writer.writeLong(4);
+        writer.writeString("peers");
+        writer.startList();
+        writer.startDictionary();
+        writer.writeString("extra");
+        writer.startList();
+        writer.writeLong(1);
+        writer.end();
+        writer.writeString("ip");
+        writer.writeString("1.2.3.4");
+        writer.writeString("peer id");
+        writer.writeString(peerId);
+        writer.writeString("port");
+        writer.writeLong(6881);
+        writer.end();
+        writer.end();
+        writer.end();
+        buf.flip();
+
+        TrackerResponse response = new TrackerResponse(buf);
+        assertEquals(2, response.DONE_PEERS);
+        assertEquals(4, response.NUM_PEERS);
+        assertEquals(BittorrentSettings.TRACKER_MIN_REASK_INTERVAL.getValue(), response.INTERVAL);
+        assertEquals(1, response.PEERS.size());
+        TorrentLocation peer = response.PEERS.get(0);
+        assertEquals("1.2.3.4", peer.getAddress());
+        assertEquals(6881, peer.getPort());
+        assertEquals(peerId, peer.getPeerID());
+    }
+
+    public void testFailureReason() throws Exception {
+        TrackerResponse response = parse("d14:failure reason9:not founde");
+        assertEquals("not found", response.FAILURE_REASON);
+        assertEquals(0, response.PEERS.size());
+        assertEquals(0, response.NUM_PEERS);
+        assertEquals(0, response.DONE_PEERS);
+    }
+
+    public void testInvalidResponses() throws Exception {
+        assertInvalid("le");
+        assertInvalid("d5:peersi1ee");
+        assertInvalid("d5:peersli1eee");
+        assertInvalid("d5:peersld2:ip7:1.2.3.44:porti6881eeee");
+        assertInvalid("d5:peers6:\u0001\u0002\u0003\u0004\u0000\u0000e");
+    }
+
+    private void assertInvalid(String data) throws Exception {
+        try {
+            parse(data);
+            fail("expected exception for " + data);
+        } catch (ValueException expected) {}
+    }
+
+    private static TrackerResponse parse(String data) throws Exception {
+        return new TrackerResponse(ByteBuffer.wrap(StringUtils.toAsciiBytes(data)));
+    }
+}
@@ -13,6 +13,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.Test;
 
@@ -928,6 +929,60 @@ public class HostCatcherTest extends LimeTestCase {
         tmp.delete();
     }
     
+    public void testConcurrentAddAndGet() throws Exception {
+        final int perThread = 90; // few enough that none are ejected
+        final Thread[] adders = new Thread[4];
+        for(int t = 0; t < adders.length; t++) {
+            final int n = t;
+            adders[t] = new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < perThread; i++) {
+                        ExtendedEndpoint e = new ExtendedEndpoint("18." + n + "." + (i / 100) + "." + (i % 100 + 1), 6346);
+                        e.setTLSCapable(i % 2 == 0);
+                        hostCatcher.add(e, i % 3 == 0);
+                    }
+                }
+            };
+        }
+        final Set<Endpoint> taken = Collections.synchronizedSet(new HashSet<Endpoint>());
+        final AtomicReference<Endpoint> takenTwice = new AtomicReference<Endpoint>();
+        Thread taker = new Thread() {
+            @Override
+            public void run() {
+                for(int i = 0; i < perThread; i++) {
+                    Endpoint e = hostCatcher.getAnEndpointImmediate(null);
+                    if(e != null && !taken.add(e))
+                        takenTwice.compareAndSet(null, e);
+                }
+            }
+        };
+        File tmp = File.createTempFile("hc_test", ".net");
+        for(Thread t : adders)
+            t.start();
+        taker.start();
+        hostCatcher.write(tmp);
+        for(Thread t : adders)
+            t.join();
+        taker.join();
+        assertNull("handed out twice: " + takenTwice.get(), takenTwice.get());
+
+        // every host is either still known or was handed out once
+        assertEquals(adders.length * perThread, hostCatcher.getNumHosts() + taken.size());
+        for(Endpoint e : taken)
+            assertFalse(hostCatcher.isHostTLSCapable(new IpPortImpl(e.getAddress(), e.getPort())));
+        assertTrue(hostCatcher.isHostTLSCapable(new IpPortImpl("18.0.0.1", 6346))
+                || taken.contains(new Endpoint("18.0.0.1", 6346)));
+
+        int remaining = 0;
+        while(hostCatcher.getAnEndpointImmediate(null) != null)
+            remaining++;
+        assertEquals(adders.length * perThread, remaining + taken.size());
+        assertEquals(0, hostCatcher.getNumHosts());
+        assertEquals(0, hostCatcher.getNumUltrapeerHosts());
+        tmp.delete();
+    }
+
     public void testIsTLSCapable() throws Exception {
         PingReplyFactory pingReplyFactory = injector.getInstance(PingReplyFactory.class);
         
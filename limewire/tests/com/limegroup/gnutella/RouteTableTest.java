@@ -1,7 +1,9 @@
 package com.limegroup.gnutella;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.limewire.io.GUID;
 import org.limewire.util.PrivilegedAccessor;
 
 import junit.framework.Test;
@@ -146,18 +148,18 @@ public final class RouteTableTest extends LimeTestCase {
         assertEquals("Reply bytes", 6, 
                    rrp.getBytesRouted());
                    
-        assertEquals(1, (getMap(rt, "_newMap")).size());
-        assertEquals(0, (getMap(rt, "_oldMap")).size());
+        assertEquals(1, rt.getNewSize());
+        assertEquals(0, rt.getOldSize());
         try { Thread.sleep(MSECS); } catch (InterruptedException e) { }
         PrivilegedAccessor.invokeMethod(rt, "purge");
-        assertEquals(0, (getMap(rt, "_newMap")).size());
-        assertEquals(1, (getMap(rt, "_oldMap")).size());
+        assertEquals(0, rt.getNewSize());
+        assertEquals(1, rt.getOldSize());
         rrp=rt.getReplyHandler(g1, 3, (short) 0,(short) 0);            //g1 -> <c2, 8+3>
         assertSame(c2, rrp.getReplyHandler());
         assertEquals(8, rrp.getBytesRouted());
         rt.routeReply(g1, c3);                    //g1 -> <c3, 11>
-        assertEquals(1, (getMap(rt, "_newMap")).size());
-        assertEquals(0, (getMap(rt, "_oldMap")).size());
+        assertEquals(1, rt.getNewSize());
+        assertEquals(0, rt.getOldSize());
         rrp=rt.getReplyHandler(g1, 10, (short) 0,(short) 0);            //g1 -> <c3, 11+10>
         assertSame(c3, rrp.getReplyHandler());
         assertEquals(11, rrp.getBytesRouted());
@@ -226,6 +228,72 @@ public final class RouteTableTest extends LimeTestCase {
     }
 
     
+    public void testManyGuidsExpireByGeneration() throws Exception {
+        RouteTable rt = new RouteTable(1000, Integer.MAX_VALUE);
+        ReplyHandler c1 = new ReplyHandlerStub();
+        ReplyHandler c2 = new ReplyHandlerStub();
+        byte[][] guids = new byte[5000][];
+        for (int i = 0; i < guids.length; i++) {
+            guids[i] = GUID.makeGuid();
+            assertNotNull(rt.tryToRouteReply(guids[i], i % 2 == 0 ? c1 : c2));
+        }
+        assertEquals(guids.length, rt.getNewSize());
+        for (int i = 0; i < guids.length; i++)
+            assertSame(i % 2 == 0 ? c1 : c2, rt.getReplyHandler(guids[i]));
+
+        // renew half of them after a switch, then switch again:
+        // only the renewed ones are left.
+        PrivilegedAccessor.setValue(rt, "_nextSwitchTime", new Long(0));
+        PrivilegedAccessor.invokeMethod(rt, "purge");
+        assertEquals(0, rt.getNewSize());
+        assertEquals(guids.length, rt.getOldSize());
+        for (int i = 0; i < guids.length; i += 2)
+            rt.routeReply(guids[i], c2);
+        assertEquals(guids.length / 2, rt.getNewSize());
+        assertEquals(guids.length / 2, rt.getOldSize());
+        PrivilegedAccessor.setValue(rt, "_nextSwitchTime", new Long(0));
+        PrivilegedAccessor.invokeMethod(rt, "purge");
+        for (int i = 0; i < guids.length; i++) {
+            if (i % 2 == 0)
+                assertSame(c2, rt.getReplyHandler(guids[i]));
+            else
+                assertNull(rt.getReplyHandler(guids[i]));
+        }
+        // and expired guids can be routed again
+        assertNotNull(rt.tryToRouteReply(guids[1], c1));
+        assertNull(rt.tryToRouteReply(guids[2], c1));
+    }
+
+    public void testConcurrentRouting() throws Exception {
+        final RouteTable rt = new RouteTable(1000, Integer.MAX_VALUE);
+        final ReplyHandler handler = new ReplyHandlerStub();
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        byte[] guid = GUID.makeGuid();
+                        if (rt.tryToRouteReply(guid, handler) == null)
+                            errors.incrementAndGet();
+                        RouteTable.ReplyRoutePair pair = rt.getReplyHandler(guid, 10, (short)2, (short)0);
+                        if (pair == null || pair.getReplyHandler() != handler || pair.getBytesRouted() != 0)
+                            errors.incrementAndGet();
+                        pair = rt.getReplyHandler(guid, 10, (short)2, (short)0);
+                        if (pair == null || pair.getBytesRouted() != 10 || pair.getResultsRouted() != 2)
+                            errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, errors.get());
+        assertEquals(threads.length * 2000, rt.getNewSize());
+    }
+
     private Map getMap(RouteTable rt, String mapName) 
         throws IllegalAccessException, NoSuchFieldException {
         return (Map) PrivilegedAccessor.getValue(rt, mapName);
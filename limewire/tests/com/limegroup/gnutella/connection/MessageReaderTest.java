@@ -7,7 +7,9 @@ import java.nio.ByteOrder;
 
 import junit.framework.Test;
 
+import org.limewire.core.settings.MessageSettings;
 import org.limewire.io.GUID;
+import org.limewire.nio.ByteBufferCache;
 import org.limewire.nio.channel.InterestReadableByteChannel;
 
 import com.google.inject.AbstractModule;
@@ -23,6 +25,10 @@ import com.limegroup.gnutella.messages.PingRequestFactory;
 import com.limegroup.gnutella.messages.PushRequestImpl;
 import com.limegroup.gnutella.messages.QueryReplyFactory;
 import com.limegroup.gnutella.messages.QueryRequestFactory;
+import com.limegroup.gnutella.routing.PatchTableMessage;
+import com.limegroup.gnutella.routing.QueryRouteTable;
+import com.limegroup.gnutella.routing.ResetTableMessage;
+import com.limegroup.gnutella.routing.RouteTableMessage;
 import com.limegroup.gnutella.stubs.NetworkManagerStub;
 import com.limegroup.gnutella.stubs.ReadBufferChannel;
 import com.limegroup.gnutella.util.LimeTestCase;
@@ -41,6 +47,7 @@ public final class MessageReaderTest extends LimeTestCase {
     private QueryReplyFactory queryReplyFactory;
     private PingReplyFactory pingReplyFactory;
     private MessageFactory messageFactory;
+    private ByteBufferCache bufferCache;
 
 	public MessageReaderTest(String name) {
 		super(name);
@@ -74,6 +81,7 @@ public final class MessageReaderTest extends LimeTestCase {
         pingReplyFactory = injector.getInstance(PingReplyFactory.class);
         messageFactory = injector.getInstance(MessageFactory.class);
         messageReaderFactory = injector.getInstance(MessageReaderFactory.class);
+        bufferCache = injector.getInstance(ByteBufferCache.class);
         
         READER = messageReaderFactory.createMessageReader(STUB);
 	}
@@ -327,6 +335,97 @@ public final class MessageReaderTest extends LimeTestCase {
         assertEquals(buffer(out), buffer(in));
     }
     
+    public void testRouteTablePatchesKeepPooledPayload() throws Exception {
+        byte[] data = new byte[1000];
+        for(int i = 0; i < data.length; i++)
+            data[i] = (byte)i;
+        Message out1 = new PatchTableMessage((short)1, (short)2, 
+                PatchTableMessage.COMPRESSOR_NONE, (byte)8, data, 0, data.length);
+        Message out2 = new PatchTableMessage((short)2, (short)2, 
+                PatchTableMessage.COMPRESSOR_NONE, (byte)8, data, 0, data.length);
+        Message out3 = queryRequestFactory.createQuery("test");
+        Message[] allOut = new Message[] { out1, out2, out3 };
+        
+        bufferCache.clearCache();
+        READER.setReadChannel(channel(buffer(allOut)));
+        READER.handleRead();
+        assertEquals(3, STUB.size());
+        PatchTableMessage in1 = (PatchTableMessage)STUB.getMessage();
+        PatchTableMessage in2 = (PatchTableMessage)STUB.getMessage();
+        Message in3 = STUB.getMessage();
+        assertEquals(buffer(out1), buffer(in1));
+        assertEquals(buffer(out2), buffer(in2));
+        assertEquals(buffer(out3), buffer(in3));
+        assertEquals(data, in1.getData());
+        assertEquals(data, in2.getData());
+        
+        // the patches still hold their buffers
+        assertEquals(0, bufferCache.getHeapCacheSize());
+        
+        in1.releasePayload();
+        assertEquals(out1.getLength(), bufferCache.getHeapCacheSize());
+        try {
+            in1.getDataArray();
+            fail("expected the released data to be unusable");
+        } catch(IllegalStateException expected) {}
+        
+        // releasing again does nothing, the query wasn't pooled
+        in1.releasePayload();
+        in2.releasePayload();
+        assertEquals(out1.getLength() + out2.getLength(), bufferCache.getHeapCacheSize());
+    }
+    
+    public void testResetReleasesPayloadRightAway() throws Exception {
+        Message out = new ResetTableMessage(1024, (byte)7);
+        
+        bufferCache.clearCache();
+        READER.setReadChannel(channel(buffer(out)));
+        READER.handleRead();
+        assertEquals(1, STUB.size());
+        assertEquals(buffer(out), buffer(STUB.getMessage()));
+        assertEquals(out.getLength(), bufferCache.getHeapCacheSize());
+    }
+    
+    public void testPatchesFromPooledPayloadsUpdateTable() throws Exception {
+        QueryRouteTable qrt = new QueryRouteTable(1000);
+        qrt.add("good book");
+        qrt.add("bad");
+        
+        for(boolean compress : new boolean[] { true, false }) {
+            READER.setReadChannel(channel(buffer(qrt.encode(null, compress)
+                    .toArray(new RouteTableMessage[0]))));
+            READER.handleRead();
+            
+            QueryRouteTable received = new QueryRouteTable(1000);
+            while(STUB.size() > 0) {
+                Message m = STUB.getMessage();
+                if(m instanceof PatchTableMessage) {
+                    received.patch((PatchTableMessage)m);
+                    ((PatchTableMessage)m).releasePayload();
+                } else {
+                    received.reset((ResetTableMessage)m);
+                }
+            }
+            assertEquals(qrt, received);
+        }
+    }
+    
+    public void testPayloadIsNotPooledIfDisabled() throws Exception {
+        MessageSettings.REUSE_PAYLOAD_BUFFERS.setValue(false);
+        byte[] data = new byte[1000];
+        Message out = new PatchTableMessage((short)1, (short)1, 
+                PatchTableMessage.COMPRESSOR_NONE, (byte)8, data, 0, data.length);
+        
+        bufferCache.clearCache();
+        READER.setReadChannel(channel(buffer(out)));
+        READER.handleRead();
+        assertEquals(1, STUB.size());
+        PatchTableMessage in = (PatchTableMessage)STUB.getMessage();
+        in.releasePayload();
+        assertEquals(buffer(out), buffer(in));
+        assertEquals(0, bufferCache.getHeapCacheSize());
+    }
+    
     public void testShutdown() throws Exception {
         assertFalse(STUB.isClosed());
         READER.shutdown();
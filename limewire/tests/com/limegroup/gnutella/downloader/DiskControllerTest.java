@@ -0,0 +1,186 @@
+package com.limegroup.gnutella.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+
+import org.limewire.core.settings.DownloadSettings;
+
+import com.limegroup.gnutella.util.LimeTestCase;
+
+public class DiskControllerTest extends LimeTestCase {
+
+    private ScheduledExecutorService backgroundExecutor;
+
+    private DiskController diskController;
+
+    public DiskControllerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(DiskControllerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        DownloadSettings.DISK_WRITER_THREADS.setValue(4);
+        backgroundExecutor = Executors.newSingleThreadScheduledExecutor();
+        diskController = new DiskController(backgroundExecutor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        backgroundExecutor.shutdownNow();
+    }
+
+    public void testJobsOfOneOwnerRunInOrder() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        Object owner = new Object();
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int index = i;
+            diskController.addDiskJob(new ChunkDiskJob(diskController.getWriteChunk(), owner) {
+                @Override
+                void runChunkJob(byte[] buf) {
+                    order.add(index);
+                }
+                @Override
+                void finish() {
+                    done.countDown();
+                }
+            });
+        }
+        diskController.addDiskJobWithoutChunk(owner, new Runnable() {
+            public void run() {
+                order.add(100);
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        waitForPending();
+        assertEquals(101, order.size());
+        for (int i = 0; i <= 100; i++)
+            assertEquals(i, order.get(i).intValue());
+        assertEquals(0, diskController.getNumPendingItems());
+    }
+
+    public void testOwnersWriteInParallel() throws Exception {
+        // blocks until a job of another owner runs at the same time
+        final CountDownLatch other = new CountDownLatch(1);
+        final AtomicInteger blockedDone = new AtomicInteger();
+        diskController.addDiskJob(new ChunkDiskJob(diskController.getWriteChunk(), new Object()) {
+            @Override
+            void runChunkJob(byte[] buf) {
+                try {
+                    if (other.await(10, TimeUnit.SECONDS))
+                        blockedDone.set(1);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            @Override
+            void finish() {
+            }
+        });
+        // the other owners can't all have the same thread as the first one
+        for (int i = 0; i < 20; i++) {
+            diskController.addDiskJob(new ChunkDiskJob(diskController.getWriteChunk(), new Object()) {
+                @Override
+                void runChunkJob(byte[] buf) {
+                    other.countDown();
+                }
+                @Override
+                void finish() {
+                }
+            });
+        }
+        assertTrue(other.await(10, TimeUnit.SECONDS));
+        waitForPending();
+        assertEquals(1, blockedDone.get());
+        assertGreaterThanOrEquals(0, diskController.getAverageWriteTime());
+    }
+
+    public void testDelayedWritesRunWhenChunksAreReleased() throws Exception {
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        for (byte[] chunk = diskController.getWriteChunk(); chunk != null; chunk = diskController.getWriteChunk())
+            chunks.add(chunk);
+        assertEquals(512, chunks.size());
+
+        final AtomicInteger written = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            diskController.addDelayedWrite(new DelayedWrite() {
+                public boolean write() {
+                    byte[] chunk = diskController.getWriteChunk();
+                    if (chunk == null)
+                        return false;
+                    written.incrementAndGet();
+                    diskController.addDiskJob(new ChunkDiskJob(chunk, this) {
+                        @Override
+                        void runChunkJob(byte[] buf) {
+                        }
+                        @Override
+                        void finish() {
+                        }
+                    });
+                    return true;
+                }
+            });
+        }
+        assertFalse(diskController.canWriteNow());
+        assertEquals(3, diskController.getNumDelayedWrites());
+
+        // finishing a job releases its chunk and runs the delayed writes
+        final CountDownLatch done = new CountDownLatch(1);
+        diskController.addDiskJob(new ChunkDiskJob(chunks.remove(0), new Object()) {
+            @Override
+            void runChunkJob(byte[] buf) {
+            }
+            @Override
+            void finish() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && written.get() < 3; i++)
+            Thread.sleep(50);
+        assertEquals(3, written.get());
+        assertTrue(diskController.canWriteNow());
+        assertEquals(0, diskController.getNumDelayedWrites());
+    }
+
+    public void testPowerOf2ChunksArePerThread() throws Exception {
+        final byte[][] chunks = new byte[2][];
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object owner = new Object();
+        diskController.addDiskJobWithoutChunk(owner, new Runnable() {
+            public void run() {
+                chunks[0] = diskController.getPowerOf2Chunk(1000);
+            }
+        });
+        diskController.addDiskJobWithoutChunk(owner, new Runnable() {
+            public void run() {
+                chunks[1] = diskController.getPowerOf2Chunk(1000);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1024, chunks[0].length);
+        assertSame(chunks[0], chunks[1]);
+        assertEquals(1024, diskController.getSizeOfVerifyingCache());
+
+        // other threads get their own
+        assertNotSame(chunks[0], diskController.getPowerOf2Chunk(1000));
+    }
+
+    private void waitForPending() throws InterruptedException {
+        for (int i = 0; i < 100 && diskController.getNumPendingItems() > 0; i++)
+            Thread.sleep(50);
+    }
+}
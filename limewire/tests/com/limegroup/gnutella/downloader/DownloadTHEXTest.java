@@ -232,7 +232,10 @@ public class DownloadTHEXTest extends DownloadTestCase {
         tGeneric(new RemoteFileDesc[] { rfd1 } );
         
         HashTree tree = tigerTreeCache.getHashTree(TestFile.hash());
-        assertNull(tree);
+        // no tree came from the network, the one calculated while
+        // downloading is kept instead
+        assertNotNull(tree);
+        assertEquals(TestFile.tree().getRootHash(), tree.getRootHash());
         
         assertTrue(testUploaders[0].thexWasRequested());
         assertEquals(1, testUploaders[0].getConnections());
@@ -252,7 +255,10 @@ public class DownloadTHEXTest extends DownloadTestCase {
         tGeneric(new RemoteFileDesc[] { rfd1 } );
         
         HashTree tree = tigerTreeCache.getHashTree(TestFile.hash());
-        assertNull(tree);
+        // no tree came from the network, the one calculated while
+        // downloading is kept instead
+        assertNotNull(tree);
+        assertEquals(TestFile.tree().getRootHash(), tree.getRootHash());
         
         assertTrue(testUploaders[0].thexWasRequested());
         assertEquals(1, testUploaders[0].getConnections());
@@ -392,7 +398,10 @@ public class DownloadTHEXTest extends DownloadTestCase {
         tGeneric(new RemoteFileDesc[] { rfd1 } );
         
         HashTree tree = tigerTreeCache.getHashTree(TestFile.hash());
-        assertNull(tree);
+        // no tree came from the network, the one calculated while
+        // downloading is kept instead
+        assertNotNull(tree);
+        assertEquals(TestFile.tree().getRootHash(), tree.getRootHash());
         
         assertTrue(testUploaders[0].thexWasRequested());
         assertEquals(1, testUploaders[0].getConnections());        
@@ -414,7 +423,10 @@ public class DownloadTHEXTest extends DownloadTestCase {
         tGeneric(new RemoteFileDesc[] { rfd1 } );
         
         HashTree tree = tigerTreeCache.getHashTree(TestFile.hash());
-        assertNull(tree);
+        // no tree came from the network, the one calculated while
+        // downloading is kept instead
+        assertNotNull(tree);
+        assertEquals(TestFile.tree().getRootHash(), tree.getRootHash());
         
         assertTrue(testUploaders[0].thexWasRequested());
         assertEquals(2, testUploaders[0].getConnections());
@@ -661,4 +661,110 @@ public class VerifyingFileTest extends LimeTestCase {
         // verifyiable chunk
         assertEquals(chunk.length * 3 - 1, vf.getOffsetForPreview());
     }
+
+    /**
+     * tests that the SHA1 and the tree are calculated from the data as it
+     * is written, even if it isn't written in order.
+     */
+    public void testStreamedHashOutOfOrder() throws Exception {
+        vf.setHashTree(null);
+        vf.leaseWhite((int) completeFile.length());
+        int length = (int) completeFile.length();
+        int chunkSize = 100000;
+        // write everything but the first chunk, backwards
+        for (int pos = (length - 1) / chunkSize * chunkSize; pos > 0; pos -= chunkSize) {
+            byte[] chunk = new byte[Math.min(chunkSize, length - pos)];
+            raf.seek(pos);
+            raf.readFully(chunk);
+            writeImpl(pos, chunk);
+        }
+        vf.waitForPending(1000);
+        assertNull(vf.getStreamedSHA1Urn());
+
+        byte[] chunk = new byte[chunkSize];
+        raf.seek(0);
+        raf.readFully(chunk);
+        writeImpl(0, chunk);
+        vf.close();
+
+        assertTrue(vf.isComplete());
+        assertEquals(URN.createSHA1Urn(sha1), vf.getStreamedSHA1Urn());
+        HashTree streamed = vf.getStreamedHashTree();
+        assertEquals(defaultHashTree.getRootHash(), streamed.getRootHash());
+        assertEquals(defaultHashTree.getNodeSize(), streamed.getNodeSize());
+    }
+
+    /**
+     * tests that a resumed download continues hashing from the saved state.
+     */
+    public void testStreamedHashResumes() throws Exception {
+        vf.leaseWhite((int) completeFile.length());
+        int length = (int) completeFile.length();
+        // one verified chunk and a bit
+        int half = hashTree.getNodeSize() + 1000;
+        byte[] chunk = new byte[half];
+        raf.readFully(chunk);
+        writeImpl(0, chunk);
+        vf.close();
+        assertEquals(hashTree.getNodeSize(), vf.getVerifiedBlockSize());
+
+        byte[] state = vf.getHashState();
+        assertNotNull(state);
+        VerifyingFile resumed = verifyingFileFactory.createVerifyingFile(length);
+        for (Range range : vf.getSerializableBlocks())
+            resumed.addInterval(range);
+        resumed.setHashState(state);
+        vf = resumed;
+        vf.open(new File("outfile"));
+        vf.setHashTree(defaultHashTree);
+        assertEquals(Range.createRange(half, length - 1), vf.leaseWhite());
+
+        chunk = new byte[length - half];
+        raf.readFully(chunk);
+        writeImpl(half, chunk);
+        vf.close();
+
+        assertTrue(vf.isComplete());
+        assertEquals(URN.createSHA1Urn(sha1), vf.getStreamedSHA1Urn());
+        assertEquals(defaultHashTree.getRootHash(), vf.getStreamedHashTree().getRootHash());
+    }
+
+    /**
+     * tests that a state which doesn't match the data on disk is ignored.
+     */
+    public void testInvalidHashStateIgnored() throws Exception {
+        StreamingFileHasher hasher = new StreamingFileHasher(completeFile.length());
+        byte[] chunk = new byte[hashTree.getNodeSize()];
+        raf.readFully(chunk);
+        hasher.update(chunk, 0, chunk.length);
+
+        // nothing was written, so the hashed leaf isn't on disk
+        VerifyingFile resumed = verifyingFileFactory.createVerifyingFile(completeFile.length());
+        resumed.setHashState(hasher.getState());
+        assertEquals(new StreamingFileHasher(completeFile.length()).getState(), resumed.getHashState());
+
+        // state of another file
+        resumed = verifyingFileFactory.createVerifyingFile(completeFile.length() - 1);
+        resumed.addInterval(Range.createRange(0, chunk.length - 1));
+        resumed.setHashState(hasher.getState());
+        assertEquals(new StreamingFileHasher(completeFile.length() - 1).getState(), resumed.getHashState());
+    }
+
+    /**
+     * tests that the streamed hash is given up if data that was hashed turns
+     * out to be corrupt and is downloaded again.
+     */
+    public void testCorruptDataDiscardsStreamedHash() throws Exception {
+        PrivilegedAccessor.setValue(vf, "blockChooser", new TestSequentialStrategy());
+        vf.leaseWhite((int) completeFile.length());
+        byte[] chunk = new byte[hashTree.getNodeSize()];
+        raf.readFully(chunk);
+        for (int i = 0; i < 100; i++)
+            chunk[i] = (byte) i;
+        writeImpl(0, chunk);
+        vf.waitForPending(1000);
+
+        assertEquals(0, vf.getVerifiedBlockSize());
+        assertNull(vf.getHashState());
+    }
 }
@@ -0,0 +1,158 @@
+package com.limegroup.gnutella.filters;
+
+import junit.framework.Test;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.limewire.core.settings.FilterSettings;
+import org.limewire.io.GUID;
+
+import com.google.inject.Injector;
+import com.limegroup.gnutella.LimeTestUtils;
+import com.limegroup.gnutella.helpers.UrnHelper;
+import com.limegroup.gnutella.messages.PingRequest;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.messages.QueryRequestFactory;
+import com.limegroup.gnutella.util.LimeTestCase;
+
+/**
+ * Unit tests for BloomDuplicateFilter
+ */
+public class BloomDuplicateFilterTest extends LimeTestCase {
+
+    private BloomDuplicateFilter filter;
+    private QueryRequestFactory queryRequestFactory;
+    private SpamFilterFactory spamFilterFactory;
+
+    public BloomDuplicateFilterTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(BloomDuplicateFilterTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        filter = new BloomDuplicateFilter(64 * 1024, 6, 0.001f);
+        filter.setQueryLag(50);
+        filter.setGUIDLag(50);
+        Injector injector = LimeTestUtils.createInjector();
+        queryRequestFactory = injector.getInstance(QueryRequestFactory.class);
+        spamFilterFactory = injector.getInstance(SpamFilterFactory.class);
+    }
+
+    public void testSizeIsRoundedToPowerOfTwo() {
+        assertEquals(1024, new BloomDuplicateFilter(1000, 4, 0.01f).getBitsPerGeneration());
+        assertEquals(1024, new BloomDuplicateFilter(1024, 4, 0.01f).getBitsPerGeneration());
+        assertEquals(2048, new BloomDuplicateFilter(1025, 4, 0.01f).getBitsPerGeneration());
+        try {
+            new BloomDuplicateFilter(1024, 0, 0.01f);
+            fail("expected exception");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testSameGUIDPingIsNotAllowedBeforeTimeout() throws Exception {
+        Mockery context = new Mockery();
+        final PingRequest pr = context.mock(PingRequest.class);
+        final GUID guid = new GUID();
+        context.checking(new Expectations() {{
+            allowing(pr).getGUID(); will(returnValue(guid.bytes()));
+            allowing(pr).getHops(); will(returnValue((byte)2));
+        }});
+
+        assertTrue(filter.allow(pr));
+        assertFalse(filter.allow(pr));
+        Thread.sleep(filter.getGUIDLag() * 2);
+        assertTrue(filter.allow(pr));
+    }
+
+    public void testSimilarGUIDQueryIsRejected() throws Exception {
+        byte[] guid = new GUID().bytes();
+        assertTrue(filter.allow(queryRequestFactory.createQuery(guid, "first", "")));
+        guid = guid.clone();
+        guid[3]++;
+        guid[7]++;
+        assertFalse(filter.allow(queryRequestFactory.createQuery(guid, "second", "")));
+        guid = guid.clone();
+        guid[4]++;
+        guid[8]++;
+        guid[9]++;
+        assertTrue(filter.allow(queryRequestFactory.createQuery(guid, "third", "")));
+    }
+
+    public void testQueryStringDuplicate() throws Exception {
+        assertTrue(filter.allow(queryRequestFactory.createQuery("search1")));
+        assertFalse(filter.allow(queryRequestFactory.createQuery("search1")));
+        assertTrue(filter.allow(queryRequestFactory.createQuery("search2")));
+
+        Thread.sleep(filter.getQueryLag() * 3);
+
+        assertTrue(filter.allow(queryRequestFactory.createQuery("search1")));
+        assertFalse(filter.allow(queryRequestFactory.createQuery("search1")));
+        QueryRequest hopped = queryRequestFactory.createQuery("search1");
+        hopped.hop();
+        assertTrue("same query, different hop, allowed", filter.allow(hopped));
+    }
+
+    public void testQueryIsRememberedInOldGeneration() throws Exception {
+        filter.setQueryLag(200);
+        assertTrue(filter.allow(queryRequestFactory.createQuery("search")));
+        Thread.sleep(250);
+        // the first query after the lag promotes the young generation
+        assertTrue(filter.allow(queryRequestFactory.createQuery("other")));
+        assertFalse(filter.allow(queryRequestFactory.createQuery("search")));
+    }
+
+    public void testURNDuplicate() throws Exception {
+        assertTrue(filter.allow(queryRequestFactory.createQuery(UrnHelper.SHA1)));
+        assertFalse(filter.allow(queryRequestFactory.createQuery(UrnHelper.SHA1)));
+        assertTrue(filter.allow(queryRequestFactory.createQuery(UrnHelper.UNIQUE_SHA1)));
+    }
+
+    public void testXMLDuplicate() throws Exception {
+        String xml = "<?xml version=\"1.0\"?>" +
+            "<audios xsi:noNamespaceSchemaLocation=" +
+            "\"http://www.limewire.com/schemas/audio.xsd\">" +
+            "<audio title=\"sam\" artist=\"sam's band\"></audio></audios>";
+        filter.setQueryLag(DuplicateFilter.QUERY_LAG);
+        assertTrue(filter.allow(queryRequestFactory.createQuery("tests")));
+        assertTrue(filter.allow(queryRequestFactory.createQuery("tests", xml)));
+        assertFalse(filter.allow(queryRequestFactory.createQuery("tests", xml)));
+        assertTrue(filter.allow(queryRequestFactory.createQuery("another test", xml)));
+    }
+
+    public void testFalsePositiveRateIsBounded() throws Exception {
+        filter = new BloomDuplicateFilter(1024, 4, 0.01f);
+        filter.setQueryLag(DuplicateFilter.QUERY_LAG);
+        int rejected = 0;
+        for (int i = 0; i < 5000; i++) {
+            if (!filter.allowQuery(queryRequestFactory.createQuery("query " + i)))
+                rejected++;
+            assertLessThan(0.021, filter.getFalsePositiveRate());
+        }
+        // two generations at 1% each, with plenty of room for chance
+        assertLessThan(5000 / 20, rejected);
+
+        double observed = BloomDuplicateFilter.getObservedFalsePositiveRate();
+        assertGreaterThan(0, observed);
+        assertLessThan(0.021, observed);
+    }
+
+    public void testFactorySwitchesImplementation() throws Exception {
+        assertFalse(containsFilter(spamFilterFactory.createRouteFilter(), BloomDuplicateFilter.class));
+        assertTrue(containsFilter(spamFilterFactory.createRouteFilter(), DuplicateFilter.class));
+        FilterSettings.USE_BLOOM_DUPLICATE_FILTER.setValue(true);
+        assertTrue(containsFilter(spamFilterFactory.createRouteFilter(), BloomDuplicateFilter.class));
+        assertFalse(containsFilter(spamFilterFactory.createRouteFilter(), DuplicateFilter.class));
+    }
+
+    private static boolean containsFilter(SpamFilter filter, Class<?> type) {
+        for (SpamFilter delegate : ((CompositeFilter)filter).delegates) {
+            if (delegate.getClass() == type)
+                return true;
+        }
+        return false;
+    }
+}
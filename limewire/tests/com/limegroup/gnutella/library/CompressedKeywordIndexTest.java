@@ -0,0 +1,162 @@
+package com.limegroup.gnutella.library;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+public class CompressedKeywordIndexTest extends BaseTestCase {
+
+    private CompressedKeywordIndex index;
+
+    public CompressedKeywordIndexTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(CompressedKeywordIndexTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        index = new CompressedKeywordIndex();
+    }
+
+    public void testPrefixLookup() throws Exception {
+        index.add("Hello", 1);
+        index.add("help", 2);
+        index.add("world", 1);
+        index.add("he", 300);
+
+        assertMatches("he", 1, 2, 300);
+        assertMatches("hel", 1, 2);
+        assertMatches("hello", 1);
+        assertMatches("w", 1);
+        assertMatches("helloo");
+        assertMatches("x");
+
+        index.compact();
+        assertMatches("he", 1, 2, 300);
+        assertMatches("hello", 1);
+        assertMatches("helloo");
+    }
+
+    public void testOffsetAndLimit() throws Exception {
+        index.add("world", 5);
+        BitSet matches = new BitSet();
+        index.addPrefixedBy("hello world", 6, 9, matches);
+        assertEquals(1, matches.cardinality());
+        assertTrue(matches.get(5));
+    }
+
+    public void testRemoveFromSegmentAndDelta() throws Exception {
+        index.add("hello", 1);
+        index.add("hello", 2);
+        index.compact();
+        index.add("hello", 3);
+
+        index.remove("hello", 1);
+        index.remove("hello", 3);
+        assertMatches("hello", 2);
+
+        // re-adding cancels the removal
+        index.add("hello", 1);
+        assertMatches("hello", 1, 2);
+
+        index.compact();
+        assertMatches("hello", 1, 2);
+        index.remove("hello", 1);
+        index.remove("hello", 2);
+        assertMatches("hello");
+        index.compact();
+        assertEquals(0, index.size());
+    }
+
+    public void testLargeIndicesAreEncoded() throws Exception {
+        index.add("big", 0);
+        index.add("big", 127);
+        index.add("big", 128);
+        index.add("big", 1 << 20);
+        index.add("big", 1 << 24);
+        index.compact();
+        assertMatches("big", 0, 127, 128, 1 << 20, 1 << 24);
+    }
+
+    public void testClear() throws Exception {
+        index.add("hello", 1);
+        index.compact();
+        index.add("world", 2);
+        index.clear();
+        assertMatches("hello");
+        assertMatches("world");
+        assertEquals(0, index.size());
+    }
+
+    public void testRandomChangesWithMerges() throws Exception {
+        Random random = new Random(7);
+        Map<String, Set<Integer>> expected = new TreeMap<String, Set<Integer>>();
+        String[] words = new String[500];
+        for (int i = 0; i < words.length; i++)
+            words[i] = Integer.toString(random.nextInt(100000), 36);
+
+        for (int op = 0; op < 4 * CompressedKeywordIndex.MIN_MERGE_POSTINGS; op++) {
+            String word = words[random.nextInt(words.length)];
+            int file = random.nextInt(2000);
+            Set<Integer> files = expected.get(word);
+            if (files == null) {
+                files = new HashSet<Integer>();
+                expected.put(word, files);
+            }
+            if (random.nextInt(3) == 0) {
+                index.remove(word, file);
+                files.remove(file);
+            } else {
+                index.add(word, file);
+                files.add(file);
+            }
+            if (op % 5000 == 0)
+                assertIndexMatches(expected, words, random);
+        }
+
+        // wait for the last background merge
+        for (int i = 0; i < 100 && index.isMerging(); i++)
+            Thread.sleep(50);
+        assertFalse(index.isMerging());
+        assertIndexMatches(expected, words, random);
+
+        index.compact();
+        assertIndexMatches(expected, words, random);
+    }
+
+    private void assertIndexMatches(Map<String, Set<Integer>> expected, String[] words, Random random) {
+        for (int i = 0; i < 50; i++) {
+            String word = words[random.nextInt(words.length)];
+            String prefix = word.substring(0, 1 + random.nextInt(word.length()));
+            Set<Integer> files = new HashSet<Integer>();
+            for (Map.Entry<String, Set<Integer>> entry : expected.entrySet()) {
+                if (entry.getKey().startsWith(prefix))
+                    files.addAll(entry.getValue());
+            }
+            BitSet matches = new BitSet();
+            index.addPrefixedBy(prefix, 0, prefix.length(), matches);
+            assertEquals(prefix, files.size(), matches.cardinality());
+            for (int file : files)
+                assertTrue(matches.get(file));
+        }
+    }
+
+    private void assertMatches(String prefix, int... expected) {
+        BitSet matches = new BitSet();
+        prefix = index.canonicalCase(prefix);
+        index.addPrefixedBy(prefix, 0, prefix.length(), matches);
+        assertEquals(expected.length, matches.cardinality());
+        for (int i : expected)
+            assertTrue(matches.get(i));
+    }
+}
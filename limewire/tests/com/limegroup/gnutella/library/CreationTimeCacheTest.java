@@ -15,6 +15,7 @@ import java.util.concurrent.Future;
 
 import junit.framework.Test;
 
+import org.limewire.io.AppendOnlyStore;
 import org.limewire.util.PrivilegedAccessor;
 import org.limewire.util.TestUtils;
 
@@ -38,6 +39,7 @@ public class CreationTimeCacheTest extends LimeTestCase {
      * File where urns (currently SHA1 urns) get persisted to
      */
     private static final String CREATION_CACHE_FILE = "createtimes.cache";
+    private static final String CREATION_STORE_FILE = "createtimes.store";
     private final String FILE_PATH = "com/limegroup/gnutella/util";
 
 	public CreationTimeCacheTest(String name) {
@@ -114,8 +116,9 @@ public class CreationTimeCacheTest extends LimeTestCase {
     }
     
     public void testMapCreationNoExistingMap() throws Exception {
+        deleteCacheFile();
         CreationTimeCache creationTimeCache = new CreationTimeCache(fileManager);
-        Map<URN, Long> map = creationTimeCache.createMap();
+        Map<URN, Long> map = getUrnToTime(creationTimeCache);
         assertTrue(map.isEmpty());
     }
 
@@ -376,13 +379,14 @@ public class CreationTimeCacheTest extends LimeTestCase {
 	private void deleteCacheFile() {
 		File cacheFile = new File(_settingsDir, CREATION_CACHE_FILE);
 		cacheFile.delete();
+		AppendOnlyStore.delete(new File(_settingsDir, CREATION_STORE_FILE));
 	}
 
 	/**
-	 * Convenience method for making sure that the serialized file exists.
+	 * Convenience method for making sure that the store exists.
 	 */
 	private boolean cacheExists() {
-		File cacheFile = new File(_settingsDir, CREATION_CACHE_FILE);
+		File cacheFile = new File(_settingsDir, CREATION_STORE_FILE + ".0");
 		return cacheFile.exists();
 	}
 
@@ -2,6 +2,8 @@ package com.limegroup.gnutella.library;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -11,10 +13,15 @@ import java.util.Set;
 
 import junit.framework.Test;
 
+import org.jmock.Mockery;
+import org.limewire.inject.Providers;
 import org.limewire.util.TestUtils;
 
 import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.UrnSet;
 import com.limegroup.gnutella.helpers.UrnHelper;
+import com.limegroup.gnutella.tigertree.HashTreeCache;
+import com.limegroup.gnutella.tigertree.HashTreeFactory;
 import com.limegroup.gnutella.util.LimeTestCase;
 
 
@@ -27,7 +34,7 @@ public final class UrnCacheTest extends LimeTestCase {
     /**
      * File where urns (currently SHA1 urns) get persisted to
      */
-    private static final String URN_CACHE_FILE = "fileurns.cache";
+    private static final String URN_STORE_FILE = "fileurns.store.0";
     private static final String FILE_PATH = "com/limegroup/gnutella/util";
 
     private static final Set EMPTY_SET = 
@@ -56,19 +63,25 @@ public final class UrnCacheTest extends LimeTestCase {
 	protected void setUp() throws Exception {
 	    urnCache = new UrnCache();
 	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+	    urnCache.close();
+	}
     
     /**
      * Test read & write of map
      */
     public void testPersistence() throws Exception {
-        assertTrue("cache should not be present", !cacheExists() );
-        
         Collection<FileAndUrns> faus = createLotsOfUrns();
         assertNotNull("should have some file descs", faus);
         assertGreaterThan("should have some file descs", 0, faus.size());
-        assertTrue("cache should still not be present", !cacheExists() );
         urnCache.persistCache();
         assertTrue("cache should now exist", cacheExists());
+        
+        // a new cache should read the urns back from disk
+        urnCache.close();
+        urnCache = new UrnCache();
         for(FileAndUrns fau : faus) {
             Set set = urnCache.getUrns(fau.file);
             assertTrue("file should be present in cache",
@@ -80,6 +93,64 @@ public final class UrnCacheTest extends LimeTestCase {
         }
     }
 
+    /**
+     * Tests that URNs are not used anymore once the size of the file
+     * changed, even if the modification time is the same.
+     */
+    public void testSizeChangeInvalidatesUrns() throws Exception {
+        File file = new File(_scratchDir, "urncache.test");
+        writeFile(file, new byte[1000]);
+        Set<URN> urns = UrnHelper.calculateAndCacheURN(file, urnCache);
+        assertFalse(urns.isEmpty());
+        assertEquals(urns, urnCache.getUrns(file));
+        
+        long modified = file.lastModified();
+        writeFile(file, new byte[2000]);
+        file.setLastModified(modified);
+        assertEquals(modified, file.lastModified());
+        assertTrue(urnCache.getUrns(file).isEmpty());
+    }
+
+    /**
+     * Tests that a file which grows after the tree hasher was sized for it
+     * still gets its SHA1, only the tree is not calculated along with it.
+     */
+    public void testFileGrowingWhileHashed() throws Exception {
+        Mockery context = new Mockery();
+        // no tree may be created or added
+        HashTreeCache hashTreeCache = context.mock(HashTreeCache.class);
+        HashTreeFactory hashTreeFactory = context.mock(HashTreeFactory.class);
+        urnCache.close();
+        urnCache = new UrnCache(Providers.of(hashTreeCache), Providers.of(hashTreeFactory));
+        
+        final File file = new File(_scratchDir, "growing.test");
+        writeFile(file, new byte[100 * 1024]);
+        File growing = new File(file.getPath()) {
+            private boolean grown = false;
+            
+            @Override
+            public long length() {
+                long length = super.length();
+                if (!grown) {
+                    grown = true;
+                    try {
+                        FileOutputStream out = new FileOutputStream(file, true);
+                        out.write(new byte[5000]);
+                        out.close();
+                    } catch (IOException iox) {
+                        throw new RuntimeException(iox);
+                    }
+                }
+                return length;
+            }
+        };
+        
+        Set<URN> urns = UrnHelper.calculateAndCacheURN(growing, urnCache);
+        assertEquals(100 * 1024 + 5000, file.length());
+        assertEquals(URN.createSHA1Urn(file), UrnSet.getSha1(urns));
+        context.assertIsSatisfied();
+    }
+
 	private Collection<FileAndUrns> createLotsOfUrns() throws Exception {
         File path = TestUtils.getResourceFile(FILE_PATH);
         File[] files = path.listFiles(new FileFilter() { 
@@ -105,11 +176,20 @@ public final class UrnCacheTest extends LimeTestCase {
         }
 	}
 
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
 	/**
 	 * Convenience method for making sure that the serialized file exists.
 	 */
 	private static boolean cacheExists() {
-		File cacheFile = new File(_settingsDir, URN_CACHE_FILE);
+		File cacheFile = new File(_settingsDir, URN_STORE_FILE);
 		return cacheFile.exists();
 	}
 
@@ -0,0 +1,60 @@
+package com.limegroup.gnutella.messages;
+
+import junit.framework.Test;
+
+import org.limewire.nio.ByteBufferCache;
+
+import com.limegroup.gnutella.util.LimeTestCase;
+
+public class PooledPayloadTest extends LimeTestCase {
+
+    private ByteBufferCache cache;
+
+    public PooledPayloadTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(PooledPayloadTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        cache = new ByteBufferCache();
+    }
+
+    public void testReleasedWithLastReference() throws Exception {
+        PooledPayload payload = new PooledPayload(cache, 100);
+        assertEquals(100, payload.array().length);
+        assertSame(payload, payload.retain());
+        
+        payload.release();
+        assertFalse(payload.isReleased());
+        assertEquals(0, cache.getHeapCacheSize());
+        
+        payload.release();
+        assertTrue(payload.isReleased());
+        assertEquals(100, cache.getHeapCacheSize());
+        
+        // the next payload of that size reuses the buffer
+        PooledPayload next = new PooledPayload(cache, 100);
+        assertSame(payload.getBuffer(), next.getBuffer());
+        assertEquals(0, cache.getHeapCacheSize());
+    }
+
+    public void testReleasedPayloadCanNotBeRetained() throws Exception {
+        PooledPayload payload = new PooledPayload(cache, 10);
+        payload.release();
+        try {
+            payload.retain();
+            fail("expected released payload not to be retained");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            payload.release();
+            fail("expected payload not to be released twice");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(10, cache.getHeapCacheSize());
+    }
+}
@@ -0,0 +1,168 @@
+package com.limegroup.gnutella.performance;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.collection.IntSet;
+import org.limewire.collection.StringTrie;
+
+import com.limegroup.gnutella.library.CompressedKeywordIndex;
+
+/**
+ * Compares answering keyword queries with the synchronized
+ * <code>StringTrie&lt;IntSet&gt;</code> that SharedFilesKeywordIndexImpl
+ * used to keep against {@link CompressedKeywordIndex}, for a large shared
+ * library and several threads querying at once.
+ * <p>
+ * Usage: <code>KeywordIndexBenchmark [files] [threads] [queries per thread]</code>
+ */
+public class KeywordIndexBenchmark {
+
+    private static final int KEYWORDS_PER_FILE = 6;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Random random = new Random(1);
+        String[] words = new String[50000];
+        for (int i = 0; i < words.length; i++)
+            words[i] = randomWord(random);
+        String[][] names = new String[files][KEYWORDS_PER_FILE];
+        for (int i = 0; i < files; i++) {
+            for (int j = 0; j < KEYWORDS_PER_FILE; j++)
+                names[i][j] = words[zipf(random, words.length)];
+        }
+        String[] queryStrings = new String[queries];
+        for (int i = 0; i < queries; i++) {
+            String first = words[zipf(random, words.length)];
+            String second = words[zipf(random, words.length)];
+            queryStrings[i] = first + " " + second.substring(0, Math.min(second.length(), 4));
+        }
+        System.out.println(files + " files, " + threads + " threads, " + queries + " queries per thread");
+
+        long heap = usedHeap();
+        long start = System.nanoTime();
+        final StringTrie<IntSet> trie = new StringTrie<IntSet>(true);
+        for (int i = 0; i < files; i++) {
+            for (String keyword : names[i]) {
+                IntSet indices = trie.get(keyword);
+                if (indices == null) {
+                    indices = new IntSet();
+                    trie.add(keyword, indices);
+                }
+                indices.add(i);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("trie: built in " + elapsed / 1000000 + " ms, "
+                + (usedHeap() - heap) / 1024 + " KB");
+
+        heap = usedHeap();
+        start = System.nanoTime();
+        final CompressedKeywordIndex index = new CompressedKeywordIndex();
+        for (int i = 0; i < files; i++) {
+            for (String keyword : names[i])
+                index.add(keyword, i);
+        }
+        index.compact();
+        elapsed = System.nanoTime() - start;
+        System.out.println("compressed: built in " + elapsed / 1000000 + " ms, "
+                + (usedHeap() - heap) / 1024 + " KB");
+
+        for (int round = 0; round < 3; round++) {
+            long trieTime = run(threads, new Searcher() {
+                // like SharedFilesKeywordIndexImpl.search used to
+                public int search(String query, int space) {
+                    IntSet ret = null;
+                    for (int i = 0, j = space; i < query.length(); i = j + 1, j = query.length()) {
+                        IntSet matches = new IntSet();
+                        synchronized (trie) {
+                            Iterator<IntSet> iter = trie.getPrefixedBy(query, i, j);
+                            while (iter.hasNext())
+                                matches.addAll(iter.next());
+                        }
+                        if (ret == null)
+                            ret = matches;
+                        else
+                            ret.retainAll(matches);
+                    }
+                    return ret.size();
+                }
+            }, queryStrings);
+            long compressedTime = run(threads, new Searcher() {
+                // like SharedFilesKeywordIndexImpl.search
+                public int search(String query, int space) {
+                    BitSet ret = null;
+                    for (int i = 0, j = space; i < query.length(); i = j + 1, j = query.length()) {
+                        BitSet matches = new BitSet();
+                        index.addPrefixedBy(query, i, j, matches);
+                        if (ret == null)
+                            ret = matches;
+                        else
+                            ret.and(matches);
+                    }
+                    IntSet result = new IntSet();
+                    for (int i = ret.nextSetBit(0); i >= 0; i = ret.nextSetBit(i + 1))
+                        result.add(i);
+                    return result.size();
+                }
+            }, queryStrings);
+            System.out.println("round " + round + ": trie " + trieTime / queries + " ns/query"
+                    + ", compressed " + compressedTime / queries + " ns/query");
+        }
+    }
+
+    private interface Searcher {
+        /** Returns the number of files matching both keywords of the query. */
+        int search(String query, int space);
+    }
+
+    /** Runs the queries on the given number of threads, returns the elapsed nanos. */
+    private static long run(int threads, final Searcher searcher, final String[] queries)
+            throws InterruptedException {
+        final AtomicLong hits = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    long sum = 0;
+                    for (String query : queries)
+                        sum += searcher.search(query, query.indexOf(' '));
+                    hits.addAndGet(sum);
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join();
+        return System.nanoTime() - start;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Returns a random index skewed towards small values, like word frequencies. */
+    private static int zipf(Random random, int n) {
+        return (int)Math.pow(n, random.nextDouble()) - 1;
+    }
+
+    private static String randomWord(Random random) {
+        char[] word = new char[3 + random.nextInt(7)];
+        for (int i = 0; i < word.length; i++)
+            word[i] = (char)('a' + random.nextInt(26));
+        return new String(word);
+    }
+}
@@ -0,0 +1,94 @@
+package com.limegroup.gnutella.performance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.limegroup.gnutella.LimeTestUtils;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.messages.QueryRequestFactory;
+import com.limegroup.gnutella.routing.QueryRouteHashes;
+import com.limegroup.gnutella.routing.QueryRouteTable;
+
+/**
+ * Measures how long an ultrapeer takes to check one query against the
+ * query route tables of its leaves, once hashing the query for every table
+ * and once with the hashes that are kept with the query.
+ * <p>
+ * Usage: <code>QueryRoutingBenchmark [leaves] [queries] [rounds]</code>
+ */
+public class QueryRoutingBenchmark {
+
+    private static final int TABLE_SIZE = 64 * 1024;
+
+    private static final int WORDS_PER_LEAF = 4000;
+
+    public static void main(String[] args) throws Exception {
+        int leaves = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Random random = new Random(1);
+        List<String> words = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++)
+            words.add(randomWord(random));
+
+        QueryRouteTable[] tables = new QueryRouteTable[leaves];
+        for (int i = 0; i < leaves; i++) {
+            QueryRouteTable shared = new QueryRouteTable(TABLE_SIZE);
+            for (int j = 0; j < WORDS_PER_LEAF; j++)
+                shared.add(words.get(random.nextInt(words.size())));
+            // addAll compacts the table into its packed representation
+            tables[i] = new QueryRouteTable(TABLE_SIZE);
+            tables[i].addAll(shared);
+        }
+
+        QueryRequestFactory factory = LimeTestUtils.createInjector().getInstance(QueryRequestFactory.class);
+        String[] queries = new String[queryCount];
+        for (int i = 0; i < queryCount; i++) {
+            queries[i] = words.get(random.nextInt(words.size()))
+                    + " " + words.get(random.nextInt(words.size()));
+        }
+
+        System.out.println(leaves + " leaves, " + queryCount + " queries, " + rounds + " rounds");
+        for (int round = 0; round < rounds; round++) {
+            QueryRequest[] requests = new QueryRequest[queryCount];
+            for (int i = 0; i < queryCount; i++)
+                requests[i] = factory.createQuery(queries[i]);
+
+            long start = System.nanoTime();
+            int rehashedHits = 0;
+            for (QueryRequest request : requests) {
+                for (QueryRouteTable table : tables) {
+                    if (table.contains(new QueryRouteHashes(request, TABLE_SIZE)))
+                        rehashedHits++;
+                }
+            }
+            long rehashed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int cachedHits = 0;
+            for (QueryRequest request : requests) {
+                for (QueryRouteTable table : tables) {
+                    if (table.contains(request))
+                        cachedHits++;
+                }
+            }
+            long cached = System.nanoTime() - start;
+
+            if (rehashedHits != cachedHits)
+                throw new IllegalStateException(rehashedHits + " != " + cachedHits);
+            System.out.println("round " + round
+                    + ": hashed per table " + rehashed / queryCount + " ns/query"
+                    + ", hashed once " + cached / queryCount + " ns/query"
+                    + ", hits " + cachedHits);
+        }
+    }
+
+    private static String randomWord(Random random) {
+        char[] word = new char[4 + random.nextInt(6)];
+        for (int i = 0; i < word.length; i++)
+            word[i] = (char)('a' + random.nextInt(26));
+        return new String(word);
+    }
+}
@@ -16,6 +16,7 @@ import com.google.inject.Injector;
 import com.limegroup.gnutella.LimeTestUtils;
 import com.limegroup.gnutella.helpers.UrnHelper;
 import com.limegroup.gnutella.messages.BadPacketException;
+import com.limegroup.gnutella.messages.QueryRequest;
 import com.limegroup.gnutella.messages.QueryRequestFactory;
 
 public class QueryRouteTableTest extends com.limegroup.gnutella.util.LimeTestCase {
@@ -488,4 +489,75 @@ public class QueryRouteTableTest extends com.limegroup.gnutella.util.LimeTestCas
         } catch(BadPacketException e) {
         }
     }
+    
+    public void testQueryRouteHashesAreComputedOncePerSize() throws Exception {
+        QueryRequest query = queryRequestFactory.createQuery("good book");
+        QueryRouteHashes small = query.getQueryRouteHashes(1024);
+        assertSame(small, query.getQueryRouteHashes(1024));
+        assertEquals(1024, small.getTableSize());
+        QueryRouteHashes big = query.getQueryRouteHashes(64 * 1024);
+        assertNotSame(small, big);
+        assertSame(big, query.getQueryRouteHashes(64 * 1024));
+        
+        QueryRouteTable qrt = new QueryRouteTable(1024);
+        qrt.add("good book");
+        assertTrue(qrt.contains(query));
+        assertTrue(qrt.contains(small));
+        try {
+            qrt.contains(big);
+            fail("hashes for another size should be rejected");
+        } catch(IllegalArgumentException expected) {}
+    }
+    
+    public void testBatchLookupsOfStorages() throws Exception {
+        Random random = new Random(7);
+        int size = 64 * 1024;
+        QRTTableStorage packed = new BitSetQRTTableStorage(size);
+        QRTTableStorage sparse = new SparseSetStorage(size);
+        for (int i = 0; i < 5000; i++) {
+            int hash = random.nextInt(size);
+            packed.set(hash);
+            sparse.set(hash);
+        }
+        assertEquals(sparse.cardinality(), packed.cardinality());
+        assertEquals(packed, sparse);
+        
+        for (int i = 0; i < 1000; i++) {
+            int[] hashes = new int[random.nextInt(6)];
+            int count = 0;
+            for (int j = 0; j < hashes.length; j++) {
+                hashes[j] = random.nextInt(size);
+                if (packed.get(hashes[j]))
+                    count++;
+            }
+            assertEquals(count, packed.countContained(hashes));
+            assertEquals(count, sparse.countContained(hashes));
+            assertEquals(count == hashes.length, packed.containsAll(hashes));
+            assertEquals(count == hashes.length, sparse.containsAll(hashes));
+            assertEquals(count > 0, packed.containsAny(hashes));
+            assertEquals(count > 0, sparse.containsAny(hashes));
+        }
+        
+        int i = -1;
+        for (int set : sparse) {
+            assertEquals(set, packed.nextSetBit(i + 1));
+            i = set;
+        }
+        assertEquals(-1, packed.nextSetBit(i + 1));
+    }
+    
+    public void testPackedStorageClearBits() throws Exception {
+        QRTTableStorage packed = new BitSetQRTTableStorage(256);
+        for (int i = 60; i < 130; i++)
+            packed.set(i);
+        assertEquals(0, packed.nextClearBit(0));
+        assertEquals(130, packed.nextClearBit(60));
+        assertEquals(60, packed.nextSetBit(0));
+        packed.clear(64);
+        assertEquals(64, packed.nextClearBit(60));
+        assertEquals(69, packed.cardinality());
+        assertEquals(2, packed.numUnitsWithLoad(63) + packed.numUnitsWithLoad(2));
+        assertEquals(3, packed.getUnitsInUse());
+        assertEquals(0, packed.getUnusedUnits());
+    }
 }
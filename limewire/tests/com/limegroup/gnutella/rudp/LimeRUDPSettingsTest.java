@@ -41,5 +41,9 @@ public class LimeRUDPSettingsTest extends LimeTestCase {
         assertEquals(true, settings.isSkipAcksEnabled()); // tests the default setting.
         DownloadSettings.SKIP_ACKS.setValue(false);
         assertEquals(false, settings.isSkipAcksEnabled());
+        
+        assertEquals(256, settings.getMaxWindowSize()); // tests the default setting.
+        DownloadSettings.RUDP_MAX_WINDOW_SIZE.setValue(64);
+        assertEquals(64, settings.getMaxWindowSize());
     }
 }
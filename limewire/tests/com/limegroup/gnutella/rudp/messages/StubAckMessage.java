@@ -15,4 +15,8 @@ public class StubAckMessage extends StubRUDPMessage implements AckMessage {
         return 0;
     }
 
+    public int[] getSelectiveAcks() {
+        return new int[0];
+    }
+
 }
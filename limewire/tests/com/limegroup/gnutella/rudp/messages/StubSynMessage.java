@@ -19,4 +19,8 @@ public class StubSynMessage extends StubRUDPMessage implements SynMessage {
         return Role.UNDEFINED;
     }
 
+    public int getWindowSize() {
+        return 0;
+    }
+
 }
@@ -10,6 +10,7 @@ import org.limewire.security.AddressSecurityToken;
 import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.messages.Message;
 import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.routing.QueryRouteHashes;
 import com.limegroup.gnutella.xml.LimeXMLDocument;
 
 public class QueryRequestStub implements QueryRequest {
@@ -254,4 +255,8 @@ public class QueryRequestStub implements QueryRequest {
         return false;
     }
 
+    public QueryRouteHashes getQueryRouteHashes(int tableSize) {
+        return new QueryRouteHashes(this, tableSize);
+    }
+
 }
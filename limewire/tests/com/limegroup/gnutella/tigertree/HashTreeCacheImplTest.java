@@ -0,0 +1,94 @@
+package com.limegroup.gnutella.tigertree;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.Test;
+
+import org.limewire.io.AppendOnlyStore;
+import org.limewire.util.TestUtils;
+
+import com.google.inject.Injector;
+import com.limegroup.gnutella.LimeTestUtils;
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.library.ManagedFileList;
+import com.limegroup.gnutella.util.LimeTestCase;
+
+/**
+ * Tests that HashTreeCacheImpl keeps trees and roots across sessions.
+ */
+public class HashTreeCacheImplTest extends LimeTestCase {
+
+    private static final String filename =
+        "com/limegroup/gnutella/metadata/mpg4_golem160x90first120.avi";
+    private static final File file = TestUtils.getResourceFile(filename);
+
+    private HashTreeFactoryImpl tigerTreeFactory;
+    private ManagedFileList managedFileList;
+
+    public HashTreeCacheImplTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(HashTreeCacheImplTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        AppendOnlyStore.delete(new File(_settingsDir, "ttroot.store"));
+        AppendOnlyStore.delete(new File(_settingsDir, "ttdata.store"));
+        Injector injector = LimeTestUtils.createInjector();
+        tigerTreeFactory = (HashTreeFactoryImpl)injector.getInstance(HashTreeFactory.class);
+        managedFileList = injector.getInstance(ManagedFileList.class);
+    }
+
+    public void testTreeIsReadBackFromStore() throws Exception {
+        URN sha1 = URN.createSHA1Urn(file);
+        HashTree tree;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            tree = tigerTreeFactory.createHashTree(file.length(), in, sha1);
+        } finally {
+            in.close();
+        }
+
+        HashTreeCacheImpl cache = new HashTreeCacheImpl(tigerTreeFactory, managedFileList);
+        assertNull(cache.getHashTree(sha1));
+        assertSame(tree, cache.addHashTree(sha1, tree));
+
+        cache = new HashTreeCacheImpl(tigerTreeFactory, managedFileList);
+        HashTree read = cache.getHashTree(sha1);
+        assertNotNull(read);
+        assertNotSame(tree, read);
+        assertEquals(tree.getRootHash(), read.getRootHash());
+        assertEquals(tree.getFileSize(), read.getFileSize());
+        assertEquals(tree.getNodeSize(), read.getNodeSize());
+        assertEquals(tree.getDepth(), read.getDepth());
+        assertEquals(tree.getNodes().size(), read.getNodes().size());
+        for (int i = 0; i < tree.getNodes().size(); i++)
+            assertTrue(Arrays.equals(tree.getNodes().get(i), read.getNodes().get(i)));
+        assertEquals(tree.getTreeRootUrn(), cache.getHashTreeRootForSha1(sha1));
+
+        cache.purgeTree(sha1);
+        cache = new HashTreeCacheImpl(tigerTreeFactory, managedFileList);
+        assertNull(cache.getHashTree(sha1));
+        assertEquals(tree.getTreeRootUrn(), cache.getHashTreeRootForSha1(sha1));
+    }
+
+    public void testRootIsReadBackFromStore() throws Exception {
+        URN sha1 = URN.createSHA1Urn("urn:sha1:PLSTHIPQGSSZTS5FJUPAKUZWUGYQYPFB");
+        URN root = URN.createTTRootUrn("urn:ttroot:IXVJNDJ7U3NCMZE5ZWBVCXSMWMFY4ZCXG5LUYAY");
+
+        HashTreeCacheImpl cache = new HashTreeCacheImpl(tigerTreeFactory, managedFileList);
+        assertNull(cache.getHashTreeRootForSha1(sha1));
+        cache.addRoot(sha1, root);
+
+        cache = new HashTreeCacheImpl(tigerTreeFactory, managedFileList);
+        assertEquals(root, cache.getHashTreeRootForSha1(sha1));
+        assertNull(cache.getHashTree(sha1));
+    }
+}
@@ -3,6 +3,7 @@ package com.limegroup.gnutella.tigertree;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -22,6 +23,7 @@ import org.limewire.util.TestUtils;
 import com.google.inject.Injector;
 import com.limegroup.gnutella.LimeTestUtils;
 import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.UrnSet;
 import com.limegroup.gnutella.dime.DIMEGenerator;
 import com.limegroup.gnutella.dime.DIMEParser;
 import com.limegroup.gnutella.dime.DIMERecord;
@@ -135,6 +137,68 @@ public class HashTreeTest extends BaseTestCase {
         assertEquals(1+2+3+6+11, hashTree.getNodeCount());
     }
     
+    public void testTreeFromLeafNodeHasher() throws Exception {
+        LeafNodeHasher leafHasher = new LeafNodeHasher(file.length());
+        URN urn = UrnSet.getSha1(URN.generateUrnsFromFile(file, leafHasher));
+        assertEquals(sha1, urn.toString());
+
+        HashTree tree = tigerTreeFactory.createHashTree(leafHasher.getNodes(),
+                leafHasher.getNodeSize(), urn, file.length());
+        assertEquals(root32, tree.getRootHash());
+        
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        HashTree streamTree;
+        try {
+            streamTree = tigerTreeFactory.createHashTree(file.length(), in, urn);
+        } finally {
+            in.close();
+        }
+        assertEquals(streamTree.getDepth(), tree.getDepth());
+        assertEquals(streamTree.getNodeSize(), tree.getNodeSize());
+
+        List<byte[]> expected = streamTree.getNodes();
+        List<byte[]> nodes = tree.getNodes();
+        assertEquals(expected.size(), nodes.size());
+        for(int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i), nodes.get(i));
+
+        // feeding more data than the file size must fail
+        leafHasher = new LeafNodeHasher(10);
+        try {
+            leafHasher.update(new byte[11], 0, 11);
+            fail("shouldn't accept more than fileSize");
+        } catch(IOException expected2) {}
+
+        // and so must finishing early
+        leafHasher = new LeafNodeHasher(10);
+        leafHasher.update(new byte[5], 0, 5);
+        try {
+            leafHasher.getNodes();
+            fail("shouldn't have hashed whole file");
+        } catch(IOException expected2) {}
+    }
+
+    public void testLeafNodeHasherWithUnevenUpdates() throws Exception {
+        byte[] data = new byte[(int)file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            new DataInputStream(in).readFully(data);
+        } finally {
+            in.close();
+        }
+        // sizes that leave partial 1KB blocks buffered between updates
+        LeafNodeHasher leafHasher = new LeafNodeHasher(data.length);
+        int[] sizes = { 1, 100, 1023, 1025, 3000, 70000 };
+        for(int off = 0, i = 0; off < data.length; i++) {
+            int size = Math.min(sizes[i % sizes.length], data.length - off);
+            leafHasher.update(data, off, size);
+            off += size;
+        }
+        HashTree tree = tigerTreeFactory.createHashTree(leafHasher.getNodes(),
+                leafHasher.getNodeSize(), URN.createSHA1Urn(sha1), file.length());
+        assertEquals(root32, tree.getRootHash());
+    }
+
     public void testWriteToStream() throws Exception {
         
         HashTreeWriteHandler tigerWriteHandler = tigerWriteHandlerFactory.createTigerWriteHandler(hashTree);